@@ -32,6 +32,7 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.Chan
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.controller.Controller
+import com.github.k1rakishou.chan.core.AppDependenciesInitializer
 import com.github.k1rakishou.chan.core.base.ControllerHostActivity
 import com.github.k1rakishou.chan.core.di.component.activity.ActivityComponent
 import com.github.k1rakishou.chan.core.di.component.viewmodel.ViewModelComponent
@@ -117,6 +118,8 @@ class StartActivity : ControllerHostActivity(),
   lateinit var applicationCrashNotifier: ApplicationCrashNotifier
   @Inject
   lateinit var globalUiStateHolder: GlobalUiStateHolder
+  @Inject
+  lateinit var appDependenciesInitializer: AppDependenciesInitializer
 
   private val compositeDisposable = CompositeDisposable()
   private var intentMismatchWorkaroundActive = false
@@ -279,6 +282,7 @@ class StartActivity : ControllerHostActivity(),
     updateManager.get().autoUpdateCheck()
 
     coroutineScope.launch {
+      appDependenciesInitializer.awaitFirstFrameTasks()
       startActivityStartupHandlerHelper.setupFromStateOrFreshLaunch(intent, savedInstanceState)
     }
 
@@ -7,13 +7,31 @@ import com.github.k1rakishou.chan.core.manager.ChanFilterManager
 import com.github.k1rakishou.chan.core.manager.HistoryNavigationManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadBookmarkGroupManager
+import com.github.k1rakishou.chan.core.startup.StartupTask
+import com.github.k1rakishou.chan.core.startup.StartupTaskExecutor
+import com.github.k1rakishou.chan.core.startup.StartupTaskGraph
+import com.github.k1rakishou.chan.core.startup.StartupTrace
 import com.github.k1rakishou.chan.core.watcher.BookmarkWatcherCoordinator
 import com.github.k1rakishou.chan.core.watcher.FilterWatcherCoordinator
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingCoordinator
+import com.github.k1rakishou.common.ModularResult.Companion.Try
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.site.ChanSiteData
 import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.File
 
+/**
+ * Initializes the application-wide managers as a graph of [StartupTask]s with explicit
+ * dependencies. Once every task is done the startup trace is written into [startupTraceFile].
+ * */
 class AppDependenciesInitializer(
+  private val appScope: CoroutineScope,
+  private val startupTraceFile: File,
   private val siteManager: SiteManager,
   private val boardManager: BoardManager,
   private val bookmarksManager: BookmarksManager,
@@ -25,25 +43,126 @@ class AppDependenciesInitializer(
   private val chanFilterManager: ChanFilterManager,
   private val threadDownloadingCoordinator: ThreadDownloadingCoordinator
 ) {
+  private val startupTrace = StartupTrace()
+  private val startupRunDeferred = CompletableDeferred<StartupTaskExecutor.StartupRun>()
 
   fun init() {
+    val graph = StartupTaskGraph.build(createStartupTasks())
+
+    // The tasks mostly start the actual work on background threads and then wait for it so there is
+    // no point in limiting them
+    val startupTaskExecutor = StartupTaskExecutor(
+      scope = appScope,
+      maxParallelism = graph.tasks.size,
+      startupTrace = startupTrace
+    )
+
+    val startupRun = startupTaskExecutor.execute(graph)
+    startupRunDeferred.complete(startupRun)
+
+    appScope.launch {
+      startupRun.awaitFirstFrameTasks()
+      startupTrace.milestone(FIRST_FRAME_TASKS_DONE_MILESTONE)
+      logFirstFrameCriticalPath(graph)
+
+      val allTasksDone = withTimeoutOrNull(MAX_WAIT_FOR_ALL_TASKS_MS) { startupRun.awaitAllTasks() } != null
+      if (!allTasksDone) {
+        Logger.e(TAG, "Not all startup tasks are done after ${MAX_WAIT_FOR_ALL_TASKS_MS}ms, writing what we have")
+      }
+
+      writeStartupTrace()
+    }
+  }
+
+  /**
+   * Waits until the managers that the UI needs in order to show anything are initialized.
+   * */
+  suspend fun awaitFirstFrameTasks() {
+    startupRunDeferred.await().awaitFirstFrameTasks()
+  }
+
+  private fun createStartupTasks(): List<StartupTask> {
     val allSitesDeferred = CompletableDeferred<List<ChanSiteData>>()
 
-    siteManager.initialize(allSitesDeferred)
-    boardManager.initialize(allSitesDeferred)
+    // Tasks that listen for events of a manager must be initialized before that manager because the
+    // events are not replayed to late subscribers
+    return listOf(
+      StartupTask(name = SITE_MANAGER, requiredForFirstFrame = true) {
+        siteManager.initialize(allSitesDeferred)
+        siteManager.awaitUntilInitialized()
+      },
+      StartupTask(name = BOARD_MANAGER, dependencies = setOf(SITE_MANAGER), requiredForFirstFrame = true) {
+        boardManager.initialize(allSitesDeferred)
+        boardManager.awaitUntilInitialized()
+      },
+      StartupTask(name = THREAD_BOOKMARK_GROUP_MANAGER) {
+        threadBookmarkGroupManager.initialize()
+      },
+      StartupTask(name = BOOKMARK_WATCHER_COORDINATOR) {
+        bookmarkWatcherCoordinator.initialize()
+      },
+      StartupTask(
+        name = BOOKMARKS_MANAGER,
+        dependencies = setOf(THREAD_BOOKMARK_GROUP_MANAGER, BOOKMARK_WATCHER_COORDINATOR)
+      ) {
+        bookmarksManager.initialize()
+        bookmarksManager.awaitUntilInitialized()
+      },
+      StartupTask(name = HISTORY_NAVIGATION_MANAGER) {
+        historyNavigationManager.initialize()
+      },
+      StartupTask(name = FILTER_WATCHER_COORDINATOR) {
+        filterWatcherCoordinator.initialize()
+      },
+      StartupTask(name = CHAN_FILTER_MANAGER, dependencies = setOf(FILTER_WATCHER_COORDINATOR)) {
+        chanFilterManager.initialize()
+        chanFilterManager.awaitUntilInitialized()
+      },
+      StartupTask(name = THREAD_DOWNLOADING_COORDINATOR) {
+        threadDownloadingCoordinator.initialize()
+      },
+      StartupTask(name = ARCHIVES_MANAGER) {
+        archivesManager.initialize()
+        archivesManager.awaitUntilInitialized()
+      }
+    )
+  }
+
+  private fun logFirstFrameCriticalPath(graph: StartupTaskGraph) {
+    val criticalPath = startupTrace.firstFrameCriticalPath(graph)
+
+    val criticalPathFormatted = criticalPath.joinToString(separator = " -> ") { taskEvent ->
+      "${taskEvent.name} (waited ${taskEvent.waitNanos / NANOS_IN_MILLI}ms, took ${taskEvent.durationNanos / NANOS_IN_MILLI}ms)"
+    }
+
+    Logger.d(TAG, "First frame tasks done, critical path: ${criticalPathFormatted}")
+  }
+
+  private suspend fun writeStartupTrace() {
+    withContext(Dispatchers.IO) {
+      Try { startupTrace.writeTo(startupTraceFile) }
+        .onError { error -> Logger.e(TAG, "Failed to write startup trace into ${startupTraceFile.absolutePath}", error) }
+        .ignore()
+    }
+  }
 
-    // threadBookmarkGroupManager must be initialized before bookmarksManager because it listens
-    // for events from bookmarksManager
-    threadBookmarkGroupManager.initialize()
-    bookmarksManager.initialize()
-    historyNavigationManager.initialize()
+  companion object {
+    private const val TAG = "AppDependenciesInitializer"
 
-    bookmarkWatcherCoordinator.initialize()
-    filterWatcherCoordinator.initialize()
-    threadDownloadingCoordinator.initialize()
+    private const val NANOS_IN_MILLI = 1_000_000L
+    private const val MAX_WAIT_FOR_ALL_TASKS_MS = 60_000L
+    private const val FIRST_FRAME_TASKS_DONE_MILESTONE = "First frame tasks done"
 
-    archivesManager.initialize()
-    chanFilterManager.initialize()
+    private const val SITE_MANAGER = "SiteManager"
+    private const val BOARD_MANAGER = "BoardManager"
+    private const val THREAD_BOOKMARK_GROUP_MANAGER = "ThreadBookmarkGroupManager"
+    private const val BOOKMARK_WATCHER_COORDINATOR = "BookmarkWatcherCoordinator"
+    private const val BOOKMARKS_MANAGER = "BookmarksManager"
+    private const val HISTORY_NAVIGATION_MANAGER = "HistoryNavigationManager"
+    private const val FILTER_WATCHER_COORDINATOR = "FilterWatcherCoordinator"
+    private const val CHAN_FILTER_MANAGER = "ChanFilterManager"
+    private const val THREAD_DOWNLOADING_COORDINATOR = "ThreadDownloadingCoordinator"
+    private const val ARCHIVES_MANAGER = "ArchivesManager"
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.github.k1rakishou.core_logger.Logger
+import com.google.gson.Gson
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.CRC32
+import java.util.zip.ZipInputStream
+
+/**
+ * Restores backup archives written by [BackupArchiveWriter] (and the older ones without a manifest).
+ *
+ * Restoring is done in two steps so that a corrupted or truncated backup never leaves the app with a
+ * mix of old and new files:
+ * - [stage] extracts every entry into a staging directory verifying its size and CRC32 against the
+ * [BackupManifest] while it's being streamed, and fails if any entry that the manifest lists is
+ * missing. Nothing outside of the staging directory is touched.
+ * - [restore] moves the staged files to their destinations (with a rename, so every single file is
+ * replaced atomically). The files being replaced are moved aside first and put back if any of the
+ * moves fails.
+ * */
+class BackupArchiveReader(
+  private val gson: Gson,
+  private val tempDir: File
+) {
+
+  /**
+   * [resolveTarget] returns the file the entry must be restored into or null when the entry is not
+   * known to us (it is then skipped, but still verified).
+   * */
+  fun stage(inputStream: InputStream, resolveTarget: (String) -> File?): StagedBackup {
+    val workDir = File(tempDir, "backup_import_${System.nanoTime()}")
+    if (!workDir.mkdirs()) {
+      throw IOException("Failed to create '${workDir.absolutePath}'")
+    }
+
+    try {
+      val stagedFiles = ZipInputStream(inputStream).use { zipInputStream -> stageEntries(zipInputStream, workDir, resolveTarget) }
+      return StagedBackup(workDir, stagedFiles)
+    } catch (error: Throwable) {
+      workDir.deleteRecursively()
+      throw error
+    }
+  }
+
+  fun restore(stagedBackup: StagedBackup) {
+    val rollbackDir = File(stagedBackup.workDir, "rollback")
+    if (!rollbackDir.mkdirs()) {
+      throw IOException("Failed to create '${rollbackDir.absolutePath}'")
+    }
+
+    val restoredFiles = mutableListOf<RestoredFile>()
+
+    try {
+      stagedBackup.files.forEachIndexed { index, stagedFile ->
+        val targetFile = stagedFile.targetFile
+
+        val parentDir = targetFile.parentFile
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
+          throw IOException("Failed to create '${parentDir.absolutePath}'")
+        }
+
+        val rollbackFile = if (targetFile.exists()) {
+          File(rollbackDir, index.toString()).also { rollbackFile -> move(targetFile, rollbackFile) }
+        } else {
+          null
+        }
+
+        restoredFiles += RestoredFile(targetFile, rollbackFile)
+        move(stagedFile.stagedFile, targetFile)
+      }
+
+      Logger.d(TAG, "Restored ${restoredFiles.size} files")
+    } catch (error: Throwable) {
+      Logger.e(TAG, "Restore failed, rolling back ${restoredFiles.size} files", error)
+
+      restoredFiles.asReversed().forEach { restoredFile ->
+        restoredFile.targetFile.delete()
+        restoredFile.rollbackFile?.renameTo(restoredFile.targetFile)
+      }
+
+      throw error
+    } finally {
+      stagedBackup.workDir.deleteRecursively()
+    }
+  }
+
+  fun discard(stagedBackup: StagedBackup) {
+    stagedBackup.workDir.deleteRecursively()
+  }
+
+  private fun stageEntries(
+    zipInputStream: ZipInputStream,
+    workDir: File,
+    resolveTarget: (String) -> File?
+  ): List<StagedFile> {
+    val stagedFiles = mutableListOf<StagedFile>()
+    val seenNames = hashSetOf<String>()
+    var manifestEntries: Map<String, BackupManifest.Entry>? = null
+    var isFirstEntry = true
+
+    while (true) {
+      val zipEntry = zipInputStream.nextEntry
+        ?: break
+
+      val name = zipEntry.name
+
+      if (isFirstEntry) {
+        isFirstEntry = false
+
+        if (name == BackupManifest.MANIFEST_ENTRY_NAME) {
+          manifestEntries = readManifest(zipInputStream).entries.associateBy { entry -> entry.name }
+          continue
+        }
+
+        Logger.d(TAG, "Backup has no manifest, entries are only verified by the zip checksums")
+      }
+
+      if (zipEntry.isDirectory) {
+        continue
+      }
+
+      if (!seenNames.add(name)) {
+        throw IOException("Duplicate entry '$name'")
+      }
+
+      val manifestEntry = manifestEntries?.get(name)
+      if (manifestEntries != null && manifestEntry == null) {
+        throw IOException("Entry '$name' is not listed in the manifest")
+      }
+
+      val targetFile = resolveTarget(name)
+      if (targetFile == null) {
+        Logger.e(TAG, "Unknown file: $name")
+      }
+
+      val stagedFile = File(workDir, stagedFiles.size.toString())
+
+      val (size, crc32) = if (targetFile != null) {
+        stagedFile.outputStream().use { outputStream -> copyWithChecksum(zipInputStream, outputStream) }
+      } else {
+        copyWithChecksum(zipInputStream, NullOutputStream)
+      }
+
+      if (manifestEntry != null && (manifestEntry.size != size || manifestEntry.crc32 != crc32)) {
+        throw IOException(
+          "Entry '$name' is corrupted, expected size=${manifestEntry.size}, crc32=${manifestEntry.crc32}, " +
+            "got size=${size}, crc32=${crc32}"
+        )
+      }
+
+      if (targetFile != null) {
+        stagedFiles += StagedFile(name, stagedFile, targetFile)
+      }
+    }
+
+    if (manifestEntries != null) {
+      val missingEntries = manifestEntries.keys - seenNames
+      if (missingEntries.isNotEmpty()) {
+        throw IOException("Backup is truncated, ${missingEntries.size} entries are missing (e.g. '${missingEntries.first()}')")
+      }
+    }
+
+    if (stagedFiles.isEmpty()) {
+      throw IOException("Backup contains no files to restore")
+    }
+
+    return stagedFiles
+  }
+
+  @Suppress("SENSELESS_COMPARISON")
+  private fun readManifest(zipInputStream: ZipInputStream): BackupManifest {
+    val bytes = zipInputStream.readBytes()
+
+    val manifest = try {
+      gson.fromJson(bytes.toString(Charsets.UTF_8), BackupManifest::class.java)
+    } catch (error: Exception) {
+      throw IOException("Failed to parse the manifest", error)
+    }
+
+    if (manifest == null || manifest.entries == null) {
+      throw IOException("Manifest is empty")
+    }
+
+    if (manifest.version > BackupManifest.CURRENT_VERSION) {
+      throw IOException("Backup was made by a newer version of the app (manifest version ${manifest.version})")
+    }
+
+    return manifest
+  }
+
+  private fun copyWithChecksum(inputStream: InputStream, outputStream: OutputStream): Pair<Long, Long> {
+    val crc32 = CRC32()
+    val buffer = ByteArray(BUFFER_SIZE)
+    var size = 0L
+
+    while (true) {
+      val read = inputStream.read(buffer)
+      if (read < 0) {
+        break
+      }
+
+      crc32.update(buffer, 0, read)
+      outputStream.write(buffer, 0, read)
+      size += read
+    }
+
+    return size to crc32.value
+  }
+
+  private fun move(from: File, to: File) {
+    if (from.renameTo(to)) {
+      return
+    }
+
+    // Different file systems, can't be done atomically
+    from.copyTo(to, overwrite = true)
+
+    if (!from.delete()) {
+      Logger.e(TAG, "Failed to delete '${from.absolutePath}' after copying it")
+    }
+  }
+
+  class StagedBackup(
+    val workDir: File,
+    val files: List<StagedFile>
+  )
+
+  data class StagedFile(
+    val name: String,
+    val stagedFile: File,
+    val targetFile: File
+  )
+
+  private class RestoredFile(
+    val targetFile: File,
+    val rollbackFile: File?
+  )
+
+  private object NullOutputStream : OutputStream() {
+    override fun write(b: Int) {}
+    override fun write(b: ByteArray, off: Int, len: Int) {}
+  }
+
+  companion object {
+    private const val TAG = "BackupArchiveReader"
+    private const val BUFFER_SIZE = 64 * 1024
+  }
+}
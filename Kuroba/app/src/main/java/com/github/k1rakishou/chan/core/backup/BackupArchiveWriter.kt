@@ -0,0 +1,493 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.google.gson.Gson
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.Calendar
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+
+/**
+ * Writes backup archives (regular zip files that can be read with [java.util.zip.ZipInputStream]).
+ *
+ * [java.util.zip.ZipOutputStream] can only compress one entry at a time, so instead every entry is
+ * prepared in parallel first (at most [parallelism] at the same time): text files and databases are
+ * deflated into temporary files in [tempDir] while already compressed media is only checksummed and
+ * later stored as is (deflating jpgs and webms again only burns CPU). Then the prepared entries are
+ * written sequentially, preceded by a [BackupManifest] with the size and CRC32 of every entry.
+ *
+ * Zip64 records are only used when the archive needs them (entries or offsets over 4GB or more than
+ * 65535 entries).
+ * */
+class BackupArchiveWriter(
+  private val gson: Gson,
+  private val tempDir: File,
+  private val parallelism: Int,
+  private val compressionLevel: Int = Deflater.DEFAULT_COMPRESSION
+) {
+
+  init {
+    require(parallelism > 0) { "Bad parallelism: $parallelism" }
+  }
+
+  suspend fun write(entries: List<Entry>, outputStream: OutputStream): BackupManifest {
+    val duplicateName = entries.groupBy { entry -> entry.name }.entries.firstOrNull { (_, sameName) -> sameName.size > 1 }
+    require(duplicateName == null) { "Duplicate entry name: '${duplicateName?.key}'" }
+    require(entries.none { entry -> entry.name == BackupManifest.MANIFEST_ENTRY_NAME }) { "Reserved entry name" }
+
+    val workDir = File(tempDir, "backup_export_${System.nanoTime()}")
+    if (!workDir.mkdirs()) {
+      throw IOException("Failed to create '${workDir.absolutePath}'")
+    }
+
+    try {
+      val preparedEntries = prepareEntries(entries, workDir)
+
+      val manifest = BackupManifest(
+        version = BackupManifest.CURRENT_VERSION,
+        entries = preparedEntries.map { preparedEntry ->
+          BackupManifest.Entry(
+            name = preparedEntry.entry.name,
+            size = preparedEntry.size,
+            crc32 = preparedEntry.crc32,
+            stored = preparedEntry.deflatedFile == null
+          )
+        }
+      )
+
+      withContext(Dispatchers.IO) {
+        val zipWriter = ZipWriter(BufferedOutputStream(outputStream, BUFFER_SIZE))
+
+        zipWriter.writeBytes(
+          name = BackupManifest.MANIFEST_ENTRY_NAME,
+          bytes = gson.toJson(manifest).toByteArray(Charsets.UTF_8),
+          lastModified = System.currentTimeMillis()
+        )
+
+        preparedEntries.forEach { preparedEntry -> zipWriter.writePrepared(preparedEntry) }
+        zipWriter.finish()
+      }
+
+      return manifest
+    } finally {
+      workDir.deleteRecursively()
+    }
+  }
+
+  private suspend fun prepareEntries(entries: List<Entry>, workDir: File): List<PreparedEntry> {
+    val semaphore = Semaphore(parallelism)
+
+    return coroutineScope {
+      entries
+        .mapIndexed { index, entry ->
+          async(Dispatchers.IO) {
+            semaphore.withPermit { prepareEntry(entry, File(workDir, index.toString())) }
+          }
+        }
+        .awaitAll()
+    }
+  }
+
+  private fun prepareEntry(entry: Entry, deflatedFile: File): PreparedEntry {
+    val lastModified = entry.file.lastModified()
+
+    if (isAlreadyCompressed(entry.name)) {
+      val (size, crc32) = entry.file.inputStream().use { inputStream -> checksum(inputStream) }
+      return PreparedEntry(entry, size, crc32, lastModified, deflatedFile = null, compressedSize = size)
+    }
+
+    val deflater = Deflater(compressionLevel, true)
+
+    val (size, crc32) = try {
+      entry.file.inputStream().use { inputStream ->
+        DeflaterOutputStream(deflatedFile.outputStream(), deflater, BUFFER_SIZE).use { deflaterOutputStream ->
+          val checkedInputStream = CheckedInputStream(inputStream, CRC32())
+          val size = checkedInputStream.copyTo(deflaterOutputStream, BUFFER_SIZE)
+
+          return@use size to checkedInputStream.checksum.value
+        }
+      }
+    } finally {
+      deflater.end()
+    }
+
+    val compressedSize = deflatedFile.length()
+    if (compressedSize >= size) {
+      // Incompressible, no point in making the import inflate it
+      deflatedFile.delete()
+      return PreparedEntry(entry, size, crc32, lastModified, deflatedFile = null, compressedSize = size)
+    }
+
+    return PreparedEntry(entry, size, crc32, lastModified, deflatedFile, compressedSize)
+  }
+
+  private fun checksum(inputStream: InputStream): Pair<Long, Long> {
+    val crc32 = CRC32()
+    val buffer = ByteArray(BUFFER_SIZE)
+    var size = 0L
+
+    while (true) {
+      val read = inputStream.read(buffer)
+      if (read < 0) {
+        break
+      }
+
+      crc32.update(buffer, 0, read)
+      size += read
+    }
+
+    return size to crc32.value
+  }
+
+  data class Entry(
+    val name: String,
+    val file: File
+  )
+
+  private class PreparedEntry(
+    val entry: Entry,
+    val size: Long,
+    val crc32: Long,
+    val lastModified: Long,
+    // Null when the entry is stored uncompressed
+    val deflatedFile: File?,
+    val compressedSize: Long
+  )
+
+  private class CentralDirectoryRecord(
+    val nameBytes: ByteArray,
+    val method: Int,
+    val dosTime: Long,
+    val crc32: Long,
+    val compressedSize: Long,
+    val size: Long,
+    val localHeaderOffset: Long
+  )
+
+  /**
+   * A minimal zip writer that writes entries with the sizes and CRC32 known upfront (no data
+   * descriptors, which [java.util.zip.ZipInputStream] doesn't support for stored entries).
+   * */
+  private class ZipWriter(private val outputStream: OutputStream) {
+    private val records = mutableListOf<CentralDirectoryRecord>()
+    private var offset = 0L
+
+    fun writeBytes(name: String, bytes: ByteArray, lastModified: Long) {
+      val crc32 = CRC32().apply { update(bytes) }.value
+
+      val deflated = ByteArrayOutputStream()
+      val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+
+      try {
+        DeflaterOutputStream(deflated, deflater).use { deflaterOutputStream -> deflaterOutputStream.write(bytes) }
+      } finally {
+        deflater.end()
+      }
+
+      val record = writeLocalHeader(
+        name = name,
+        method = METHOD_DEFLATED,
+        lastModified = lastModified,
+        crc32 = crc32,
+        compressedSize = deflated.size().toLong(),
+        size = bytes.size.toLong()
+      )
+
+      write(deflated.toByteArray())
+      records += record
+    }
+
+    fun writePrepared(preparedEntry: PreparedEntry) {
+      val deflatedFile = preparedEntry.deflatedFile
+
+      val record = writeLocalHeader(
+        name = preparedEntry.entry.name,
+        method = if (deflatedFile == null) METHOD_STORED else METHOD_DEFLATED,
+        lastModified = preparedEntry.lastModified,
+        crc32 = preparedEntry.crc32,
+        compressedSize = preparedEntry.compressedSize,
+        size = preparedEntry.size
+      )
+
+      if (deflatedFile != null) {
+        deflatedFile.inputStream().use { inputStream -> copyExactly(inputStream, preparedEntry.compressedSize) }
+        deflatedFile.delete()
+      } else {
+        val checkedInputStream = CheckedInputStream(preparedEntry.entry.file.inputStream(), CRC32())
+
+        checkedInputStream.use { inputStream -> copyExactly(inputStream, preparedEntry.size) }
+
+        // The header with the checksum was already written so the file must not change in between
+        if (checkedInputStream.checksum.value != preparedEntry.crc32) {
+          throw IOException("File '${preparedEntry.entry.file.absolutePath}' was modified during export")
+        }
+      }
+
+      records += record
+    }
+
+    fun finish() {
+      val centralDirectoryOffset = offset
+
+      records.forEach { record -> writeCentralDirectoryHeader(record) }
+
+      val centralDirectorySize = offset - centralDirectoryOffset
+      val needsZip64 = records.size >= ZIP64_MAGIC_SHORT
+        || centralDirectoryOffset >= ZIP64_MAGIC
+        || centralDirectorySize >= ZIP64_MAGIC
+
+      if (needsZip64) {
+        val zip64EndOfCentralDirectoryOffset = offset
+
+        val zip64EndOfCentralDirectory = header {
+          int(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+          long(ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD_SIZE)
+          short(VERSION_ZIP64)
+          short(VERSION_ZIP64)
+          int(0)
+          int(0)
+          long(records.size.toLong())
+          long(records.size.toLong())
+          long(centralDirectorySize)
+          long(centralDirectoryOffset)
+        }
+
+        val zip64Locator = header {
+          int(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE)
+          int(0)
+          long(zip64EndOfCentralDirectoryOffset)
+          int(1)
+        }
+
+        write(zip64EndOfCentralDirectory)
+        write(zip64Locator)
+      }
+
+      val endOfCentralDirectory = header {
+        int(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+        short(0)
+        short(0)
+        short(minOf(records.size.toLong(), ZIP64_MAGIC_SHORT))
+        short(minOf(records.size.toLong(), ZIP64_MAGIC_SHORT))
+        int(minOf(centralDirectorySize, ZIP64_MAGIC))
+        int(minOf(centralDirectoryOffset, ZIP64_MAGIC))
+        short(0)
+      }
+
+      write(endOfCentralDirectory)
+      outputStream.flush()
+    }
+
+    private fun writeLocalHeader(
+      name: String,
+      method: Int,
+      lastModified: Long,
+      crc32: Long,
+      compressedSize: Long,
+      size: Long
+    ): CentralDirectoryRecord {
+      val record = CentralDirectoryRecord(
+        nameBytes = name.toByteArray(Charsets.UTF_8),
+        method = method,
+        dosTime = toDosTime(lastModified),
+        crc32 = crc32,
+        compressedSize = compressedSize,
+        size = size,
+        localHeaderOffset = offset
+      )
+
+      val zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC
+
+      val localHeader = header {
+        int(LOCAL_FILE_HEADER_SIGNATURE)
+        short(if (zip64) VERSION_ZIP64 else VERSION_DEFAULT)
+        short(FLAG_UTF8_NAMES)
+        short(method.toLong())
+        int(record.dosTime)
+        int(crc32)
+        int(if (zip64) ZIP64_MAGIC else compressedSize)
+        int(if (zip64) ZIP64_MAGIC else size)
+        short(record.nameBytes.size.toLong())
+        short(if (zip64) 20 else 0)
+        bytes(record.nameBytes)
+
+        if (zip64) {
+          short(ZIP64_EXTRA_FIELD_ID)
+          short(16)
+          long(size)
+          long(compressedSize)
+        }
+      }
+
+      write(localHeader)
+      return record
+    }
+
+    private fun writeCentralDirectoryHeader(record: CentralDirectoryRecord) {
+      // Only the fields that don't fit are moved into the zip64 extra field (in this exact order)
+      val zip64Fields = listOfNotNull(
+        record.size.takeIf { size -> size >= ZIP64_MAGIC },
+        record.compressedSize.takeIf { compressedSize -> compressedSize >= ZIP64_MAGIC },
+        record.localHeaderOffset.takeIf { localHeaderOffset -> localHeaderOffset >= ZIP64_MAGIC }
+      )
+
+      val extraSize = if (zip64Fields.isEmpty()) 0L else 4L + zip64Fields.size * 8L
+      val version = if (zip64Fields.isEmpty()) VERSION_DEFAULT else VERSION_ZIP64
+
+      val centralDirectoryHeader = header {
+        int(CENTRAL_DIRECTORY_HEADER_SIGNATURE)
+        short(version)
+        short(version)
+        short(FLAG_UTF8_NAMES)
+        short(record.method.toLong())
+        int(record.dosTime)
+        int(record.crc32)
+        int(minOf(record.compressedSize, ZIP64_MAGIC))
+        int(minOf(record.size, ZIP64_MAGIC))
+        short(record.nameBytes.size.toLong())
+        short(extraSize)
+        // Comment length, disk number, internal and external attributes
+        short(0)
+        short(0)
+        short(0)
+        int(0)
+        int(minOf(record.localHeaderOffset, ZIP64_MAGIC))
+        bytes(record.nameBytes)
+
+        if (zip64Fields.isNotEmpty()) {
+          short(ZIP64_EXTRA_FIELD_ID)
+          short(zip64Fields.size * 8L)
+          zip64Fields.forEach { field -> long(field) }
+        }
+      }
+
+      write(centralDirectoryHeader)
+    }
+
+    private fun copyExactly(inputStream: InputStream, count: Long) {
+      val buffer = ByteArray(BUFFER_SIZE)
+      var remaining = count
+
+      while (remaining > 0) {
+        val read = inputStream.read(buffer, 0, minOf(buffer.size.toLong(), remaining).toInt())
+        if (read < 0) {
+          throw IOException("Unexpected end of stream, ${remaining} bytes left")
+        }
+
+        outputStream.write(buffer, 0, read)
+        offset += read
+        remaining -= read
+      }
+
+      if (inputStream.read() >= 0) {
+        throw IOException("Stream is longer than expected ${count} bytes")
+      }
+    }
+
+    private fun write(bytes: ByteArray) {
+      outputStream.write(bytes)
+      offset += bytes.size
+    }
+
+    private fun header(builder: HeaderBuilder.() -> Unit): ByteArray {
+      return HeaderBuilder().apply(builder).toByteArray()
+    }
+
+    private fun toDosTime(millis: Long): Long {
+      val calendar = Calendar.getInstance()
+      calendar.timeInMillis = millis
+
+      val year = calendar.get(Calendar.YEAR)
+      if (year < 1980) {
+        // 1980-01-01 00:00:00, the earliest date the format supports
+        return (1L shl 21) or (1L shl 16)
+      }
+
+      val date = ((year - 1980L) shl 9) or
+        ((calendar.get(Calendar.MONTH) + 1L) shl 5) or
+        calendar.get(Calendar.DAY_OF_MONTH).toLong()
+
+      val time = (calendar.get(Calendar.HOUR_OF_DAY).toLong() shl 11) or
+        (calendar.get(Calendar.MINUTE).toLong() shl 5) or
+        (calendar.get(Calendar.SECOND) / 2L)
+
+      return (date shl 16) or time
+    }
+  }
+
+  private class HeaderBuilder {
+    private val buffer = ByteArrayOutputStream()
+
+    fun short(value: Long) {
+      buffer.write((value and 0xFF).toInt())
+      buffer.write(((value ushr 8) and 0xFF).toInt())
+    }
+
+    fun int(value: Long) {
+      short(value and 0xFFFF)
+      short((value ushr 16) and 0xFFFF)
+    }
+
+    fun long(value: Long) {
+      int(value and 0xFFFFFFFFL)
+      int((value ushr 32) and 0xFFFFFFFFL)
+    }
+
+    fun bytes(value: ByteArray) {
+      buffer.write(value)
+    }
+
+    fun toByteArray(): ByteArray = buffer.toByteArray()
+  }
+
+  companion object {
+    private const val BUFFER_SIZE = 64 * 1024
+
+    private const val LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50L
+    private const val CENTRAL_DIRECTORY_HEADER_SIGNATURE = 0x02014b50L
+    private const val END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50L
+    private const val ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50L
+    private const val ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50L
+    // Size of the zip64 end of central directory record not counting the signature and the size itself
+    private const val ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD_SIZE = 44L
+    private const val ZIP64_EXTRA_FIELD_ID = 0x0001L
+    private const val ZIP64_MAGIC = 0xFFFFFFFFL
+    private const val ZIP64_MAGIC_SHORT = 0xFFFFL
+
+    private const val VERSION_DEFAULT = 20L
+    private const val VERSION_ZIP64 = 45L
+    private const val FLAG_UTF8_NAMES = 0x0800L
+
+    private const val METHOD_STORED = 0
+    private const val METHOD_DEFLATED = 8
+
+    private val ALREADY_COMPRESSED_EXTENSIONS = setOf(
+      "jpg", "jpeg", "png", "gif", "webp", "avif", "heic", "jxl",
+      "webm", "mp4", "mkv", "mov", "m4v",
+      "mp3", "m4a", "ogg", "opus", "flac", "aac",
+      "zip", "gz", "7z", "rar", "xz", "zst", "bz2"
+    )
+
+    fun isAlreadyCompressed(name: String): Boolean {
+      val extension = name.substringAfterLast('/').substringAfterLast('.', missingDelimiterValue = "")
+      if (extension.isEmpty()) {
+        return false
+      }
+
+      return extension.lowercase() in ALREADY_COMPRESSED_EXTENSIONS
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.google.gson.annotations.SerializedName
+
+/**
+ * Written as the very first entry of a backup archive. Lists every other entry of the archive with
+ * its uncompressed size and CRC32 so that the import can verify each entry while it is being
+ * extracted and detect truncated archives (entries that are missing at the end).
+ * */
+data class BackupManifest(
+  @SerializedName("version")
+  val version: Int,
+  @SerializedName("entries")
+  val entries: List<Entry>
+) {
+
+  data class Entry(
+    @SerializedName("name")
+    val name: String,
+    @SerializedName("size")
+    val size: Long,
+    @SerializedName("crc32")
+    val crc32: Long,
+    @SerializedName("stored")
+    val stored: Boolean
+  )
+
+  companion object {
+    const val MANIFEST_ENTRY_NAME = "backup_manifest.json"
+    const val CURRENT_VERSION = 1
+  }
+}
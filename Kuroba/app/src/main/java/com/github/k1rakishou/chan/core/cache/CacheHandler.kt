@@ -108,6 +108,27 @@ class CacheHandler(
 
       innerCaches.put(cacheFileType, innerCache)
     }
+
+    cacheHandlerDispatcher.executor.execute { deleteLegacyExoPlayerCacheDir() }
+  }
+
+  /**
+   * ExoPlayer used to have its own SimpleCache which is now replaced by the PartialMediaCache (that
+   * stores everything in [CacheFileType.PostMediaFull]) so nothing writes into that directory
+   * anymore.
+   * */
+  private fun deleteLegacyExoPlayerCacheDir() {
+    val legacyExoPlayerCacheDir = appConstants.legacyExoPlayerCacheDir
+    if (!legacyExoPlayerCacheDir.exists()) {
+      return
+    }
+
+    if (!legacyExoPlayerCacheDir.deleteRecursively()) {
+      Logger.e(TAG, "Failed to delete legacy ExoPlayer cache dir: ${legacyExoPlayerCacheDir.absolutePath}")
+      return
+    }
+
+    Logger.d(TAG, "Deleted legacy ExoPlayer cache dir: ${legacyExoPlayerCacheDir.absolutePath}")
   }
 
   suspend fun createTemptFile(
@@ -196,6 +217,34 @@ class CacheHandler(
     return innerCache.getOrCreateChunkCacheFile(chunkStart, chunkEnd, url)
   }
 
+  fun createPartialCacheFile(cacheFileType: CacheFileType, url: String): File? {
+    if (ENABLE_LOGGING) {
+      Logger.d(TAG, "createPartialCacheFile($cacheFileType, $url)")
+    }
+
+    BackgroundUtils.ensureBackgroundThread()
+    val innerCache = getInnerCacheByFileType(cacheFileType)
+
+    return innerCache.createPartialCacheFile(url)
+  }
+
+  /**
+   * Moves a partial cache file (created with [createPartialCacheFile]) that has all of its bytes
+   * downloaded into the cache, marks it as downloaded and updates the cache size. Returns the
+   * resulting cache file.
+   * */
+  fun commitPartialCacheFile(cacheFileType: CacheFileType, partialCacheFile: File, url: String): File? {
+    BackgroundUtils.ensureBackgroundThread()
+    val innerCache = getInnerCacheByFileType(cacheFileType)
+    val cacheFile = innerCache.commitPartialCacheFile(partialCacheFile, url)
+
+    if (ENABLE_LOGGING) {
+      Logger.d(TAG, "commitPartialCacheFile($cacheFileType, ${partialCacheFile.name}, $url) -> ${cacheFile?.name}")
+    }
+
+    return cacheFile
+  }
+
   fun cacheFileExists(cacheFileType: CacheFileType, fileUrl: String): Boolean {
     val innerCache = getInnerCacheByFileType(cacheFileType)
     val fileName = innerCache.formatCacheFileName(innerCache.hashUrl(fileUrl))
@@ -220,6 +220,85 @@ internal class InnerCache(
     }
   }
 
+  /**
+   * Creates a new empty partial cache file in the chunks directory. Partial files are written at
+   * arbitrary offsets (range requests) and are only moved into the cache directory once all of the
+   * bytes are there (see [commitPartialCacheFile]). Just like chunks, partial files are removed on
+   * app start.
+   * */
+  fun createPartialCacheFile(url: String): File? {
+    BackgroundUtils.ensureBackgroundThread()
+    val partialCacheFile = getPartialCacheFileInternal(url)
+
+    return cacheHandlerSynchronizer.withLocalLock(partialCacheFile.name) {
+      try {
+        if (partialCacheFile.exists()) {
+          if (!partialCacheFile.delete()) {
+            throw IOException("Couldn't delete old partial cache file")
+          }
+        }
+
+        if (!partialCacheFile.createNewFile()) {
+          throw IOException("Couldn't create new partial cache file")
+        }
+
+        return@withLocalLock partialCacheFile
+      } catch (error: Throwable) {
+        Logger.e(TAG, "Error while trying to create partial cache file (deleting)", error)
+
+        createDirectories(forced = true)
+        partialCacheFile.delete()
+        return@withLocalLock null
+      }
+    }
+  }
+
+  /**
+   * Moves a fully downloaded partial cache file into the cache directory and marks it as downloaded.
+   * */
+  fun commitPartialCacheFile(partialCacheFile: File, url: String): File? {
+    BackgroundUtils.ensureBackgroundThread()
+
+    val cacheFile = getOrCreateCacheFile(url)
+      ?: return null
+
+    val committed = cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
+      try {
+        if (isAlreadyDownloaded(cacheFile)) {
+          // Someone else (most likely the chunked downloader) has already finished this file
+          partialCacheFile.delete()
+          return@withLocalLock false
+        }
+
+        if (!partialCacheFile.renameTo(cacheFile)) {
+          partialCacheFile.copyTo(target = cacheFile, overwrite = true)
+          partialCacheFile.delete()
+        }
+
+        return@withLocalLock true
+      } catch (error: Throwable) {
+        Logger.e(TAG, "Error while trying to commit partial cache file (deleting)", error)
+
+        partialCacheFile.delete()
+        deleteCacheFile(cacheFile)
+        return@withLocalLock null
+      }
+    }
+
+    when (committed) {
+      null -> return null
+      false -> return cacheFile
+      true -> {
+        if (!markFileDownloaded(cacheFile)) {
+          return null
+        }
+
+        fileWasAdded(cacheFile.length())
+        return cacheFile
+      }
+    }
+  }
+
   fun isAlreadyDownloaded(cacheFile: File): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -626,6 +705,13 @@ internal class InnerCache(
     return File(chunksCacheDirFile, fileName)
   }
 
+  private fun getPartialCacheFileInternal(url: String): File {
+    createDirectories()
+
+    val fileName = formatPartialCacheFileName(hashUrl(url))
+    return File(chunksCacheDirFile, fileName)
+  }
+
   internal fun getCacheFileMetaInternal(url: String): File {
     createDirectories()
 
@@ -664,6 +750,16 @@ internal class InnerCache(
     )
   }
 
+  private fun formatPartialCacheFileName(originalFileName: String): String {
+    return String.format(
+      Locale.ENGLISH,
+      CACHE_FILE_NAME_FORMAT,
+      originalFileName,
+      // AbstractFile expects all file names to have extensions
+      PARTIAL_CACHE_EXTENSION
+    )
+  }
+
   private fun formatCacheFileMetaName(originalFileName: String): String {
     return String.format(
       Locale.ENGLISH,
@@ -1026,6 +1122,7 @@ internal class InnerCache(
     internal const val CACHE_EXTENSION = "cache"
     internal const val CACHE_META_EXTENSION = "cache_meta"
     internal const val CHUNK_CACHE_EXTENSION = "chunk"
+    internal const val PARTIAL_CACHE_EXTENSION = "partial"
 
     private val MIN_CACHE_FILE_LIFE_TIME = TimeUnit.MINUTES.toMillis(1)
     private val MIN_TRIM_INTERVAL = TimeUnit.SECONDS.toMillis(5)
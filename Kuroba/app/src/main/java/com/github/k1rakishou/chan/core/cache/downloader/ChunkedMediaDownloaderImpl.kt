@@ -5,6 +5,8 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
 import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.partial.OkHttpRangeFetcher
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
 import com.github.k1rakishou.chan.core.site.SiteResolver
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.rethrowCancellationException
@@ -19,6 +21,7 @@ import kotlinx.coroutines.flow.channelFlow
 import kotlinx.coroutines.flow.collect
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.runInterruptible
 import okhttp3.HttpUrl
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import java.util.concurrent.Executors
@@ -28,11 +31,14 @@ class ChunkedMediaDownloaderImpl(
     private val fileManager: FileManager,
     private val siteResolver: SiteResolver,
     private val cacheHandlerLazy: Lazy<CacheHandler>,
+    private val partialMediaCacheLazy: Lazy<PartialMediaCache>,
     private val downloaderOkHttpClientLazy: Lazy<RealDownloaderOkHttpClient>,
     private val connectivityManager: ConnectivityManager
 ) : ChunkedMediaDownloader {
     private val cacheHandler: CacheHandler
         get() = cacheHandlerLazy.get()
+    private val partialMediaCache: PartialMediaCache
+        get() = partialMediaCacheLazy.get()
 
     private val activeDownloads = ActiveDownloads()
 
@@ -186,6 +192,13 @@ class ChunkedMediaDownloaderImpl(
             return
         }
 
+        if (cacheFileType == CacheFileType.PostMediaFull && partialMediaCache.hasPartialData(mediaUrl.toString())) {
+            // Part of this file was already downloaded by someone else (most likely by ExoPlayer
+            // while streaming it) so we only need to download the missing ranges.
+            downloadMissingRanges(producerScope, request, mediaUrl)
+            return
+        }
+
         val fullPath = outputFile.absolutePath
         val exists = outputFile.exists()
         val isFile = outputFile.isFile
@@ -216,6 +229,45 @@ class ChunkedMediaDownloaderImpl(
         )
     }
 
+    private suspend fun downloadMissingRanges(
+        producerScope: ProducerScope<FileDownloadEvent>,
+        request: FileDownloadRequest,
+        mediaUrl: HttpUrl
+    ) {
+        val rangeFetcher = OkHttpRangeFetcher(downloaderOkHttpClientLazy.get().okHttpClient()) { url, requestBuilder ->
+            siteResolver.findSiteForUrl(url)?.let { site ->
+                site.requestModifier().modifyFullImageGetRequest(site, requestBuilder)
+            }
+        }
+
+        Logger.debug(TAG) { "downloadMissingRanges() '$mediaUrl' has partial data, downloading missing ranges" }
+
+        producerScope.send(FileDownloadEvent.Start(1))
+        val startTime = System.currentTimeMillis()
+
+        val outputFile = try {
+            runInterruptible {
+                partialMediaCache.downloadMissingRanges(
+                    url = mediaUrl.toString(),
+                    rangeFetcher = rangeFetcher,
+                    isCanceled = { !request.cancelableDownload.isRunning() },
+                    onProgress = { downloaded, total ->
+                        producerScope.trySend(FileDownloadEvent.Progress(0, downloaded, total))
+                    }
+                )
+            }
+        } catch (error: OkHttpRangeFetcher.RangeFetchException) {
+            if (error.isNotFound) {
+                throw MediaDownloadException.FileNotFoundOnTheServerException(mediaUrl)
+            }
+
+            throw MediaDownloadException.HttpCodeException(error.statusCode)
+        }
+
+        request.setOutputFile(outputFile)
+        producerScope.send(FileDownloadEvent.Success(outputFile, System.currentTimeMillis() - startTime))
+    }
+
     private fun getOrCreateCancelableDownload(
         mediaUrl: HttpUrl,
         callback: FileCacheListener?,
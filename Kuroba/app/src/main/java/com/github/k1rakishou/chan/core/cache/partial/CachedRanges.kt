@@ -0,0 +1,122 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+/**
+ * A sorted set of non-overlapping, non-adjacent byte ranges [start, end) that are already present
+ * in a partial cache file. Adjacent and overlapping ranges are merged on insertion.
+ * Not thread safe.
+ * */
+class CachedRanges {
+  private val starts = mutableListOf<Long>()
+  private val ends = mutableListOf<Long>()
+
+  val rangesCount: Int
+    get() = starts.size
+
+  fun add(start: Long, end: Long) {
+    require(start >= 0) { "Bad start: $start" }
+    require(end >= start) { "Bad range: $start..$end" }
+
+    if (start == end) {
+      return
+    }
+
+    var newStart = start
+    var newEnd = end
+
+    // First range that ends at or after the new range start (these may be merged)
+    var index = firstIndexWithEndAtLeast(newStart)
+
+    while (index < starts.size && starts[index] <= newEnd) {
+      newStart = minOf(newStart, starts[index])
+      newEnd = maxOf(newEnd, ends[index])
+
+      starts.removeAt(index)
+      ends.removeAt(index)
+    }
+
+    starts.add(index, newStart)
+    ends.add(index, newEnd)
+  }
+
+  /**
+   * Returns how many bytes starting from [position] are available without gaps (0 if the byte
+   * at [position] is not cached).
+   * */
+  fun contiguousLengthFrom(position: Long): Long {
+    val index = firstIndexWithEndAtLeast(position + 1)
+    if (index >= starts.size || starts[index] > position) {
+      return 0L
+    }
+
+    return ends[index] - position
+  }
+
+  /**
+   * Returns the first range [start, end) that is not cached within [0, totalLength) or null if
+   * the whole file is cached.
+   * */
+  fun firstMissingRange(totalLength: Long): LongRange? {
+    if (totalLength <= 0) {
+      return null
+    }
+
+    var position = 0L
+
+    for (index in starts.indices) {
+      if (starts[index] > position) {
+        return position until minOf(starts[index], totalLength)
+      }
+
+      position = maxOf(position, ends[index])
+      if (position >= totalLength) {
+        return null
+      }
+    }
+
+    if (position >= totalLength) {
+      return null
+    }
+
+    return position until totalLength
+  }
+
+  fun isFullyCached(totalLength: Long): Boolean {
+    if (totalLength <= 0) {
+      return false
+    }
+
+    return firstMissingRange(totalLength) == null
+  }
+
+  fun cachedBytesCount(): Long {
+    var total = 0L
+
+    for (index in starts.indices) {
+      total += ends[index] - starts[index]
+    }
+
+    return total
+  }
+
+  private fun firstIndexWithEndAtLeast(position: Long): Int {
+    var low = 0
+    var high = ends.size
+
+    while (low < high) {
+      val mid = (low + high) ushr 1
+
+      if (ends[mid] < position) {
+        low = mid + 1
+      } else {
+        high = mid
+      }
+    }
+
+    return low
+  }
+
+  override fun toString(): String {
+    return starts.indices.joinToString(prefix = "[", postfix = "]") { index -> "${starts[index]}..${ends[index]}" }
+  }
+
+}
@@ -0,0 +1,37 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import dagger.Lazy
+import java.io.File
+
+/**
+ * Storage used by [PartialMediaCache]. In the app this is backed by [CacheHandler] so that
+ * everything ends up in one place, tests use a temp directory.
+ * */
+interface MediaCacheStorage {
+  fun getCompletedFileOrNull(url: String): File?
+  fun createPartialFile(url: String): File?
+  fun commitPartialFile(partialFile: File, url: String): File?
+}
+
+class CacheHandlerMediaCacheStorage(
+  private val cacheHandlerLazy: Lazy<CacheHandler>,
+  private val cacheFileType: CacheFileType
+) : MediaCacheStorage {
+  private val cacheHandler: CacheHandler
+    get() = cacheHandlerLazy.get()
+
+  override fun getCompletedFileOrNull(url: String): File? {
+    return cacheHandler.getCacheFileOrNull(cacheFileType, url)
+  }
+
+  override fun createPartialFile(url: String): File? {
+    return cacheHandler.createPartialCacheFile(cacheFileType, url)
+  }
+
+  override fun commitPartialFile(partialFile: File, url: String): File? {
+    return cacheHandler.commitPartialCacheFile(cacheFileType, partialFile, url)
+  }
+
+}
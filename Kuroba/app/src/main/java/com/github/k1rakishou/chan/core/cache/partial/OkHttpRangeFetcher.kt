@@ -0,0 +1,83 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.IOException
+
+class OkHttpRangeFetcher(
+  private val okHttpClient: OkHttpClient,
+  private val modifyRequest: (String, Request.Builder) -> Unit = { _, _ -> }
+) : RangeFetcher {
+
+  override fun fetch(url: String, start: Long): RangeResponse {
+    val requestBuilder = Request.Builder()
+      .url(url)
+
+    modifyRequest(url, requestBuilder)
+
+    if (start > 0) {
+      requestBuilder.header("Range", "bytes=${start}-")
+    }
+
+    val response = okHttpClient.newCall(requestBuilder.build()).execute()
+    if (!response.isSuccessful) {
+      response.close()
+      throw RangeFetchException(response.code, url)
+    }
+
+    val body = response.body
+    if (body == null) {
+      response.close()
+      throw IOException("Response has no body, url: '$url'")
+    }
+
+    val inputStream = body.byteStream()
+
+    if (response.code == 206) {
+      val totalLength = parseContentRangeTotalLength(response.header("Content-Range"))
+      return RangeResponse(inputStream, totalLength)
+    }
+
+    // The server ignored the Range header so we have to skip the bytes we already have ourselves
+    val contentLength = body.contentLength()
+    if (start > 0) {
+      var toSkip = start
+
+      while (toSkip > 0) {
+        val skipped = inputStream.skip(toSkip)
+        if (skipped <= 0) {
+          inputStream.close()
+          throw IOException("Failed to skip ${start} bytes, url: '$url'")
+        }
+
+        toSkip -= skipped
+      }
+    }
+
+    return RangeResponse(inputStream, contentLength)
+  }
+
+  class RangeFetchException(val statusCode: Int, url: String) : IOException("Bad response status: $statusCode, url: '$url'") {
+    val isNotFound: Boolean
+      get() = statusCode == 404
+  }
+
+  companion object {
+
+    // "bytes 100-199/1000" -> 1000
+    fun parseContentRangeTotalLength(contentRange: String?): Long {
+      if (contentRange.isNullOrBlank()) {
+        return -1L
+      }
+
+      val totalLengthString = contentRange.substringAfterLast('/', missingDelimiterValue = "")
+      if (totalLengthString.isEmpty() || totalLengthString == "*") {
+        return -1L
+      }
+
+      return totalLengthString.trim().toLongOrNull() ?: -1L
+    }
+
+  }
+
+}
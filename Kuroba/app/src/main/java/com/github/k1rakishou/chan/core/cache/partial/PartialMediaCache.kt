@@ -0,0 +1,367 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * A range-aware media cache shared by every consumer of full media files (ExoPlayer streaming,
+ * [ChunkedMediaDownloaderImpl], [ImageSaverV2ServiceDelegate]). Bytes that were already
+ * downloaded by one consumer (e.g. the first half of a webm that was streamed by the player) are
+ * reused by the others and only the missing ranges are requested from the server. Once a file
+ * has all of its bytes it is committed into the [MediaCacheStorage] (CacheHandler's
+ * [CacheFileType.PostMediaFull] in the app) and from that point on everybody just reads it from
+ * the disk.
+ *
+ * Partial files live in the CacheHandler's chunks directory and do not survive app restarts.
+ * */
+class PartialMediaCache(
+  private val storage: MediaCacheStorage
+) {
+  @GuardedBy("this")
+  private val entries = LinkedHashMap<String, PartialMediaEntry>(16, 0.75f, true)
+
+  fun getCompletedFileOrNull(url: String): File? {
+    return storage.getCompletedFileOrNull(url)
+  }
+
+  fun hasPartialData(url: String): Boolean {
+    val entry = synchronized(this) { entries[url] }
+      ?: return false
+
+    return entry.cachedBytesCount() > 0
+  }
+
+  /**
+   * Returns an entry for [url] with its reference count incremented. Every [acquire] call must be
+   * followed by a [release] call.
+   * */
+  fun acquire(url: String): PartialMediaEntry? {
+    val toDelete = mutableListOf<PartialMediaEntry>()
+
+    val entry = synchronized(this) {
+      val prevEntry = entries[url]
+      if (prevEntry != null && prevEntry.retain()) {
+        return@synchronized prevEntry
+      }
+
+      val partialFile = storage.createPartialFile(url)
+        ?: return@synchronized null
+
+      val newEntry = PartialMediaEntry(url, partialFile)
+      newEntry.retain()
+      entries[url] = newEntry
+
+      if (entries.size > MAX_PARTIAL_ENTRIES) {
+        val iterator = entries.values.iterator()
+
+        while (entries.size > MAX_PARTIAL_ENTRIES && iterator.hasNext()) {
+          val oldEntry = iterator.next()
+          if (oldEntry === newEntry || oldEntry.isRetained()) {
+            continue
+          }
+
+          iterator.remove()
+          toDelete += oldEntry
+        }
+      }
+
+      return@synchronized newEntry
+    }
+
+    toDelete.forEach { oldEntry -> oldEntry.delete() }
+    return entry
+  }
+
+  fun release(entry: PartialMediaEntry) {
+    entry.release()
+  }
+
+  /**
+   * Commits the entry into the storage if all of its bytes are downloaded. Returns the committed
+   * file or null if the entry is not complete yet.
+   * */
+  fun commitIfComplete(entry: PartialMediaEntry): File? {
+    val completedFile = entry.commitIfComplete { partialFile ->
+      storage.commitPartialFile(partialFile, entry.url)
+    }
+
+    if (completedFile != null) {
+      synchronized(this) { entries.remove(entry.url, entry) }
+    }
+
+    return completedFile
+  }
+
+  /**
+   * Downloads the ranges of [url] that are not cached yet and commits the file into the storage.
+   * Blocking, must be called on a background thread.
+   * */
+  @Throws(IOException::class)
+  fun downloadMissingRanges(
+    url: String,
+    rangeFetcher: RangeFetcher,
+    isCanceled: () -> Boolean = { false },
+    onProgress: ((Long, Long) -> Unit)? = null
+  ): File {
+    val completedFile = storage.getCompletedFileOrNull(url)
+    if (completedFile != null) {
+      return completedFile
+    }
+
+    val entry = acquire(url)
+      ?: throw IOException("Failed to create partial cache file for url '$url'")
+
+    try {
+      while (true) {
+        val committed = commitIfComplete(entry)
+        if (committed != null) {
+          return committed
+        }
+
+        if (isCanceled()) {
+          throw IOException("Canceled")
+        }
+
+        val totalLength = entry.totalLength
+        val missingRange = if (totalLength > 0) {
+          entry.firstMissingRange()
+        } else {
+          val cachedFromStart = entry.contiguousLengthFrom(0L)
+          cachedFromStart until Long.MAX_VALUE
+        }
+
+        if (missingRange == null) {
+          throw IOException("Entry is fully cached but could not be committed, url '$url'")
+        }
+
+        val cachedBefore = entry.cachedBytesCount()
+        val rangeResponse = rangeFetcher.fetch(url, missingRange.first)
+
+        if (rangeResponse.totalLength > 0) {
+          entry.updateTotalLength(rangeResponse.totalLength)
+        }
+
+        rangeResponse.inputStream.use { inputStream ->
+          val buffer = ByteArray(BUFFER_SIZE)
+          var position = missingRange.first
+          val end = missingRange.last + 1
+
+          while (position < end) {
+            if (isCanceled()) {
+              throw IOException("Canceled")
+            }
+
+            val toRead = minOf(buffer.size.toLong(), end - position).toInt()
+            val read = inputStream.read(buffer, 0, toRead)
+
+            if (read < 0) {
+              if (entry.totalLength <= 0) {
+                entry.updateTotalLength(position)
+              }
+
+              break
+            }
+
+            entry.write(position, buffer, 0, read)
+            position += read
+
+            onProgress?.invoke(entry.cachedBytesCount(), entry.totalLength)
+          }
+        }
+
+        if (entry.cachedBytesCount() <= cachedBefore && !entry.isFullyCached()) {
+          throw IOException("No progress while downloading missing range ${missingRange.first}.., url '$url'")
+        }
+      }
+    } finally {
+      release(entry)
+    }
+  }
+
+  class PartialMediaEntry internal constructor(
+    val url: String,
+    private val partialFile: File
+  ) {
+    @GuardedBy("this")
+    private val cachedRanges = CachedRanges()
+    @GuardedBy("this")
+    private var randomAccessFile: RandomAccessFile? = null
+    @GuardedBy("this")
+    private var refCount = 0
+    @GuardedBy("this")
+    private var deleted = false
+    @GuardedBy("this")
+    private var completedFile: File? = null
+    @GuardedBy("this")
+    private var _totalLength = -1L
+
+    val totalLength: Long
+      get() = synchronized(this) { _totalLength }
+
+    @Synchronized
+    internal fun retain(): Boolean {
+      if (deleted) {
+        return false
+      }
+
+      ++refCount
+      return true
+    }
+
+    @Synchronized
+    internal fun isRetained(): Boolean = refCount > 0
+
+    @Synchronized
+    internal fun release() {
+      refCount = (refCount - 1).coerceAtLeast(0)
+
+      if (refCount == 0) {
+        closeFileQuietly()
+      }
+    }
+
+    @Synchronized
+    internal fun delete() {
+      deleted = true
+      closeFileQuietly()
+
+      if (completedFile == null) {
+        partialFile.delete()
+      }
+    }
+
+    @Synchronized
+    fun updateTotalLength(totalLength: Long) {
+      if (totalLength <= 0) {
+        return
+      }
+
+      if (_totalLength > 0 && _totalLength != totalLength) {
+        Logger.e(TAG, "Total length changed (${_totalLength} -> ${totalLength}), url: '$url'")
+      }
+
+      _totalLength = totalLength
+    }
+
+    @Synchronized
+    fun contiguousLengthFrom(position: Long): Long {
+      return cachedRanges.contiguousLengthFrom(position)
+    }
+
+    @Synchronized
+    fun cachedBytesCount(): Long {
+      return cachedRanges.cachedBytesCount()
+    }
+
+    @Synchronized
+    fun firstMissingRange(): LongRange? {
+      return cachedRanges.firstMissingRange(_totalLength)
+    }
+
+    @Synchronized
+    fun isFullyCached(): Boolean {
+      return cachedRanges.isFullyCached(_totalLength)
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun write(position: Long, buffer: ByteArray, offset: Int, length: Int) {
+      if (length <= 0 || completedFile != null || deleted) {
+        return
+      }
+
+      val file = getOrOpenFile()
+      file.seek(position)
+      file.write(buffer, offset, length)
+
+      cachedRanges.add(position, position + length)
+    }
+
+    /**
+     * Reads cached bytes starting at [position]. Returns the amount of bytes read or 0 when the
+     * byte at [position] is not cached.
+     * */
+    @Synchronized
+    @Throws(IOException::class)
+    fun read(position: Long, buffer: ByteArray, offset: Int, length: Int): Int {
+      val available = cachedRanges.contiguousLengthFrom(position)
+      if (available <= 0 || length <= 0) {
+        return 0
+      }
+
+      val toRead = minOf(available, length.toLong()).toInt()
+      val file = getOrOpenFile()
+      file.seek(position)
+      file.readFully(buffer, offset, toRead)
+
+      return toRead
+    }
+
+    @Synchronized
+    internal fun commitIfComplete(commitFunc: (File) -> File?): File? {
+      if (completedFile != null) {
+        return completedFile
+      }
+
+      if (deleted || !cachedRanges.isFullyCached(_totalLength)) {
+        return null
+      }
+
+      randomAccessFile?.let { file ->
+        file.fd.sync()
+        // The file may be longer than expected if the server lied about the content length
+        file.setLength(_totalLength)
+      }
+
+      // Open file handles still point to the same data after the file is moved so readers that
+      // are in the middle of reading it are not affected.
+      val committed = commitFunc(partialFile)
+      if (committed == null) {
+        Logger.e(TAG, "Failed to commit partial file for url '$url'")
+        return null
+      }
+
+      completedFile = committed
+      return committed
+    }
+
+    @GuardedBy("this")
+    private fun getOrOpenFile(): RandomAccessFile {
+      val prevFile = randomAccessFile
+      if (prevFile != null) {
+        return prevFile
+      }
+
+      val fileToOpen = completedFile ?: partialFile
+      val mode = if (completedFile != null) "r" else "rw"
+
+      return RandomAccessFile(fileToOpen, mode)
+        .also { newFile -> randomAccessFile = newFile }
+    }
+
+    @GuardedBy("this")
+    private fun closeFileQuietly() {
+      try {
+        randomAccessFile?.close()
+      } catch (ignored: IOException) {
+      } finally {
+        randomAccessFile = null
+      }
+    }
+
+    override fun toString(): String {
+      return "PartialMediaEntry(url='$url', totalLength=${totalLength})"
+    }
+
+  }
+
+  companion object {
+    private const val TAG = "PartialMediaCache"
+    private const val MAX_PARTIAL_ENTRIES = 32
+    private const val BUFFER_SIZE = 32 * 1024
+  }
+
+}
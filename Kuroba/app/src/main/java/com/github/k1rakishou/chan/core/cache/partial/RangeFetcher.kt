@@ -0,0 +1,20 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Opens a stream of the remote file bytes starting at the requested position.
+ * */
+fun interface RangeFetcher {
+  @Throws(IOException::class)
+  fun fetch(url: String, start: Long): RangeResponse
+}
+
+class RangeResponse(
+  val inputStream: InputStream,
+  /**
+   * Total length of the remote file or -1 if the server didn't tell us.
+   * */
+  val totalLength: Long
+)
@@ -45,6 +45,7 @@ import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2
 import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2ServiceDelegate
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingCoordinator
 import com.github.k1rakishou.chan.ui.captcha.CaptchaHolder
+import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.core_logger.Logger.deps
 import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.fsaf.FileManager
@@ -54,6 +55,7 @@ import dagger.Lazy
 import dagger.Module
 import dagger.Provides
 import kotlinx.coroutines.CoroutineScope
+import java.io.File
 import javax.inject.Singleton
 
 @Module
@@ -72,6 +74,9 @@ class AppModule {
   @Provides
   @Singleton
   fun provideAppDependenciesInitializer(
+    appScope: CoroutineScope,
+    appContext: Context,
+    appConstants: AppConstants,
     siteManager: SiteManager,
     boardManager: BoardManager,
     bookmarksManager: BookmarksManager,
@@ -86,6 +91,8 @@ class AppModule {
     deps("AppDependenciesInitializer")
 
     return AppDependenciesInitializer(
+      appScope,
+      File(appContext.filesDir, appConstants.startupTraceFileName),
       siteManager,
       boardManager,
       bookmarksManager,
@@ -1,9 +1,11 @@
 package com.github.k1rakishou.chan.core.di.module.application
 
 import android.content.Context
+import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
 import com.github.k1rakishou.chan.core.helper.AppRestarter
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
 import com.github.k1rakishou.chan.core.helper.SitesSetupControllerOpenNotifier
@@ -27,6 +29,7 @@ import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerScroll
 import com.github.k1rakishou.chan.features.reply.data.ReplyLayoutHelper
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadProgressNotifier
 import com.github.k1rakishou.chan.ui.captcha.chan4.Chan4CaptchaSolverHelper
+import com.github.k1rakishou.chan.ui.cell.PostCommentPrecomputer
 import com.github.k1rakishou.chan.ui.globalstate.GlobalUiStateHolder
 import com.github.k1rakishou.chan.ui.helper.AppResources
 import com.github.k1rakishou.chan.ui.helper.AppSettingsUpdateAppRefreshHelper
@@ -37,6 +40,7 @@ import com.github.k1rakishou.chan.ui.helper.picker.RemoteFilePicker
 import com.github.k1rakishou.chan.ui.helper.picker.ShareFilePicker
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
@@ -47,6 +51,8 @@ import dagger.Lazy
 import dagger.Module
 import dagger.Provides
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.reactive.asFlow
 import javax.inject.Singleton
 
 @Module
@@ -65,7 +71,8 @@ class HelperModule {
     chanThreadsCache: ChanThreadsCache,
     chanCatalogSnapshotCache: ChanCatalogSnapshotCache,
     threadDownloadManager: ThreadDownloadManager,
-    parsePostsV1UseCase: ParsePostsV1UseCase
+    parsePostsV1UseCase: ParsePostsV1UseCase,
+    siteManager: SiteManager
   ): ChanThreadLoaderCoordinator {
     Logger.deps("ChanThreadLoaderCoordinator")
     return ChanThreadLoaderCoordinator(
@@ -79,7 +86,8 @@ class HelperModule {
       chanThreadsCache,
       chanCatalogSnapshotCache,
       threadDownloadManager,
-      parsePostsV1UseCase
+      parsePostsV1UseCase,
+      siteManager
     )
   }
 
@@ -201,9 +209,9 @@ class HelperModule {
 
   @Provides
   @Singleton
-  fun provideExoPlayerDiskCache(context: Context, appConstants: AppConstants): ExoPlayerCache {
+  fun provideExoPlayerDiskCache(partialMediaCache: Lazy<PartialMediaCache>): ExoPlayerCache {
     Logger.deps("ExoPlayerCache");
-    return ExoPlayerCache(context, appConstants)
+    return ExoPlayerCache(partialMediaCache)
   }
 
   @Provides
@@ -268,6 +276,26 @@ class HelperModule {
     return GlobalUiStateHolder()
   }
 
+  @Provides
+  @Singleton
+  fun providePostCommentPrecomputer(
+    appContext: Context,
+    applicationScope: CoroutineScope,
+    themeEngine: ThemeEngine
+  ): PostCommentPrecomputer {
+    Logger.deps("PostCommentPrecomputer")
+    val postCommentPrecomputer = PostCommentPrecomputer(appContext.resources)
+
+    themeEngine.addListener(postCommentPrecomputer)
+    applicationScope.launch {
+      ChanSettings.fontSize.listenForChanges()
+        .asFlow()
+        .collect { postCommentPrecomputer.invalidate() }
+    }
+
+    return postCommentPrecomputer
+  }
+
   @Provides
   @Singleton
   fun provideReplyLayoutHelper(
@@ -1,5 +1,7 @@
 package com.github.k1rakishou.chan.core.di.module.application;
 
+import android.content.Context;
+
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.cache.CacheHandler;
 import com.github.k1rakishou.chan.core.cache.downloader.ChunkedMediaDownloader;
@@ -10,6 +12,7 @@ import com.github.k1rakishou.chan.core.loader.impl.PostHighlightFilterLoader;
 import com.github.k1rakishou.chan.core.loader.impl.PrefetchLoader;
 import com.github.k1rakishou.chan.core.loader.impl.ThirdEyeLoader;
 import com.github.k1rakishou.chan.core.loader.impl.external_media_service.ExternalMediaServiceExtraInfoFetcher;
+import com.github.k1rakishou.chan.core.loader.impl.external_media_service.LinkExtraInfoBatchCollector;
 import com.github.k1rakishou.chan.core.loader.impl.external_media_service.SoundCloudMediaServiceExtraInfoFetcher;
 import com.github.k1rakishou.chan.core.loader.impl.external_media_service.StreamableMediaServiceExtraInfoFetcher;
 import com.github.k1rakishou.chan.core.loader.impl.external_media_service.YoutubeMediaServiceExtraInfoFetcher;
@@ -34,6 +37,7 @@ import javax.inject.Singleton;
 import dagger.Lazy;
 import dagger.Module;
 import dagger.Provides;
+import kotlinx.coroutines.CoroutineScope;
 
 @Module
 public class LoaderModule {
@@ -63,6 +67,7 @@ public class LoaderModule {
     @Provides
     @Singleton
     public ThirdEyeLoader provideThirdEyeLoader(
+            Context appContext,
             AppConstants appConstants,
             Lazy<ThirdEyeManager> thirdEyeManager,
             Lazy<ChanThreadManager> chanThreadManager,
@@ -71,6 +76,7 @@ public class LoaderModule {
         Logger.deps("ThirdEyeLoader");
 
         return new ThirdEyeLoader(
+                appContext,
                 appConstants,
                 thirdEyeManager,
                 chanThreadManager,
@@ -140,13 +146,28 @@ public class LoaderModule {
         return new StreamableMediaServiceExtraInfoFetcher(mediaServiceLinkExtraContentRepository);
     }
 
+    @Provides
+    @Singleton
+    public LinkExtraInfoBatchCollector provideLinkExtraInfoBatchCollector(
+            CoroutineScope appScope,
+            MediaServiceLinkExtraContentRepository mediaServiceLinkExtraContentRepository
+    ) {
+        Logger.deps("LinkExtraInfoBatchCollector");
+
+        return LinkExtraInfoBatchCollector.create(
+                appScope,
+                mediaServiceLinkExtraContentRepository
+        );
+    }
+
     @Provides
     @Singleton
     public PostExtraContentLoader providePostExtraContentLoader(
             YoutubeMediaServiceExtraInfoFetcher youtubeMediaServiceExtraInfoFetcher,
             SoundCloudMediaServiceExtraInfoFetcher soundCloudMediaServiceExtraInfoFetcher,
             StreamableMediaServiceExtraInfoFetcher streamableMediaServiceExtraInfoFetcher,
-            ChanThreadManager chanThreadManager
+            ChanThreadManager chanThreadManager,
+            LinkExtraInfoBatchCollector linkExtraInfoBatchCollector
     ) {
         Logger.deps("PostExtraContentLoader");
 
@@ -157,7 +178,8 @@ public class LoaderModule {
 
         return new PostExtraContentLoader(
                 chanThreadManager,
-                fetchers
+                fetchers,
+                linkExtraInfoBatchCollector
         );
     }
 
@@ -22,7 +22,7 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
-import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
 import com.github.k1rakishou.chan.core.helper.FilterEngine
 import com.github.k1rakishou.chan.core.helper.FilterWatcherNotificationHelper
 import com.github.k1rakishou.chan.core.helper.ImageSaverFileManagerWrapper
@@ -40,6 +40,9 @@ import com.github.k1rakishou.chan.core.loader.impl.PrefetchLoader
 import com.github.k1rakishou.chan.core.loader.impl.ThirdEyeLoader
 import com.github.k1rakishou.chan.core.manager.ApplicationCrashNotifier
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
+import com.github.k1rakishou.chan.core.manager.ArchiveHealthTracker
+import com.github.k1rakishou.chan.core.manager.ArchiveThreadProber
+import com.github.k1rakishou.chan.core.manager.ArchiveThreadResolver
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
@@ -71,6 +74,7 @@ import com.github.k1rakishou.chan.core.manager.ThreadBookmarkGroupManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.ParserRepository
 import com.github.k1rakishou.chan.core.site.SiteRegistry
+import com.github.k1rakishou.chan.core.site.SiteRequestModifier.Companion.addDefaultHeaders
 import com.github.k1rakishou.chan.core.site.SiteResolver
 import com.github.k1rakishou.chan.core.site.loader.ChanThreadLoaderCoordinator
 import com.github.k1rakishou.chan.core.site.parser.ReplyParser
@@ -87,6 +91,7 @@ import com.github.k1rakishou.chan.core.watcher.BookmarkWatcherCoordinator
 import com.github.k1rakishou.chan.core.watcher.BookmarkWatcherDelegate
 import com.github.k1rakishou.chan.core.watcher.FilterWatcherCoordinator
 import com.github.k1rakishou.chan.core.watcher.FilterWatcherDelegate
+import com.github.k1rakishou.chan.features.image_saver.ImageSaverContentIndex
 import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2ServiceDelegate
 import com.github.k1rakishou.chan.features.posting.CaptchaDonation
 import com.github.k1rakishou.chan.features.posting.LastReplyRepository
@@ -127,6 +132,8 @@ import dagger.Module
 import dagger.Provides
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import java.io.File
 import javax.inject.Singleton
 
 @Module
@@ -226,6 +233,37 @@ class ManagerModule {
     )
   }
 
+  @Provides
+  @Singleton
+  fun provideArchiveThreadResolver(
+    archivesManager: Lazy<ArchivesManager>,
+    proxiedOkHttpClient: Lazy<ProxiedOkHttpClient>,
+    appConstants: AppConstants
+  ): ArchiveThreadResolver {
+    deps("ArchiveThreadResolver")
+
+    val threadProber = ArchiveThreadProber(
+      okHttpClientProvider = { proxiedOkHttpClient.get().okHttpClient() },
+      requestModifier = { requestBuilder -> requestBuilder.addDefaultHeaders(appConstants) },
+      threadEndpointFunc = func@ { archiveDescriptor, threadDescriptor ->
+        if (!archiveDescriptor.archiveType.isFoolFuukaArchive()) {
+          return@func null
+        }
+
+        return@func archivesManager.get().getRequestLink(
+          archiveType = archiveDescriptor.archiveType,
+          boardCode = threadDescriptor.boardCode(),
+          threadNo = threadDescriptor.threadNo
+        ).toHttpUrlOrNull()
+      }
+    )
+
+    return ArchiveThreadResolver(
+      healthTracker = ArchiveHealthTracker(),
+      threadProber = threadProber
+    )
+  }
+
   @Provides
   @Singleton
   fun provideReportManager(
@@ -428,7 +466,8 @@ class ManagerModule {
     archivesManager: ArchivesManager,
     bookmarkWatcherDelegate: Lazy<BookmarkWatcherDelegate>,
     applicationVisibilityManager: ApplicationVisibilityManager,
-    currentOpenedDescriptorStateManager: CurrentOpenedDescriptorStateManager
+    currentOpenedDescriptorStateManager: CurrentOpenedDescriptorStateManager,
+    pageRequestManager: Lazy<PageRequestManager>
   ): BookmarkForegroundWatcher {
     deps("BookmarkForegroundWatcher")
     return BookmarkForegroundWatcher(
@@ -440,7 +479,8 @@ class ManagerModule {
       archivesManager,
       bookmarkWatcherDelegate,
       applicationVisibilityManager,
-      currentOpenedDescriptorStateManager
+      currentOpenedDescriptorStateManager,
+      pageRequestManager
     )
   }
 
@@ -735,9 +775,10 @@ class ManagerModule {
   @Singleton
   @Provides
   fun provideImageSaverV2Delegate(
+    appContext: Context,
     appScope: CoroutineScope,
     appConstants: AppConstants,
-    cacheHandler: Lazy<CacheHandler>,
+    partialMediaCache: Lazy<PartialMediaCache>,
     downloaderOkHttpClient: Lazy<RealDownloaderOkHttpClient>,
     notificationManagerCompat: NotificationManagerCompat,
     imageSaverFileManagerWrapper: ImageSaverFileManagerWrapper,
@@ -753,10 +794,11 @@ class ManagerModule {
       ChanSettings.verboseLogs.get(),
       appScope,
       appConstants,
-      cacheHandler,
+      partialMediaCache,
       downloaderOkHttpClient,
       notificationManagerCompat,
       imageSaverFileManagerWrapper,
+      ImageSaverContentIndex(File(appContext.filesDir, appConstants.imageSaverContentIndexFileName)),
       siteResolver,
       chanPostImageRepository,
       imageDownloadRequestRepository,
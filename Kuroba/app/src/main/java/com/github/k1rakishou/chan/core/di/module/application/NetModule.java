@@ -26,9 +26,12 @@ import com.github.k1rakishou.chan.core.base.okhttp.HttpLoggingInterceptorLazy;
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient;
+import com.github.k1rakishou.chan.core.cache.CacheFileType;
 import com.github.k1rakishou.chan.core.cache.CacheHandler;
 import com.github.k1rakishou.chan.core.cache.downloader.ChunkedMediaDownloader;
 import com.github.k1rakishou.chan.core.cache.downloader.ChunkedMediaDownloaderImpl;
+import com.github.k1rakishou.chan.core.cache.partial.CacheHandlerMediaCacheStorage;
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
@@ -87,6 +90,14 @@ public class NetModule {
         );
     }
 
+    @Provides
+    @Singleton
+    public PartialMediaCache providePartialMediaCache(Lazy<CacheHandler> cacheHandler) {
+        Logger.deps("PartialMediaCache");
+
+        return new PartialMediaCache(new CacheHandlerMediaCacheStorage(cacheHandler, CacheFileType.PostMediaFull));
+    }
+
     @Provides
     @Singleton
     public ChunkedMediaDownloader provideChunkedMediaDownloaderImpl(
@@ -94,6 +105,7 @@ public class NetModule {
             FileManager fileManager,
             SiteResolver siteResolver,
             Lazy<CacheHandler> cacheHandler,
+            Lazy<PartialMediaCache> partialMediaCache,
             Lazy<RealDownloaderOkHttpClient> realDownloaderOkHttpClient,
             ConnectivityManager connectivityManager
     ) {
@@ -104,6 +116,7 @@ public class NetModule {
                 fileManager,
                 siteResolver,
                 cacheHandler,
+                partialMediaCache,
                 realDownloaderOkHttpClient,
                 connectivityManager
         );
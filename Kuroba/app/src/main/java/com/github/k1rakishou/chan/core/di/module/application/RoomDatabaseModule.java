@@ -23,6 +23,7 @@ import com.github.k1rakishou.model.repository.ThreadBookmarkGroupRepository;
 import com.github.k1rakishou.model.repository.ThreadDownloadRepository;
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache;
 import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache;
+import com.github.k1rakishou.model.sqlite.SQLiteQueryTimings;
 
 import javax.inject.Singleton;
 
@@ -221,4 +222,13 @@ public class RoomDatabaseModule {
         return modelComponent.getCompositeCatalogRepository();
     }
 
+    @Provides
+    @Singleton
+    public SQLiteQueryTimings provideSQLiteQueryTimings(
+            ModelComponent modelComponent
+    ) {
+        Logger.deps("SQLiteQueryTimings");
+        return modelComponent.getSQLiteQueryTimings();
+    }
+
 }
@@ -20,6 +20,7 @@ import com.github.k1rakishou.chan.core.manager.ThirdEyeManager
 import com.github.k1rakishou.chan.core.manager.ThreadBookmarkGroupManager
 import com.github.k1rakishou.chan.core.site.loader.ChanThreadLoaderCoordinator
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ParsePostsV1UseCase
+import com.github.k1rakishou.chan.core.site.parser.PostParseResultCache
 import com.github.k1rakishou.chan.core.site.parser.ReplyParser
 import com.github.k1rakishou.chan.core.site.parser.search.SimpleCommentParser
 import com.github.k1rakishou.chan.core.site.sites.lynxchan.engine.LynxchanGetBoardsUseCase
@@ -68,6 +69,7 @@ import dagger.Lazy
 import dagger.Module
 import dagger.Provides
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
 import javax.inject.Singleton
 
 @Module
@@ -224,14 +226,16 @@ class UseCaseModule {
     appContext: Context,
     appConstants: AppConstants,
     databaseMetaRepository: DatabaseMetaRepository,
-    fileManager: FileManager
+    fileManager: FileManager,
+    gson: Gson
   ): ExportBackupFileUseCase {
     deps("ExportBackupFileUseCase")
     return ExportBackupFileUseCase(
       appContext,
       appConstants,
       databaseMetaRepository,
-      fileManager
+      fileManager,
+      gson
     )
   }
 
@@ -240,13 +244,15 @@ class UseCaseModule {
   fun provideImportBackupFileUseCase(
     appContext: Context,
     appConstants: AppConstants,
-    fileManager: FileManager
+    fileManager: FileManager,
+    gson: Gson
   ): ImportBackupFileUseCase {
     deps("ImportBackupFileUseCase")
     return ImportBackupFileUseCase(
       appContext,
       appConstants,
-      fileManager
+      fileManager,
+      gson
     )
   }
 
@@ -310,6 +316,25 @@ class UseCaseModule {
     )
   }
 
+  @Provides
+  @Singleton
+  fun providePostParseResultCache(
+    appScope: CoroutineScope,
+    themeEngine: ThemeEngine,
+    chanFilterManager: ChanFilterManager
+  ): PostParseResultCache {
+    deps("PostParseResultCache")
+    val postParseResultCache = PostParseResultCache()
+
+    themeEngine.addListener(postParseResultCache)
+    appScope.launch {
+      chanFilterManager.listenForFiltersChanges()
+        .collect { postParseResultCache.invalidate() }
+    }
+
+    return postParseResultCache
+  }
+
   @Provides
   @Singleton
   fun provideParsePostsV1UseCase(
@@ -319,7 +344,8 @@ class UseCaseModule {
     postHideManager: PostHideManager,
     savedReplyManager: SavedReplyManager,
     boardManager: BoardManager,
-    chanLoadProgressNotifier: ChanLoadProgressNotifier
+    chanLoadProgressNotifier: ChanLoadProgressNotifier,
+    postParseResultCache: PostParseResultCache
   ): ParsePostsV1UseCase {
     deps("ParsePostsV1UseCase")
     return ParsePostsV1UseCase(
@@ -330,7 +356,8 @@ class UseCaseModule {
       postHideManager,
       savedReplyManager,
       boardManager,
-      chanLoadProgressNotifier
+      chanLoadProgressNotifier,
+      postParseResultCache
     )
   }
 
@@ -22,6 +22,7 @@ import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.activity.StartActivity
 import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
 import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.image.ImageLoadPriority
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
 import com.github.k1rakishou.chan.core.receiver.ReplyNotificationDeleteIntentBroadcastReceiver
@@ -544,6 +545,7 @@ class ReplyNotificationsHelper(
           NOTIFICATION_THUMBNAIL_SIZE,
         ),
         transformations = CIRCLE_CROP,
+        priority = ImageLoadPriority.Background,
         listener = object : ImageLoaderV2.FailureAwareImageListener {
           override fun onResponse(drawable: BitmapDrawable, isImmediate: Boolean) {
             cancellableContinuation.resumeValueSafe(drawable)
@@ -0,0 +1,315 @@
+package com.github.k1rakishou.chan.core.image
+
+import androidx.annotation.GuardedBy
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+
+/**
+ * Decides in what order image downloads are executed. Requests are grouped into [ImageLoadPriority]
+ * classes and the most important queued request is always started first (requests of the same
+ * class are started in the order they were enqueued).
+ *
+ * - Concurrent requests with the same key are coalesced into one download. The download has the
+ * highest priority of all the requests waiting for it.
+ * - There is a global and a per-host limit of running downloads. Low priority requests
+ * ([ImageLoadPriority.isLowPriority]) can only use half of the per-host slots so that there are
+ * always free slots for the visible images.
+ * - When the last request waiting for a download is canceled the download is removed from the
+ * queue (or canceled if it's already running).
+ *
+ * Running downloads are never preempted, changing the priority only affects queued downloads.
+ * */
+class ImageLoadScheduler<T>(
+  private val scope: CoroutineScope,
+  private val maxConcurrentRequests: Int = MAX_CONCURRENT_REQUESTS,
+  private val maxConcurrentRequestsPerHost: Int = MAX_CONCURRENT_REQUESTS_PER_HOST
+) {
+  private val lock = Any()
+
+  private val maxLowPriorityRequestsPerHost = (maxConcurrentRequestsPerHost / 2).coerceAtLeast(1)
+
+  @GuardedBy("lock")
+  private val activeTasks = hashMapOf<String, Task<T>>()
+  @GuardedBy("lock")
+  private val queuedTasks = mutableListOf<Task<T>>()
+  @GuardedBy("lock")
+  private val runningTasksPerHost = hashMapOf<String, HostCounter>()
+  @GuardedBy("lock")
+  private var runningTasksCount = 0
+
+  init {
+    require(maxConcurrentRequests > 0) { "Bad maxConcurrentRequests: $maxConcurrentRequests" }
+    require(maxConcurrentRequestsPerHost > 0) { "Bad maxConcurrentRequestsPerHost: $maxConcurrentRequestsPerHost" }
+  }
+
+  /**
+   * Enqueues [fetcher] to be executed under the [key] or joins an already enqueued (or running)
+   * request with the same [key]. [fetcher] of the joined requests is ignored.
+   * */
+  fun enqueue(
+    key: String,
+    host: String,
+    priority: ImageLoadPriority,
+    fetcher: suspend () -> T
+  ): Ticket<T> {
+    val ticket = synchronized(lock) {
+      var task = activeTasks[key]
+      if (task == null) {
+        task = Task(key = key, host = host, fetcher = fetcher)
+
+        activeTasks[key] = task
+        queuedTasks += task
+      }
+
+      val ticket = Ticket(this, task, priority)
+      task.tickets += ticket
+
+      return@synchronized ticket
+    }
+
+    dispatch()
+    return ticket
+  }
+
+  fun queuedCount(): Int = synchronized(lock) { queuedTasks.size }
+
+  fun runningCount(): Int = synchronized(lock) { runningTasksCount }
+
+  private fun dispatch() {
+    val tasksToStart = mutableListOf<Task<T>>()
+
+    synchronized(lock) {
+      while (runningTasksCount < maxConcurrentRequests) {
+        val task = pickNextTaskLocked()
+          ?: break
+
+        queuedTasks.remove(task)
+
+        val hostCounter = runningTasksPerHost.getOrPut(task.host) { HostCounter() }
+        task.startedAsLowPriority = task.priority().isLowPriority
+        hostCounter.increment(task.startedAsLowPriority)
+        ++runningTasksCount
+
+        task.job = scope.launch(start = CoroutineStart.LAZY) {
+          try {
+            task.result.complete(task.fetcher())
+          } catch (error: Throwable) {
+            // Not rethrown, the error is delivered to everyone who waits for the result
+            task.result.completeExceptionally(error)
+          }
+        }
+
+        tasksToStart += task
+      }
+    }
+
+    // Jobs are started (and their completion handlers are installed) outside of the lock because
+    // they may complete right away
+    tasksToStart.forEach { task ->
+      val job = task.job!!
+
+      job.invokeOnCompletion { cause ->
+        if (cause != null) {
+          task.result.completeExceptionally(cause)
+        }
+
+        onTaskFinished(task)
+      }
+
+      job.start()
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun pickNextTaskLocked(): Task<T>? {
+    var bestTask: Task<T>? = null
+    var bestPriority: ImageLoadPriority? = null
+
+    for (task in queuedTasks) {
+      val priority = task.priority()
+      val hostCounter = runningTasksPerHost[task.host]
+
+      if (hostCounter != null && !hostCounter.canStart(priority.isLowPriority)) {
+        continue
+      }
+
+      // The queue is in the enqueue order so only a strictly better priority wins
+      if (bestPriority == null || priority.ordinal < bestPriority.ordinal) {
+        bestTask = task
+        bestPriority = priority
+      }
+    }
+
+    return bestTask
+  }
+
+  private fun onTaskFinished(task: Task<T>) {
+    synchronized(lock) {
+      if (activeTasks[task.key] === task) {
+        activeTasks.remove(task.key)
+      }
+
+      val hostCounter = runningTasksPerHost[task.host]
+      if (hostCounter != null) {
+        hostCounter.decrement(task.startedAsLowPriority)
+
+        if (hostCounter.isEmpty()) {
+          runningTasksPerHost.remove(task.host)
+        }
+      }
+
+      --runningTasksCount
+    }
+
+    dispatch()
+  }
+
+  private fun cancelTicket(ticket: Ticket<T>) {
+    val task = ticket.task
+    var jobToCancel: Job? = null
+
+    synchronized(lock) {
+      if (!task.tickets.remove(ticket) || task.tickets.isNotEmpty()) {
+        return
+      }
+
+      if (queuedTasks.remove(task)) {
+        activeTasks.remove(task.key)
+        task.result.cancel()
+        return
+      }
+
+      // Nobody is interested in the result anymore, make sure new requests with the same key
+      // won't join the task that is about to be canceled
+      if (activeTasks[task.key] === task) {
+        activeTasks.remove(task.key)
+      }
+
+      jobToCancel = task.job
+    }
+
+    jobToCancel?.cancel()
+  }
+
+  private fun onPriorityChanged() {
+    // The queue is re-evaluated on every dispatch, this is only needed for the case when a low
+    // priority task was blocked by the low priority limit and is now allowed to start
+    dispatch()
+  }
+
+  class Ticket<T> internal constructor(
+    private val scheduler: ImageLoadScheduler<T>,
+    internal val task: Task<T>,
+    @Volatile
+    internal var priority: ImageLoadPriority
+  ) {
+
+    fun priority(): ImageLoadPriority = priority
+
+    /**
+     * Use [ImageLoadPriority.Background] when the view that requested the image was scrolled
+     * offscreen and the priority the request was made with once it's visible again.
+     * */
+    fun changePriority(newPriority: ImageLoadPriority) {
+      if (priority == newPriority) {
+        return
+      }
+
+      synchronized(scheduler.lock) { priority = newPriority }
+      scheduler.onPriorityChanged()
+    }
+
+    /**
+     * Waits for the result of the download. Cancelling the coroutine that waits also cancels this
+     * ticket.
+     * */
+    suspend fun await(): T {
+      try {
+        return task.result.await()
+      } catch (error: CancellationException) {
+        cancel()
+        throw error
+      }
+    }
+
+    fun cancel() {
+      scheduler.cancelTicket(this)
+    }
+  }
+
+  internal class Task<T>(
+    val key: String,
+    val host: String,
+    val fetcher: suspend () -> T
+  ) {
+    val tickets = mutableListOf<Ticket<T>>()
+    val result = CompletableDeferred<T>()
+
+    var job: Job? = null
+    var startedAsLowPriority = false
+
+    fun priority(): ImageLoadPriority {
+      var bestPriority = ImageLoadPriority.Background
+
+      for (ticket in tickets) {
+        if (ticket.priority.ordinal < bestPriority.ordinal) {
+          bestPriority = ticket.priority
+        }
+      }
+
+      return bestPriority
+    }
+  }
+
+  private inner class HostCounter {
+    private var running = 0
+    private var runningLowPriority = 0
+
+    fun canStart(isLowPriority: Boolean): Boolean {
+      if (running >= maxConcurrentRequestsPerHost) {
+        return false
+      }
+
+      return !isLowPriority || runningLowPriority < maxLowPriorityRequestsPerHost
+    }
+
+    fun increment(isLowPriority: Boolean) {
+      ++running
+
+      if (isLowPriority) {
+        ++runningLowPriority
+      }
+    }
+
+    fun decrement(isLowPriority: Boolean) {
+      --running
+
+      if (isLowPriority) {
+        --runningLowPriority
+      }
+    }
+
+    fun isEmpty(): Boolean = running <= 0
+  }
+
+  companion object {
+    const val MAX_CONCURRENT_REQUESTS = 16
+    const val MAX_CONCURRENT_REQUESTS_PER_HOST = 6
+  }
+}
+
+/**
+ * Ordered from the most important to the least important.
+ * */
+enum class ImageLoadPriority(val isLowPriority: Boolean) {
+  // Image of a view that is currently on the screen
+  Visible(false),
+  // Neighbor of the currently shown media viewer page
+  MediaViewerNeighbor(false),
+  Prefetch(true),
+  Background(true)
+}
@@ -8,10 +8,8 @@ import android.graphics.ColorFilter
 import android.graphics.Matrix
 import android.graphics.Paint
 import android.graphics.drawable.BitmapDrawable
-import android.util.LruCache
 import android.view.View
 import androidx.annotation.DrawableRes
-import androidx.annotation.GuardedBy
 import androidx.core.graphics.drawable.toBitmap
 import androidx.lifecycle.Lifecycle
 import coil.ImageLoader
@@ -35,6 +33,8 @@ import com.github.k1rakishou.chan.core.helper.ImageLoaderFileManagerWrapper
 import com.github.k1rakishou.chan.core.manager.ReplyManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.chan.ui.cell.PostListProfiler
+import com.github.k1rakishou.chan.ui.cell.PostListTimings
 import com.github.k1rakishou.chan.ui.widget.FixedViewSizeResolver
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.chan.utils.MediaUtils
@@ -50,11 +50,9 @@ import com.github.k1rakishou.common.StringUtils
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.isCoroutineCancellationException
 import com.github.k1rakishou.common.isExceptionImportant
-import com.github.k1rakishou.common.removeIfKt
 import com.github.k1rakishou.common.resumeValueSafe
 import com.github.k1rakishou.common.rethrowCancellationException
 import com.github.k1rakishou.common.suspendCall
-import com.github.k1rakishou.common.withLockNonCancellable
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.fsaf.FileManager
@@ -72,7 +70,6 @@ import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.suspendCancellableCoroutine
-import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.Request
@@ -97,10 +94,7 @@ class ImageLoaderV2(
   private val _coilOkHttpClient: Lazy<CoilOkHttpClient>,
   private val _threadDownloadManager: Lazy<ThreadDownloadManager>
 ) {
-  private val mutex = Mutex()
-
-  @GuardedBy("mutex")
-  private val activeRequests = LruCache<String, ActiveRequest>(1024)
+  private val imageLoadScheduler = ImageLoadScheduler<File?>(appScope)
 
   val imageLoader: ImageLoader
     get() = _imageLoader.get()
@@ -271,7 +265,8 @@ class ImageLoaderV2(
     imageSize: ImageSize,
     transformations: List<Transformation>,
     listener: FailureAwareImageListener,
-    postDescriptor: PostDescriptor? = null
+    postDescriptor: PostDescriptor? = null,
+    priority: ImageLoadPriority = ImageLoadPriority.Visible
   ): ImageLoaderRequestDisposable {
     return loadFromNetwork(
       context = context,
@@ -280,7 +275,8 @@ class ImageLoaderV2(
       imageSize = imageSize,
       inputTransformations = transformations,
       imageListenerParam = ImageListenerParam.FailureAwareImageListener(listener),
-      postDescriptor = postDescriptor
+      postDescriptor = postDescriptor,
+      priority = priority
     )
   }
 
@@ -293,9 +289,11 @@ class ImageLoaderV2(
     imageListenerParam: ImageListenerParam,
     // If postDescriptor is not null we will attempt to search for this file among downloaded
     // threads files' first and if not found then attempt to load it from the network.
-    postDescriptor: PostDescriptor? = null
+    postDescriptor: PostDescriptor? = null,
+    priority: ImageLoadPriority = ImageLoadPriority.Visible
   ): ImageLoaderRequestDisposable {
     val completableDeferred = CompletableDeferred<Unit>()
+    val requestPriority = RequestPriority(priority)
 
     val job = appScope.launch(Dispatchers.IO) {
       BackgroundUtils.ensureBackgroundThread()
@@ -303,123 +301,92 @@ class ImageLoaderV2(
       try {
         var isFromCache = true
 
-        // 1. Enqueue a new request (or add a callback to an old request if there is already a
-        // request with this url).
-        val alreadyHasActiveRequest = mutex.withLockNonCancellable {
-          var activeRequest = activeRequests.get(url)
-          if (activeRequest == null) {
-            // Create new ActiveRequest is it's not created yet
-            activeRequest = ActiveRequest(url)
-            activeRequests.put(url, activeRequest)
-          }
-
-          // Add all the listeners into this request (there may be multiple of them)
-          return@withLockNonCancellable activeRequest.addImageListener(
-            imageListenerParam = imageListenerParam,
-            imageSize = imageSize,
-            transformations = inputTransformations
-          )
-        }
-
-        if (alreadyHasActiveRequest) {
-          // Another request with the same url is already running, wait until the other request is
-          // completed, it will invoke all callbacks.
-          return@launch
-        }
-
-        // 2. Check whether we have this bitmap cached on the disk
+        // 1. Check whether we have this bitmap cached on the disk
         var imageFile = tryLoadFromDiskCacheOrNull(url, cacheFileType, postDescriptor)
 
-        // 3. Failed to find this bitmap in the disk cache. Load it from the network.
+        // 2. Failed to find this bitmap in the disk cache. Load it from the network (or join
+        // another request that is already loading the same url).
         if (imageFile == null) {
           isFromCache = false
 
           imageFile = loadFromNetworkInternal(
-            context = context,
             url = url,
             cacheFileType = cacheFileType,
-            imageSize = imageSize
+            imageSize = imageSize,
+            requestPriority = requestPriority
           )
 
           if (imageFile == null) {
             val errorMessage = "Failed to load image '$url' from disk and network"
-
             Logger.e(TAG, errorMessage)
-            notifyListenersFailure(context, url, IOException(errorMessage))
+
+            handleFailure(
+              actualListener = imageListenerParam,
+              context = context,
+              imageSize = imageSize,
+              transformations = inputTransformations,
+              throwable = IOException(errorMessage)
+            )
 
             return@launch
           }
         }
 
-        // 4. We have this image on disk, now we need to reload it from disk, apply transformations
-        // with size and notify all listeners.
-        val activeListeners = mutex.withLockNonCancellable {
-          val activeRequests = activeRequests.get(url)
-            ?: return@withLockNonCancellable null
+        // 3. We have this image on disk, now we need to reload it from disk, apply transformations
+        // with size and notify the listener.
+        val activeListener = ActiveListener(
+          imageListenerParam = imageListenerParam,
+          imageSize = imageSize,
+          transformations = inputTransformations
+        )
 
-          return@withLockNonCancellable activeRequests.consumeAllListeners()
-        }
+        withContext(NonCancellable) {
+          val resultBitmapDrawable = applyTransformationsToDrawable(
+            context = context,
+            lifecycle = context.getLifecycleFromContext(),
+            imageFile = imageFile,
+            activeListener = activeListener,
+            url = url,
+            cacheFileType = cacheFileType
+          )
 
-        if (activeListeners == null || activeListeners.isEmpty()) {
-          if (verboseLogs) {
-            Logger.e(TAG, "Failed to load '$url', activeListeners is null or empty")
-          }
+          if (resultBitmapDrawable == null) {
+            val transformationKeys = activeListener.transformations
+              .joinToString { transformation -> transformation.cacheKey }
 
-          return@launch
-        }
+            Logger.e(TAG, "Failed to apply transformations '$url' $imageSize, " +
+              "transformations: ${transformationKeys}, fromCache=$isFromCache")
 
-        withContext(NonCancellable) {
-          activeListeners.forEachIndexed { index, activeListener ->
-            val resultBitmapDrawable = applyTransformationsToDrawable(
+            handleFailure(
+              actualListener = activeListener.imageListenerParam,
               context = context,
-              lifecycle = context.getLifecycleFromContext(),
-              imageFile = imageFile,
-              activeListener = activeListener,
-              url = url,
-              cacheFileType = cacheFileType
+              imageSize = activeListener.imageSize,
+              transformations = activeListener.transformations,
+              throwable = IOException("applyTransformationsToDrawable() returned null")
             )
 
-            mutex.withLockNonCancellable {
-              val activeRequest = activeRequests.get(url)
-                ?: return@withLockNonCancellable
+            return@withContext
+          }
 
-              if (activeRequest.removeImageListenerParam(imageListenerParam)) {
-                activeRequests.remove(url)
+          launch(Dispatchers.Main) {
+            when (val listenerParam = activeListener.imageListenerParam) {
+              is ImageListenerParam.SimpleImageListener -> {
+                listenerParam.listener.onResponse(resultBitmapDrawable)
               }
-            }
-
-            if (resultBitmapDrawable == null) {
-              val transformationKeys = activeListener.transformations
-                .joinToString { transformation -> transformation.cacheKey }
-
-              Logger.e(TAG, "Failed to apply transformations '$url' $imageSize, " +
-                "transformations: ${transformationKeys}, fromCache=$isFromCache")
-
-              handleFailure(
-                actualListener = activeListener.imageListenerParam,
-                context = context,
-                imageSize = activeListener.imageSize,
-                transformations = activeListener.transformations,
-                throwable = IOException("applyTransformationsToDrawable() returned null")
-              )
-
-              return@forEachIndexed
-            }
-
-            launch(Dispatchers.Main) {
-              when (val listenerParam = activeListener.imageListenerParam) {
-                is ImageListenerParam.SimpleImageListener -> {
-                  listenerParam.listener.onResponse(resultBitmapDrawable)
-                }
-                is ImageListenerParam.FailureAwareImageListener -> {
-                  listenerParam.listener.onResponse(resultBitmapDrawable, isFromCache)
-                }
+              is ImageListenerParam.FailureAwareImageListener -> {
+                listenerParam.listener.onResponse(resultBitmapDrawable, isFromCache)
               }
             }
           }
         }
       } catch (error: Throwable) {
-        notifyListenersFailure(context, url, error)
+        handleFailure(
+          actualListener = imageListenerParam,
+          context = context,
+          imageSize = imageSize,
+          transformations = inputTransformations,
+          throwable = error
+        )
 
         if (error.isCoroutineCancellationException()) {
           return@launch
@@ -435,7 +402,8 @@ class ImageLoaderV2(
 
     return ImageLoaderRequestDisposableImpl(
       imageLoaderJob = job,
-      imageLoaderCompletableDeferred = completableDeferred
+      imageLoaderCompletableDeferred = completableDeferred,
+      requestPriority = requestPriority
     )
   }
 
@@ -473,7 +441,15 @@ class ImageLoaderV2(
       build()
     }
 
-    when (val result = imageLoader.execute(request)) {
+    val result = if (cacheFileType == CacheFileType.PostMediaThumbnail) {
+      PostListProfiler.measure(PostListTimings.Phase.ThumbnailLoad, PostListTimings.PostShape.NONE) {
+        imageLoader.execute(request)
+      }
+    } else {
+      imageLoader.execute(request)
+    }
+
+    when (result) {
       is SuccessResult -> {
         val bitmap = result.drawable.toBitmap()
         return BitmapDrawable(context.resources, bitmap)
@@ -491,48 +467,35 @@ class ImageLoaderV2(
     }
   }
 
-  private suspend fun notifyListenersFailure(
-    context: Context,
-    url: String,
-    error: Throwable
-  ) {
-    val listeners = mutex.withLockNonCancellable { activeRequests.get(url)?.consumeAllListeners() }
-    if (listeners == null) {
-      return
-    }
-
-    listeners.forEach { listener ->
-      handleFailure(
-        actualListener = listener.imageListenerParam,
-        context = context,
-        imageSize = listener.imageSize,
-        transformations = listener.transformations,
-        throwable = error
-      )
-    }
-  }
-
   private suspend fun loadFromNetworkInternal(
-    context: Context,
     url: String,
     cacheFileType: CacheFileType,
     imageSize: ImageSize,
+    requestPriority: RequestPriority
   ): AbstractFile? {
     BackgroundUtils.ensureBackgroundThread()
 
     try {
-      val resultFile = loadFromNetworkIntoFile(cacheFileType, url)
+      val ticket = imageLoadScheduler.enqueue(
+        key = "${cacheFileType.id}_${url}",
+        host = url.toHttpUrlOrNull()?.host ?: "",
+        priority = requestPriority.priority()
+      ) {
+        withContext(Dispatchers.IO) { loadFromNetworkIntoFile(cacheFileType, url) }
+      }
+
+      requestPriority.attachTicket(ticket)
+
+      val resultFile = ticket.await()
       if (resultFile == null) {
         return null
       }
 
       return fileManager.fromRawFile(resultFile)
     } catch (error: Throwable) {
-      notifyListenersFailure(context, url, error)
-
       if (error.isCoroutineCancellationException()) {
         Logger.e(TAG, "loadFromNetworkInternal() canceled '$url'")
-        return null
+        throw error
       }
 
       if (error.isNotFoundError() || error is BadContentTypeException || !error.isExceptionImportant()) {
@@ -540,9 +503,9 @@ class ImageLoaderV2(
       } else {
         Logger.e(TAG, "Failed to load '$url' $imageSize, fromCache=false", error)
       }
-    }
 
-    return null
+      throw error
+    }
   }
 
   private suspend fun handleFailure(
@@ -1318,14 +1281,30 @@ class ImageLoaderV2(
 
   interface ImageLoaderRequestDisposable {
     fun dispose()
+
+    /**
+     * Lower the priority when the view that requested the image is not visible anymore (but may
+     * become visible again soon) and raise it back once it's visible. Only network requests that
+     * are still waiting to be started are affected.
+     * */
+    fun changePriority(priority: ImageLoadPriority)
   }
 
   class ImageLoaderRequestDisposableImpl(
     private val imageLoaderJob: Job,
-    private val imageLoaderCompletableDeferred: CompletableDeferred<Unit>
+    private val imageLoaderCompletableDeferred: CompletableDeferred<Unit>,
+    private val requestPriority: RequestPriority? = null
   ) : ImageLoaderRequestDisposable {
     private val disposeFlag = AtomicBoolean(false)
 
+    override fun changePriority(priority: ImageLoadPriority) {
+      if (disposeFlag.get()) {
+        return
+      }
+
+      requestPriority?.changePriority(priority)
+    }
+
     override fun dispose() {
       if (disposeFlag.compareAndSet(false, true)) {
         if (imageLoaderJob.isActive) {
@@ -1435,36 +1414,22 @@ class ImageLoaderV2(
     val transformations: List<Transformation>
   )
 
-  private data class ActiveRequest(val url: String) {
-    private val listeners = hashSetOf<ActiveListener>()
+  class RequestPriority(initialPriority: ImageLoadPriority) {
+    private val priority = AtomicReference(initialPriority)
+    private val ticket = AtomicReference<ImageLoadScheduler.Ticket<File?>?>(null)
 
-    @Synchronized
-    fun addImageListener(
-      imageListenerParam: ImageListenerParam,
-      imageSize: ImageSize,
-      transformations: List<Transformation>
-    ): Boolean {
-      val alreadyHasActiveRequest = listeners.isNotEmpty()
-      listeners += ActiveListener(imageListenerParam, imageSize, transformations)
+    fun priority(): ImageLoadPriority = priority.get()
 
-      return alreadyHasActiveRequest
-    }
-
-    @Synchronized
-    fun consumeAllListeners(): Set<ActiveListener> {
-      val imageListenersCopy = listeners.toSet()
-      listeners.clear()
+    fun attachTicket(newTicket: ImageLoadScheduler.Ticket<File?>) {
+      ticket.set(newTicket)
 
-      return imageListenersCopy
+      // The priority could have been changed while we were checking the disk cache
+      newTicket.changePriority(priority.get())
     }
 
-    @Synchronized
-    fun removeImageListenerParam(imageListenerParam: ImageListenerParam): Boolean {
-      listeners.removeIfKt { activeListener ->
-        activeListener.imageListenerParam === imageListenerParam
-      }
-
-      return listeners.isEmpty()
+    fun changePriority(newPriority: ImageLoadPriority) {
+      priority.set(newPriority)
+      ticket.get()?.changePriority(newPriority)
     }
   }
 
@@ -5,26 +5,33 @@ import com.github.k1rakishou.chan.core.loader.LoaderResult
 import com.github.k1rakishou.chan.core.loader.OnDemandContentLoader
 import com.github.k1rakishou.chan.core.loader.PostLoaderData
 import com.github.k1rakishou.chan.core.loader.impl.external_media_service.ExternalMediaServiceExtraInfoFetcher
+import com.github.k1rakishou.chan.core.loader.impl.external_media_service.LinkExtraInfoBatchCollector
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.CommentPostLinkableSpan
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.CommentSpanUpdater
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.LinkInfoRequest
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.SpanUpdateBatch
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.utils.BackgroundUtils
-import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.processDataCollectionConcurrently
 import com.github.k1rakishou.common.putIfNotContainsLazy
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.media.GenericVideoId
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.LoaderType
-import kotlinx.coroutines.withTimeout
-import java.util.concurrent.TimeUnit
-
+import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository.MediaServiceKey
+
+/**
+ * Loads the titles and durations of media service (YouTube/SoundCloud/Streamable) links of post
+ * comments. The links of every post of a thread are collected (see [LinkExtraInfoBatchCollector])
+ * the first time a post of that thread gets bound so that they are requested in batches instead of
+ * one post at a time.
+ * */
 class PostExtraContentLoader(
   private val chanThreadManager: ChanThreadManager,
-  private val linkExtraInfoFetchers: List<ExternalMediaServiceExtraInfoFetcher>
+  private val linkExtraInfoFetchers: List<ExternalMediaServiceExtraInfoFetcher>,
+  private val linkExtraInfoBatchCollector: LinkExtraInfoBatchCollector
 ) : OnDemandContentLoader(LoaderType.PostExtraContentLoader) {
 
   override suspend fun isCached(postLoaderData: PostLoaderData): Boolean {
@@ -75,11 +82,10 @@ class PostExtraContentLoader(
       return rejected()
     }
 
-    val spanUpdateBatchResultList = processDataCollectionConcurrently(newSpans.entries) { (requestUrl, linkInfoRequest) ->
-      fetchExtraLinkInfo(requestUrl, linkInfoRequest)
-    }
+    val chanDescriptor = postLoaderData.postDescriptor.descriptor
+    collectThreadLinks(chanDescriptor)
 
-    val spanUpdateBatchList = spanUpdateBatchResultList.mapNotNull { it.valueOrNull() }
+    val spanUpdateBatchList = fetchExtraLinkInfo(chanDescriptor, newSpans)
     if (spanUpdateBatchList.isEmpty()) {
       // All results are errors
       return failed()
@@ -138,26 +144,77 @@ class PostExtraContentLoader(
   }
 
   private suspend fun fetchExtraLinkInfo(
-    requestUrl: String,
-    linkInfoRequest: LinkInfoRequest
-  ): ModularResult<SpanUpdateBatch> {
+    chanDescriptor: ChanDescriptor,
+    newSpans: Map<String, LinkInfoRequest>
+  ): List<SpanUpdateBatch> {
     BackgroundUtils.ensureBackgroundThread()
 
-    val fetcher = linkExtraInfoFetchers.firstOrNull { fetcher ->
-      fetcher.mediaServiceType == linkInfoRequest.mediaServiceType
+    val batchRequests = newSpans.map { (requestUrl, linkInfoRequest) ->
+      LinkExtraInfoBatchCollector.BatchRequest(linkInfoRequest.mediaServiceType, requestUrl, linkInfoRequest.videoId)
     }
 
-    if (fetcher == null) {
-      val error = IllegalStateException("Couldn't find fetcher for mediaServiceType ${linkInfoRequest.mediaServiceType}")
-      return ModularResult.error(error)
+    Logger.d(TAG, "fetchExtraLinkInfo($chanDescriptor) requests=${batchRequests.size}")
+    val results = linkExtraInfoBatchCollector.resolve(chanDescriptor, batchRequests)
+
+    return newSpans.mapNotNull { (requestUrl, linkInfoRequest) ->
+      val fetcher = linkExtraInfoFetchers.firstOrNull { fetcher ->
+        fetcher.mediaServiceType == linkInfoRequest.mediaServiceType
+      }
+
+      if (fetcher == null) {
+        Logger.e(TAG, "Couldn't find fetcher for mediaServiceType ${linkInfoRequest.mediaServiceType}")
+        return@mapNotNull null
+      }
+
+      val mediaServiceKey = MediaServiceKey(linkInfoRequest.videoId, linkInfoRequest.mediaServiceType)
+      val result = results[mediaServiceKey]
+        ?: return@mapNotNull null
+
+      return@mapNotNull fetcher.createSpanUpdateBatch(requestUrl, linkInfoRequest, result)
     }
+  }
+
+  /**
+   * Collects the links of the thread posts that are not loaded yet so that they get requested along
+   * with the links of the first post that is bound. Catalog posts only request their own links.
+   * */
+  private fun collectThreadLinks(chanDescriptor: ChanDescriptor) {
+    BackgroundUtils.ensureBackgroundThread()
 
-    return ModularResult.Try {
-      withTimeout(TimeUnit.MINUTES.toMillis(MAX_LINK_INFO_FETCH_TIMEOUT_SECONDS)) {
-        Logger.d(TAG, "fetchExtraLinkInfo('$requestUrl') fetcher=${fetcher.javaClass.simpleName}")
-        fetcher.fetch(requestUrl, linkInfoRequest).unwrap()
+    if (chanDescriptor !is ChanDescriptor.ThreadDescriptor) {
+      return
+    }
+
+    val chanThread = chanThreadManager.getChanThread(chanDescriptor)
+      ?: return
+    val posts = chanThread.getAll()
+
+    if (!linkExtraInfoBatchCollector.needsCollecting(chanDescriptor, posts.size)) {
+      return
+    }
+
+    val batchRequests = mutableListOf<LinkExtraInfoBatchCollector.BatchRequest>()
+
+    posts.forEach { post ->
+      if (chanThreadManager.isContentLoadedForLoader(post.postDescriptor, loaderType)) {
+        return@forEach
+      }
+
+      val comment = post.postComment.originalComment()
+      if (comment.isEmpty() || comment !is Spanned) {
+        return@forEach
+      }
+
+      createNewRequests(parseSpans(comment)).forEach { (requestUrl, linkInfoRequest) ->
+        batchRequests += LinkExtraInfoBatchCollector.BatchRequest(
+          linkInfoRequest.mediaServiceType,
+          requestUrl,
+          linkInfoRequest.videoId
+        )
       }
     }
+
+    linkExtraInfoBatchCollector.enqueue(chanDescriptor, batchRequests)
   }
 
   private fun createNewRequests(
@@ -259,6 +316,5 @@ class PostExtraContentLoader(
 
   companion object {
     private const val TAG = "PostExtraContentLoader"
-    private const val MAX_LINK_INFO_FETCH_TIMEOUT_SECONDS = 3L
   }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.core.loader.impl
 
+import android.os.SystemClock
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
@@ -13,6 +14,7 @@ import com.github.k1rakishou.chan.core.manager.ArchivesManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.PrefetchStateManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.isConnectionUnmetered
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.shouldLoadForNetworkType
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -23,6 +25,7 @@ import com.github.k1rakishou.model.data.post.LoaderType
 import com.github.k1rakishou.model.data.thread.ThreadDownload
 import dagger.Lazy
 import java.io.File
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.math.abs
 
 class PrefetchLoader(
@@ -34,6 +37,18 @@ class PrefetchLoader(
   private val threadDownloadManager: Lazy<ThreadDownloadManager>
 ) : OnDemandContentLoader(LoaderType.PrefetchLoader) {
   private val cacheFileType = CacheFileType.PostMediaFull
+  private val bindPosition = AtomicLong(0L)
+
+  private val prefetchPlanner = PrefetchPlanner<Prefetch>(
+    clock = { SystemClock.elapsedRealtime() },
+    cacheInfo = object : PrefetchPlanner.CacheInfo {
+      override fun currentSize(): Long = cacheHandler.get().getSize(cacheFileType)
+      override fun maxSize(): Long = cacheHandler.get().getMaxSize(cacheFileType)
+      override fun trimFraction(): Float = ChanSettings.diskCacheCleanupRemovePercent.get().toFloat() / 100f
+    },
+    downloader = { candidate, onFinished -> startPrefetch(candidate.payload, onFinished) },
+    isConnectionMetered = { !isConnectionUnmetered() }
+  )
 
   override suspend fun isCached(postLoaderData: PostLoaderData): Boolean {
     BackgroundUtils.ensureBackgroundThread()
@@ -94,59 +109,95 @@ class PrefetchLoader(
         return@forEach
       }
 
-      val cancelableDownload = chunkedMediaDownloader.get().enqueueDownloadFileRequest(
-        cacheFileType = cacheFileType,
-        mediaUrl = url,
-        extraInfo = DownloadRequestExtraInfo(isPrefetchDownload = true)
+      // The same file may be posted more than once, recycling one of the posts must not cancel the
+      // prefetch of the others
+      val candidate = PrefetchPlanner.Candidate(
+        key = "${postLoaderData.postDescriptor.serializeToString()}_${url}",
+        sizeBytes = prefetch.postImage.size,
+        position = bindPosition.incrementAndGet(),
+        payload = prefetch
       )
 
-      if (cancelableDownload == null) {
-        // Already cached or something like that
-        onPrefetchCompleted(prefetch.postImage)
-        return@forEach
-      }
+      prefetchPlanner.enqueue(candidate)
+      postLoaderData.addDisposeFunc { prefetchPlanner.cancel(candidate.key) }
+    }
+
+    // Always false for prefetches because there is nothing in the view that we need to update
+    // after doing a prefetch (Actually there is but we don't need to do notifyItemChanged for
+    // PostAdapter).
+    return succeeded(needUpdateView = false)
+  }
 
-      cancelableDownload.addCallback(object : FileCacheListener() {
-        override fun onStart(chunksCount: Int) {
-          super.onStart(chunksCount)
+  override fun cancelLoading(postLoaderData: PostLoaderData) {
+    // no-op
+  }
 
-          onPrefetchStarted(prefetch.postImage)
-        }
+  private fun startPrefetch(
+    prefetch: Prefetch,
+    onFinished: (downloadedBytes: Long, success: Boolean) -> Unit
+  ): PrefetchPlanner.DownloadHandle? {
+    val url = prefetch.postImage.imageUrl
+      ?: return null
+
+    val cancelableDownload = chunkedMediaDownloader.get().enqueueDownloadFileRequest(
+      cacheFileType = cacheFileType,
+      mediaUrl = url,
+      extraInfo = DownloadRequestExtraInfo(isPrefetchDownload = true)
+    )
+
+    if (cancelableDownload == null) {
+      // Already cached or something like that
+      onPrefetchCompleted(prefetch.postImage)
+      return null
+    }
 
-        override fun onProgress(chunkIndex: Int, downloaded: Long, total: Long) {
-          super.onProgress(chunkIndex, downloaded, total)
+    cancelableDownload.addCallback(object : FileCacheListener() {
+      override fun onStart(chunksCount: Int) {
+        super.onStart(chunksCount)
 
-          val progress = if (total != 0L) {
-            downloaded.toFloat() / total.toFloat()
-          } else {
-            0f
-          }
+        onPrefetchStarted(prefetch.postImage)
+      }
 
-          onPrefetchProgress(prefetch.postImage, abs(1f - progress))
-        }
+      override fun onProgress(chunkIndex: Int, downloaded: Long, total: Long) {
+        super.onProgress(chunkIndex, downloaded, total)
 
-        override fun onSuccess(file: File) {
-          chanThreadManager.get().setContentLoadedForLoader(post.postDescriptor, loaderType)
-          onPrefetchCompleted(prefetch.postImage)
+        val progress = if (total != 0L) {
+          downloaded.toFloat() / total.toFloat()
+        } else {
+          0f
         }
 
-        override fun onFail(exception: Exception?) = onPrefetchCompleted(prefetch.postImage)
-        override fun onNotFound() = onPrefetchCompleted(prefetch.postImage)
-        override fun onStop(file: File?) = onPrefetchCompleted(prefetch.postImage)
-        override fun onCancel() = onPrefetchCompleted(prefetch.postImage, false)
-      })
+        onPrefetchProgress(prefetch.postImage, abs(1f - progress))
+      }
 
-      postLoaderData.addDisposeFunc { cancelableDownload.cancelPrefetch() }
-    }
+      override fun onSuccess(file: File) {
+        chanThreadManager.get().setContentLoadedForLoader(prefetch.postImage.ownerPostDescriptor, loaderType)
+        onPrefetchCompleted(prefetch.postImage)
+        onFinished(file.length(), true)
+      }
 
-    // Always false for prefetches because there is nothing in the view that we need to update
-    // after doing a prefetch (Actually there is but we don't need to do notifyItemChanged for
-    // PostAdapter).
-    return succeeded(needUpdateView = false)
-  }
+      override fun onFail(exception: Exception?) {
+        onPrefetchCompleted(prefetch.postImage)
+        onFinished(0L, false)
+      }
 
-  override fun cancelLoading(postLoaderData: PostLoaderData) {
-    // no-op
+      override fun onNotFound() {
+        onPrefetchCompleted(prefetch.postImage)
+        onFinished(0L, false)
+      }
+
+      override fun onStop(file: File?) {
+        onPrefetchCompleted(prefetch.postImage)
+        onFinished(0L, false)
+      }
+
+      override fun onCancel() {
+        onPrefetchCompleted(prefetch.postImage, false)
+        onFinished(0L, false)
+      }
+    })
+
+    return PrefetchPlanner.DownloadHandle { cancelableDownload.cancelPrefetch() }
   }
 
   private fun tryGetPrefetchBatch(
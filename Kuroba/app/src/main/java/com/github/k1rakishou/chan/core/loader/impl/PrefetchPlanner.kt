@@ -0,0 +1,396 @@
+package com.github.k1rakishou.chan.core.loader.impl
+
+import androidx.annotation.GuardedBy
+
+/**
+ * Decides which of the requested media prefetches are started and in what order.
+ *
+ * - Every session (a session ends after [Config.sessionIdleTimeoutMs] without prefetch requests)
+ * has a byte budget which is smaller on metered connections. Prefetches that don't fit into what
+ * is left of the budget are not started.
+ * - At most [Config.maxInFlight] prefetches are running at the same time.
+ * - Queued prefetches are ranked by the distance from the viewport (the most recently bound post is
+ * at distance 0) plus the file size (every [Config.bytesPerDistanceUnit] bytes count as one post
+ * of distance) so that small files close to what the user is looking at are downloaded first.
+ * - Prefetching is paused when the download would make the cache trim delete files that were
+ * prefetched during the last [Config.recentPrefetchWindowMs] (there is no point in downloading
+ * files that will evict the files we have just downloaded and the user hasn't seen yet).
+ *
+ * Queued prefetches are re-evaluated whenever something is enqueued, canceled or finished.
+ * */
+class PrefetchPlanner<T>(
+  private val clock: Clock,
+  private val cacheInfo: CacheInfo,
+  private val downloader: Downloader<T>,
+  private val isConnectionMetered: () -> Boolean,
+  private val config: Config = Config()
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val queued = mutableListOf<Entry<T>>()
+  @GuardedBy("lock")
+  private val inFlight = linkedMapOf<String, Entry<T>>()
+  @GuardedBy("lock")
+  private val recentPrefetches = ArrayDeque<RecentPrefetch>()
+
+  @GuardedBy("lock")
+  private var viewportPosition = 0L
+  @GuardedBy("lock")
+  private var lastActivityTime: Long? = null
+  @GuardedBy("lock")
+  private var sessionDownloadedBytes = 0L
+  @GuardedBy("lock")
+  private var inFlightReservedBytes = 0L
+  @GuardedBy("lock")
+  private var recentPrefetchedBytes = 0L
+  @GuardedBy("lock")
+  private var pausedByCache = false
+  @GuardedBy("lock")
+  private var sequence = 0L
+  @GuardedBy("lock")
+  private var dispatching = false
+  @GuardedBy("lock")
+  private var dispatchRequested = false
+
+  init {
+    require(config.maxInFlight > 0) { "Bad maxInFlight: ${config.maxInFlight}" }
+    require(config.bytesPerDistanceUnit > 0) { "Bad bytesPerDistanceUnit: ${config.bytesPerDistanceUnit}" }
+  }
+
+  /**
+   * [Candidate.position] must grow as posts get bound so that the most recently bound post is the
+   * one closest to the viewport. Enqueueing a candidate with a key that is already queued or
+   * running only updates its position.
+   * */
+  fun enqueue(candidate: Candidate<T>) {
+    synchronized(lock) {
+      onActivityLocked()
+      viewportPosition = maxOf(viewportPosition, candidate.position)
+
+      if (inFlight.containsKey(candidate.key)) {
+        return@synchronized
+      }
+
+      val index = queued.indexOfFirst { entry -> entry.candidate.key == candidate.key }
+      if (index >= 0) {
+        queued[index] = Entry(candidate, queued[index].sequence)
+        return@synchronized
+      }
+
+      queued += Entry(candidate, sequence++)
+    }
+
+    dispatch()
+  }
+
+  /**
+   * Removes a queued prefetch or cancels a running one (the bytes it reserved are returned to the
+   * budget).
+   * */
+  fun cancel(key: String) {
+    val handle = synchronized(lock) {
+      if (queued.removeAll { entry -> entry.candidate.key == key }) {
+        return@synchronized null
+      }
+
+      val entry = inFlight.remove(key)
+        ?: return@synchronized null
+
+      inFlightReservedBytes -= entry.reservedBytes
+      entry.canceled = true
+
+      return@synchronized entry.handle
+    }
+
+    handle?.cancel()
+    dispatch()
+  }
+
+  /**
+   * Starts as many queued prefetches as the limits allow.
+   *
+   * Only one thread dispatches at a time. A dispatch requested meanwhile (by another thread or by a
+   * download that finished right away because the file is already cached) makes the dispatching
+   * thread do one more round instead of recursing, so a long run of cached files doesn't grow the
+   * stack.
+   * */
+  fun dispatch() {
+    synchronized(lock) {
+      if (dispatching) {
+        dispatchRequested = true
+        return
+      }
+
+      dispatching = true
+    }
+
+    var done = false
+
+    try {
+      while (!done) {
+        val toStart = synchronized(lock) {
+          dispatchRequested = false
+          return@synchronized takeStartableLocked()
+        }
+
+        // Downloads are started outside of the lock because the downloader may call us back right away
+        toStart.forEach { entry -> start(entry) }
+
+        done = synchronized(lock) {
+          if (dispatchRequested) {
+            return@synchronized false
+          }
+
+          dispatching = false
+          return@synchronized true
+        }
+      }
+    } finally {
+      if (!done) {
+        synchronized(lock) { dispatching = false }
+      }
+    }
+  }
+
+  fun snapshot(): Snapshot {
+    return synchronized(lock) {
+      Snapshot(
+        queuedKeys = queued.map { entry -> entry.candidate.key },
+        inFlightKeys = inFlight.keys.toList(),
+        sessionDownloadedBytes = sessionDownloadedBytes,
+        inFlightReservedBytes = inFlightReservedBytes,
+        pausedByCache = pausedByCache
+      )
+    }
+  }
+
+  private fun start(entry: Entry<T>) {
+    val handle = downloader.start(entry.candidate) { downloadedBytes, success ->
+      onFinished(entry, downloadedBytes, success)
+    }
+
+    if (handle == null) {
+      // Nothing to download (already cached)
+      onFinished(entry, 0L, true)
+      return
+    }
+
+    val canceled = synchronized(lock) {
+      entry.handle = handle
+      return@synchronized entry.canceled
+    }
+
+    if (canceled) {
+      handle.cancel()
+    }
+  }
+
+  private fun onFinished(entry: Entry<T>, downloadedBytes: Long, success: Boolean) {
+    synchronized(lock) {
+      if (inFlight[entry.candidate.key] !== entry) {
+        // Canceled (the reserved bytes were already returned) or already finished
+        return
+      }
+
+      inFlight.remove(entry.candidate.key)
+      inFlightReservedBytes -= entry.reservedBytes
+
+      if (success && downloadedBytes > 0) {
+        val now = clock.now()
+
+        sessionDownloadedBytes += downloadedBytes
+        recentPrefetches.addLast(RecentPrefetch(now, downloadedBytes))
+        recentPrefetchedBytes += downloadedBytes
+      }
+    }
+
+    dispatch()
+  }
+
+  @GuardedBy("lock")
+  private fun takeStartableLocked(): List<Entry<T>> {
+    val toStart = mutableListOf<Entry<T>>()
+    pruneRecentPrefetchesLocked(clock.now())
+
+    while (inFlight.size < config.maxInFlight) {
+      val entry = pickNextLocked()
+        ?: break
+
+      queued.remove(entry)
+
+      entry.reservedBytes = entry.estimatedSize()
+      inFlightReservedBytes += entry.reservedBytes
+      inFlight[entry.candidate.key] = entry
+
+      toStart += entry
+    }
+
+    return toStart
+  }
+
+  @GuardedBy("lock")
+  private fun pickNextLocked(): Entry<T>? {
+    if (queued.isEmpty()) {
+      pausedByCache = false
+      return null
+    }
+
+    val sessionBudget = if (isConnectionMetered()) {
+      config.meteredSessionBudgetBytes
+    } else {
+      config.unmeteredSessionBudgetBytes
+    }
+
+    val ranked = queued.sortedWith(
+      compareBy<Entry<T>> { entry -> cost(entry) }.thenBy { entry -> entry.sequence }
+    )
+
+    var blockedByCache = false
+
+    for (entry in ranked) {
+      val size = entry.estimatedSize()
+
+      if (sessionDownloadedBytes + inFlightReservedBytes + size > sessionBudget) {
+        // Smaller files may still fit
+        continue
+      }
+
+      if (wouldEvictRecentPrefetchesLocked(size)) {
+        blockedByCache = true
+        continue
+      }
+
+      pausedByCache = false
+      return entry
+    }
+
+    pausedByCache = blockedByCache
+    return null
+  }
+
+  /**
+   * Cache trim deletes the oldest files first, the files that were prefetched recently are the
+   * newest so they are only deleted when everything older is not enough to free the required
+   * space.
+   * */
+  @GuardedBy("lock")
+  private fun wouldEvictRecentPrefetchesLocked(size: Long): Boolean {
+    val currentSize = cacheInfo.currentSize()
+    val maxSize = cacheInfo.maxSize()
+    val projectedSize = currentSize + inFlightReservedBytes + size
+
+    if (projectedSize <= maxSize) {
+      return false
+    }
+
+    val sizeToFree = (projectedSize - maxSize) + (maxSize * cacheInfo.trimFraction()).toLong()
+    val evictableSize = (currentSize - recentPrefetchedBytes).coerceAtLeast(0L)
+
+    return evictableSize < sizeToFree
+  }
+
+  @GuardedBy("lock")
+  private fun cost(entry: Entry<T>): Double {
+    val distance = (viewportPosition - entry.candidate.position).coerceAtLeast(0L)
+    return distance.toDouble() + entry.estimatedSize().toDouble() / config.bytesPerDistanceUnit.toDouble()
+  }
+
+  @GuardedBy("lock")
+  private fun onActivityLocked() {
+    val now = clock.now()
+    val lastActivity = lastActivityTime
+
+    if (lastActivity != null && now - lastActivity > config.sessionIdleTimeoutMs) {
+      // New session
+      sessionDownloadedBytes = 0L
+    }
+
+    lastActivityTime = now
+  }
+
+  @GuardedBy("lock")
+  private fun pruneRecentPrefetchesLocked(now: Long) {
+    while (true) {
+      val oldest = recentPrefetches.firstOrNull()
+        ?: break
+
+      if (now - oldest.time < config.recentPrefetchWindowMs) {
+        break
+      }
+
+      recentPrefetches.removeFirst()
+      recentPrefetchedBytes -= oldest.bytes
+    }
+  }
+
+  private fun Entry<T>.estimatedSize(): Long {
+    if (candidate.sizeBytes <= 0L) {
+      return config.unknownFileSizeEstimateBytes
+    }
+
+    return candidate.sizeBytes
+  }
+
+  data class Candidate<T>(
+    val key: String,
+    val sizeBytes: Long,
+    val position: Long,
+    val payload: T
+  )
+
+  data class Config(
+    val unmeteredSessionBudgetBytes: Long = 512L * 1024 * 1024,
+    val meteredSessionBudgetBytes: Long = 64L * 1024 * 1024,
+    val maxInFlight: Int = 3,
+    val sessionIdleTimeoutMs: Long = 30L * 60 * 1000,
+    val recentPrefetchWindowMs: Long = 30L * 60 * 1000,
+    val bytesPerDistanceUnit: Long = 1024L * 1024,
+    val unknownFileSizeEstimateBytes: Long = 1024L * 1024
+  )
+
+  data class Snapshot(
+    val queuedKeys: List<String>,
+    val inFlightKeys: List<String>,
+    val sessionDownloadedBytes: Long,
+    val inFlightReservedBytes: Long,
+    val pausedByCache: Boolean
+  )
+
+  fun interface Clock {
+    fun now(): Long
+  }
+
+  interface CacheInfo {
+    fun currentSize(): Long
+    fun maxSize(): Long
+
+    /**
+     * Part of the max size that is additionally freed every time the cache is trimmed.
+     * */
+    fun trimFraction(): Float
+  }
+
+  fun interface Downloader<T> {
+    /**
+     * Returns null when there is nothing to download. [onFinished] must be called exactly once
+     * unless the download is canceled.
+     * */
+    fun start(candidate: Candidate<T>, onFinished: (downloadedBytes: Long, success: Boolean) -> Unit): DownloadHandle?
+  }
+
+  fun interface DownloadHandle {
+    fun cancel()
+  }
+
+  private class Entry<T>(
+    val candidate: Candidate<T>,
+    val sequence: Long
+  ) {
+    var reservedBytes = 0L
+    var handle: DownloadHandle? = null
+    var canceled = false
+  }
+
+  private class RecentPrefetch(val time: Long, val bytes: Long)
+}
@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.core.loader.impl
 
+import android.content.Context
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.loader.LoaderResult
 import com.github.k1rakishou.chan.core.loader.OnDemandContentLoader
@@ -7,38 +8,31 @@ import com.github.k1rakishou.chan.core.loader.PostLoaderData
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.ThirdEyeManager
 import com.github.k1rakishou.chan.core.site.SiteRequestModifier.Companion.addDefaultHeaders
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient.BooruImage
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeImageLookup
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeLookupCache
 import com.github.k1rakishou.chan.features.thirdeye.data.BooruSetting
 import com.github.k1rakishou.chan.utils.BackgroundUtils
-import com.github.k1rakishou.chan.utils.traverseJson
 import com.github.k1rakishou.common.AppConstants
-import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.common.StringUtils
 import com.github.k1rakishou.common.errorMessageOrClassName
-import com.github.k1rakishou.common.isJson
-import com.github.k1rakishou.common.isNotNullNorBlank
-import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.common.processDataCollectionConcurrently
-import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.model.data.post.ChanPostImageBuilder
 import com.github.k1rakishou.model.data.post.LoaderType
-import com.squareup.moshi.JsonReader
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.NonCancellable
-import kotlinx.coroutines.isActive
 import kotlinx.coroutines.supervisorScope
 import kotlinx.coroutines.withContext
-import okhttp3.HttpUrl
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
-import okhttp3.Request
-import java.util.*
-import java.util.concurrent.atomic.AtomicBoolean
+import java.io.File
 
 class ThirdEyeLoader(
+  private val appContext: Context,
   private val appConstants: AppConstants,
   private val _thirdEyeManager: Lazy<ThirdEyeManager>,
   private val _chanThreadManager: Lazy<ChanThreadManager>,
@@ -52,6 +46,18 @@ class ThirdEyeLoader(
   private val proxiedOkHttpClient: ProxiedOkHttpClient
     get() = _proxiedOkHttpClient.get()
 
+  private val thirdEyeImageLookup by lazy {
+    val booruClient = ThirdEyeBooruClient(
+      okHttpClientProvider = { proxiedOkHttpClient.okHttpClient() },
+      requestModifier = { requestBuilder -> requestBuilder.addDefaultHeaders(appConstants) }
+    )
+
+    return@lazy ThirdEyeImageLookup(
+      lookupCache = ThirdEyeLookupCache(File(appContext.filesDir, appConstants.thirdEyeLookupCacheFileName)),
+      booruClient = booruClient
+    )
+  }
+
   override suspend fun isCached(postLoaderData: PostLoaderData): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -172,7 +178,6 @@ class ThirdEyeLoader(
     // no-op
   }
 
-  @Suppress("MoveVariableDeclarationIntoWhen")
   private suspend fun CoroutineScope.processImages(
     catalogMode: Boolean,
     postDescriptor: PostDescriptor,
@@ -194,206 +199,57 @@ class ThirdEyeLoader(
         return@processDataCollectionConcurrently chanThreadManager.addImage(chanPostImage)
       }
 
-      for (booruSettings in boorusSettings) {
-        if (!isActive) {
-          break
-        }
-
-        val skipImageCompletely = AtomicBoolean(false)
+      val booruImage = thirdEyeImageLookup.lookup(boorusSettings, imageHash)
+      if (booruImage == null) {
+        // No image found on the external sites (or it has a banned tag). We still need to add
+        // info about it into the thirdEyeManager.
+        thirdEyeManager.addImage(
+          catalogMode = catalogMode,
+          postDescriptor = postDescriptor,
+          imageHash = imageHash,
+          chanPostImage = null
+        )
 
-        val thirdEyeImageResult = ModularResult.Try {
-          return@Try processSingleBooru(
-            booruSettings = booruSettings,
-            imageHash = imageHash,
-            postDescriptor = postImage.ownerPostDescriptor,
-            skipImageCompletely = skipImageCompletely
-          )
-        }
+        Logger.d(TAG, "Nothing found imageHash='$imageHash'")
+        return@processDataCollectionConcurrently false
+      }
 
-        if (skipImageCompletely.get()) {
-          break
-        }
+      val thirdEyeImage = createChanPostImage(
+        booruImage = booruImage,
+        imageHash = imageHash,
+        postDescriptor = postImage.ownerPostDescriptor
+      )
 
-        when (thirdEyeImageResult) {
-          is ModularResult.Error -> {
-            Logger.e(TAG, "processSingleBooru() unhandled error", thirdEyeImageResult.error)
-            continue
-          }
-          is ModularResult.Value -> {
-            val thirdEyeImage = thirdEyeImageResult.value
-              ?: continue
-
-            if (!chanThreadManager.addImage(thirdEyeImage)) {
-              return@processDataCollectionConcurrently false
-            }
-
-            thirdEyeManager.addImage(
-              catalogMode = catalogMode,
-              postDescriptor = postDescriptor,
-              imageHash = imageHash,
-              chanPostImage = thirdEyeImage
-            )
-
-            // Image found
-            Logger.d(TAG, "Found third eye image: ${thirdEyeImage}")
-
-            return@processDataCollectionConcurrently true
-          }
-        }
+      if (thirdEyeImage == null || !chanThreadManager.addImage(thirdEyeImage)) {
+        return@processDataCollectionConcurrently false
       }
 
-      // No image found on the external sites. We still need to add info about it into the
-      // thirdEyeManager.
       thirdEyeManager.addImage(
         catalogMode = catalogMode,
         postDescriptor = postDescriptor,
         imageHash = imageHash,
-        chanPostImage = null
+        chanPostImage = thirdEyeImage
       )
 
-      Logger.d(TAG, "Nothing found imageHash='$imageHash'")
-      return@processDataCollectionConcurrently false
+      // Image found
+      Logger.d(TAG, "Found third eye image: ${thirdEyeImage}")
+      return@processDataCollectionConcurrently true
     }
 
     return results.any { success -> success }
   }
 
-  private suspend fun processSingleBooru(
-    booruSettings: BooruSetting,
-    imageHash: String,
-    postDescriptor: PostDescriptor,
-    skipImageCompletely: AtomicBoolean
-  ): ChanPostImage? {
-    val imageByMd5EndpointUrl = booruSettings.formatFullImageByMd5EndpointUrl(imageHash)
-    if (imageByMd5EndpointUrl == null) {
-      Logger.e(TAG, "processSingleBooru() failed to format imageByMd5EndpointUrl. " +
-          "imageByMd5Endpoint=${booruSettings.apiEndpoint}, imageHash=${imageHash}")
-      return null
-    }
-
-    val request = Request.Builder()
-      .url(imageByMd5EndpointUrl)
-      .get()
-      .addDefaultHeaders(appConstants)
-      .build()
-
-    val response = proxiedOkHttpClient.okHttpClient().suspendCall(request)
-
-    if (!response.isSuccessful) {
-      Logger.e(TAG, "processSingleBooru() failure, url='$imageByMd5EndpointUrl', " +
-        "bad status: ${response.code}")
-      return null
-    }
-
-    val responseBody = response.body
-    if (responseBody == null) {
-      Logger.e(TAG, "processSingleBooru() failure, url='$imageByMd5EndpointUrl', " +
-        "no response body")
-      return null
-    }
-
-    val contentType = responseBody.contentType()
-    val isJsonContent = contentType?.isJson() ?: false
-    if (!isJsonContent) {
-      Logger.e(TAG, "processSingleBooru() failure, url='$imageByMd5EndpointUrl', " +
-        "bad content type: '$contentType'")
-      return null
-    }
-
-    val chanPostImage = responseBody.source().use { source ->
-      return@use JsonReader.of(source).use { jsonReader ->
-        return@use extractChanPostImageDataFromJson(
-          imageHash = imageHash,
-          imageByMd5EndpointUrl = imageByMd5EndpointUrl,
-          postDescriptor = postDescriptor,
-          booruSettings = booruSettings,
-          jsonReader = jsonReader,
-          skipImageCompletely = skipImageCompletely
-        )
-      }
-    }
-
-    Logger.d(TAG, "processSingleBooru() imageHash='$imageHash', " +
-      "url='$imageByMd5EndpointUrl', matches: ${chanPostImage != null}")
-    return chanPostImage
-  }
-
-  private fun extractChanPostImageDataFromJson(
+  private fun createChanPostImage(
+    booruImage: BooruImage,
     imageHash: String,
-    imageByMd5EndpointUrl: HttpUrl,
-    postDescriptor: PostDescriptor,
-    booruSettings: BooruSetting,
-    jsonReader: JsonReader,
-    skipImageCompletely: AtomicBoolean
+    postDescriptor: PostDescriptor
   ): ChanPostImage? {
-    if (skipImageCompletely.get()) {
-      return null
-    }
-
-    val fullUrlJsonKey = JsonKey(booruSettings.fullUrlJsonKey.lowercase(Locale.ENGLISH).trim())
-    val previewUrlJsonKey = JsonKey(booruSettings.previewUrlJsonKey.lowercase(Locale.ENGLISH).trim())
-    val fileSizeJsonKey = JsonKey(booruSettings.fileSizeJsonKey.lowercase(Locale.ENGLISH).trim())
-    val widthJsonKey = JsonKey(booruSettings.widthJsonKey.lowercase(Locale.ENGLISH).trim())
-    val heightJsonKey = JsonKey(booruSettings.heightJsonKey.lowercase(Locale.ENGLISH).trim())
-    val tagsJsonKey = JsonKey(booruSettings.tagsJsonKey.lowercase(Locale.ENGLISH).trim())
-
-    val namesToCheck = mutableMapOf<JsonKey, JsonValue?>(
-      fullUrlJsonKey to null,
-      previewUrlJsonKey to null,
-      fileSizeJsonKey to null,
-      widthJsonKey to null,
-      heightJsonKey to null,
-      tagsJsonKey to null,
-    )
-
-    try {
-      jsonReader.traverseJson(
-        visitor = { path, name, value -> visit(namesToCheck, path, name, value) },
-        currentName = null,
-        jsonDebugOutput = null
-      )
-    } catch (error: Throwable) {
-      Logger.e(TAG, "parseJsonInternal() imageByMd5EndpointUrl='$imageByMd5EndpointUrl', " +
-        "error: ${error.errorMessageOrClassName()}")
-      return null
-    }
-
-    if (namesToCheck.values.all { value -> value == null }) {
-      return null
-    }
-
-    if (skipImageCompletely.get()) {
-      return null
-    }
-
-    val tags = namesToCheck[tagsJsonKey]?.asList() ?: emptyList()
-    val bannedTagsAsSet = booruSettings.bannedTagsAsSet
-
-    for (imageTag in tags) {
-      if (imageTag.lowercase(Locale.ENGLISH) in bannedTagsAsSet) {
-        Logger.d(TAG, "extractChanPostImageDataFromJson() Found banned tag: '${imageTag}', " +
-          "skipping this image (imageHash='$imageHash')")
-
-        skipImageCompletely.set(true)
-        return null
-      }
-    }
-
-    val previewUrl = namesToCheck[previewUrlJsonKey]?.firstOrNull()?.toHttpUrlOrNull()
-    val fullUrl = namesToCheck[fullUrlJsonKey]?.firstOrNull()?.toHttpUrlOrNull()
-    val width = namesToCheck[widthJsonKey]?.firstOrNull()?.toIntOrNull()
-    val height = namesToCheck[heightJsonKey]?.firstOrNull()?.toIntOrNull()
-    val fileSize = namesToCheck[fileSizeJsonKey]?.firstOrNull()?.toLongOrNull()
-
-    if (fullUrl == null) {
-      Logger.e(TAG, "extractChanPostImageDataFromJson() imageByMd5EndpointUrl='$imageByMd5EndpointUrl', " +
-        "failed to extract fullUrl: '${namesToCheck[fullUrlJsonKey]?.firstOrNull()}'")
-      return null
-    }
+    val fullUrl = booruImage.fullUrl.toHttpUrlOrNull()
+    val previewUrl = booruImage.previewUrl.toHttpUrlOrNull()
 
-    if (previewUrl == null) {
-      Logger.e(TAG, "extractChanPostImageDataFromJson() imageByMd5EndpointUrl='$imageByMd5EndpointUrl', " +
-        "failed to extract previewUrl: '${namesToCheck[previewUrlJsonKey]?.firstOrNull()}'")
+    if (fullUrl == null || previewUrl == null) {
+      Logger.e(TAG, "createChanPostImage() bad urls, fullUrl='${booruImage.fullUrl}', " +
+        "previewUrl='${booruImage.previewUrl}'")
       return null
     }
 
@@ -405,177 +261,15 @@ class ThirdEyeLoader(
       fileHash(imageHash, false)
       serverFilename(imageHash)
 
-      val extension = StringUtils.extractFileNameExtension(fullUrl.encodedPath)
-      if (extension.isNotNullNorBlank() && extension.length < 5) {
-        extension(extension)
-      }
-
-      width?.let { w -> imageWidth(w) }
-      height?.let { h -> imageHeight(h) }
-      fileSize?.let { size -> imageSize(size) }
+      booruImage.extension?.let { extension -> extension(extension) }
+      booruImage.width?.let { w -> imageWidth(w) }
+      booruImage.height?.let { h -> imageHeight(h) }
+      booruImage.fileSize?.let { size -> imageSize(size) }
     }
 
     return chanPostImageBuilder.build()
   }
 
-  private fun visit(
-    namesToCheck: MutableMap<JsonKey, JsonValue?>,
-    path: List<String>,
-    name: String?,
-    value: String?
-  ) {
-    for (jsonKey in namesToCheck.keys) {
-      if (!jsonKey.compare(path, name)) {
-        continue
-      }
-
-      if (namesToCheck[jsonKey] is JsonValue.JsonString) {
-        val prevValue = (namesToCheck[jsonKey] as JsonValue.JsonString).value
-
-        val list = mutableListWithCap<String>(10).apply {
-          if (prevValue != null) {
-            add(prevValue)
-          }
-
-          if (value != null) {
-            add(value)
-          }
-        }
-
-        namesToCheck[jsonKey] = JsonValue.JsonArray(list)
-      } else if (namesToCheck[jsonKey] is JsonValue.JsonArray) {
-        if (value != null) {
-          (namesToCheck[jsonKey] as JsonValue.JsonArray).values.add(value)
-        }
-      } else {
-        namesToCheck[jsonKey] = JsonValue.JsonString(value)
-      }
-
-      return
-    }
-  }
-
-  class JsonKey(
-    private val keyFull: String
-  ) {
-    private val keyAsListOfKeys: List<String>
-
-    init {
-      if (!keyFull.contains('>')) {
-        keyAsListOfKeys = emptyList<String>()
-      } else {
-        keyAsListOfKeys = keyFull
-          .split('>')
-          .map { innerKey -> innerKey.trim().lowercase(Locale.ENGLISH) }
-      }
-    }
-
-    fun compare(path: List<String>, name: String?): Boolean {
-      if (keyAsListOfKeys.isEmpty()) {
-        return keyFull.equals(other = name, ignoreCase = true)
-      }
-
-      val pathFullSize = if (name != null) {
-        path.size + 1
-      } else {
-        path.size
-      }
-
-      if (keyAsListOfKeys.size != pathFullSize) {
-        return false
-      }
-
-      for (index in path.indices) {
-        val keyFromPath = path.getOrNull(index)
-          ?: return false
-        val keyFromList = keyAsListOfKeys.getOrNull(index)
-          ?: return false
-
-        if (keyFromList == "*") {
-          continue
-        }
-
-        if (!keyFromPath.equals(keyFromList, ignoreCase = true)) {
-          return false
-        }
-      }
-
-      if (name != null) {
-        val lastKey = keyAsListOfKeys.lastOrNull()
-          ?: return false
-
-        if (lastKey == "*") {
-          return true
-        }
-
-        if (!lastKey.equals(name, ignoreCase = true)) {
-          return false
-        }
-      }
-
-      return true
-    }
-
-    override fun equals(other: Any?): Boolean {
-      if (this === other) return true
-      if (javaClass != other?.javaClass) return false
-
-      other as JsonKey
-
-      if (keyFull != other.keyFull) return false
-
-      return true
-    }
-
-    override fun hashCode(): Int {
-      return keyFull.hashCode()
-    }
-
-    override fun toString(): String {
-      return "JsonKey(keyFull='$keyFull')"
-    }
-
-  }
-
-  sealed class JsonValue {
-
-    fun firstOrNull(): String? {
-      when (this) {
-        is JsonString -> {
-          return value
-        }
-        is JsonArray -> {
-          return values.firstOrNull()
-        }
-      }
-    }
-
-    fun asList(): List<String> {
-      when (this) {
-        is JsonString -> {
-          if (value == null) {
-            return emptyList()
-          }
-
-          return listOf<String>(value)
-        }
-        is JsonArray -> {
-          return values
-        }
-      }
-    }
-
-    fun asString(separator: String = ","): String? {
-      return when (this) {
-        is JsonString -> value
-        is JsonArray -> values.joinToString(separator = separator)
-      }
-    }
-
-    class JsonString(val value: String?) : JsonValue()
-    class JsonArray(val values: MutableList<String>) : JsonValue()
-  }
-
   companion object {
     private const val TAG = "ThirdEyeLoader"
   }
@@ -4,12 +4,10 @@ import android.graphics.Bitmap
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.ExtraLinkInfo
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.LinkInfoRequest
 import com.github.k1rakishou.chan.core.loader.impl.post_comment.SpanUpdateBatch
-import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.media.GenericVideoId
+import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
 import com.github.k1rakishou.model.data.video_service.MediaServiceType
-import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 
 /**
  * Base interface for link extra info fetcher.
@@ -24,7 +22,10 @@ abstract class ExternalMediaServiceExtraInfoFetcher {
 
   abstract suspend fun isCached(videoId: GenericVideoId): Boolean
 
-  abstract suspend fun fetch(requestUrl: String, linkInfoRequest: LinkInfoRequest): ModularResult<SpanUpdateBatch>
+  /**
+   * Shown next to the links of this media service
+   * */
+  abstract val icon: Bitmap
 
   /**
    * Whether this fetcher can parse the link
@@ -42,45 +43,35 @@ abstract class ExternalMediaServiceExtraInfoFetcher {
    * */
   abstract fun formatRequestUrl(link: String): String
 
-  protected open suspend fun genericFetch(
-    tag: String,
-    icon: Bitmap,
+  /**
+   * Makes the span update for the links of [linkInfoRequest] out of the extra info result that was
+   * requested (in a batch) by [LinkExtraInfoBatchCollector].
+   * */
+  fun createSpanUpdateBatch(
     requestUrl: String,
     linkInfoRequest: LinkInfoRequest,
-    mediaServiceLinkExtraContentRepository: MediaServiceLinkExtraContentRepository
-  ): ModularResult<SpanUpdateBatch> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    val getLinkExtraContentResult = mediaServiceLinkExtraContentRepository.getLinkExtraContent(
-      mediaServiceType,
-      requestUrl,
-      linkInfoRequest.videoId
-    )
-
-    return ModularResult.Try {
-      val extraLinkInfo = when (getLinkExtraContentResult) {
-        is ModularResult.Error -> ExtraLinkInfo.Error
-        is ModularResult.Value -> {
-          if (getLinkExtraContentResult.value.isValid()) {
-            ExtraLinkInfo.Success(
-              mediaServiceType,
-              getLinkExtraContentResult.value.videoTitle,
-              getLinkExtraContentResult.value.videoDuration
-            )
-          } else {
-            ExtraLinkInfo.NotAvailable
-          }
+    linkExtraContentResult: ModularResult<MediaServiceLinkExtraContent>
+  ): SpanUpdateBatch {
+    val extraLinkInfo = when (linkExtraContentResult) {
+      is ModularResult.Error -> ExtraLinkInfo.Error
+      is ModularResult.Value -> {
+        if (linkExtraContentResult.value.isValid()) {
+          ExtraLinkInfo.Success(
+            mediaServiceType,
+            linkExtraContentResult.value.videoTitle,
+            linkExtraContentResult.value.videoDuration
+          )
+        } else {
+          ExtraLinkInfo.NotAvailable
         }
       }
-
-      return@Try SpanUpdateBatch(
-        requestUrl,
-        extraLinkInfo,
-        linkInfoRequest.oldPostLinkableSpans,
-        icon
-      )
-    }.onError { error ->
-      Logger.e(tag, "Error while processing response", error)
     }
+
+    return SpanUpdateBatch(
+      requestUrl,
+      extraLinkInfo,
+      linkInfoRequest.oldPostLinkableSpans,
+      icon
+    )
   }
-}
\ No newline at end of file
+}
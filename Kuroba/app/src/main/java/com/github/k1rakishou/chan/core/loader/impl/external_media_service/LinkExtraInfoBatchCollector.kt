@@ -0,0 +1,223 @@
+package com.github.k1rakishou.chan.core.loader.impl.external_media_service
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.media.GenericVideoId
+import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
+import com.github.k1rakishou.model.data.video_service.MediaServiceType
+import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
+import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository.LinkExtraContentRequest
+import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository.MediaServiceKey
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+
+/**
+ * Collects the media service links of the posts of a thread as the thread gets loaded so that their
+ * extra info (title, duration) is requested in batches instead of one link at a time as the post
+ * cells get bound.
+ *
+ * Links are [enqueue]d without any requests being made. The first post that needs the info of its
+ * links ([resolve]) makes every link collected so far for its thread be requested at once (one
+ * batch per media service), the other posts then only wait for the results of that batch. Every
+ * link is requested at most once per thread. Failed requests (not negative results, those are
+ * cached by [MediaServiceLinkExtraContentRepository]) are requested again the next time a post that
+ * has the link is resolved.
+ * */
+class LinkExtraInfoBatchCollector(
+  private val scope: CoroutineScope,
+  private val dispatcher: CoroutineDispatcher = Dispatchers.IO,
+  private val maxDescriptors: Int = MAX_DESCRIPTORS,
+  private val fetchBatchFunc: suspend (MediaServiceType, List<LinkExtraContentRequest>) -> Map<GenericVideoId, ModularResult<MediaServiceLinkExtraContent>>
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val batches = object : LinkedHashMap<ChanDescriptor, DescriptorBatch>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ChanDescriptor, DescriptorBatch>?): Boolean {
+      return size > maxDescriptors
+    }
+  }
+
+  /**
+   * Returns true (only once per [postsCount]) when the posts of [chanDescriptor] need to be
+   * collected again because there are new posts.
+   * */
+  fun needsCollecting(chanDescriptor: ChanDescriptor, postsCount: Int): Boolean {
+    return synchronized(lock) {
+      val batch = getOrCreateBatch(chanDescriptor)
+      if (batch.collectedPostsCount == postsCount) {
+        return@synchronized false
+      }
+
+      batch.collectedPostsCount = postsCount
+      return@synchronized true
+    }
+  }
+
+  fun enqueue(chanDescriptor: ChanDescriptor, requests: Collection<BatchRequest>) {
+    if (requests.isEmpty()) {
+      return
+    }
+
+    synchronized(lock) {
+      val batch = getOrCreateBatch(chanDescriptor)
+
+      requests.forEach { request ->
+        val mediaServiceKey = request.mediaServiceKey()
+        if (!batch.results.containsKey(mediaServiceKey)) {
+          batch.pending.putIfAbsent(mediaServiceKey, request)
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for the extra info of [requests] requesting every pending link of [chanDescriptor] along
+   * with them if at least one of [requests] was not requested yet.
+   * */
+  suspend fun resolve(
+    chanDescriptor: ChanDescriptor,
+    requests: Collection<BatchRequest>
+  ): Map<MediaServiceKey, ModularResult<MediaServiceLinkExtraContent>> {
+    if (requests.isEmpty()) {
+      return emptyMap()
+    }
+
+    val (deferredResults, batch, batchToFetch) = synchronized(lock) {
+      val batch = getOrCreateBatch(chanDescriptor)
+      var needFlush = false
+
+      requests.forEach { request ->
+        val mediaServiceKey = request.mediaServiceKey()
+
+        // Failed requests are removed from the results once they are done
+        if (!batch.results.containsKey(mediaServiceKey)) {
+          batch.pending.putIfAbsent(mediaServiceKey, request)
+          needFlush = true
+        }
+      }
+
+      val batchToFetch = if (needFlush) {
+        val pendingRequests = batch.pending.values.toList()
+        batch.pending.clear()
+
+        pendingRequests.associateWith { request ->
+          val deferredResult = CompletableDeferred<ModularResult<MediaServiceLinkExtraContent>>()
+          batch.results[request.mediaServiceKey()] = deferredResult
+
+          return@associateWith deferredResult
+        }
+      } else {
+        emptyMap()
+      }
+
+      val deferredResults = requests.associate { request ->
+        val mediaServiceKey = request.mediaServiceKey()
+        return@associate mediaServiceKey to batch.results[mediaServiceKey]!!
+      }
+
+      return@synchronized Triple(deferredResults, batch, batchToFetch)
+    }
+
+    if (batchToFetch.isNotEmpty()) {
+      // Not bound to the caller so that the other posts waiting for this batch still get the results
+      // if the post that started it gets unbound
+      scope.launch(dispatcher) { fetchBatch(batch, batchToFetch) }
+    }
+
+    return deferredResults.mapValues { (_, deferredResult) -> deferredResult.await() }
+  }
+
+  fun clear(chanDescriptor: ChanDescriptor) {
+    synchronized(lock) { batches.remove(chanDescriptor) }
+  }
+
+  private suspend fun fetchBatch(
+    batch: DescriptorBatch,
+    batchToFetch: Map<BatchRequest, CompletableDeferred<ModularResult<MediaServiceLinkExtraContent>>>
+  ) {
+    val requestsByService = batchToFetch.keys.groupBy { request -> request.mediaServiceType }
+
+    coroutineScope {
+      requestsByService.entries
+        .map { (mediaServiceType, requests) ->
+          async {
+            val results = try {
+              fetchBatchFunc(
+                mediaServiceType,
+                requests.map { request -> LinkExtraContentRequest(request.requestUrl, request.videoId) }
+              )
+            } catch (error: Throwable) {
+              Logger.e(TAG, "fetchBatch($mediaServiceType, ${requests.size}) error", error)
+              emptyMap()
+            }
+
+            requests.forEach { request ->
+              val result = results[request.videoId]
+                ?: ModularResult.error(IllegalStateException("No result for ${request.requestUrl}"))
+
+              val deferredResult = batchToFetch[request]!!
+
+              if (result is ModularResult.Error) {
+                synchronized(lock) {
+                  if (batch.results[request.mediaServiceKey()] === deferredResult) {
+                    batch.results.remove(request.mediaServiceKey())
+                  }
+                }
+              }
+
+              deferredResult.complete(result)
+            }
+          }
+        }
+        .awaitAll()
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun getOrCreateBatch(chanDescriptor: ChanDescriptor): DescriptorBatch {
+    return batches.getOrPut(chanDescriptor) { DescriptorBatch() }
+  }
+
+  private class DescriptorBatch {
+    var collectedPostsCount = -1
+    // Collected but not requested yet
+    val pending = linkedMapOf<MediaServiceKey, BatchRequest>()
+    // Requested, either being fetched or done
+    val results = hashMapOf<MediaServiceKey, CompletableDeferred<ModularResult<MediaServiceLinkExtraContent>>>()
+  }
+
+  data class BatchRequest(
+    val mediaServiceType: MediaServiceType,
+    val requestUrl: String,
+    val videoId: GenericVideoId
+  ) {
+    fun mediaServiceKey(): MediaServiceKey = MediaServiceKey(videoId, mediaServiceType)
+  }
+
+  companion object {
+    private const val TAG = "LinkExtraInfoBatchCollector"
+    private const val MAX_DESCRIPTORS = 8
+
+    @JvmStatic
+    fun create(
+      scope: CoroutineScope,
+      mediaServiceLinkExtraContentRepository: MediaServiceLinkExtraContentRepository
+    ): LinkExtraInfoBatchCollector {
+      return LinkExtraInfoBatchCollector(
+        scope = scope,
+        fetchBatchFunc = { mediaServiceType, requests ->
+          mediaServiceLinkExtraContentRepository.getLinkExtraContentBatch(mediaServiceType, requests)
+        }
+      )
+    }
+  }
+}
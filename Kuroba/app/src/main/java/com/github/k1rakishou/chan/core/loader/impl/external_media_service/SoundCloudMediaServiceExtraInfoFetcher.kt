@@ -1,15 +1,12 @@
 package com.github.k1rakishou.chan.core.loader.impl.external_media_service
 
+import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
-import com.github.k1rakishou.chan.core.loader.impl.post_comment.ExtraLinkInfo
-import com.github.k1rakishou.chan.core.loader.impl.post_comment.LinkInfoRequest
-import com.github.k1rakishou.chan.core.loader.impl.post_comment.SpanUpdateBatch
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.getRes
 import com.github.k1rakishou.chan.utils.BackgroundUtils
-import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.model.data.media.GenericVideoId
 import com.github.k1rakishou.model.data.media.SoundCloudVideoId
 import com.github.k1rakishou.model.data.video_service.MediaServiceType
@@ -23,6 +20,9 @@ internal class SoundCloudMediaServiceExtraInfoFetcher(
   override val mediaServiceType: MediaServiceType
     get() = MediaServiceType.SoundCloud
 
+  override val icon: Bitmap
+    get() = soundCloudIcon
+
   override fun isEnabled(): Boolean {
     return AppModuleAndroidUtils.shouldLoadForNetworkType(
       ChanSettings.parseSoundCloudTitlesAndDuration.get()
@@ -36,32 +36,6 @@ internal class SoundCloudMediaServiceExtraInfoFetcher(
       .unwrap()
   }
 
-  override suspend fun fetch(
-    requestUrl: String,
-    linkInfoRequest: LinkInfoRequest
-  ): ModularResult<SpanUpdateBatch> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!isEnabled()) {
-      return ModularResult.value(
-        SpanUpdateBatch(
-          requestUrl,
-          ExtraLinkInfo.Success(mediaServiceType, null, null),
-          linkInfoRequest.oldPostLinkableSpans,
-          soundCloudIcon
-        )
-      )
-    }
-
-    return genericFetch(
-      TAG,
-      soundCloudIcon,
-      requestUrl,
-      linkInfoRequest,
-      mediaServiceLinkExtraContentRepository
-    )
-  }
-
   // set of tracks (we can only get title)
   // https://soundcloud.com/eoinlyness/sets/isolation-tapes
 
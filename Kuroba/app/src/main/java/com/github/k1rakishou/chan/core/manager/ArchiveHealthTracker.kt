@@ -0,0 +1,228 @@
+package com.github.k1rakishou.chan.core.manager
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+
+/**
+ * Remembers how the archives behaved recently (for the lifetime of the process) so that the
+ * archives that are most likely to have a deleted thread are asked first and the ones that are
+ * currently down are not asked at all.
+ *
+ * Per archive there is a latency and an error rate (both exponentially weighted moving averages)
+ * and a circuit breaker: after [circuitBreakerFailuresThreshold] failures in a row the archive is
+ * skipped for [circuitBreakerCooldownMs], after that a single probe is let through and its result
+ * decides whether the circuit is closed or opened again. Per archive and board there is a moving
+ * average of how often the thread was found there.
+ * */
+class ArchiveHealthTracker(
+  private val circuitBreakerFailuresThreshold: Int = CIRCUIT_BREAKER_FAILURES_THRESHOLD,
+  private val circuitBreakerCooldownMs: Long = CIRCUIT_BREAKER_COOLDOWN_MS,
+  private val currentTimeMillisFunc: () -> Long = { System.currentTimeMillis() }
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val archiveStates = hashMapOf<String, ArchiveState>()
+  @GuardedBy("lock")
+  private val boardHitRates = hashMapOf<BoardKey, Double>()
+
+  init {
+    require(circuitBreakerFailuresThreshold > 0) { "Bad circuitBreakerFailuresThreshold: $circuitBreakerFailuresThreshold" }
+    require(circuitBreakerCooldownMs > 0) { "Bad circuitBreakerCooldownMs: $circuitBreakerCooldownMs" }
+  }
+
+  /**
+   * Must be called before probing an archive. Returns false when the circuit of the archive is open
+   * (or half-open with the test probe already in flight), in this case the archive must be skipped.
+   * Every successful call must be followed by one of [onProbeFinished], [onProbeFailed] or
+   * [onProbeCancelled].
+   * */
+  fun tryAcquireProbe(archiveDescriptor: ArchiveDescriptor): Boolean {
+    return synchronized(lock) {
+      val archiveState = archiveState(archiveDescriptor)
+
+      when (circuitStateLocked(archiveState)) {
+        CircuitState.Closed -> return@synchronized true
+        CircuitState.Open -> return@synchronized false
+        CircuitState.HalfOpen -> {
+          if (archiveState.halfOpenProbeInFlight) {
+            return@synchronized false
+          }
+
+          archiveState.halfOpenProbeInFlight = true
+          return@synchronized true
+        }
+      }
+    }
+  }
+
+  /**
+   * The archive responded, [found] is whether it has the thread.
+   * */
+  fun onProbeFinished(
+    archiveDescriptor: ArchiveDescriptor,
+    boardDescriptor: BoardDescriptor,
+    latencyMs: Long,
+    found: Boolean
+  ) {
+    synchronized(lock) {
+      val archiveState = archiveState(archiveDescriptor)
+      archiveState.halfOpenProbeInFlight = false
+      archiveState.consecutiveFailures = 0
+      archiveState.circuitOpenedAt = null
+      archiveState.errorRate = ewma(archiveState.errorRate, 0.0)
+      archiveState.latencyMs = ewma(archiveState.latencyMs, latencyMs.toDouble())
+
+      val boardKey = BoardKey(archiveDescriptor.domain, boardDescriptor)
+      boardHitRates[boardKey] = ewma(boardHitRates[boardKey], if (found) 1.0 else 0.0)
+    }
+  }
+
+  /**
+   * The archive couldn't be asked (network error, timeout, bad response etc.).
+   * */
+  fun onProbeFailed(archiveDescriptor: ArchiveDescriptor, latencyMs: Long) {
+    synchronized(lock) {
+      val archiveState = archiveState(archiveDescriptor)
+      val wasHalfOpen = archiveState.halfOpenProbeInFlight
+
+      archiveState.halfOpenProbeInFlight = false
+      archiveState.errorRate = ewma(archiveState.errorRate, 1.0)
+      archiveState.latencyMs = ewma(archiveState.latencyMs, latencyMs.toDouble())
+      ++archiveState.consecutiveFailures
+
+      if (wasHalfOpen || archiveState.consecutiveFailures >= circuitBreakerFailuresThreshold) {
+        archiveState.circuitOpenedAt = currentTimeMillisFunc()
+      }
+    }
+  }
+
+  /**
+   * The probe was cancelled because another archive was faster, nothing is known about the archive.
+   * */
+  fun onProbeCancelled(archiveDescriptor: ArchiveDescriptor) {
+    synchronized(lock) {
+      archiveState(archiveDescriptor).halfOpenProbeInFlight = false
+    }
+  }
+
+  fun health(archiveDescriptor: ArchiveDescriptor): ArchiveHealth {
+    return synchronized(lock) {
+      val archiveState = archiveState(archiveDescriptor)
+
+      return@synchronized ArchiveHealth(
+        latencyMs = archiveState.latencyMs,
+        errorRate = archiveState.errorRate ?: 0.0,
+        circuitState = circuitStateLocked(archiveState)
+      )
+    }
+  }
+
+  fun boardHitRate(archiveDescriptor: ArchiveDescriptor, boardDescriptor: BoardDescriptor): Double {
+    return synchronized(lock) {
+      boardHitRates[BoardKey(archiveDescriptor.domain, boardDescriptor)] ?: UNKNOWN_BOARD_HIT_RATE
+    }
+  }
+
+  /**
+   * Archives that found threads of [boardDescriptor] recently go first, then the healthier ones
+   * and then the faster ones. Archives with the open circuit go last. Archives nothing is known
+   * about keep their original order.
+   * */
+  fun sortByPreference(
+    boardDescriptor: BoardDescriptor,
+    archiveDescriptors: List<ArchiveDescriptor>
+  ): List<ArchiveDescriptor> {
+    return synchronized(lock) {
+      return@synchronized archiveDescriptors
+        .map { archiveDescriptor ->
+          val archiveState = archiveState(archiveDescriptor)
+          val boardHitRate = boardHitRates[BoardKey(archiveDescriptor.domain, boardDescriptor)]
+
+          return@map archiveDescriptor to ArchiveScore(
+            circuitOpen = circuitStateLocked(archiveState) == CircuitState.Open,
+            boardHitRate = boardHitRate ?: UNKNOWN_BOARD_HIT_RATE,
+            errorRate = archiveState.errorRate ?: 0.0,
+            latencyMs = archiveState.latencyMs ?: UNKNOWN_LATENCY_MS
+          )
+        }
+        .sortedWith(
+          compareBy<Pair<ArchiveDescriptor, ArchiveScore>> { (_, score) -> score.circuitOpen }
+            .thenByDescending { (_, score) -> score.boardHitRate }
+            .thenBy { (_, score) -> score.errorRate }
+            .thenBy { (_, score) -> score.latencyMs }
+        )
+        .map { (archiveDescriptor, _) -> archiveDescriptor }
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun archiveState(archiveDescriptor: ArchiveDescriptor): ArchiveState {
+    return archiveStates.getOrPut(archiveDescriptor.domain) { ArchiveState() }
+  }
+
+  @GuardedBy("lock")
+  private fun circuitStateLocked(archiveState: ArchiveState): CircuitState {
+    val circuitOpenedAt = archiveState.circuitOpenedAt
+      ?: return CircuitState.Closed
+
+    val now = currentTimeMillisFunc()
+
+    // circuitOpenedAt in the future means that the system clock was changed
+    if (now - circuitOpenedAt >= circuitBreakerCooldownMs || circuitOpenedAt > now) {
+      return CircuitState.HalfOpen
+    }
+
+    return CircuitState.Open
+  }
+
+  private fun ewma(prev: Double?, value: Double): Double {
+    if (prev == null) {
+      return value
+    }
+
+    return prev + EWMA_ALPHA * (value - prev)
+  }
+
+  private class ArchiveState {
+    var latencyMs: Double? = null
+    var errorRate: Double? = null
+    var consecutiveFailures = 0
+    var circuitOpenedAt: Long? = null
+    var halfOpenProbeInFlight = false
+  }
+
+  private data class BoardKey(
+    val archiveDomain: String,
+    val boardDescriptor: BoardDescriptor
+  )
+
+  private class ArchiveScore(
+    val circuitOpen: Boolean,
+    val boardHitRate: Double,
+    val errorRate: Double,
+    val latencyMs: Double
+  )
+
+  data class ArchiveHealth(
+    val latencyMs: Double?,
+    val errorRate: Double,
+    val circuitState: CircuitState
+  )
+
+  enum class CircuitState {
+    Closed,
+    Open,
+    HalfOpen
+  }
+
+  companion object {
+    private const val EWMA_ALPHA = 0.3
+    private const val UNKNOWN_BOARD_HIT_RATE = 0.5
+    private const val UNKNOWN_LATENCY_MS = 1000.0
+
+    private const val CIRCUIT_BREAKER_FAILURES_THRESHOLD = 3
+    private const val CIRCUIT_BREAKER_COOLDOWN_MS = 60_000L
+  }
+}
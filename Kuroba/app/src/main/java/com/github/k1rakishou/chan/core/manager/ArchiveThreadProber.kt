@@ -0,0 +1,119 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.isJson
+import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.squareup.moshi.JsonReader
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.IOException
+
+/**
+ * Asks a single archive whether it has a thread. Uses the thread json endpoint but only reads the
+ * first key of the response: the thread number when the archive has the thread, "error" when it
+ * doesn't (some archives respond with 200 and an error object instead of 404). The rest of the
+ * response (the posts of the thread) is never parsed.
+ *
+ * The response is read on [Dispatchers.IO] because the callers (ThreadController) run on the main
+ * thread.
+ * */
+class ArchiveThreadProber(
+  private val okHttpClientProvider: () -> OkHttpClient,
+  private val requestModifier: (Request.Builder) -> Unit,
+  // Returns null for the archives that have no such endpoint
+  private val threadEndpointFunc: (ArchiveDescriptor, ChanDescriptor.ThreadDescriptor) -> HttpUrl?
+) {
+
+  suspend fun probe(
+    archiveDescriptor: ArchiveDescriptor,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ): ProbeResult {
+    return withContext(Dispatchers.IO) { probeInternal(archiveDescriptor, threadDescriptor) }
+  }
+
+  private suspend fun probeInternal(
+    archiveDescriptor: ArchiveDescriptor,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ): ProbeResult {
+    val threadEndpoint = threadEndpointFunc(archiveDescriptor, threadDescriptor)
+      ?: return ProbeResult.Unsupported
+
+    val requestBuilder = Request.Builder()
+      .url(threadEndpoint)
+      .get()
+
+    requestModifier(requestBuilder)
+
+    val response = try {
+      okHttpClientProvider().suspendCall(requestBuilder.build())
+    } catch (error: IOException) {
+      Logger.e(TAG, "probe() failure, url='$threadEndpoint', error: ${error.errorMessageOrClassName()}")
+      return ProbeResult.Failure
+    }
+
+    return response.use {
+      if (response.code == 404) {
+        return@use ProbeResult.NotFound
+      }
+
+      if (!response.isSuccessful) {
+        Logger.e(TAG, "probe() failure, url='$threadEndpoint', bad status: ${response.code}")
+        return@use ProbeResult.Failure
+      }
+
+      val responseBody = response.body
+      if (responseBody == null || responseBody.contentType()?.isJson() != true) {
+        Logger.e(TAG, "probe() failure, url='$threadEndpoint', " +
+          "bad content type: '${responseBody?.contentType()}'")
+        return@use ProbeResult.Failure
+      }
+
+      val firstKey = try {
+        JsonReader.of(responseBody.source()).use { jsonReader ->
+          if (jsonReader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            return@use null
+          }
+
+          jsonReader.beginObject()
+
+          if (!jsonReader.hasNext()) {
+            return@use null
+          }
+
+          return@use jsonReader.nextName()
+        }
+      } catch (error: IOException) {
+        Logger.e(TAG, "probe() failure, url='$threadEndpoint', error: ${error.errorMessageOrClassName()}")
+        return@use ProbeResult.Failure
+      }
+
+      return@use when (firstKey) {
+        threadDescriptor.threadNo.toString() -> ProbeResult.Found
+        ERROR_KEY -> ProbeResult.NotFound
+        else -> {
+          Logger.e(TAG, "probe() failure, url='$threadEndpoint', unexpected first key: '$firstKey'")
+          ProbeResult.Failure
+        }
+      }
+    }
+  }
+
+  enum class ProbeResult {
+    Found,
+    NotFound,
+    Failure,
+    // The archive can't be probed, nothing is known about it
+    Unsupported
+  }
+
+  companion object {
+    private const val TAG = "ArchiveThreadProber"
+    private const val ERROR_KEY = "error"
+  }
+}
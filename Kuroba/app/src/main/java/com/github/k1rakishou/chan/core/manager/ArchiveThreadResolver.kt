@@ -0,0 +1,138 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.chan.core.manager.ArchiveThreadProber.ProbeResult
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Finds an archive that has a (deleted) thread by asking all the archives that support the board
+ * at the same time instead of making the user try them one by one. At most [maxConcurrentProbes]
+ * archives are asked at once, in the order of [ArchiveHealthTracker.sortByPreference], and the
+ * first archive that has the thread wins, the probes of the rest of them are cancelled. Archives
+ * with the open circuit breaker are skipped.
+ * */
+class ArchiveThreadResolver(
+  private val healthTracker: ArchiveHealthTracker,
+  private val threadProber: ArchiveThreadProber,
+  private val maxConcurrentProbes: Int = MAX_CONCURRENT_PROBES,
+  private val probeTimeoutMs: Long = PROBE_TIMEOUT_MS
+) {
+
+  init {
+    require(maxConcurrentProbes > 0) { "Bad maxConcurrentProbes: $maxConcurrentProbes" }
+    require(probeTimeoutMs > 0) { "Bad probeTimeoutMs: $probeTimeoutMs" }
+  }
+
+  fun sortByPreference(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    archiveDescriptors: List<ArchiveDescriptor>
+  ): List<ArchiveDescriptor> {
+    return healthTracker.sortByPreference(threadDescriptor.boardDescriptor, archiveDescriptors)
+  }
+
+  /**
+   * Returns null when none of the [archiveDescriptors] has the thread or when none of them could
+   * be asked.
+   * */
+  suspend fun resolve(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    archiveDescriptors: List<ArchiveDescriptor>
+  ): ArchiveDescriptor? {
+    if (archiveDescriptors.isEmpty()) {
+      return null
+    }
+
+    val sortedArchiveDescriptors = sortByPreference(threadDescriptor, archiveDescriptors)
+
+    return coroutineScope {
+      val semaphore = Semaphore(maxConcurrentProbes)
+      val resultsChannel = Channel<Pair<ArchiveDescriptor, ProbeResult?>>(capacity = sortedArchiveDescriptors.size)
+
+      // Semaphore is fair so the archives are asked in the order they were launched in. The result
+      // is sent before the permit is released so that the next archive is not asked when this one
+      // already has the thread.
+      val jobs = sortedArchiveDescriptors.map { archiveDescriptor ->
+        launch {
+          semaphore.withPermit {
+            val probeResult = probe(archiveDescriptor, threadDescriptor)
+            resultsChannel.send(archiveDescriptor to probeResult)
+          }
+        }
+      }
+
+      var foundArchiveDescriptor: ArchiveDescriptor? = null
+
+      for (index in sortedArchiveDescriptors.indices) {
+        val (archiveDescriptor, probeResult) = resultsChannel.receive()
+
+        if (probeResult == ProbeResult.Found) {
+          foundArchiveDescriptor = archiveDescriptor
+          break
+        }
+      }
+
+      // Cancels the http calls of the archives that haven't responded yet
+      jobs.forEach { job -> job.cancel() }
+
+      Logger.d(TAG, "resolve(${threadDescriptor}) archives=${sortedArchiveDescriptors.size}, " +
+        "found=${foundArchiveDescriptor}")
+
+      return@coroutineScope foundArchiveDescriptor
+    }
+  }
+
+  /**
+   * Returns null when the archive was skipped because of the open circuit breaker.
+   * */
+  private suspend fun probe(
+    archiveDescriptor: ArchiveDescriptor,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ): ProbeResult? {
+    if (!healthTracker.tryAcquireProbe(archiveDescriptor)) {
+      Logger.d(TAG, "probe() skipping ${archiveDescriptor}, circuit is open")
+      return null
+    }
+
+    val startTime = System.currentTimeMillis()
+
+    val probeResult = try {
+      withTimeoutOrNull(probeTimeoutMs) { threadProber.probe(archiveDescriptor, threadDescriptor) }
+        ?: ProbeResult.Failure
+    } catch (error: CancellationException) {
+      healthTracker.onProbeCancelled(archiveDescriptor)
+      throw error
+    }
+
+    val latencyMs = System.currentTimeMillis() - startTime
+
+    when (probeResult) {
+      ProbeResult.Found,
+      ProbeResult.NotFound -> {
+        healthTracker.onProbeFinished(
+          archiveDescriptor = archiveDescriptor,
+          boardDescriptor = threadDescriptor.boardDescriptor,
+          latencyMs = latencyMs,
+          found = probeResult == ProbeResult.Found
+        )
+      }
+      ProbeResult.Failure -> healthTracker.onProbeFailed(archiveDescriptor, latencyMs)
+      ProbeResult.Unsupported -> healthTracker.onProbeCancelled(archiveDescriptor)
+    }
+
+    return probeResult
+  }
+
+  companion object {
+    private const val TAG = "ArchiveThreadResolver"
+    private const val MAX_CONCURRENT_PROBES = 3
+    private const val PROBE_TIMEOUT_MS = 10_000L
+  }
+}
@@ -88,6 +88,10 @@ class ChanThreadManager(
     }
   }
 
+  fun cancelCatalogLookAhead(catalogDescriptor: ChanDescriptor.ICatalogDescriptor) {
+    chanThreadLoaderCoordinator.cancelCatalogLookAhead(catalogDescriptor)
+  }
+
   fun addRequestedChanDescriptor(chanDescriptor: ChanDescriptor): Boolean {
     BackgroundUtils.ensureMainThread()
 
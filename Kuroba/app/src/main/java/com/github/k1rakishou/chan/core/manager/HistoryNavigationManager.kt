@@ -2,7 +2,8 @@ package com.github.k1rakishou.chan.core.manager
 
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
-import com.github.k1rakishou.chan.core.base.RendezvousCoroutineExecutor
+import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
+import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
 import com.github.k1rakishou.chan.core.helper.OneShotRunnable
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.mutableListWithCap
@@ -10,6 +11,7 @@ import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.navigation.NavHistoryElement
 import com.github.k1rakishou.model.data.navigation.NavHistoryElementInfo
+import com.github.k1rakishou.model.data.navigation.NavHistoryOp
 import com.github.k1rakishou.model.repository.HistoryNavigationRepository
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
@@ -34,11 +36,22 @@ class HistoryNavigationManager(
   val navigationStackUpdatesFlow: SharedFlow<UpdateEvent>
     get() = _navigationStackUpdatesFlow.asSharedFlow()
 
-  private val rendezvousCoroutineExecutor = RendezvousCoroutineExecutor(appScope)
+  // Changes of the navigation stack are not persisted by rewriting the whole stack, instead they
+  // are recorded as ops (see NavHistoryOp) that are appended into the op log in batches (at most
+  // once per OP_LOG_FLUSH_DEBOUNCE_MS) and then, once there are enough of them, compacted back into
+  // the stack tables.
+  private val opLogFlushDebouncer = DebouncingCoroutineExecutor(appScope)
+  private val opLogExecutor = SerializedCoroutineExecutor(appScope, Dispatchers.Default)
 
   private val mutex = Mutex()
   @GuardedBy("mutex")
   private val navigationStack = mutableListWithCap<NavHistoryElement>(MAX_NAV_HISTORY_ENTRIES)
+  @GuardedBy("mutex")
+  private val pendingOps = mutableListOf<NavHistoryOp>()
+
+  // Only accessed from opLogExecutor
+  private var opLogSize = 0
+  private var compactionRequired = false
 
   private val initializationRunnable = OneShotRunnable()
 
@@ -232,7 +245,7 @@ class HistoryNavigationManager(
     }
 
     _navigationStackUpdatesFlow.emit(UpdateEvent.Created(mappedNavElements))
-    persistNavigationStack()
+    scheduleOpLogFlush()
   }
 
   suspend fun updateNavElement(
@@ -277,12 +290,12 @@ class HistoryNavigationManager(
         }
       }
 
-      navigationStack[indexOfElem] = newElement
+      applyOpLocked(NavHistoryOp.Replace(prevElement.descriptor(), newElement))
       _navigationStackUpdatesFlow.emit(UpdateEvent.Deleted(listOf(prevElement)))
       _navigationStackUpdatesFlow.emit(UpdateEvent.Created(listOf(newElement)))
     }
 
-    persistNavigationStack()
+    scheduleOpLogFlush()
   }
 
   suspend fun moveNavElementToTop(descriptor: ChanDescriptor, canMoveAtTheBeginning: Boolean = true) {
@@ -325,18 +338,20 @@ class HistoryNavigationManager(
         return@withLock
       }
 
-      navigationStack.addSafe(newIndex, navigationStack.removeAt(indexOfElem))
+      applyOpLocked(NavHistoryOp.Move(movedElement.descriptor(), newIndex))
       _navigationStackUpdatesFlow.emit(UpdateEvent.Moved(movedElement))
     }
 
-    persistNavigationStack()
+    scheduleOpLogFlush()
   }
 
   private suspend fun addNewOrIgnore(navElement: NavHistoryElement, canInsertAtTheBeginning: Boolean): Boolean {
     ensureInitialized()
 
     return mutex.withLock {
-      val indexOfElem = navigationStack.indexOf(navElement)
+      val descriptor = navElement.descriptor()
+
+      val indexOfElem = navigationStack.indexOfFirst { navHistoryElement -> navHistoryElement.descriptor() == descriptor }
       if (indexOfElem >= 0) {
         return@withLock false
       }
@@ -364,7 +379,7 @@ class HistoryNavigationManager(
         return@withLock false
       }
 
-      navigationStack.addSafe(newIndex, navElement)
+      applyOpLocked(NavHistoryOp.Insert(navElement, newIndex))
       return@withLock true
     }
   }
@@ -405,8 +420,6 @@ class HistoryNavigationManager(
 
         val navHistoryElement = navigationStack.get(indexOfElem)
         val navHistoryElementDescriptor = navHistoryElement.descriptor()
-        val navHistoryElementInfo = navHistoryElement.navHistoryElementInfo
-        navHistoryElementInfo.pinned = doPin
 
         val isDescriptorCurrentlyOpened =
           navHistoryElementDescriptor == currentOpenedDescriptorStateManager.currentFocusedDescriptor
@@ -414,14 +427,14 @@ class HistoryNavigationManager(
         val nextPinnedElementIndex = if (lastPinnedElementIndex < 0) {
           0
         } else {
-          if (!navHistoryElementInfo.pinned && isDescriptorCurrentlyOpened) {
+          if (!doPin && isDescriptorCurrentlyOpened) {
             lastPinnedElementIndex
           } else {
             lastPinnedElementIndex + 1
           }
         }
 
-        navigationStack.addSafe(nextPinnedElementIndex, navigationStack.removeAt(indexOfElem))
+        applyOpLocked(NavHistoryOp.Pin(navHistoryElementDescriptor, doPin, nextPinnedElementIndex))
         pinnedUnpinned += navHistoryElement
       }
 
@@ -440,7 +453,7 @@ class HistoryNavigationManager(
       return pinResult
     }
 
-    persistNavigationStack()
+    scheduleOpLogFlush()
     return pinResult
   }
 
@@ -473,7 +486,8 @@ class HistoryNavigationManager(
           return@forEach
         }
 
-        removedElements += navigationStack.removeAt(indexOfElem)
+        removedElements += navigationStack[indexOfElem]
+        applyOpLocked(NavHistoryOp.Delete(chanDescriptor))
       }
 
       return@withLock removedElements
@@ -484,7 +498,7 @@ class HistoryNavigationManager(
     }
 
     _navigationStackUpdatesFlow.emit(UpdateEvent.Deleted(removedElements))
-    persistNavigationStack()
+    scheduleOpLogFlush()
   }
 
   suspend fun clear() {
@@ -495,7 +509,7 @@ class HistoryNavigationManager(
         return@withLock false
       }
 
-      navigationStack.clear()
+      applyOpLocked(NavHistoryOp.Clear)
       return@withLock true
     }
 
@@ -504,31 +518,74 @@ class HistoryNavigationManager(
     }
 
     _navigationStackUpdatesFlow.emit(UpdateEvent.Cleared)
-    persistNavigationStack()
+    scheduleOpLogFlush()
   }
 
-  private fun persistNavigationStack() {
-    rendezvousCoroutineExecutor.post {
-      Logger.d(TAG, "persistNavigationStack async called")
-      persistNavigationStackInternal()
-      Logger.d(TAG, "persistNavigationStack async finished")
+  @GuardedBy("mutex")
+  private fun applyOpLocked(navHistoryOp: NavHistoryOp) {
+    navHistoryOp.applyTo(navigationStack)
+    pendingOps += navHistoryOp
+  }
+
+  private fun scheduleOpLogFlush() {
+    opLogFlushDebouncer.post(OP_LOG_FLUSH_DEBOUNCE_MS) {
+      opLogExecutor.post { flushPendingOps(compactAfterOps = COMPACT_AFTER_OPS) }
     }
   }
 
-  private suspend fun persistNavigationStackInternal() {
+  private suspend fun flushPendingOps(compactAfterOps: Int) {
     if (!initializationRunnable.alreadyRun) {
-      Logger.d(TAG, "persistNavigationStackInternal not initialized yet, can't persist")
+      Logger.d(TAG, "flushPendingOps not initialized yet, can't persist")
+      return
+    }
+
+    if (compactionRequired) {
+      compactOpLog()
       return
     }
 
-    val navStackCopy = mutex.withLock { navigationStack.toList() }
-    Logger.d(TAG, "persistNavigationStackInternal navStackCopy.size=${navStackCopy.size}")
+    val ops = mutex.withLock {
+      val ops = pendingOps.toList()
+      pendingOps.clear()
 
-    historyNavigationRepository.persist(navStackCopy)
+      return@withLock ops
+    }
+
+    if (ops.isNotEmpty()) {
+      val appendResult = historyNavigationRepository.appendOps(ops)
+      if (appendResult is ModularResult.Error) {
+        // The ops are lost, the only way to persist them now is to persist the whole stack
+        Logger.e(TAG, "Failed to append ${ops.size} ops to the op log", appendResult.error)
+        compactOpLog()
+        return
+      }
+
+      opLogSize += ops.size
+    }
+
+    if (opLogSize > 0 && opLogSize >= compactAfterOps) {
+      compactOpLog()
+    }
+  }
+
+  private suspend fun compactOpLog() {
+    // The ops that are still pending are already a part of the stack
+    val navStackCopy = mutex.withLock {
+      pendingOps.clear()
+      return@withLock navigationStack.toList()
+    }
+
+    Logger.d(TAG, "compactOpLog() opLogSize=${opLogSize}, navStackCopy.size=${navStackCopy.size}")
+
+    historyNavigationRepository.compact(navStackCopy)
       .safeUnwrap { error ->
-        Logger.e(TAG, "Error while trying to persist navigation stack", error)
+        Logger.e(TAG, "Error while trying to compact navigation stack op log", error)
+        compactionRequired = true
         return
       }
+
+    opLogSize = 0
+    compactionRequired = false
   }
 
   private suspend fun ensureInitialized() {
@@ -571,24 +628,8 @@ class HistoryNavigationManager(
         return@addListener
       }
 
-      persistNavigationStack()
-    }
-  }
-
-  private fun <T> MutableList<T>.addSafe(index: Int, element: T) {
-    require(index >= 0) { "Bad index: ${index}" }
-
-    if (isEmpty()) {
-      add(element)
-      return
-    }
-
-    if (index <= lastIndex) {
-      add(index, element)
-      return
+      opLogExecutor.post { flushPendingOps(compactAfterOps = COMPACT_ON_BACKGROUND_AFTER_OPS) }
     }
-
-    add(element)
   }
 
   enum class PinResult(val success: Boolean) {
@@ -618,5 +659,11 @@ class HistoryNavigationManager(
     // Only used when reloading navigation history back from the database.
     // Can grow unlimited until the app restart.
     private const val MAX_NAV_HISTORY_ENTRIES = 256
+
+    private const val OP_LOG_FLUSH_DEBOUNCE_MS = 1000L
+    private const val COMPACT_AFTER_OPS = 200
+    // Going to background is the last chance to persist anything before the process may be killed,
+    // but a short op log is not worth rewriting the whole stack
+    private const val COMPACT_ON_BACKGROUND_AFTER_OPS = 50
   }
 }
\ No newline at end of file
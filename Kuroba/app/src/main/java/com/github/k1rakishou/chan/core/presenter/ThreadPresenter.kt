@@ -497,6 +497,7 @@ class ThreadPresenter @Inject constructor(
         is ChanDescriptor.ICatalogDescriptor -> {
           currentOpenedDescriptorStateManager.updateCatalogDescriptor(null)
           chanCatalogSnapshotCache.delete(currentChanDescriptor)
+          chanThreadManager.cancelCatalogLookAhead(currentChanDescriptor)
         }
         is ChanDescriptor.ThreadDescriptor -> {
           currentOpenedDescriptorStateManager.updateThreadDescriptor(null)
@@ -837,6 +838,7 @@ class ThreadPresenter @Inject constructor(
       if (deleteChanCatalogSnapshot) {
         if (currentChanDescriptor is ChanDescriptor.ICatalogDescriptor) {
           chanCatalogSnapshotCache.delete(currentChanDescriptor)
+          chanThreadManager.cancelCatalogLookAhead(currentChanDescriptor)
         }
       }
 
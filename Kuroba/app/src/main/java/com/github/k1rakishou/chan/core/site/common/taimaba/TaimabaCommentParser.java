@@ -22,6 +22,7 @@ import androidx.annotation.NonNull;
 
 import com.github.k1rakishou.chan.core.site.parser.CommentParser;
 import com.github.k1rakishou.chan.core.site.parser.ICommentParser;
+import com.github.k1rakishou.chan.core.site.parser.QuoteLinkFormat;
 import com.github.k1rakishou.chan.core.site.parser.style.StyleRule;
 import com.github.k1rakishou.core_themes.ChanThemeColorId;
 
@@ -30,6 +31,7 @@ import java.util.regex.Pattern;
 public class TaimabaCommentParser extends CommentParser implements ICommentParser {
     private static final Pattern QUOTE_PATTERN = Pattern.compile("#(\\d+)");
     private static final Pattern FULL_QUOTE_PATTERN = Pattern.compile("/(\\w+)/thread/(\\d+)#(\\d+)");
+    private static final QuoteLinkFormat QUOTE_LINK_FORMAT = new QuoteLinkFormat("#", "thread", "");
 
     public TaimabaCommentParser() {
         super();
@@ -55,4 +57,10 @@ public class TaimabaCommentParser extends CommentParser implements ICommentParse
     public Pattern getFullQuotePattern() {
         return FULL_QUOTE_PATTERN;
     }
+
+    @NonNull
+    @Override
+    public QuoteLinkFormat getQuoteLinkFormat() {
+        return QUOTE_LINK_FORMAT;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+package com.github.k1rakishou.chan.core.site.loader
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.yield
+
+/**
+ * Loads the next pages of unlimited catalogs (or the next sub-catalogs of composite catalogs) before
+ * the user scrolls to them. Loaded pages are kept in a staging area until they are [take]n, which
+ * is supposed to happen in page order when the catalog reaches the end of the list, so the catalog
+ * itself is still updated one page at a time and in order, only without waiting for the network.
+ *
+ * Every site gets at most [maxConcurrentLoadsPerSite] loads at the same time and the loads of one
+ * site are started at least [minLoadIntervalPerSiteMs] apart (and in the order they were scheduled
+ * in) so that look-ahead doesn't get us throttled. A page that failed to load or was the last one
+ * cancels the look-ahead of the pages after it.
+ * */
+class CatalogLookAheadLoader<T : Any>(
+  private val scope: CoroutineScope,
+  private val maxConcurrentLoadsPerSite: Int,
+  private val minLoadIntervalPerSiteMs: Long,
+  private val maxStagedPageAgeMs: Long,
+  private val currentTimeMs: () -> Long = { System.currentTimeMillis() }
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val stagedPages = mutableMapOf<Page, StagedPage<T>>()
+  @GuardedBy("lock")
+  private val siteThrottlers = mutableMapOf<SiteDescriptor, SiteThrottler>()
+
+  init {
+    require(maxConcurrentLoadsPerSite > 0) { "Bad maxConcurrentLoadsPerSite: $maxConcurrentLoadsPerSite" }
+    require(minLoadIntervalPerSiteMs >= 0) { "Bad minLoadIntervalPerSiteMs: $minLoadIntervalPerSiteMs" }
+  }
+
+  /**
+   * Starts loading [pages] (in order) with [load] unless they are already loaded or being loaded.
+   * [load] returns null when a page couldn't be loaded. [isLastPage] tells whether there is nothing
+   * to load after a loaded page.
+   * */
+  fun schedule(
+    pages: List<Page>,
+    isLastPage: (T) -> Boolean = { false },
+    load: suspend (Page) -> T?
+  ) {
+    if (pages.isEmpty()) {
+      return
+    }
+
+    synchronized(lock) {
+      removeExpiredLocked()
+
+      pages.forEach { page ->
+        if (stagedPages.containsKey(page)) {
+          return@forEach
+        }
+
+        val siteThrottler = siteThrottlers.getOrPut(page.catalogDescriptor.siteDescriptor()) {
+          SiteThrottler(maxConcurrentLoadsPerSite)
+        }
+
+        // Started undispatched so that every load gets in the site's queue right away, in the order
+        // of the pages
+        val deferred = scope.async(start = CoroutineStart.UNDISPATCHED) {
+          loadPage(page, siteThrottler, isLastPage, load)
+        }
+
+        stagedPages[page] = StagedPage(deferred, currentTimeMs())
+      }
+    }
+  }
+
+  /**
+   * Returns the loaded [page] (waiting for it if it's still being loaded) and removes it from the
+   * staging area. Returns null if the page was not scheduled, failed to load or is too old.
+   * */
+  suspend fun take(page: Page): T? {
+    val stagedPage = synchronized(lock) { stagedPages.remove(page) }
+      ?: return null
+
+    if (currentTimeMs() - stagedPage.scheduledAt > maxStagedPageAgeMs) {
+      Logger.d(TAG, "take($page) staged page is too old")
+      stagedPage.deferred.cancel()
+      return null
+    }
+
+    return try {
+      stagedPage.deferred.await()
+    } catch (error: CancellationException) {
+      if (!stagedPage.deferred.isCancelled) {
+        // We were canceled, not the load
+        throw error
+      }
+
+      null
+    }
+  }
+
+  fun isStaged(page: Page): Boolean {
+    return synchronized(lock) { stagedPages.containsKey(page) }
+  }
+
+  /**
+   * Cancels every load (and drops every loaded page) of [catalogSnapshotDescriptor].
+   * */
+  fun cancel(catalogSnapshotDescriptor: ChanDescriptor.ICatalogDescriptor) {
+    val canceled = synchronized(lock) {
+      removePagesLocked { page -> page.catalogSnapshotDescriptor == catalogSnapshotDescriptor }
+    }
+
+    if (canceled > 0) {
+      Logger.d(TAG, "cancel($catalogSnapshotDescriptor) canceled $canceled pages")
+    }
+  }
+
+  fun cancelAll() {
+    synchronized(lock) { removePagesLocked { true } }
+  }
+
+  private suspend fun loadPage(
+    page: Page,
+    siteThrottler: SiteThrottler,
+    isLastPage: (T) -> Boolean,
+    load: suspend (Page) -> T?
+  ): T? {
+    siteThrottler.acquire(minLoadIntervalPerSiteMs, currentTimeMs)
+
+    val result = try {
+      // We may still be running on the thread that called schedule()
+      yield()
+
+      load(page)
+    } catch (error: Throwable) {
+      if (error is CancellationException) {
+        throw error
+      }
+
+      Logger.e(TAG, "loadPage($page) error: ${error.errorMessageOrClassName()}")
+      null
+    } finally {
+      siteThrottler.release()
+    }
+
+    if (result == null || isLastPage(result)) {
+      Logger.d(TAG, "loadPage($page) ${if (result == null) "failed" else "was the last page"}, " +
+        "canceling the pages after it")
+
+      synchronized(lock) {
+        removePagesLocked { other ->
+          other.catalogSnapshotDescriptor == page.catalogSnapshotDescriptor && other.page > page.page
+        }
+      }
+    }
+
+    return result
+  }
+
+  @GuardedBy("lock")
+  private fun removeExpiredLocked() {
+    val now = currentTimeMs()
+    val expired = stagedPages.entries.filter { (_, stagedPage) -> now - stagedPage.scheduledAt > maxStagedPageAgeMs }
+
+    expired.forEach { (page, stagedPage) ->
+      stagedPage.deferred.cancel()
+      stagedPages.remove(page)
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun removePagesLocked(predicate: (Page) -> Boolean): Int {
+    val toRemove = stagedPages.keys.filter(predicate)
+
+    toRemove.forEach { page ->
+      stagedPages.remove(page)?.deferred?.cancel()
+    }
+
+    return toRemove.size
+  }
+
+  data class Page(
+    /**
+     * The descriptor of the catalog snapshot the page is merged into (either a
+     * [ChanDescriptor.CompositeCatalogDescriptor] or the [catalogDescriptor] itself).
+     * */
+    val catalogSnapshotDescriptor: ChanDescriptor.ICatalogDescriptor,
+    val catalogDescriptor: ChanDescriptor.CatalogDescriptor,
+    val page: Int
+  )
+
+  private class StagedPage<T>(
+    val deferred: Deferred<T?>,
+    val scheduledAt: Long
+  )
+
+  private class SiteThrottler(maxConcurrentLoads: Int) {
+    private val semaphore = Semaphore(maxConcurrentLoads)
+    // Fair, so the loads are started in the order they were scheduled in
+    private val startMutex = Mutex()
+    @GuardedBy("startMutex")
+    private var lastLoadStartedAt: Long? = null
+
+    suspend fun acquire(minLoadIntervalMs: Long, currentTimeMs: () -> Long) {
+      startMutex.withLock {
+        semaphore.acquire()
+
+        try {
+          val waitMs = lastLoadStartedAt
+            ?.let { startedAt -> startedAt + minLoadIntervalMs - currentTimeMs() }
+            ?: 0L
+
+          if (waitMs > 0) {
+            delay(waitMs)
+          }
+        } catch (error: Throwable) {
+          semaphore.release()
+          throw error
+        }
+
+        lastLoadStartedAt = currentTimeMs()
+      }
+    }
+
+    fun release() {
+      semaphore.release()
+    }
+  }
+
+  companion object {
+    private const val TAG = "CatalogLookAheadLoader"
+  }
+}
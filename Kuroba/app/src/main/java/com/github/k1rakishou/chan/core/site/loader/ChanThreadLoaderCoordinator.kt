@@ -21,6 +21,7 @@ import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressEvent
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
 import com.github.k1rakishou.chan.core.manager.BoardManager
+import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.Site
 import com.github.k1rakishou.chan.core.site.SiteResolver
@@ -44,6 +45,7 @@ import com.github.k1rakishou.common.ModularResult.Companion.Try
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.catalog.ChanCompositeCatalogSnapshot
 import com.github.k1rakishou.model.data.catalog.IChanCatalogSnapshot
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -90,7 +92,8 @@ class ChanThreadLoaderCoordinator(
   private val chanThreadsCache: ChanThreadsCache,
   private val chanCatalogSnapshotCache: ChanCatalogSnapshotCache,
   private val threadDownloadManager: ThreadDownloadManager,
-  private val parsePostsV1UseCase: ParsePostsV1UseCase
+  private val parsePostsV1UseCase: ParsePostsV1UseCase,
+  private val siteManager: SiteManager
 ) : CoroutineScope {
   private val job = SupervisorJob()
 
@@ -99,6 +102,13 @@ class ChanThreadLoaderCoordinator(
 
   private val lastFullThreadUpdate = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, Long>(16)
 
+  private val catalogLookAheadLoader = CatalogLookAheadLoader<FetchedChanPage>(
+    scope = this,
+    maxConcurrentLoadsPerSite = LOOK_AHEAD_MAX_CONCURRENT_LOADS_PER_SITE,
+    minLoadIntervalPerSiteMs = LOOK_AHEAD_MIN_LOAD_INTERVAL_PER_SITE_MS,
+    maxStagedPageAgeMs = LOOK_AHEAD_MAX_STAGED_PAGE_AGE_MS
+  )
+
   private val reloadPostsFromDatabaseUseCase by lazy {
     ReloadPostsFromDatabaseUseCase(
       chanPostRepository,
@@ -175,19 +185,8 @@ class ChanThreadLoaderCoordinator(
           // fallthrough
         }
 
-        val requestBuilder = Request.Builder()
-          .url(chanLoadUrl.url)
-          .get()
-
-        siteResolver.findSiteForUrl(chanLoadUrl.urlString)?.let { site ->
-          site.requestModifier().modifyCatalogOrThreadGetRequest(
-            site = site,
-            chanDescriptor = chanDescriptor,
-            requestBuilder = requestBuilder
-          )
-        }
-
-        chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Loading(chanDescriptor))
+        val lookAheadPage = toLookAheadPage(page, compositeCatalogDescriptor, chanDescriptor)
+        val request = buildChanRequest(chanLoadUrl, chanDescriptor)
 
         val reloadFunc: suspend (error: Throwable) -> ThreadLoadResult = func@ { error: Throwable ->
           return@func fallbackPostLoadOnNetworkError(
@@ -206,38 +205,53 @@ class ChanThreadLoaderCoordinator(
           )
         }
 
-        val (response, requestDuration) = try {
-          measureTimedValue { proxiedOkHttpClient.okHttpClient().suspendCall(requestBuilder.build()) }
-        } catch (error: Throwable) {
-          if (error is FirewallDetectedException) {
-            throw error
-          }
-
-          return@Try reloadFunc(error)
+        val lookAheadLoadedPage = if (lookAheadPage != null && postProcessFlags == null) {
+          catalogLookAheadLoader.take(lookAheadPage)
+        } else {
+          null
         }
 
-        if (!response.isSuccessful) {
-          return@Try reloadFunc(BadStatusResponseException(response.code))
-        }
+        val (chanReaderProcessor, requestDuration, readPostsDuration) = if (lookAheadLoadedPage != null) {
+          Logger.d(TAG, "loadThreadOrCatalog(chanLoadUrl=$chanLoadUrl) using look-ahead loaded page")
+          lookAheadLoadedPage
+        } else {
+          chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Loading(chanDescriptor))
+
+          val (response, requestDuration) = try {
+            measureTimedValue { proxiedOkHttpClient.okHttpClient().suspendCall(request) }
+          } catch (error: Throwable) {
+            if (error is FirewallDetectedException) {
+              throw error
+            }
+
+            return@Try reloadFunc(error)
+          }
+
+          if (!response.isSuccessful) {
+            return@Try reloadFunc(BadStatusResponseException(response.code))
+          }
 
-        chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Reading(chanDescriptor))
-
-        val (chanReaderProcessor, readPostsDuration) = measureTimedValue {
-          val body = response.body
-            ?: throw EmptyBodyResponseException()
-
-          return@measureTimedValue body.byteStream().use { inputStream ->
-            return@use readPostsFromResponse(
-              page = page,
-              chanLoadUrl = chanLoadUrl,
-              responseBodyStream = inputStream,
-              chanDescriptor = chanDescriptor,
-              chanReadOptions = chanReadOptions,
-              chanLoadOptions = chanLoadOptions,
-              chanReaderProcessorOptions = chanReaderProcessorOptions,
-              chanReader = chanReader
-            ).unwrap()
+          chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Reading(chanDescriptor))
+
+          val (chanReaderProcessor, readPostsDuration) = measureTimedValue {
+            val body = response.body
+              ?: throw EmptyBodyResponseException()
+
+            return@measureTimedValue body.byteStream().use { inputStream ->
+              return@use readPostsFromResponse(
+                page = page,
+                chanLoadUrl = chanLoadUrl,
+                responseBodyStream = inputStream,
+                chanDescriptor = chanDescriptor,
+                chanReadOptions = chanReadOptions,
+                chanLoadOptions = chanLoadOptions,
+                chanReaderProcessorOptions = chanReaderProcessorOptions,
+                chanReader = chanReader
+              ).unwrap()
+            }
           }
+
+          FetchedChanPage(chanReaderProcessor, requestDuration, readPostsDuration)
         }
 
         Logger.d(TAG, "loadThreadOrCatalog(chanLoadUrl='${chanLoadUrl}') chanReaderProcessor=${chanReaderProcessor}")
@@ -268,6 +282,18 @@ class ChanThreadLoaderCoordinator(
           postParser = postParser,
         )
 
+        if (
+          lookAheadPage != null
+          && threadLoadResult is ThreadLoadResult.Loaded
+          && !chanReaderProcessor.endOfUnlimitedCatalogReached
+        ) {
+          scheduleCatalogLookAhead(
+            lookAheadPage = lookAheadPage,
+            chanReadOptions = chanReadOptions,
+            chanLoadOptions = chanLoadOptions
+          )
+        }
+
         if (chanDescriptor is ChanDescriptor.ThreadDescriptor) {
           chanPostRepository.updateThreadState(
             threadDescriptor = chanDescriptor,
@@ -289,6 +315,145 @@ class ChanThreadLoaderCoordinator(
     }
   }
 
+  /**
+   * Cancels the look-ahead loading of the next pages of [catalogSnapshotDescriptor] and drops the
+   * already loaded ones (when the catalog is closed or reloaded from scratch).
+   * */
+  fun cancelCatalogLookAhead(catalogSnapshotDescriptor: ChanDescriptor.ICatalogDescriptor) {
+    catalogLookAheadLoader.cancel(catalogSnapshotDescriptor)
+  }
+
+  private fun buildChanRequest(chanLoadUrl: ChanLoadUrl, chanDescriptor: ChanDescriptor): Request {
+    val requestBuilder = Request.Builder()
+      .url(chanLoadUrl.url)
+      .get()
+
+    siteResolver.findSiteForUrl(chanLoadUrl.urlString)?.let { site ->
+      site.requestModifier().modifyCatalogOrThreadGetRequest(
+        site = site,
+        chanDescriptor = chanDescriptor,
+        requestBuilder = requestBuilder
+      )
+    }
+
+    return requestBuilder.build()
+  }
+
+  private fun toLookAheadPage(
+    page: Int?,
+    compositeCatalogDescriptor: ChanDescriptor.CompositeCatalogDescriptor?,
+    chanDescriptor: ChanDescriptor
+  ): CatalogLookAheadLoader.Page? {
+    if (chanDescriptor !is ChanDescriptor.CatalogDescriptor) {
+      return null
+    }
+
+    val isUnlimitedCatalog = boardManager.byCatalogDescriptor(chanDescriptor)
+      ?.isUnlimitedCatalog
+      ?: false
+
+    if (compositeCatalogDescriptor == null && !isUnlimitedCatalog) {
+      return null
+    }
+
+    val currentPage = when {
+      page != null -> page
+      // The first catalog of a composite catalog is loaded without a page
+      compositeCatalogDescriptor != null -> ChanCompositeCatalogSnapshot.START_PAGE_COMPOSITE_CATALOG
+      else -> return null
+    }
+
+    return CatalogLookAheadLoader.Page(
+      catalogSnapshotDescriptor = compositeCatalogDescriptor ?: chanDescriptor,
+      catalogDescriptor = chanDescriptor,
+      page = currentPage
+    )
+  }
+
+  private fun scheduleCatalogLookAhead(
+    lookAheadPage: CatalogLookAheadLoader.Page,
+    chanReadOptions: ChanReadOptions,
+    chanLoadOptions: ChanLoadOptions
+  ) {
+    val catalogSnapshotDescriptor = lookAheadPage.catalogSnapshotDescriptor
+    if (chanCatalogSnapshotCache.get(catalogSnapshotDescriptor)?.isEndReached == true) {
+      return
+    }
+
+    val pagesToLoad = (1..LOOK_AHEAD_PAGES_COUNT).mapNotNull { offset ->
+      val nextPage = lookAheadPage.page + offset
+
+      // Composite catalogs use the page as the index of the next catalog to load
+      val catalogDescriptor = if (catalogSnapshotDescriptor is ChanDescriptor.CompositeCatalogDescriptor) {
+        catalogSnapshotDescriptor.catalogDescriptors.getOrNull(nextPage)
+          ?: return@mapNotNull null
+      } else {
+        lookAheadPage.catalogDescriptor
+      }
+
+      return@mapNotNull CatalogLookAheadLoader.Page(catalogSnapshotDescriptor, catalogDescriptor, nextPage)
+    }
+
+    catalogLookAheadLoader.schedule(
+      pages = pagesToLoad,
+      isLastPage = { fetchedChanPage -> fetchedChanPage.chanReaderProcessor.endOfUnlimitedCatalogReached },
+      load = { pageToLoad -> lookAheadLoadCatalogPage(pageToLoad, chanReadOptions, chanLoadOptions) }
+    )
+  }
+
+  /**
+   * Only loads and reads the page, the posts are parsed and persisted when the page is taken out of
+   * [catalogLookAheadLoader]. Any failure is handled by loading the page the usual way later.
+   * */
+  private suspend fun lookAheadLoadCatalogPage(
+    lookAheadPage: CatalogLookAheadLoader.Page,
+    chanReadOptions: ChanReadOptions,
+    chanLoadOptions: ChanLoadOptions
+  ): FetchedChanPage? {
+    val catalogDescriptor = lookAheadPage.catalogDescriptor
+
+    val site = siteManager.bySiteDescriptor(catalogDescriptor.siteDescriptor())
+      ?: return null
+
+    val chanLoadUrl = getChanUrl(site = site, chanDescriptor = catalogDescriptor, page = lookAheadPage.page)
+    Logger.d(TAG, "lookAheadLoadCatalogPage(${lookAheadPage}) chanLoadUrl=${chanLoadUrl}")
+
+    val request = buildChanRequest(chanLoadUrl, catalogDescriptor)
+    val (response, requestDuration) = measureTimedValue { proxiedOkHttpClient.okHttpClient().suspendCall(request) }
+
+    return response.use {
+      if (!response.isSuccessful) {
+        Logger.d(TAG, "lookAheadLoadCatalogPage(${lookAheadPage}) bad status: ${response.code}")
+        return@use null
+      }
+
+      val (chanReaderProcessor, readPostsDuration) = measureTimedValue {
+        val body = response.body
+          ?: throw EmptyBodyResponseException()
+
+        return@measureTimedValue body.byteStream().use { inputStream ->
+          return@use readPostsFromResponse(
+            page = lookAheadPage.page,
+            chanLoadUrl = chanLoadUrl,
+            responseBodyStream = inputStream,
+            chanDescriptor = catalogDescriptor,
+            chanReadOptions = chanReadOptions,
+            chanLoadOptions = chanLoadOptions,
+            chanReaderProcessorOptions = ChanReaderProcessor.Options(),
+            chanReader = site.chanReader()
+          ).unwrap()
+        }
+      }
+
+      if (chanReaderProcessor.error != null) {
+        Logger.d(TAG, "lookAheadLoadCatalogPage(${lookAheadPage}) error: ${chanReaderProcessor.error}")
+        return@use null
+      }
+
+      return@use FetchedChanPage(chanReaderProcessor, requestDuration, readPostsDuration)
+    }
+  }
+
   @OptIn(ExperimentalTime::class)
   private suspend fun loadRequestStatistics(
     url: HttpUrl,
@@ -720,6 +885,12 @@ class ChanThreadLoaderCoordinator(
 
   data class PostProcessFlags(val reloadingAfter404: Boolean)
 
+  private data class FetchedChanPage(
+    val chanReaderProcessor: ChanReaderProcessor,
+    val requestDuration: Duration,
+    val readPostsDuration: Duration
+  )
+
   data class ChanLoadUrl(
     val url: HttpUrl,
     // Whether we load only a part of a thread (Like, give me all posts starting with postNo).
@@ -734,6 +905,12 @@ class ChanThreadLoaderCoordinator(
     private const val TAG = "ChanThreadLoaderCoordinator"
     private val THREE_MINUTES = TimeUnit.MINUTES.toMillis(3)
     private val ONE_MINUTE = TimeUnit.MINUTES.toMillis(1)
+
+    private const val LOOK_AHEAD_PAGES_COUNT = 2
+    private const val LOOK_AHEAD_MAX_CONCURRENT_LOADS_PER_SITE = 2
+    private const val LOOK_AHEAD_MIN_LOAD_INTERVAL_PER_SITE_MS = 500L
+    // Catalogs change quickly, a page that was loaded too long ago is better loaded again
+    private val LOOK_AHEAD_MAX_STAGED_PAGE_AGE_MS = TimeUnit.MINUTES.toMillis(2)
   }
 
 }
\ No newline at end of file
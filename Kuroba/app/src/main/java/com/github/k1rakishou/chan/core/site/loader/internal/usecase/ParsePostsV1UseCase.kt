@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.core.site.loader.internal.usecase
 
+import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressEvent
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
 import com.github.k1rakishou.chan.core.helper.FilterEngine
@@ -7,6 +8,7 @@ import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.PostFilterManager
 import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
+import com.github.k1rakishou.chan.core.site.parser.PostParseResultCache
 import com.github.k1rakishou.chan.core.site.parser.PostParseWorker
 import com.github.k1rakishou.chan.core.site.parser.PostParser
 import com.github.k1rakishou.chan.utils.BackgroundUtils
@@ -30,7 +32,8 @@ class ParsePostsV1UseCase(
   postHideManager: PostHideManager,
   savedReplyManager: SavedReplyManager,
   boardManager: BoardManager,
-  chanLoadProgressNotifier: ChanLoadProgressNotifier
+  chanLoadProgressNotifier: ChanLoadProgressNotifier,
+  private val postParseResultCache: PostParseResultCache
 ) : AbstractParsePostsUseCase(
   verboseLogsEnabled,
   chanPostRepository,
@@ -99,6 +102,13 @@ class ParsePostsV1UseCase(
       }
     }
 
+    val isParsingCatalog = chanDescriptor is ChanDescriptor.ICatalogDescriptor
+    val parserVersion = postParseResultCache.calculateParserVersion(
+      parserSettingsHash = parserSettingsHash(),
+      postParser = postParser,
+      isParsingCatalog = isParsingCatalog
+    )
+
     val (parsedPosts, parsingDuration) = measureTimedValue {
       return@measureTimedValue processDataCollectionConcurrently(
         dataList = postBuildersToParse,
@@ -111,12 +121,15 @@ class ParsePostsV1UseCase(
           internalIds = internalIds,
           savedPosts = savedPosts,
           hiddenOrRemovedPosts = hiddenOrRemovedPosts,
-          isParsingCatalog = chanDescriptor is ChanDescriptor.ICatalogDescriptor
+          isParsingCatalog = isParsingCatalog,
+          postParseResultCache = postParseResultCache,
+          parserVersion = parserVersion
         ).parse()
       }
     }
 
-    Logger.d(TAG, "parseNewPostsPosts(chanDescriptor=$chanDescriptor) -> parsedPosts=${parsedPosts.size}")
+    Logger.d(TAG, "parseNewPostsPosts(chanDescriptor=$chanDescriptor) -> parsedPosts=${parsedPosts.size}, " +
+      "parseResultCacheSize=${postParseResultCache.size()}")
 
     val filters = loadFilters(chanDescriptor)
 
@@ -141,6 +154,19 @@ class ParsePostsV1UseCase(
     )
   }
 
+  /**
+   * Settings that change the way comments are parsed (or the spans that are created while parsing
+   * them). Changing any of them makes the cached parse results stale.
+   * */
+  private fun parserSettingsHash(): Int {
+    var result = ChanSettings.forceHttpsUrlScheme.get().hashCode()
+    result = 31 * result + ChanSettings.revealTextSpoilers.get().hashCode()
+    result = 31 * result + ChanSettings.codeTagFontSizePx()
+    result = 31 * result + ChanSettings.sjisTagFontSizePx()
+
+    return result
+  }
+
   companion object {
     private const val TAG = "ParsePostsUseCase"
   }
@@ -0,0 +1,307 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+/**
+ * Figures out what the href of a comment anchor points to (a post, a board, a catalog search or
+ * something else) without regexes. Recognizes exactly the same links as the patterns
+ * CommentParser used to run one after another for every anchor, but every position of the href is
+ * checked by a fixed sequence of character tests so there is no backtracking and no Matcher
+ * allocations. A full quote may start at any '/' of the href, each character is looked at no more
+ * than a few times while looking for it.
+ *
+ * The board link and catalog search links are 4chan (and 8chan "index.html") links for every site,
+ * the same as before.
+ * */
+class AnchorHrefTokenizer(
+  private val quoteLinkFormat: QuoteLinkFormat
+) {
+
+  fun tokenize(href: String): AnchorToken {
+    val fullQuote = findFullQuote(href)
+    if (fullQuote != null) {
+      return fullQuote
+    }
+
+    val quote = matchQuote(href)
+    if (quote != null) {
+      return quote
+    }
+
+    // Everything below is matched with ".*" in the original patterns which doesn't match line
+    // terminators
+    if (containsLineTerminator(href)) {
+      return AnchorToken.Link
+    }
+
+    val boardCode = matchFourChanBoardLink(href) ?: matchIndexPageBoardLink(href)
+    if (boardCode != null) {
+      return AnchorToken.BoardLink(boardCode)
+    }
+
+    val boardSearch = matchFourChanBoardSearch(href)
+    if (boardSearch != null) {
+      return boardSearch
+    }
+
+    return AnchorToken.Link
+  }
+
+  // "/(\w+)/\w+/(\d+)#p(\d+)" (find) with the format's parts
+  private fun findFullQuote(href: String): AnchorToken? {
+    var start = href.indexOf('/')
+
+    while (start >= 0) {
+      val token = matchFullQuoteAt(href, start)
+      if (token != null) {
+        return token
+      }
+
+      start = href.indexOf('/', start + 1)
+    }
+
+    return null
+  }
+
+  private fun matchFullQuoteAt(href: String, start: Int): AnchorToken? {
+    val boardStart = start + 1
+    val boardEnd = skipWordChars(href, boardStart)
+    if (boardEnd == boardStart || !href.charAtIs(boardEnd, '/')) {
+      return null
+    }
+
+    val segmentStart = boardEnd + 1
+    val threadPathSegment = quoteLinkFormat.threadPathSegment
+
+    val segmentEnd = if (threadPathSegment == null) {
+      skipWordChars(href, segmentStart).takeIf { end -> end > segmentStart }
+    } else {
+      (segmentStart + threadPathSegment.length).takeIf { href.startsWith(threadPathSegment, segmentStart) }
+    }
+
+    if (segmentEnd == null || !href.charAtIs(segmentEnd, '/')) {
+      return null
+    }
+
+    val threadNoStart = segmentEnd + 1
+    val threadNoEnd = skipDigits(href, threadNoStart)
+    if (threadNoEnd == threadNoStart) {
+      return null
+    }
+
+    var position = threadNoEnd
+
+    if (!href.startsWith(quoteLinkFormat.threadPageSuffix, position)) {
+      return null
+    }
+    position += quoteLinkFormat.threadPageSuffix.length
+
+    if (!href.startsWith(quoteLinkFormat.postAnchorPrefix, position)) {
+      return null
+    }
+    position += quoteLinkFormat.postAnchorPrefix.length
+
+    val postNoStart = position
+    val postNoEnd = skipDigits(href, postNoStart)
+    if (postNoEnd == postNoStart) {
+      return null
+    }
+
+    // Too many digits, it's a link then
+    val threadNo = href.substring(threadNoStart, threadNoEnd).toLongOrNull()
+      ?: return AnchorToken.Link
+    val postNo = href.substring(postNoStart, postNoEnd).toLongOrNull()
+      ?: return AnchorToken.Link
+
+    return AnchorToken.FullQuote(href.substring(boardStart, boardEnd), threadNo, postNo)
+  }
+
+  // "#p(\d+)" (matches)
+  private fun matchQuote(href: String): AnchorToken? {
+    val postAnchorPrefix = quoteLinkFormat.postAnchorPrefix
+    if (href.length <= postAnchorPrefix.length || !href.startsWith(postAnchorPrefix)) {
+      return null
+    }
+
+    if (skipDigits(href, postAnchorPrefix.length) != href.length) {
+      return null
+    }
+
+    val postNo = href.substring(postAnchorPrefix.length).toLongOrNull()
+      ?: return AnchorToken.Link
+
+    return AnchorToken.Quote(postNo)
+  }
+
+  // "//boards\.4chan.*?\.org/(.*?)/" (matches)
+  private fun matchFourChanBoardLink(href: String): String? {
+    val boardStart = findFourChanBoardStart(href)
+      ?: return null
+
+    if (href.length - 1 < boardStart || href[href.length - 1] != '/') {
+      return null
+    }
+
+    return href.substring(boardStart, href.length - 1)
+  }
+
+  // "/(.*?)/index.html" (matches)
+  private fun matchIndexPageBoardLink(href: String): String? {
+    if (href.length < INDEX_PAGE_SUFFIX_LENGTH + 1 || href[0] != '/') {
+      return null
+    }
+
+    val suffixStart = href.length - INDEX_PAGE_SUFFIX_LENGTH
+
+    // The dot is not escaped in the original pattern so it may be any character
+    if (!href.startsWith(INDEX_PAGE_NAME, suffixStart)
+      || !href.startsWith(INDEX_PAGE_EXTENSION, href.length - INDEX_PAGE_EXTENSION.length)
+    ) {
+      return null
+    }
+
+    return href.substring(1, suffixStart)
+  }
+
+  // "//boards\.4chan.*?\.org/(.*?)/catalog#s=(.*)" (matches)
+  private fun matchFourChanBoardSearch(href: String): AnchorToken? {
+    val boardStart = findFourChanBoardStart(href)
+      ?: return null
+
+    val boardEnd = href.indexOf(CATALOG_SEARCH_PATH, boardStart)
+    if (boardEnd < 0) {
+      return null
+    }
+
+    return AnchorToken.BoardSearch(
+      boardCode = href.substring(boardStart, boardEnd),
+      rawQuery = href.substring(boardEnd + CATALOG_SEARCH_PATH.length)
+    )
+  }
+
+  /**
+   * Returns the index right after the first ".org/" of a "//boards.4chan(nel).org/" href.
+   * */
+  private fun findFourChanBoardStart(href: String): Int? {
+    if (!href.startsWith(FOUR_CHAN_BOARDS_PREFIX)) {
+      return null
+    }
+
+    val orgIndex = href.indexOf(ORG_DOMAIN, FOUR_CHAN_BOARDS_PREFIX.length)
+    if (orgIndex < 0) {
+      return null
+    }
+
+    return orgIndex + ORG_DOMAIN.length
+  }
+
+  sealed class AnchorToken {
+    // A link to a post, possibly from another thread or board ("/g/thread/123#p456")
+    data class FullQuote(val boardCode: String, val threadNo: Long, val postNo: Long) : AnchorToken()
+    // A link to a post of the same thread ("#p456")
+    data class Quote(val postNo: Long) : AnchorToken()
+    data class BoardLink(val boardCode: String) : AnchorToken()
+    // The query is still url encoded
+    data class BoardSearch(val boardCode: String, val rawQuery: String) : AnchorToken()
+    object Link : AnchorToken() {
+      override fun toString(): String = "Link"
+    }
+  }
+
+  companion object {
+    private const val FOUR_CHAN_BOARDS_PREFIX = "//boards.4chan"
+    private const val ORG_DOMAIN = ".org/"
+    private const val THREAD_PATH = "/thread/"
+    private const val CATALOG_SEARCH_PATH = "/catalog#s="
+    private const val FOUR_CHAN_POST_ANCHOR_PREFIX = "#p"
+    private const val DEAD_QUOTE_PREFIX = ">>"
+    private const val INDEX_PAGE_NAME = "/index"
+    private const val INDEX_PAGE_EXTENSION = "html"
+    private const val INDEX_PAGE_SUFFIX_LENGTH = 11 // "/index.html"
+
+    /**
+     * Whether [href] is a link to a post on 4chan with the domain, like
+     * "//boards.4channel.org/g/thread/123#p456".
+     * "//boards\.4chan.*?\.org/(.*?)/thread/(\d*?)#p(\d*)" (matches)
+     * */
+    @JvmStatic
+    fun isFourChanPostLinkWithDomain(href: String): Boolean {
+      if (!href.startsWith(FOUR_CHAN_BOARDS_PREFIX) || containsLineTerminator(href)) {
+        return false
+      }
+
+      // Whatever follows "/thread/" may not contain slashes so only the last one may be it
+      val threadPathIndex = href.lastIndexOf(THREAD_PATH)
+      if (threadPathIndex < 0) {
+        return false
+      }
+
+      val orgIndex = href.indexOf(ORG_DOMAIN, FOUR_CHAN_BOARDS_PREFIX.length)
+      if (orgIndex < 0 || orgIndex + ORG_DOMAIN.length > threadPathIndex) {
+        return false
+      }
+
+      val threadNoEnd = skipDigits(href, threadPathIndex + THREAD_PATH.length)
+      if (!href.startsWith(FOUR_CHAN_POST_ANCHOR_PREFIX, threadNoEnd)) {
+        return false
+      }
+
+      return skipDigits(href, threadNoEnd + FOUR_CHAN_POST_ANCHOR_PREFIX.length) == href.length
+    }
+
+    /**
+     * Parses the text of a dead quote (">>123"), returns null when it's not one.
+     * ">>(\d+)" (matches)
+     * */
+    @JvmStatic
+    fun parseDeadQuote(text: CharSequence): Long? {
+      if (text.length <= DEAD_QUOTE_PREFIX.length || !text.startsWith(DEAD_QUOTE_PREFIX)) {
+        return null
+      }
+
+      if (skipDigits(text, DEAD_QUOTE_PREFIX.length) != text.length) {
+        return null
+      }
+
+      return text.substring(DEAD_QUOTE_PREFIX.length).toLongOrNull()
+    }
+
+    // Same as "\w" and "\d" without the UNICODE_CHARACTER_CLASS flag
+    private fun isWordChar(char: Char): Boolean {
+      return (char in 'a'..'z') || (char in 'A'..'Z') || isDigit(char) || char == '_'
+    }
+
+    private fun isDigit(char: Char): Boolean = char in '0'..'9'
+
+    private fun skipWordChars(text: CharSequence, start: Int): Int {
+      var position = start
+      while (position < text.length && isWordChar(text[position])) {
+        ++position
+      }
+
+      return position
+    }
+
+    private fun skipDigits(text: CharSequence, start: Int): Int {
+      var position = start
+      while (position < text.length && isDigit(text[position])) {
+        ++position
+      }
+
+      return position
+    }
+
+    // Line terminators that "." doesn't match by default
+    private fun containsLineTerminator(text: String): Boolean {
+      for (char in text) {
+        if (char == '\n' || char == '\r' || char == '\u0085' || char == '\u2028' || char == '\u2029') {
+          return true
+        }
+      }
+
+      return false
+    }
+
+    private fun String.charAtIs(index: Int, char: Char): Boolean {
+      return index < length && this[index] == char
+    }
+  }
+}
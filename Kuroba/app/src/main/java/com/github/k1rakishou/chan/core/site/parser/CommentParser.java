@@ -69,14 +69,11 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
     private static final String IFRAME_CONTENT_PREFIX = "[Iframe content]";
 
     private final Map<String, List<StyleRule>> rules = new HashMap<>();
+    // Created lazily since getQuoteLinkFormat() is overridden by the subclasses
+    private volatile AnchorHrefTokenizer anchorHrefTokenizer;
 
-    private final Pattern defaultQuoteRegex = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/thread/(\\d*?)#p(\\d*)");
-    private final Pattern deadQuotePattern = Pattern.compile(">>(\\d+)");
     private final Pattern fullQuotePattern = Pattern.compile("/(\\w+)/\\w+/(\\d+)#p(\\d+)");
     private final Pattern quotePattern = Pattern.compile("#p(\\d+)");
-    private final Pattern boardLinkPattern = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/");
-    private final Pattern boardLinkPattern8Chan = Pattern.compile("/(.*?)/index.html");
-    private final Pattern boardSearchPattern = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/catalog#s=(.*)");
     private final Pattern colorPattern = Pattern.compile("color:#?(\\w+)");
     private final Pattern colorRgbFgBgPattern = Pattern.compile("color:rgb\\((\\d+),(\\d+),(\\d+)\\)\\;background\\-color\\:rgb\\((\\d+),(\\d+),(\\d+)\\)");
 
@@ -183,6 +180,23 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
         return fullQuotePattern;
     }
 
+    @NonNull
+    @Override
+    public QuoteLinkFormat getQuoteLinkFormat() {
+        return QuoteLinkFormat.FOUR_CHAN;
+    }
+
+    private AnchorHrefTokenizer getAnchorHrefTokenizer() {
+        AnchorHrefTokenizer tokenizer = anchorHrefTokenizer;
+        if (tokenizer == null) {
+            // Creating it twice when called concurrently is fine
+            tokenizer = new AnchorHrefTokenizer(getQuoteLinkFormat());
+            anchorHrefTokenizer = tokenizer;
+        }
+
+        return tokenizer;
+    }
+
     public HtmlTag preprocessTag(@NonNull HtmlNode.Tag node) {
         return node.getHtmlTag();
     }
@@ -342,20 +356,13 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
             CharSequence text,
             HtmlTag anchorTag
     ) {
-        Matcher matcher = deadQuotePattern.matcher(text);
-        if (!matcher.matches()) {
-            // Something unknown
+        Long deadQuotePostId = AnchorHrefTokenizer.parseDeadQuote(text);
+        if (deadQuotePostId == null) {
+            // Something unknown or some bugged value. May happen on 4chan.
             return text;
         }
 
-        long postId;
-
-        try {
-            postId = Long.parseLong(matcher.group(1));
-        } catch (NumberFormatException error) {
-            // Some bugged value. May happen on 4chan.
-            return text;
-        }
+        long postId = deadQuotePostId;
 
         // TODO(KurobaEx / @GhostPosts):
         long postSubNo = 0;
@@ -713,27 +720,16 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
             PostParser.Callback callback
     ) {
         String href = extractQuote(anchorTag.attrUnescapedOrNull("href"), post);
-        Matcher externalMatcher = matchExternalQuote(href, post);
+        AnchorHrefTokenizer.AnchorToken token = getAnchorHrefTokenizer().tokenize(href);
 
-        PostLinkable.Type type = PostLinkable.Type.LINK;
-        PostLinkable.Value value = new PostLinkable.Value.StringValue(href);
-
-        if (externalMatcher.find()) {
-            String board = externalMatcher.group(1);
-
-            long threadId;
-            try {
-                threadId = Long.parseLong(externalMatcher.group(2));
-            } catch (NumberFormatException error) {
-                return new PostLinkable.Link(type, text, value);
-            }
+        PostLinkable.Type type;
+        PostLinkable.Value value;
 
-            long postId;
-            try {
-                postId = Long.parseLong(externalMatcher.group(3));
-            } catch (NumberFormatException e) {
-                return new PostLinkable.Link(type, text, value);
-            }
+        if (token instanceof AnchorHrefTokenizer.AnchorToken.FullQuote) {
+            AnchorHrefTokenizer.AnchorToken.FullQuote fullQuote = (AnchorHrefTokenizer.AnchorToken.FullQuote) token;
+            String board = fullQuote.getBoardCode();
+            long threadId = fullQuote.getThreadNo();
+            long postId = fullQuote.getPostNo();
 
             boolean isInternalQuote = board.equals(post.boardDescriptor.getBoardCode())
                     && callback.isInternal(postId)
@@ -748,89 +744,57 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
                 type = PostLinkable.Type.THREAD;
                 value = new PostLinkable.Value.ThreadOrPostLink(board, threadId, postId, 0L);
             }
-        } else {
-            Matcher quoteMatcher = matchInternalQuote(href, post);
-            if (quoteMatcher.matches()) {
-                long postId;
-                try {
-                    postId = Long.parseLong(quoteMatcher.group(1));
-                } catch (NumberFormatException error) {
-                    return new PostLinkable.Link(type, text, value);
-                }
-
-                if (callback.isInternal(postId)) {
-                    // TODO(KurobaEx / @GhostPosts): archive ghost posts
-                    int hiddenOrRemoved = callback.isHiddenOrRemoved(post.getOpId(), postId, 0);
-
-                    switch (hiddenOrRemoved) {
-                        case PostParser.HIDDEN_POST:
-                        case PostParser.REMOVED_POST:
-                            // Quote pointing to a (locally) hidden or removed post
-                            type = PostLinkable.Type.QUOTE_TO_HIDDEN_OR_REMOVED_POST;
-                            break;
-                        default:
-                            // Normal post quote
-                            type = PostLinkable.Type.QUOTE;
-                            break;
-                    }
-                } else {
-                    // Most likely a quote to a deleted post (Or any other post that we don't have
-                    // in the cache).
-                    type = PostLinkable.Type.DEAD;
+        } else if (token instanceof AnchorHrefTokenizer.AnchorToken.Quote) {
+            long postId = ((AnchorHrefTokenizer.AnchorToken.Quote) token).getPostNo();
+
+            if (callback.isInternal(postId)) {
+                // TODO(KurobaEx / @GhostPosts): archive ghost posts
+                int hiddenOrRemoved = callback.isHiddenOrRemoved(post.getOpId(), postId, 0);
+
+                switch (hiddenOrRemoved) {
+                    case PostParser.HIDDEN_POST:
+                    case PostParser.REMOVED_POST:
+                        // Quote pointing to a (locally) hidden or removed post
+                        type = PostLinkable.Type.QUOTE_TO_HIDDEN_OR_REMOVED_POST;
+                        break;
+                    default:
+                        // Normal post quote
+                        type = PostLinkable.Type.QUOTE;
+                        break;
                 }
-
-                value = new PostLinkable.Value.LongValue(postId);
             } else {
-                Matcher boardLinkMatcher = matchBoardLink(href, post);
-                Matcher boardSearchMatcher = matchBoardSearch(href, post);
-
-                if (boardLinkMatcher.matches()) {
-                    // board link
-                    type = PostLinkable.Type.BOARD;
-                    value = new PostLinkable.Value.StringValue(boardLinkMatcher.group(1));
-                } else if (boardSearchMatcher.matches()) {
-                    // search link
-                    String board = boardSearchMatcher.group(1);
-                    String search;
-
-                    try {
-                        search = URLDecoder.decode(boardSearchMatcher.group(2), "US-ASCII");
-                    } catch (UnsupportedEncodingException e) {
-                        search = boardSearchMatcher.group(2);
-                    }
-
-                    type = PostLinkable.Type.SEARCH;
-                    value = new PostLinkable.Value.SearchLink(board, search);
-                } else {
-                    // normal link
-                    type = PostLinkable.Type.LINK;
-                    value = new PostLinkable.Value.StringValue(href);
-                }
+                // Most likely a quote to a deleted post (Or any other post that we don't have
+                // in the cache).
+                type = PostLinkable.Type.DEAD;
             }
-        }
 
-        return new PostLinkable.Link(type, text, value);
-    }
+            value = new PostLinkable.Value.LongValue(postId);
+        } else if (token instanceof AnchorHrefTokenizer.AnchorToken.BoardLink) {
+            // board link
+            type = PostLinkable.Type.BOARD;
+            value = new PostLinkable.Value.StringValue(
+                    ((AnchorHrefTokenizer.AnchorToken.BoardLink) token).getBoardCode()
+            );
+        } else if (token instanceof AnchorHrefTokenizer.AnchorToken.BoardSearch) {
+            // search link
+            AnchorHrefTokenizer.AnchorToken.BoardSearch boardSearch = (AnchorHrefTokenizer.AnchorToken.BoardSearch) token;
+            String search;
 
-    protected Matcher matchBoardSearch(String href, ChanPostBuilder post) {
-        return boardSearchPattern.matcher(href);
-    }
+            try {
+                search = URLDecoder.decode(boardSearch.getRawQuery(), "US-ASCII");
+            } catch (UnsupportedEncodingException e) {
+                search = boardSearch.getRawQuery();
+            }
 
-    protected Matcher matchBoardLink(String href, ChanPostBuilder post) {
-        Matcher chan4BoardLinkMatcher = boardLinkPattern.matcher(href);
-        if (chan4BoardLinkMatcher.matches()) {
-            return chan4BoardLinkMatcher;
+            type = PostLinkable.Type.SEARCH;
+            value = new PostLinkable.Value.SearchLink(boardSearch.getBoardCode(), search);
+        } else {
+            // normal link (or a quote with a bugged post number)
+            type = PostLinkable.Type.LINK;
+            value = new PostLinkable.Value.StringValue(href);
         }
 
-        return boardLinkPattern8Chan.matcher(href);
-    }
-
-    private Matcher matchInternalQuote(String href, ChanPostBuilder post) {
-        return getQuotePattern().matcher(href);
-    }
-
-    private Matcher matchExternalQuote(String href, ChanPostBuilder post) {
-        return getFullQuotePattern().matcher(href);
+        return new PostLinkable.Link(type, text, value);
     }
 
     protected String extractQuote(@Nullable String href, @NonNull ChanPostBuilder post) {
@@ -838,7 +802,7 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
             return "";
         }
 
-        if (defaultQuoteRegex.matcher(href).matches()) {
+        if (AnchorHrefTokenizer.isFourChanPostLinkWithDomain(href)) {
             // gets us something like /board/ or /thread/postno#quoteno
             // hacky fix for 4chan having two domains but the same API
             return href.substring(2).substring(href.indexOf('/'));
@@ -5,4 +5,9 @@ import java.util.regex.Pattern
 interface HasQuotePatterns {
   fun getQuotePattern(): Pattern
   fun getFullQuotePattern(): Pattern
-}
\ No newline at end of file
+
+  /**
+   * The same links as [getQuotePattern] and [getFullQuotePattern] for [AnchorHrefTokenizer].
+   * */
+  fun getQuoteLinkFormat(): QuoteLinkFormat
+}
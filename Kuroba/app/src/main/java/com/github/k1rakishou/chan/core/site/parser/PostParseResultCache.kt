@@ -0,0 +1,188 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+import android.text.Spannable
+import android.text.SpannableString
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.MurmurHashUtils
+import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.core_themes.ThemeEngine
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Remembers parsed post comments (the spannable, linkables and replies) so that posts which didn't
+ * change since the last time they were parsed (catalog threads, original posts, threads that were
+ * evicted from the memory cache) don't have to go through the [PostParser] again.
+ *
+ * An entry is only reused when the post descriptor, the raw post hash (see
+ * [ChanPostBuilder.getGetPostHash]) and the parser version all match and when the
+ * [PostParser.Callback] still gives the same answers it gave when the post was parsed (e.g. a
+ * quoted post became hidden or a post that was quoted from another thread showed up in this one).
+ * The parser version is changed by [invalidate] (theme or filter changes) and also depends on the
+ * parser settings (see [calculateParserVersion]).
+ * */
+class PostParseResultCache(
+  private val maxSize: Int = DEFAULT_MAX_SIZE
+) : ThemeEngine.ThemeChangesListener {
+  private val invalidationsCounter = AtomicLong(0)
+
+  @GuardedBy("this")
+  private val cache = object : LinkedHashMap<PostDescriptor, CachedPostComment>(INITIAL_CAPACITY, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<PostDescriptor, CachedPostComment>?): Boolean {
+      return size > maxSize
+    }
+  }
+
+  override fun onThemeChanged() {
+    invalidate()
+  }
+
+  fun invalidate() {
+    synchronized(this) {
+      invalidationsCounter.incrementAndGet()
+      cache.clear()
+    }
+  }
+
+  fun calculateParserVersion(
+    parserSettingsHash: Int,
+    postParser: PostParser,
+    isParsingCatalog: Boolean
+  ): Long {
+    var result = invalidationsCounter.get()
+    result = 31 * result + parserSettingsHash
+    result = 31 * result + System.identityHashCode(postParser)
+    result = 31 * result + isParsingCatalog.hashCode()
+
+    return result
+  }
+
+  fun size(): Int {
+    return synchronized(this) { cache.size }
+  }
+
+  /**
+   * Sets the parsed comment, linkables and replies of the [postBuilder] if there is a cached entry
+   * for it. Returns false if there is no entry or it's stale in which case the post needs to be
+   * parsed.
+   * */
+  fun applyCachedComment(
+    postBuilder: ChanPostBuilder,
+    postHash: MurmurHashUtils.Murmur3Hash,
+    parserVersion: Long,
+    callback: PostParser.Callback
+  ): Boolean {
+    val cachedPostComment = synchronized(this) { cache[postBuilder.postDescriptor] }
+      ?: return false
+
+    if (cachedPostComment.postHash != postHash || cachedPostComment.parserVersion != parserVersion) {
+      return false
+    }
+
+    if (!cachedPostComment.callbackAnswers.sameAnswers(callback)) {
+      return false
+    }
+
+    // Every post gets its own copy since spans may be added to the comment later
+    postBuilder.postCommentBuilder.setParsedComment(SpannableString(cachedPostComment.comment))
+    postBuilder.postCommentBuilder.setPostLinkables(cachedPostComment.linkables)
+    postBuilder.repliesToIds(cachedPostComment.repliesTo)
+
+    return true
+  }
+
+  fun store(
+    postBuilder: ChanPostBuilder,
+    postHash: MurmurHashUtils.Murmur3Hash,
+    parserVersion: Long,
+    callbackAnswers: RecordingCallback
+  ) {
+    val comment = postBuilder.postCommentBuilder.getComment() as? Spannable
+      ?: return
+
+    val cachedPostComment = CachedPostComment(
+      postHash = postHash,
+      parserVersion = parserVersion,
+      comment = SpannableString(comment),
+      linkables = postBuilder.postCommentBuilder.getAllLinkables(),
+      repliesTo = postBuilder.repliesToIds.toSet(),
+      callbackAnswers = callbackAnswers
+    )
+
+    // Entries parsed before an invalidation may still end up here but they will never match since
+    // their parser version includes the old invalidations counter.
+    synchronized(this) { cache[postBuilder.postDescriptor] = cachedPostComment }
+  }
+
+  /**
+   * Remembers every question the parser asked while parsing a post along with the answers. Not
+   * thread-safe, every post gets its own instance.
+   * */
+  class RecordingCallback(
+    private val delegate: PostParser.Callback
+  ) : PostParser.Callback {
+    private val savedAnswers = mutableListOf<Pair<Triple<Long, Long, Long>, Boolean>>()
+    private val hiddenOrRemovedAnswers = mutableListOf<Pair<Triple<Long, Long, Long>, Int>>()
+    private val internalAnswers = mutableListOf<Pair<Long, Boolean>>()
+
+    override fun isSaved(threadNo: Long, postNo: Long, postSubNo: Long): Boolean {
+      val result = delegate.isSaved(threadNo, postNo, postSubNo)
+      savedAnswers += Pair(Triple(threadNo, postNo, postSubNo), result)
+      return result
+    }
+
+    override fun isHiddenOrRemoved(threadNo: Long, postNo: Long, postSubNo: Long): Int {
+      val result = delegate.isHiddenOrRemoved(threadNo, postNo, postSubNo)
+      hiddenOrRemovedAnswers += Pair(Triple(threadNo, postNo, postSubNo), result)
+      return result
+    }
+
+    override fun isInternal(postNo: Long): Boolean {
+      val result = delegate.isInternal(postNo)
+      internalAnswers += Pair(postNo, result)
+      return result
+    }
+
+    override fun isParsingCatalogPosts(): Boolean {
+      // Part of the parser version
+      return delegate.isParsingCatalogPosts()
+    }
+
+    internal fun sameAnswers(callback: PostParser.Callback): Boolean {
+      for ((postNo, result) in internalAnswers) {
+        if (callback.isInternal(postNo) != result) {
+          return false
+        }
+      }
+
+      for ((post, result) in savedAnswers) {
+        if (callback.isSaved(post.first, post.second, post.third) != result) {
+          return false
+        }
+      }
+
+      for ((post, result) in hiddenOrRemovedAnswers) {
+        if (callback.isHiddenOrRemoved(post.first, post.second, post.third) != result) {
+          return false
+        }
+      }
+
+      return true
+    }
+  }
+
+  private class CachedPostComment(
+    val postHash: MurmurHashUtils.Murmur3Hash,
+    val parserVersion: Long,
+    val comment: Spannable,
+    val linkables: List<PostLinkable>,
+    val repliesTo: Set<PostDescriptor>,
+    val callbackAnswers: RecordingCallback
+  )
+
+  companion object {
+    private const val INITIAL_CAPACITY = 256
+    private const val DEFAULT_MAX_SIZE = 8192
+  }
+}
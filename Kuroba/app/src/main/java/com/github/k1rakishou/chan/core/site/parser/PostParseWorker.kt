@@ -31,55 +31,85 @@ internal class PostParseWorker(
   private val internalIds: Set<Long>,
   private val savedPosts: Set<PostDescriptor>,
   private val hiddenOrRemovedPosts: Map<PostDescriptor, Int>,
-  private val isParsingCatalog: Boolean
+  private val isParsingCatalog: Boolean,
+  private val postParseResultCache: PostParseResultCache,
+  private val parserVersion: Long
 ) {
 
   suspend fun parse(): ChanPost? {
     return Try {
-      return@Try postParser.parseFull(postBuilder, object : PostParser.Callback {
+      val callback = createCallback()
 
-        override fun isSaved(threadNo: Long, postNo: Long, postSubNo: Long): Boolean {
-          if (threadNo <= 0 || postNo <= 0) {
-            return false
-          }
+      // Must be calculated before parsing since the parser may modify the name and the subject
+      val postHash = if (canUseParseResultCache()) postBuilder.getPostHash else null
+      if (postHash != null && postParseResultCache.applyCachedComment(postBuilder, postHash, parserVersion, callback)) {
+        // The comment is already parsed so only the name/subject will be processed here
+        return@Try postParser.parseFull(postBuilder, callback)
+      }
 
-          val postDescriptor = PostDescriptor.create(
-            chanDescriptor = postBuilder.postDescriptor.descriptor,
-            threadNo = threadNo,
-            postNo = postNo,
-            postSubNo = postSubNo
-          )
+      val recordingCallback = PostParseResultCache.RecordingCallback(callback)
+      val post = postParser.parseFull(postBuilder, recordingCallback)
 
-          return savedPosts.contains(postDescriptor)
-        }
+      if (postHash != null) {
+        postParseResultCache.store(postBuilder, postHash, parserVersion, recordingCallback)
+      }
 
-        override fun isHiddenOrRemoved(threadNo: Long, postNo: Long, postSubNo: Long): Int {
-          if (threadNo <= 0 || postNo <= 0) {
-            return PostParser.NORMAL_POST
-          }
+      return@Try post
+    }.mapErrorToValue { error ->
+      Logger.e(TAG, "Error parsing post ${postBuilderToString(postBuilder)}", error)
+      return@mapErrorToValue null
+    }
+  }
 
-          val postDescriptor = PostDescriptor.create(
-            chanDescriptor = postBuilder.postDescriptor.descriptor,
-            threadNo = threadNo,
-            postNo = postNo,
-            postSubNo = postSubNo
-          )
+  private fun canUseParseResultCache(): Boolean {
+    val postCommentBuilder = postBuilder.postCommentBuilder
 
-          return hiddenOrRemovedPosts[postDescriptor] ?: PostParser.NORMAL_POST
-        }
+    return !postCommentBuilder.commentAlreadyParsed()
+      && postCommentBuilder.hasUnparsedComment()
+      && postCommentBuilder.commentUpdateCounter <= 1
+  }
+
+  private fun createCallback(): PostParser.Callback {
+    return object : PostParser.Callback {
 
-        override fun isInternal(postNo: Long): Boolean {
-          return internalIds.contains(postNo)
+      override fun isSaved(threadNo: Long, postNo: Long, postSubNo: Long): Boolean {
+        if (threadNo <= 0 || postNo <= 0) {
+          return false
         }
 
-        override fun isParsingCatalogPosts(): Boolean {
-          return isParsingCatalog
+        val postDescriptor = PostDescriptor.create(
+          chanDescriptor = postBuilder.postDescriptor.descriptor,
+          threadNo = threadNo,
+          postNo = postNo,
+          postSubNo = postSubNo
+        )
+
+        return savedPosts.contains(postDescriptor)
+      }
+
+      override fun isHiddenOrRemoved(threadNo: Long, postNo: Long, postSubNo: Long): Int {
+        if (threadNo <= 0 || postNo <= 0) {
+          return PostParser.NORMAL_POST
         }
 
-      })
-    }.mapErrorToValue { error ->
-      Logger.e(TAG, "Error parsing post ${postBuilderToString(postBuilder)}", error)
-      return@mapErrorToValue null
+        val postDescriptor = PostDescriptor.create(
+          chanDescriptor = postBuilder.postDescriptor.descriptor,
+          threadNo = threadNo,
+          postNo = postNo,
+          postSubNo = postSubNo
+        )
+
+        return hiddenOrRemovedPosts[postDescriptor] ?: PostParser.NORMAL_POST
+      }
+
+      override fun isInternal(postNo: Long): Boolean {
+        return internalIds.contains(postNo)
+      }
+
+      override fun isParsingCatalogPosts(): Boolean {
+        return isParsingCatalog
+      }
+
     }
   }
 
@@ -0,0 +1,28 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+/**
+ * Describes what links to posts look like on a site so that [AnchorHrefTokenizer] can recognize
+ * them. A full quote looks like "/board/[threadPathSegment]/123[threadPageSuffix][postAnchorPrefix]456"
+ * and a quote to a post of the same thread looks like "[postAnchorPrefix]456".
+ *
+ * Must describe the same links as the patterns of [HasQuotePatterns].
+ * */
+class QuoteLinkFormat(
+  // "#p" on 4chan, "#" on most other sites
+  val postAnchorPrefix: String,
+  // "res" in "/tech/res/123.html#456", null when it can be any word
+  val threadPathSegment: String? = null,
+  // ".html" in "/tech/res/123.html#456"
+  val threadPageSuffix: String = ""
+) {
+
+  init {
+    require(postAnchorPrefix.isNotEmpty()) { "postAnchorPrefix must not be empty" }
+    require(threadPathSegment == null || threadPathSegment.isNotEmpty()) { "threadPathSegment must not be empty" }
+  }
+
+  companion object {
+    @JvmField
+    val FOUR_CHAN = QuoteLinkFormat(postAnchorPrefix = "#p")
+  }
+}
@@ -2,6 +2,7 @@ package com.github.k1rakishou.chan.core.site.sites.lynxchan.engine
 
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.site.parser.CommentParser
+import com.github.k1rakishou.chan.core.site.parser.QuoteLinkFormat
 import com.github.k1rakishou.chan.core.site.parser.style.StyleRule.tagRule
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.sp
 import com.github.k1rakishou.core_themes.ChanThemeColorId
@@ -31,8 +32,13 @@ class LynxchanCommentParser : CommentParser() {
     return FULL_QUOTE_PATTERN
   }
 
+  override fun getQuoteLinkFormat(): QuoteLinkFormat {
+    return QUOTE_LINK_FORMAT
+  }
+
   companion object {
     private val QUOTE_PATTERN = Pattern.compile("#(\\d+)")
     private val FULL_QUOTE_PATTERN = Pattern.compile("\\/(\\w+)\\/res\\/(\\d+).html#(\\d+)")
+    private val QUOTE_LINK_FORMAT = QuoteLinkFormat(postAnchorPrefix = "#", threadPathSegment = "res", threadPageSuffix = ".html")
   }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package com.github.k1rakishou.chan.core.startup
+
+/**
+ * A single step of the application startup. The task is only started once every task from
+ * [dependencies] has finished (successfully or not). Tasks that are [requiredForFirstFrame] (and
+ * everything they depend on) are the ones the UI waits for before showing anything.
+ * */
+class StartupTask(
+  val name: String,
+  val dependencies: Set<String> = emptySet(),
+  val requiredForFirstFrame: Boolean = false,
+  val action: suspend () -> Unit
+) {
+
+  override fun toString(): String {
+    return "StartupTask(name='$name', dependencies=$dependencies, requiredForFirstFrame=$requiredForFirstFrame)"
+  }
+
+}
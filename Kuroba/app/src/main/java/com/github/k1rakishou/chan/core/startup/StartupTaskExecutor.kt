@@ -0,0 +1,187 @@
+package com.github.k1rakishou.chan.core.startup
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.launch
+
+/**
+ * Runs the tasks of a [StartupTaskGraph] on [scope], each one as soon as all of its dependencies
+ * are done, with at most [maxParallelism] tasks running at the same time. When more tasks than
+ * that are ready to run, the ones needed for the first frame go first.
+ *
+ * A task that fails doesn't stop its dependents from running (the error is logged and recorded in
+ * the trace), the same way startup didn't stop when something couldn't be initialized before.
+ * */
+class StartupTaskExecutor(
+  private val scope: CoroutineScope,
+  private val maxParallelism: Int,
+  private val startupTrace: StartupTrace
+) {
+
+  init {
+    require(maxParallelism > 0) { "Bad maxParallelism: $maxParallelism" }
+  }
+
+  fun execute(graph: StartupTaskGraph): StartupRun {
+    val startupRun = StartupRun(graph)
+    startupRun.start()
+
+    return startupRun
+  }
+
+  private suspend fun runTask(task: StartupTask, readyAt: Long) {
+    val startedAt = startupTrace.now()
+    val startedOnThread = Thread.currentThread().name
+    var error: Throwable? = null
+
+    try {
+      task.action()
+    } catch (exception: Throwable) {
+      if (exception is CancellationException) {
+        throw exception
+      }
+
+      Logger.e(TAG, "Startup task ${task.name} failed", exception)
+      error = exception
+    }
+
+    val event = StartupTrace.TaskEvent(
+      name = task.name,
+      requiredForFirstFrame = task.requiredForFirstFrame,
+      readyAtNanos = readyAt,
+      startedAtNanos = startedAt,
+      finishedAtNanos = startupTrace.now(),
+      startedOnThread = startedOnThread,
+      error = error?.errorMessageOrClassName()
+    )
+
+    startupTrace.record(event)
+  }
+
+  inner class StartupRun internal constructor(
+    private val graph: StartupTaskGraph
+  ) {
+    private val lock = Any()
+    private val firstFrameTaskNames = graph.firstFrameTaskNames()
+    private val doneByName = graph.tasks.associate { task -> task.name to CompletableDeferred<Unit>() }
+    private val dependentsByName = graph.tasks
+      .flatMap { task -> task.dependencies.map { dependency -> dependency to task } }
+      .groupBy(keySelector = { (dependency, _) -> dependency }, valueTransform = { (_, task) -> task })
+
+    @GuardedBy("lock")
+    private val remainingDependencies = graph.tasks
+      .associate { task -> task.name to task.dependencies.size }
+      .toMutableMap()
+    @GuardedBy("lock")
+    private val readyAtByName = mutableMapOf<String, Long>()
+    // First frame tasks are taken from here before the other ones
+    @GuardedBy("lock")
+    private val readyFirstFrameTasks = ArrayDeque<StartupTask>()
+    @GuardedBy("lock")
+    private val readyOtherTasks = ArrayDeque<StartupTask>()
+    @GuardedBy("lock")
+    private var runningTasksCount = 0
+
+    internal fun start() {
+      val toLaunch = synchronized(lock) {
+        graph.tasks
+          .filter { task -> task.dependencies.isEmpty() }
+          .forEach { task -> onTaskReadyLocked(task) }
+
+        pollTasksToLaunchLocked()
+      }
+
+      toLaunch.forEach { task -> launchTask(task) }
+    }
+
+    /**
+     * Waits until every task that is required for the first frame (and everything they depend on)
+     * is done.
+     * */
+    suspend fun awaitFirstFrameTasks() {
+      firstFrameTaskNames.map { name -> doneByName[name]!! }.awaitAll()
+    }
+
+    suspend fun awaitAllTasks() {
+      doneByName.values.awaitAll()
+    }
+
+    fun isDone(): Boolean {
+      return doneByName.values.all { done -> done.isCompleted }
+    }
+
+    private fun launchTask(task: StartupTask) {
+      val readyAt = synchronized(lock) { readyAtByName[task.name]!! }
+
+      // Started undispatched so that the tasks that can run right away start on the calling thread
+      // (before execute() returns for the tasks without dependencies)
+      scope.launch(start = CoroutineStart.UNDISPATCHED) {
+        try {
+          runTask(task, readyAt)
+        } finally {
+          onTaskFinished(task)
+        }
+      }
+    }
+
+    private fun onTaskFinished(task: StartupTask) {
+      // The dependents are queued before the finished task's slot is given away so that a first
+      // frame task that became ready just now goes before the other tasks that were waiting
+      val toLaunch = synchronized(lock) {
+        --runningTasksCount
+
+        dependentsByName[task.name]?.forEach { dependent ->
+          val remaining = remainingDependencies[dependent.name]!! - 1
+          remainingDependencies[dependent.name] = remaining
+
+          if (remaining == 0) {
+            onTaskReadyLocked(dependent)
+          }
+        }
+
+        pollTasksToLaunchLocked()
+      }
+
+      doneByName[task.name]!!.complete(Unit)
+      toLaunch.forEach { nextTask -> launchTask(nextTask) }
+    }
+
+    @GuardedBy("lock")
+    private fun onTaskReadyLocked(task: StartupTask) {
+      readyAtByName[task.name] = startupTrace.now()
+
+      if (task.name in firstFrameTaskNames) {
+        readyFirstFrameTasks.addLast(task)
+      } else {
+        readyOtherTasks.addLast(task)
+      }
+    }
+
+    @GuardedBy("lock")
+    private fun pollTasksToLaunchLocked(): List<StartupTask> {
+      val toLaunch = mutableListOf<StartupTask>()
+
+      while (runningTasksCount < maxParallelism) {
+        val task = readyFirstFrameTasks.removeFirstOrNull()
+          ?: readyOtherTasks.removeFirstOrNull()
+          ?: break
+
+        ++runningTasksCount
+        toLaunch += task
+      }
+
+      return toLaunch
+    }
+
+  }
+
+  companion object {
+    private const val TAG = "StartupTaskExecutor"
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.k1rakishou.chan.core.startup
+
+/**
+ * A validated set of [StartupTask]s. [tasks] are sorted so that every task comes after all of its
+ * dependencies (tasks that don't depend on each other keep the order they were declared in).
+ * */
+class StartupTaskGraph private constructor(
+  val tasks: List<StartupTask>
+) {
+  private val tasksByName = tasks.associateBy { task -> task.name }
+
+  fun task(name: String): StartupTask {
+    return requireNotNull(tasksByName[name]) { "Unknown task: $name" }
+  }
+
+  /**
+   * Names of the tasks that are required for the first frame together with every task they
+   * (transitively) depend on.
+   * */
+  fun firstFrameTaskNames(): Set<String> {
+    val result = mutableSetOf<String>()
+    val queue = ArrayDeque(tasks.filter { task -> task.requiredForFirstFrame }.map { task -> task.name })
+
+    while (queue.isNotEmpty()) {
+      val name = queue.removeFirst()
+      if (!result.add(name)) {
+        continue
+      }
+
+      queue.addAll(task(name).dependencies)
+    }
+
+    return result
+  }
+
+  class CyclicDependencyException(
+    val cycle: List<String>
+  ) : IllegalArgumentException("Startup tasks depend on each other: ${cycle.joinToString(separator = " -> ")}")
+
+  companion object {
+
+    /**
+     * @throws IllegalArgumentException when two tasks have the same name or a task depends on a
+     * task that doesn't exist.
+     * @throws CyclicDependencyException when tasks (transitively) depend on each other.
+     * */
+    fun build(tasks: List<StartupTask>): StartupTaskGraph {
+      val tasksByName = linkedMapOf<String, StartupTask>()
+
+      tasks.forEach { task ->
+        require(tasksByName.put(task.name, task) == null) { "Duplicate task: ${task.name}" }
+      }
+
+      tasks.forEach { task ->
+        task.dependencies.forEach { dependency ->
+          require(tasksByName.containsKey(dependency)) { "Task ${task.name} depends on unknown task $dependency" }
+        }
+      }
+
+      findCycle(tasksByName)?.let { cycle -> throw CyclicDependencyException(cycle) }
+
+      val sorted = mutableListOf<StartupTask>()
+      val added = mutableSetOf<String>()
+
+      while (sorted.size < tasks.size) {
+        tasks.forEach { task ->
+          if (task.name !in added && added.containsAll(task.dependencies)) {
+            sorted += task
+            added += task.name
+          }
+        }
+      }
+
+      return StartupTaskGraph(sorted)
+    }
+
+    private fun findCycle(tasksByName: Map<String, StartupTask>): List<String>? {
+      val visited = mutableSetOf<String>()
+      val path = mutableListOf<String>()
+
+      fun visit(name: String): List<String>? {
+        val indexInPath = path.indexOf(name)
+        if (indexInPath >= 0) {
+          return path.subList(indexInPath, path.size) + name
+        }
+
+        if (!visited.add(name)) {
+          return null
+        }
+
+        path += name
+
+        tasksByName[name]!!.dependencies.forEach { dependency ->
+          visit(dependency)?.let { cycle -> return cycle }
+        }
+
+        path.removeAt(path.lastIndex)
+        return null
+      }
+
+      tasksByName.keys.forEach { name ->
+        visit(name)?.let { cycle -> return cycle }
+      }
+
+      return null
+    }
+
+  }
+
+}
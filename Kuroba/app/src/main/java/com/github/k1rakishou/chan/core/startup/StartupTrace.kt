@@ -0,0 +1,196 @@
+package com.github.k1rakishou.chan.core.startup
+
+import androidx.annotation.GuardedBy
+import com.google.gson.stream.JsonWriter
+import java.io.File
+import java.io.Writer
+
+/**
+ * Records when every startup task was ready to run (all of its dependencies were done), when it
+ * actually started, when it finished and on which thread. Can be written into a file in the Chrome
+ * trace event format (open it with chrome://tracing or https://ui.perfetto.dev).
+ * */
+class StartupTrace(
+  private val nanoTime: () -> Long = { System.nanoTime() }
+) {
+  private val lock = Any()
+  private val origin = nanoTime()
+
+  @GuardedBy("lock")
+  private val events = mutableListOf<TaskEvent>()
+  @GuardedBy("lock")
+  private val milestones = mutableListOf<Milestone>()
+
+  fun now(): Long = nanoTime()
+
+  fun record(event: TaskEvent) {
+    synchronized(lock) { events += event }
+  }
+
+  fun milestone(name: String) {
+    val milestone = Milestone(name, nanoTime(), Thread.currentThread().name)
+    synchronized(lock) { milestones += milestone }
+  }
+
+  fun events(): List<TaskEvent> {
+    return synchronized(lock) { events.toList() }
+  }
+
+  /**
+   * The chain of tasks that ended the latest among the tasks required for the first frame, going
+   * from the first task of the chain to the last one. Every task of the chain is the dependency that
+   * finished the latest, i.e. the one its dependent had to wait for.
+   * */
+  fun firstFrameCriticalPath(graph: StartupTaskGraph): List<TaskEvent> {
+    val eventsByName = events().associateBy { event -> event.name }
+    val firstFrameTaskNames = graph.firstFrameTaskNames()
+
+    var current = firstFrameTaskNames
+      .mapNotNull { name -> eventsByName[name] }
+      .maxByOrNull { event -> event.finishedAtNanos }
+      ?: return emptyList()
+
+    val path = mutableListOf(current)
+
+    while (true) {
+      current = graph.task(current.name).dependencies
+        .mapNotNull { name -> eventsByName[name] }
+        .maxByOrNull { event -> event.finishedAtNanos }
+        ?: break
+
+      path += current
+    }
+
+    return path.reversed()
+  }
+
+  fun writeTo(file: File) {
+    val tmpFile = File(file.parentFile, "${file.name}.tmp")
+    tmpFile.bufferedWriter().use { writer -> writeTo(writer) }
+
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete()
+      throw IllegalStateException("Failed to rename ${tmpFile.absolutePath} into ${file.absolutePath}")
+    }
+  }
+
+  fun writeTo(writer: Writer) {
+    val (eventsSnapshot, milestonesSnapshot) = synchronized(lock) { events.toList() to milestones.toList() }
+    val threadIds = mutableMapOf<String, Int>()
+
+    fun threadId(threadName: String): Int = threadIds.getOrPut(threadName) { threadIds.size + 1 }
+
+    JsonWriter(writer).use { jsonWriter ->
+      jsonWriter.beginObject()
+      jsonWriter.name("displayTimeUnit").value("ms")
+      jsonWriter.name("traceEvents")
+      jsonWriter.beginArray()
+
+      eventsSnapshot.forEach { event ->
+        if (event.startedAtNanos > event.readyAtNanos) {
+          jsonWriter.writeCompleteEvent(
+            eventName = "${event.name} (waiting)",
+            category = CATEGORY_WAITING,
+            startNanos = event.readyAtNanos,
+            endNanos = event.startedAtNanos,
+            threadId = threadId(event.startedOnThread)
+          )
+        }
+
+        jsonWriter.writeCompleteEvent(
+          eventName = event.name,
+          category = if (event.requiredForFirstFrame) CATEGORY_FIRST_FRAME else CATEGORY_BACKGROUND,
+          startNanos = event.startedAtNanos,
+          endNanos = event.finishedAtNanos,
+          threadId = threadId(event.startedOnThread),
+          error = event.error
+        )
+      }
+
+      milestonesSnapshot.forEach { milestone ->
+        jsonWriter.beginObject()
+        jsonWriter.name("name").value(milestone.name)
+        jsonWriter.name("ph").value("i")
+        jsonWriter.name("s").value("g")
+        jsonWriter.name("ts").value(toTraceMicros(milestone.atNanos))
+        jsonWriter.name("pid").value(PROCESS_ID)
+        jsonWriter.name("tid").value(threadId(milestone.threadName))
+        jsonWriter.endObject()
+      }
+
+      threadIds.forEach { (threadName, tid) ->
+        jsonWriter.beginObject()
+        jsonWriter.name("name").value("thread_name")
+        jsonWriter.name("ph").value("M")
+        jsonWriter.name("pid").value(PROCESS_ID)
+        jsonWriter.name("tid").value(tid)
+        jsonWriter.name("args")
+        jsonWriter.beginObject()
+        jsonWriter.name("name").value(threadName)
+        jsonWriter.endObject()
+        jsonWriter.endObject()
+      }
+
+      jsonWriter.endArray()
+      jsonWriter.endObject()
+    }
+  }
+
+  private fun JsonWriter.writeCompleteEvent(
+    eventName: String,
+    category: String,
+    startNanos: Long,
+    endNanos: Long,
+    threadId: Int,
+    error: String? = null
+  ) {
+    beginObject()
+    name("name").value(eventName)
+    name("cat").value(category)
+    name("ph").value("X")
+    name("ts").value(toTraceMicros(startNanos))
+    name("dur").value((endNanos - startNanos) / 1000)
+    name("pid").value(PROCESS_ID)
+    name("tid").value(threadId)
+
+    if (error != null) {
+      name("args")
+      beginObject()
+      name("error").value(error)
+      endObject()
+    }
+
+    endObject()
+  }
+
+  private fun toTraceMicros(nanos: Long): Long = (nanos - origin) / 1000
+
+  class TaskEvent(
+    val name: String,
+    val requiredForFirstFrame: Boolean,
+    val readyAtNanos: Long,
+    val startedAtNanos: Long,
+    val finishedAtNanos: Long,
+    val startedOnThread: String,
+    val error: String?
+  ) {
+    val waitNanos: Long
+      get() = startedAtNanos - readyAtNanos
+    val durationNanos: Long
+      get() = finishedAtNanos - startedAtNanos
+  }
+
+  private class Milestone(
+    val name: String,
+    val atNanos: Long,
+    val threadName: String
+  )
+
+  companion object {
+    private const val PROCESS_ID = 1
+
+    private const val CATEGORY_FIRST_FRAME = "first_frame"
+    private const val CATEGORY_BACKGROUND = "background"
+    private const val CATEGORY_WAITING = "waiting"
+  }
+}
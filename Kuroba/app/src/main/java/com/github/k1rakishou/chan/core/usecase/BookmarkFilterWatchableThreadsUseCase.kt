@@ -8,6 +8,8 @@ import com.github.k1rakishou.chan.core.manager.BookmarksManager
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadBookmarkGroupManager
+import com.github.k1rakishou.chan.core.net.JsonReaderRequest
+import com.github.k1rakishou.chan.core.site.Site
 import com.github.k1rakishou.chan.core.site.parser.ChanReader
 import com.github.k1rakishou.chan.core.site.parser.search.SimpleCommentParser
 import com.github.k1rakishou.common.AppConstants
@@ -18,6 +20,7 @@ import com.github.k1rakishou.common.isNotNullNorEmpty
 import com.github.k1rakishou.common.processDataCollectionConcurrently
 import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.board.pages.BoardPages
 import com.github.k1rakishou.model.data.bookmark.BookmarkGroupMatchFlag
 import com.github.k1rakishou.model.data.bookmark.SimpleThreadBookmarkGroupToCreate
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmark
@@ -25,9 +28,8 @@ import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkGroupMatchPattern
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkGroupMatchPatternBuilder
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
-import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.ChanFilterWatchEvaluatedThread
 import com.github.k1rakishou.model.data.filter.ChanFilterWatchGroup
-import com.github.k1rakishou.model.data.filter.FilterType
 import com.github.k1rakishou.model.data.filter.FilterWatchCatalogInfoObject
 import com.github.k1rakishou.model.data.filter.FilterWatchCatalogThreadInfoObject
 import com.github.k1rakishou.model.repository.ChanFilterWatchRepository
@@ -60,6 +62,13 @@ class BookmarkFilterWatchableThreadsUseCase(
   private val chanFilterWatchRepository: ChanFilterWatchRepository
 ) : ISuspendUseCase<Unit, ModularResult<Map<String, MutableList<ChanDescriptor.ThreadDescriptor>>>> {
 
+  private val filterWatchIncrementalEvaluator = FilterWatchIncrementalEvaluator(
+    appConstants = appConstants,
+    simpleCommentParser = simpleCommentParser,
+    filterEngine = filterEngine,
+    chanFilterWatchRepository = chanFilterWatchRepository
+  )
+
   /**
    * Returns true is we successfully fetched catalog threads, matched at least one filter with at
    * least one thread and successfully created at least one watch filter group.
@@ -97,39 +106,20 @@ class BookmarkFilterWatchableThreadsUseCase(
       }
     }
 
-    val catalogFetchResults = fetchFilterWatcherCatalogs(boardDescriptorsToCheck)
+    val filterSetVersion = filterWatchIncrementalEvaluator.calculateFilterSetVersion(enabledWatchFilters)
+    val catalogFetchResults = fetchFilterWatcherCatalogs(boardDescriptorsToCheck, filterSetVersion)
 
-    val filterWatchCatalogInfoObjects = filterOutNonSuccessResults(catalogFetchResults)
-    if (filterWatchCatalogInfoObjects.isEmpty()) {
-      Logger.d(TAG, "doWorkInternal() Nothing has left after filtering out error results")
+    val successCatalogFetchResults = filterOutNonSuccessResults(catalogFetchResults)
+    if (successCatalogFetchResults.isEmpty()) {
+      Logger.d(TAG, "doWorkInternal() Nothing has left after filtering out error and unchanged results")
       return emptyMap()
     }
 
-    val matchedCatalogThreads = filterOutThreadsThatDoNotMatchWatchFilters(
-      filterWatchCatalogInfoObjects
-    ) { catalogThread ->
-      val rawComment = catalogThread.comment()
-      val subject = catalogThread.subject
-      val catalogBoardDescriptor = catalogThread.threadDescriptor.boardDescriptor
-      val parsedComment = simpleCommentParser.get().parseComment(rawComment) ?: ""
-
-      // Update the old unparsed comment with the parsed one
-      catalogThread.replaceRawCommentWithParsed(parsedComment.toString())
-
-      val matchedFilter = tryMatchWatchFiltersWithThreadInfo(
-        enabledWatchFilters = enabledWatchFilters,
-        catalogBoardDescriptor = catalogBoardDescriptor,
-        parsedComment = parsedComment,
-        subject = subject
-      )
-
-      if (matchedFilter != null) {
-        // Set the matched filter which we will use for grouping
-        catalogThread.setMatchedFilter(matchedFilter)
-      }
-
-      return@filterOutThreadsThatDoNotMatchWatchFilters matchedFilter != null
-    }
+    val matchedCatalogThreads = filterWatchIncrementalEvaluator.evaluate(
+      successCatalogFetchResults = successCatalogFetchResults,
+      enabledWatchFilters = enabledWatchFilters,
+      filterSetVersion = filterSetVersion
+    ).matchedCatalogThreads
 
     if (matchedCatalogThreads.isEmpty()) {
       Logger.d(TAG, "doWorkInternal() Nothing has left after filtering out non-matching catalog threads")
@@ -375,71 +365,23 @@ class BookmarkFilterWatchableThreadsUseCase(
     return ChanPostUtils.getTitle(subject, comment, threadDescriptor)
   }
 
-  private fun tryMatchWatchFiltersWithThreadInfo(
-    enabledWatchFilters: List<ChanFilter>,
-    catalogBoardDescriptor: BoardDescriptor,
-    parsedComment: CharSequence,
-    subject: String
-  ): ChanFilter? {
-    for (watchFilter in enabledWatchFilters) {
-      if (!watchFilter.matchesBoard(catalogBoardDescriptor)) {
-        continue
-      }
+  private suspend fun filterOutNonSuccessResults(
+    catalogFetchResults: List<CatalogFetchResult>
+  ): List<CatalogFetchResult.Success> {
+    val unchangedEvaluatedThreads = mutableListOf<ChanFilterWatchEvaluatedThread>()
 
-      if (filterEngine.typeMatches(watchFilter, FilterType.COMMENT)) {
-        if (filterEngine.matches(watchFilter, parsedComment, false)) {
-          if (watchFilter.isAvoidWatchFilter())
-          {
-            return null;
-          }
-          return watchFilter
+    val successResults = catalogFetchResults.mapNotNull { catalogFetchResult ->
+      when (catalogFetchResult) {
+        is CatalogFetchResult.Success -> {
+          return@mapNotNull catalogFetchResult
         }
-      }
-
-      if (filterEngine.typeMatches(watchFilter, FilterType.SUBJECT)) {
-        if (filterEngine.matches(watchFilter, subject, false)) {
-          if (watchFilter.isAvoidWatchFilter())
-          {
-            return null;
+        is CatalogFetchResult.Unchanged -> {
+          if (verboseLogsEnabled) {
+            Logger.d(TAG, "catalogFetchResult unchanged, boardDescriptor=${catalogFetchResult.boardDescriptor}")
           }
-          return watchFilter
-        }
-      }
-    }
-
-    return null
-  }
-
-  private suspend fun filterOutThreadsThatDoNotMatchWatchFilters(
-    filterWatchCatalogInfoObjects: List<FilterWatchCatalogInfoObject>,
-    predicate: suspend (FilterWatchCatalogThreadInfoObject) -> Boolean
-  ): List<FilterWatchCatalogThreadInfoObject> {
-    val batchSize = (appConstants.processorsCount * BATCH_PER_CORE)
-      .coerceAtLeast(MIN_BATCHES_COUNT)
-
-    val filterWatchCatalogThreadInfoObjectList = filterWatchCatalogInfoObjects
-      .flatMap { filterWatchCatalogInfoObject -> filterWatchCatalogInfoObject.catalogThreads }
-
-    return processDataCollectionConcurrently(
-      dataList = filterWatchCatalogThreadInfoObjectList,
-      batchCount = batchSize,
-      dispatcher = Dispatchers.IO
-    ) { catalogThread ->
-      if (predicate(catalogThread)) {
-        return@processDataCollectionConcurrently catalogThread
-      }
-
-      return@processDataCollectionConcurrently null
-    }
-  }
 
-  private fun filterOutNonSuccessResults(
-    catalogFetchResults: List<CatalogFetchResult>
-  ): List<FilterWatchCatalogInfoObject> {
-    return catalogFetchResults.mapNotNull { catalogFetchResult ->
-      when (catalogFetchResult) {
-        is CatalogFetchResult.Success -> {
-          return@mapNotNull catalogFetchResult.filterWatchCatalogInfoObject
+          unchangedEvaluatedThreads.addAll(catalogFetchResult.evaluatedThreads)
+          return@mapNotNull null
         }
         is CatalogFetchResult.Error -> {
           if (verboseLogsEnabled) {
@@ -453,10 +395,22 @@ class BookmarkFilterWatchableThreadsUseCase(
         }
       }
     }
+
+    if (unchangedEvaluatedThreads.isNotEmpty()) {
+      // Bump the evaluation time so that the records of the unchanged boards are not deleted
+      val now = System.currentTimeMillis()
+      val refreshedEvaluatedThreads = unchangedEvaluatedThreads
+        .map { evaluatedThread -> evaluatedThread.copy(evaluatedAt = now) }
+
+      filterWatchIncrementalEvaluator.storeEvaluatedThreads(refreshedEvaluatedThreads, now)
+    }
+
+    return successResults
   }
 
   private suspend fun fetchFilterWatcherCatalogs(
     boardDescriptorsToCheck: Set<BoardDescriptor>,
+    filterSetVersion: Long
   ): List<CatalogFetchResult> {
     val batchSize = (appConstants.processorsCount * BATCH_PER_CORE)
       .coerceAtLeast(MIN_BATCHES_COUNT)
@@ -469,20 +423,66 @@ class BookmarkFilterWatchableThreadsUseCase(
         return@processDataCollectionConcurrently null
       }
 
+      val prevEvaluatedThreads = filterWatchIncrementalEvaluator.loadPrevEvaluatedThreads(boardDescriptor)
+
+      val boardPages = fetchBoardPagesOrNull(site, boardDescriptor)
+
+      if (boardPages != null) {
+        val canSkipCatalogFetch = filterWatchIncrementalEvaluator.canSkipCatalogFetch(
+          boardPages = boardPages,
+          prevEvaluatedThreads = prevEvaluatedThreads,
+          filterSetVersion = filterSetVersion,
+          bookmarkExists = { threadDescriptor -> bookmarksManager.contains(threadDescriptor) }
+        )
+
+        if (canSkipCatalogFetch) {
+          return@processDataCollectionConcurrently CatalogFetchResult.Unchanged(
+            boardDescriptor = boardDescriptor,
+            evaluatedThreads = prevEvaluatedThreads.values.toList()
+          )
+        }
+      }
+
       val catalogJsonEndpoint = site.endpoints().catalog(boardDescriptor)
 
       return@processDataCollectionConcurrently fetchBoardCatalog(
-        boardDescriptor,
-        catalogJsonEndpoint,
-        site.chanReader()
+        boardDescriptor = boardDescriptor,
+        catalogJsonEndpoint = catalogJsonEndpoint,
+        chanReader = site.chanReader(),
+        prevEvaluatedThreads = prevEvaluatedThreads,
+        lastModifiedMap = FilterWatchIncrementalEvaluator.lastModifiedMap(boardPages)
       )
     }
   }
 
+  private suspend fun fetchBoardPagesOrNull(site: Site, boardDescriptor: BoardDescriptor): BoardPages? {
+    val board = boardManager.byBoardDescriptor(boardDescriptor)
+      ?: return null
+
+    return when (val response = site.actions().pages(board)) {
+      is JsonReaderRequest.JsonReaderResponse.Success -> response.result
+      is JsonReaderRequest.JsonReaderResponse.ServerError -> {
+        Logger.e(TAG, "fetchBoardPagesOrNull($boardDescriptor) server error, status code: ${response.statusCode}")
+        null
+      }
+      is JsonReaderRequest.JsonReaderResponse.UnknownServerError -> {
+        Logger.e(TAG, "fetchBoardPagesOrNull($boardDescriptor) unknown server error", response.error)
+        null
+      }
+      is JsonReaderRequest.JsonReaderResponse.ParsingError -> {
+        Logger.e(TAG, "fetchBoardPagesOrNull($boardDescriptor) parsing error", response.error)
+        null
+      }
+      null -> null
+    }
+  }
+
   private suspend fun fetchBoardCatalog(
     boardDescriptor: BoardDescriptor,
     catalogJsonEndpoint: HttpUrl,
-    chanReader: ChanReader
+    chanReader: ChanReader,
+    prevEvaluatedThreads: Map<ChanDescriptor.ThreadDescriptor, ChanFilterWatchEvaluatedThread>,
+    lastModifiedMap: Map<ChanDescriptor.ThreadDescriptor, Long>
   ): CatalogFetchResult {
     if (verboseLogsEnabled) {
       Logger.d(TAG, "fetchBoardCatalog() catalogJsonEndpoint=$catalogJsonEndpoint")
@@ -537,7 +537,11 @@ class BookmarkFilterWatchableThreadsUseCase(
 
     filterWatchCatalogInfoObjectResult as ModularResult.Value
 
-    return CatalogFetchResult.Success(filterWatchCatalogInfoObjectResult.value)
+    return CatalogFetchResult.Success(
+      filterWatchCatalogInfoObject = filterWatchCatalogInfoObjectResult.value,
+      prevEvaluatedThreads = prevEvaluatedThreads,
+      lastModifiedMap = lastModifiedMap
+    )
   }
 
   private fun collectBoardDescriptorsToCheck(): Set<BoardDescriptor> {
@@ -573,7 +577,14 @@ class BookmarkFilterWatchableThreadsUseCase(
 
   sealed class CatalogFetchResult {
     data class Success(
-      val filterWatchCatalogInfoObject: FilterWatchCatalogInfoObject
+      val filterWatchCatalogInfoObject: FilterWatchCatalogInfoObject,
+      val prevEvaluatedThreads: Map<ChanDescriptor.ThreadDescriptor, ChanFilterWatchEvaluatedThread>,
+      val lastModifiedMap: Map<ChanDescriptor.ThreadDescriptor, Long>
+    ) : CatalogFetchResult()
+
+    data class Unchanged(
+      val boardDescriptor: BoardDescriptor,
+      val evaluatedThreads: List<ChanFilterWatchEvaluatedThread>
     ) : CatalogFetchResult()
 
     data class Error(val error: Throwable) : CatalogFetchResult()
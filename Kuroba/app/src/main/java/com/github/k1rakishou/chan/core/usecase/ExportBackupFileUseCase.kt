@@ -2,6 +2,7 @@ package com.github.k1rakishou.chan.core.usecase
 
 import android.content.Context
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.core.backup.BackupArchiveWriter
 import com.github.k1rakishou.chan.features.settings.screens.delegate.ExportBackupOptions
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.BackgroundUtils
@@ -14,13 +15,10 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.ExternalFile
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository
+import com.google.gson.Gson
 import okhttp3.internal.closeQuietly
-import java.io.BufferedInputStream
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
@@ -28,7 +26,8 @@ class ExportBackupFileUseCase(
   private val appContext: Context,
   private val appConstants: AppConstants,
   private val databaseMetaRepository: DatabaseMetaRepository,
-  private val fileManager: FileManager
+  private val fileManager: FileManager,
+  private val gson: Gson
 ) : ISuspendUseCase<ExportBackupFileUseCase.Params, ModularResult<Unit>> {
 
   override suspend fun execute(parameter: Params): ModularResult<Unit> {
@@ -105,75 +104,71 @@ class ExportBackupFileUseCase(
 
     Logger.d(TAG, "Executing checkpoint command... done! took ${time}")
 
+    val entries = collectEntries(null, filesToExport) { directory, fileToExport ->
+      val fileName = when {
+        fileToExport.name == mainSharedPrefsFileName -> MAIN_PREFS_FILE_NAME
+        fileToExport == appConstants.threadDownloaderCacheDir -> THREAD_DOWNLOADS_CACHE_DIR
+        else -> fileToExport.name
+      }
+
+      if (directory == null) {
+        return@collectEntries fileName
+      }
+
+      return@collectEntries directory + fileName
+    }
+
     val outputStream = fileManager.getOutputStream(outputFile)
       ?: throw IOException("Failed to open output stream for file '${outputFile.getFullPath()}'")
-    val zipOutputStream = ZipOutputStream(outputStream)
 
-    Logger.d(TAG, "Output zip file='${outputFile.getFullPath()}'")
+    Logger.d(TAG, "Output zip file='${outputFile.getFullPath()}', entries=${entries.size}")
 
     try {
-      zipFiles(null, filesToExport, zipOutputStream) { directory, fileToExport ->
-        val fileName = when {
-          fileToExport.name == mainSharedPrefsFileName -> MAIN_PREFS_FILE_NAME
-          fileToExport == appConstants.threadDownloaderCacheDir -> THREAD_DOWNLOADS_CACHE_DIR
-          else -> fileToExport.name
-        }
-
-        if (directory == null) {
-          return@zipFiles fileName
-        }
-
-        return@zipFiles directory + fileName
+      val backupArchiveWriter = BackupArchiveWriter(
+        gson = gson,
+        tempDir = appConstants.tempFilesDir,
+        parallelism = appConstants.processorsCount
+      )
+
+      val writeTime = measureTime {
+        val manifest = backupArchiveWriter.write(entries, outputStream)
+        val storedCount = manifest.entries.count { entry -> entry.stored }
+
+        Logger.d(TAG, "Wrote ${manifest.entries.size} entries (${storedCount} stored without compression)")
       }
 
-      Logger.d(TAG, "Export success!")
+      Logger.d(TAG, "Export success! took ${writeTime}")
     } catch (error: Throwable) {
       Logger.e(TAG, "Export error", error)
       throw error
     } finally {
       outputStream.closeQuietly()
-      zipOutputStream.closeQuietly()
     }
   }
 
-  private fun zipFiles(
+  private fun collectEntries(
     directory: String?,
     filesToExport: List<File>,
-    zipOutputStream: ZipOutputStream,
     selectFileName: (String?, File) -> String
-  ) {
+  ): List<BackupArchiveWriter.Entry> {
+    val entries = mutableListOf<BackupArchiveWriter.Entry>()
+
     for (fileToExport in filesToExport) {
       if (fileToExport.isDirectory) {
         val innerFiles = fileToExport.listFiles()?.toList() ?: emptyList()
-        val newDirectory = if (directory == null) {
-          selectFileName(null, fileToExport) + "/"
-        } else {
-          selectFileName(directory, fileToExport) + "/"
-        }
-
-        zipFiles(newDirectory, innerFiles, zipOutputStream, selectFileName)
+        val newDirectory = selectFileName(directory, fileToExport) + "/"
 
+        entries += collectEntries(newDirectory, innerFiles, selectFileName)
         continue
       }
 
-      val fileInputStream = FileInputStream(fileToExport)
-      val bufferedInputStream = BufferedInputStream(fileInputStream, BUFFER_SIZE)
-
-      try {
-        val zipEntryName = selectFileName(directory, fileToExport)
-        zipOutputStream.putNextEntry(ZipEntry(zipEntryName))
-        bufferedInputStream.copyTo(zipOutputStream, BUFFER_SIZE)
-
-        Logger.d(TAG, "Writing file (zipEntryName='${zipEntryName}') '${fileToExport.absolutePath}' success!")
-        zipOutputStream.closeEntry()
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Writing file '${fileToExport.absolutePath}' error", error)
-        throw error
-      } finally {
-        fileInputStream.closeQuietly()
-        bufferedInputStream.closeQuietly()
-      }
+      entries += BackupArchiveWriter.Entry(
+        name = selectFileName(directory, fileToExport),
+        file = fileToExport
+      )
     }
+
+    return entries
   }
 
   data class Params(
@@ -185,6 +180,5 @@ class ExportBackupFileUseCase(
     private const val TAG = "ExportBackupFileUseCase"
     const val MAIN_PREFS_FILE_NAME = "main_prefs.xml"
     const val THREAD_DOWNLOADS_CACHE_DIR = "thread_downloads_cache_dir"
-    const val BUFFER_SIZE = 8192
   }
 }
\ No newline at end of file
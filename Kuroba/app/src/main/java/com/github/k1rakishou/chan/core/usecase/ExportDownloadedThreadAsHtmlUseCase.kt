@@ -4,6 +4,7 @@ import android.content.Context
 import android.net.Uri
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaManifest
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.extractFileName
@@ -134,6 +135,10 @@ class ExportDownloadedThreadAsHtmlUseCase(
           val threadMediaDir = File(appConstants.threadDownloaderCacheDir, threadMediaDirName)
 
           threadMediaDir.listFiles()?.forEach { mediaFile ->
+            if (ThreadMediaManifest.isManifestFile(mediaFile.name)) {
+              return@forEach
+            }
+
             zos.putNextEntry(ZipEntry(mediaFile.name))
 
             mediaFile.inputStream().use { mediaFileSteam ->
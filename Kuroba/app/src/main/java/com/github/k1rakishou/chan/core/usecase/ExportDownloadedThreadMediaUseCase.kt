@@ -2,6 +2,7 @@ package com.github.k1rakishou.chan.core.usecase
 
 import android.net.Uri
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaManifest
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.core_logger.Logger
@@ -62,7 +63,8 @@ class ExportDownloadedThreadMediaUseCase(
     val threadMediaDir = File(appConstants.threadDownloaderCacheDir, threadMediaDirName)
 
     val threadMediaDirFiles = threadMediaDir.listFiles()
-      ?: emptyArray()
+      ?.filter { mediaFile -> !ThreadMediaManifest.isManifestFile(mediaFile.name) }
+      ?: emptyList()
 
     Logger.d(TAG, "exportThreadMedia() start, totalFilesCount=${threadMediaDirFiles.size}")
 
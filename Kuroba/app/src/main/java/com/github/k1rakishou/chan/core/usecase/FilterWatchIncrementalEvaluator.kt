@@ -0,0 +1,402 @@
+package com.github.k1rakishou.chan.core.usecase
+
+import com.github.k1rakishou.chan.core.helper.FilterEngine
+import com.github.k1rakishou.chan.core.site.parser.search.SimpleCommentParser
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.common.MurmurHashUtils
+import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.board.pages.BoardPages
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.ChanFilterWatchEvaluatedThread
+import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.filter.FilterWatchCatalogThreadInfoObject
+import com.github.k1rakishou.model.repository.ChanFilterWatchRepository
+import dagger.Lazy
+import kotlinx.coroutines.Dispatchers
+import java.util.concurrent.TimeUnit
+
+/**
+ * Decides which catalog threads need to be matched against the watch filters again. A thread is
+ * only re-evaluated when its OP (subject + unparsed comment) has changed or when the set of the
+ * enabled watch filters has changed since the last time it was evaluated. Everything else reuses
+ * the result of the previous evaluation which is kept in the chan_filter_watch_evaluated_thread table.
+ * */
+class FilterWatchIncrementalEvaluator(
+  private val appConstants: AppConstants,
+  private val simpleCommentParser: Lazy<SimpleCommentParser>,
+  private val filterEngine: FilterEngine,
+  private val chanFilterWatchRepository: ChanFilterWatchRepository
+) {
+
+  suspend fun loadPrevEvaluatedThreads(
+    boardDescriptor: BoardDescriptor
+  ): Map<ChanDescriptor.ThreadDescriptor, ChanFilterWatchEvaluatedThread> {
+    return chanFilterWatchRepository.getEvaluatedThreads(boardDescriptor)
+      .onError { error -> Logger.e(TAG, "getEvaluatedThreads($boardDescriptor) error", error) }
+      .valueOrNull()
+      ?.associateBy { evaluatedThread -> evaluatedThread.threadDescriptor }
+      ?: emptyMap()
+  }
+
+  /**
+   * Matches the new and the changed catalog threads against the watch filters, reuses the previous
+   * results for everything else and then stores the results of every catalog thread so that the
+   * next check can reuse them.
+   * */
+  suspend fun evaluate(
+    successCatalogFetchResults: List<BookmarkFilterWatchableThreadsUseCase.CatalogFetchResult.Success>,
+    enabledWatchFilters: List<ChanFilter>,
+    filterSetVersion: Long,
+    now: Long = System.currentTimeMillis()
+  ): EvaluationResult {
+    val partitions = successCatalogFetchResults.map { catalogFetchResult ->
+      return@map partition(
+        catalogThreads = catalogFetchResult.filterWatchCatalogInfoObject.catalogThreads,
+        prevEvaluatedThreads = catalogFetchResult.prevEvaluatedThreads,
+        filterSetVersion = filterSetVersion,
+        enabledWatchFilters = enabledWatchFilters
+      )
+    }
+
+    val catalogThreadsToEvaluate = partitions.flatMap { partition -> partition.toEvaluate }
+    val reusedMatchedCatalogThreads = partitions.flatMap { partition -> partition.reusedMatched }
+    val reusedNotMatchedCount = partitions.sumOf { partition -> partition.reusedNotMatched.size }
+
+    Logger.d(TAG, "evaluate() toEvaluate=${catalogThreadsToEvaluate.size}, " +
+      "reusedMatched=${reusedMatchedCatalogThreads.size}, reusedNotMatched=${reusedNotMatchedCount}")
+
+    val evaluatedMatchedCatalogThreads = filterOutThreadsThatDoNotMatchWatchFilters(
+      catalogThreadsToEvaluate
+    ) { catalogThread ->
+      val rawComment = catalogThread.comment()
+      val subject = catalogThread.subject
+      val catalogBoardDescriptor = catalogThread.threadDescriptor.boardDescriptor
+      val parsedComment = simpleCommentParser.get().parseComment(rawComment) ?: ""
+
+      // Update the old unparsed comment with the parsed one
+      catalogThread.replaceRawCommentWithParsed(parsedComment.toString())
+
+      val matchedFilter = tryMatchWatchFiltersWithThreadInfo(
+        enabledWatchFilters = enabledWatchFilters,
+        catalogBoardDescriptor = catalogBoardDescriptor,
+        parsedComment = parsedComment,
+        subject = subject
+      )
+
+      if (matchedFilter != null) {
+        // Set the matched filter which we will use for grouping
+        catalogThread.setMatchedFilter(matchedFilter)
+      }
+
+      return@filterOutThreadsThatDoNotMatchWatchFilters matchedFilter != null
+    }
+
+    // Threads that were matched previously still need their comments parsed since we may need to
+    // recreate their bookmarks.
+    reusedMatchedCatalogThreads.forEach { catalogThread ->
+      val parsedComment = simpleCommentParser.get().parseComment(catalogThread.comment()) ?: ""
+      catalogThread.replaceRawCommentWithParsed(parsedComment.toString())
+    }
+
+    val matchedSet = (evaluatedMatchedCatalogThreads + reusedMatchedCatalogThreads)
+      .mapTo(hashSetOf()) { catalogThread -> catalogThread.threadDescriptor }
+
+    val evaluatedThreadsToStore = mutableListOf<ChanFilterWatchEvaluatedThread>()
+
+    successCatalogFetchResults.forEachIndexed { index, catalogFetchResult ->
+      val partition = partitions[index]
+
+      catalogFetchResult.filterWatchCatalogInfoObject.catalogThreads.forEach { catalogThread ->
+        val isMatched = catalogThread.threadDescriptor in matchedSet
+
+        val evaluatedThread = createEvaluatedThread(
+          catalogThread = catalogThread,
+          partition = partition,
+          filterSetVersion = filterSetVersion,
+          matchedFilter = if (isMatched) catalogThread.matchedFilter() else null,
+          lastModified = catalogFetchResult.lastModifiedMap[catalogThread.threadDescriptor] ?: 0L,
+          now = now
+        ) ?: return@forEach
+
+        evaluatedThreadsToStore += evaluatedThread
+      }
+    }
+
+    storeEvaluatedThreads(evaluatedThreadsToStore, now)
+
+    return EvaluationResult(
+      matchedCatalogThreads = evaluatedMatchedCatalogThreads + reusedMatchedCatalogThreads,
+      evaluatedCount = catalogThreadsToEvaluate.size,
+      reusedCount = reusedMatchedCatalogThreads.size + reusedNotMatchedCount
+    )
+  }
+
+  suspend fun storeEvaluatedThreads(
+    evaluatedThreads: List<ChanFilterWatchEvaluatedThread>,
+    now: Long
+  ) {
+    if (evaluatedThreads.isNotEmpty()) {
+      chanFilterWatchRepository.storeEvaluatedThreads(evaluatedThreads)
+        .onError { error -> Logger.e(TAG, "storeEvaluatedThreads() error", error) }
+        .ignore()
+    }
+
+    chanFilterWatchRepository.deleteEvaluatedThreadsOlderThan(now - EVALUATED_THREADS_MAX_AGE_MS)
+      .onError { error -> Logger.e(TAG, "deleteEvaluatedThreadsOlderThan() error", error) }
+      .ignore()
+  }
+
+  /**
+   * Any change to any of the enabled watch filters (including their order, since the first matched
+   * filter wins) produces a different version which invalidates every evaluated thread.
+   * */
+  fun calculateFilterSetVersion(enabledWatchFilters: List<ChanFilter>): Long {
+    val inputString = buildString {
+      enabledWatchFilters.forEach { chanFilter ->
+        append(chanFilter.getDatabaseId())
+        append(SEPARATOR)
+        append(chanFilter.type)
+        append(SEPARATOR)
+        append(chanFilter.action)
+        append(SEPARATOR)
+        append(chanFilter.pattern ?: "")
+        append(SEPARATOR)
+
+        chanFilter.boards
+          .map { boardDescriptor -> "${boardDescriptor.siteName()}/${boardDescriptor.boardCode}" }
+          .sorted()
+          .forEach { boardCode -> append(boardCode).append(',') }
+
+        append(SEPARATOR)
+        append(chanFilter.filterWatchNotify)
+        append('\n')
+      }
+    }
+
+    return MurmurHashUtils.murmurhash3_x64_128(inputString).val1
+  }
+
+  /**
+   * Must be called before the comment of [catalogThread] is replaced with the parsed one.
+   * */
+  fun calculateOpHash(catalogThread: FilterWatchCatalogThreadInfoObject): Long {
+    val inputString = buildString {
+      append(catalogThread.subject)
+      append(SEPARATOR)
+      append(catalogThread.comment())
+    }
+
+    return MurmurHashUtils.murmurhash3_x64_128(inputString).val1
+  }
+
+  fun partition(
+    catalogThreads: List<FilterWatchCatalogThreadInfoObject>,
+    prevEvaluatedThreads: Map<ChanDescriptor.ThreadDescriptor, ChanFilterWatchEvaluatedThread>,
+    filterSetVersion: Long,
+    enabledWatchFilters: List<ChanFilter>
+  ): Partition {
+    val filtersById = enabledWatchFilters.associateBy { chanFilter -> chanFilter.getDatabaseId() }
+
+    val toEvaluate = mutableListOf<FilterWatchCatalogThreadInfoObject>()
+    val reusedMatched = mutableListOf<FilterWatchCatalogThreadInfoObject>()
+    val reusedNotMatched = mutableListOf<FilterWatchCatalogThreadInfoObject>()
+    val opHashes = HashMap<ChanDescriptor.ThreadDescriptor, Long>(catalogThreads.size)
+
+    catalogThreads.forEach { catalogThread ->
+      val opHash = calculateOpHash(catalogThread)
+      opHashes[catalogThread.threadDescriptor] = opHash
+
+      val prevEvaluatedThread = prevEvaluatedThreads[catalogThread.threadDescriptor]
+      if (prevEvaluatedThread == null
+        || prevEvaluatedThread.opHash != opHash
+        || prevEvaluatedThread.filterSetVersion != filterSetVersion
+      ) {
+        toEvaluate += catalogThread
+        return@forEach
+      }
+
+      val matchedFilterId = prevEvaluatedThread.matchedFilterId
+      if (matchedFilterId == null) {
+        reusedNotMatched += catalogThread
+        return@forEach
+      }
+
+      val matchedFilter = filtersById[matchedFilterId]
+      if (matchedFilter == null) {
+        // Shouldn't happen since filter removal changes the version but just in case
+        toEvaluate += catalogThread
+        return@forEach
+      }
+
+      catalogThread.setMatchedFilter(matchedFilter)
+      reusedMatched += catalogThread
+    }
+
+    return Partition(
+      toEvaluate = toEvaluate,
+      reusedMatched = reusedMatched,
+      reusedNotMatched = reusedNotMatched,
+      opHashes = opHashes
+    )
+  }
+
+  private fun createEvaluatedThread(
+    catalogThread: FilterWatchCatalogThreadInfoObject,
+    partition: Partition,
+    filterSetVersion: Long,
+    matchedFilter: ChanFilter?,
+    lastModified: Long,
+    now: Long
+  ): ChanFilterWatchEvaluatedThread? {
+    val opHash = partition.opHashes[catalogThread.threadDescriptor]
+      ?: return null
+
+    return ChanFilterWatchEvaluatedThread(
+      threadDescriptor = catalogThread.threadDescriptor,
+      opHash = opHash,
+      filterSetVersion = filterSetVersion,
+      matchedFilterId = matchedFilter?.getDatabaseId(),
+      lastModified = lastModified,
+      evaluatedAt = now
+    )
+  }
+
+  /**
+   * When the site provides a threads.json-like endpoint we can check whether anything on the board
+   * has changed without downloading the whole catalog. The catalog fetch is skipped only when every
+   * thread on the board was already evaluated with the current filter set and hasn't been modified
+   * since then (and every previously matched thread still has its bookmark, otherwise we need the
+   * catalog data to recreate it).
+   * */
+  fun canSkipCatalogFetch(
+    boardPages: BoardPages,
+    prevEvaluatedThreads: Map<ChanDescriptor.ThreadDescriptor, ChanFilterWatchEvaluatedThread>,
+    filterSetVersion: Long,
+    bookmarkExists: (ChanDescriptor.ThreadDescriptor) -> Boolean
+  ): Boolean {
+    if (boardPages.boardPages.isEmpty() || prevEvaluatedThreads.isEmpty()) {
+      return false
+    }
+
+    for (boardPage in boardPages.boardPages) {
+      for ((threadDescriptor, lastModified) in boardPage.threads) {
+        val prevEvaluatedThread = prevEvaluatedThreads[threadDescriptor]
+          ?: return false
+
+        if (prevEvaluatedThread.filterSetVersion != filterSetVersion) {
+          return false
+        }
+
+        if (lastModified <= 0L || prevEvaluatedThread.lastModified != lastModified) {
+          return false
+        }
+
+        if (prevEvaluatedThread.matchedFilterId != null && !bookmarkExists(threadDescriptor)) {
+          return false
+        }
+      }
+    }
+
+    return true
+  }
+
+  private fun tryMatchWatchFiltersWithThreadInfo(
+    enabledWatchFilters: List<ChanFilter>,
+    catalogBoardDescriptor: BoardDescriptor,
+    parsedComment: CharSequence,
+    subject: String
+  ): ChanFilter? {
+    for (watchFilter in enabledWatchFilters) {
+      if (!watchFilter.matchesBoard(catalogBoardDescriptor)) {
+        continue
+      }
+
+      if (filterEngine.typeMatches(watchFilter, FilterType.COMMENT)) {
+        if (filterEngine.matches(watchFilter, parsedComment, false)) {
+          if (watchFilter.isAvoidWatchFilter())
+          {
+            return null;
+          }
+          return watchFilter
+        }
+      }
+
+      if (filterEngine.typeMatches(watchFilter, FilterType.SUBJECT)) {
+        if (filterEngine.matches(watchFilter, subject, false)) {
+          if (watchFilter.isAvoidWatchFilter())
+          {
+            return null;
+          }
+          return watchFilter
+        }
+      }
+    }
+
+    return null
+  }
+
+  private suspend fun filterOutThreadsThatDoNotMatchWatchFilters(
+    filterWatchCatalogThreadInfoObjectList: List<FilterWatchCatalogThreadInfoObject>,
+    predicate: suspend (FilterWatchCatalogThreadInfoObject) -> Boolean
+  ): List<FilterWatchCatalogThreadInfoObject> {
+    if (filterWatchCatalogThreadInfoObjectList.isEmpty()) {
+      return emptyList()
+    }
+
+    val batchSize = (appConstants.processorsCount * BATCH_PER_CORE)
+      .coerceAtLeast(MIN_BATCHES_COUNT)
+
+    return processDataCollectionConcurrently(
+      dataList = filterWatchCatalogThreadInfoObjectList,
+      batchCount = batchSize,
+      dispatcher = Dispatchers.IO
+    ) { catalogThread ->
+      if (predicate(catalogThread)) {
+        return@processDataCollectionConcurrently catalogThread
+      }
+
+      return@processDataCollectionConcurrently null
+    }
+  }
+
+  class EvaluationResult(
+    val matchedCatalogThreads: List<FilterWatchCatalogThreadInfoObject>,
+    val evaluatedCount: Int,
+    val reusedCount: Int
+  )
+
+  class Partition(
+    val toEvaluate: List<FilterWatchCatalogThreadInfoObject>,
+    val reusedMatched: List<FilterWatchCatalogThreadInfoObject>,
+    val reusedNotMatched: List<FilterWatchCatalogThreadInfoObject>,
+    val opHashes: Map<ChanDescriptor.ThreadDescriptor, Long>
+  )
+
+  companion object {
+    private const val TAG = "FilterWatchIncrementalEvaluator"
+    private const val SEPARATOR = '\u0000'
+
+    private const val BATCH_PER_CORE = 4
+    private const val MIN_BATCHES_COUNT = 8
+
+    private val EVALUATED_THREADS_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1)
+
+    fun lastModifiedMap(boardPages: BoardPages?): Map<ChanDescriptor.ThreadDescriptor, Long> {
+      if (boardPages == null) {
+        return emptyMap()
+      }
+
+      val resultMap = mutableMapOf<ChanDescriptor.ThreadDescriptor, Long>()
+
+      boardPages.boardPages.forEach { boardPage ->
+        resultMap.putAll(boardPage.threads)
+      }
+
+      return resultMap
+    }
+  }
+
+}
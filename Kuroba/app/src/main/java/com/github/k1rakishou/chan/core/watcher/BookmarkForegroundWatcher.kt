@@ -1,12 +1,14 @@
 package com.github.k1rakishou.chan.core.watcher
 
 import android.content.Context
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibility
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
 import com.github.k1rakishou.chan.core.manager.CurrentOpenedDescriptorStateManager
+import com.github.k1rakishou.chan.core.manager.PageRequestManager
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.core_logger.Logger
@@ -37,11 +39,16 @@ class BookmarkForegroundWatcher(
   private val archivesManager: ArchivesManager,
   private val bookmarkWatcherDelegate: Lazy<BookmarkWatcherDelegate>,
   private val applicationVisibilityManager: ApplicationVisibilityManager,
-  private val currentOpenedDescriptorStateManager: CurrentOpenedDescriptorStateManager
+  private val currentOpenedDescriptorStateManager: CurrentOpenedDescriptorStateManager,
+  private val pageRequestManager: Lazy<PageRequestManager>
 ) {
   private val channel = Channel<Unit>(Channel.RENDEZVOUS)
   private val workJob = AtomicReference<Job?>(null)
 
+  // Outlives the worker loop so that the poll times survive watcher restarts
+  @GuardedBy("itself")
+  private val bookmarkPollScheduler = BookmarkPollScheduler(maxRequestsPerMinute = MAX_REQUESTS_PER_MINUTE)
+
   init {
     appScope.launch {
       channel.consumeEach {
@@ -126,6 +133,24 @@ class BookmarkForegroundWatcher(
     startWatchingIfNotWatchingYet()
   }
 
+  /**
+   * Manual refresh. Every watched bookmark is updated right away instead of waiting for its next
+   * poll time (which may be up to [BookmarkPollScheduler.MAX_POLL_INTERVAL_MS] away for dead
+   * threads).
+   * */
+  suspend fun updateAllBookmarksNow() {
+    Logger.d(TAG, "updateAllBookmarksNow()")
+
+    bookmarksManager.awaitUntilInitialized()
+    val watchedBookmarks = getWatchedBookmarkDescriptors()
+
+    synchronized(bookmarkPollScheduler) {
+      watchedBookmarks.forEach { threadDescriptor -> bookmarkPollScheduler.pollNow(threadDescriptor) }
+    }
+
+    restartWatching()
+  }
+
   private suspend fun updateBookmarkForOpenedThread(
     threadDescriptor: ChanDescriptor.ThreadDescriptor
   ) {
@@ -214,16 +239,39 @@ class BookmarkForegroundWatcher(
         return
       }
 
-      try {
-        BookmarkWatcherCoordinator.restartBackgroundWork(appConstants, appContext)
-
-        bookmarkWatcherDelegate.get().doWork(
-          isCalledFromForeground = true,
-          updateCurrentlyOpenedThread = false
+      val dueBookmarks = synchronized(bookmarkPollScheduler) {
+        bookmarkPollScheduler.updateSettings(
+          minPollIntervalMs = foregroundWatchIntervalMs().toLong(),
+          adaptive = ChanSettings.watchForegroundAdaptiveInterval.get()
         )
-      } catch (error: Throwable) {
-        Logger.e(TAG, "updateBookmarksWorkerLoop() Unhandled exception in " +
-          "bookmarkWatcherDelegate.doWork(isUpdatingCurrentlyOpenedThread=false)", error)
+
+        bookmarkPollScheduler.sync(getWatchedBookmarkDescriptors())
+        bookmarkPollScheduler.takeDue(batchWindowMs = BATCH_WINDOW_MS)
+      }
+
+      if (dueBookmarks.isNotEmpty()) {
+        Logger.d(TAG, "updateBookmarksWorkerLoop() updating ${dueBookmarks.size} due bookmarks")
+
+        try {
+          BookmarkWatcherCoordinator.restartBackgroundWork(appConstants, appContext)
+
+          bookmarkWatcherDelegate.get().doWork(
+            isCalledFromForeground = true,
+            updateCurrentlyOpenedThread = false,
+            bookmarksToUpdate = dueBookmarks.toSet()
+          )
+        } catch (error: Throwable) {
+          Logger.e(TAG, "updateBookmarksWorkerLoop() Unhandled exception in " +
+            "bookmarkWatcherDelegate.doWork(isUpdatingCurrentlyOpenedThread=false)", error)
+        }
+
+        val observations = dueBookmarks.associateWith { threadDescriptor -> observeBookmark(threadDescriptor) }
+
+        synchronized(bookmarkPollScheduler) {
+          observations.forEach { (threadDescriptor, observation) ->
+            bookmarkPollScheduler.onPolled(threadDescriptor, observation)
+          }
+        }
       }
 
       if (!isActive) {
@@ -231,10 +279,10 @@ class BookmarkForegroundWatcher(
         return
       }
 
-      val additionalInterval = calculateAndLogAdditionalInterval()
+      val waitTime = calculateAndLogWaitTime()
 
       Logger.d(TAG, "updateBookmarksWorkerLoop() start waiting...")
-      delay(foregroundWatchIntervalMs() + additionalInterval)
+      delay(waitTime)
       Logger.d(TAG, "updateBookmarksWorkerLoop() start ...OK")
 
       if (!isActive) {
@@ -244,41 +292,68 @@ class BookmarkForegroundWatcher(
     }
   }
 
-  private fun calculateAndLogAdditionalInterval(): Long {
-    val foregroundWatchAdditionalIntervalMs = foregroundWatchAdditionalIntervalMs()
-    val activeBookmarksCount = bookmarksManager.activeBookmarksCount()
-
-    // Increment the interval for every 10 bookmarks by ADDITIONAL_INTERVAL_INCREMENT_MS. This way
-    // if we have 100 active bookmarks we will be waiting 30secs + (10 * 5)secs = 80secs. This is
-    // needed to not kill the battery with constant network request spam.
-    val additionalInterval = (activeBookmarksCount / 10) * foregroundWatchAdditionalIntervalMs()
+  private fun getWatchedBookmarkDescriptors(): List<ChanDescriptor.ThreadDescriptor> {
+    return bookmarksManager.mapNotNullAllBookmarks { threadBookmarkView ->
+      if (!threadBookmarkView.isActive()) {
+        return@mapNotNullAllBookmarks null
+      }
 
-    if (verboseLogsEnabled) {
-      val foregroundInterval = foregroundWatchIntervalMs()
+      if (archivesManager.isSiteArchive(threadBookmarkView.threadDescriptor.siteDescriptor())) {
+        return@mapNotNullAllBookmarks null
+      }
 
-      Logger.d(TAG, "updateBookmarksWorkerLoop() doWork() completed, waiting for " +
-        "${foregroundInterval}ms + (${(activeBookmarksCount / 10)} * ${foregroundWatchAdditionalIntervalMs}ms) " +
-        "(total wait time: ${foregroundInterval + additionalInterval}ms)")
+      return@mapNotNullAllBookmarks threadBookmarkView.threadDescriptor
     }
-
-    return additionalInterval
   }
 
-  private fun foregroundWatchIntervalMs(): Int {
-    return ChanSettings.watchForegroundInterval.get()
+  /**
+   * Returns null when the bookmark couldn't be updated.
+   * */
+  private fun observeBookmark(threadDescriptor: ChanDescriptor.ThreadDescriptor): BookmarkPollScheduler.Observation? {
+    val isOnLastPage = pageRequestManager.get().getPage(threadDescriptor)?.isLastPage() ?: false
+
+    return bookmarksManager.mapBookmark(threadDescriptor) { threadBookmarkView ->
+      if (threadBookmarkView.isError()) {
+        return@mapBookmark null
+      }
+
+      return@mapBookmark BookmarkPollScheduler.Observation(
+        totalPostsCount = threadBookmarkView.postsCount(),
+        repliesToMeCount = threadBookmarkView.threadBookmarkReplyViews.size,
+        isOnLastPage = isOnLastPage
+      )
+    }
   }
 
-  private fun foregroundWatchAdditionalIntervalMs(): Long {
-    if (!ChanSettings.watchForegroundAdaptiveInterval.get()) {
-      return 0
+  private fun calculateAndLogWaitTime(): Long {
+    val now = System.currentTimeMillis()
+
+    val (nextWakeUpAt, trackedBookmarksCount) = synchronized(bookmarkPollScheduler) {
+      bookmarkPollScheduler.nextWakeUpAt() to bookmarkPollScheduler.trackedBookmarksCount()
+    }
+
+    val waitTime = ((nextWakeUpAt ?: (now + foregroundWatchIntervalMs())) - now)
+      .coerceAtLeast(MIN_WAIT_TIME_MS)
+
+    if (verboseLogsEnabled) {
+      Logger.d(TAG, "updateBookmarksWorkerLoop() doWork() completed, waiting for ${waitTime}ms " +
+        "(trackedBookmarksCount: ${trackedBookmarksCount})")
     }
 
-    return ADDITIONAL_INTERVAL_INCREMENT_MS
+    return waitTime
+  }
+
+  private fun foregroundWatchIntervalMs(): Int {
+    return ChanSettings.watchForegroundInterval.get()
   }
 
   companion object {
     private const val TAG = "BookmarkForegroundWatcher"
 
-    const val ADDITIONAL_INTERVAL_INCREMENT_MS = 5L * 1000L
+    const val MAX_REQUESTS_PER_MINUTE = 60
+
+    // Bookmarks that are due soon are updated together with the ones that are due now
+    private const val BATCH_WINDOW_MS = 10L * 1000L
+    private const val MIN_WAIT_TIME_MS = 1000L
   }
 }
\ No newline at end of file
@@ -0,0 +1,301 @@
+package com.github.k1rakishou.chan.core.watcher
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import java.util.PriorityQueue
+import kotlin.math.roundToLong
+
+/**
+ * Decides when every watched bookmark should be fetched next. Instead of fetching all bookmarks
+ * on one global interval every bookmark gets its own next poll time which depends on how fast new
+ * posts show up in the thread, whether someone has recently replied to us there and whether the
+ * thread is on the last page. Fast threads are polled every [minPollIntervalMs], dead ones slowly
+ * back off to [maxPollIntervalMs].
+ *
+ * On top of that there may be no more than [maxRequestsPerMinute] polls during any minute. When
+ * there are more bookmarks to poll than that, they are polled in the order they became due, so a
+ * slow thread is delayed by the budget just as much as a fast one and never starves.
+ *
+ * Not thread-safe, supposed to be used from the watcher loop only.
+ * */
+class BookmarkPollScheduler(
+  private val maxRequestsPerMinute: Int,
+  private val maxPollIntervalMs: Long = MAX_POLL_INTERVAL_MS,
+  private val currentTimeMs: () -> Long = { System.currentTimeMillis() }
+) {
+  private val states = mutableMapOf<ChanDescriptor.ThreadDescriptor, BookmarkPollState>()
+  private val queue = PriorityQueue<QueueEntry>()
+  private val requestTimes = ArrayDeque<Long>()
+  private var nextSequence = 0L
+
+  private var minPollIntervalMs = maxPollIntervalMs
+  private var adaptive = true
+
+  init {
+    require(maxRequestsPerMinute > 0) { "Bad maxRequestsPerMinute: $maxRequestsPerMinute" }
+  }
+
+  /**
+   * [minPollIntervalMs] is the interval for the fastest threads (or for every thread when not
+   * [adaptive]).
+   * */
+  fun updateSettings(minPollIntervalMs: Long, adaptive: Boolean) {
+    this.minPollIntervalMs = minPollIntervalMs.coerceAtMost(maxPollIntervalMs)
+    this.adaptive = adaptive
+  }
+
+  /**
+   * Starts tracking the bookmarks from [watchedBookmarks] we don't know about yet (they are due
+   * right away) and stops tracking the ones that are not watched anymore.
+   * */
+  fun sync(watchedBookmarks: Collection<ChanDescriptor.ThreadDescriptor>) {
+    val now = currentTimeMs()
+    val watchedBookmarksSet = watchedBookmarks.toSet()
+
+    states.keys.retainAll(watchedBookmarksSet)
+
+    watchedBookmarksSet.forEach { threadDescriptor ->
+      if (!states.containsKey(threadDescriptor)) {
+        val state = BookmarkPollState(threadDescriptor)
+        states[threadDescriptor] = state
+        schedule(state, now)
+      }
+    }
+
+    if (queue.size > states.size * 2) {
+      rebuildQueue()
+    }
+  }
+
+  /**
+   * Makes [threadDescriptor] due right away (e.g. when the user refreshes the bookmarks manually).
+   * Bookmarks that are not tracked yet are due right away after [sync] anyway.
+   * */
+  fun pollNow(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    val state = states[threadDescriptor]
+      ?: return
+
+    schedule(state, currentTimeMs())
+  }
+
+  /**
+   * Returns the bookmarks that are due now (the ones that have been due for the longest time first)
+   * and counts them as requests, as many as the budget allows. Bookmarks that are going to be due
+   * during the next [batchWindowMs] are taken as well so that they are fetched together instead of
+   * waking up for every one of them.
+   * */
+  fun takeDue(batchWindowMs: Long = 0L): List<ChanDescriptor.ThreadDescriptor> {
+    val now = currentTimeMs()
+    removeOldRequests(now)
+
+    val result = mutableListOf<ChanDescriptor.ThreadDescriptor>()
+
+    while (requestTimes.size < maxRequestsPerMinute) {
+      val entry = peekValidEntry()
+        ?: break
+
+      if (entry.nextPollAt > now + batchWindowMs) {
+        break
+      }
+
+      queue.poll()
+
+      // In case onPolled() is never called for it (e.g. the watcher got stopped in the middle of
+      // the fetch)
+      schedule(states[entry.threadDescriptor]!!, now + minPollIntervalMs)
+
+      requestTimes.addLast(now)
+      result += entry.threadDescriptor
+    }
+
+    return result
+  }
+
+  /**
+   * Must be called for every bookmark returned by [takeDue] once it has been fetched. [observation]
+   * is null when the bookmark could not be fetched.
+   * */
+  fun onPolled(threadDescriptor: ChanDescriptor.ThreadDescriptor, observation: Observation?) {
+    val state = states[threadDescriptor]
+      ?: return
+
+    val now = currentTimeMs()
+    val interval = calculateNextInterval(state, observation, now)
+
+    state.lastPolledAt = now
+    state.lastIntervalMs = interval
+
+    if (observation != null) {
+      state.lastTotalPostsCount = observation.totalPostsCount
+      state.lastRepliesToMeCount = observation.repliesToMeCount
+    }
+
+    schedule(state, now + interval)
+  }
+
+  /**
+   * The time when [takeDue] will return something again or null when there are no bookmarks.
+   * */
+  fun nextWakeUpAt(): Long? {
+    val nextPollAt = peekValidEntry()?.nextPollAt
+      ?: return null
+
+    removeOldRequests(currentTimeMs())
+
+    if (requestTimes.size < maxRequestsPerMinute) {
+      return nextPollAt
+    }
+
+    return maxOf(nextPollAt, requestTimes.first() + ONE_MINUTE_MS)
+  }
+
+  fun nextPollAt(threadDescriptor: ChanDescriptor.ThreadDescriptor): Long? {
+    return states[threadDescriptor]?.queueEntry?.nextPollAt
+  }
+
+  fun trackedBookmarksCount(): Int = states.size
+
+  private fun calculateNextInterval(
+    state: BookmarkPollState,
+    observation: Observation?,
+    now: Long
+  ): Long {
+    if (observation == null) {
+      // Back off on errors, the site may be down
+      val lastInterval = state.lastIntervalMs ?: minPollIntervalMs
+      return (lastInterval * ERROR_BACKOFF_MULTIPLIER).coerceIn(minPollIntervalMs, maxPollIntervalMs)
+    }
+
+    val lastPolledAt = state.lastPolledAt
+    val lastTotalPostsCount = state.lastTotalPostsCount
+    val lastRepliesToMeCount = state.lastRepliesToMeCount
+
+    if (lastPolledAt != null && lastTotalPostsCount != null) {
+      val newPostsCount = (observation.totalPostsCount - lastTotalPostsCount).coerceAtLeast(0)
+      val elapsedMinutes = ((now - lastPolledAt).coerceAtLeast(1L)).toDouble() / ONE_MINUTE_MS
+      val postsPerMinute = newPostsCount / elapsedMinutes
+      val prevPostsPerMinute = state.postsPerMinute
+
+      state.postsPerMinute = if (prevPostsPerMinute == null) {
+        postsPerMinute
+      } else {
+        VELOCITY_SMOOTHING * postsPerMinute + (1.0 - VELOCITY_SMOOTHING) * prevPostsPerMinute
+      }
+    }
+
+    if (lastRepliesToMeCount != null && observation.repliesToMeCount > lastRepliesToMeCount) {
+      state.lastReplyToMeAt = now
+    }
+
+    if (!adaptive) {
+      return minPollIntervalMs
+    }
+
+    val lastReplyToMeAt = state.lastReplyToMeAt
+    if (lastReplyToMeAt != null && now - lastReplyToMeAt < REPLY_TO_ME_FAST_POLL_PERIOD_MS) {
+      // Someone is talking to us there, most likely they will reply again soon
+      return minPollIntervalMs
+    }
+
+    val postsPerMinute = state.postsPerMinute
+      ?: return minPollIntervalMs
+
+    // Poll about as often as one new post is expected to show up
+    val velocityInterval = if (postsPerMinute <= 0.0) {
+      maxPollIntervalMs
+    } else {
+      (ONE_MINUTE_MS / postsPerMinute).roundToLong()
+    }
+
+    // Don't let the interval grow too fast because of a single quiet poll
+    val lastInterval = state.lastIntervalMs ?: minPollIntervalMs
+    var interval = velocityInterval
+      .coerceAtMost((lastInterval * MAX_INTERVAL_GROWTH_MULTIPLIER).roundToLong())
+      .coerceIn(minPollIntervalMs, maxPollIntervalMs)
+
+    if (observation.isOnLastPage) {
+      // The thread is about to die, make sure we see its last posts (and the archival)
+      interval = interval.coerceAtMost(minPollIntervalMs * LAST_PAGE_MAX_INTERVAL_MULTIPLIER)
+    }
+
+    return interval
+  }
+
+  private fun schedule(state: BookmarkPollState, nextPollAt: Long) {
+    val entry = QueueEntry(state.threadDescriptor, nextPollAt, nextSequence++)
+    state.queueEntry = entry
+    queue.add(entry)
+  }
+
+  /**
+   * Entries of bookmarks that were rescheduled or removed are left in the queue and skipped here.
+   * */
+  private fun peekValidEntry(): QueueEntry? {
+    while (true) {
+      val entry = queue.peek()
+        ?: return null
+
+      if (states[entry.threadDescriptor]?.queueEntry === entry) {
+        return entry
+      }
+
+      queue.poll()
+    }
+  }
+
+  private fun rebuildQueue() {
+    queue.clear()
+    states.values.forEach { state -> state.queueEntry?.let { entry -> queue.add(entry) } }
+  }
+
+  private fun removeOldRequests(now: Long) {
+    while (requestTimes.isNotEmpty() && now - requestTimes.first() >= ONE_MINUTE_MS) {
+      requestTimes.removeFirst()
+    }
+  }
+
+  data class Observation(
+    val totalPostsCount: Int,
+    val repliesToMeCount: Int,
+    val isOnLastPage: Boolean
+  )
+
+  private class BookmarkPollState(
+    val threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ) {
+    var queueEntry: QueueEntry? = null
+    var lastPolledAt: Long? = null
+    var lastIntervalMs: Long? = null
+    var lastTotalPostsCount: Int? = null
+    var lastRepliesToMeCount: Int? = null
+    var lastReplyToMeAt: Long? = null
+    var postsPerMinute: Double? = null
+  }
+
+  private class QueueEntry(
+    val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    val nextPollAt: Long,
+    val sequence: Long
+  ) : Comparable<QueueEntry> {
+
+    override fun compareTo(other: QueueEntry): Int {
+      val result = nextPollAt.compareTo(other.nextPollAt)
+      if (result != 0) {
+        return result
+      }
+
+      return sequence.compareTo(other.sequence)
+    }
+
+  }
+
+  companion object {
+    const val MAX_POLL_INTERVAL_MS = 10L * 60L * 1000L
+
+    private const val ONE_MINUTE_MS = 60L * 1000L
+    private const val REPLY_TO_ME_FAST_POLL_PERIOD_MS = 15L * 60L * 1000L
+    private const val LAST_PAGE_MAX_INTERVAL_MULTIPLIER = 2L
+    private const val ERROR_BACKOFF_MULTIPLIER = 2L
+    private const val MAX_INTERVAL_GROWTH_MULTIPLIER = 2.0
+    private const val VELOCITY_SMOOTHING = 0.5
+  }
+}
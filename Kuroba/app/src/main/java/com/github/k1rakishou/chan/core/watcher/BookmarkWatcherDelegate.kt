@@ -46,9 +46,14 @@ class BookmarkWatcherDelegate(
   private val currentOpenedDescriptorStateManager: CurrentOpenedDescriptorStateManager
 ) {
 
+  /**
+   * [bookmarksToUpdate] limits the update to these bookmarks, all watched bookmarks are updated
+   * when it's null.
+   * */
   suspend fun doWork(
     isCalledFromForeground: Boolean,
     updateCurrentlyOpenedThread: Boolean,
+    bookmarksToUpdate: Set<ChanDescriptor.ThreadDescriptor>? = null
   ) {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -67,7 +72,8 @@ class BookmarkWatcherDelegate(
       return@Try doWorkInternal(
         isCalledFromForeground = isCalledFromForeground,
         updateCurrentlyOpenedThread = updateCurrentlyOpenedThread,
-        currentThreadDescriptor = currentOpenedDescriptorStateManager.currentThreadDescriptor
+        currentThreadDescriptor = currentOpenedDescriptorStateManager.currentThreadDescriptor,
+        bookmarksToUpdate = bookmarksToUpdate
       )
     }
 
@@ -84,14 +90,16 @@ class BookmarkWatcherDelegate(
   private suspend fun doWorkInternal(
     isCalledFromForeground: Boolean,
     updateCurrentlyOpenedThread: Boolean,
-    currentThreadDescriptor: ChanDescriptor.ThreadDescriptor?
+    currentThreadDescriptor: ChanDescriptor.ThreadDescriptor?,
+    bookmarksToUpdate: Set<ChanDescriptor.ThreadDescriptor>?
   ) {
     BackgroundUtils.ensureBackgroundThread()
     awaitUntilAllDependenciesAreReady()
 
     val watchingBookmarkDescriptors = getWatchingBookmarkDescriptors(
       updateCurrentlyOpenedThread,
-      currentThreadDescriptor
+      currentThreadDescriptor,
+      bookmarksToUpdate
     )
 
     Logger.d(TAG, "doWorkInternal() updating ${watchingBookmarkDescriptors.size} bookmarks")
@@ -172,13 +180,18 @@ class BookmarkWatcherDelegate(
 
   private fun getWatchingBookmarkDescriptors(
     updateCurrentlyOpenedThread: Boolean,
-    currentThreadDescriptor: ChanDescriptor.ThreadDescriptor?
+    currentThreadDescriptor: ChanDescriptor.ThreadDescriptor?,
+    bookmarksToUpdate: Set<ChanDescriptor.ThreadDescriptor>?
   ): List<ChanDescriptor.ThreadDescriptor> {
     return bookmarksManager.mapNotNullAllBookmarks { threadBookmarkView ->
       if (!threadBookmarkView.isActive()) {
         return@mapNotNullAllBookmarks null
       }
 
+      if (bookmarksToUpdate != null && threadBookmarkView.threadDescriptor !in bookmarksToUpdate) {
+        return@mapNotNullAllBookmarks null
+      }
+
       if (archivesManager.isSiteArchive(threadBookmarkView.threadDescriptor.siteDescriptor())) {
         // We don't support fetching bookmark info from archives (For now at least)
         return@mapNotNullAllBookmarks null
@@ -282,7 +282,7 @@ class BookmarksController(
       // bookmarks were changed during the update so we need to have this timeout mechanism in
       // such case.
       mainScope.launch {
-        bookmarkForegroundWatcher.restartWatching()
+        bookmarkForegroundWatcher.updateAllBookmarksNow()
 
         delay(10_000)
         swipeRefreshLayout.isRefreshing = false
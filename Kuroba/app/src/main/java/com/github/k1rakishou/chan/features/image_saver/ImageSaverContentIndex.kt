@@ -0,0 +1,352 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import okio.ByteString.Companion.decodeBase64
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+
+/**
+ * Remembers which media was already saved by the image saver and where, keyed by the content of the
+ * file (size + hash) so that identical files reposted under different names are only saved once.
+ *
+ * Two kinds of keys are used: MD5 that some sites send along with the post (known before the file is
+ * downloaded) and SHA-1 that we calculate ourselves (for sites that don't send hashes). A saved file
+ * is registered under every key that is known for it.
+ *
+ * The index is persisted as an append-only log of "key<TAB>fileUri" lines ("key<TAB>" with an empty
+ * uri removes the key) that is rewritten once it contains too many stale lines. A line torn by the
+ * process death is ignored when the log is loaded.
+ * */
+class ImageSaverContentIndex(
+  private val indexFile: File,
+  private val maxEntries: Int = MAX_ENTRIES
+) {
+  private val lock = Any()
+
+  // Access ordered so that the least recently used entries are evicted first
+  @GuardedBy("lock")
+  private val entries = LinkedHashMap<String, String>(16, 0.75f, true)
+  @GuardedBy("lock")
+  private val contentLocks = hashMapOf<String, ContentLock>()
+  @GuardedBy("lock")
+  private var loaded = false
+  @GuardedBy("lock")
+  private var logLinesCount = 0
+
+  init {
+    require(maxEntries > 0) { "Bad maxEntries: $maxEntries" }
+  }
+
+  fun find(key: ContentKey): String? {
+    return synchronized(lock) {
+      ensureLoadedLocked()
+      return@synchronized entries[key.serialize()]
+    }
+  }
+
+  fun put(keys: Collection<ContentKey>, fileUri: String) {
+    require(fileUri.isNotBlank()) { "fileUri is blank" }
+    require(!fileUri.contains('\n') && !fileUri.contains('\t')) { "Bad fileUri: '$fileUri'" }
+
+    if (keys.isEmpty()) {
+      return
+    }
+
+    synchronized(lock) {
+      ensureLoadedLocked()
+
+      val lines = mutableListOf<String>()
+
+      keys.forEach { key ->
+        val serializedKey = key.serialize()
+        if (entries.put(serializedKey, fileUri) != fileUri) {
+          lines += "$serializedKey\t$fileUri"
+        }
+      }
+
+      while (entries.size > maxEntries) {
+        val eldestKey = entries.keys.first()
+        entries.remove(eldestKey)
+        lines += "$eldestKey\t"
+      }
+
+      appendLocked(lines)
+    }
+  }
+
+  /**
+   * Used when the file a key points to was deleted or modified by the user.
+   * */
+  fun remove(key: ContentKey) {
+    synchronized(lock) {
+      ensureLoadedLocked()
+
+      val serializedKey = key.serialize()
+      if (entries.remove(serializedKey) != null) {
+        appendLocked(listOf("$serializedKey\t"))
+      }
+    }
+  }
+
+  fun size(): Int {
+    return synchronized(lock) {
+      ensureLoadedLocked()
+      return@synchronized entries.size
+    }
+  }
+
+  /**
+   * Serializes everything that is done with the same content (looking up a duplicate, saving the
+   * file and registering it) so that identical files of the same batch that are downloaded in
+   * parallel are only saved once.
+   * */
+  suspend fun <T> withContentLock(key: ContentKey, func: suspend () -> T): T {
+    val serializedKey = key.serialize()
+
+    val contentLock = synchronized(lock) {
+      val contentLock = contentLocks.getOrPut(serializedKey) { ContentLock() }
+      ++contentLock.users
+
+      return@synchronized contentLock
+    }
+
+    try {
+      return contentLock.mutex.withLock { func() }
+    } finally {
+      synchronized(lock) {
+        if (--contentLock.users <= 0) {
+          contentLocks.remove(serializedKey)
+        }
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun ensureLoadedLocked() {
+    if (loaded) {
+      return
+    }
+
+    loaded = true
+
+    if (!indexFile.exists()) {
+      return
+    }
+
+    var hasTornLines = false
+
+    try {
+      hasTornLines = !endsWithLineBreak(indexFile)
+
+      indexFile.forEachLine { line ->
+        ++logLinesCount
+
+        val separatorIndex = line.indexOf('\t')
+        if (separatorIndex <= 0) {
+          hasTornLines = true
+          return@forEachLine
+        }
+
+        val key = line.substring(0, separatorIndex)
+        val fileUri = line.substring(separatorIndex + 1)
+
+        if (ContentKey.deserializeOrNull(key) == null) {
+          return@forEachLine
+        }
+
+        if (fileUri.isEmpty()) {
+          entries.remove(key)
+        } else {
+          entries[key] = fileUri
+        }
+      }
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to load content index from '${indexFile.absolutePath}'", error)
+      entries.clear()
+      logLinesCount = 0
+    }
+
+    while (entries.size > maxEntries) {
+      entries.remove(entries.keys.first())
+    }
+
+    // A torn line has no line break at the end so it must be removed before anything is appended
+    if (hasTornLines || logLinesCount > entries.size * 2 + MIN_STALE_LINES_TO_COMPACT) {
+      compactLocked()
+    }
+  }
+
+  private fun endsWithLineBreak(file: File): Boolean {
+    if (file.length() == 0L) {
+      return true
+    }
+
+    return RandomAccessFile(file, "r").use { randomAccessFile ->
+      randomAccessFile.seek(file.length() - 1)
+      return@use randomAccessFile.read() == '\n'.code
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun appendLocked(lines: List<String>) {
+    if (lines.isEmpty()) {
+      return
+    }
+
+    try {
+      indexFile.appendText(lines.joinToString(separator = "\n", postfix = "\n"))
+      logLinesCount += lines.size
+    } catch (error: IOException) {
+      // The in-memory index is still valid, we will only lose the entries after the restart
+      Logger.e(TAG, "Failed to append to content index '${indexFile.absolutePath}'", error)
+      return
+    }
+
+    if (logLinesCount > entries.size * 2 + MIN_STALE_LINES_TO_COMPACT) {
+      compactLocked()
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun compactLocked() {
+    val tmpFile = File(indexFile.parentFile, indexFile.name + ".tmp")
+
+    try {
+      tmpFile.bufferedWriter().use { writer ->
+        entries.forEach { (key, fileUri) ->
+          writer.write(key)
+          writer.write("\t")
+          writer.write(fileUri)
+          writer.write("\n")
+        }
+      }
+
+      if (!tmpFile.renameTo(indexFile)) {
+        throw IOException("Failed to rename '${tmpFile.absolutePath}' into '${indexFile.absolutePath}'")
+      }
+
+      logLinesCount = entries.size
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to compact content index '${indexFile.absolutePath}'", error)
+      tmpFile.delete()
+    }
+  }
+
+  data class ContentKey(
+    val algorithm: Algorithm,
+    val size: Long,
+    val hash: String
+  ) {
+
+    fun serialize(): String = "${algorithm.prefix}:$size:$hash"
+
+    enum class Algorithm(val prefix: String) {
+      Md5("md5"),
+      Sha1("sha1");
+
+      companion object {
+        fun fromPrefixOrNull(prefix: String): Algorithm? {
+          return values().firstOrNull { algorithm -> algorithm.prefix == prefix }
+        }
+      }
+    }
+
+    companion object {
+      /**
+       * Sites send MD5 either as a hex string or (4chan) as base64. Both are converted into lower
+       * case hex so that the same file posted on different sites has the same key.
+       * */
+      fun md5OrNull(fileHash: String?, size: Long): ContentKey? {
+        if (fileHash.isNullOrBlank() || size <= 0L) {
+          return null
+        }
+
+        val trimmedHash = fileHash.trim()
+
+        val hexHash = if (trimmedHash.length == MD5_HEX_LENGTH && trimmedHash.all { ch -> ch.isHexDigit() }) {
+          trimmedHash.lowercase()
+        } else {
+          trimmedHash.decodeBase64()
+            ?.takeIf { byteString -> byteString.size == MD5_BYTES_LENGTH }
+            ?.hex()
+        }
+
+        if (hexHash == null) {
+          return null
+        }
+
+        return ContentKey(Algorithm.Md5, size, hexHash)
+      }
+
+      fun sha1(size: Long, sha1Hex: String): ContentKey {
+        return ContentKey(Algorithm.Sha1, size, sha1Hex.lowercase())
+      }
+
+      fun sha1Of(file: File): ContentKey {
+        return file.inputStream().use { inputStream -> sha1(file.length(), sha1Hex(inputStream)) }
+      }
+
+      fun sha1Hex(inputStream: InputStream): String {
+        val messageDigest = MessageDigest.getInstance("SHA-1")
+        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+
+        while (true) {
+          val read = inputStream.read(buffer)
+          if (read < 0) {
+            break
+          }
+
+          messageDigest.update(buffer, 0, read)
+        }
+
+        return messageDigest.digest().toHexString()
+      }
+
+      fun deserializeOrNull(serialized: String): ContentKey? {
+        val parts = serialized.split(':')
+        if (parts.size != 3) {
+          return null
+        }
+
+        val algorithm = Algorithm.fromPrefixOrNull(parts[0])
+          ?: return null
+        val size = parts[1].toLongOrNull()
+          ?: return null
+
+        if (parts[2].isEmpty()) {
+          return null
+        }
+
+        return ContentKey(algorithm, size, parts[2])
+      }
+
+      private fun Char.isHexDigit(): Boolean {
+        return this in '0'..'9' || this in 'a'..'f' || this in 'A'..'F'
+      }
+
+      private fun ByteArray.toHexString(): String {
+        return joinToString(separator = "") { byte -> "%02x".format(byte) }
+      }
+    }
+  }
+
+  private class ContentLock {
+    val mutex = Mutex()
+    var users = 0
+  }
+
+  companion object {
+    private const val TAG = "ImageSaverContentIndex"
+
+    private const val MAX_ENTRIES = 50_000
+    private const val MIN_STALE_LINES_TO_COMPACT = 1000
+    private const val MD5_HEX_LENGTH = 32
+    private const val MD5_BYTES_LENGTH = 16
+  }
+}
@@ -0,0 +1,70 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+
+/**
+ * Downloads the images of a batch in parallel with at most [maxConcurrentDownloads] downloads at
+ * the same time and no more than [maxConcurrentDownloadsPerHost] of them per host (sites throttle
+ * clients that open too many connections). Unlike processing the batch in fixed size chunks, a
+ * slow download only occupies its own slot instead of stalling the whole chunk.
+ *
+ * Downloads are started in the order of the batch (as far as the per-host limits allow).
+ * */
+class ImageSaverDownloadPipeline(
+  private val maxConcurrentDownloads: Int,
+  private val maxConcurrentDownloadsPerHost: Int
+) {
+
+  init {
+    require(maxConcurrentDownloads > 0) { "Bad maxConcurrentDownloads: $maxConcurrentDownloads" }
+    require(maxConcurrentDownloadsPerHost > 0) { "Bad maxConcurrentDownloadsPerHost: $maxConcurrentDownloadsPerHost" }
+  }
+
+  /**
+   * Calls [download] for every item of [items] and then [onDownloaded] with its result.
+   * [onDownloaded] is never called concurrently so it may accumulate the results without
+   * additional synchronization. Returns once every item is processed, an exception thrown by
+   * [download] or [onDownloaded] cancels the rest of the batch.
+   * */
+  suspend fun <T, R> process(
+    items: List<T>,
+    hostSelector: (T) -> String,
+    download: suspend (T) -> R,
+    onDownloaded: suspend (T, R) -> Unit
+  ) {
+    if (items.isEmpty()) {
+      return
+    }
+
+    val globalSemaphore = Semaphore(maxConcurrentDownloads)
+    val hostSemaphores = hashMapOf<String, Semaphore>()
+    val onDownloadedMutex = Mutex()
+
+    coroutineScope {
+      items.forEach { item ->
+        val hostSemaphore = hostSemaphores.getOrPut(hostSelector(item)) {
+          Semaphore(maxConcurrentDownloadsPerHost)
+        }
+
+        launch {
+          // The host permit is acquired first so that downloads waiting for a busy host don't
+          // occupy the global slots that downloads from other hosts could use
+          val result = hostSemaphore.withPermit {
+            globalSemaphore.withPermit { download(item) }
+          }
+
+          onDownloadedMutex.withLock { onDownloaded(item, result) }
+        }
+      }
+    }
+  }
+
+  companion object {
+    const val MAX_CONCURRENT_DOWNLOADS_PER_HOST = 6
+  }
+}
@@ -117,10 +117,15 @@ class ImageSaverV2Service : Service() {
       createServiceNotification()
     )
 
+    // The intent is redelivered when the process is killed before the download is finished, in
+    // this case we only need to download what wasn't downloaded before the process death.
+    val isRedelivery = (flags and START_FLAG_REDELIVERY) != 0
+
     kurobaScope.launch {
-      val imageSaverInputData = convertInputData(intent)
+      val imageSaverInputData = convertInputData(intent, isRedelivery)
       if (imageSaverInputData == null) {
-        Logger.d(TAG, "onStartCommand() convertInputData() failed")
+        Logger.d(TAG, "onStartCommand() convertInputData() failed, isRedelivery=$isRedelivery")
+        imageSaverV2ServiceDelegate.get().stopServiceIfIdle()
         return@launch
       }
 
@@ -135,10 +140,10 @@ class ImageSaverV2Service : Service() {
       imageSaverV2ServiceDelegate.get().downloadImages(imageSaverInputData)
     }
 
-    return START_STICKY
+    return START_REDELIVER_INTENT
   }
 
-  private suspend fun convertInputData(intent: Intent): ImageDownloadInputData? {
+  private suspend fun convertInputData(intent: Intent, isRedelivery: Boolean): ImageDownloadInputData? {
     val extras = intent.extras
       ?: return null
 
@@ -149,8 +154,13 @@ class ImageSaverV2Service : Service() {
     checkNotNull(imageSaverV2Options) { "imageSaverV2Options is null" }
 
     val uniqueId = requireNotNull(extras.getString(UNIQUE_ID))
+    val downloadType = extras.getInt(DOWNLOAD_TYPE_KEY, -1)
+
+    if (isRedelivery && downloadType != RESTART_UNCOMPLETED_DOWNLOAD_TYPE) {
+      return resumeInterruptedDownload(uniqueId, imageSaverOptionsJson, imageSaverV2Options)
+    }
 
-    when (val downloadType = extras.getInt(DOWNLOAD_TYPE_KEY, -1)) {
+    when (downloadType) {
       SINGLE_IMAGE_DOWNLOAD_TYPE -> {
         val imageDownloadRequests = imageDownloadRequestRepository.selectMany(uniqueId)
           .safeUnwrap { error ->
@@ -229,6 +239,44 @@ class ImageSaverV2Service : Service() {
     }
   }
 
+  private suspend fun resumeInterruptedDownload(
+    uniqueId: String,
+    imageSaverOptionsJson: String,
+    imageSaverV2Options: ImageSaverV2Options
+  ): ImageDownloadInputData? {
+    // Processed requests are either deleted or have some other status so only the requests that
+    // weren't processed yet are still queued
+    val imageDownloadRequests = imageDownloadRequestRepository.selectManyWithStatus(
+      uniqueId,
+      listOf(ImageDownloadRequest.Status.Queued)
+    ).safeUnwrap { error ->
+      Logger.e(TAG, "imageDownloadRequestRepository.selectManyWithStatus($uniqueId) error", error)
+      return null
+    }
+
+    Logger.d(TAG, "resumeInterruptedDownload($uniqueId) imageDownloadRequests=${imageDownloadRequests.size}")
+
+    if (imageDownloadRequests.isEmpty()) {
+      return null
+    }
+
+    if (imageDownloadRequests.size == 1) {
+      return SingleImageDownloadInputData(
+        uniqueId = uniqueId,
+        imageSaverOptionsJson = imageSaverOptionsJson,
+        imageSaverV2Options = imageSaverV2Options,
+        imageDownloadRequest = imageDownloadRequests.first()
+      )
+    }
+
+    return BatchImageDownloadInputData(
+      uniqueId = uniqueId,
+      imageSaverOptionsJson = imageSaverOptionsJson,
+      imageSaverV2Options = imageSaverV2Options,
+      imageDownloadRequests = imageDownloadRequests
+    )
+  }
+
   private fun createServiceNotification(): Notification {
     BackgroundUtils.ensureMainThread()
     setupChannels()
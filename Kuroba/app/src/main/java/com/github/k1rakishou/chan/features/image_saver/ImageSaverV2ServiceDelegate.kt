@@ -1,17 +1,21 @@
 package com.github.k1rakishou.chan.features.image_saver
 
 import android.net.Uri
+import android.system.ErrnoException
+import android.system.Os
 import androidx.annotation.GuardedBy
+import androidx.annotation.VisibleForTesting
 import androidx.core.app.NotificationManagerCompat
 import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
-import com.github.k1rakishou.chan.core.cache.CacheFileType
-import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.partial.OkHttpRangeFetcher
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
 import com.github.k1rakishou.chan.core.helper.ImageSaverFileManagerWrapper
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.NotificationAutoDismissManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.chan.features.image_saver.ImageSaverContentIndex.ContentKey
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.chan.utils.NotificationConstants
@@ -21,6 +25,7 @@ import com.github.k1rakishou.common.EmptyBodyResponseException
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.StringUtils
 import com.github.k1rakishou.common.doIoTaskWithAttempts
+import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.extractFileName
 import com.github.k1rakishou.common.isNotNullNorBlank
 import com.github.k1rakishou.common.isOutOfDiskSpaceError
@@ -30,6 +35,7 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.AbstractFile
 import com.github.k1rakishou.fsaf.file.DirectorySegment
 import com.github.k1rakishou.fsaf.file.FileSegment
+import com.github.k1rakishou.fsaf.file.RawFile
 import com.github.k1rakishou.fsaf.file.Segment
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -41,14 +47,13 @@ import com.github.k1rakishou.persist_state.ImageSaverV2Options
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.async
-import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.job
 import kotlinx.coroutines.runInterruptible
-import kotlinx.coroutines.supervisorScope
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
@@ -56,12 +61,16 @@ import okhttp3.HttpUrl
 import okhttp3.Request
 import okhttp3.ResponseBody
 import okhttp3.internal.closeQuietly
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
+import java.security.DigestInputStream
+import java.security.MessageDigest
 import java.util.*
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.coroutineContext
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTimedValue
 
@@ -69,16 +78,18 @@ class ImageSaverV2ServiceDelegate(
   private val verboseLogs: Boolean,
   private val appScope: CoroutineScope,
   private val appConstants: AppConstants,
-  private val cacheHandler: Lazy<CacheHandler>,
+  private val partialMediaCache: Lazy<PartialMediaCache>,
   private val downloaderOkHttpClient: Lazy<RealDownloaderOkHttpClient>,
   private val notificationManagerCompat: NotificationManagerCompat,
   private val imageSaverFileManager: ImageSaverFileManagerWrapper,
+  private val contentIndex: ImageSaverContentIndex,
   private val siteResolver: SiteResolver,
   private val chanPostImageRepository: ChanPostImageRepository,
   private val imageDownloadRequestRepository: ImageDownloadRequestRepository,
   private val chanThreadManager: ChanThreadManager,
   private val threadDownloadManager: ThreadDownloadManager,
-  private val notificationAutoDismissManager: NotificationAutoDismissManager
+  private val notificationAutoDismissManager: NotificationAutoDismissManager,
+  private val linkFunc: (String, String) -> Unit = { oldPath, newPath -> Os.link(oldPath, newPath) }
 ) {
   private val mutex = Mutex()
 
@@ -88,6 +99,10 @@ class ImageSaverV2ServiceDelegate(
   private val activeNotificationIdQueue = LinkedList<String>()
 
   private val serializedCoroutineExecutor = SerializedCoroutineExecutor(appScope)
+  private val downloadPipeline = ImageSaverDownloadPipeline(
+    maxConcurrentDownloads = appConstants.processorsCount * 2,
+    maxConcurrentDownloadsPerHost = ImageSaverDownloadPipeline.MAX_CONCURRENT_DOWNLOADS_PER_HOST
+  )
 
   private val fileManager: FileManager
     get() = imageSaverFileManager.fileManager
@@ -167,6 +182,13 @@ class ImageSaverV2ServiceDelegate(
     }
   }
 
+  suspend fun stopServiceIfIdle() {
+    val activeDownloadsCount = mutex.withLock { activeDownloads.size }
+    if (activeDownloadsCount <= 0) {
+      stopServiceFlow.emit(ServiceStopCommand.Enqueue)
+    }
+  }
+
   suspend fun downloadImages(imageDownloadInputData: ImageSaverV2Service.ImageDownloadInputData) {
     stopServiceFlow.emit(ServiceStopCommand.Cancel)
 
@@ -258,72 +280,75 @@ class ImageSaverV2ServiceDelegate(
         hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
       )
 
-      supervisorScope {
-        imageDownloadRequests
-          .chunked(appConstants.processorsCount * 2)
-          .forEach { imageDownloadRequestBatch ->
-            val updatedImageDownloadRequestBatch = imageDownloadRequestBatch.map { imageDownloadRequest ->
-              return@map appScope.async(Dispatchers.IO) {
-                val (outImageDownloadRequest, duration) = measureTimedValue {
-                  return@measureTimedValue downloadSingleImage(
-                    imageDownloadInputData = imageDownloadInputData,
-                    imageDownloadRequest = imageDownloadRequest,
-                    hasResultDirAccessErrors = hasResultDirAccessErrors,
-                    hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
-                    hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried,
-                    currentChanPostImage = currentChanPostImage,
-                    canceledRequests = canceledRequests,
-                    duplicates = duplicates,
-                    failedRequests = failedRequests,
-                    outputDirUri = outputDirUri,
-                    completedRequests = completedRequests
-                  )
-                }
-
-                if (verboseLogs) {
-                  Logger.d(TAG, "downloadSingleImage(${imageDownloadRequest.imageFullUrl}) took $duration")
-                }
-
-                return@async outImageDownloadRequest
-              }
-            }.awaitAll()
-
-            imageDownloadRequestRepository.completeMany(updatedImageDownloadRequestBatch)
-              .onError { error -> Logger.e(TAG, "imageDownloadRequestRepository.updateMany() error", error) }
-              .ignore()
-
-            val canceledNow = (getDownloadContext(imageDownloadInputData)?.isCanceled() ?: true)
-              || hasResultDirAccessErrors.get() || hasOutOfDiskSpaceErrors.get()
-
-            if (!canceledNow) {
-              val notificationSummary = extractNotificationSummaryText(
+      val processedRequests = mutableListOf<ImageDownloadRequest>()
+      val flushEvery = appConstants.processorsCount * 2
+
+      withContext(Dispatchers.IO) {
+        downloadPipeline.process(
+          items = imageDownloadRequests,
+          hostSelector = { imageDownloadRequest -> imageDownloadRequest.imageFullUrl.host },
+          download = { imageDownloadRequest ->
+            val (outImageDownloadRequest, duration) = measureTimedValue {
+              return@measureTimedValue downloadSingleImage(
                 imageDownloadInputData = imageDownloadInputData,
+                imageDownloadRequest = imageDownloadRequest,
+                hasResultDirAccessErrors = hasResultDirAccessErrors,
+                hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
+                hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried,
                 currentChanPostImage = currentChanPostImage,
-                imageDownloadRequests = imageDownloadRequests,
-                isCompleted = false
+                canceledRequests = canceledRequests,
+                duplicates = duplicates,
+                failedRequests = failedRequests,
+                outputDirUri = outputDirUri,
+                completedRequests = completedRequests
               )
+            }
+
+            if (verboseLogs) {
+              Logger.d(TAG, "downloadSingleImage(${imageDownloadRequest.imageFullUrl}) took $duration")
+            }
+
+            outImageDownloadRequest
+          },
+          onDownloaded = { _, outImageDownloadRequest ->
+            processedRequests += outImageDownloadRequest
 
-              // Progress event
-              emitNotificationUpdate(
-                uniqueId = imageDownloadInputData.uniqueId,
-                imageSaverOptionsJson = imageDownloadInputData.imageSaverOptionsJson,
-                completed = false,
-                notificationSummary = notificationSummary,
-                totalImagesCount = imageDownloadInputData.requestsCount(),
-                canceledRequests = canceledRequests.get(),
-                completedRequests = completedRequestsToDownloadedImagesResult(
-                  completedRequests = completedRequests,
-                  outputDirUri = outputDirUri
-                ),
-                duplicates = duplicates.get(),
-                failedRequests = failedRequests.get(),
-                hasResultDirAccessErrors = hasResultDirAccessErrors.get(),
-                hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors.get(),
-                hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
+            // Results are persisted as we go so that only the requests that were in progress are
+            // downloaded again when the batch is resumed after the process death
+            if (processedRequests.size >= flushEvery) {
+              flushProcessedRequests(
+                imageDownloadInputData = imageDownloadInputData,
+                processedRequests = processedRequests,
+                imageDownloadRequests = imageDownloadRequests,
+                currentChanPostImage = currentChanPostImage,
+                outputDirUri = outputDirUri,
+                canceledRequests = canceledRequests,
+                completedRequests = completedRequests,
+                duplicates = duplicates,
+                failedRequests = failedRequests,
+                hasResultDirAccessErrors = hasResultDirAccessErrors,
+                hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
+                hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried
               )
             }
           }
+        )
       }
+
+      flushProcessedRequests(
+        imageDownloadInputData = imageDownloadInputData,
+        processedRequests = processedRequests,
+        imageDownloadRequests = imageDownloadRequests,
+        currentChanPostImage = currentChanPostImage,
+        outputDirUri = outputDirUri,
+        canceledRequests = canceledRequests,
+        completedRequests = completedRequests,
+        duplicates = duplicates,
+        failedRequests = failedRequests,
+        hasResultDirAccessErrors = hasResultDirAccessErrors,
+        hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
+        hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried
+      )
     } finally {
       val notificationSummary = extractNotificationSummaryText(
         imageDownloadInputData = imageDownloadInputData,
@@ -357,6 +382,64 @@ class ImageSaverV2ServiceDelegate(
     return mutex.withLock { activeDownloads.size }
   }
 
+  private suspend fun flushProcessedRequests(
+    imageDownloadInputData: ImageSaverV2Service.ImageDownloadInputData,
+    processedRequests: MutableList<ImageDownloadRequest>,
+    imageDownloadRequests: List<ImageDownloadRequest>,
+    currentChanPostImage: AtomicReference<ChanPostImage>,
+    outputDirUri: AtomicReference<Uri>,
+    canceledRequests: AtomicInteger,
+    completedRequests: AtomicInteger,
+    duplicates: AtomicInteger,
+    failedRequests: AtomicInteger,
+    hasResultDirAccessErrors: AtomicBoolean,
+    hasOutOfDiskSpaceErrors: AtomicBoolean,
+    hasRequestsThatCanBeRetried: AtomicBoolean
+  ) {
+    if (processedRequests.isEmpty()) {
+      return
+    }
+
+    imageDownloadRequestRepository.completeMany(processedRequests.toList())
+      .onError { error -> Logger.e(TAG, "imageDownloadRequestRepository.completeMany() error", error) }
+      .ignore()
+
+    processedRequests.clear()
+
+    val canceledNow = (getDownloadContext(imageDownloadInputData)?.isCanceled() ?: true)
+      || hasResultDirAccessErrors.get() || hasOutOfDiskSpaceErrors.get()
+
+    if (canceledNow) {
+      return
+    }
+
+    val notificationSummary = extractNotificationSummaryText(
+      imageDownloadInputData = imageDownloadInputData,
+      currentChanPostImage = currentChanPostImage,
+      imageDownloadRequests = imageDownloadRequests,
+      isCompleted = false
+    )
+
+    // Progress event
+    emitNotificationUpdate(
+      uniqueId = imageDownloadInputData.uniqueId,
+      imageSaverOptionsJson = imageDownloadInputData.imageSaverOptionsJson,
+      completed = false,
+      notificationSummary = notificationSummary,
+      totalImagesCount = imageDownloadInputData.requestsCount(),
+      canceledRequests = canceledRequests.get(),
+      completedRequests = completedRequestsToDownloadedImagesResult(
+        completedRequests = completedRequests,
+        outputDirUri = outputDirUri
+      ),
+      duplicates = duplicates.get(),
+      failedRequests = failedRequests.get(),
+      hasResultDirAccessErrors = hasResultDirAccessErrors.get(),
+      hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors.get(),
+      hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
+    )
+  }
+
   private fun extractNotificationSummaryText(
     imageDownloadInputData: ImageSaverV2Service.ImageDownloadInputData,
     currentChanPostImage: AtomicReference<ChanPostImage>,
@@ -623,7 +706,8 @@ class ImageSaverV2ServiceDelegate(
     imageSaverV2Options: ImageSaverV2Options,
     imageDownloadRequest: ImageDownloadRequest,
     postDescriptor: PostDescriptor,
-    fileName: String
+    fileName: String,
+    md5Key: ContentKey?
   ): ResultFile {
     val rootDirectoryUri = Uri.parse(checkNotNull(imageSaverV2Options.rootDirectoryUri))
 
@@ -678,6 +762,12 @@ class ImageSaverV2ServiceDelegate(
       )
     }
 
+    if (md5Key != null && contentIndex.find(md5Key) == resultFileUri.toString()) {
+      // The very same file was already saved under this name (e.g. the batch is being resumed after
+      // the process death), this is not a duplicate that needs to be resolved.
+      return ResultFile.Skip(resultDirUri, resultFileUri, fileManager.getLength(resultFile) > 0)
+    }
+
     var duplicatesResolution =
       ImageSaverV2Options.DuplicatesResolution.fromRawValue(imageSaverV2Options.duplicatesResolution)
 
@@ -785,6 +875,20 @@ class ImageSaverV2ServiceDelegate(
     ) : ResultFile()
   }
 
+  private sealed class MediaSource {
+    class LocalFile(val file: File) : MediaSource()
+    class Stream(val inputStream: InputStream) : MediaSource()
+  }
+
+  sealed class SaveResult {
+    object Saved : SaveResult()
+
+    data class Deduplicated(
+      val existingFileUri: String,
+      val linked: Boolean
+    ) : SaveResult()
+  }
+
   // TODO(KurobaEx): more logs
   private suspend fun downloadSingleImageInternal(
     hasResultDirAccessErrors: AtomicBoolean,
@@ -841,12 +945,15 @@ class ImageSaverV2ServiceDelegate(
         imageDownloadRequest
       )
 
+      val md5Key = ContentKey.md5OrNull(chanPostImage!!.fileHash, chanPostImage!!.size)
+
       val outputFileResult = getFullFileUri(
         chanPostImage = chanPostImage!!,
         imageSaverV2Options = imageSaverV2Options,
         imageDownloadRequest = imageDownloadRequest,
         postDescriptor = postDescriptor,
-        fileName = fileName
+        fileName = fileName,
+        md5Key = md5Key
       )
 
       when (outputFileResult) {
@@ -883,21 +990,13 @@ class ImageSaverV2ServiceDelegate(
       val outputFile = outputFileResult.file
       val outputDirUri = outputFileResult.outputDirUri
 
-      val actualOutputFile = fileManager.create(outputFile)
-      if (actualOutputFile == null) {
-        return@Try DownloadImageResult.ResultDirectoryError(
-          outputFile.getFullPath(),
-          imageDownloadRequest
-        )
-      }
-
       val imageUrl = checkNotNull(chanPostImage!!.imageUrl) { "Image url is empty!" }
       val threadDescriptor = chanPostImage!!.ownerPostDescriptor.threadDescriptor()
 
       try {
-        doIoTaskWithAttempts(MAX_IO_ERROR_RETRIES_COUNT) {
+        val saveResult = doIoTaskWithAttempts(MAX_IO_ERROR_RETRIES_COUNT) {
           try {
-            downloadFileIntoFile(imageUrl, actualOutputFile, threadDescriptor)
+            saveIntoFileDeduplicated(imageUrl, outputFile, threadDescriptor, md5Key)
           } catch (error: IOException) {
             if (error.isOutOfDiskSpaceError()) {
               throw OutOfDiskSpaceException()
@@ -906,8 +1005,15 @@ class ImageSaverV2ServiceDelegate(
             throw error
           }
         }
+
+        if (verboseLogs && saveResult is SaveResult.Deduplicated) {
+          Logger.d(TAG, "downloadSingleImageInternal(${imageUrl}) identical file was already saved " +
+            "as '${saveResult.existingFileUri}', linked=${saveResult.linked}")
+        }
       } catch (error: Throwable) {
-        fileManager.delete(actualOutputFile)
+        if (fileManager.exists(outputFile)) {
+          fileManager.delete(outputFile)
+        }
 
         return@Try when (error) {
           is OutOfDiskSpaceException -> {
@@ -926,51 +1032,234 @@ class ImageSaverV2ServiceDelegate(
     }.mapErrorToValue { error -> DownloadImageResult.Failure(error, true) }
   }
 
+  /**
+   * Saves the media into [outputFile] unless an identical file (same size and hash) was already
+   * saved before. In that case the already saved file is hard-linked as [outputFile] when both of
+   * them are regular files on the same file system, otherwise saving is skipped.
+   *
+   * [md5Key] is the hash the site sent along with the post. It allows detecting duplicates before
+   * anything is downloaded, for other files SHA-1 is calculated once the file is downloaded.
+   * */
+  @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
   @Throws(ResultFileAccessError::class, IOException::class, NotFoundException::class)
-  suspend fun downloadFileIntoFile(
+  internal suspend fun saveIntoFileDeduplicated(
     imageUrl: HttpUrl,
     outputFile: AbstractFile,
-    threadDescriptor: ChanDescriptor.ThreadDescriptor?
-  ) {
+    threadDescriptor: ChanDescriptor.ThreadDescriptor?,
+    md5Key: ContentKey?
+  ): SaveResult {
     BackgroundUtils.ensureBackgroundThread()
 
-    val fileUrl = imageUrl.toString()
-    val cacheFileType = CacheFileType.PostMediaFull
-    var localInputStream: InputStream? = null
+    if (md5Key == null) {
+      return saveIntoFile(imageUrl, outputFile, threadDescriptor, emptyList())
+    }
 
-    try {
-      if (cacheHandler.get().cacheFileExists(cacheFileType, fileUrl)) {
-        val cachedFile = cacheHandler.get().getCacheFileOrNull(cacheFileType, fileUrl)
-        if (cachedFile != null && cachedFile.canRead() && cachedFile.length() > 0) {
-          localInputStream = cachedFile.inputStream()
-        }
+    return contentIndex.withContentLock(md5Key) {
+      val savedFileUri = findSavedFileUriOrNull(md5Key)
+      if (savedFileUri != null) {
+        return@withContentLock reuseSavedFile(savedFileUri, outputFile)
       }
 
-      if (localInputStream == null
-        && threadDescriptor != null
-        && threadDownloadManager.canUseThreadDownloaderCache(threadDescriptor)
-      ) {
-        localInputStream = threadDownloadManager.findDownloadedFile(imageUrl, threadDescriptor)
-          ?.let { file -> fileManager.getInputStream(file) }
+      return@withContentLock saveIntoFile(imageUrl, outputFile, threadDescriptor, listOf(md5Key))
+    }
+  }
+
+  @Throws(ResultFileAccessError::class, IOException::class, NotFoundException::class)
+  private suspend fun saveIntoFile(
+    imageUrl: HttpUrl,
+    outputFile: AbstractFile,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor?,
+    knownKeys: List<ContentKey>
+  ): SaveResult {
+    val mediaSource = openMediaSource(imageUrl, threadDescriptor)
+
+    if (mediaSource is MediaSource.LocalFile) {
+      val sha1Key = runInterruptible { ContentKey.sha1Of(mediaSource.file) }
+
+      return contentIndex.withContentLock(sha1Key) {
+        val savedFileUri = findSavedFileUriOrNull(sha1Key)
+        if (savedFileUri != null) {
+          contentIndex.put(knownKeys, savedFileUri)
+          return@withContentLock reuseSavedFile(savedFileUri, outputFile)
+        }
+
+        copyIntoFile(mediaSource.file.inputStream(), outputFile)
+        contentIndex.put(knownKeys + sha1Key, outputFile.getFullPath())
+
+        return@withContentLock SaveResult.Saved
       }
+    }
+
+    // Nothing to compare before the file is downloaded, hash it while it's being copied so that
+    // the next identical file is detected
+    val messageDigest = MessageDigest.getInstance("SHA-1")
+    val inputStream = DigestInputStream((mediaSource as MediaSource.Stream).inputStream, messageDigest)
+
+    val actualOutputFile = copyIntoFile(inputStream, outputFile)
+    val sha1Hex = messageDigest.digest().joinToString(separator = "") { byte -> "%02x".format(byte) }
+    val sha1Key = ContentKey.sha1(fileManager.getLength(actualOutputFile), sha1Hex)
+
+    contentIndex.put(knownKeys + sha1Key, outputFile.getFullPath())
+    return SaveResult.Saved
+  }
+
+  /**
+   * Returns the uri of the file that was saved with the same content unless it was deleted or
+   * modified since then.
+   * */
+  private fun findSavedFileUriOrNull(contentKey: ContentKey): String? {
+    val savedFileUri = contentIndex.find(contentKey)
+      ?: return null
+
+    // Regular files are stored as paths, SAF files as uris
+    val savedFile = if (savedFileUri.startsWith("/")) {
+      fileManager.fromRawFile(File(savedFileUri))
+    } else {
+      fileManager.fromUri(Uri.parse(savedFileUri))
+    }
+
+    if (savedFile != null && fileManager.exists(savedFile) && fileManager.getLength(savedFile) == contentKey.size) {
+      return savedFileUri
+    }
+
+    contentIndex.remove(contentKey)
+    return null
+  }
+
+  private fun reuseSavedFile(savedFileUri: String, outputFile: AbstractFile): SaveResult {
+    if (outputFile !is RawFile || !savedFileUri.startsWith("/")) {
+      // Hard links are only possible between regular files
+      return SaveResult.Deduplicated(savedFileUri, linked = false)
+    }
+
+    val linked = try {
+      linkFunc(savedFileUri, outputFile.getFullPath())
+      true
+    } catch (error: ErrnoException) {
+      // Different file systems or the file system doesn't support hard links (FAT formatted SD cards)
+      Logger.e(TAG, "reuseSavedFile() Failed to link '$savedFileUri' as '${outputFile.getFullPath()}': " +
+        "${error.errorMessageOrClassName()}")
+      false
+    }
+
+    return SaveResult.Deduplicated(savedFileUri, linked = linked)
+  }
+
+  @Throws(ResultFileAccessError::class, IOException::class)
+  private suspend fun copyIntoFile(inputStream: InputStream, outputFile: AbstractFile): AbstractFile {
+    try {
+      val actualOutputFile = fileManager.create(outputFile)
+        ?: throw ResultFileAccessError(outputFile.getFullPath())
 
-      if (localInputStream == null) {
-        localInputStream = downloadAndGetResponseBody(imageUrl).source().inputStream()
+      val outputFileStream = fileManager.getOutputStream(actualOutputFile)
+        ?: throw ResultFileAccessError(actualOutputFile.getFullPath())
+
+      runInterruptible {
+        outputFileStream.use { outputStream -> inputStream.copyTo(outputStream) }
       }
 
+      return actualOutputFile
+    } finally {
+      inputStream.closeQuietly()
+    }
+  }
+
+  @Throws(ResultFileAccessError::class, IOException::class, NotFoundException::class)
+  suspend fun downloadFileIntoFile(
+    imageUrl: HttpUrl,
+    outputFile: AbstractFile,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor?
+  ) {
+    BackgroundUtils.ensureBackgroundThread()
+
+    val localInputStream = when (val mediaSource = openMediaSource(imageUrl, threadDescriptor)) {
+      is MediaSource.LocalFile -> mediaSource.file.inputStream()
+      is MediaSource.Stream -> mediaSource.inputStream
+    }
+
+    try {
       val outputFileStream = fileManager.getOutputStream(outputFile)
         ?: throw ResultFileAccessError(outputFile.getFullPath())
 
       runInterruptible {
-        localInputStream!!.use { inputStream ->
+        localInputStream.use { inputStream ->
           outputFileStream.use { outputStream ->
             inputStream.copyTo(outputStream)
           }
         }
       }
     } finally {
-      localInputStream?.closeQuietly()
-      localInputStream = null
+      localInputStream.closeQuietly()
+    }
+  }
+
+  @Throws(IOException::class, NotFoundException::class)
+  private suspend fun openMediaSource(
+    imageUrl: HttpUrl,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor?
+  ): MediaSource {
+    // Completed files of the partial media cache are the CacheHandler's PostMediaFull files
+    val cachedFile = partialMediaCache.get().getCompletedFileOrNull(imageUrl.toString())
+    if (cachedFile != null && cachedFile.canRead() && cachedFile.length() > 0) {
+      return MediaSource.LocalFile(cachedFile)
+    }
+
+    if (threadDescriptor != null && threadDownloadManager.canUseThreadDownloaderCache(threadDescriptor)) {
+      val downloadedFileStream = threadDownloadManager.findDownloadedFile(imageUrl, threadDescriptor)
+        ?.let { file -> fileManager.getInputStream(file) }
+
+      if (downloadedFileStream != null) {
+        return MediaSource.Stream(downloadedFileStream)
+      }
+    }
+
+    val mediaCacheFile = downloadIntoMediaCacheOrNull(imageUrl)
+    if (mediaCacheFile != null) {
+      return MediaSource.LocalFile(mediaCacheFile)
+    }
+
+    return MediaSource.Stream(downloadAndGetResponseBody(imageUrl).source().inputStream())
+  }
+
+  /**
+   * Downloads the file into the shared media cache (reusing whatever was already downloaded by the
+   * media viewer) so that the file is only downloaded once no matter who needs it.
+   * */
+  @Throws(IOException::class, NotFoundException::class)
+  private suspend fun downloadIntoMediaCacheOrNull(imageUrl: HttpUrl): File? {
+    val rangeFetcher = OkHttpRangeFetcher(downloaderOkHttpClient.get().okHttpClient()) { url, requestBuilder ->
+      siteResolver.findSiteForUrl(url)?.let { site ->
+        site.requestModifier().modifyMediaDownloadRequest(site, requestBuilder)
+      }
+    }
+
+    val job = coroutineContext.job
+
+    try {
+      return runInterruptible {
+        partialMediaCache.get().downloadMissingRanges(
+          url = imageUrl.toString(),
+          rangeFetcher = rangeFetcher,
+          isCanceled = { !job.isActive }
+        )
+      }
+    } catch (error: OkHttpRangeFetcher.RangeFetchException) {
+      if (error.isNotFound) {
+        throw NotFoundException()
+      }
+
+      throw BadStatusResponseException(error.statusCode)
+    } catch (error: IOException) {
+      // runInterruptible turns cancellation into an InterruptedIOException (or the isCanceled check
+      // into an IOException), canceled downloads must not fall back to a full download
+      job.ensureActive()
+
+      if (error.isOutOfDiskSpaceError()) {
+        throw error
+      }
+
+      Logger.e(TAG, "downloadIntoMediaCacheOrNull(${imageUrl}) error, falling back to direct download", error)
+      return null
     }
   }
 
@@ -71,7 +71,6 @@ import com.google.android.exoplayer2.upstream.ContentDataSource
 import com.google.android.exoplayer2.upstream.DataSource
 import com.google.android.exoplayer2.upstream.DefaultHttpDataSource
 import com.google.android.exoplayer2.upstream.FileDataSource
-import com.google.android.exoplayer2.upstream.cache.CacheDataSource
 import dagger.Lazy
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
@@ -823,9 +822,7 @@ class MediaViewerController(
     val defaultDataSourceFactory = DefaultHttpDataSource.Factory()
       .setDefaultRequestProperties(createRequestProperties(viewableMedia))
 
-    return CacheDataSource.Factory()
-      .setCache(exoPlayerCache.actualCache)
-      .setUpstreamDataSourceFactory(defaultDataSourceFactory)
+    return exoPlayerCache.createDataSourceFactory(defaultDataSourceFactory)
   }
 
   private fun createRequestProperties(viewableMediaList: List<ViewableMedia>): Map<String, String> {
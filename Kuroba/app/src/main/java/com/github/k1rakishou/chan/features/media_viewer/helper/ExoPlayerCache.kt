@@ -1,20 +1,23 @@
 package com.github.k1rakishou.chan.features.media_viewer.helper
 
-import android.content.Context
-import com.github.k1rakishou.common.AppConstants
-import com.google.android.exoplayer2.database.ExoDatabaseProvider
-import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor
-import com.google.android.exoplayer2.upstream.cache.SimpleCache
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
+import com.google.android.exoplayer2.upstream.DataSource
+import dagger.Lazy
 
+/**
+ * ExoPlayer used to have its own SimpleCache with its own LRU which meant that the same video was
+ * downloaded (and stored) twice when it was played and then saved/opened externally. Now it uses
+ * the [PartialMediaCache] which is backed by the CacheHandler's PostMediaFull storage.
+ * */
 class ExoPlayerCache(
-  context: Context,
-  appConstants: AppConstants
+  private val partialMediaCacheLazy: Lazy<PartialMediaCache>
 ) {
-  val actualCache by lazy {
-    SimpleCache(
-      appConstants.exoPlayerCacheDir,
-      LeastRecentlyUsedCacheEvictor(appConstants.exoPlayerDiskCacheMaxSize),
-      ExoDatabaseProvider(context)
+
+  fun createDataSourceFactory(upstreamDataSourceFactory: DataSource.Factory): DataSource.Factory {
+    return PartialMediaCacheDataSource.Factory(
+      partialMediaCache = partialMediaCacheLazy.get(),
+      upstreamDataSourceFactory = upstreamDataSourceFactory
     )
   }
-}
\ No newline at end of file
+
+}
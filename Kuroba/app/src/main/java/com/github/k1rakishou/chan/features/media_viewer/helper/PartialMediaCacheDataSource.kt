@@ -0,0 +1,234 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import android.net.Uri
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
+import com.github.k1rakishou.core_logger.Logger
+import com.google.android.exoplayer2.C
+import com.google.android.exoplayer2.upstream.BaseDataSource
+import com.google.android.exoplayer2.upstream.DataSource
+import com.google.android.exoplayer2.upstream.DataSpec
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * ExoPlayer [DataSource] that stores everything it streams into [PartialMediaCache] instead of a
+ * separate ExoPlayer SimpleCache. Already cached ranges are served from the disk, everything else
+ * is requested from the [upstreamDataSource] and written into the partial file as it's being
+ * played. Once every byte of the file is downloaded it gets committed into the CacheHandler so
+ * that the ChunkedMediaDownloader and the ImageSaver can use it without downloading it again.
+ * */
+class PartialMediaCacheDataSource(
+  private val partialMediaCache: PartialMediaCache,
+  private val upstreamDataSource: DataSource
+) : BaseDataSource(/* isNetwork= */ true) {
+  private var dataSpec: DataSpec? = null
+  private var completedFile: RandomAccessFile? = null
+  private var entry: PartialMediaCache.PartialMediaEntry? = null
+  private var upstreamOpened = false
+
+  private var position = 0L
+  private var bytesRemaining = C.LENGTH_UNSET.toLong()
+
+  override fun open(dataSpec: DataSpec): Long {
+    this.dataSpec = dataSpec
+    transferInitializing(dataSpec)
+
+    val url = dataSpec.key ?: dataSpec.uri.toString()
+    position = dataSpec.position
+
+    val cachedFile = partialMediaCache.getCompletedFileOrNull(url)
+    if (cachedFile != null && openCompletedFile(cachedFile, dataSpec)) {
+      transferStarted(dataSpec)
+      return bytesRemaining
+    }
+
+    val partialEntry = partialMediaCache.acquire(url)
+    if (partialEntry == null) {
+      // Failed to create a partial file, just stream it without caching
+      Logger.e(TAG, "open() failed to acquire partial entry for '$url', falling back to upstream")
+      bytesRemaining = openUpstream(dataSpec)
+      transferStarted(dataSpec)
+      return bytesRemaining
+    }
+
+    entry = partialEntry
+
+    val totalLength = partialEntry.totalLength
+    bytesRemaining = when {
+      dataSpec.length != C.LENGTH_UNSET.toLong() -> dataSpec.length
+      totalLength > 0 -> totalLength - dataSpec.position
+      else -> {
+        // We don't know the file length yet so we have to ask the server
+        val result = openUpstream(dataSpec)
+        if (result != C.LENGTH_UNSET.toLong()) {
+          partialEntry.updateTotalLength(dataSpec.position + result)
+        }
+
+        result
+      }
+    }
+
+    transferStarted(dataSpec)
+    return bytesRemaining
+  }
+
+  override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+    if (length == 0) {
+      return 0
+    }
+
+    if (bytesRemaining == 0L) {
+      return C.RESULT_END_OF_INPUT
+    }
+
+    val toRead = if (bytesRemaining == C.LENGTH_UNSET.toLong()) {
+      length
+    } else {
+      minOf(bytesRemaining, length.toLong()).toInt()
+    }
+
+    val read = readInternal(buffer, offset, toRead)
+    if (read == C.RESULT_END_OF_INPUT) {
+      if (bytesRemaining != C.LENGTH_UNSET.toLong() && bytesRemaining > 0) {
+        throw IOException("Unexpected end of input, bytesRemaining=$bytesRemaining")
+      }
+
+      entry?.let { partialEntry ->
+        if (partialEntry.totalLength <= 0 && dataSpec?.length == C.LENGTH_UNSET.toLong()) {
+          partialEntry.updateTotalLength(position)
+        }
+
+        partialMediaCache.commitIfComplete(partialEntry)
+      }
+
+      return C.RESULT_END_OF_INPUT
+    }
+
+    position += read
+    if (bytesRemaining != C.LENGTH_UNSET.toLong()) {
+      bytesRemaining -= read
+    }
+
+    bytesTransferred(read)
+    return read
+  }
+
+  private fun readInternal(buffer: ByteArray, offset: Int, length: Int): Int {
+    val cachedFile = completedFile
+    if (cachedFile != null) {
+      cachedFile.seek(position)
+      return cachedFile.read(buffer, offset, length)
+    }
+
+    val partialEntry = entry
+    if (partialEntry == null) {
+      return upstreamDataSource.read(buffer, offset, length)
+    }
+
+    if (!upstreamOpened) {
+      val readFromCache = partialEntry.read(position, buffer, offset, length)
+      if (readFromCache > 0) {
+        return readFromCache
+      }
+
+      val currentDataSpec = checkNotNull(dataSpec) { "dataSpec is null" }
+      val upstreamDataSpec = currentDataSpec.subrange(position - currentDataSpec.position)
+      val result = openUpstream(upstreamDataSpec)
+
+      if (result != C.LENGTH_UNSET.toLong() && currentDataSpec.length == C.LENGTH_UNSET.toLong()) {
+        partialEntry.updateTotalLength(position + result)
+      }
+    }
+
+    val read = upstreamDataSource.read(buffer, offset, length)
+    if (read > 0) {
+      partialEntry.write(position, buffer, offset, read)
+
+      if (partialEntry.isFullyCached()) {
+        partialMediaCache.commitIfComplete(partialEntry)
+      }
+    }
+
+    return read
+  }
+
+  override fun getUri(): Uri? {
+    return dataSpec?.uri
+  }
+
+  override fun close() {
+    try {
+      if (upstreamOpened) {
+        upstreamDataSource.close()
+      }
+    } finally {
+      upstreamOpened = false
+
+      try {
+        completedFile?.close()
+      } catch (ignored: IOException) {
+      }
+
+      completedFile = null
+
+      entry?.let { partialEntry -> partialMediaCache.release(partialEntry) }
+      entry = null
+
+      if (dataSpec != null) {
+        dataSpec = null
+        transferEnded()
+      }
+    }
+  }
+
+  private fun openUpstream(dataSpec: DataSpec): Long {
+    val result = upstreamDataSource.open(dataSpec)
+    upstreamOpened = true
+
+    return result
+  }
+
+  private fun openCompletedFile(file: File, dataSpec: DataSpec): Boolean {
+    try {
+      val randomAccessFile = RandomAccessFile(file, "r")
+      val fileLength = randomAccessFile.length()
+
+      if (dataSpec.position > fileLength) {
+        randomAccessFile.close()
+        return false
+      }
+
+      bytesRemaining = if (dataSpec.length != C.LENGTH_UNSET.toLong()) {
+        minOf(dataSpec.length, fileLength - dataSpec.position)
+      } else {
+        fileLength - dataSpec.position
+      }
+
+      completedFile = randomAccessFile
+      return true
+    } catch (error: IOException) {
+      Logger.e(TAG, "openCompletedFile() error", error)
+      return false
+    }
+  }
+
+  class Factory(
+    private val partialMediaCache: PartialMediaCache,
+    private val upstreamDataSourceFactory: DataSource.Factory
+  ) : DataSource.Factory {
+
+    override fun createDataSource(): DataSource {
+      return PartialMediaCacheDataSource(
+        partialMediaCache = partialMediaCache,
+        upstreamDataSource = upstreamDataSourceFactory.createDataSource()
+      )
+    }
+
+  }
+
+  companion object {
+    private const val TAG = "PartialMediaCacheDataSource"
+  }
+
+}
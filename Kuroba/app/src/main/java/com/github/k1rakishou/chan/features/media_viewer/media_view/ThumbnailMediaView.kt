@@ -13,6 +13,7 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.image.ImageLoadPriority
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2
 import com.github.k1rakishou.chan.features.media_viewer.MediaLocation
 import com.github.k1rakishou.chan.features.media_viewer.ViewableMedia
@@ -101,10 +102,12 @@ class ThumbnailMediaView @JvmOverloads constructor(
 
   fun show() {
     currentlyVisible = true
+    requestDisposable?.changePriority(ImageLoadPriority.Visible)
   }
 
   fun hide() {
     currentlyVisible = false
+    requestDisposable?.changePriority(ImageLoadPriority.MediaViewerNeighbor)
   }
 
   fun unbind() {
@@ -161,7 +164,8 @@ class ThumbnailMediaView @JvmOverloads constructor(
       imageSize = ImageLoaderV2.ImageSize.MeasurableImageSize.create(this),
       transformations = emptyList(),
       listener = listener,
-      postDescriptor = postDescriptor
+      postDescriptor = postDescriptor,
+      priority = if (currentlyVisible) ImageLoadPriority.Visible else ImageLoadPriority.MediaViewerNeighbor
     )
   }
 
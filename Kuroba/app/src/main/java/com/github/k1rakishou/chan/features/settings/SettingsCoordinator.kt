@@ -52,6 +52,7 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import com.github.k1rakishou.model.repository.SeenPostRepository
+import com.github.k1rakishou.model.sqlite.SQLiteQueryTimings
 import com.github.k1rakishou.persist_state.IndexAndTop
 import dagger.Lazy
 import io.reactivex.Flowable
@@ -133,6 +134,8 @@ class SettingsCoordinator(
   lateinit var installMpvNativeLibrariesFromLocalDirectoryUseCase: InstallMpvNativeLibrariesFromLocalDirectoryUseCase
   @Inject
   lateinit var appRestarter: AppRestarter
+  @Inject
+  lateinit var sqliteQueryTimings: SQLiteQueryTimings
 
   private val scope = KurobaCoroutineScope()
   private val settingBuilderExecutor = SerializedCoroutineExecutor(scope)
@@ -197,7 +200,8 @@ class SettingsCoordinator(
       context,
       navigationController,
       themeEngine,
-      appRestarter
+      appRestarter,
+      sqliteQueryTimings
     )
   }
 
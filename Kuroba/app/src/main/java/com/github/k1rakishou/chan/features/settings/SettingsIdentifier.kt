@@ -167,6 +167,8 @@ sealed class DeveloperScreen(
     object EnableDisableVerboseLogs : MainGroup("enable_disable_verbose_logs")
     object CrashApp : MainGroup("crash_the_app")
     object ShowDatabaseSummary : MainGroup("show_database_summary")
+    object DumpDatabaseQueryTimings : MainGroup("dump_database_query_timings")
+    object ExportPostListProfilerReport : MainGroup("export_post_list_profiler_report")
     object ResetThreadOpenCounter : MainGroup("reset_thread_open_counter")
     object CrashOnSafeThrow : MainGroup("crash_on_safe_throw")
     object SimulateAppUpdated : MainGroup("simulate_app_updated")
@@ -16,7 +16,6 @@ import com.github.k1rakishou.chan.utils.IOUtils
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.util.ChanPostUtils
-import com.google.android.exoplayer2.upstream.cache.SimpleCache
 import dagger.Lazy
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
@@ -79,17 +78,16 @@ class CachingSettingsScreen(
           identifier = CachingScreen.CacheGroup.ClearExoPlayerCache,
           topDescriptionStringFunc = { context.getString(R.string.settings_clear_exo_player_file_cache) },
           bottomDescriptionStringFunc = {
-            val exoPlayerCacheSizeBytes = withContext(Dispatchers.Default) {
-              IOUtils.calculateDirectoryFilesFullSize(appConstants.exoPlayerCacheDir)
-            }
+            // ExoPlayer streams into the same media cache that is used for full images/videos
+            val mediaCacheSizeBytes = cacheHandler.get().getSize(CacheFileType.PostMediaFull)
 
             context.getString(
               R.string.settings_clear_exo_player_cache_bottom_description,
-              ChanPostUtils.getReadableFileSize(exoPlayerCacheSizeBytes)
+              ChanPostUtils.getReadableFileSize(mediaCacheSizeBytes)
             )
           },
           callback = {
-            SimpleCache.delete(appConstants.exoPlayerCacheDir, null)
+            chunkedMediaDownloader.clearCache(CacheFileType.PostMediaFull)
             AppModuleAndroidUtils.showToast(context, "Cleared exoplayer cache")
           }
         )
@@ -11,18 +11,23 @@ import com.github.k1rakishou.chan.features.settings.SettingClickAction
 import com.github.k1rakishou.chan.features.settings.SettingsGroup
 import com.github.k1rakishou.chan.features.settings.setting.BooleanSettingV2
 import com.github.k1rakishou.chan.features.settings.setting.LinkSettingV2
+import com.github.k1rakishou.chan.ui.cell.PostListProfiler
 import com.github.k1rakishou.chan.ui.controller.LogsController
 import com.github.k1rakishou.chan.ui.controller.navigation.NavigationController
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.getString
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.showToast
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_themes.ThemeEngine
+import com.github.k1rakishou.model.sqlite.SQLiteQueryTimings
 import com.github.k1rakishou.persist_state.PersistableChanState
 
 class DeveloperSettingsScreen(
   context: Context,
   private val navigationController: NavigationController,
   private val themeEngine: ThemeEngine,
-  private val appRestarter: AppRestarter
+  private val appRestarter: AppRestarter,
+  private val sqliteQueryTimings: SQLiteQueryTimings
 ) : BaseSettingsScreen(
   context,
   DeveloperScreen,
@@ -105,6 +110,31 @@ class DeveloperSettingsScreen(
           }
         )
 
+        group += LinkSettingV2.createBuilder(
+          context = context,
+          identifier = DeveloperScreen.MainGroup.DumpDatabaseQueryTimings,
+          topDescriptionIdFunc = { R.string.settings_dump_database_query_timings },
+          bottomDescriptionIdFunc = { R.string.settings_dump_database_query_timings_description },
+          callback = {
+            Logger.d(TAG, sqliteQueryTimings.dump())
+            showToast(context, "Done")
+          }
+        )
+
+        group += LinkSettingV2.createBuilder(
+          context = context,
+          identifier = DeveloperScreen.MainGroup.ExportPostListProfilerReport,
+          topDescriptionIdFunc = { R.string.settings_export_post_list_profiler_report },
+          bottomDescriptionIdFunc = { R.string.settings_export_post_list_profiler_report_description },
+          callback = {
+            val report = PostListProfiler.report()
+            Logger.d(TAG, report)
+            AndroidUtils.setClipboardContent("Post list profiler report", report)
+            PostListProfiler.reset()
+            showToast(context, R.string.settings_export_post_list_profiler_report_copied)
+          }
+        )
+
         group += LinkSettingV2.createBuilder(
           context = context,
           identifier = DeveloperScreen.MainGroup.ResetThreadOpenCounter,
@@ -9,6 +9,7 @@ import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
 import com.github.k1rakishou.chan.core.watcher.BookmarkForegroundWatcher
+import com.github.k1rakishou.chan.core.watcher.BookmarkPollScheduler
 import com.github.k1rakishou.chan.features.settings.SettingsGroup
 import com.github.k1rakishou.chan.features.settings.WatcherScreen
 import com.github.k1rakishou.chan.features.settings.setting.BooleanSettingV2
@@ -209,12 +210,10 @@ class WatcherSettingsScreen(
           identifier = WatcherScreen.ThreadWatcherGroup.AdaptiveForegroundWatcherInterval,
           topDescriptionIdFunc = { R.string.setting_watch_foreground_adaptive_timer },
           bottomDescriptionStringFunc = {
-            val seconds = TimeUnit.MILLISECONDS.toSeconds(
-              BookmarkForegroundWatcher.ADDITIONAL_INTERVAL_INCREMENT_MS
-            )
             return@createBuilder getString(
               R.string.setting_watch_foreground_adaptive_timer_description,
-              seconds
+              TimeUnit.MILLISECONDS.toMinutes(BookmarkPollScheduler.MAX_POLL_INTERVAL_MS),
+              BookmarkForegroundWatcher.MAX_REQUESTS_PER_MINUTE
             )
           },
           setting = ChanSettings.watchForegroundAdaptiveInterval,
@@ -0,0 +1,361 @@
+package com.github.k1rakishou.chan.features.thirdeye
+
+import com.github.k1rakishou.chan.features.thirdeye.data.BooruSetting
+import com.github.k1rakishou.chan.utils.traverseJson
+import com.github.k1rakishou.common.StringUtils
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.isJson
+import com.github.k1rakishou.common.mutableListWithCap
+import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.core_logger.Logger
+import com.squareup.moshi.JsonReader
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.IOException
+import java.util.*
+
+/**
+ * Asks a single booru whether it has an image with the given hash and parses the response using
+ * the json keys from the [BooruSetting].
+ * */
+class ThirdEyeBooruClient(
+  private val okHttpClientProvider: () -> OkHttpClient,
+  private val requestModifier: (Request.Builder) -> Unit
+) {
+
+  /**
+   * Returns null when the booru couldn't be asked (network error, bad status etc.), such results
+   * must not be cached since the next attempt may succeed.
+   * */
+  suspend fun lookup(booruSetting: BooruSetting, imageHash: String): BooruLookupResult? {
+    val imageByMd5EndpointUrl = booruSetting.formatFullImageByMd5EndpointUrl(imageHash)
+    if (imageByMd5EndpointUrl == null) {
+      Logger.e(TAG, "lookup() failed to format imageByMd5EndpointUrl. " +
+        "imageByMd5Endpoint=${booruSetting.apiEndpoint}, imageHash=${imageHash}")
+      return null
+    }
+
+    val requestBuilder = Request.Builder()
+      .url(imageByMd5EndpointUrl)
+      .get()
+
+    requestModifier(requestBuilder)
+
+    val response = try {
+      okHttpClientProvider().suspendCall(requestBuilder.build())
+    } catch (error: IOException) {
+      Logger.e(TAG, "lookup() failure, url='$imageByMd5EndpointUrl', " +
+        "error: ${error.errorMessageOrClassName()}")
+      return null
+    }
+
+    return response.use {
+      if (response.code == 404) {
+        // Some boorus respond with 404 when nothing is found
+        return@use BooruLookupResult.NotFound
+      }
+
+      if (!response.isSuccessful) {
+        Logger.e(TAG, "lookup() failure, url='$imageByMd5EndpointUrl', " +
+          "bad status: ${response.code}")
+        return@use null
+      }
+
+      val responseBody = response.body
+      if (responseBody == null) {
+        Logger.e(TAG, "lookup() failure, url='$imageByMd5EndpointUrl', " +
+          "no response body")
+        return@use null
+      }
+
+      val contentType = responseBody.contentType()
+      val isJsonContent = contentType?.isJson() ?: false
+      if (!isJsonContent) {
+        Logger.e(TAG, "lookup() failure, url='$imageByMd5EndpointUrl', " +
+          "bad content type: '$contentType'")
+        return@use null
+      }
+
+      val result = JsonReader.of(responseBody.source()).use { jsonReader ->
+        return@use extractBooruImageFromJson(
+          imageHash = imageHash,
+          imageByMd5EndpointUrl = imageByMd5EndpointUrl,
+          booruSetting = booruSetting,
+          jsonReader = jsonReader
+        )
+      }
+
+      Logger.d(TAG, "lookup() imageHash='$imageHash', " +
+        "url='$imageByMd5EndpointUrl', result: ${result}")
+      return@use result
+    }
+  }
+
+  private fun extractBooruImageFromJson(
+    imageHash: String,
+    imageByMd5EndpointUrl: HttpUrl,
+    booruSetting: BooruSetting,
+    jsonReader: JsonReader
+  ): BooruLookupResult? {
+    val fullUrlJsonKey = JsonKey(booruSetting.fullUrlJsonKey.lowercase(Locale.ENGLISH).trim())
+    val previewUrlJsonKey = JsonKey(booruSetting.previewUrlJsonKey.lowercase(Locale.ENGLISH).trim())
+    val fileSizeJsonKey = JsonKey(booruSetting.fileSizeJsonKey.lowercase(Locale.ENGLISH).trim())
+    val widthJsonKey = JsonKey(booruSetting.widthJsonKey.lowercase(Locale.ENGLISH).trim())
+    val heightJsonKey = JsonKey(booruSetting.heightJsonKey.lowercase(Locale.ENGLISH).trim())
+    val tagsJsonKey = JsonKey(booruSetting.tagsJsonKey.lowercase(Locale.ENGLISH).trim())
+
+    val namesToCheck = mutableMapOf<JsonKey, JsonValue?>(
+      fullUrlJsonKey to null,
+      previewUrlJsonKey to null,
+      fileSizeJsonKey to null,
+      widthJsonKey to null,
+      heightJsonKey to null,
+      tagsJsonKey to null,
+    )
+
+    try {
+      jsonReader.traverseJson(
+        visitor = { path, name, value -> visit(namesToCheck, path, name, value) },
+        currentName = null,
+        jsonDebugOutput = null
+      )
+    } catch (error: Throwable) {
+      Logger.e(TAG, "extractBooruImageFromJson() imageByMd5EndpointUrl='$imageByMd5EndpointUrl', " +
+        "error: ${error.errorMessageOrClassName()}")
+      return null
+    }
+
+    if (namesToCheck.values.all { value -> value == null }) {
+      return BooruLookupResult.NotFound
+    }
+
+    val tags = namesToCheck[tagsJsonKey]?.asList() ?: emptyList()
+    val bannedTagsAsSet = booruSetting.bannedTagsAsSet
+
+    for (imageTag in tags) {
+      if (imageTag.lowercase(Locale.ENGLISH) in bannedTagsAsSet) {
+        Logger.d(TAG, "extractBooruImageFromJson() Found banned tag: '${imageTag}', " +
+          "skipping this image (imageHash='$imageHash')")
+
+        return BooruLookupResult.Banned
+      }
+    }
+
+    val previewUrl = namesToCheck[previewUrlJsonKey]?.firstOrNull()?.toHttpUrlOrNull()
+    val fullUrl = namesToCheck[fullUrlJsonKey]?.firstOrNull()?.toHttpUrlOrNull()
+    val width = namesToCheck[widthJsonKey]?.firstOrNull()?.toIntOrNull()
+    val height = namesToCheck[heightJsonKey]?.firstOrNull()?.toIntOrNull()
+    val fileSize = namesToCheck[fileSizeJsonKey]?.firstOrNull()?.toLongOrNull()
+
+    if (fullUrl == null) {
+      Logger.e(TAG, "extractBooruImageFromJson() imageByMd5EndpointUrl='$imageByMd5EndpointUrl', " +
+        "failed to extract fullUrl: '${namesToCheck[fullUrlJsonKey]?.firstOrNull()}'")
+      return BooruLookupResult.NotFound
+    }
+
+    if (previewUrl == null) {
+      Logger.e(TAG, "extractBooruImageFromJson() imageByMd5EndpointUrl='$imageByMd5EndpointUrl', " +
+        "failed to extract previewUrl: '${namesToCheck[previewUrlJsonKey]?.firstOrNull()}'")
+      return BooruLookupResult.NotFound
+    }
+
+    val extension = StringUtils.extractFileNameExtension(fullUrl.encodedPath)
+      ?.takeIf { extension -> extension.isNotBlank() && extension.length < 5 }
+
+    val booruImage = BooruImage(
+      fullUrl = fullUrl.toString(),
+      previewUrl = previewUrl.toString(),
+      width = width,
+      height = height,
+      fileSize = fileSize,
+      extension = extension
+    )
+
+    return BooruLookupResult.Found(booruImage)
+  }
+
+  private fun visit(
+    namesToCheck: MutableMap<JsonKey, JsonValue?>,
+    path: List<String>,
+    name: String?,
+    value: String?
+  ) {
+    for (jsonKey in namesToCheck.keys) {
+      if (!jsonKey.compare(path, name)) {
+        continue
+      }
+
+      if (namesToCheck[jsonKey] is JsonValue.JsonString) {
+        val prevValue = (namesToCheck[jsonKey] as JsonValue.JsonString).value
+
+        val list = mutableListWithCap<String>(10).apply {
+          if (prevValue != null) {
+            add(prevValue)
+          }
+
+          if (value != null) {
+            add(value)
+          }
+        }
+
+        namesToCheck[jsonKey] = JsonValue.JsonArray(list)
+      } else if (namesToCheck[jsonKey] is JsonValue.JsonArray) {
+        if (value != null) {
+          (namesToCheck[jsonKey] as JsonValue.JsonArray).values.add(value)
+        }
+      } else {
+        namesToCheck[jsonKey] = JsonValue.JsonString(value)
+      }
+
+      return
+    }
+  }
+
+  class JsonKey(
+    private val keyFull: String
+  ) {
+    private val keyAsListOfKeys: List<String>
+
+    init {
+      if (!keyFull.contains('>')) {
+        keyAsListOfKeys = emptyList<String>()
+      } else {
+        keyAsListOfKeys = keyFull
+          .split('>')
+          .map { innerKey -> innerKey.trim().lowercase(Locale.ENGLISH) }
+      }
+    }
+
+    fun compare(path: List<String>, name: String?): Boolean {
+      if (keyAsListOfKeys.isEmpty()) {
+        return keyFull.equals(other = name, ignoreCase = true)
+      }
+
+      val pathFullSize = if (name != null) {
+        path.size + 1
+      } else {
+        path.size
+      }
+
+      if (keyAsListOfKeys.size != pathFullSize) {
+        return false
+      }
+
+      for (index in path.indices) {
+        val keyFromPath = path.getOrNull(index)
+          ?: return false
+        val keyFromList = keyAsListOfKeys.getOrNull(index)
+          ?: return false
+
+        if (keyFromList == "*") {
+          continue
+        }
+
+        if (!keyFromPath.equals(keyFromList, ignoreCase = true)) {
+          return false
+        }
+      }
+
+      if (name != null) {
+        val lastKey = keyAsListOfKeys.lastOrNull()
+          ?: return false
+
+        if (lastKey == "*") {
+          return true
+        }
+
+        if (!lastKey.equals(name, ignoreCase = true)) {
+          return false
+        }
+      }
+
+      return true
+    }
+
+    override fun equals(other: Any?): Boolean {
+      if (this === other) return true
+      if (javaClass != other?.javaClass) return false
+
+      other as JsonKey
+
+      if (keyFull != other.keyFull) return false
+
+      return true
+    }
+
+    override fun hashCode(): Int {
+      return keyFull.hashCode()
+    }
+
+    override fun toString(): String {
+      return "JsonKey(keyFull='$keyFull')"
+    }
+
+  }
+
+  sealed class JsonValue {
+
+    fun firstOrNull(): String? {
+      when (this) {
+        is JsonString -> {
+          return value
+        }
+        is JsonArray -> {
+          return values.firstOrNull()
+        }
+      }
+    }
+
+    fun asList(): List<String> {
+      when (this) {
+        is JsonString -> {
+          if (value == null) {
+            return emptyList()
+          }
+
+          return listOf<String>(value)
+        }
+        is JsonArray -> {
+          return values
+        }
+      }
+    }
+
+    fun asString(separator: String = ","): String? {
+      return when (this) {
+        is JsonString -> value
+        is JsonArray -> values.joinToString(separator = separator)
+      }
+    }
+
+    class JsonString(val value: String?) : JsonValue()
+    class JsonArray(val values: MutableList<String>) : JsonValue()
+  }
+
+  data class BooruImage(
+    val fullUrl: String,
+    val previewUrl: String,
+    val width: Int?,
+    val height: Int?,
+    val fileSize: Long?,
+    val extension: String?
+  )
+
+  sealed class BooruLookupResult {
+    data class Found(val image: BooruImage) : BooruLookupResult()
+    // The booru has the image but it has one of the banned tags, other boorus must not be asked
+    object Banned : BooruLookupResult() {
+      override fun toString(): String = "Banned"
+    }
+    object NotFound : BooruLookupResult() {
+      override fun toString(): String = "NotFound"
+    }
+  }
+
+  companion object {
+    private const val TAG = "ThirdEyeBooruClient"
+  }
+
+}
@@ -0,0 +1,150 @@
+package com.github.k1rakishou.chan.features.thirdeye
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient.BooruImage
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient.BooruLookupResult
+import com.github.k1rakishou.chan.features.thirdeye.data.BooruSetting
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+import java.util.*
+
+/**
+ * Finds an image by its hash on the configured boorus. The answers are taken from the
+ * [ThirdEyeLookupCache] first, the boorus that have no (fresh) answer are all asked at the same
+ * time and the first one that has the image wins, the requests to the rest of them are cancelled.
+ * A booru that has the image with a banned tag ends the lookup the same way.
+ *
+ * The boorus are asked about one hash per request (the api endpoint only has one key) so instead of
+ * batching, lookups of the same hash (e.g. the same image posted in several posts or loaded by
+ * both the catalog and the thread) are serialized so that only the first one goes to the network,
+ * and the amount of concurrent requests to every booru is limited.
+ * */
+class ThirdEyeImageLookup(
+  private val lookupCache: ThirdEyeLookupCache,
+  private val booruClient: ThirdEyeBooruClient,
+  private val maxConcurrentRequestsPerBooru: Int = MAX_CONCURRENT_REQUESTS_PER_BOORU
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val hashLocks = hashMapOf<String, HashLock>()
+  @GuardedBy("lock")
+  private val booruSemaphores = hashMapOf<String, Semaphore>()
+
+  init {
+    require(maxConcurrentRequestsPerBooru > 0) { "Bad maxConcurrentRequestsPerBooru: $maxConcurrentRequestsPerBooru" }
+  }
+
+  /**
+   * Returns null when none of the [boorus] has the image or when it has a banned tag.
+   * */
+  suspend fun lookup(boorus: List<BooruSetting>, imageHash: String): BooruImage? {
+    if (boorus.isEmpty()) {
+      return null
+    }
+
+    return withHashLock(imageHash.lowercase(Locale.ENGLISH)) {
+      val boorusToAsk = mutableListOf<BooruSetting>()
+
+      for (booruSetting in boorus) {
+        when (val cachedResult = lookupCache.get(booruSetting, imageHash)) {
+          is BooruLookupResult.Found -> return@withHashLock cachedResult.image
+          BooruLookupResult.Banned -> return@withHashLock null
+          BooruLookupResult.NotFound -> continue
+          null -> boorusToAsk += booruSetting
+        }
+      }
+
+      if (boorusToAsk.isEmpty()) {
+        return@withHashLock null
+      }
+
+      return@withHashLock raceBoorus(boorusToAsk, imageHash)
+    }
+  }
+
+  private suspend fun raceBoorus(boorus: List<BooruSetting>, imageHash: String): BooruImage? {
+    return coroutineScope {
+      val resultsChannel = Channel<BooruLookupResult?>(capacity = boorus.size)
+
+      val jobs = boorus.map { booruSetting ->
+        launch {
+          val result = booruSemaphore(booruSetting).withPermit {
+            val lookupResult = ModularResult.Try { booruClient.lookup(booruSetting, imageHash) }
+            if (lookupResult is ModularResult.Error) {
+              Logger.e(TAG, "lookup() unhandled error, booru='${booruSetting.booruUniqueKey}'", lookupResult.error)
+            }
+
+            return@withPermit lookupResult.valueOrNull()
+          }
+
+          if (result != null) {
+            lookupCache.put(booruSetting, imageHash, result)
+          }
+
+          resultsChannel.send(result)
+        }
+      }
+
+      var foundImage: BooruImage? = null
+
+      for (index in boorus.indices) {
+        when (val result = resultsChannel.receive()) {
+          is BooruLookupResult.Found -> {
+            foundImage = result.image
+            break
+          }
+          BooruLookupResult.Banned -> break
+          BooruLookupResult.NotFound,
+          null -> continue
+        }
+      }
+
+      // Cancels the http calls of the boorus that haven't responded yet
+      jobs.forEach { job -> job.cancel() }
+      return@coroutineScope foundImage
+    }
+  }
+
+  private fun booruSemaphore(booruSetting: BooruSetting): Semaphore {
+    return synchronized(lock) {
+      booruSemaphores.getOrPut(booruSetting.booruUniqueKey) { Semaphore(maxConcurrentRequestsPerBooru) }
+    }
+  }
+
+  private suspend fun <T> withHashLock(imageHash: String, func: suspend () -> T): T {
+    val hashLock = synchronized(lock) {
+      val hashLock = hashLocks.getOrPut(imageHash) { HashLock() }
+      ++hashLock.users
+
+      return@synchronized hashLock
+    }
+
+    try {
+      return hashLock.mutex.withLock { func() }
+    } finally {
+      synchronized(lock) {
+        if (--hashLock.users <= 0) {
+          hashLocks.remove(imageHash)
+        }
+      }
+    }
+  }
+
+  private class HashLock {
+    val mutex = Mutex()
+    var users = 0
+  }
+
+  companion object {
+    private const val TAG = "ThirdEyeImageLookup"
+    private const val MAX_CONCURRENT_REQUESTS_PER_BOORU = 4
+  }
+}
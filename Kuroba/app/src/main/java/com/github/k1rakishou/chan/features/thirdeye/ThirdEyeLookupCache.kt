@@ -0,0 +1,308 @@
+package com.github.k1rakishou.chan.features.thirdeye
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient.BooruImage
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient.BooruLookupResult
+import com.github.k1rakishou.chan.features.thirdeye.data.BooruSetting
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Remembers what every booru answered for an image hash (including "nothing found") so that the
+ * same lookups are not repeated after every app restart or catalog reload. Entries are keyed by
+ * [BooruSetting.lookupCacheKey] so changing the settings of a booru (e.g. the json keys or the
+ * banned tags) makes its old entries unreachable. Found images are kept for [foundTtlMs], misses
+ * for a shorter [notFoundTtlMs] since the image may be uploaded to the booru later.
+ *
+ * The cache is persisted as an append-only log of "key<TAB>fetchedAt<TAB>status..." lines (the
+ * last line of a key wins) that is rewritten without the expired and the evicted entries once it
+ * contains too many stale lines. A line torn by the process death is ignored when the log is loaded.
+ * */
+class ThirdEyeLookupCache(
+  private val cacheFile: File,
+  private val maxEntries: Int = MAX_ENTRIES,
+  private val foundTtlMs: Long = FOUND_TTL_MS,
+  private val notFoundTtlMs: Long = NOT_FOUND_TTL_MS,
+  private val currentTimeMillisFunc: () -> Long = { System.currentTimeMillis() }
+) {
+  private val lock = Any()
+
+  // Access ordered so that the least recently used entries are evicted first
+  @GuardedBy("lock")
+  private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+  @GuardedBy("lock")
+  private var loaded = false
+  @GuardedBy("lock")
+  private var logLinesCount = 0
+
+  init {
+    require(maxEntries > 0) { "Bad maxEntries: $maxEntries" }
+  }
+
+  /**
+   * Returns null when the booru was never asked about [imageHash] or when the answer has expired.
+   * */
+  fun get(booruSetting: BooruSetting, imageHash: String): BooruLookupResult? {
+    return synchronized(lock) {
+      ensureLoadedLocked()
+
+      val key = key(booruSetting, imageHash)
+      val entry = entries[key]
+        ?: return@synchronized null
+
+      if (isExpired(entry, currentTimeMillisFunc())) {
+        // No need to write anything into the log, expired lines are skipped when it's loaded
+        entries.remove(key)
+        return@synchronized null
+      }
+
+      return@synchronized entry.result
+    }
+  }
+
+  fun put(booruSetting: BooruSetting, imageHash: String, result: BooruLookupResult) {
+    synchronized(lock) {
+      ensureLoadedLocked()
+
+      val key = key(booruSetting, imageHash)
+      val entry = Entry(fetchedAt = currentTimeMillisFunc(), result = result)
+      val line = serializeOrNull(key, entry)
+
+      if (line == null) {
+        Logger.e(TAG, "put() can't serialize the lookup result of '$imageHash' ($result)")
+        return
+      }
+
+      entries[key] = entry
+
+      // Evicted entries don't need to be removed from the log, they are dropped on the next
+      // compaction and the amount of entries is trimmed again when the log is loaded
+      while (entries.size > maxEntries) {
+        entries.remove(entries.keys.first())
+      }
+
+      appendLocked(line)
+    }
+  }
+
+  fun size(): Int {
+    return synchronized(lock) {
+      ensureLoadedLocked()
+      return@synchronized entries.size
+    }
+  }
+
+  private fun key(booruSetting: BooruSetting, imageHash: String): String {
+    return "${booruSetting.lookupCacheKey}:${imageHash.lowercase(Locale.ENGLISH)}"
+  }
+
+  private fun isExpired(entry: Entry, now: Long): Boolean {
+    val ttl = when (entry.result) {
+      is BooruLookupResult.Found,
+      BooruLookupResult.Banned -> foundTtlMs
+      BooruLookupResult.NotFound -> notFoundTtlMs
+    }
+
+    // fetchedAt in the future means that the system clock was changed
+    return now - entry.fetchedAt > ttl || entry.fetchedAt > now
+  }
+
+  @GuardedBy("lock")
+  private fun ensureLoadedLocked() {
+    if (loaded) {
+      return
+    }
+
+    loaded = true
+
+    if (!cacheFile.exists()) {
+      return
+    }
+
+    var hasTornLines = false
+    val now = currentTimeMillisFunc()
+
+    try {
+      hasTornLines = !endsWithLineBreak(cacheFile)
+
+      cacheFile.forEachLine { line ->
+        ++logLinesCount
+
+        val (key, entry) = deserializeOrNull(line)
+          ?: run {
+            hasTornLines = true
+            return@forEachLine
+          }
+
+        if (isExpired(entry, now)) {
+          entries.remove(key)
+          return@forEachLine
+        }
+
+        // Remove first so that the entry is moved to the end of the access order
+        entries.remove(key)
+        entries[key] = entry
+      }
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to load lookup cache from '${cacheFile.absolutePath}'", error)
+      entries.clear()
+      logLinesCount = 0
+    }
+
+    while (entries.size > maxEntries) {
+      entries.remove(entries.keys.first())
+    }
+
+    // A torn line has no line break at the end so it must be removed before anything is appended
+    if (hasTornLines || logLinesCount > entries.size * 2 + MIN_STALE_LINES_TO_COMPACT) {
+      compactLocked()
+    }
+  }
+
+  private fun endsWithLineBreak(file: File): Boolean {
+    if (file.length() == 0L) {
+      return true
+    }
+
+    return RandomAccessFile(file, "r").use { randomAccessFile ->
+      randomAccessFile.seek(file.length() - 1)
+      return@use randomAccessFile.read() == '\n'.code
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun appendLocked(line: String) {
+    try {
+      cacheFile.appendText(line + "\n")
+      ++logLinesCount
+    } catch (error: IOException) {
+      // The in-memory cache is still valid, we will only lose the entry after the restart
+      Logger.e(TAG, "Failed to append to lookup cache '${cacheFile.absolutePath}'", error)
+      return
+    }
+
+    if (logLinesCount > entries.size * 2 + MIN_STALE_LINES_TO_COMPACT) {
+      compactLocked()
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun compactLocked() {
+    val tmpFile = File(cacheFile.parentFile, cacheFile.name + ".tmp")
+    val now = currentTimeMillisFunc()
+
+    try {
+      entries.values.removeAll { entry -> isExpired(entry, now) }
+
+      tmpFile.bufferedWriter().use { writer ->
+        entries.forEach { (key, entry) ->
+          val line = serializeOrNull(key, entry)
+            ?: return@forEach
+
+          writer.write(line)
+          writer.write("\n")
+        }
+      }
+
+      if (!tmpFile.renameTo(cacheFile)) {
+        throw IOException("Failed to rename '${tmpFile.absolutePath}' into '${cacheFile.absolutePath}'")
+      }
+
+      logLinesCount = entries.size
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to compact lookup cache '${cacheFile.absolutePath}'", error)
+      tmpFile.delete()
+    }
+  }
+
+  private fun serializeOrNull(key: String, entry: Entry): String? {
+    val result = entry.result
+
+    val fields = when (result) {
+      is BooruLookupResult.Found -> {
+        val image = result.image
+
+        listOf(
+          key,
+          entry.fetchedAt.toString(),
+          STATUS_FOUND,
+          image.fullUrl,
+          image.previewUrl,
+          image.width?.toString() ?: "",
+          image.height?.toString() ?: "",
+          image.fileSize?.toString() ?: "",
+          image.extension ?: ""
+        )
+      }
+      BooruLookupResult.NotFound -> listOf(key, entry.fetchedAt.toString(), STATUS_NOT_FOUND)
+      BooruLookupResult.Banned -> listOf(key, entry.fetchedAt.toString(), STATUS_BANNED)
+    }
+
+    if (fields.any { field -> field.contains('\t') || field.contains('\n') }) {
+      return null
+    }
+
+    return fields.joinToString(separator = "\t")
+  }
+
+  private fun deserializeOrNull(line: String): Pair<String, Entry>? {
+    val fields = line.split('\t')
+    if (fields.size < 3) {
+      return null
+    }
+
+    val key = fields[0]
+    val fetchedAt = fields[1].toLongOrNull()
+
+    if (key.isEmpty() || fetchedAt == null) {
+      return null
+    }
+
+    val result = when (fields[2]) {
+      STATUS_NOT_FOUND -> BooruLookupResult.NotFound
+      STATUS_BANNED -> BooruLookupResult.Banned
+      STATUS_FOUND -> {
+        if (fields.size != 9 || fields[3].isEmpty() || fields[4].isEmpty()) {
+          return null
+        }
+
+        val image = BooruImage(
+          fullUrl = fields[3],
+          previewUrl = fields[4],
+          width = fields[5].toIntOrNull(),
+          height = fields[6].toIntOrNull(),
+          fileSize = fields[7].toLongOrNull(),
+          extension = fields[8].takeIf { extension -> extension.isNotEmpty() }
+        )
+
+        BooruLookupResult.Found(image)
+      }
+      else -> return null
+    }
+
+    return Pair(key, Entry(fetchedAt, result))
+  }
+
+  private class Entry(
+    val fetchedAt: Long,
+    val result: BooruLookupResult
+  )
+
+  companion object {
+    private const val TAG = "ThirdEyeLookupCache"
+
+    private const val STATUS_FOUND = "found"
+    private const val STATUS_NOT_FOUND = "not_found"
+    private const val STATUS_BANNED = "banned"
+
+    private const val MAX_ENTRIES = 20_000
+    private const val MIN_STALE_LINES_TO_COMPACT = 512
+
+    val FOUND_TTL_MS = TimeUnit.DAYS.toMillis(7)
+    val NOT_FOUND_TTL_MS = TimeUnit.DAYS.toMillis(1)
+  }
+}
@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.features.thirdeye.data
 
+import com.github.k1rakishou.common.MurmurHashUtils
 import com.squareup.moshi.Json
 import com.squareup.moshi.JsonClass
 import okhttp3.HttpUrl
@@ -38,6 +39,25 @@ data class BooruSetting(
 
   val bannedTagsAsString by lazy { bannedTags.joinToString(separator = " ") }
 
+  // Lookup results depend on every setting of the booru (e.g. the json keys or the banned tags) so
+  // the cached results of a booru are keyed by all of them.
+  val lookupCacheKey by lazy {
+    val hash = MurmurHashUtils.murmurhash3_x64_128(
+      listOf(
+        apiEndpoint,
+        fullUrlJsonKey,
+        previewUrlJsonKey,
+        fileSizeJsonKey,
+        widthJsonKey,
+        heightJsonKey,
+        tagsJsonKey,
+        bannedTagsAsSet.sorted().joinToString(separator = " ")
+      ).joinToString(separator = "\n")
+    )
+
+    return@lazy "%016x%016x".format(hash.val1, hash.val2)
+  }
+
   @Transient
   private var _imageFileNamePattern: Pattern? = null
 
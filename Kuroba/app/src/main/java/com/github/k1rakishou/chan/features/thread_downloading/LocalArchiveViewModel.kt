@@ -409,6 +409,7 @@ class LocalArchiveViewModel(
         val ownerThreadDatabaseId = threadDownloadView.ownerThreadDatabaseId
 
         val files = directory.listFiles()
+          ?.filter { file -> !ThreadMediaManifest.isManifestFile(file.name) }
         val filesTotalSize = files?.sumOf { file -> file.length() } ?: 0L
         val mediaCount = files?.size?.div(2) ?: 0
 
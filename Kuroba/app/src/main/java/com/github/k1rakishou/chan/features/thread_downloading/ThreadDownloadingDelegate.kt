@@ -12,14 +12,8 @@ import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.errorMessageOrClassName
-import com.github.k1rakishou.common.extractFileName
-import com.github.k1rakishou.common.isNotNullNorEmpty
-import com.github.k1rakishou.common.isOutOfDiskSpaceError
-import com.github.k1rakishou.common.processDataCollectionConcurrently
-import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.fsaf.FileManager
-import com.github.k1rakishou.fsaf.file.AbstractFile
 import com.github.k1rakishou.fsaf.file.DirectorySegment
 import com.github.k1rakishou.fsaf.file.FileSegment
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -29,15 +23,9 @@ import com.github.k1rakishou.model.repository.ChanPostImageRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import dagger.Lazy
 import kotlinx.coroutines.CancellationException
-import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.runInterruptible
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
-import okhttp3.HttpUrl
-import okhttp3.OkHttpClient
 import okhttp3.Request
-import okhttp3.internal.closeQuietly
+import java.io.File
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.coroutines.coroutineContext
 import kotlin.time.ExperimentalTime
@@ -57,10 +45,17 @@ class ThreadDownloadingDelegate(
 ) {
   private val fileManager: FileManager
     get() = threadDownloaderFileManagerWrapper.fileManager
-  private val okHttpClient: OkHttpClient
-    get() = downloaderOkHttpClient.get().okHttpClient()
   private val batchCount = appConstants.processorsCount
 
+  private val threadMediaArchiver by lazy {
+    ThreadMediaArchiver(
+      fileManager = fileManager,
+      okHttpClientProvider = { downloaderOkHttpClient.get().okHttpClient() },
+      requestModifier = { threadMedia, requestBuilder -> modifyRequest(threadMedia, requestBuilder) },
+      maxConcurrentDownloads = batchCount
+    )
+  }
+
   private val _running = AtomicBoolean(false)
   val running: Boolean
     get() = _running.get()
@@ -283,162 +278,50 @@ class ThreadDownloadingDelegate(
       fileManager.create(noMediaFile)
     }
 
-    // "* 2" because thumbnails and full images
-    val progressIncrement = (1f - POSTS_PROCESSED_PROGRESS) / (chanPostImages.size.toFloat() * 2)
-    val mutex = Mutex()
-    var totalProgress = POSTS_PROCESSED_PROGRESS
-
-    processDataCollectionConcurrently(
-      dataList = chanPostImages,
-      batchCount = batchCount,
-      dispatcher = Dispatchers.IO
-    ) { postImage ->
-      val isNetworkGoodForMediaDownload = if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
-        true
-      } else {
-        AppModuleAndroidUtils.isConnectionUnmetered()
-      }
-
-      if (!isNetworkGoodForMediaDownload) {
-        return@processDataCollectionConcurrently
-      }
-
-      if (outOfDiskSpaceError.get()) {
-        return@processDataCollectionConcurrently
-      }
-
-      if (outputDirError.get()) {
-        return@processDataCollectionConcurrently
-      }
-
-      val thumbnailUrl = postImage.actualThumbnailUrl
-      val thumbnailName = postImage.actualThumbnailUrl?.extractFileName()
-
-      if (thumbnailUrl != null && thumbnailName.isNotNullNorEmpty()) {
-        downloadImage(
-          outputDirectory = outputDirectory,
-          isThumbnail = true,
-          name = thumbnailName,
-          imageUrl = thumbnailUrl,
-          outOfDiskSpaceError = outOfDiskSpaceError,
-          outputDirError = outputDirError
-        )
-      }
-
-      val newProgress1 = mutex.withLock {
-        totalProgress += progressIncrement
-        totalProgress
-      }
-      threadDownloadProgressNotifier.notifyProgressEvent(
-        threadDescriptor,
-        ThreadDownloadProgressNotifier.Event.Progress(newProgress1)
-      )
-
-      val fullImageUrl = postImage.imageUrl
-      val fullImageName = postImage.imageUrl?.extractFileName()
+    val manifestFile = File(File(appConstants.threadDownloaderCacheDir, directoryName), ThreadMediaManifest.MANIFEST_FILE_NAME)
+
+    val archiveResult = threadMediaArchiver.archive(
+      outputDirectory = outputDirectory,
+      manifestFile = manifestFile,
+      threadMedia = ThreadMediaArchiver.threadMediaOf(chanPostImages),
+      canContinue = {
+        val isNetworkGoodForMediaDownload = if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
+          true
+        } else {
+          AppModuleAndroidUtils.isConnectionUnmetered()
+        }
 
-      if (fullImageUrl != null && fullImageName.isNotNullNorEmpty()) {
-        downloadImage(
-          outputDirectory = outputDirectory,
-          isThumbnail = false,
-          name = fullImageName,
-          imageUrl = fullImageUrl,
-          outOfDiskSpaceError = outOfDiskSpaceError,
-          outputDirError = outputDirError
+        isNetworkGoodForMediaDownload && !outOfDiskSpaceError.get() && !outputDirError.get()
+      },
+      onProgress = { progress ->
+        threadDownloadProgressNotifier.notifyProgressEvent(
+          threadDescriptor,
+          ThreadDownloadProgressNotifier.Event.Progress(POSTS_PROCESSED_PROGRESS + (1f - POSTS_PROCESSED_PROGRESS) * progress)
         )
       }
+    )
 
-      val newProgress2 = mutex.withLock {
-        totalProgress += progressIncrement
-        totalProgress
-      }
-      threadDownloadProgressNotifier.notifyProgressEvent(
-        threadDescriptor,
-        ThreadDownloadProgressNotifier.Event.Progress(newProgress2)
-      )
-    }
-
-    Logger.d(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor} success")
-  }
-
-  private suspend fun downloadImage(
-    outputDirectory: AbstractFile,
-    isThumbnail: Boolean,
-    name: String,
-    imageUrl: HttpUrl,
-    outOfDiskSpaceError: AtomicBoolean,
-    outputDirError: AtomicBoolean,
-  ) {
-    var outputFile = fileManager.findFile(outputDirectory, name)
-    if (outputFile == null) {
-      outputFile = fileManager.create(outputDirectory, listOf(FileSegment(name)))
+    if (archiveResult.outOfDiskSpace) {
+      outOfDiskSpaceError.set(true)
     }
 
-    if (outputFile == null) {
+    if (archiveResult.outputDirError) {
       outputDirError.set(true)
-      return
-    }
-
-    if (fileManager.exists(outputFile) && fileManager.getLength(outputFile) > 0L) {
-      // Already downloaded, nothing to do
-      return
     }
 
-    val site = siteResolver.findSiteForUrl(imageUrl.toString())
-    val requestModifier = site?.requestModifier()
-
-    val requestBuilder = Request.Builder()
-      .url(imageUrl)
-      .get()
-
-    if (site != null && requestModifier != null) {
-      if (isThumbnail) {
-        requestModifier.modifyThumbnailGetRequest(site, requestBuilder)
-      } else {
-        requestModifier.modifyFullImageGetRequest(site, requestBuilder)
-      }
-    }
+    Logger.d(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor} success, " +
+      "archiveResult=${archiveResult}")
+  }
 
-    val response = okHttpClient.suspendCall(requestBuilder.build())
-    if (!response.isSuccessful) {
-      Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
-        "bad response code: ${response.code}")
-      return
-    }
+  private fun modifyRequest(threadMedia: ThreadMediaArchiver.ThreadMedia, requestBuilder: Request.Builder) {
+    val site = siteResolver.findSiteForUrl(threadMedia.url.toString())
+      ?: return
+    val requestModifier = site.requestModifier()
 
-    val responseBody = if (response.body == null) {
-      Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
-        "response body is null")
-      return
+    if (threadMedia.isThumbnail) {
+      requestModifier.modifyThumbnailGetRequest(site, requestBuilder)
     } else {
-      response.body!!
-    }
-
-    try {
-      val outputStream = fileManager.getOutputStream(outputFile)
-      if (outputStream == null) {
-        Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
-          "failed to get output stream for file '${outputFile.getFullPath()}'")
-        return
-      }
-
-      runInterruptible {
-        responseBody.byteStream().use { inputStream ->
-          outputStream.use { os ->
-            inputStream.copyTo(os)
-          }
-        }
-      }
-    } catch (error: Throwable) {
-      if (error.isOutOfDiskSpaceError()) {
-        outOfDiskSpaceError.set(true)
-      }
-
-      Logger.e(TAG, "Failed to store image into file '$outputFile', deleting it. " +
-        "Error: ${error.errorMessageOrClassName()}")
-      fileManager.delete(outputFile)
-    } finally {
-      responseBody.closeQuietly()
+      requestModifier.modifyFullImageGetRequest(site, requestBuilder)
     }
   }
 
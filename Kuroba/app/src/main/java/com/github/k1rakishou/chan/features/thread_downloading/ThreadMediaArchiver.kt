@@ -0,0 +1,384 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaManifest.Status
+import com.github.k1rakishou.common.BadStatusResponseException
+import com.github.k1rakishou.common.MurmurHashUtils
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.extractFileName
+import com.github.k1rakishou.common.isOutOfDiskSpaceError
+import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.fsaf.FileManager
+import com.github.k1rakishou.fsaf.file.AbstractFile
+import com.github.k1rakishou.fsaf.file.FileSegment
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.internal.closeQuietly
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Downloads the media of a thread into its archive directory. Only the media that the
+ * [ThreadMediaManifest] of the directory doesn't have as archived (new, changed or failed last time)
+ * is downloaded, at most [maxConcurrentDownloads] files at the same time. Downloads that failed
+ * because of a network error or a server error (5xx, 429) are retried up to [maxAttempts] times with
+ * an exponentially growing delay, what still fails is retried during the next run. Everything
+ * (including the manifest) is read and written on [Dispatchers.IO] no matter where it's called from.
+ * */
+class ThreadMediaArchiver(
+  private val fileManager: FileManager,
+  private val okHttpClientProvider: () -> OkHttpClient,
+  private val requestModifier: (ThreadMedia, Request.Builder) -> Unit,
+  private val maxConcurrentDownloads: Int,
+  private val maxAttempts: Int = MAX_ATTEMPTS,
+  private val retryBaseDelayMs: Long = RETRY_BASE_DELAY_MS
+) {
+
+  init {
+    require(maxConcurrentDownloads > 0) { "Bad maxConcurrentDownloads: $maxConcurrentDownloads" }
+    require(maxAttempts > 0) { "Bad maxAttempts: $maxAttempts" }
+  }
+
+  /**
+   * [canContinue] is checked before every download (e.g. the network became metered), the media
+   * that wasn't downloaded because of it is left as is and downloaded during the next run.
+   * [onProgress] gets the part (0..1) of the media to download that is processed.
+   * When a file can't be created in [outputDirectory] the rest of the media is not downloaded and
+   * [ArchiveResult.outputDirError] is set.
+   * */
+  suspend fun archive(
+    outputDirectory: AbstractFile,
+    manifestFile: File,
+    threadMedia: List<ThreadMedia>,
+    canContinue: () -> Boolean,
+    onProgress: suspend (Float) -> Unit
+  ): ArchiveResult {
+    return withContext(Dispatchers.IO) {
+      archiveInternal(outputDirectory, manifestFile, threadMedia, canContinue, onProgress)
+    }
+  }
+
+  private suspend fun archiveInternal(
+    outputDirectory: AbstractFile,
+    manifestFile: File,
+    threadMedia: List<ThreadMedia>,
+    canContinue: () -> Boolean,
+    onProgress: suspend (Float) -> Unit
+  ): ArchiveResult {
+    val manifest = ThreadMediaManifest.load(manifestFile)
+    if (!manifest.existed) {
+      registerAlreadyArchivedMedia(manifest, outputDirectory, threadMedia)
+    }
+
+    val toDownload = manifest.diff(threadMedia)
+    Logger.d(TAG, "archive('${outputDirectory.getFullPath()}') total=${threadMedia.size}, " +
+      "toDownload=${toDownload.size}, manifestEntries=${manifest.size()}")
+
+    if (toDownload.isEmpty()) {
+      manifest.save()
+      return ArchiveResult(total = threadMedia.size, downloaded = 0, failed = 0, outOfDiskSpace = false, outputDirError = false)
+    }
+
+    val semaphore = Semaphore(maxConcurrentDownloads)
+    val mutex = Mutex()
+    val outOfDiskSpace = AtomicBoolean(false)
+    val outputDirError = AtomicBoolean(false)
+    var processed = 0
+    var downloaded = 0
+    var failed = 0
+
+    try {
+      coroutineScope {
+        toDownload.forEach { media ->
+          launch {
+            val status = semaphore.withPermit {
+              if (outOfDiskSpace.get() || outputDirError.get() || !canContinue()) {
+                return@withPermit null
+              }
+
+              return@withPermit downloadWithRetries(outputDirectory, media, outOfDiskSpace, outputDirError)
+            }
+
+            mutex.withLock {
+              ++processed
+
+              if (status != null) {
+                manifest.update(media, status)
+
+                when (status) {
+                  Status.Downloaded -> ++downloaded
+                  Status.Gone,
+                  Status.Failed -> ++failed
+                }
+
+                // So that a process death doesn't make us download everything again
+                if (processed % SAVE_MANIFEST_EVERY_N_FILES == 0) {
+                  manifest.save()
+                }
+              }
+
+              onProgress(processed.toFloat() / toDownload.size.toFloat())
+            }
+          }
+        }
+      }
+    } finally {
+      manifest.save()
+    }
+
+    return ArchiveResult(
+      total = threadMedia.size,
+      downloaded = downloaded,
+      failed = failed,
+      outOfDiskSpace = outOfDiskSpace.get(),
+      outputDirError = outputDirError.get()
+    )
+  }
+
+  /**
+   * Archives downloaded before the manifest existed have no manifest so the files that are already
+   * in the directory are registered with the current checksums (with one directory listing instead
+   * of looking up every file).
+   * */
+  private fun registerAlreadyArchivedMedia(
+    manifest: ThreadMediaManifest,
+    outputDirectory: AbstractFile,
+    threadMedia: List<ThreadMedia>
+  ) {
+    val existingFiles = fileManager.listFiles(outputDirectory)
+      .filter { file -> fileManager.getLength(file) > 0L }
+      .map { file -> fileManager.getName(file) }
+      .toSet()
+
+    if (existingFiles.isEmpty()) {
+      return
+    }
+
+    threadMedia.forEach { media ->
+      if (media.fileName in existingFiles) {
+        manifest.update(media, Status.Downloaded)
+      }
+    }
+  }
+
+  private suspend fun downloadWithRetries(
+    outputDirectory: AbstractFile,
+    media: ThreadMedia,
+    outOfDiskSpace: AtomicBoolean,
+    outputDirError: AtomicBoolean
+  ): Status? {
+    var attempt = 0
+
+    while (true) {
+      ++attempt
+
+      val result = try {
+        download(outputDirectory, media)
+      } catch (error: Throwable) {
+        if (error is CancellationException) {
+          throw error
+        }
+
+        DownloadResult.Error(error)
+      }
+
+      when (result) {
+        DownloadResult.Success -> return Status.Downloaded
+        DownloadResult.Gone -> return Status.Gone
+        is DownloadResult.Error -> {
+          val error = result.error
+
+          if (error.isOutOfDiskSpaceError()) {
+            outOfDiskSpace.set(true)
+            // The file will be downloaded during the next run once there is space
+            return null
+          }
+
+          if (error is OutputFileException) {
+            Logger.e(TAG, "download(${media.url}) output file error: ${error.errorMessageOrClassName()}")
+            outputDirError.set(true)
+            // Something is wrong with the directory, no point in trying the rest of the media
+            return null
+          }
+
+          if (!error.isRetriable() || attempt >= maxAttempts) {
+            Logger.e(TAG, "download(${media.url}) failed after ${attempt} attempt(s), " +
+              "error: ${error.errorMessageOrClassName()}")
+            return Status.Failed
+          }
+
+          val delayMs = retryBaseDelayMs * (1L shl (attempt - 1))
+          Logger.d(TAG, "download(${media.url}) attempt ${attempt} failed, retrying in ${delayMs}ms, " +
+            "error: ${error.errorMessageOrClassName()}")
+
+          delay(delayMs)
+        }
+      }
+    }
+  }
+
+  private suspend fun download(outputDirectory: AbstractFile, media: ThreadMedia): DownloadResult {
+    val requestBuilder = Request.Builder()
+      .url(media.url)
+      .get()
+
+    requestModifier(media, requestBuilder)
+
+    val response = okHttpClientProvider().suspendCall(requestBuilder.build())
+    if (!response.isSuccessful) {
+      response.closeQuietly()
+
+      if (response.code == 404 || response.code == 410) {
+        return DownloadResult.Gone
+      }
+
+      return DownloadResult.Error(BadStatusResponseException(response.code))
+    }
+
+    val responseBody = response.body
+    if (responseBody == null) {
+      response.closeQuietly()
+      return DownloadResult.Error(IOException("Response body is null"))
+    }
+
+    try {
+      var outputFile = fileManager.findFile(outputDirectory, media.fileName)
+      if (outputFile == null) {
+        outputFile = fileManager.create(outputDirectory, listOf(FileSegment(media.fileName)))
+      }
+
+      if (outputFile == null) {
+        return DownloadResult.Error(OutputFileException("Failed to create file '${media.fileName}'"))
+      }
+
+      val outputStream = fileManager.getOutputStream(outputFile)
+      if (outputStream == null) {
+        return DownloadResult.Error(OutputFileException("Failed to get output stream for file '${outputFile.getFullPath()}'"))
+      }
+
+      try {
+        runInterruptible {
+          responseBody.byteStream().use { inputStream ->
+            outputStream.use { os -> inputStream.copyTo(os, DOWNLOAD_BUFFER_SIZE) }
+          }
+        }
+      } catch (error: Throwable) {
+        Logger.e(TAG, "Failed to store image into file '${outputFile.getFullPath()}', deleting it. " +
+          "Error: ${error.errorMessageOrClassName()}")
+        fileManager.delete(outputFile)
+        throw error
+      }
+
+      return DownloadResult.Success
+    } finally {
+      responseBody.closeQuietly()
+    }
+  }
+
+  private fun Throwable.isRetriable(): Boolean {
+    if (this is BadStatusResponseException) {
+      return status == 429 || status >= 500
+    }
+
+    return this is IOException && this !is OutputFileException
+  }
+
+  private sealed class DownloadResult {
+    object Success : DownloadResult()
+    object Gone : DownloadResult()
+    class Error(val error: Throwable) : DownloadResult()
+  }
+
+  private class OutputFileException(message: String) : IOException(message)
+
+  data class ThreadMedia(
+    val fileName: String,
+    val url: HttpUrl,
+    val isThumbnail: Boolean,
+    val postHash: String,
+    val checksum: String
+  )
+
+  data class ArchiveResult(
+    val total: Int,
+    val downloaded: Int,
+    val failed: Int,
+    val outOfDiskSpace: Boolean,
+    val outputDirError: Boolean
+  )
+
+  companion object {
+    private const val TAG = "ThreadMediaArchiver"
+    private const val MAX_ATTEMPTS = 3
+    private const val RETRY_BASE_DELAY_MS = 1000L
+    private const val SAVE_MANIFEST_EVERY_N_FILES = 32
+    private const val DOWNLOAD_BUFFER_SIZE = 64 * 1024
+
+    /**
+     * The thumbnail and the full image of every post image. The thumbnail uses the checksum of the
+     * full image (sites don't send thumbnail hashes) which is fine since the thumbnail changes
+     * together with the image.
+     * */
+    fun threadMediaOf(chanPostImages: List<ChanPostImage>): List<ThreadMedia> {
+      val threadMedia = mutableListOf<ThreadMedia>()
+
+      chanPostImages.forEach { postImage ->
+        val checksum = if (!postImage.fileHash.isNullOrBlank()) {
+          "md5:${postImage.fileHash}"
+        } else {
+          "size:${postImage.size}"
+        }
+
+        val thumbnailUrl = postImage.actualThumbnailUrl
+        val thumbnailName = thumbnailUrl?.extractFileName()
+
+        if (thumbnailUrl != null && !thumbnailName.isNullOrEmpty()) {
+          threadMedia += ThreadMedia(
+            fileName = thumbnailName,
+            url = thumbnailUrl,
+            isThumbnail = true,
+            postHash = postHash(postImage, thumbnailUrl),
+            checksum = checksum
+          )
+        }
+
+        val fullImageUrl = postImage.imageUrl
+        val fullImageName = fullImageUrl?.extractFileName()
+
+        if (fullImageUrl != null && !fullImageName.isNullOrEmpty()) {
+          threadMedia += ThreadMedia(
+            fileName = fullImageName,
+            url = fullImageUrl,
+            isThumbnail = false,
+            postHash = postHash(postImage, fullImageUrl),
+            checksum = checksum
+          )
+        }
+      }
+
+      return threadMedia
+    }
+
+    private fun postHash(postImage: ChanPostImage, url: HttpUrl): String {
+      val hash = MurmurHashUtils.murmurhash3_x64_128(
+        "${postImage.ownerPostDescriptor.serializeToString()}|${url}"
+      )
+
+      return "%016x%016x".format(hash.val1, hash.val2)
+    }
+  }
+}
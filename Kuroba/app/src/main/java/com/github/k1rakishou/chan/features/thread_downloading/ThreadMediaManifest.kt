@@ -0,0 +1,189 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+
+/**
+ * Remembers what was archived into the media directory of a downloaded thread so that the
+ * following runs of the thread downloader only download the media that is new or changed since
+ * the last run instead of checking every file of the directory one by one.
+ *
+ * Every file of the directory has an entry with the hash of the post (and url) it belongs to, the
+ * checksum of the media (MD5 sent by the site or the file size for sites that don't send hashes)
+ * and the status of the last download attempt.
+ *
+ * Persisted as "fileName<TAB>postHash<TAB>checksum<TAB>status" lines next to the media files. The
+ * manifest is always rewritten as a whole into a temporary file that then replaces the old one so
+ * a process death in the middle of a write leaves either the old or the new manifest but never a
+ * torn one.
+ * */
+class ThreadMediaManifest private constructor(
+  private val manifestFile: File,
+  loadedEntries: Map<String, Entry>,
+  val existed: Boolean
+) {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private val entries = LinkedHashMap(loadedEntries)
+  @GuardedBy("lock")
+  private var dirty = false
+
+  fun get(fileName: String): Entry? {
+    return synchronized(lock) { entries[fileName] }
+  }
+
+  fun size(): Int {
+    return synchronized(lock) { entries.size }
+  }
+
+  /**
+   * Returns the media of [threadMedia] that needs to be downloaded: not archived yet, failed to
+   * download last time or changed (the checksum or the post is different now).
+   * */
+  fun diff(threadMedia: List<ThreadMedia>): List<ThreadMedia> {
+    return synchronized(lock) {
+      return@synchronized threadMedia.filter { media ->
+        val entry = entries[media.fileName]
+          ?: return@filter true
+
+        if (entry.postHash != media.postHash || entry.checksum != media.checksum) {
+          return@filter true
+        }
+
+        return@filter entry.status == Status.Failed
+      }
+    }
+  }
+
+  fun update(media: ThreadMedia, status: Status) {
+    synchronized(lock) {
+      val entry = Entry(media.fileName, media.postHash, media.checksum, status)
+      if (entries.put(media.fileName, entry) != entry) {
+        dirty = true
+      }
+    }
+  }
+
+  /**
+   * Atomically replaces the persisted manifest with the current entries if anything changed since
+   * the last save. Returns false if the manifest couldn't be written, the old one (if any) is left
+   * intact in this case.
+   * */
+  fun save(): Boolean {
+    synchronized(lock) {
+      if (!dirty) {
+        return true
+      }
+
+      val tmpFile = File(manifestFile.parentFile, manifestFile.name + TMP_FILE_SUFFIX)
+
+      try {
+        tmpFile.bufferedWriter().use { writer ->
+          writer.write(HEADER)
+          writer.write("\n")
+
+          entries.values.forEach { entry ->
+            writer.write(entry.fileName)
+            writer.write("\t")
+            writer.write(entry.postHash)
+            writer.write("\t")
+            writer.write(entry.checksum)
+            writer.write("\t")
+            writer.write(entry.status.value)
+            writer.write("\n")
+          }
+        }
+
+        if (!tmpFile.renameTo(manifestFile)) {
+          throw IOException("Failed to rename '${tmpFile.absolutePath}' into '${manifestFile.absolutePath}'")
+        }
+
+        dirty = false
+        return true
+      } catch (error: IOException) {
+        Logger.e(TAG, "Failed to save manifest '${manifestFile.absolutePath}'", error)
+        tmpFile.delete()
+        return false
+      }
+    }
+  }
+
+  data class Entry(
+    val fileName: String,
+    val postHash: String,
+    val checksum: String,
+    val status: Status
+  )
+
+  enum class Status(val value: String) {
+    Downloaded("ok"),
+    // The server doesn't have the file anymore (404), not requested again unless the media changes
+    Gone("gone"),
+    // Requested again during the next run
+    Failed("failed");
+
+    companion object {
+      fun fromValueOrNull(value: String): Status? {
+        return values().firstOrNull { status -> status.value == value }
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "ThreadMediaManifest"
+    private const val HEADER = "#kuroba_thread_media_manifest_v1"
+    private const val TMP_FILE_SUFFIX = ".tmp"
+
+    const val MANIFEST_FILE_NAME = ".manifest"
+
+    fun isManifestFile(fileName: String): Boolean {
+      return fileName == MANIFEST_FILE_NAME || fileName == MANIFEST_FILE_NAME + TMP_FILE_SUFFIX
+    }
+
+    /**
+     * Loads the manifest of a thread media directory. An unreadable manifest (or one written by a
+     * different version) is treated as a missing one, lines that can't be parsed are skipped.
+     * */
+    fun load(manifestFile: File): ThreadMediaManifest {
+      if (!manifestFile.exists()) {
+        return ThreadMediaManifest(manifestFile, emptyMap(), existed = false)
+      }
+
+      val entries = linkedMapOf<String, Entry>()
+
+      try {
+        var headerChecked = false
+
+        manifestFile.forEachLine { line ->
+          if (!headerChecked) {
+            headerChecked = true
+
+            if (line != HEADER) {
+              throw IOException("Unsupported manifest header: '$line'")
+            }
+
+            return@forEachLine
+          }
+
+          val parts = line.split('\t')
+          if (parts.size != 4 || parts[0].isEmpty()) {
+            return@forEachLine
+          }
+
+          val status = Status.fromValueOrNull(parts[3])
+            ?: return@forEachLine
+
+          entries[parts[0]] = Entry(parts[0], parts[1], parts[2], status)
+        }
+      } catch (error: IOException) {
+        Logger.e(TAG, "Failed to load manifest '${manifestFile.absolutePath}'", error)
+        return ThreadMediaManifest(manifestFile, emptyMap(), existed = false)
+      }
+
+      return ThreadMediaManifest(manifestFile, entries, existed = true)
+    }
+  }
+}
@@ -37,6 +37,7 @@ import com.github.k1rakishou.chan.ui.cell.GenericPostCell
 import com.github.k1rakishou.chan.ui.cell.PostCell
 import com.github.k1rakishou.chan.ui.cell.PostCellData
 import com.github.k1rakishou.chan.ui.cell.PostCellInterface.PostCellCallback
+import com.github.k1rakishou.chan.ui.cell.PostCommentPrecomputer
 import com.github.k1rakishou.chan.ui.cell.PreviousThreadScrollPositionData
 import com.github.k1rakishou.chan.ui.cell.ThreadCellData
 import com.github.k1rakishou.chan.ui.cell.ThreadStatusCell
@@ -72,6 +73,8 @@ class PostAdapter(
   @Inject
   lateinit var chanThreadManager: Lazy<ChanThreadManager>
   @Inject
+  lateinit var postCommentPrecomputer: Lazy<PostCommentPrecomputer>
+  @Inject
   lateinit var themeEngine: ThemeEngine
   @Inject
   lateinit var postHighlightManager: PostHighlightManager
@@ -132,6 +135,7 @@ class PostAdapter(
       _postFilterHighlightManager = postFilterHighlightManager,
       _savedReplyManager = savedReplyManager,
       _postHideManager = postHideManager,
+      _postCommentPrecomputer = postCommentPrecomputer,
       initialTheme = themeEngine.chanTheme
     )
 
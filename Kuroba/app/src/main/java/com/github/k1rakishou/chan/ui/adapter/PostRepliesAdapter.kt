@@ -12,6 +12,7 @@ import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
 import com.github.k1rakishou.chan.ui.cell.PostCellData
 import com.github.k1rakishou.chan.ui.cell.PostCellInterface
+import com.github.k1rakishou.chan.ui.cell.PostCommentPrecomputer
 import com.github.k1rakishou.chan.ui.cell.ThreadCellData
 import com.github.k1rakishou.core_themes.ChanTheme
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -31,6 +32,7 @@ class PostRepliesAdapter(
   _savedReplyManager: Lazy<SavedReplyManager>,
   _postFilterHighlightManager: Lazy<PostFilterHighlightManager>,
   _postHideManager: Lazy<PostHideManager>,
+  _postCommentPrecomputer: Lazy<PostCommentPrecomputer>,
   initialTheme: ChanTheme
 ) : RecyclerView.Adapter<PostRepliesAdapter.ReplyViewHolder>() {
 
@@ -41,6 +43,7 @@ class PostRepliesAdapter(
     _savedReplyManager = _savedReplyManager,
     _postFilterHighlightManager = _postFilterHighlightManager,
     _postHideManager = _postHideManager,
+    _postCommentPrecomputer = _postCommentPrecomputer,
     initialTheme = initialTheme
   )
 
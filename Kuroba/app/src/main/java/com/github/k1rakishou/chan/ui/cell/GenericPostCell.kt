@@ -11,11 +11,10 @@ import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostImage
-import kotlin.time.ExperimentalTime
-import kotlin.time.measureTime
 
 class GenericPostCell(context: Context) : FrameLayout(context), PostCellInterface {
   private var layoutId: Int? = null
+  private var postShape = PostListTimings.PostShape.NONE
 
   private val gridModeMargins = context.resources.getDimension(R.dimen.grid_card_margin).toInt()
 
@@ -42,10 +41,9 @@ class GenericPostCell(context: Context) : FrameLayout(context), PostCellInterfac
     throw IllegalStateException("Shouldn't be called")
   }
 
-  @OptIn(ExperimentalTime::class)
   override fun setPost(postCellData: PostCellData) {
-    val time = measureTime { setPostCellInternal(postCellData) }
-    PostCellStatistics.onPostBound(getChildPostCell(), time)
+    postShape = PostListProfiler.postShapeOf(postCellData)
+    PostListProfiler.measure(PostListTimings.Phase.Bind, postShape) { setPostCellInternal(postCellData) }
   }
 
   private fun setPostCellInternal(postCellData: PostCellData) {
@@ -116,10 +114,16 @@ class GenericPostCell(context: Context) : FrameLayout(context), PostCellInterfac
     return getChildPostCell()?.getThumbnailView(postImage)
   }
 
-  @OptIn(ExperimentalTime::class)
   override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
-    val time = measureTime { super.onMeasure(widthMeasureSpec, heightMeasureSpec) }
-    PostCellStatistics.onPostMeasured(getChildPostCell(), time)
+    PostListProfiler.measure(PostListTimings.Phase.Measure, postShape) {
+      super.onMeasure(widthMeasureSpec, heightMeasureSpec)
+    }
+  }
+
+  override fun onLayout(changed: Boolean, left: Int, top: Int, right: Int, bottom: Int) {
+    PostListProfiler.measure(PostListTimings.Phase.Layout, postShape) {
+      super.onLayout(changed, left, top, right, bottom)
+    }
   }
 
   private fun getChildPostCell(): PostCellInterface? {
@@ -74,6 +74,7 @@ import com.github.k1rakishou.chan.utils.setBackgroundColorFast
 import com.github.k1rakishou.chan.utils.setOnThrottlingClickListener
 import com.github.k1rakishou.chan.utils.setOnThrottlingLongClickListener
 import com.github.k1rakishou.chan.utils.setVisibilityFast
+import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.buildSpannableString
 import com.github.k1rakishou.common.modifyCurrentAlpha
 import com.github.k1rakishou.common.selectionEndSafe
@@ -113,6 +114,8 @@ class PostCell @JvmOverloads constructor(
   lateinit var themeEngine: ThemeEngine
   @Inject
   lateinit var postHighlightManager: PostHighlightManager
+  @Inject
+  lateinit var postCommentPrecomputer: Lazy<PostCommentPrecomputer>
 
   private lateinit var postImageThumbnailViewsContainer: PostImageThumbnailViewsContainer
   private lateinit var title: AppCompatTextView
@@ -449,7 +452,7 @@ class PostCell @JvmOverloads constructor(
     icons.height = sp(textSizeSp.toFloat())
     icons.rtl(false)
 
-    comment.textSize = textSizeSp.toFloat()
+    PostCommentPrecomputer.setUpCommentTextView(comment, textSizeSp)
     replies.textSize = textSizeSp.toFloat()
 
     updatePostCellFileName(postCellData)
@@ -921,7 +924,7 @@ class PostCell @JvmOverloads constructor(
   @SuppressLint("ClickableViewAccessibility")
   private fun bindPostContent(postCellData: PostCellData) {
     val theme = postCellData.theme
-    comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+    bindCommentText(postCellData)
 
     if (postCellData.isSelectionMode) {
       comment.customSelectionActionModeCallback = null
@@ -967,6 +970,26 @@ class PostCell @JvmOverloads constructor(
     comment.setEditTextCursorColor(theme)
   }
 
+  private fun bindCommentText(postCellData: PostCellData) {
+    val precomputedCommentText = postCellData.precomputedCommentTextOrNull(postCommentPrecomputer.get())
+
+    // TextView throws when the text was precomputed with different text metrics
+    if (precomputedCommentText == null
+      || precomputedCommentText.params != TextViewCompat.getTextMetricsParams(comment)
+    ) {
+      comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+      return
+    }
+
+    if (AndroidUtils.isAndroidP()) {
+      TextViewCompat.setPrecomputedText(comment, precomputedCommentText)
+    } else {
+      // There is no PrecomputedText before P, the measurements were only put into the text layout
+      // cache which is enough
+      comment.setText(precomputedCommentText, TextView.BufferType.SPANNABLE)
+    }
+  }
+
   private fun setPostLinkableListener(postCellData: PostCellData, bind: Boolean) {
     val postComment = postCellData.fullPostComment
     if (postComment !is Spanned) {
@@ -5,6 +5,7 @@ import android.text.SpannableStringBuilder
 import android.text.TextUtils
 import android.text.format.DateUtils
 import android.text.style.UnderlineSpan
+import androidx.core.text.PrecomputedTextCompat
 import androidx.core.text.buildSpannedString
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
@@ -88,6 +89,7 @@ data class PostCellData(
   private var postFileInfoHashPrecalculated: MurmurHashUtils.Murmur3Hash? = null
   private var commentTextPrecalculated: CharSequence? = null
   private var repliesToThisPostTextPrecalculated: CharSequence? = null
+  @Volatile private var precomputedComment: PostCommentPrecomputer.PrecomputedComment? = null
 
   val iconSizePx = sp(textSizeSp - 2.toFloat())
 
@@ -210,6 +212,34 @@ data class PostCellData(
     }
   }
 
+  /**
+   * Precomputes the comment text layout so that [PostCell] doesn't have to measure the comment on
+   * the main thread. Must not be called on the main thread.
+   * */
+  fun precomputeCommentLayout(postCommentPrecomputer: PostCommentPrecomputer) {
+    val currentPrecomputedComment = precomputedComment
+    if (currentPrecomputedComment != null && postCommentPrecomputer.isUpToDate(currentPrecomputedComment)) {
+      return
+    }
+
+    precomputedComment = postCommentPrecomputer.precompute(commentText, textSizeSp)
+  }
+
+  /**
+   * The comment text precomputed by [precomputeCommentLayout] or null if it wasn't precomputed yet
+   * or it is stale.
+   * */
+  fun precomputedCommentTextOrNull(postCommentPrecomputer: PostCommentPrecomputer): PrecomputedTextCompat? {
+    val currentPrecomputedComment = precomputedComment
+      ?: return null
+
+    if (!postCommentPrecomputer.isUpToDate(currentPrecomputedComment)) {
+      return null
+    }
+
+    return currentPrecomputedComment.precomputedText
+  }
+
   fun resetEverything() {
     postTitlePrecalculated = null
     postTitleStubPrecalculated = null
@@ -218,6 +248,7 @@ data class PostCellData(
     postFileInfoHashPrecalculated = null
     commentTextPrecalculated = null
     repliesToThisPostTextPrecalculated = null
+    precomputedComment = null
 
     _detailsSizePx.resetValue()
     _postTitle.resetValue()
@@ -231,6 +262,7 @@ data class PostCellData(
 
   fun resetCommentTextCache() {
     commentTextPrecalculated = null
+    precomputedComment = null
     _commentText.resetValue()
   }
 
@@ -311,6 +343,7 @@ data class PostCellData(
       newPostCellData.postTitleStubPrecalculated = postTitleStubPrecalculated
       newPostCellData.commentTextPrecalculated = commentTextPrecalculated
       newPostCellData.repliesToThisPostTextPrecalculated = repliesToThisPostTextPrecalculated
+      newPostCellData.precomputedComment = precomputedComment
     }
   }
 
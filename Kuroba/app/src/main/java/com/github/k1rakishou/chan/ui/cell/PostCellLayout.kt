@@ -623,7 +623,8 @@ open class PostCellLayout @JvmOverloads constructor(
     }
 
     val resultTitleTextBounds = titleTextBounds.mergeWith(imageFileNameTextBounds)
-    val commentTextBounds = comment.getTextBounds(postCellData.commentText, (availableWidthIncludingThumbnail))
+    // The bound comment text may have been precomputed in which case it's not measured again here
+    val commentTextBounds = comment.getTextBounds(comment.text, (availableWidthIncludingThumbnail))
     val commentHeight = commentTextBounds.textHeight
 
     val multiplier = when (postCellData.postAlignmentMode) {
@@ -0,0 +1,136 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.content.res.Resources
+import android.graphics.Paint
+import android.graphics.Typeface
+import android.text.Layout
+import android.text.TextDirectionHeuristics
+import android.text.TextPaint
+import android.util.TypedValue
+import android.widget.TextView
+import androidx.annotation.GuardedBy
+import androidx.core.text.PrecomputedTextCompat
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.core_themes.ThemeEngine
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Measures post comments ahead of time (see [PrecomputedTextCompat]) so that [PostCell] doesn't
+ * have to measure every glyph of a long comment on the main thread in onMeasure when it's bound.
+ * Comments are precomputed on a background thread while [ThreadCellData] preloads the post cell
+ * data, line breaking for the actual width of the comment view is cheap after that.
+ *
+ * There is no layout cache keyed by post here. Precomputed comments are held by their
+ * [PostCellData] (together with the rest of its precalculated texts) and not shared between post
+ * cell data instances, a refreshed post gets a new comment with new spans (linkables) which can't
+ * be swapped into an already precomputed text. The only thing kept here is the text metrics per
+ * text size. [invalidate] (font size or theme changes) makes every precomputed comment stale.
+ * */
+class PostCommentPrecomputer(
+  private val resources: Resources,
+  private val precomputeFunc: (CharSequence, PrecomputedTextCompat.Params) -> PrecomputedTextCompat =
+    { text, params -> PrecomputedTextCompat.create(text, params) }
+) : ThemeEngine.ThemeChangesListener {
+  private val invalidationsCounter = AtomicLong(0)
+
+  @GuardedBy("this")
+  private val textMetricsParamsCache = mutableMapOf<Int, PrecomputedTextCompat.Params>()
+
+  override fun onThemeChanged() {
+    invalidate()
+  }
+
+  fun invalidate() {
+    synchronized(this) {
+      invalidationsCounter.incrementAndGet()
+      textMetricsParamsCache.clear()
+    }
+  }
+
+  /**
+   * Precomputes [commentText] with the text metrics of a comment view with [textSizeSp]. Returns
+   * null for comments that are too short for it to be worth it. Must not be called on the main
+   * thread.
+   * */
+  fun precompute(commentText: CharSequence, textSizeSp: Int): PrecomputedComment? {
+    if (commentText.length < MIN_PRECOMPUTED_COMMENT_LENGTH) {
+      return null
+    }
+
+    // Read before precomputing so that a comment precomputed during an invalidation is stale
+    val invalidations = invalidationsCounter.get()
+
+    return PrecomputedComment(
+      invalidations = invalidations,
+      precomputedText = precomputeFunc(commentText, textMetricsParams(textSizeSp))
+    )
+  }
+
+  fun isUpToDate(precomputedComment: PrecomputedComment): Boolean {
+    return precomputedComment.invalidations == invalidationsCounter.get()
+  }
+
+  /**
+   * The text metrics the comment view of a post cell uses, provided that it was set up with
+   * [setUpCommentTextView].
+   * */
+  fun textMetricsParams(textSizeSp: Int): PrecomputedTextCompat.Params {
+    synchronized(this) {
+      val cachedParams = textMetricsParamsCache[textSizeSp]
+      if (cachedParams != null) {
+        return cachedParams
+      }
+    }
+
+    // The same as what TextView.setTextSize() and the TextView constructor do
+    val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+    textPaint.density = resources.displayMetrics.density
+    textPaint.textSize = TypedValue.applyDimension(
+      TypedValue.COMPLEX_UNIT_SP,
+      textSizeSp.toFloat(),
+      resources.displayMetrics
+    )
+    textPaint.typeface = Typeface.DEFAULT
+
+    val paramsBuilder = PrecomputedTextCompat.Params.Builder(textPaint)
+      .setTextDirection(TextDirectionHeuristics.FIRSTSTRONG_LTR)
+
+    if (AndroidUtils.isAndroidM()) {
+      paramsBuilder
+        .setBreakStrategy(BREAK_STRATEGY)
+        .setHyphenationFrequency(HYPHENATION_FREQUENCY)
+    }
+
+    val params = paramsBuilder.build()
+    synchronized(this) { textMetricsParamsCache[textSizeSp] = params }
+
+    return params
+  }
+
+  class PrecomputedComment(
+    val invalidations: Long,
+    val precomputedText: PrecomputedTextCompat
+  )
+
+  companion object {
+    // Short comments are measured quickly enough on the main thread and there are a lot of them
+    const val MIN_PRECOMPUTED_COMMENT_LENGTH = 128
+
+    private const val BREAK_STRATEGY = Layout.BREAK_STRATEGY_HIGH_QUALITY
+    private const val HYPHENATION_FREQUENCY = Layout.HYPHENATION_FREQUENCY_NONE
+
+    /**
+     * Makes the text metrics of [textView] the same as the ones comments are precomputed with.
+     * */
+    @JvmStatic
+    fun setUpCommentTextView(textView: TextView, textSizeSp: Int) {
+      textView.textSize = textSizeSp.toFloat()
+      textView.typeface = Typeface.DEFAULT
+
+      if (AndroidUtils.isAndroidM()) {
+        textView.breakStrategy = BREAK_STRATEGY
+        textView.hyphenationFrequency = HYPHENATION_FREQUENCY
+      }
+    }
+  }
+}
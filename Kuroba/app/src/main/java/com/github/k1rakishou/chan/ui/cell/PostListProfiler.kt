@@ -0,0 +1,80 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.view.Choreographer
+import com.github.k1rakishou.chan.ui.cell.PostListTimings.Phase
+import com.github.k1rakishou.chan.utils.BackgroundUtils
+
+/**
+ * Always-on profiler of the post lists (catalog/thread). Every phase of displaying a post is timed
+ * into [PostListTimings], which is cheap enough to be left enabled in release builds. Frame times
+ * are sampled with [Choreographer] frame callbacks but only while a post list is being scrolled so
+ * that idle frames don't dilute the histogram (and nothing is scheduled when the list is idle).
+ *
+ * The report can be exported from the developer settings.
+ * */
+object PostListProfiler {
+  val timings = PostListTimings()
+
+  private var frameSamplingRequests = 0
+  private var lastFrameTimeNanos = 0L
+
+  private val frameCallback = object : Choreographer.FrameCallback {
+    override fun doFrame(frameTimeNanos: Long) {
+      if (frameSamplingRequests <= 0) {
+        lastFrameTimeNanos = 0L
+        return
+      }
+
+      if (lastFrameTimeNanos != 0L) {
+        timings.record(Phase.Frame, PostListTimings.PostShape.NONE, frameTimeNanos - lastFrameTimeNanos)
+      }
+
+      lastFrameTimeNanos = frameTimeNanos
+      Choreographer.getInstance().postFrameCallback(this)
+    }
+  }
+
+  inline fun <T> measure(phase: Phase, postShape: Int, func: () -> T): T {
+    val start = System.nanoTime()
+
+    try {
+      return func()
+    } finally {
+      timings.record(phase, postShape, System.nanoTime() - start)
+    }
+  }
+
+  /**
+   * Must be balanced with [stopFrameSampling], several lists may be scrolled at the same time (e.g.
+   * split layout).
+   * */
+  fun startFrameSampling() {
+    BackgroundUtils.ensureMainThread()
+
+    if (frameSamplingRequests++ == 0) {
+      lastFrameTimeNanos = 0L
+      Choreographer.getInstance().postFrameCallback(frameCallback)
+    }
+  }
+
+  fun stopFrameSampling() {
+    BackgroundUtils.ensureMainThread()
+
+    if (frameSamplingRequests <= 0) {
+      return
+    }
+
+    if (--frameSamplingRequests == 0) {
+      Choreographer.getInstance().removeFrameCallback(frameCallback)
+      lastFrameTimeNanos = 0L
+    }
+  }
+
+  fun report(): String = timings.report()
+
+  fun reset() = timings.reset()
+
+  fun postShapeOf(postCellData: PostCellData): Int {
+    return PostListTimings.PostShape.of(postCellData.imagesCount, postCellData.fullPostComment.length)
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import com.github.k1rakishou.common.LogLinearHistogram
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Latency histograms of the work the post lists do for every post (see [Phase]), separately for
+ * every post shape (amount of images and comment length, see [PostShape]) since a post with a
+ * couple of images and a long comment is expected to be slower than a text only one-liner.
+ *
+ * Histograms are created on the first recorded value and never removed (until [reset]) so
+ * recording doesn't allocate or lock. Durations are stored in microseconds.
+ * */
+class PostListTimings(
+  private val nanoTimeFunc: () -> Long = { System.nanoTime() }
+) {
+  private val histograms = AtomicReferenceArray<LogLinearHistogram>(Phase.values().size * PostShape.SHAPES_COUNT)
+
+  @Volatile
+  private var startedAtNanos = nanoTimeFunc()
+
+  fun record(phase: Phase, postShape: Int, durationNanos: Long) {
+    val shape = if (phase.perPostShape) postShape else PostShape.NONE
+    histogramFor(phase, shape).record(TimeUnit.NANOSECONDS.toMicros(durationNanos))
+  }
+
+  /**
+   * Timings of [phase] of all the post shapes combined.
+   * */
+  fun snapshot(phase: Phase): LogLinearHistogram.Snapshot? {
+    return (0 until PostShape.SHAPES_COUNT)
+      .mapNotNull { postShape -> snapshot(phase, postShape) }
+      .reduceOrNull { acc, snapshot -> acc + snapshot }
+  }
+
+  fun snapshot(phase: Phase, postShape: Int): LogLinearHistogram.Snapshot? {
+    return histograms.get(index(phase, postShape))
+      ?.snapshot()
+      ?.takeIf { snapshot -> snapshot.totalCount > 0 }
+  }
+
+  fun reset() {
+    for (index in 0 until histograms.length()) {
+      histograms.get(index)?.reset()
+    }
+
+    startedAtNanos = nanoTimeFunc()
+  }
+
+  /**
+   * A compact plain text report: every phase and then the slowest post shapes of the phase.
+   * */
+  fun report(maxShapesPerPhase: Int = 4): String {
+    val collectingForSeconds = TimeUnit.NANOSECONDS.toSeconds(nanoTimeFunc() - startedAtNanos)
+
+    return buildString {
+      appendLine("PostListTimings (us), collecting for ${collectingForSeconds}s")
+      appendLine("phase/shape count p50 p90 p99 max >${SLOW_THRESHOLD_MICROS / 1000}ms")
+
+      Phase.values().forEach { phase ->
+        val phaseSnapshot = snapshot(phase)
+          ?: return@forEach
+
+        appendSnapshotLine(phase.name, phaseSnapshot)
+
+        if (!phase.perPostShape) {
+          return@forEach
+        }
+
+        (0 until PostShape.SHAPES_COUNT)
+          .mapNotNull { postShape -> snapshot(phase, postShape)?.let { snapshot -> postShape to snapshot } }
+          .sortedByDescending { (_, snapshot) -> snapshot.valueAtPercentile(0.9) }
+          .take(maxShapesPerPhase)
+          .forEach { (postShape, snapshot) -> appendSnapshotLine("  ${PostShape.format(postShape)}", snapshot) }
+      }
+    }
+  }
+
+  private fun StringBuilder.appendSnapshotLine(name: String, snapshot: LogLinearHistogram.Snapshot) {
+    append(name)
+    append(' ')
+    append(snapshot.totalCount)
+    append(' ')
+    append(snapshot.valueAtPercentile(0.5))
+    append(' ')
+    append(snapshot.valueAtPercentile(0.9))
+    append(' ')
+    append(snapshot.valueAtPercentile(0.99))
+    append(' ')
+    append(snapshot.maxValue)
+    append(' ')
+    append(snapshot.countAbove(SLOW_THRESHOLD_MICROS))
+    appendLine()
+  }
+
+  private fun histogramFor(phase: Phase, postShape: Int): LogLinearHistogram {
+    val index = index(phase, postShape)
+
+    val histogram = histograms.get(index)
+    if (histogram != null) {
+      return histogram
+    }
+
+    histograms.compareAndSet(index, null, LogLinearHistogram())
+    return histograms.get(index)
+  }
+
+  private fun index(phase: Phase, postShape: Int): Int {
+    return phase.ordinal * PostShape.SHAPES_COUNT + postShape.coerceIn(0, PostShape.SHAPES_COUNT - 1)
+  }
+
+  enum class Phase(val perPostShape: Boolean) {
+    // PostCellData calculations done on a background thread before the post is displayed
+    Preload(perPostShape = true),
+    Bind(perPostShape = true),
+    Measure(perPostShape = true),
+    Layout(perPostShape = true),
+    // The whole Coil request of a thumbnail (reading it from the disk cache or the network and decoding it)
+    ThumbnailLoad(perPostShape = false),
+    // Time between two frames while a post list is being scrolled
+    Frame(perPostShape = false)
+  }
+
+  /**
+   * Post shapes are encoded as ints so that they can be passed around without allocations.
+   * */
+  object PostShape {
+    private val IMAGES_COUNT_BUCKETS = arrayOf("0img", "1img", "2+img")
+    private val COMMENT_LENGTH_BOUNDS = intArrayOf(300, 1000, 3000)
+    private val COMMENT_LENGTH_BUCKETS = arrayOf("<300", "<1000", "<3000", "3000+")
+
+    private val POST_SHAPES_COUNT = IMAGES_COUNT_BUCKETS.size * COMMENT_LENGTH_BUCKETS.size
+
+    // For the phases that don't depend on the post
+    val NONE = POST_SHAPES_COUNT
+    val SHAPES_COUNT = POST_SHAPES_COUNT + 1
+
+    fun of(imagesCount: Int, commentLength: Int): Int {
+      val imagesBucket = imagesCount.coerceIn(0, IMAGES_COUNT_BUCKETS.size - 1)
+
+      var commentBucket = COMMENT_LENGTH_BOUNDS.size
+      for (index in COMMENT_LENGTH_BOUNDS.indices) {
+        if (commentLength < COMMENT_LENGTH_BOUNDS[index]) {
+          commentBucket = index
+          break
+        }
+      }
+
+      return imagesBucket * COMMENT_LENGTH_BUCKETS.size + commentBucket
+    }
+
+    fun format(postShape: Int): String {
+      if (postShape !in 0 until POST_SHAPES_COUNT) {
+        return "any"
+      }
+
+      val imagesBucket = postShape / COMMENT_LENGTH_BUCKETS.size
+      val commentBucket = postShape % COMMENT_LENGTH_BUCKETS.size
+
+      return "${IMAGES_COUNT_BUCKETS[imagesBucket]},cmt${COMMENT_LENGTH_BUCKETS[commentBucket]}"
+    }
+  }
+
+  companion object {
+    // A frame at 60Hz
+    private const val SLOW_THRESHOLD_MICROS = 16_000L
+  }
+}
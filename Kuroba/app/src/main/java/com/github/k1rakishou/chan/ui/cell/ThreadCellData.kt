@@ -39,6 +39,7 @@ class ThreadCellData(
   private val _postFilterHighlightManager: Lazy<PostFilterHighlightManager>,
   private val _savedReplyManager: Lazy<SavedReplyManager>,
   private val _postHideManager: Lazy<PostHideManager>,
+  private val _postCommentPrecomputer: Lazy<PostCommentPrecomputer>,
   initialTheme: ChanTheme
 ): Iterable<ThreadCellData.PostCellDataLazy> {
   private val postCellDataLazyList: MutableList<PostCellDataLazy> = mutableListWithCap(64)
@@ -56,6 +57,8 @@ class ThreadCellData(
     get() = _savedReplyManager.get()
   private val postHideManager: PostHideManager
     get() = _postHideManager.get()
+  private val postCommentPrecomputer: PostCommentPrecomputer
+    get() = _postCommentPrecomputer.get()
 
   @Volatile private var _chanDescriptor: ChanDescriptor? = null
   @Volatile private var postCellCallback: PostCellInterface.PostCellCallback? = null
@@ -120,7 +123,10 @@ class ThreadCellData(
         )
 
         // precalculate right away
-        updatedPostCellData.forEach { postCellDataLazy -> postCellDataLazy.getOrCalculate(isPrecalculating = true) }
+        updatedPostCellData.forEach { postCellDataLazy ->
+          postCellDataLazy.getOrCalculate(isPrecalculating = true)
+            .precomputeCommentLayout(postCommentPrecomputer)
+        }
 
         return@withContext updatedPostCellData
       }
@@ -230,6 +236,7 @@ class ThreadCellData(
       .forEach { (_, newPostCellDataLazy) ->
         ensureActive()
         newPostCellDataLazy.getOrCalculate(isPrecalculating = true)
+          .precomputeCommentLayout(postCommentPrecomputer)
       }
   }
 
@@ -349,7 +356,9 @@ class ThreadCellData(
         )
 
         postCellData.postCellCallback = postCellCallback
-        postCellData.preload()
+        PostListProfiler.measure(PostListTimings.Phase.Preload, PostListProfiler.postShapeOf(postCellData)) {
+          postCellData.preload()
+        }
 
         return@lazy postCellData
       }
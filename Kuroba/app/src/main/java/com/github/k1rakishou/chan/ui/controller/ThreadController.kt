@@ -29,6 +29,7 @@ import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibility
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityListener
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
+import com.github.k1rakishou.chan.core.manager.ArchiveThreadResolver
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadViewableInfoManager
@@ -102,6 +103,8 @@ abstract class ThreadController(
   @Inject
   lateinit var archivesManagerLazy: Lazy<ArchivesManager>
   @Inject
+  lateinit var archiveThreadResolverLazy: Lazy<ArchiveThreadResolver>
+  @Inject
   lateinit var globalWindowInsetsManagerLazy: Lazy<GlobalWindowInsetsManager>
   @Inject
   lateinit var chanThreadViewableInfoManagerLazy: Lazy<ChanThreadViewableInfoManager>
@@ -126,6 +129,8 @@ abstract class ThreadController(
     get() = chanThreadViewableInfoManagerLazy.get()
   protected val archivesManager: ArchivesManager
     get() = archivesManagerLazy.get()
+  protected val archiveThreadResolver: ArchiveThreadResolver
+    get() = archiveThreadResolverLazy.get()
   protected val dialogFactory: DialogFactory
     get() = dialogFactoryLazy.get()
   protected val chanThreadManager: ChanThreadManager
@@ -572,6 +577,7 @@ abstract class ThreadController(
         return@filter siteManager.bySiteDescriptor(archiveDescriptor.siteDescriptor)?.enabled()
           ?: false
       }
+      .let { archiveDescriptors -> archiveThreadResolver.sortByPreference(descriptor, archiveDescriptors) }
 
     if (supportedArchiveDescriptors.isEmpty()) {
       Logger.d(TAG, "showAvailableArchives($descriptor) supportedThreadDescriptors is empty")
@@ -589,6 +595,59 @@ abstract class ThreadController(
       return
     }
 
+    if (canAutoSelectArchive) {
+      resolveArchiveAndOpen(descriptor, supportedArchiveDescriptors, postDescriptor, preview)
+      return
+    }
+
+    showArchivesList(descriptor, supportedArchiveDescriptors, postDescriptor, preview)
+  }
+
+  private fun resolveArchiveAndOpen(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    supportedArchiveDescriptors: List<ArchiveDescriptor>,
+    postDescriptor: PostDescriptor,
+    preview: Boolean
+  ) {
+    val loadingController = LoadingViewController(
+      context,
+      true,
+      "Looking for '${threadDescriptor.userReadableString()}' in the archives"
+    )
+
+    val job = mainScope.launch {
+      val archiveDescriptor = try {
+        archiveThreadResolver.resolve(threadDescriptor, supportedArchiveDescriptors)
+      } finally {
+        loadingController.stopPresenting()
+      }
+
+      if (archiveDescriptor != null) {
+        onArchiveSelected(archiveDescriptor, postDescriptor, preview)
+        return@launch
+      }
+
+      // The thread may still be in one of the archives that couldn't be asked, let the user decide
+      Logger.d(TAG, "resolveArchiveAndOpen($threadDescriptor) not found in any archive")
+
+      showArchivesList(
+        descriptor = threadDescriptor,
+        supportedArchiveDescriptors = archiveThreadResolver.sortByPreference(threadDescriptor, supportedArchiveDescriptors),
+        postDescriptor = postDescriptor,
+        preview = preview
+      )
+    }
+
+    loadingController.enableCancellation { job.cancel() }
+    presentController(loadingController)
+  }
+
+  private fun showArchivesList(
+    descriptor: ChanDescriptor.ThreadDescriptor,
+    supportedArchiveDescriptors: List<ArchiveDescriptor>,
+    postDescriptor: PostDescriptor,
+    preview: Boolean
+  ) {
     val items = mutableListOf<FloatingListMenuItem>()
 
     supportedArchiveDescriptors.forEach { archiveDescriptor ->
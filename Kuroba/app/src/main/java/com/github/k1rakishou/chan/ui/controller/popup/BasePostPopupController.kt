@@ -35,6 +35,7 @@ import com.github.k1rakishou.chan.ui.adapter.PostAdapter
 import com.github.k1rakishou.chan.ui.adapter.PostRepliesAdapter
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
 import com.github.k1rakishou.chan.ui.cell.PostCellInterface
+import com.github.k1rakishou.chan.ui.cell.PostCommentPrecomputer
 import com.github.k1rakishou.chan.ui.controller.BaseFloatingController
 import com.github.k1rakishou.chan.ui.helper.PostPopupHelper
 import com.github.k1rakishou.chan.ui.theme.widget.ColorizableRecyclerView
@@ -69,6 +70,8 @@ abstract class BasePostPopupController<T : PostPopupHelper.PostPopupData>(
   @Inject
   lateinit var postHideManager: Lazy<PostHideManager>
   @Inject
+  lateinit var postCommentPrecomputer: Lazy<PostCommentPrecomputer>
+  @Inject
   lateinit var postHideHelper: Lazy<PostHideHelper>
   @Inject
   lateinit var chanThreadManager: Lazy<ChanThreadManager>
@@ -134,6 +134,7 @@ class PostRepliesPopupController(
       _savedReplyManager = savedReplyManager,
       _postFilterHighlightManager = postFilterHighlightManager,
       _postHideManager = postHideManager,
+      _postCommentPrecomputer = postCommentPrecomputer,
       initialTheme = themeEngine.chanTheme
     )
 
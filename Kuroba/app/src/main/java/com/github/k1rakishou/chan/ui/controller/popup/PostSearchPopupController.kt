@@ -183,6 +183,7 @@ class PostSearchPopupController(
       _savedReplyManager = savedReplyManager,
       _postFilterHighlightManager = postFilterHighlightManager,
       _postHideManager = postHideManager,
+      _postCommentPrecomputer = postCommentPrecomputer,
       initialTheme = themeEngine.chanTheme
     )
 
@@ -55,6 +55,7 @@ import com.github.k1rakishou.chan.ui.adapter.PostsFilter
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
 import com.github.k1rakishou.chan.ui.cell.PostCellData
 import com.github.k1rakishou.chan.ui.cell.PostCellInterface.PostCellCallback
+import com.github.k1rakishou.chan.ui.cell.PostListProfiler
 import com.github.k1rakishou.chan.ui.cell.PreviousThreadScrollPositionData
 import com.github.k1rakishou.chan.ui.cell.ThreadStatusCell
 import com.github.k1rakishou.chan.ui.controller.BaseFloatingController
@@ -237,12 +238,16 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?) : FrameLayout(con
 
   private val scrollListener: RecyclerView.OnScrollListener = object : RecyclerView.OnScrollListener() {
     override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+      setFrameSampling(newState != RecyclerView.SCROLL_STATE_IDLE)
+
       if (newState == RecyclerView.SCROLL_STATE_IDLE) {
         onRecyclerViewScrolled()
       }
     }
   }
 
+  private var isSamplingFrames = false
+
   val replyLayoutViewCallbacks: ThreadListLayout.ReplyLayoutViewCallbacks
     get() = replyLayoutView
 
@@ -397,6 +402,8 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?) : FrameLayout(con
   }
 
   override fun onDragStarted() {
+    setFrameSampling(true)
+
     if (!canToolbarCollapse() || replyLayoutView.isOpened()) {
       return
     }
@@ -408,10 +415,25 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?) : FrameLayout(con
     toolbar.collapseHide(true)
   }
 
+  private fun setFrameSampling(sample: Boolean) {
+    if (isSamplingFrames == sample) {
+      return
+    }
+
+    isSamplingFrames = sample
+
+    if (sample) {
+      PostListProfiler.startFrameSampling()
+    } else {
+      PostListProfiler.stopFrameSampling()
+    }
+  }
+
   override fun onDragEnded() {
     // Fast scroller does not trigger RecyclerView's onScrollStateChanged() so we need to call it
     //  manually after we are down scrolling via Fast scroller.
     onRecyclerViewScrolled()
+    setFrameSampling(false)
 
     if (!canToolbarCollapse() || replyLayoutView.isOpened()) {
       return
@@ -558,6 +580,7 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?) : FrameLayout(con
     job.cancelChildren()
 
     recyclerView.removeOnScrollListener(scrollListener)
+    setFrameSampling(false)
     threadListLayoutCallback?.toolbar?.removeToolbarHeightUpdatesCallback(this)
     runBlocking { setFastScroll(false, emptyList()) }
 
@@ -41,6 +41,7 @@ import com.github.k1rakishou.chan.core.base.Debouncer
 import com.github.k1rakishou.chan.core.base.KurobaCoroutineScope
 import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.image.ImageLoadPriority
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2
 import com.github.k1rakishou.chan.core.manager.GlobalWindowInsetsManager
 import com.github.k1rakishou.chan.ui.globalstate.GlobalUiStateHolder
@@ -114,12 +115,16 @@ open class ThumbnailView : AppCompatImageView, ThemeEngine.ThemeChangesListener
     super.onAttachedToWindow()
 
     themeEngine.addListener(this)
+    requestDisposable?.changePriority(ImageLoadPriority.Visible)
   }
 
   override fun onDetachedFromWindow() {
     super.onDetachedFromWindow()
 
     themeEngine.removeListener(this)
+    // The view may be scrolled back soon so the request is not canceled, it is canceled when the
+    // view is unbound.
+    requestDisposable?.changePriority(ImageLoadPriority.Background)
   }
 
   override fun onThemeChanged() {
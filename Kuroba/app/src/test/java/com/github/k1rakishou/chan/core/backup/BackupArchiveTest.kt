@@ -0,0 +1,240 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.google.gson.Gson
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class BackupArchiveTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val gson = Gson()
+
+  @Test
+  fun `synthetic backup survives the round trip`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val entries = createSyntheticBackup(sourceDir)
+    val backupFile = File(temporaryFolder.root, "backup.zip")
+
+    val manifest = writeBackup(entries, backupFile)
+    assertEquals(entries.map { entry -> entry.name }, manifest.entries.map { entry -> entry.name })
+
+    // Readable by any zip implementation, media is stored as is and everything else is deflated
+    ZipFile(backupFile).use { zipFile ->
+      assertEquals(BackupManifest.MANIFEST_ENTRY_NAME, zipFile.entries().nextElement().name)
+
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("thread_downloads_cache_dir/1/image.jpg").method)
+      assertEquals(ZipEntry.STORED, zipFile.getEntry("thread_downloads_cache_dir/1/video.webm").method)
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("Kuroba.db").method)
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("main_prefs.xml").method)
+    }
+
+    val restoreDir = temporaryFolder.newFolder("restore")
+    File(restoreDir, "main_prefs.xml").writeText("old prefs")
+
+    val reader = BackupArchiveReader(gson, temporaryFolder.newFolder("import_temp"))
+    val stagedBackup = backupFile.inputStream().use { inputStream ->
+      reader.stage(inputStream) { name -> File(restoreDir, name) }
+    }
+
+    // Nothing is touched until the whole backup is verified
+    assertEquals("old prefs", File(restoreDir, "main_prefs.xml").readText())
+
+    reader.restore(stagedBackup)
+
+    entries.forEach { entry ->
+      assertArrayEquals(entry.name, entry.file.readBytes(), File(restoreDir, entry.name).readBytes())
+    }
+
+    assertFalse(stagedBackup.workDir.exists())
+  }
+
+  @Test
+  fun `corrupted backup is rejected without touching existing files`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val entries = createSyntheticBackup(sourceDir)
+    val backupFile = File(temporaryFolder.root, "backup.zip")
+    writeBackup(entries, backupFile)
+
+    // Flip a byte inside of the last stored media entry (not covered by the zip headers we parse)
+    val bytes = backupFile.readBytes()
+    val mediaContent = File(sourceDir, "thread_downloads_cache_dir/1/video.webm").readBytes()
+    val mediaOffset = indexOf(bytes, mediaContent.copyOfRange(0, 64))
+    assertTrue(mediaOffset > 0)
+    bytes[mediaOffset + 100] = (bytes[mediaOffset + 100] + 1).toByte()
+
+    val corruptedFile = File(temporaryFolder.root, "corrupted.zip")
+    corruptedFile.writeBytes(bytes)
+
+    assertRejected(corruptedFile)
+  }
+
+  @Test
+  fun `truncated backup is rejected without touching existing files`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val entries = createSyntheticBackup(sourceDir)
+    val backupFile = File(temporaryFolder.root, "backup.zip")
+    writeBackup(entries, backupFile)
+
+    // Cut right before the last entry
+    val bytes = backupFile.readBytes()
+    val lastEntryName = entries.last().name.toByteArray()
+    val lastEntryOffset = indexOf(bytes, lastEntryName) - 30
+
+    val truncatedFile = File(temporaryFolder.root, "truncated.zip")
+    truncatedFile.writeBytes(bytes.copyOfRange(0, lastEntryOffset))
+
+    assertRejected(truncatedFile)
+  }
+
+  @Test
+  fun `backups made by older versions without a manifest are still imported`() {
+    val backupFile = File(temporaryFolder.root, "old_backup.zip")
+
+    ZipOutputStream(backupFile.outputStream()).use { zipOutputStream ->
+      zipOutputStream.putNextEntry(ZipEntry("Kuroba.db"))
+      zipOutputStream.write("database".toByteArray())
+      zipOutputStream.closeEntry()
+
+      zipOutputStream.putNextEntry(ZipEntry("thread_downloads_cache_dir/1/image.jpg"))
+      zipOutputStream.write("image".toByteArray())
+      zipOutputStream.closeEntry()
+    }
+
+    val restoreDir = temporaryFolder.newFolder("restore")
+    val reader = BackupArchiveReader(gson, temporaryFolder.newFolder("import_temp"))
+
+    val stagedBackup = backupFile.inputStream().use { inputStream ->
+      reader.stage(inputStream) { name -> File(restoreDir, name) }
+    }
+    reader.restore(stagedBackup)
+
+    assertEquals("database", File(restoreDir, "Kuroba.db").readText())
+    assertEquals("image", File(restoreDir, "thread_downloads_cache_dir/1/image.jpg").readText())
+  }
+
+  @Test
+  fun `failed restore puts the replaced files back`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val entries = listOf(
+      BackupArchiveWriter.Entry("a.xml", File(sourceDir, "a.xml").apply { writeText("new a") }),
+      BackupArchiveWriter.Entry("b/b.xml", File(sourceDir, "b.xml").apply { writeText("new b") })
+    )
+    val backupFile = File(temporaryFolder.root, "backup.zip")
+    writeBackup(entries, backupFile)
+
+    val restoreDir = temporaryFolder.newFolder("restore")
+    File(restoreDir, "a.xml").writeText("old a")
+    // A file can't be created inside of another file
+    File(restoreDir, "b").writeText("not a directory")
+
+    val reader = BackupArchiveReader(gson, temporaryFolder.newFolder("import_temp"))
+    val stagedBackup = backupFile.inputStream().use { inputStream ->
+      reader.stage(inputStream) { name -> File(restoreDir, name) }
+    }
+
+    try {
+      reader.restore(stagedBackup)
+      fail("Restore must fail")
+    } catch (expected: IOException) {
+    }
+
+    assertEquals("old a", File(restoreDir, "a.xml").readText())
+    assertEquals("not a directory", File(restoreDir, "b").readText())
+  }
+
+  @Test
+  fun `already compressed media is detected by the extension`() {
+    assertTrue(BackupArchiveWriter.isAlreadyCompressed("thread_downloads_cache_dir/1/IMAGE.JPG"))
+    assertTrue(BackupArchiveWriter.isAlreadyCompressed("video.webm"))
+    assertFalse(BackupArchiveWriter.isAlreadyCompressed("Kuroba.db"))
+    assertFalse(BackupArchiveWriter.isAlreadyCompressed("Kuroba.db-wal"))
+    assertFalse(BackupArchiveWriter.isAlreadyCompressed("thread_downloads_cache_dir/1.jpg/posts"))
+  }
+
+  private fun assertRejected(backupFile: File) {
+    val restoreDir = temporaryFolder.newFolder("restore")
+    File(restoreDir, "main_prefs.xml").writeText("old prefs")
+
+    val importTempDir = temporaryFolder.newFolder("import_temp")
+    val reader = BackupArchiveReader(gson, importTempDir)
+
+    try {
+      backupFile.inputStream().use { inputStream ->
+        reader.stage(inputStream) { name -> File(restoreDir, name) }
+      }
+
+      fail("Backup must be rejected")
+    } catch (expected: IOException) {
+    }
+
+    assertEquals(listOf("main_prefs.xml"), restoreDir.list()!!.toList())
+    assertEquals("old prefs", File(restoreDir, "main_prefs.xml").readText())
+    assertTrue(importTempDir.list()!!.isEmpty())
+  }
+
+  private fun writeBackup(entries: List<BackupArchiveWriter.Entry>, backupFile: File): BackupManifest {
+    val exportTempDir = temporaryFolder.newFolder()
+    val writer = BackupArchiveWriter(gson, exportTempDir, parallelism = 4)
+
+    val manifest = runBlocking {
+      backupFile.outputStream().use { outputStream -> writer.write(entries, outputStream) }
+    }
+
+    assertTrue(exportTempDir.list()!!.isEmpty())
+    return manifest
+  }
+
+  private fun createSyntheticBackup(sourceDir: File): List<BackupArchiveWriter.Entry> {
+    val random = Random(42)
+
+    val files = mapOf(
+      "Kuroba.db" to ByteArray(256 * 1024) { index -> (index % 64).toByte() },
+      "Kuroba.db-wal" to ByteArray(0),
+      "main_prefs.xml" to "<map><string name=\"key\">value</string></map>".repeat(100).toByteArray(),
+      "kurobaex_theme_dark.json" to "{\"name\": \"dark\"}".toByteArray(),
+      "thread_downloads_cache_dir/1/image.jpg" to random.nextBytes(64 * 1024),
+      "thread_downloads_cache_dir/1/random.bin" to random.nextBytes(16 * 1024),
+      "thread_downloads_cache_dir/1/video.webm" to random.nextBytes(512 * 1024)
+    )
+
+    return files.map { (name, content) ->
+      val file = File(sourceDir, name)
+      file.parentFile!!.mkdirs()
+      file.writeBytes(content)
+
+      BackupArchiveWriter.Entry(name, file)
+    }
+  }
+
+  private fun indexOf(bytes: ByteArray, pattern: ByteArray): Int {
+    outer@ for (index in 0..bytes.size - pattern.size) {
+      for (patternIndex in pattern.indices) {
+        if (bytes[index + patternIndex] != pattern[patternIndex]) {
+          continue@outer
+        }
+      }
+
+      return index
+    }
+
+    return -1
+  }
+}
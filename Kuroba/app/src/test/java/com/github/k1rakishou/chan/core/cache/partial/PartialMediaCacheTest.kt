@@ -0,0 +1,207 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+import android.net.Uri
+import com.github.k1rakishou.chan.features.media_viewer.helper.PartialMediaCacheDataSource
+import com.google.android.exoplayer2.C
+import com.google.android.exoplayer2.upstream.DataSpec
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSource
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class PartialMediaCacheTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val fileBytes = Random(1337).nextBytes(FILE_SIZE)
+  // Start offsets of every request that reached the server (0 for non-range requests)
+  private val requestedRangeStarts = CopyOnWriteArrayList<Long>()
+
+  private lateinit var server: MockWebServer
+  private lateinit var storage: TestMediaCacheStorage
+  private lateinit var partialMediaCache: PartialMediaCache
+  private lateinit var rangeFetcher: RangeFetcher
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.dispatcher = RangeDispatcher()
+    server.start()
+
+    storage = TestMediaCacheStorage(temporaryFolder.newFolder("cache"))
+    partialMediaCache = PartialMediaCache(storage)
+    rangeFetcher = OkHttpRangeFetcher(OkHttpClient())
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `file is fetched from the network once for player, chunked downloader and image saver`() {
+    val url = server.url("/test.webm").toString()
+
+    // 1. The player streams the first half of the video
+    val dataSource = createDataSource()
+    dataSource.open(DataSpec(Uri.parse(url)))
+    val streamed = readExactly(dataSource, FILE_SIZE / 2)
+    dataSource.close()
+
+    assertArrayEquals(fileBytes.copyOfRange(0, FILE_SIZE / 2), streamed)
+    assertNull(storage.getCompletedFileOrNull(url))
+    assertEquals(true, partialMediaCache.hasPartialData(url))
+
+    // 2. The chunked downloader (or prefetcher) downloads only the missing part
+    val downloadedFile = partialMediaCache.downloadMissingRanges(url, rangeFetcher)
+    assertArrayEquals(fileBytes, downloadedFile.readBytes())
+    assertNotNull(storage.getCompletedFileOrNull(url))
+
+    // 3. The image saver and the player re-opening the file use the committed file
+    val savedFile = partialMediaCache.downloadMissingRanges(url, rangeFetcher)
+    assertArrayEquals(fileBytes, savedFile.readBytes())
+
+    val secondDataSource = createDataSource()
+    val length = secondDataSource.open(DataSpec(Uri.parse(url)))
+    assertEquals(FILE_SIZE.toLong(), length)
+    assertArrayEquals(fileBytes, readExactly(secondDataSource, FILE_SIZE))
+    secondDataSource.close()
+
+    // One request by the player and one for the missing second half, nothing else
+    assertEquals(listOf(0L, FILE_SIZE / 2L), requestedRangeStarts)
+    assertEquals(1, storage.commitsCount.get())
+  }
+
+  @Test
+  fun `player streaming the whole file commits it into the storage`() {
+    val url = server.url("/test2.webm").toString()
+
+    val dataSource = createDataSource()
+    dataSource.open(DataSpec(Uri.parse(url)))
+    assertArrayEquals(fileBytes, readExactly(dataSource, FILE_SIZE))
+    dataSource.close()
+
+    val completedFile = storage.getCompletedFileOrNull(url)
+    assertNotNull(completedFile)
+    assertArrayEquals(fileBytes, completedFile!!.readBytes())
+
+    partialMediaCache.downloadMissingRanges(url, rangeFetcher)
+    assertEquals(listOf(0L), requestedRangeStarts)
+  }
+
+  @Test
+  fun `seeking player only downloads missing ranges`() {
+    val url = server.url("/test3.webm").toString()
+
+    val dataSource = createDataSource()
+    dataSource.open(DataSpec(Uri.parse(url)))
+    readExactly(dataSource, 1000)
+    dataSource.close()
+
+    val seekPosition = FILE_SIZE - 2000L
+    val seekDataSource = createDataSource()
+    seekDataSource.open(DataSpec.Builder().setUri(Uri.parse(url)).setPosition(seekPosition).build())
+    assertArrayEquals(
+      fileBytes.copyOfRange(seekPosition.toInt(), FILE_SIZE),
+      readExactly(seekDataSource, 2000)
+    )
+    seekDataSource.close()
+
+    partialMediaCache.downloadMissingRanges(url, rangeFetcher)
+
+    assertEquals(listOf(0L, seekPosition, 1000L), requestedRangeStarts)
+    assertArrayEquals(fileBytes, storage.getCompletedFileOrNull(url)!!.readBytes())
+  }
+
+  @Test
+  fun `cached ranges merge and report gaps`() {
+    val cachedRanges = CachedRanges()
+
+    cachedRanges.add(10, 20)
+    cachedRanges.add(30, 40)
+    assertEquals(2, cachedRanges.rangesCount)
+    assertEquals(0L until 10L, cachedRanges.firstMissingRange(50))
+    assertEquals(5L, cachedRanges.contiguousLengthFrom(15))
+    assertEquals(0L, cachedRanges.contiguousLengthFrom(25))
+
+    cachedRanges.add(0, 10)
+    cachedRanges.add(20, 30)
+    assertEquals(1, cachedRanges.rangesCount)
+    assertEquals(40L until 50L, cachedRanges.firstMissingRange(50))
+    assertEquals(40L, cachedRanges.cachedBytesCount())
+
+    cachedRanges.add(35, 50)
+    assertEquals(true, cachedRanges.isFullyCached(50))
+  }
+
+  private fun createDataSource(): PartialMediaCacheDataSource {
+    return PartialMediaCacheDataSource(
+      partialMediaCache = partialMediaCache,
+      upstreamDataSource = DefaultHttpDataSource.Factory().createDataSource()
+    )
+  }
+
+  private fun readExactly(dataSource: PartialMediaCacheDataSource, count: Int): ByteArray {
+    val result = ByteArray(count)
+    var offset = 0
+
+    while (offset < count) {
+      val read = dataSource.read(result, offset, minOf(4096, count - offset))
+      if (read == C.RESULT_END_OF_INPUT) {
+        break
+      }
+
+      offset += read
+    }
+
+    assertEquals(count, offset)
+    return result
+  }
+
+  private inner class RangeDispatcher : Dispatcher() {
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val rangeHeader = request.getHeader("Range")
+      if (rangeHeader == null) {
+        requestedRangeStarts += 0L
+
+        return MockResponse()
+          .setResponseCode(200)
+          .setBody(Buffer().write(fileBytes))
+      }
+
+      val (startString, endString) = rangeHeader.removePrefix("bytes=").split('-')
+      val start = startString.toInt()
+      val end = endString.toIntOrNull()?.plus(1) ?: FILE_SIZE
+      val chunk = fileBytes.copyOfRange(start, end)
+      requestedRangeStarts += start.toLong()
+
+      return MockResponse()
+        .setResponseCode(206)
+        .setHeader("Content-Range", "bytes ${start}-${end - 1}/${FILE_SIZE}")
+        .setBody(Buffer().write(chunk))
+    }
+  }
+
+  companion object {
+    private const val FILE_SIZE = 256 * 1024
+  }
+
+}
@@ -0,0 +1,29 @@
+package com.github.k1rakishou.chan.core.cache.partial
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+class TestMediaCacheStorage(private val cacheDir: File) : MediaCacheStorage {
+  val commitsCount = AtomicInteger(0)
+
+  override fun getCompletedFileOrNull(url: String): File? {
+    return File(cacheDir, fileName(url)).takeIf { file -> file.exists() }
+  }
+
+  override fun createPartialFile(url: String): File? {
+    val file = File(cacheDir, fileName(url) + ".partial")
+    file.delete()
+    file.createNewFile()
+    return file
+  }
+
+  override fun commitPartialFile(partialFile: File, url: String): File? {
+    commitsCount.incrementAndGet()
+
+    val file = File(cacheDir, fileName(url))
+    check(partialFile.renameTo(file)) { "Failed to rename" }
+    return file
+  }
+
+  private fun fileName(url: String): String = url.hashCode().toUInt().toString()
+}
@@ -0,0 +1,215 @@
+package com.github.k1rakishou.chan.core.image
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.IOException
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ImageLoadSchedulerTest {
+
+  @Test
+  fun `starts queued requests by priority class and then in enqueue order`() {
+    runBlockingTest {
+      val fetcher = FakeFetcher()
+      val scheduler = ImageLoadScheduler<String>(this, maxConcurrentRequests = 1, maxConcurrentRequestsPerHost = 1)
+
+      scheduler.enqueue("a", HOST, ImageLoadPriority.Background, fetcher.fetcher("a"))
+      scheduler.enqueue("b", HOST, ImageLoadPriority.Background, fetcher.fetcher("b"))
+      scheduler.enqueue("c", HOST, ImageLoadPriority.Prefetch, fetcher.fetcher("c"))
+      scheduler.enqueue("d", HOST, ImageLoadPriority.MediaViewerNeighbor, fetcher.fetcher("d"))
+      scheduler.enqueue("e", HOST, ImageLoadPriority.Visible, fetcher.fetcher("e"))
+      scheduler.enqueue("f", HOST, ImageLoadPriority.Visible, fetcher.fetcher("f"))
+
+      assertEquals(listOf("a"), fetcher.started)
+      assertEquals(5, scheduler.queuedCount())
+
+      listOf("a", "e", "f", "d", "c", "b").forEach { url -> fetcher.complete(url) }
+
+      assertEquals(listOf("a", "e", "f", "d", "c", "b"), fetcher.started)
+      assertEquals(0, scheduler.queuedCount())
+      assertEquals(0, scheduler.runningCount())
+    }
+  }
+
+  @Test
+  fun `changing the priority reorders queued requests`() {
+    runBlockingTest {
+      val fetcher = FakeFetcher()
+      val scheduler = ImageLoadScheduler<String>(this, maxConcurrentRequests = 1, maxConcurrentRequestsPerHost = 1)
+
+      scheduler.enqueue("a", HOST, ImageLoadPriority.Visible, fetcher.fetcher("a"))
+      val ticketB = scheduler.enqueue("b", HOST, ImageLoadPriority.Visible, fetcher.fetcher("b"))
+      scheduler.enqueue("c", HOST, ImageLoadPriority.Visible, fetcher.fetcher("c"))
+      val ticketD = scheduler.enqueue("d", HOST, ImageLoadPriority.Background, fetcher.fetcher("d"))
+
+      // "b" was scrolled offscreen and "d" became visible
+      ticketB.changePriority(ImageLoadPriority.Background)
+      ticketD.changePriority(ImageLoadPriority.Visible)
+
+      listOf("a", "c", "d", "b").forEach { url -> fetcher.complete(url) }
+
+      assertEquals(listOf("a", "c", "d", "b"), fetcher.started)
+    }
+  }
+
+  @Test
+  fun `respects global and per host limits`() {
+    runBlockingTest {
+      val fetcher = FakeFetcher()
+      val scheduler = ImageLoadScheduler<String>(this, maxConcurrentRequests = 5, maxConcurrentRequestsPerHost = 4)
+
+      // Low priority requests can only take half of the host slots
+      (0 until 3).forEach { index ->
+        scheduler.enqueue("prefetch_$index", HOST, ImageLoadPriority.Prefetch, fetcher.fetcher("prefetch_$index"))
+      }
+      assertEquals(listOf("prefetch_0", "prefetch_1"), fetcher.started)
+
+      (0 until 3).forEach { index ->
+        scheduler.enqueue("visible_$index", HOST, ImageLoadPriority.Visible, fetcher.fetcher("visible_$index"))
+      }
+      assertEquals(listOf("prefetch_0", "prefetch_1", "visible_0", "visible_1"), fetcher.started)
+
+      // Another host is not affected by the per host limit but is affected by the global one
+      scheduler.enqueue("other_0", OTHER_HOST, ImageLoadPriority.Visible, fetcher.fetcher("other_0"))
+      scheduler.enqueue("other_1", OTHER_HOST, ImageLoadPriority.Visible, fetcher.fetcher("other_1"))
+      assertEquals(5, scheduler.runningCount())
+      assertEquals("other_0", fetcher.started.last())
+
+      fetcher.complete("prefetch_0")
+      assertEquals("visible_2", fetcher.started.last())
+
+      fetcher.complete("visible_0")
+      assertEquals("other_1", fetcher.started.last())
+
+      listOf("prefetch_1", "visible_1", "visible_2", "other_0", "other_1").forEach { url -> fetcher.complete(url) }
+      assertEquals("prefetch_2", fetcher.started.last())
+
+      fetcher.complete("prefetch_2")
+      assertEquals(0, scheduler.runningCount())
+    }
+  }
+
+  @Test
+  fun `coalesces concurrent requests for the same key into one download`() {
+    runBlockingTest {
+      val fetcher = FakeFetcher()
+      val scheduler = ImageLoadScheduler<String>(this, maxConcurrentRequests = 1, maxConcurrentRequestsPerHost = 1)
+
+      scheduler.enqueue("blocker", HOST, ImageLoadPriority.Visible, fetcher.fetcher("blocker"))
+
+      val tickets = listOf(
+        scheduler.enqueue("a", HOST, ImageLoadPriority.Background, fetcher.fetcher("a")),
+        scheduler.enqueue("a", HOST, ImageLoadPriority.Prefetch, fetcher.fetcher("a")),
+        scheduler.enqueue("a", HOST, ImageLoadPriority.Background, fetcher.fetcher("a"))
+      )
+      scheduler.enqueue("b", HOST, ImageLoadPriority.Background, fetcher.fetcher("b"))
+
+      val results = tickets.map { ticket -> async { ticket.await() } }
+      assertEquals(2, scheduler.queuedCount())
+
+      // "a" has the priority of its most important request so it goes before "b"
+      fetcher.complete("blocker")
+      assertEquals(listOf("blocker", "a"), fetcher.started)
+
+      fetcher.complete("a")
+      results.forEach { result -> assertEquals("result_a", result.await()) }
+
+      fetcher.fail("b", IOException("404"))
+
+      // Errors are delivered to every request that joined the download
+      val ticketsC = listOf(
+        scheduler.enqueue("c", HOST, ImageLoadPriority.Visible, fetcher.fetcher("c")),
+        scheduler.enqueue("c", HOST, ImageLoadPriority.Visible, fetcher.fetcher("c"))
+      )
+      val resultsC = ticketsC.map { ticket -> async { runCatching { ticket.await() } } }
+
+      fetcher.fail("c", IOException("Bad response"))
+      resultsC.forEach { result -> assertTrue(result.await().exceptionOrNull() is IOException) }
+
+      assertEquals(1, fetcher.startedCount("a"))
+      assertEquals(1, fetcher.startedCount("c"))
+    }
+  }
+
+  @Test
+  fun `download is canceled only when the last request is canceled`() {
+    runBlockingTest {
+      val fetcher = FakeFetcher()
+      val scheduler = ImageLoadScheduler<String>(this, maxConcurrentRequests = 1, maxConcurrentRequestsPerHost = 1)
+
+      val ticket1 = scheduler.enqueue("a", HOST, ImageLoadPriority.Visible, fetcher.fetcher("a"))
+      val ticket2 = scheduler.enqueue("a", HOST, ImageLoadPriority.Visible, fetcher.fetcher("a"))
+      val queuedTicket = scheduler.enqueue("b", HOST, ImageLoadPriority.Visible, fetcher.fetcher("b"))
+      scheduler.enqueue("c", HOST, ImageLoadPriority.Visible, fetcher.fetcher("c"))
+
+      // The view of "b" was recycled before the download started
+      queuedTicket.cancel()
+      assertEquals(1, scheduler.queuedCount())
+
+      ticket1.cancel()
+      assertTrue(fetcher.canceled.isEmpty())
+
+      // Cancelling the coroutine that waits for the result cancels the ticket as well
+      val waiter = async { ticket2.await() }
+      waiter.cancel()
+
+      assertEquals(listOf("a"), fetcher.canceled)
+      assertEquals(listOf("a", "c"), fetcher.started)
+
+      // A new request with the same key starts a new download
+      scheduler.enqueue("a", HOST, ImageLoadPriority.Visible, fetcher.fetcher("a"))
+      fetcher.complete("c")
+      assertEquals(listOf("a", "c", "a"), fetcher.started)
+
+      fetcher.complete("a")
+      assertEquals(0, fetcher.startedCount("b"))
+      assertEquals(0, scheduler.runningCount())
+      assertEquals(0, scheduler.queuedCount())
+    }
+  }
+
+  private class FakeFetcher {
+    private val gates = hashMapOf<String, CompletableDeferred<String>>()
+
+    val started = mutableListOf<String>()
+    val canceled = mutableListOf<String>()
+
+    fun fetcher(url: String): suspend () -> String {
+      return {
+        started += url
+        val gate = CompletableDeferred<String>()
+        gates[url] = gate
+
+        try {
+          gate.await()
+        } catch (error: CancellationException) {
+          canceled += url
+          throw error
+        }
+      }
+    }
+
+    fun startedCount(url: String): Int = started.count { startedUrl -> startedUrl == url }
+
+    fun complete(url: String) {
+      val gate = checkNotNull(gates.remove(url)) { "'$url' is not running" }
+      gate.complete("result_$url")
+    }
+
+    fun fail(url: String, error: Throwable) {
+      val gate = checkNotNull(gates.remove(url)) { "'$url' is not running" }
+      gate.completeExceptionally(error)
+    }
+  }
+
+  companion object {
+    private const val HOST = "i.4cdn.org"
+    private const val OTHER_HOST = "s.4cdn.org"
+  }
+}
@@ -0,0 +1,268 @@
+package com.github.k1rakishou.chan.core.loader.impl
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class PrefetchPlannerTest {
+  private val clock = FakeClock()
+  private val cache = FakeCache(maxSize = 1000 * MB)
+  private val downloader = FakeDownloader(cache)
+  private var metered = false
+
+  private fun createPlanner(config: PrefetchPlanner.Config): PrefetchPlanner<Unit> {
+    return PrefetchPlanner(
+      clock = clock,
+      cacheInfo = cache,
+      downloader = downloader,
+      isConnectionMetered = { metered },
+      config = config
+    )
+  }
+
+  @Test
+  fun `ranks by distance from the viewport and file size`() {
+    val planner = createPlanner(PrefetchPlanner.Config(maxInFlight = 1, bytesPerDistanceUnit = MB))
+
+    planner.enqueue(candidate("a", 1 * MB, position = 1))
+    planner.enqueue(candidate("far_big", 8 * MB, position = 2))
+    planner.enqueue(candidate("near", 1 * MB, position = 3))
+    planner.enqueue(candidate("closest", 1 * MB, position = 4))
+    planner.enqueue(candidate("closest_big", 6 * MB, position = 5))
+
+    assertEquals(listOf("a"), downloader.started)
+    assertEquals(1, planner.snapshot().inFlightKeys.size)
+
+    // Costs (distance + size in MB): far_big = 3 + 8, near = 2 + 1, closest = 1 + 1, closest_big = 0 + 6
+    repeat(5) { downloader.finishLast() }
+
+    assertEquals(listOf("a", "closest", "near", "closest_big", "far_big"), downloader.started)
+    assertTrue(planner.snapshot().queuedKeys.isEmpty())
+  }
+
+  @Test
+  fun `never runs more than max in flight prefetches`() {
+    val planner = createPlanner(PrefetchPlanner.Config(maxInFlight = 3))
+
+    (1..10).forEach { index -> planner.enqueue(candidate("file_$index", MB, position = index.toLong())) }
+    assertEquals(3, downloader.running.size)
+
+    repeat(10) {
+      assertTrue(downloader.running.size <= 3)
+      downloader.finishLast()
+    }
+
+    assertEquals(10, downloader.started.size)
+    assertEquals(10 * MB, planner.snapshot().sessionDownloadedBytes)
+  }
+
+  @Test
+  fun `respects the session budget and uses the smaller one on metered connections`() {
+    val config = PrefetchPlanner.Config(
+      maxInFlight = 3,
+      unmeteredSessionBudgetBytes = 10 * MB,
+      meteredSessionBudgetBytes = 2 * MB,
+      sessionIdleTimeoutMs = 60_000L
+    )
+    val planner = createPlanner(config)
+
+    planner.enqueue(candidate("a", 4 * MB, position = 1))
+    planner.enqueue(candidate("b", 4 * MB, position = 2))
+    planner.enqueue(candidate("c", 4 * MB, position = 3))
+    assertEquals(listOf("a", "b"), downloader.started)
+
+    // A smaller file still fits
+    planner.enqueue(candidate("d", 1 * MB, position = 4))
+    assertEquals(listOf("a", "b", "d"), downloader.started)
+
+    downloader.finishAll()
+    assertEquals(9 * MB, planner.snapshot().sessionDownloadedBytes)
+    assertEquals(listOf("c"), planner.snapshot().queuedKeys)
+
+    // After a while without prefetches a new session starts, but on a metered connection the
+    // budget is smaller
+    metered = true
+    clock.advance(61_000L)
+    planner.enqueue(candidate("e", 4 * MB, position = 5))
+    planner.enqueue(candidate("f", 1 * MB, position = 6))
+
+    assertEquals(listOf("a", "b", "d", "f"), downloader.started)
+    downloader.finishAll()
+
+    metered = false
+    planner.dispatch()
+    assertEquals(listOf("a", "b", "d", "f", "e", "c"), downloader.started)
+  }
+
+  @Test
+  fun `pauses when the cache would evict recently prefetched files`() {
+    cache.maxSize = 100 * MB
+    cache.currentSize = 20 * MB
+    cache.trimFraction = 0.25f
+
+    val planner = createPlanner(PrefetchPlanner.Config(maxInFlight = 1, recentPrefetchWindowMs = 10_000L))
+
+    (1..9).forEach { index -> planner.enqueue(candidate("file_$index", 10 * MB, position = index.toLong())) }
+    repeat(8) { downloader.finishLast() }
+
+    // The cache is full and the trim would have to delete 35MB but only 20MB of the files are not
+    // the ones we have just prefetched
+    assertEquals(100 * MB, cache.currentSize)
+    assertEquals(8, downloader.started.size)
+    assertTrue(downloader.running.isEmpty())
+    assertTrue(planner.snapshot().pausedByCache)
+
+    // Recently prefetched files are old enough now, the user had a chance to look at them
+    clock.advance(10_000L)
+    planner.dispatch()
+
+    assertEquals(9, downloader.started.size)
+    assertFalse(planner.snapshot().pausedByCache)
+  }
+
+  @Test
+  fun `canceled prefetches release their slot and budget`() {
+    val planner = createPlanner(
+      PrefetchPlanner.Config(maxInFlight = 1, unmeteredSessionBudgetBytes = 5 * MB)
+    )
+
+    planner.enqueue(candidate("a", 4 * MB, position = 1))
+    planner.enqueue(candidate("b", 4 * MB, position = 2))
+    planner.enqueue(candidate("c", 4 * MB, position = 3))
+
+    // Queued prefetch of a recycled post is just removed
+    planner.cancel("b")
+    assertEquals(listOf("c"), planner.snapshot().queuedKeys)
+
+    // Running one is canceled and the next one can use its budget
+    planner.cancel("a")
+    assertEquals(listOf("a"), downloader.canceled)
+    assertEquals(listOf("a", "c"), downloader.started)
+    assertEquals(4 * MB, planner.snapshot().inFlightReservedBytes)
+
+    // A late callback of the canceled download is ignored
+    downloader.finish("a", 4 * MB, success = true)
+    assertEquals(0L, planner.snapshot().sessionDownloadedBytes)
+
+    downloader.finish("c", 4 * MB, success = true)
+    assertEquals(4 * MB, planner.snapshot().sessionDownloadedBytes)
+    assertEquals(0L, planner.snapshot().inFlightReservedBytes)
+  }
+
+  @Test
+  fun `already cached files and failures do not use the budget`() {
+    val planner = createPlanner(PrefetchPlanner.Config(maxInFlight = 1))
+    downloader.alreadyCached += "cached"
+
+    planner.enqueue(candidate("cached", 4 * MB, position = 1))
+    planner.enqueue(candidate("failing", 4 * MB, position = 2))
+    planner.enqueue(candidate("failing", 4 * MB, position = 3))
+
+    assertEquals(listOf("cached", "failing"), downloader.started)
+    assertTrue(planner.snapshot().queuedKeys.isEmpty())
+
+    downloader.finish("failing", 0L, success = false)
+
+    val snapshot = planner.snapshot()
+    assertEquals(0L, snapshot.sessionDownloadedBytes)
+    assertEquals(0L, snapshot.inFlightReservedBytes)
+    assertTrue(snapshot.inFlightKeys.isEmpty())
+  }
+
+  @Test
+  fun `a long run of already cached files does not grow the stack`() {
+    val planner = createPlanner(PrefetchPlanner.Config(maxInFlight = 1))
+    planner.enqueue(candidate("running", MB, position = 0))
+
+    (1..200).forEach { index ->
+      downloader.alreadyCached += "cached_$index"
+      planner.enqueue(candidate("cached_$index", MB, position = index.toLong()))
+    }
+
+    // Every cached file finishes right away and the next one is started by the same dispatch
+    downloader.finish("running", MB, success = true)
+
+    assertEquals(201, downloader.started.size)
+    assertTrue(planner.snapshot().queuedKeys.isEmpty())
+    assertEquals(1, downloader.startStackDepths.drop(1).toSet().size)
+  }
+
+  private fun candidate(key: String, size: Long, position: Long): PrefetchPlanner.Candidate<Unit> {
+    return PrefetchPlanner.Candidate(key = key, sizeBytes = size, position = position, payload = Unit)
+  }
+
+  private class FakeClock : PrefetchPlanner.Clock {
+    private var time = 1_000L
+
+    override fun now(): Long = time
+
+    fun advance(ms: Long) {
+      time += ms
+    }
+  }
+
+  private class FakeCache(
+    var maxSize: Long,
+    var currentSize: Long = 0L,
+    var trimFraction: Float = 0.25f
+  ) : PrefetchPlanner.CacheInfo {
+    override fun currentSize(): Long = currentSize
+    override fun maxSize(): Long = maxSize
+    override fun trimFraction(): Float = trimFraction
+  }
+
+  private class FakeDownloader(private val cache: FakeCache) : PrefetchPlanner.Downloader<Unit> {
+    private val callbacks = linkedMapOf<String, Pair<Long, (Long, Boolean) -> Unit>>()
+
+    val started = mutableListOf<String>()
+    val canceled = mutableListOf<String>()
+    val alreadyCached = mutableSetOf<String>()
+    val startStackDepths = mutableListOf<Int>()
+
+    val running: List<String>
+      get() = callbacks.keys.toList()
+
+    override fun start(
+      candidate: PrefetchPlanner.Candidate<Unit>,
+      onFinished: (downloadedBytes: Long, success: Boolean) -> Unit
+    ): PrefetchPlanner.DownloadHandle? {
+      started += candidate.key
+      startStackDepths += Thread.currentThread().stackTrace.size
+
+      if (candidate.key in alreadyCached) {
+        return null
+      }
+
+      callbacks[candidate.key] = candidate.sizeBytes to onFinished
+      return PrefetchPlanner.DownloadHandle { canceled += candidate.key }
+    }
+
+    fun finishLast() {
+      val key = callbacks.keys.last()
+      finish(key, callbacks[key]!!.first, success = true)
+    }
+
+    fun finishAll() {
+      while (callbacks.isNotEmpty()) {
+        val key = callbacks.keys.first()
+        finish(key, callbacks[key]!!.first, success = true)
+      }
+    }
+
+    fun finish(key: String, bytes: Long, success: Boolean) {
+      val (_, onFinished) = callbacks.remove(key)
+        ?: return
+
+      if (success) {
+        cache.currentSize += bytes
+      }
+
+      onFinished(bytes, success)
+    }
+  }
+
+  companion object {
+    private const val MB = 1024L * 1024L
+  }
+}
@@ -0,0 +1,152 @@
+package com.github.k1rakishou.chan.core.loader.impl.external_media_service
+
+import com.github.k1rakishou.chan.core.loader.impl.external_media_service.LinkExtraInfoBatchCollector.BatchRequest
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.media.GenericVideoId
+import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
+import com.github.k1rakishou.model.data.video_service.MediaServiceType
+import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository.LinkExtraContentRequest
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+
+class LinkExtraInfoBatchCollectorTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test-site", "g", 1L)
+  private val fetchedBatches = Collections.synchronizedList(mutableListOf<Pair<MediaServiceType, List<String>>>())
+  private val failingVideoIds = Collections.synchronizedSet(mutableSetOf<String>())
+  private var fetchGate: CompletableDeferred<Unit>? = null
+
+  private val collector = LinkExtraInfoBatchCollector(
+    scope = CoroutineScope(SupervisorJob()),
+    dispatcher = Dispatchers.Default,
+    fetchBatchFunc = { mediaServiceType, requests -> fakeFetchBatch(mediaServiceType, requests) }
+  )
+
+  @Test
+  fun `links of the whole thread are requested with the first post in one batch per service`() {
+    runBlocking {
+      collector.enqueue(
+        threadDescriptor,
+        listOf(
+          youtube("a"), youtube("b"), youtube("c"),
+          soundCloud("d"),
+          youtube("a")
+        )
+      )
+
+      val firstPostResults = withTimeout(TIMEOUT_MS) { collector.resolve(threadDescriptor, listOf(youtube("a"))) }
+      assertEquals(1, firstPostResults.size)
+      assertTrue(firstPostResults.values.single().unwrap().isValid())
+
+      assertEquals(2, fetchedBatches.size)
+      assertEquals(listOf("a", "b", "c"), fetchedBatches.first { (type, _) -> type == MediaServiceType.Youtube }.second)
+      assertEquals(listOf("d"), fetchedBatches.first { (type, _) -> type == MediaServiceType.SoundCloud }.second)
+
+      // Other posts of the thread only get the results of the batch
+      withTimeout(TIMEOUT_MS) {
+        collector.resolve(threadDescriptor, listOf(youtube("b"), soundCloud("d")))
+        collector.resolve(threadDescriptor, listOf(youtube("c")))
+      }
+
+      assertEquals(2, fetchedBatches.size)
+
+      // A post with a link that wasn't collected makes a new batch
+      withTimeout(TIMEOUT_MS) { collector.resolve(threadDescriptor, listOf(youtube("c"), youtube("e"))) }
+      assertEquals(3, fetchedBatches.size)
+      assertEquals(MediaServiceType.Youtube to listOf("e"), fetchedBatches.last())
+    }
+  }
+
+  @Test
+  fun `posts waiting for the same links share one request`() {
+    runBlocking {
+      fetchGate = CompletableDeferred()
+      collector.enqueue(threadDescriptor, listOf(youtube("a"), youtube("b")))
+
+      val results = (0 until 8).map { index ->
+        async(Dispatchers.Default) {
+          val request = if (index % 2 == 0) youtube("a") else youtube("b")
+          collector.resolve(threadDescriptor, listOf(request))
+        }
+      }
+
+      fetchGate!!.complete(Unit)
+      val allResults = withTimeout(TIMEOUT_MS) { results.awaitAll() }
+
+      assertEquals(8, allResults.size)
+      assertTrue(allResults.all { result -> result.values.single().unwrap().isValid() })
+      assertEquals(1, fetchedBatches.size)
+    }
+  }
+
+  @Test
+  fun `failed links are requested again and the rest is not`() {
+    runBlocking {
+      failingVideoIds += "b"
+      collector.enqueue(threadDescriptor, listOf(youtube("a"), youtube("b")))
+
+      val firstResults = withTimeout(TIMEOUT_MS) { collector.resolve(threadDescriptor, listOf(youtube("a"), youtube("b"))) }
+      assertFalse(firstResults.values.first().isError())
+      assertTrue(firstResults.values.last().isError())
+
+      failingVideoIds.clear()
+
+      val secondResults = withTimeout(TIMEOUT_MS) { collector.resolve(threadDescriptor, listOf(youtube("a"), youtube("b"))) }
+      assertTrue(secondResults.values.all { result -> result.valueOrNull()?.isValid() == true })
+
+      assertEquals(2, fetchedBatches.size)
+      assertEquals(listOf("b"), fetchedBatches.last().second)
+    }
+  }
+
+  @Test
+  fun `posts are collected again only when the thread has new posts`() {
+    assertTrue(collector.needsCollecting(threadDescriptor, postsCount = 10))
+    assertFalse(collector.needsCollecting(threadDescriptor, postsCount = 10))
+    assertTrue(collector.needsCollecting(threadDescriptor, postsCount = 12))
+
+    collector.clear(threadDescriptor)
+    assertTrue(collector.needsCollecting(threadDescriptor, postsCount = 12))
+  }
+
+  private suspend fun fakeFetchBatch(
+    mediaServiceType: MediaServiceType,
+    requests: List<LinkExtraContentRequest>
+  ): Map<GenericVideoId, ModularResult<MediaServiceLinkExtraContent>> {
+    fetchGate?.await()
+    fetchedBatches += mediaServiceType to requests.map { request -> request.videoId.id }
+
+    return requests.associate { request ->
+      val result = if (request.videoId.id in failingVideoIds) {
+        ModularResult.error<MediaServiceLinkExtraContent>(RuntimeException("Bad status: 503"))
+      } else {
+        ModularResult.value(MediaServiceLinkExtraContent(request.videoId, mediaServiceType, "title ${request.videoId.id}", null))
+      }
+
+      return@associate request.videoId to result
+    }
+  }
+
+  private fun youtube(videoId: String): BatchRequest {
+    return BatchRequest(MediaServiceType.Youtube, "https://www.youtube.com/watch?v=$videoId", GenericVideoId(videoId))
+  }
+
+  private fun soundCloud(videoId: String): BatchRequest {
+    return BatchRequest(MediaServiceType.SoundCloud, "https://soundcloud.com/$videoId/track", GenericVideoId(videoId))
+  }
+
+  companion object {
+    private const val TIMEOUT_MS = 5_000L
+  }
+}
@@ -0,0 +1,344 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.chan.core.manager.ArchiveHealthTracker.CircuitState
+import com.github.k1rakishou.common.data.ArchiveType
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class ArchiveThreadResolverTest {
+  private val okHttpClient = OkHttpClient()
+  private var currentTime = TimeUnit.DAYS.toMillis(100)
+
+  private lateinit var server: MockWebServer
+  private lateinit var archives: FakeArchives
+  private lateinit var healthTracker: ArchiveHealthTracker
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    archives = FakeArchives()
+    server.dispatcher = archives
+    server.start()
+
+    healthTracker = ArchiveHealthTracker(
+      circuitBreakerFailuresThreshold = 3,
+      circuitBreakerCooldownMs = COOLDOWN_MS,
+      currentTimeMillisFunc = { currentTime }
+    )
+  }
+
+  @After
+  fun tearDown() {
+    archives.releaseSlowResponses()
+    server.shutdown()
+  }
+
+  @Test
+  fun `first archive that has the thread wins and slower archives are cancelled`() = runBlocking {
+    val slowArchive = archive(ArchiveType.ForPlebs)
+    val emptyArchive = archive(ArchiveType.Nyafuu)
+    val fastArchive = archive(ArchiveType.DesuArchive)
+
+    archives.slowArchives += slowArchive.domain
+    archives.threads[slowArchive.domain] = FakeThread.Exists
+    archives.threads[emptyArchive.domain] = FakeThread.ErrorBody
+    archives.threads[fastArchive.domain] = FakeThread.Exists
+
+    val startTime = System.nanoTime()
+    val resolved = resolver().resolve(THREAD, listOf(slowArchive, emptyArchive, fastArchive))
+    val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+
+    assertEquals(fastArchive, resolved)
+    assertTrue("elapsedMs=$elapsedMs", elapsedMs < SLOW_RESPONSE_TIMEOUT_MS)
+
+    // The cancelled probe is neither a success nor a failure
+    assertEquals(CircuitState.Closed, healthTracker.health(slowArchive).circuitState)
+    assertNull(healthTracker.health(slowArchive).latencyMs)
+    assertEquals(0.0, healthTracker.health(slowArchive).errorRate, 0.0)
+  }
+
+  @Test
+  fun `missing threads are not found and don't hurt the health of the archive`() = runBlocking {
+    val notFoundArchive = archive(ArchiveType.ForPlebs)
+    val errorBodyArchive = archive(ArchiveType.Nyafuu)
+    archives.threads[notFoundArchive.domain] = FakeThread.NotFound
+    archives.threads[errorBodyArchive.domain] = FakeThread.ErrorBody
+
+    assertNull(resolver().resolve(THREAD, listOf(notFoundArchive, errorBodyArchive)))
+
+    listOf(notFoundArchive, errorBodyArchive).forEach { archiveDescriptor ->
+      assertEquals(0.0, healthTracker.health(archiveDescriptor).errorRate, 0.0)
+      assertTrue(healthTracker.boardHitRate(archiveDescriptor, THREAD.boardDescriptor) < 0.5)
+    }
+  }
+
+  @Test
+  fun `failing archive opens the circuit and is skipped until the cooldown ends`() = runBlocking {
+    val failingArchive = archive(ArchiveType.ForPlebs)
+    val workingArchive = archive(ArchiveType.Nyafuu)
+    archives.statusCodes[failingArchive.domain] = 503
+    archives.threads[workingArchive.domain] = FakeThread.NotFound
+
+    val resolver = resolver()
+
+    repeat(3) { assertNull(resolver.resolve(THREAD, listOf(failingArchive, workingArchive))) }
+    assertEquals(3, archives.requestsCount(failingArchive))
+    assertEquals(CircuitState.Open, healthTracker.health(failingArchive).circuitState)
+    assertEquals(1.0, healthTracker.health(failingArchive).errorRate, 0.0)
+
+    // Skipped while the circuit is open, and sorted after the healthy archive
+    assertNull(resolver.resolve(THREAD, listOf(failingArchive, workingArchive)))
+    assertEquals(3, archives.requestsCount(failingArchive))
+    assertEquals(listOf(workingArchive, failingArchive), resolver.sortByPreference(THREAD, listOf(failingArchive, workingArchive)))
+
+    // A single failed test probe opens the circuit again
+    currentTime += COOLDOWN_MS
+    assertEquals(CircuitState.HalfOpen, healthTracker.health(failingArchive).circuitState)
+    assertNull(resolver.resolve(THREAD, listOf(failingArchive, workingArchive)))
+    assertEquals(4, archives.requestsCount(failingArchive))
+    assertEquals(CircuitState.Open, healthTracker.health(failingArchive).circuitState)
+
+    // A successful test probe closes it
+    currentTime += COOLDOWN_MS
+    archives.statusCodes.clear()
+    archives.threads[failingArchive.domain] = FakeThread.Exists
+
+    assertEquals(failingArchive, resolver.resolve(THREAD, listOf(failingArchive, workingArchive)))
+    assertEquals(CircuitState.Closed, healthTracker.health(failingArchive).circuitState)
+  }
+
+  @Test
+  fun `probes that take too long are failures`() = runBlocking {
+    val slowArchive = archive(ArchiveType.ForPlebs)
+    archives.slowArchives += slowArchive.domain
+    archives.threads[slowArchive.domain] = FakeThread.Exists
+
+    assertNull(resolver(probeTimeoutMs = 200).resolve(THREAD, listOf(slowArchive)))
+    assertEquals(1.0, healthTracker.health(slowArchive).errorRate, 0.0)
+  }
+
+  @Test
+  fun `no more than maxConcurrentProbes archives are asked at once`() = runBlocking {
+    val archiveDescriptors = listOf(
+      ArchiveType.ForPlebs,
+      ArchiveType.Nyafuu,
+      ArchiveType.DesuArchive,
+      ArchiveType.Fireden,
+      ArchiveType.B4k,
+      ArchiveType.ArchivedMoe
+    ).map { archiveType -> archive(archiveType) }
+
+    archiveDescriptors.forEach { archiveDescriptor ->
+      archives.threads[archiveDescriptor.domain] = FakeThread.NotFound
+      archives.delaysMs[archiveDescriptor.domain] = 100L
+    }
+
+    assertNull(resolver(maxConcurrentProbes = 2).resolve(THREAD, archiveDescriptors))
+    assertEquals(archiveDescriptors.size, archives.totalRequestsCount())
+    assertTrue("maxConcurrentRequests=${archives.maxConcurrentRequests.get()}", archives.maxConcurrentRequests.get() <= 2)
+  }
+
+  @Test
+  fun `archives that had the board recently are asked first`() = runBlocking {
+    val archiveA = archive(ArchiveType.ForPlebs)
+    val archiveB = archive(ArchiveType.Nyafuu)
+    archives.threads[archiveA.domain] = FakeThread.NotFound
+    archives.threads[archiveB.domain] = FakeThread.Exists
+
+    val resolver = resolver(maxConcurrentProbes = 1)
+
+    // Nothing is known yet so the original order is used
+    assertEquals(listOf(archiveA, archiveB), resolver.sortByPreference(THREAD, listOf(archiveA, archiveB)))
+    assertEquals(archiveB, resolver.resolve(THREAD, listOf(archiveA, archiveB)))
+    assertEquals(1, archives.requestsCount(archiveA))
+
+    // Now archiveB is asked first and it has the thread so archiveA is not asked at all
+    assertEquals(listOf(archiveB, archiveA), resolver.sortByPreference(THREAD, listOf(archiveA, archiveB)))
+    assertEquals(archiveB, resolver.resolve(OTHER_THREAD, listOf(archiveA, archiveB)))
+    assertEquals(1, archives.requestsCount(archiveA))
+
+    // The statistics are per board
+    val otherBoardThread = ChanDescriptor.ThreadDescriptor.create("4chan", "a", 1)
+    assertEquals(listOf(archiveA, archiveB), resolver.sortByPreference(otherBoardThread, listOf(archiveA, archiveB)))
+  }
+
+  @Test
+  fun `archives without the thread endpoint are skipped`() = runBlocking {
+    val unsupportedArchive = archive(ArchiveType.Warosu)
+    val archive = archive(ArchiveType.ForPlebs)
+    archives.threads[archive.domain] = FakeThread.NotFound
+
+    assertNull(resolver().resolve(THREAD, listOf(unsupportedArchive, archive)))
+    assertEquals(0, archives.requestsCount(unsupportedArchive))
+    assertEquals(CircuitState.Closed, healthTracker.health(unsupportedArchive).circuitState)
+    assertEquals(0.0, healthTracker.health(unsupportedArchive).errorRate, 0.0)
+  }
+
+  @Test
+  @OptIn(ExperimentalCoroutinesApi::class)
+  fun `archives are not probed on the main thread when resolving from the main dispatcher`() {
+    val archive = archive(ArchiveType.ForPlebs)
+    archives.threads[archive.domain] = FakeThread.Exists
+
+    val mainExecutor = Executors.newSingleThreadExecutor { runnable -> Thread(runnable, MAIN_THREAD_NAME) }
+    val probeThreadNames = ConcurrentHashMap.newKeySet<String>()
+
+    Dispatchers.setMain(mainExecutor.asCoroutineDispatcher())
+
+    try {
+      val resolved = runBlocking(Dispatchers.Main) {
+        resolver(onProbeThread = { threadName -> probeThreadNames += threadName })
+          .resolve(THREAD, listOf(archive))
+      }
+
+      assertEquals(archive, resolved)
+      assertEquals(1, probeThreadNames.size)
+      assertFalse(MAIN_THREAD_NAME in probeThreadNames)
+    } finally {
+      Dispatchers.resetMain()
+      mainExecutor.shutdown()
+    }
+  }
+
+  private fun resolver(
+    maxConcurrentProbes: Int = 3,
+    probeTimeoutMs: Long = 10_000L,
+    onProbeThread: (String) -> Unit = { }
+  ): ArchiveThreadResolver {
+    val threadProber = ArchiveThreadProber(
+      okHttpClientProvider = { okHttpClient },
+      requestModifier = { requestBuilder ->
+        onProbeThread(Thread.currentThread().name)
+        requestBuilder.header("User-Agent", "test")
+      },
+      threadEndpointFunc = func@ { archiveDescriptor, threadDescriptor ->
+        if (!archiveDescriptor.archiveType.isFoolFuukaArchive()) {
+          return@func null
+        }
+
+        return@func server.url("/${archiveDescriptor.domain}/_/api/chan/thread/")
+          .newBuilder()
+          .addQueryParameter("board", threadDescriptor.boardCode())
+          .addQueryParameter("num", threadDescriptor.threadNo.toString())
+          .build()
+      }
+    )
+
+    return ArchiveThreadResolver(
+      healthTracker = healthTracker,
+      threadProber = threadProber,
+      maxConcurrentProbes = maxConcurrentProbes,
+      probeTimeoutMs = probeTimeoutMs
+    )
+  }
+
+  private fun archive(archiveType: ArchiveType): ArchiveDescriptor {
+    return ArchiveDescriptor(
+      name = archiveType.name,
+      domain = archiveType.domain,
+      archiveType = archiveType
+    )
+  }
+
+  private enum class FakeThread {
+    Exists,
+    NotFound,
+    ErrorBody
+  }
+
+  private class FakeArchives : Dispatcher() {
+    val threads = ConcurrentHashMap<String, FakeThread>()
+    val statusCodes = ConcurrentHashMap<String, Int>()
+    val delaysMs = ConcurrentHashMap<String, Long>()
+    val slowArchives = ConcurrentHashMap.newKeySet<String>()
+    val maxConcurrentRequests = AtomicInteger(0)
+
+    private val requestsPerArchive = ConcurrentHashMap<String, AtomicInteger>()
+    private val concurrentRequests = AtomicInteger(0)
+    private val releaseSlowResponses = CountDownLatch(1)
+
+    fun requestsCount(archiveDescriptor: ArchiveDescriptor): Int {
+      return requestsPerArchive[archiveDescriptor.domain]?.get() ?: 0
+    }
+
+    fun totalRequestsCount(): Int {
+      return requestsPerArchive.values.sumOf { requestsCount -> requestsCount.get() }
+    }
+
+    fun releaseSlowResponses() {
+      releaseSlowResponses.countDown()
+    }
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val domain = request.requestUrl!!.pathSegments.first()
+      val threadNo = request.requestUrl!!.queryParameter("num")!!
+
+      requestsPerArchive.getOrPut(domain) { AtomicInteger(0) }.incrementAndGet()
+      val concurrent = concurrentRequests.incrementAndGet()
+      maxConcurrentRequests.accumulateAndGet(concurrent) { prev, new -> maxOf(prev, new) }
+
+      try {
+        delaysMs[domain]?.let { delayMs -> Thread.sleep(delayMs) }
+
+        if (domain in slowArchives) {
+          releaseSlowResponses.await(SLOW_RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        }
+      } finally {
+        concurrentRequests.decrementAndGet()
+      }
+
+      val statusCode = statusCodes[domain]
+      if (statusCode != null) {
+        return MockResponse().setResponseCode(statusCode)
+      }
+
+      return when (threads[domain]) {
+        FakeThread.Exists -> jsonResponse("""{"$threadNo":{"op":{"num":"$threadNo"},"posts":{}}}""")
+        FakeThread.ErrorBody -> jsonResponse("""{"error":"Thread not found."}""")
+        FakeThread.NotFound,
+        null -> MockResponse().setResponseCode(404)
+      }
+    }
+
+    private fun jsonResponse(json: String): MockResponse {
+      return MockResponse()
+        .setHeader("Content-Type", "application/json; charset=utf-8")
+        .setBody(json)
+    }
+  }
+
+  companion object {
+    private const val COOLDOWN_MS = 60_000L
+    private const val MAIN_THREAD_NAME = "test-main"
+    private const val SLOW_RESPONSE_TIMEOUT_MS = 10_000L
+
+    private val THREAD = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1234567)
+    private val OTHER_THREAD = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 7654321)
+  }
+}
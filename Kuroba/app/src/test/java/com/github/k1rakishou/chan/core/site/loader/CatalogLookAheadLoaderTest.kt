@@ -0,0 +1,247 @@
+package com.github.k1rakishou.chan.core.site.loader
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestCoroutineScope
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class CatalogLookAheadLoaderTest {
+  private val catalogA = ChanDescriptor.CatalogDescriptor.create("site-a", "g")
+  private val catalogB = ChanDescriptor.CatalogDescriptor.create("site-b", "g")
+  private val compositeCatalog = ChanDescriptor.CompositeCatalogDescriptor.create(listOf(catalogA, catalogB))
+
+  @Test
+  fun `pages loaded out of order are still taken in page order`() {
+    runBlockingTest {
+      val siteLoader = FakeSiteLoader()
+      val loader = createLoader(maxConcurrentLoadsPerSite = 3)
+      val pages = (2..4).map { page -> CatalogLookAheadLoader.Page(catalogA, catalogA, page) }
+
+      loader.schedule(pages = pages, load = siteLoader::load)
+      assertEquals(listOf(2, 3, 4), siteLoader.started.map { page -> page.page })
+
+      pages.reversed().forEach { page -> siteLoader.complete(page) }
+
+      assertEquals(pages.map { page -> "content of ${page.page}" }, pages.map { page -> loader.take(page) })
+      pages.forEach { page -> assertFalse(loader.isStaged(page)) }
+    }
+  }
+
+  @Test
+  fun `take waits for the page that is still being loaded instead of loading it again`() {
+    runBlockingTest {
+      val siteLoader = FakeSiteLoader()
+      val loader = createLoader()
+      val page = CatalogLookAheadLoader.Page(catalogA, catalogA, 2)
+
+      loader.schedule(pages = listOf(page), load = siteLoader::load)
+
+      val taken = async { loader.take(page) }
+      assertFalse(taken.isCompleted)
+
+      siteLoader.complete(page)
+
+      assertEquals("content of 2", taken.await())
+      assertEquals(1, siteLoader.started.size)
+      // Taken pages are not staged anymore
+      assertNull(loader.take(page))
+    }
+  }
+
+  @Test
+  fun `loads respect the per site concurrency limit and load interval`() {
+    runBlockingTest {
+      val loader = createLoader(maxConcurrentLoadsPerSite = 2, minLoadIntervalPerSiteMs = 100L)
+      val runningPerSite = mutableMapOf<String, Int>()
+      val maxRunningPerSite = mutableMapOf<String, Int>()
+      var running = 0
+      var maxRunning = 0
+      val startTimes = mutableMapOf<String, MutableList<Pair<Int, Long>>>()
+
+      val pages = (1..6).flatMap { page ->
+        listOf(
+          CatalogLookAheadLoader.Page(compositeCatalog, catalogA, page),
+          CatalogLookAheadLoader.Page(compositeCatalog, catalogB, page + 100)
+        )
+      }
+
+      loader.schedule(pages = pages) { page ->
+        val siteName = page.catalogDescriptor.siteName()
+
+        startTimes.getOrPut(siteName) { mutableListOf() } += page.page to currentTime
+        runningPerSite[siteName] = (runningPerSite[siteName] ?: 0) + 1
+        maxRunningPerSite[siteName] = maxOf(maxRunningPerSite[siteName] ?: 0, runningPerSite[siteName]!!)
+        maxRunning = maxOf(maxRunning, ++running)
+
+        delay(1000L)
+
+        runningPerSite[siteName] = runningPerSite[siteName]!! - 1
+        --running
+
+        return@schedule "content of ${page.page}"
+      }
+
+      advanceUntilIdle()
+
+      assertEquals(2, maxRunningPerSite["site-a"])
+      assertEquals(2, maxRunningPerSite["site-b"])
+      // Both sites were loaded from at the same time
+      assertEquals(4, maxRunning)
+
+      startTimes.values.forEach { siteStartTimes ->
+        // In the order of the pages
+        assertEquals(siteStartTimes.map { (page, _) -> page }.sorted(), siteStartTimes.map { (page, _) -> page })
+
+        siteStartTimes.zipWithNext().forEach { (prev, next) ->
+          assertTrue("prev=$prev, next=$next", next.second - prev.second >= 100L)
+        }
+      }
+
+      pages.forEach { page -> assertEquals("content of ${page.page}", loader.take(page)) }
+    }
+  }
+
+  @Test
+  fun `cancel drops the pages of the closed catalog only`() {
+    runBlockingTest {
+      val siteLoader = FakeSiteLoader()
+      val loader = createLoader()
+
+      val closedCatalogPages = (2..3).map { page -> CatalogLookAheadLoader.Page(catalogA, catalogA, page) }
+      val otherCatalogPage = CatalogLookAheadLoader.Page(catalogB, catalogB, 2)
+
+      loader.schedule(pages = closedCatalogPages, load = siteLoader::load)
+      loader.schedule(pages = listOf(otherCatalogPage), load = siteLoader::load)
+
+      loader.cancel(catalogA)
+      runCurrent()
+
+      assertEquals(closedCatalogPages.toSet(), siteLoader.canceled.toSet())
+      closedCatalogPages.forEach { page ->
+        assertFalse(loader.isStaged(page))
+        assertNull(loader.take(page))
+      }
+
+      siteLoader.complete(otherCatalogPage)
+      assertEquals("content of 2", loader.take(otherCatalogPage))
+    }
+  }
+
+  @Test
+  fun `failed or last page cancels the look ahead of the pages after it`() {
+    runBlockingTest {
+      val siteLoader = FakeSiteLoader()
+      val loader = createLoader()
+      val pages = (2..5).map { page -> CatalogLookAheadLoader.Page(catalogA, catalogA, page) }
+
+      loader.schedule(
+        pages = pages,
+        isLastPage = { content -> content == "last" },
+        load = siteLoader::load
+      )
+
+      siteLoader.complete(pages[0], null)
+      runCurrent()
+
+      // Every page after the failed one that had already started loading got canceled
+      assertEquals(siteLoader.started.drop(1).toSet(), siteLoader.canceled.toSet())
+      assertNull(loader.take(pages[0]))
+      pages.drop(1).forEach { page -> assertFalse(loader.isStaged(page)) }
+
+      siteLoader.started.clear()
+      siteLoader.canceled.clear()
+
+      loader.schedule(
+        pages = pages,
+        isLastPage = { content -> content == "last" },
+        load = siteLoader::load
+      )
+
+      siteLoader.complete(pages[0])
+      siteLoader.complete(pages[1], "last")
+      runCurrent()
+
+      assertEquals(siteLoader.started.drop(2).toSet(), siteLoader.canceled.toSet())
+      assertEquals("content of 2", loader.take(pages[0]))
+      assertEquals("last", loader.take(pages[1]))
+      assertFalse(loader.isStaged(pages[2]))
+      assertFalse(loader.isStaged(pages[3]))
+    }
+  }
+
+  @Test
+  fun `pages that were staged for too long are not used`() {
+    runBlockingTest {
+      val siteLoader = FakeSiteLoader()
+      val loader = createLoader(maxStagedPageAgeMs = 1000L)
+      val page = CatalogLookAheadLoader.Page(catalogA, catalogA, 2)
+
+      loader.schedule(pages = listOf(page), load = siteLoader::load)
+      siteLoader.complete(page)
+
+      advanceTimeBy(1001L)
+      assertNull(loader.take(page))
+
+      loader.schedule(pages = listOf(page), load = siteLoader::load)
+      siteLoader.complete(page)
+
+      advanceTimeBy(500L)
+      assertEquals("content of 2", loader.take(page))
+    }
+  }
+
+  private fun TestCoroutineScope.createLoader(
+    maxConcurrentLoadsPerSite: Int = 2,
+    minLoadIntervalPerSiteMs: Long = 0L,
+    maxStagedPageAgeMs: Long = 60_000L
+  ): CatalogLookAheadLoader<String> {
+    return CatalogLookAheadLoader(
+      scope = this,
+      maxConcurrentLoadsPerSite = maxConcurrentLoadsPerSite,
+      minLoadIntervalPerSiteMs = minLoadIntervalPerSiteMs,
+      maxStagedPageAgeMs = maxStagedPageAgeMs,
+      currentTimeMs = { currentTime }
+    )
+  }
+
+  /**
+   * A site whose pages are loaded once they are [complete]d by the test.
+   * */
+  private class FakeSiteLoader {
+    private val pending = mutableMapOf<CatalogLookAheadLoader.Page, CompletableDeferred<String?>>()
+
+    val started = mutableListOf<CatalogLookAheadLoader.Page>()
+    val canceled = mutableListOf<CatalogLookAheadLoader.Page>()
+
+    suspend fun load(page: CatalogLookAheadLoader.Page): String? {
+      started += page
+
+      val deferred = CompletableDeferred<String?>()
+      pending[page] = deferred
+
+      try {
+        return deferred.await()
+      } catch (error: CancellationException) {
+        canceled += page
+        throw error
+      }
+    }
+
+    fun complete(page: CatalogLookAheadLoader.Page, content: String? = "content of ${page.page}") {
+      pending.remove(page)!!.complete(content)
+    }
+  }
+}
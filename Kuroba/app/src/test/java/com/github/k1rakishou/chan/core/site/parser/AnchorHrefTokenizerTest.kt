@@ -0,0 +1,258 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+import com.github.k1rakishou.chan.core.site.parser.AnchorHrefTokenizer.AnchorToken
+import com.github.k1rakishou.core_parser.comment.HtmlNode
+import com.github.k1rakishou.core_parser.comment.HtmlParser
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.regex.Pattern
+
+class AnchorHrefTokenizerTest {
+
+  @Test
+  fun `4chan anchors are tokenized the same way the patterns matched them`() {
+    assertParity(FOUR_CHAN, extractHrefs("comment_parser/anchors_4chan.html") + EDGE_CASE_HREFS)
+  }
+
+  @Test
+  fun `vichan anchors are tokenized the same way the patterns matched them`() {
+    assertParity(VICHAN, extractHrefs("comment_parser/anchors_vichan.html") + EDGE_CASE_HREFS)
+  }
+
+  @Test
+  fun `lynxchan anchors are tokenized the same way the patterns matched them`() {
+    assertParity(LYNXCHAN, extractHrefs("comment_parser/anchors_lynxchan.html") + EDGE_CASE_HREFS)
+  }
+
+  @Test
+  fun `taimaba anchors are tokenized the same way the patterns matched them`() {
+    assertParity(TAIMABA, extractHrefs("comment_parser/anchors_taimaba.html") + EDGE_CASE_HREFS)
+  }
+
+  @Test
+  fun `4chan anchors are tokenized`() {
+    val tokenizer = AnchorHrefTokenizer(QuoteLinkFormat.FOUR_CHAN)
+
+    assertEquals(AnchorToken.Quote(98765432L), tokenizer.tokenize("#p98765432"))
+    assertEquals(AnchorToken.FullQuote("g", 98700000L, 98700123L), tokenizer.tokenize("/g/thread/98700000#p98700123"))
+    assertEquals(AnchorToken.BoardLink("g"), tokenizer.tokenize("//boards.4channel.org/g/"))
+    assertEquals(AnchorToken.BoardLink("a"), tokenizer.tokenize("/a/index.html"))
+    assertEquals(AnchorToken.BoardSearch("g", "desktop%20thread"), tokenizer.tokenize("//boards.4channel.org/g/catalog#s=desktop%20thread"))
+    assertEquals(AnchorToken.Link, tokenizer.tokenize("https://github.com/K1rakishou/Kuroba-Experimental"))
+    assertEquals(AnchorToken.Link, tokenizer.tokenize("#p99999999999999999999"))
+  }
+
+  @Test
+  fun `4chan post links with the domain are recognized`() {
+    val hrefs = extractHrefs("comment_parser/anchors_4chan.html") + EDGE_CASE_HREFS
+    val matchedHrefs = hrefs.filter { href -> DEFAULT_QUOTE_PATTERN.matcher(href).matches() }
+    assertTrue(matchedHrefs.isNotEmpty())
+
+    hrefs.forEach { href ->
+      assertEquals(href, DEFAULT_QUOTE_PATTERN.matcher(href).matches(), AnchorHrefTokenizer.isFourChanPostLinkWithDomain(href))
+    }
+  }
+
+  @Test
+  fun `dead quotes are parsed the same way the pattern matched them`() {
+    val texts = extractDeadlinkTexts("comment_parser/anchors_4chan.html") +
+      listOf(">>", ">>1", ">>123abc", ">> 123", ">>>/g/1", "text>>123", ">>99999999999999999999")
+
+    texts.forEach { text ->
+      val matcher = DEAD_QUOTE_PATTERN.matcher(text)
+      val expected = if (matcher.matches()) matcher.group(1).toLongOrNull() else null
+
+      assertEquals(text, expected, AnchorHrefTokenizer.parseDeadQuote(text))
+    }
+  }
+
+  private fun assertParity(site: SitePatterns, hrefs: List<String>) {
+    val tokenizer = AnchorHrefTokenizer(site.quoteLinkFormat)
+    val tokens = hrefs.map { href -> tokenizer.tokenize(href) }
+
+    hrefs.zip(tokens).forEach { (href, token) ->
+      assertEquals(href, tokenizeWithPatterns(site, href), token)
+    }
+
+    // Make sure the corpus actually covers the interesting cases
+    assertTrue(tokens.any { token -> token is AnchorToken.FullQuote })
+    assertTrue(tokens.any { token -> token is AnchorToken.Quote })
+    assertTrue(tokens.any { token -> token is AnchorToken.BoardLink })
+    assertTrue(tokens.any { token -> token === AnchorToken.Link })
+  }
+
+  /**
+   * What CommentParser.matchAnchor() used to do.
+   * */
+  private fun tokenizeWithPatterns(site: SitePatterns, href: String): AnchorToken {
+    val externalMatcher = site.fullQuotePattern.matcher(href)
+    if (externalMatcher.find()) {
+      val threadNo = externalMatcher.group(2)!!.toLongOrNull()
+        ?: return AnchorToken.Link
+      val postNo = externalMatcher.group(3)!!.toLongOrNull()
+        ?: return AnchorToken.Link
+
+      return AnchorToken.FullQuote(externalMatcher.group(1)!!, threadNo, postNo)
+    }
+
+    val quoteMatcher = site.quotePattern.matcher(href)
+    if (quoteMatcher.matches()) {
+      val postNo = quoteMatcher.group(1)!!.toLongOrNull()
+        ?: return AnchorToken.Link
+
+      return AnchorToken.Quote(postNo)
+    }
+
+    val boardLinkMatcher = BOARD_LINK_PATTERN.matcher(href).takeIf { matcher -> matcher.matches() }
+      ?: BOARD_LINK_PATTERN_8CHAN.matcher(href)
+    if (boardLinkMatcher.matches()) {
+      return AnchorToken.BoardLink(boardLinkMatcher.group(1)!!)
+    }
+
+    val boardSearchMatcher = BOARD_SEARCH_PATTERN.matcher(href)
+    if (boardSearchMatcher.matches()) {
+      return AnchorToken.BoardSearch(boardSearchMatcher.group(1)!!, boardSearchMatcher.group(2)!!)
+    }
+
+    return AnchorToken.Link
+  }
+
+  private fun extractHrefs(fileName: String): List<String> {
+    val hrefs = mutableListOf<String>()
+
+    parseFixture(fileName) { node ->
+      val htmlTag = node.asTagOrNull()?.htmlTag
+      if (htmlTag != null && htmlTag.tagName == "a") {
+        htmlTag.attrUnescapedOrNull("href")?.let { href -> hrefs += href }
+      }
+    }
+
+    assertTrue(hrefs.isNotEmpty())
+    return hrefs
+  }
+
+  private fun extractDeadlinkTexts(fileName: String): List<String> {
+    val texts = mutableListOf<String>()
+
+    parseFixture(fileName) { node ->
+      val htmlTag = node.asTagOrNull()?.htmlTag
+      if (htmlTag != null && htmlTag.hasClass("deadlink")) {
+        texts += htmlTag.text()
+      }
+    }
+
+    assertTrue(texts.isNotEmpty())
+    return texts
+  }
+
+  private fun parseFixture(fileName: String, iterator: (HtmlNode) -> Unit) {
+    val fixture = javaClass.classLoader!!.getResourceAsStream(fileName)
+      .use { inputStream -> inputStream.readBytes().toString(Charsets.UTF_8) }
+
+    val htmlParser = HtmlParser()
+
+    // One comment per line
+    fixture.lines()
+      .filter { line -> line.isNotBlank() }
+      .forEach { comment -> htmlParser.parse(comment).nodes.forEach { node -> node.traverse(iterator) } }
+  }
+
+  private class SitePatterns(
+    val quotePattern: Pattern,
+    val fullQuotePattern: Pattern,
+    val quoteLinkFormat: QuoteLinkFormat
+  )
+
+  companion object {
+    private val DEFAULT_QUOTE_PATTERN = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/thread/(\\d*?)#p(\\d*)")
+    private val DEAD_QUOTE_PATTERN = Pattern.compile(">>(\\d+)")
+    private val BOARD_LINK_PATTERN = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/")
+    private val BOARD_LINK_PATTERN_8CHAN = Pattern.compile("/(.*?)/index.html")
+    private val BOARD_SEARCH_PATTERN = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/catalog#s=(.*)")
+
+    private val FOUR_CHAN = SitePatterns(
+      quotePattern = Pattern.compile("#p(\\d+)"),
+      fullQuotePattern = Pattern.compile("/(\\w+)/\\w+/(\\d+)#p(\\d+)"),
+      quoteLinkFormat = QuoteLinkFormat.FOUR_CHAN
+    )
+
+    private val VICHAN = SitePatterns(
+      quotePattern = Pattern.compile("#(\\d+)"),
+      fullQuotePattern = Pattern.compile("/(\\w+)/\\w+/(\\d+)\\.html#(\\d+)"),
+      quoteLinkFormat = QuoteLinkFormat(postAnchorPrefix = "#", threadPageSuffix = ".html")
+    )
+
+    private val LYNXCHAN = SitePatterns(
+      quotePattern = Pattern.compile("#(\\d+)"),
+      fullQuotePattern = Pattern.compile("\\/(\\w+)\\/res\\/(\\d+).html#(\\d+)"),
+      quoteLinkFormat = QuoteLinkFormat(postAnchorPrefix = "#", threadPathSegment = "res", threadPageSuffix = ".html")
+    )
+
+    private val TAIMABA = SitePatterns(
+      quotePattern = Pattern.compile("#(\\d+)"),
+      fullQuotePattern = Pattern.compile("/(\\w+)/thread/(\\d+)#(\\d+)"),
+      quoteLinkFormat = QuoteLinkFormat(postAnchorPrefix = "#", threadPathSegment = "thread")
+    )
+
+    // Hrefs that try to trip up a hand written matcher
+    private val EDGE_CASE_HREFS = listOf(
+      "",
+      "#",
+      "#p",
+      "p123",
+      "#p12a",
+      "##p1",
+      "/",
+      "//",
+      "///",
+      "/g//123#p1",
+      "//g/thread/1#p2",
+      "/g/thread/#p2",
+      "/g/thread/1#p",
+      "/g/thread/1#p2#p3",
+      "/g/thread/1#p2abc",
+      "/a/b/g/thread/1#p2",
+      "/a-b/g/thread/1#p2",
+      "/g/thread/1/g/thread/2#p3",
+      "/g/thread/1.html#2",
+      "/g/res/1.html#2",
+      "/g/res/1.html#p2",
+      "/b/thread/1#2",
+      "x/b/thread/1#2/b/thread/3#4",
+      "/g/thread/99999999999999999999#p1",
+      "/g/thread/1#p99999999999999999999",
+      "/g/thread/1#99999999999999999999",
+      "/g/thread/١٢٣#p1",
+      "/ü/thread/1#p2",
+      "//boards.4chan.org/",
+      "//boards.4chan.org//",
+      "//boards.4chan.org/g",
+      "//boards.4chan.org/g/catalog/",
+      "//boards.4chan.org/g/catalog#s=",
+      "//boards.4chan.org/g/catalog#s=a/catalog#s=b",
+      "//boards.4chan.org/g/catalog#s=ends/with/slash/",
+      "//boards.4chan.org.org/g/",
+      "//boards.4chanXorg/g/",
+      "//boards.4chan.org/g/\n",
+      "//boards.4chan.org/g\n/",
+      "//boards.4chan.org/g/catalog#s=new\nline",
+      "//boards.4chan.org/g/thread/123#p456\n",
+      "//boards.4channel.org/g/thread/#p",
+      "//boards.4channel.org/g/thread/1/thread/2#p3",
+      "//boards.4channel.org/thread/1#p2",
+      "//boards.4chan.org/g/thread/1#p2/",
+      "/index.html",
+      "//index.html",
+      "/a/index.html",
+      "/a/b/index.html",
+      "/a/indexXhtml",
+      "/a/index.htm",
+      "a/index.html",
+      "/a\n/index.html",
+      "https://example.com/g/thread/1#p2",
+      "https://example.com/?a=/b/&c=d"
+    )
+  }
+
+}
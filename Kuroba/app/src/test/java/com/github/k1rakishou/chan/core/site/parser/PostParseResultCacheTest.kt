@@ -0,0 +1,183 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+import android.text.Spannable
+import android.text.SpannableString
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class PostParseResultCacheTest {
+  private val postParser = CountingPostParser()
+  private val postParseResultCache = PostParseResultCache()
+
+  @Test
+  fun `unchanged refresh does not invoke the parser`() {
+    refresh(posts())
+    assertEquals(POSTS.size, postParser.parsedCommentsCount)
+
+    val postBuilders = posts()
+    refresh(postBuilders)
+    assertEquals(POSTS.size, postParser.parsedCommentsCount)
+
+    postBuilders.forEachIndexed { index, postBuilder ->
+      assertEquals("parsed ${POSTS[index].second}", postBuilder.postCommentBuilder.getComment().toString())
+    }
+
+    val expectedReplies = setOf(PostDescriptor.create(BOARD_DESCRIPTOR, OP_NO, OP_NO))
+    assertEquals(expectedReplies, postBuilders[1].repliesToIds)
+  }
+
+  @Test
+  fun `only changed posts are parsed again`() {
+    refresh(posts())
+    postParser.parsedCommentsCount = 0
+
+    refresh(posts(changedPostNo = 3L))
+    assertEquals(1, postParser.parsedCommentsCount)
+  }
+
+  @Test
+  fun `invalidation makes every post parsed again`() {
+    refresh(posts())
+    postParser.parsedCommentsCount = 0
+
+    postParseResultCache.invalidate()
+    assertEquals(0, postParseResultCache.size())
+
+    refresh(posts())
+    assertEquals(POSTS.size, postParser.parsedCommentsCount)
+  }
+
+  @Test
+  fun `parser settings change makes every post parsed again`() {
+    refresh(posts(), parserSettingsHash = 1)
+    postParser.parsedCommentsCount = 0
+
+    refresh(posts(), parserSettingsHash = 2)
+    assertEquals(POSTS.size, postParser.parsedCommentsCount)
+  }
+
+  @Test
+  fun `post is parsed again when the parser callback answers differently`() {
+    refresh(posts(), internalIds = POSTS.map { it.first }.toSet())
+    postParser.parsedCommentsCount = 0
+
+    // The OP is not a part of the thread anymore so the reply to it must be parsed again
+    refresh(posts(), internalIds = POSTS.map { it.first }.toSet() - OP_NO)
+    assertEquals(1, postParser.parsedCommentsCount)
+  }
+
+  @Test
+  fun `cache is bounded`() {
+    val smallCache = PostParseResultCache(maxSize = 2)
+    refresh(posts(), cache = smallCache)
+
+    assertEquals(2, smallCache.size())
+    assertTrue(POSTS.size > smallCache.size())
+  }
+
+  private fun refresh(
+    postBuilders: List<ChanPostBuilder>,
+    parserSettingsHash: Int = 0,
+    internalIds: Set<Long> = POSTS.map { it.first }.toSet(),
+    cache: PostParseResultCache = postParseResultCache
+  ) {
+    val parserVersion = cache.calculateParserVersion(
+      parserSettingsHash = parserSettingsHash,
+      postParser = postParser,
+      isParsingCatalog = false
+    )
+
+    runBlocking {
+      postBuilders.forEach { postBuilder ->
+        PostParseWorker(
+          postBuilder = postBuilder,
+          postParser = postParser,
+          internalIds = internalIds,
+          savedPosts = emptySet(),
+          hiddenOrRemovedPosts = emptyMap(),
+          isParsingCatalog = false,
+          postParseResultCache = cache,
+          parserVersion = parserVersion
+        ).parse()
+      }
+    }
+  }
+
+  private fun posts(changedPostNo: Long? = null): List<ChanPostBuilder> {
+    return POSTS.map { (postNo, comment) ->
+      val actualComment = if (postNo == changedPostNo) "${comment} (edited)" else comment
+
+      ChanPostBuilder()
+        .boardDescriptor(BOARD_DESCRIPTOR)
+        .id(postNo)
+        .opId(OP_NO)
+        .op(postNo == OP_NO)
+        .setUnixTimestampSeconds(1_600_000_000L + postNo)
+        .name("Anonymous")
+        .comment(actualComment)
+    }
+  }
+
+  /**
+   * Only counts the comments that actually had to be parsed. Quotes (">>123") are turned into
+   * replies when the quoted post is internal.
+   * */
+  private class CountingPostParser : PostParser {
+    @Volatile
+    var parsedCommentsCount = 0
+
+    override fun parseNameAndSubject(builder: ChanPostBuilder) {
+    }
+
+    override fun parseFull(builder: ChanPostBuilder, callback: PostParser.Callback): ChanPost? {
+      parseNameAndSubject(builder)
+
+      if (!builder.postCommentBuilder.commentAlreadyParsed()) {
+        val parsedComment = parseComment(builder, builder.postCommentBuilder.getUnparsedComment(), callback)
+        builder.postCommentBuilder.setParsedComment(parsedComment)
+      }
+
+      // Building a real post requires way more data than this test needs
+      return null
+    }
+
+    override fun parseComment(
+      post: ChanPostBuilder,
+      commentRaw: CharSequence,
+      callback: PostParser.Callback
+    ): Spannable {
+      ++parsedCommentsCount
+
+      QUOTE_REGEX.findAll(commentRaw).forEach { matchResult ->
+        val quotedPostNo = matchResult.groupValues[1].toLong()
+
+        if (callback.isInternal(quotedPostNo)) {
+          post.addReplyTo(quotedPostNo)
+        }
+      }
+
+      return SpannableString("parsed ${commentRaw}")
+    }
+  }
+
+  companion object {
+    private const val OP_NO = 1L
+    private val BOARD_DESCRIPTOR = BoardDescriptor.create("test", "g")
+    private val QUOTE_REGEX = Regex(">>(\\d+)")
+
+    private val POSTS = listOf(
+      1L to "Thread",
+      2L to ">>1 reply",
+      3L to "Another reply"
+    )
+  }
+}
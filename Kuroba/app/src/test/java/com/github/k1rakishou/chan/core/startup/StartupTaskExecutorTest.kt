@@ -0,0 +1,261 @@
+package com.github.k1rakishou.chan.core.startup
+
+import com.google.gson.JsonParser
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestCoroutineScope
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.StringWriter
+
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class StartupTaskExecutorTest {
+
+  @Test
+  fun `every task starts only after all of its dependencies are done`() {
+    runBlockingTest {
+      val timeline = Timeline(this)
+
+      val graph = StartupTaskGraph.build(
+        listOf(
+          timeline.task("D", 10L, "B", "C"),
+          timeline.task("A", 100L),
+          timeline.task("B", 50L, "A"),
+          timeline.task("C", 200L, "A")
+        )
+      )
+
+      val startupRun = createExecutor(maxParallelism = 4).execute(graph)
+      startupRun.awaitAllTasks()
+
+      graph.tasks.forEach { task ->
+        task.dependencies.forEach { dependency ->
+          assertTrue(
+            "${task.name} started before ${dependency} finished",
+            timeline.startedAt(task.name) >= timeline.finishedAt(dependency)
+          )
+        }
+      }
+
+      // B and C ran at the same time and D only waited for the slowest of them
+      assertEquals(100L, timeline.startedAt("B"))
+      assertEquals(100L, timeline.startedAt("C"))
+      assertEquals(300L, timeline.startedAt("D"))
+      assertEquals(310L, currentTime)
+    }
+  }
+
+  @Test
+  fun `independent tasks run in parallel up to the limit`() {
+    runBlockingTest {
+      val timeline = Timeline(this)
+      val tasks = (1..6).map { index -> timeline.task("Task$index", 100L) }
+
+      createExecutor(maxParallelism = 2).execute(StartupTaskGraph.build(tasks)).awaitAllTasks()
+      assertEquals(2, timeline.maxRunning)
+      assertEquals(300L, currentTime)
+
+      val unlimitedTimeline = Timeline(this)
+      val unlimitedTasks = (1..6).map { index -> unlimitedTimeline.task("Task$index", 100L) }
+      val startedAt = currentTime
+
+      createExecutor(maxParallelism = 6).execute(StartupTaskGraph.build(unlimitedTasks)).awaitAllTasks()
+      assertEquals(6, unlimitedTimeline.maxRunning)
+      assertEquals(100L, currentTime - startedAt)
+    }
+  }
+
+  @Test
+  fun `tasks without dependencies start before execute returns`() {
+    runBlockingTest {
+      val started = mutableListOf<String>()
+
+      val graph = StartupTaskGraph.build(
+        listOf(
+          StartupTask(name = "A") { started += "A" },
+          StartupTask(name = "B", dependencies = setOf("A")) { started += "B" },
+          StartupTask(name = "C") { started += "C"; delay(100L) },
+          StartupTask(name = "D", dependencies = setOf("C")) { started += "D" }
+        )
+      )
+
+      val startupRun = createExecutor(maxParallelism = 4).execute(graph)
+
+      assertEquals(listOf("A", "B", "C"), started)
+      assertFalse(startupRun.isDone())
+
+      startupRun.awaitAllTasks()
+      assertEquals(listOf("A", "B", "C", "D"), started)
+    }
+  }
+
+  @Test
+  fun `waiting for the first frame tasks does not wait for the rest`() {
+    runBlockingTest {
+      val timeline = Timeline(this)
+
+      val graph = StartupTaskGraph.build(
+        listOf(
+          timeline.task("Sites", 100L),
+          timeline.task("Boards", 50L, "Sites", requiredForFirstFrame = true),
+          timeline.task("Bookmarks", 1000L),
+          timeline.task("Watcher", 10L, "Bookmarks")
+        )
+      )
+
+      val startupRun = createExecutor(maxParallelism = 4).execute(graph)
+
+      startupRun.awaitFirstFrameTasks()
+      assertEquals(150L, currentTime)
+      assertFalse(startupRun.isDone())
+
+      startupRun.awaitAllTasks()
+      assertEquals(1010L, currentTime)
+    }
+  }
+
+  @Test
+  fun `first frame tasks get the permits before the other tasks`() {
+    runBlockingTest {
+      val timeline = Timeline(this)
+
+      val graph = StartupTaskGraph.build(
+        listOf(
+          timeline.task("Sites", 100L),
+          timeline.task("Bookmarks", 100L),
+          timeline.task("Archives", 100L),
+          timeline.task("Boards", 50L, "Sites", requiredForFirstFrame = true)
+        )
+      )
+
+      val startupRun = createExecutor(maxParallelism = 1).execute(graph)
+
+      startupRun.awaitFirstFrameTasks()
+      // Boards were ready after the other tasks were already waiting but still went first
+      assertEquals(150L, currentTime)
+      assertEquals(listOf("Sites", "Boards"), timeline.startOrder.take(2))
+
+      startupRun.awaitAllTasks()
+      assertEquals(350L, currentTime)
+    }
+  }
+
+  @Test
+  fun `failed task is recorded and does not block its dependents`() {
+    runBlockingTest {
+      val startupTrace = StartupTrace(nanoTime = { currentTime * NANOS_IN_MILLI })
+      var dependentRan = false
+
+      val graph = StartupTaskGraph.build(
+        listOf(
+          StartupTask(name = "Failing") { delay(10L); throw IllegalStateException("Boom") },
+          StartupTask(name = "Dependent", dependencies = setOf("Failing")) { dependentRan = true }
+        )
+      )
+
+      StartupTaskExecutor(this, 2, startupTrace).execute(graph).awaitAllTasks()
+
+      val eventsByName = startupTrace.events().associateBy { event -> event.name }
+      assertTrue(dependentRan)
+      assertEquals("Boom", eventsByName["Failing"]!!.error)
+      assertNull(eventsByName["Dependent"]!!.error)
+    }
+  }
+
+  @Test
+  fun `trace contains every task and the critical path to the first frame`() {
+    runBlockingTest {
+      val startupTrace = StartupTrace(nanoTime = { currentTime * NANOS_IN_MILLI })
+
+      val graph = StartupTaskGraph.build(
+        listOf(
+          StartupTask(name = "Fast") { delay(10L) },
+          StartupTask(name = "Slow") { delay(100L) },
+          StartupTask(name = "Boards", dependencies = setOf("Fast", "Slow"), requiredForFirstFrame = true) { delay(20L) },
+          StartupTask(name = "Background") { delay(500L) }
+        )
+      )
+
+      val startupRun = StartupTaskExecutor(this, 1, startupTrace).execute(graph)
+      startupRun.awaitFirstFrameTasks()
+      startupTrace.milestone("First frame tasks done")
+      startupRun.awaitAllTasks()
+
+      assertEquals(listOf("Slow", "Boards"), startupTrace.firstFrameCriticalPath(graph).map { event -> event.name })
+
+      val writer = StringWriter()
+      startupTrace.writeTo(writer)
+
+      val traceEvents = JsonParser.parseString(writer.toString()).asJsonObject
+        .getAsJsonArray("traceEvents")
+        .map { element -> element.asJsonObject }
+
+      val completeEvents = traceEvents
+        .filter { event -> event.get("ph").asString == "X" && event.get("cat").asString != "waiting" }
+        .associateBy { event -> event.get("name").asString }
+
+      assertEquals(setOf("Fast", "Slow", "Boards", "Background"), completeEvents.keys)
+      assertEquals("first_frame", completeEvents["Boards"]!!.get("cat").asString)
+      assertEquals(20_000L, completeEvents["Boards"]!!.get("dur").asLong)
+      // Only one task at a time so the tasks that were ready had to wait for a permit
+      assertTrue(traceEvents.any { event -> event.get("cat")?.asString == "waiting" })
+      assertTrue(traceEvents.any { event -> event.get("ph").asString == "i" })
+    }
+  }
+
+  private fun TestCoroutineScope.createExecutor(maxParallelism: Int): StartupTaskExecutor {
+    return StartupTaskExecutor(
+      scope = this,
+      maxParallelism = maxParallelism,
+      startupTrace = StartupTrace(nanoTime = { currentTime * NANOS_IN_MILLI })
+    )
+  }
+
+  /**
+   * Creates synthetic tasks that take the given amount of (virtual) time and remembers when they
+   * started and finished.
+   * */
+  private class Timeline(private val scope: TestCoroutineScope) {
+    private val startedAt = mutableMapOf<String, Long>()
+    private val finishedAt = mutableMapOf<String, Long>()
+    private var running = 0
+
+    val startOrder = mutableListOf<String>()
+
+    var maxRunning = 0
+      private set
+
+    fun task(
+      name: String,
+      durationMs: Long,
+      vararg dependencies: String,
+      requiredForFirstFrame: Boolean = false
+    ): StartupTask {
+      return StartupTask(name, dependencies.toSet(), requiredForFirstFrame) {
+        startedAt[name] = scope.currentTime
+        startOrder += name
+        maxRunning = maxOf(maxRunning, ++running)
+
+        delay(durationMs)
+
+        --running
+        finishedAt[name] = scope.currentTime
+      }
+    }
+
+    fun startedAt(name: String): Long = startedAt[name]!!
+    fun finishedAt(name: String): Long = finishedAt[name]!!
+  }
+
+  companion object {
+    private const val NANOS_IN_MILLI = 1_000_000L
+  }
+
+}
@@ -0,0 +1,91 @@
+package com.github.k1rakishou.chan.core.startup
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+
+class StartupTaskGraphTest {
+
+  @Test
+  fun `tasks are sorted after their dependencies and otherwise keep the declared order`() {
+    val graph = StartupTaskGraph.build(
+      listOf(
+        task("D", "B", "C"),
+        task("A"),
+        task("B", "A"),
+        task("E"),
+        task("C", "A")
+      )
+    )
+
+    assertEquals(listOf("A", "B", "E", "C", "D"), graph.tasks.map { task -> task.name })
+  }
+
+  @Test
+  fun `cycle is detected and reported`() {
+    val tasks = listOf(
+      task("A"),
+      task("B", "A", "D"),
+      task("C", "B"),
+      task("D", "C"),
+      task("E", "D")
+    )
+
+    try {
+      StartupTaskGraph.build(tasks)
+      fail("Cycle was not detected")
+    } catch (error: StartupTaskGraph.CyclicDependencyException) {
+      assertEquals(listOf("B", "D", "C", "B"), error.cycle)
+    }
+  }
+
+  @Test
+  fun `task that depends on itself is a cycle`() {
+    try {
+      StartupTaskGraph.build(listOf(task("A", "A")))
+      fail("Cycle was not detected")
+    } catch (error: StartupTaskGraph.CyclicDependencyException) {
+      assertEquals(listOf("A", "A"), error.cycle)
+    }
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `unknown dependency is not allowed`() {
+    StartupTaskGraph.build(listOf(task("A", "B")))
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `duplicate task is not allowed`() {
+    StartupTaskGraph.build(listOf(task("A"), task("A")))
+  }
+
+  @Test
+  fun `first frame tasks include everything they depend on`() {
+    val graph = StartupTaskGraph.build(
+      listOf(
+        task("A"),
+        task("B", "A"),
+        task("C", "B", requiredForFirstFrame = true),
+        task("D", "C"),
+        task("E", requiredForFirstFrame = true),
+        task("F")
+      )
+    )
+
+    assertEquals(setOf("A", "B", "C", "E"), graph.firstFrameTaskNames())
+  }
+
+  private fun task(
+    name: String,
+    vararg dependencies: String,
+    requiredForFirstFrame: Boolean = false
+  ): StartupTask {
+    return StartupTask(
+      name = name,
+      dependencies = dependencies.toSet(),
+      requiredForFirstFrame = requiredForFirstFrame,
+      action = {}
+    )
+  }
+
+}
@@ -0,0 +1,261 @@
+package com.github.k1rakishou.chan.core.usecase
+
+import androidx.room.Room
+import com.github.k1rakishou.chan.core.helper.FilterEngine
+import com.github.k1rakishou.chan.core.manager.ChanFilterManager
+import com.github.k1rakishou.chan.core.site.parser.search.SimpleCommentParser
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.board.pages.BoardPage
+import com.github.k1rakishou.model.data.board.pages.BoardPages
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.FilterAction
+import com.github.k1rakishou.model.data.filter.FilterWatchCatalogInfoObject
+import com.github.k1rakishou.model.data.filter.FilterWatchCatalogThreadInfoObject
+import com.github.k1rakishou.model.repository.ChanFilterWatchRepository
+import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
+import com.github.k1rakishou.model.source.local.ChanFilterWatchLocalSource
+import com.google.gson.JsonParser
+import dagger.Lazy
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class FilterWatchIncrementalEvaluatorTest {
+  private val boardDescriptor = BoardDescriptor.create("4chan", "g")
+  private val appScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+  private lateinit var database: KurobaDatabase
+  private lateinit var chanFilterWatchRepository: ChanFilterWatchRepository
+  private lateinit var evaluator: FilterWatchIncrementalEvaluator
+
+  @Before
+  fun setUp() {
+    val context = RuntimeEnvironment.application
+    database = Room.inMemoryDatabaseBuilder(context, KurobaDatabase::class.java).build()
+
+    chanFilterWatchRepository = ChanFilterWatchRepository(
+      database,
+      appScope,
+      ChanFilterWatchLocalSource(database, ChanDescriptorCache(database))
+    )
+
+    val appConstants = AppConstants(
+      context = context,
+      flavorType = AndroidUtils.FlavorType.Dev,
+      isLowRamDevice = false,
+      kurobaExCustomUserAgent = "",
+      overrideUserAgent = { "" },
+      maxPostsInDatabaseSettingValue = 1000,
+      maxThreadsInDatabaseSettingValue = 100
+    )
+
+    // FilterEngine only needs the manager to create filters, matching doesn't touch it
+    val chanFilterManager = ChanFilterManager(false, appScope, unused(), unused(), unused(), unused(), unused())
+
+    evaluator = FilterWatchIncrementalEvaluator(
+      appConstants = appConstants,
+      simpleCommentParser = Lazy { SimpleCommentParser() },
+      filterEngine = FilterEngine(chanFilterManager),
+      chanFilterWatchRepository = chanFilterWatchRepository
+    )
+  }
+
+  @After
+  fun tearDown() {
+    appScope.cancel()
+    database.close()
+  }
+
+  @Test
+  fun `second check only evaluates new and edited threads`() {
+    val filters = listOf(watchFilter(id = 1, pattern = "kotlin"))
+
+    val firstResult = runCheck(filters, catalogJson(threadsCount = 20))
+    assertEquals(20, firstResult.evaluatedCount)
+    assertEquals(0, firstResult.reusedCount)
+    assertEquals(setOf(5L, 15L), matchedThreadNos(firstResult))
+    assertEquals(20, storedEvaluatedThreads().size)
+
+    val secondResult = runCheck(filters, catalogJson(threadsCount = 20))
+    assertEquals(0, secondResult.evaluatedCount)
+    assertEquals(20, secondResult.reusedCount)
+    assertEquals(setOf(5L, 15L), matchedThreadNos(secondResult))
+
+    val thirdResult = runCheck(
+      filters,
+      catalogJson(threadsCount = 22, editedThreads = mapOf(3L to "thread 3<br>now with kotlin"))
+    )
+
+    // Two new threads and one edited thread
+    assertEquals(3, thirdResult.evaluatedCount)
+    assertEquals(19, thirdResult.reusedCount)
+    assertEquals(setOf(3L, 5L, 15L), matchedThreadNos(thirdResult))
+    assertEquals(22, storedEvaluatedThreads().size)
+  }
+
+  @Test
+  fun `filter edit invalidates every evaluated thread`() {
+    val firstResult = runCheck(listOf(watchFilter(id = 1, pattern = "kotlin")), catalogJson(threadsCount = 20))
+    assertEquals(20, firstResult.evaluatedCount)
+
+    val result = runCheck(listOf(watchFilter(id = 1, pattern = "rust")), catalogJson(threadsCount = 20))
+
+    assertEquals(20, result.evaluatedCount)
+    assertEquals(0, result.reusedCount)
+    assertEquals(setOf(7L), matchedThreadNos(result))
+
+    val storedMatchedThreadNos = storedEvaluatedThreads().values
+      .filter { evaluatedThread -> evaluatedThread.matchedFilterId != null }
+      .map { evaluatedThread -> evaluatedThread.threadDescriptor.threadNo }
+      .toSet()
+    assertEquals(setOf(7L), storedMatchedThreadNos)
+  }
+
+  @Test
+  fun `filter set version depends on filter order and content`() {
+    val first = watchFilter(id = 1, pattern = "a")
+    val second = watchFilter(id = 2, pattern = "b")
+
+    val version = evaluator.calculateFilterSetVersion(listOf(first, second))
+
+    assertEquals(version, evaluator.calculateFilterSetVersion(listOf(first, second)))
+    assertNotEquals(version, evaluator.calculateFilterSetVersion(listOf(second, first)))
+    assertNotEquals(version, evaluator.calculateFilterSetVersion(listOf(first, watchFilter(id = 2, pattern = "c"))))
+  }
+
+  @Test
+  fun `catalog fetch is skipped only when nothing was modified`() {
+    val filters = listOf(watchFilter(id = 1, pattern = "kotlin"))
+    val filterSetVersion = evaluator.calculateFilterSetVersion(filters)
+    val boardPages = boardPages(threadsCount = 20) { 1000L }
+
+    runCheck(filters, catalogJson(threadsCount = 20), FilterWatchIncrementalEvaluator.lastModifiedMap(boardPages))
+    val storage = storedEvaluatedThreads()
+
+    assertTrue(evaluator.canSkipCatalogFetch(boardPages, storage, filterSetVersion) { true })
+
+    // Previously matched thread's bookmark was deleted
+    assertFalse(evaluator.canSkipCatalogFetch(boardPages, storage, filterSetVersion) { false })
+
+    // Thread was bumped
+    val bumpedBoardPages = boardPages(threadsCount = 20) { threadNo -> if (threadNo == 10L) 2000L else 1000L }
+    assertFalse(evaluator.canSkipCatalogFetch(bumpedBoardPages, storage, filterSetVersion) { true })
+
+    // New thread
+    assertFalse(evaluator.canSkipCatalogFetch(boardPages(threadsCount = 21) { 1000L }, storage, filterSetVersion) { true })
+
+    // Filters were changed
+    val newVersion = evaluator.calculateFilterSetVersion(listOf(watchFilter(id = 1, pattern = "java")))
+    assertFalse(evaluator.canSkipCatalogFetch(boardPages, storage, newVersion) { true })
+  }
+
+  private fun runCheck(
+    filters: List<ChanFilter>,
+    catalogJson: String,
+    lastModifiedMap: Map<ChanDescriptor.ThreadDescriptor, Long> = emptyMap()
+  ): FilterWatchIncrementalEvaluator.EvaluationResult {
+    return runBlocking {
+      val catalogFetchResult = BookmarkFilterWatchableThreadsUseCase.CatalogFetchResult.Success(
+        filterWatchCatalogInfoObject = parseCatalog(catalogJson),
+        prevEvaluatedThreads = evaluator.loadPrevEvaluatedThreads(boardDescriptor),
+        lastModifiedMap = lastModifiedMap
+      )
+
+      return@runBlocking evaluator.evaluate(
+        successCatalogFetchResults = listOf(catalogFetchResult),
+        enabledWatchFilters = filters,
+        filterSetVersion = evaluator.calculateFilterSetVersion(filters),
+        now = NOW
+      )
+    }
+  }
+
+  private fun storedEvaluatedThreads() = runBlocking {
+    evaluator.loadPrevEvaluatedThreads(boardDescriptor)
+  }
+
+  private fun matchedThreadNos(result: FilterWatchIncrementalEvaluator.EvaluationResult): Set<Long> {
+    return result.matchedCatalogThreads
+      .map { catalogThread -> catalogThread.threadDescriptor.threadNo }
+      .toSet()
+  }
+
+  private fun <T> unused(): Lazy<T> = Lazy { throw IllegalStateException("Not used by the filter matching") }
+
+  private fun watchFilter(id: Long, pattern: String): ChanFilter {
+    return ChanFilter(
+      filterDatabaseId = id,
+      pattern = pattern,
+      action = FilterAction.WATCH.id
+    )
+  }
+
+  private fun boardPages(threadsCount: Int, lastModified: (Long) -> Long): BoardPages {
+    val threads = LinkedHashMap<ChanDescriptor.ThreadDescriptor, Long>()
+
+    (1L..threadsCount.toLong()).forEach { threadNo ->
+      threads[ChanDescriptor.ThreadDescriptor.create(boardDescriptor, threadNo)] = lastModified(threadNo)
+    }
+
+    return BoardPages(boardDescriptor, listOf(BoardPage(1, 1, threads)))
+  }
+
+  private fun catalogJson(threadsCount: Int, editedThreads: Map<Long, String> = emptyMap()): String {
+    val threads = (1L..threadsCount.toLong()).joinToString(separator = ",") { threadNo ->
+      val comment = editedThreads[threadNo]
+        ?: when (threadNo) {
+          5L, 15L -> "thread $threadNo<br>about <b>kotlin</b>"
+          7L -> "thread $threadNo<br>about rust"
+          else -> "thread $threadNo"
+        }
+
+      """{"no":$threadNo,"sub":"Subject $threadNo","com":"$comment"}"""
+    }
+
+    return """[{"page":1,"threads":[$threads]}]"""
+  }
+
+  private fun parseCatalog(json: String): FilterWatchCatalogInfoObject {
+    val catalogThreads = mutableListOf<FilterWatchCatalogThreadInfoObject>()
+
+    JsonParser.parseString(json).asJsonArray.forEach { page ->
+      page.asJsonObject.getAsJsonArray("threads").forEach { thread ->
+        val threadObject = thread.asJsonObject
+
+        catalogThreads += FilterWatchCatalogThreadInfoObject(
+          threadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+            boardDescriptor,
+            threadObject.get("no").asLong
+          ),
+          commentRaw = threadObject.get("com").asString,
+          subjectRaw = threadObject.get("sub").asString,
+          thumbnailUrl = null
+        )
+      }
+    }
+
+    return FilterWatchCatalogInfoObject(boardDescriptor, catalogThreads)
+  }
+
+  companion object {
+    private const val NOW = 1_000_000_000L
+  }
+
+}
@@ -0,0 +1,267 @@
+package com.github.k1rakishou.chan.core.watcher
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class BookmarkPollSchedulerTest {
+  private var now = 0L
+
+  @Test
+  fun `polls never exceed the budget during any minute`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val threads = (1L..200L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = 5_000L) }
+
+    val polls = simulate(scheduler, threads, durationMs = 30 * ONE_MINUTE_MS)
+
+    val pollTimes = polls.map { poll -> poll.time }.sorted()
+    pollTimes.forEachIndexed { index, pollTime ->
+      val pollsDuringMinute = pollTimes.subList(index, pollTimes.size).count { time -> time < pollTime + ONE_MINUTE_MS }
+      assertTrue("${pollsDuringMinute} polls during the minute starting at ${pollTime}", pollsDuringMinute <= 60)
+    }
+
+    // The budget is used up, not wasted
+    assertTrue("polls=${pollTimes.size}", pollTimes.size >= 60 * 29)
+  }
+
+  @Test
+  fun `bookmarks share the budget fairly`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val threads = (1L..200L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = 5_000L) }
+
+    val polls = simulate(scheduler, threads, durationMs = 30 * ONE_MINUTE_MS)
+    val pollsPerThread = threads.map { thread -> polls.count { poll -> poll.threadNo == thread.threadNo } }
+
+    assertTrue("pollsPerThread=${pollsPerThread}", pollsPerThread.maxOrNull()!! - pollsPerThread.minOrNull()!! <= 1)
+
+    // 200 bookmarks with 60 polls per minute means every bookmark is polled every 200 / 60 minutes
+    threads.forEach { thread ->
+      val maxGap = maxGapBetweenPolls(polls, thread.threadNo, until = 30 * ONE_MINUTE_MS)
+      assertTrue("threadNo=${thread.threadNo}, maxGap=${maxGap}", maxGap <= 4 * ONE_MINUTE_MS)
+    }
+  }
+
+  @Test
+  fun `slow threads are not starved by the fast ones`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 20)
+    val fastThreads = (1L..15L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = 1_000L) }
+    val deadThreads = (100L..150L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = null) }
+
+    val duration = 60 * ONE_MINUTE_MS
+    val polls = simulate(scheduler, fastThreads + deadThreads, durationMs = duration)
+
+    deadThreads.forEach { thread ->
+      val maxGap = maxGapBetweenPolls(polls, thread.threadNo, until = duration)
+
+      // The max interval plus the time the budget made it wait
+      assertTrue(
+        "threadNo=${thread.threadNo}, maxGap=${maxGap}",
+        maxGap <= BookmarkPollScheduler.MAX_POLL_INTERVAL_MS + 5 * ONE_MINUTE_MS
+      )
+    }
+  }
+
+  @Test
+  fun `active threads are polled with the min interval while dead ones back off`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val activeThreads = (1L..5L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = 10_000L) }
+    val deadThreads = (100L..144L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = null) }
+
+    val duration = 60 * ONE_MINUTE_MS
+    val polls = simulate(scheduler, activeThreads + deadThreads, durationMs = duration)
+    val warmedUpPolls = polls.filter { poll -> poll.time >= 30 * ONE_MINUTE_MS }
+
+    activeThreads.forEach { thread ->
+      // Every new post is seen no later than the min interval after it was posted
+      val maxLatency = maxPostLatency(warmedUpPolls, thread)
+      assertTrue("threadNo=${thread.threadNo}, maxLatency=${maxLatency}", maxLatency <= MIN_POLL_INTERVAL_MS)
+    }
+
+    deadThreads.forEach { thread ->
+      val pollTimes = warmedUpPolls.filter { poll -> poll.threadNo == thread.threadNo }.map { poll -> poll.time }
+
+      pollTimes.zipWithNext().forEach { (prev, next) ->
+        assertEquals(BookmarkPollScheduler.MAX_POLL_INTERVAL_MS, next - prev)
+      }
+    }
+
+    // The old way (every bookmark on the same 30 second interval) would have been 50 * 2 * 30 polls
+    assertTrue("polls=${warmedUpPolls.size}", warmedUpPolls.size < 50 * 2 * 30 / 5)
+  }
+
+  @Test
+  fun `reply to me and last page make a slow thread fast again`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val repliedThread = SimulatedThread(1L, postEveryMs = null, replyToMeAt = 20 * ONE_MINUTE_MS)
+    val lastPageThread = SimulatedThread(2L, postEveryMs = null, lastPageFrom = 20 * ONE_MINUTE_MS)
+
+    val polls = simulate(scheduler, listOf(repliedThread, lastPageThread), durationMs = 40 * ONE_MINUTE_MS)
+
+    val repliedThreadPolls = polls.filter { poll -> poll.threadNo == 1L && poll.time > 20 * ONE_MINUTE_MS }
+    // The reply is only seen by the first poll after it was posted (it had backed off by then) but
+    // the thread is polled with the min interval after that
+    repliedThreadPolls.map { poll -> poll.time }.zipWithNext().forEach { (prev, next) ->
+      assertEquals(MIN_POLL_INTERVAL_MS, next - prev)
+    }
+
+    val lastPagePollTimes = polls
+      .filter { poll -> poll.threadNo == 2L && poll.time > 30 * ONE_MINUTE_MS }
+      .map { poll -> poll.time }
+
+    lastPagePollTimes.zipWithNext().forEach { (prev, next) ->
+      assertTrue("prev=${prev}, next=${next}", next - prev <= 2 * MIN_POLL_INTERVAL_MS)
+    }
+  }
+
+  @Test
+  fun `every bookmark uses the min interval when not adaptive`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60, adaptive = false)
+    val threads = (1L..10L).map { threadNo -> SimulatedThread(threadNo, postEveryMs = null) }
+
+    val polls = simulate(scheduler, threads, durationMs = 10 * ONE_MINUTE_MS)
+
+    threads.forEach { thread ->
+      val pollTimes = polls.filter { poll -> poll.threadNo == thread.threadNo }.map { poll -> poll.time }
+      assertEquals((0L until 10 * ONE_MINUTE_MS step MIN_POLL_INTERVAL_MS).toList(), pollTimes)
+    }
+  }
+
+  @Test
+  fun `new bookmarks are due right away and removed ones are forgotten`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val first = threadDescriptor(1L)
+    val second = threadDescriptor(2L)
+
+    scheduler.sync(listOf(first))
+    assertEquals(listOf(first), scheduler.takeDue())
+    scheduler.onPolled(first, BookmarkPollScheduler.Observation(10, 0, false))
+
+    now += 1000L
+    scheduler.sync(listOf(first, second))
+    assertEquals(listOf(second), scheduler.takeDue())
+    scheduler.onPolled(second, BookmarkPollScheduler.Observation(10, 0, false))
+
+    scheduler.pollNow(first)
+    scheduler.sync(listOf(second))
+    assertEquals(emptyList<ChanDescriptor.ThreadDescriptor>(), scheduler.takeDue())
+    assertEquals(1, scheduler.trackedBookmarksCount())
+    assertEquals(now + MIN_POLL_INTERVAL_MS, scheduler.nextWakeUpAt())
+  }
+
+  @Test
+  fun `manual refresh makes a backed off bookmark due right away`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val thread = threadDescriptor(1L)
+
+    scheduler.sync(listOf(thread))
+    scheduler.takeDue()
+    scheduler.onPolled(thread, BookmarkPollScheduler.Observation(10, 0, false))
+
+    now += 1000L
+    assertEquals(emptyList<ChanDescriptor.ThreadDescriptor>(), scheduler.takeDue())
+
+    scheduler.pollNow(thread)
+    assertEquals(now, scheduler.nextPollAt(thread))
+    assertEquals(listOf(thread), scheduler.takeDue())
+  }
+
+  @Test
+  fun `bookmarks due soon are taken together`() {
+    val scheduler = createScheduler(maxRequestsPerMinute = 60)
+    val first = threadDescriptor(1L)
+    val second = threadDescriptor(2L)
+
+    scheduler.sync(listOf(first))
+    scheduler.takeDue()
+    scheduler.onPolled(first, BookmarkPollScheduler.Observation(10, 0, false))
+
+    now += 5_000L
+    scheduler.sync(listOf(first, second))
+    scheduler.takeDue()
+    scheduler.onPolled(second, BookmarkPollScheduler.Observation(10, 0, false))
+
+    now = 25_000L
+    assertEquals(emptyList<ChanDescriptor.ThreadDescriptor>(), scheduler.takeDue())
+    assertEquals(listOf(first, second), scheduler.takeDue(batchWindowMs = 10_000L))
+  }
+
+  private fun createScheduler(maxRequestsPerMinute: Int, adaptive: Boolean = true): BookmarkPollScheduler {
+    now = 0L
+
+    return BookmarkPollScheduler(
+      maxRequestsPerMinute = maxRequestsPerMinute,
+      currentTimeMs = { now }
+    ).also { scheduler -> scheduler.updateSettings(MIN_POLL_INTERVAL_MS, adaptive) }
+  }
+
+  /**
+   * Runs the watcher loop on a virtual clock, waking up exactly when the scheduler asks to.
+   * */
+  private fun simulate(
+    scheduler: BookmarkPollScheduler,
+    threads: List<SimulatedThread>,
+    durationMs: Long
+  ): List<Poll> {
+    val polls = mutableListOf<Poll>()
+    val threadsByDescriptor = threads.associateBy { thread -> threadDescriptor(thread.threadNo) }
+
+    scheduler.sync(threadsByDescriptor.keys)
+
+    while (now < durationMs) {
+      scheduler.takeDue().forEach { threadDescriptor ->
+        val thread = threadsByDescriptor[threadDescriptor]!!
+        polls += Poll(thread.threadNo, now)
+
+        scheduler.onPolled(threadDescriptor, thread.observe(now))
+      }
+
+      now = maxOf(now + 1, scheduler.nextWakeUpAt()!!)
+    }
+
+    return polls
+  }
+
+  private fun maxGapBetweenPolls(polls: List<Poll>, threadNo: Long, until: Long): Long {
+    val pollTimes = listOf(0L) + polls.filter { poll -> poll.threadNo == threadNo }.map { poll -> poll.time } + until
+    return pollTimes.zipWithNext().maxOf { (prev, next) -> next - prev }
+  }
+
+  private fun maxPostLatency(polls: List<Poll>, thread: SimulatedThread): Long {
+    val pollTimes = polls.filter { poll -> poll.threadNo == thread.threadNo }.map { poll -> poll.time }
+
+    return pollTimes.zipWithNext().maxOf { (prev, next) ->
+      // The earliest post that the next poll sees
+      val firstPostAfterPrevPoll = (prev / thread.postEveryMs!! + 1) * thread.postEveryMs
+      next - firstPostAfterPrevPoll
+    }
+  }
+
+  private fun threadDescriptor(threadNo: Long): ChanDescriptor.ThreadDescriptor {
+    return ChanDescriptor.ThreadDescriptor.create("test-site", "g", threadNo)
+  }
+
+  private class SimulatedThread(
+    val threadNo: Long,
+    val postEveryMs: Long?,
+    val replyToMeAt: Long? = null,
+    val lastPageFrom: Long? = null
+  ) {
+
+    fun observe(now: Long): BookmarkPollScheduler.Observation {
+      val totalPostsCount = if (postEveryMs == null) 10 else (10 + now / postEveryMs).toInt()
+      val repliesToMeCount = if (replyToMeAt != null && now >= replyToMeAt) 1 else 0
+      val isOnLastPage = lastPageFrom != null && now >= lastPageFrom
+
+      return BookmarkPollScheduler.Observation(totalPostsCount, repliesToMeCount, isOnLastPage)
+    }
+
+  }
+
+  private data class Poll(val threadNo: Long, val time: Long)
+
+  companion object {
+    private const val ONE_MINUTE_MS = 60_000L
+    private const val MIN_POLL_INTERVAL_MS = 30_000L
+  }
+}
@@ -0,0 +1,145 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import com.github.k1rakishou.chan.features.image_saver.ImageSaverContentIndex.ContentKey
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class ImageSaverContentIndexTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `md5 sent by sites as hex or base64 produces the same key`() {
+    val fromBase64 = ContentKey.md5OrNull("kAFQmDzST7DWlj99KOF/cg==", 3L)
+    val fromHex = ContentKey.md5OrNull("900150983CD24FB0D6963F7D28E17F72", 3L)
+
+    assertEquals(ContentKey(ContentKey.Algorithm.Md5, 3L, "900150983cd24fb0d6963f7d28e17f72"), fromBase64)
+    assertEquals(fromBase64, fromHex)
+
+    // The size is a part of the key so it must be known
+    assertNull(ContentKey.md5OrNull("kAFQmDzST7DWlj99KOF/cg==", 0L))
+    assertNull(ContentKey.md5OrNull(null, 3L))
+    assertNull(ContentKey.md5OrNull("not a hash", 3L))
+    // Valid base64 but not an MD5
+    assertNull(ContentKey.md5OrNull("YWJj", 3L))
+  }
+
+  @Test
+  fun `sha1 is calculated over the file content`() {
+    val file = temporaryFolder.newFile("abc.txt")
+    file.writeText("abc")
+
+    assertEquals(
+      ContentKey(ContentKey.Algorithm.Sha1, 3L, "a9993e364706816aba3e25717850c26c9cd0d89d"),
+      ContentKey.sha1Of(file)
+    )
+  }
+
+  @Test
+  fun `entries survive the process death`() {
+    val indexFile = File(temporaryFolder.root, "index")
+    val md5Key = ContentKey.md5OrNull("900150983cd24fb0d6963f7d28e17f72", 3L)!!
+    val sha1Key = ContentKey.sha1(3L, "a9993e364706816aba3e25717850c26c9cd0d89d")
+    val removedKey = ContentKey.sha1(10L, "0000000000000000000000000000000000000000")
+
+    val index = ImageSaverContentIndex(indexFile)
+    index.put(listOf(md5Key, sha1Key), "/saved/abc.png")
+    index.put(listOf(removedKey), "/saved/deleted_by_user.png")
+    index.remove(removedKey)
+
+    // The process was killed in the middle of an append
+    indexFile.appendText("sha1:5:abcd")
+
+    val reloadedIndex = ImageSaverContentIndex(indexFile)
+    assertEquals("/saved/abc.png", reloadedIndex.find(md5Key))
+    assertEquals("/saved/abc.png", reloadedIndex.find(sha1Key))
+    assertNull(reloadedIndex.find(removedKey))
+    assertEquals(2, reloadedIndex.size())
+  }
+
+  @Test
+  fun `log is compacted once it has too many stale lines`() {
+    val indexFile = File(temporaryFolder.root, "index")
+    val index = ImageSaverContentIndex(indexFile)
+    val key = ContentKey.sha1(3L, "a9993e364706816aba3e25717850c26c9cd0d89d")
+
+    repeat(3000) { iteration -> index.put(listOf(key), "/saved/file_$iteration.png") }
+
+    assertTrue(indexFile.readLines().size < 1100)
+    assertEquals("/saved/file_2999.png", ImageSaverContentIndex(indexFile).find(key))
+  }
+
+  @Test
+  fun `least recently used entries are evicted`() {
+    val indexFile = File(temporaryFolder.root, "index")
+    val index = ImageSaverContentIndex(indexFile, maxEntries = 2)
+    val keys = (1..3).map { size -> ContentKey.sha1(size.toLong(), "a9993e364706816aba3e25717850c26c9cd0d89d") }
+
+    index.put(listOf(keys[0]), "/saved/1.png")
+    index.put(listOf(keys[1]), "/saved/2.png")
+    // Touch the first one so that the second one becomes the eldest
+    index.find(keys[0])
+    index.put(listOf(keys[2]), "/saved/3.png")
+
+    assertEquals("/saved/1.png", index.find(keys[0]))
+    assertNull(index.find(keys[1]))
+    assertEquals("/saved/3.png", index.find(keys[2]))
+
+    val reloadedIndex = ImageSaverContentIndex(indexFile, maxEntries = 2)
+    assertNull(reloadedIndex.find(keys[1]))
+    assertEquals(2, reloadedIndex.size())
+  }
+
+  @Test
+  fun `work on the same content is serialized`() {
+    val index = ImageSaverContentIndex(File(temporaryFolder.root, "index"))
+    val sameKey = ContentKey.sha1(3L, "a9993e364706816aba3e25717850c26c9cd0d89d")
+    val otherKey = ContentKey.sha1(4L, "a9993e364706816aba3e25717850c26c9cd0d89d")
+
+    val running = AtomicInteger(0)
+    val maxRunningWithSameKey = AtomicInteger(0)
+    val saved = AtomicInteger(0)
+
+    runBlocking(Dispatchers.Default) {
+      val sameContent = (0 until 8).map {
+        async {
+          index.withContentLock(sameKey) {
+            maxRunningWithSameKey.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+
+            // Only the first one needs to save the file, the rest find it in the index
+            if (index.find(sameKey) == null) {
+              delay(10)
+              index.put(listOf(sameKey), "/saved/abc.png")
+              saved.incrementAndGet()
+            }
+
+            running.decrementAndGet()
+          }
+        }
+      }
+
+      val otherContent = async { index.withContentLock(otherKey) { index.put(listOf(otherKey), "/saved/other.png") } }
+
+      (sameContent + otherContent).awaitAll()
+    }
+
+    assertEquals(1, maxRunningWithSameKey.get())
+    assertEquals(1, saved.get())
+    assertEquals("/saved/other.png", index.find(otherKey))
+  }
+}
@@ -0,0 +1,204 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+class ImageSaverDownloadPipelineTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val okHttpClient = OkHttpClient()
+  private val totalRunning = AtomicInteger(0)
+  private val maxTotalRunning = AtomicInteger(0)
+
+  private lateinit var server1: CountingServer
+  private lateinit var server2: CountingServer
+
+  @Before
+  fun setUp() {
+    server1 = CountingServer()
+    server2 = CountingServer()
+  }
+
+  @After
+  fun tearDown() {
+    server1.shutdown()
+    server2.shutdown()
+  }
+
+  @Test
+  fun `downloads the batch in parallel without exceeding the global and per host limits`() {
+    val outputDir = temporaryFolder.newFolder("output")
+    val pipeline = ImageSaverDownloadPipeline(maxConcurrentDownloads = 5, maxConcurrentDownloadsPerHost = 3)
+
+    val urls = (0 until 12).flatMap { index ->
+      listOf(server1.url("/a_$index.jpg"), server2.url("/b_$index.jpg"))
+    }
+    val processed = mutableListOf<HttpUrl>()
+
+    runBlocking(Dispatchers.IO) {
+      pipeline.process(
+        items = urls,
+        hostSelector = { url -> "${url.host}:${url.port}" },
+        download = { url -> download(url, outputDir) },
+        onDownloaded = { url, file ->
+          assertArrayEquals(contentOf(url.encodedPath), file.readBytes())
+          processed += url
+        }
+      )
+    }
+
+    assertEquals(urls.toSet(), processed.toSet())
+    assertEquals(urls.size, processed.size)
+
+    assertTrue("server1 max=${server1.maxRunning.get()}", server1.maxRunning.get() <= 3)
+    assertTrue("server2 max=${server2.maxRunning.get()}", server2.maxRunning.get() <= 3)
+    assertTrue("total max=${maxTotalRunning.get()}", maxTotalRunning.get() <= 5)
+    // Both hosts were downloaded from at the same time
+    assertTrue("total max=${maxTotalRunning.get()}", maxTotalRunning.get() > 3)
+
+    assertEquals(24, outputDir.listFiles()!!.size)
+  }
+
+  @Test
+  fun `a slow host does not block downloads from other hosts`() {
+    val outputDir = temporaryFolder.newFolder("output")
+    val pipeline = ImageSaverDownloadPipeline(maxConcurrentDownloads = 4, maxConcurrentDownloadsPerHost = 2)
+
+    server1.responseDelayMs = 500L
+    server2.responseDelayMs = 10L
+
+    val slowUrls = (0 until 4).map { index -> server1.url("/slow_$index.jpg") }
+    val fastUrls = (0 until 8).map { index -> server2.url("/fast_$index.jpg") }
+    val completionOrder = mutableListOf<HttpUrl>()
+
+    runBlocking(Dispatchers.IO) {
+      pipeline.process(
+        items = slowUrls + fastUrls,
+        hostSelector = { url -> "${url.host}:${url.port}" },
+        download = { url -> download(url, outputDir) },
+        onDownloaded = { url, _ -> completionOrder += url }
+      )
+    }
+
+    // The fast host only had to wait for its own slots
+    assertEquals(fastUrls.toSet(), completionOrder.take(fastUrls.size).toSet())
+    assertEquals(12, completionOrder.size)
+  }
+
+  @Test
+  fun `cancelling the batch stops starting new downloads`() {
+    val outputDir = temporaryFolder.newFolder("output")
+    val pipeline = ImageSaverDownloadPipeline(maxConcurrentDownloads = 2, maxConcurrentDownloadsPerHost = 2)
+
+    server1.responseDelayMs = 20L
+
+    val urls = (0 until 20).map { index -> server1.url("/$index.jpg") }
+    val processed = mutableListOf<HttpUrl>()
+
+    runBlocking(Dispatchers.IO) {
+      val batchJob = launch {
+        pipeline.process(
+          items = urls,
+          hostSelector = { url -> url.host },
+          download = { url -> download(url, outputDir) },
+          onDownloaded = { url, _ ->
+            processed += url
+
+            if (processed.size == 4) {
+              throw CancellationException("The process is being killed")
+            }
+          }
+        )
+      }
+
+      batchJob.join()
+      assertTrue(batchJob.isCancelled)
+    }
+
+    // Only the downloads that were already running when the batch was canceled could finish
+    assertTrue("processed=${processed.size}", processed.size <= 4 + 2)
+    assertTrue("requests=${server1.requestsCount.get()}", server1.requestsCount.get() < urls.size)
+  }
+
+  private fun download(url: HttpUrl, outputDir: File): File {
+    val request = Request.Builder().url(url).build()
+    val outputFile = File(outputDir, "${url.port}_${url.encodedPath.removePrefix("/")}")
+
+    okHttpClient.newCall(request).execute().use { response ->
+      check(response.isSuccessful) { "Bad response code: ${response.code}" }
+
+      outputFile.outputStream().use { outputStream ->
+        response.body!!.byteStream().copyTo(outputStream)
+      }
+    }
+
+    return outputFile
+  }
+
+  private fun contentOf(path: String): ByteArray {
+    return ByteArray(1024) { index -> (path.hashCode() + index).toByte() }
+  }
+
+  private inner class CountingServer {
+    private val server = MockWebServer()
+    private val running = AtomicInteger(0)
+
+    val maxRunning = AtomicInteger(0)
+    val requestsCount = AtomicInteger(0)
+
+    @Volatile
+    var responseDelayMs = 50L
+
+    init {
+      server.dispatcher = object : Dispatcher() {
+        override fun dispatch(request: RecordedRequest): MockResponse {
+          val path = request.path!!
+
+          requestsCount.incrementAndGet()
+
+          maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+          maxTotalRunning.accumulateAndGet(totalRunning.incrementAndGet()) { a, b -> maxOf(a, b) }
+
+          try {
+            Thread.sleep(responseDelayMs)
+          } finally {
+            running.decrementAndGet()
+            totalRunning.decrementAndGet()
+          }
+
+          return MockResponse()
+            .setResponseCode(200)
+            .setBody(Buffer().write(contentOf(path)))
+        }
+      }
+
+      server.start()
+    }
+
+    fun url(path: String): HttpUrl = server.url(path)
+
+    fun shutdown() = server.shutdown()
+  }
+}
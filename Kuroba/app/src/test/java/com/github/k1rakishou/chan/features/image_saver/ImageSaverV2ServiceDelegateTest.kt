@@ -0,0 +1,247 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import androidx.core.app.NotificationManagerCompat
+import androidx.room.Room
+import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
+import com.github.k1rakishou.chan.core.cache.partial.PartialMediaCache
+import com.github.k1rakishou.chan.core.cache.partial.TestMediaCacheStorage
+import com.github.k1rakishou.chan.core.helper.ImageSaverFileManagerWrapper
+import com.github.k1rakishou.chan.core.manager.ChanThreadManager
+import com.github.k1rakishou.chan.core.manager.NotificationAutoDismissManager
+import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
+import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.chan.features.image_saver.ImageSaverContentIndex.ContentKey
+import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2ServiceDelegate.SaveResult
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.fsaf.BadPathSymbolResolutionStrategy
+import com.github.k1rakishou.fsaf.FileManager
+import com.github.k1rakishou.fsaf.manager.base_directory.DirectoryManager
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.repository.ChanPostImageRepository
+import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository
+import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
+import com.github.k1rakishou.model.source.local.ChanPostImageLocalSource
+import com.github.k1rakishou.model.source.local.ImageDownloadRequestLocalSource
+import dagger.Lazy
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.security.MessageDigest
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+class ImageSaverV2ServiceDelegateTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val appScope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+  private val imageBytes = Random(1337).nextBytes(IMAGE_SIZE)
+  // Path and Range header of every request that reached the server
+  private val requests = CopyOnWriteArrayList<Pair<String, String?>>()
+
+  private lateinit var server: MockWebServer
+  private lateinit var database: KurobaDatabase
+  private lateinit var fileManager: FileManager
+  private lateinit var partialMediaCache: PartialMediaCache
+  private lateinit var outputDir: File
+  private lateinit var delegate: ImageSaverV2ServiceDelegate
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.dispatcher = ImageDispatcher()
+    server.start()
+
+    val context = RuntimeEnvironment.application
+    fileManager = FileManager(context, BadPathSymbolResolutionStrategy.ReplaceBadSymbols, DirectoryManager(context))
+    partialMediaCache = PartialMediaCache(TestMediaCacheStorage(temporaryFolder.newFolder("cache")))
+    outputDir = temporaryFolder.newFolder("output")
+
+    database = Room.inMemoryDatabaseBuilder(context, KurobaDatabase::class.java).build()
+
+    val appConstants = AppConstants(
+      context = context,
+      flavorType = AndroidUtils.FlavorType.Dev,
+      isLowRamDevice = false,
+      kurobaExCustomUserAgent = "",
+      overrideUserAgent = { "" },
+      maxPostsInDatabaseSettingValue = 1000,
+      maxThreadsInDatabaseSettingValue = 100
+    )
+
+    val downloaderOkHttpClient = Mockito.mock(RealDownloaderOkHttpClient::class.java)
+    Mockito.`when`(downloaderOkHttpClient.okHttpClient()).thenReturn(OkHttpClient())
+
+    delegate = ImageSaverV2ServiceDelegate(
+      verboseLogs = false,
+      appScope = appScope,
+      appConstants = appConstants,
+      partialMediaCache = Lazy { partialMediaCache },
+      downloaderOkHttpClient = Lazy { downloaderOkHttpClient },
+      notificationManagerCompat = NotificationManagerCompat.from(context),
+      imageSaverFileManager = ImageSaverFileManagerWrapper(fileManager),
+      contentIndex = ImageSaverContentIndex(File(temporaryFolder.root, "content_index")),
+      siteResolver = Mockito.mock(SiteResolver::class.java),
+      chanPostImageRepository = ChanPostImageRepository(
+        database,
+        false,
+        appScope,
+        ChanPostImageLocalSource(database, ChanDescriptorCache(database))
+      ),
+      imageDownloadRequestRepository = ImageDownloadRequestRepository(
+        database,
+        appScope,
+        ImageDownloadRequestLocalSource(database)
+      ),
+      chanThreadManager = ChanThreadManager(
+        false, unused(), unused(), unused(), unused(), unused(), unused(), unused(), unused(), unused()
+      ),
+      threadDownloadManager = ThreadDownloadManager(appConstants, appScope, unused(), unused(), unused()),
+      notificationAutoDismissManager = NotificationAutoDismissManager(appScope, NotificationManagerCompat.from(context)),
+      // android.system.Os is not available on the JVM
+      linkFunc = { oldPath, newPath -> Files.createLink(Paths.get(newPath), Paths.get(oldPath)) }
+    )
+  }
+
+  @After
+  fun tearDown() {
+    appScope.cancel()
+    database.close()
+    server.shutdown()
+  }
+
+  @Test
+  fun `image with a known md5 is downloaded once and linked for every other post`() {
+    val md5Key = md5KeyOf(imageBytes)
+
+    assertEquals(SaveResult.Saved, save("/a.jpg", "first.jpg", md5Key))
+
+    // The same image reposted in another thread
+    val result = save("/b.jpg", "second.jpg", md5Key)
+
+    assertEquals(SaveResult.Deduplicated(outputPath("first.jpg"), linked = true), result)
+    assertEquals(listOf("/a.jpg"), requestedPaths())
+    assertArrayEquals(imageBytes, File(outputDir, "second.jpg").readBytes())
+    assertTrue(Files.isSameFile(File(outputDir, "first.jpg").toPath(), File(outputDir, "second.jpg").toPath()))
+  }
+
+  @Test
+  fun `image without md5 is recognized by its sha1 once it is downloaded`() {
+    assertEquals(SaveResult.Saved, save("/a.jpg", "first.jpg", md5Key = null))
+
+    // Nothing to compare before the download so the file is downloaded, but not saved again
+    val result = save("/b.jpg", "second.jpg", md5Key = null)
+
+    assertEquals(SaveResult.Deduplicated(outputPath("first.jpg"), linked = true), result)
+    assertEquals(listOf("/a.jpg", "/b.jpg"), requestedPaths())
+    assertTrue(Files.isSameFile(File(outputDir, "first.jpg").toPath(), File(outputDir, "second.jpg").toPath()))
+
+    // The md5 of a file that turned out to be a duplicate is remembered too
+    val md5Key = md5KeyOf(imageBytes)
+    assertEquals(SaveResult.Deduplicated(outputPath("first.jpg"), linked = true), save("/c.jpg", "third.jpg", md5Key))
+    assertEquals(SaveResult.Deduplicated(outputPath("first.jpg"), linked = true), save("/d.jpg", "fourth.jpg", md5Key))
+    assertEquals(listOf("/a.jpg", "/b.jpg", "/c.jpg"), requestedPaths())
+  }
+
+  @Test
+  fun `saved file that was deleted by the user is not reused`() {
+    val md5Key = md5KeyOf(imageBytes)
+
+    assertEquals(SaveResult.Saved, save("/a.jpg", "first.jpg", md5Key))
+    assertTrue(File(outputDir, "first.jpg").delete())
+
+    assertEquals(SaveResult.Saved, save("/b.jpg", "second.jpg", md5Key))
+    assertEquals(listOf("/a.jpg", "/b.jpg"), requestedPaths())
+    assertArrayEquals(imageBytes, File(outputDir, "second.jpg").readBytes())
+  }
+
+  @Test
+  fun `image partially downloaded by the media viewer is resumed from where it stopped`() {
+    val url = server.url("/a.jpg").toString()
+
+    // The media viewer got the first half of the file before it was closed
+    val entry = partialMediaCache.acquire(url)!!
+    entry.updateTotalLength(IMAGE_SIZE.toLong())
+    entry.write(0L, imageBytes, 0, IMAGE_SIZE / 2)
+    partialMediaCache.release(entry)
+
+    assertEquals(SaveResult.Saved, save("/a.jpg", "first.jpg", md5KeyOf(imageBytes)))
+
+    assertEquals(listOf("/a.jpg" to "bytes=${IMAGE_SIZE / 2}-"), requests)
+    assertArrayEquals(imageBytes, File(outputDir, "first.jpg").readBytes())
+  }
+
+  private fun save(path: String, fileName: String, md5Key: ContentKey?): SaveResult {
+    return runBlocking(Dispatchers.IO) {
+      delegate.saveIntoFileDeduplicated(
+        imageUrl = server.url(path),
+        outputFile = fileManager.fromRawFile(File(outputDir, fileName)),
+        threadDescriptor = null,
+        md5Key = md5Key
+      )
+    }
+  }
+
+  private fun outputPath(fileName: String): String {
+    return fileManager.fromRawFile(File(outputDir, fileName)).getFullPath()
+  }
+
+  private fun requestedPaths(): List<String> = requests.map { (path, _) -> path }
+
+  private fun md5KeyOf(bytes: ByteArray): ContentKey {
+    val md5Hex = MessageDigest.getInstance("MD5").digest(bytes).joinToString(separator = "") { byte -> "%02x".format(byte) }
+    return ContentKey.md5OrNull(md5Hex, bytes.size.toLong())!!
+  }
+
+  private fun <T> unused(): Lazy<T> = Lazy { throw IllegalStateException("Not used by the image saving") }
+
+  private inner class ImageDispatcher : Dispatcher() {
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val rangeHeader = request.getHeader("Range")
+      requests += request.path!! to rangeHeader
+
+      if (rangeHeader == null) {
+        return MockResponse()
+          .setResponseCode(200)
+          .setBody(Buffer().write(imageBytes))
+      }
+
+      val start = rangeHeader.removePrefix("bytes=").substringBefore('-').toInt()
+
+      return MockResponse()
+        .setResponseCode(206)
+        .setHeader("Content-Range", "bytes ${start}-${IMAGE_SIZE - 1}/${IMAGE_SIZE}")
+        .setBody(Buffer().write(imageBytes.copyOfRange(start, IMAGE_SIZE)))
+    }
+  }
+
+  companion object {
+    private const val IMAGE_SIZE = 128 * 1024
+  }
+}
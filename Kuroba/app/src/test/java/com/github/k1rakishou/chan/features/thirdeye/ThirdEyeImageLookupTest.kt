@@ -0,0 +1,278 @@
+package com.github.k1rakishou.chan.features.thirdeye
+
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient.BooruLookupResult
+import com.github.k1rakishou.chan.features.thirdeye.data.BooruSetting
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class ThirdEyeImageLookupTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val okHttpClient = OkHttpClient()
+  private var currentTime = TimeUnit.DAYS.toMillis(100)
+
+  private lateinit var server: MockWebServer
+  private lateinit var boorus: FakeBoorus
+  private lateinit var cacheFile: File
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    boorus = FakeBoorus()
+    server.dispatcher = boorus
+    server.start()
+
+    cacheFile = File(temporaryFolder.root, "third_eye_lookup_cache")
+  }
+
+  @After
+  fun tearDown() {
+    boorus.releaseSlowResponses()
+    server.shutdown()
+  }
+
+  @Test
+  fun `found image is cached and survives the process death`() = runBlocking {
+    val booruA = booru("a")
+    val booruB = booru("b")
+    boorus.images["a/$HASH"] = imageJson("https://a.booru/full.png")
+
+    val booruImage = lookup().lookup(listOf(booruA, booruB), HASH)!!
+    assertEquals("https://a.booru/full.png", booruImage.fullUrl)
+    assertEquals("https://a.booru/preview.jpg", booruImage.previewUrl)
+    assertEquals(1000, booruImage.width)
+    assertEquals(632, booruImage.height)
+    assertEquals(112233L, booruImage.fileSize)
+    assertEquals("png", booruImage.extension)
+
+    val requestsCount = boorus.requestsCount.get()
+
+    // Process death
+    val reloadedCache = ThirdEyeLookupCache(cacheFile, currentTimeMillisFunc = { currentTime })
+    assertEquals(BooruLookupResult.Found(booruImage), reloadedCache.get(booruA, HASH))
+
+    val cachedImage = lookup(reloadedCache).lookup(listOf(booruA, booruB), HASH.uppercase())
+    assertEquals(booruImage, cachedImage)
+    assertEquals(requestsCount, boorus.requestsCount.get())
+  }
+
+  @Test
+  fun `misses and banned images are cached too`() = runBlocking {
+    val booruA = booru("a")
+    val booruB = booru("b")
+    // booruA has nothing and booruB responds with 404
+    boorus.images["a/$HASH"] = "{}"
+    boorus.images["a/$OTHER_HASH"] = imageJson("https://a.booru/full.png", tags = listOf("ok", "Banned_Tag"))
+
+    val lookup = lookup()
+    assertNull(lookup.lookup(listOf(booruA, booruB), HASH))
+    assertNull(lookup.lookup(listOf(booruA, booruB), OTHER_HASH))
+
+    // booruB may not have been asked about OTHER_HASH since the banned image ends the lookup
+    val requestsCount = boorus.requestsCount.get()
+    assertTrue(requestsCount >= 3)
+
+    assertNull(lookup.lookup(listOf(booruA, booruB), HASH))
+    assertNull(lookup.lookup(listOf(booruA, booruB), OTHER_HASH))
+    assertEquals(requestsCount, boorus.requestsCount.get())
+
+    val cache = ThirdEyeLookupCache(cacheFile, currentTimeMillisFunc = { currentTime })
+    assertEquals(BooruLookupResult.NotFound, cache.get(booruA, HASH))
+    assertEquals(BooruLookupResult.NotFound, cache.get(booruB, HASH))
+    assertEquals(BooruLookupResult.Banned, cache.get(booruA, OTHER_HASH))
+
+    // Changing the settings of the booru makes its old results unreachable
+    assertNull(cache.get(booruA.copy(bannedTags = emptyList()), OTHER_HASH))
+  }
+
+  @Test
+  fun `errors are not cached`() = runBlocking {
+    val booruA = booru("a")
+    boorus.statusCodes["a/$HASH"] = 503
+
+    val lookup = lookup()
+    assertNull(lookup.lookup(listOf(booruA), HASH))
+    assertNull(lookup.lookup(listOf(booruA), HASH))
+    assertEquals(2, boorus.requestsCount.get())
+
+    boorus.statusCodes.clear()
+    boorus.images["a/$HASH"] = imageJson("https://a.booru/full.png")
+
+    assertEquals("https://a.booru/full.png", lookup.lookup(listOf(booruA), HASH)?.fullUrl)
+  }
+
+  @Test
+  fun `expired results are fetched again`() = runBlocking {
+    val booruA = booru("a")
+    boorus.images["a/$HASH"] = imageJson("https://a.booru/full.png")
+
+    val lookup = lookup()
+    assertEquals("https://a.booru/full.png", lookup.lookup(listOf(booruA), HASH)?.fullUrl)
+    assertNull(lookup.lookup(listOf(booruA), OTHER_HASH))
+    assertEquals(2, boorus.requestsCount.get())
+
+    // Misses expire sooner than the found images
+    currentTime += ThirdEyeLookupCache.NOT_FOUND_TTL_MS + 1
+    boorus.images["a/$OTHER_HASH"] = imageJson("https://a.booru/uploaded_later.png")
+
+    assertEquals("https://a.booru/full.png", lookup.lookup(listOf(booruA), HASH)?.fullUrl)
+    assertEquals("https://a.booru/uploaded_later.png", lookup.lookup(listOf(booruA), OTHER_HASH)?.fullUrl)
+    assertEquals(3, boorus.requestsCount.get())
+
+    currentTime += ThirdEyeLookupCache.FOUND_TTL_MS + 1
+    boorus.images["a/$HASH"] = imageJson("https://a.booru/full_v2.png")
+
+    assertEquals("https://a.booru/full_v2.png", lookup.lookup(listOf(booruA), HASH)?.fullUrl)
+    assertEquals(4, boorus.requestsCount.get())
+
+    // Expired entries (the image found for OTHER_HASH by now) are not loaded after the restart
+    val reloadedCache = ThirdEyeLookupCache(cacheFile, currentTimeMillisFunc = { currentTime })
+    assertEquals(1, reloadedCache.size())
+  }
+
+  @Test
+  fun `first found image wins and slower boorus are cancelled`() = runBlocking {
+    val slowBooru = booru("slow")
+    val fastBooru = booru("fast")
+    boorus.slowBoorus += "slow"
+    boorus.images["slow/$HASH"] = imageJson("https://slow.booru/full.png")
+    boorus.images["fast/$HASH"] = imageJson("https://fast.booru/full.png")
+
+    val startTime = System.nanoTime()
+    val booruImage = lookup().lookup(listOf(slowBooru, fastBooru), HASH)
+    val elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)
+
+    assertEquals("https://fast.booru/full.png", booruImage?.fullUrl)
+    assertTrue("elapsedMs=$elapsedMs", elapsedMs < SLOW_RESPONSE_TIMEOUT_MS)
+
+    // The slow booru was never answered so there is nothing to cache for it
+    val cache = ThirdEyeLookupCache(cacheFile, currentTimeMillisFunc = { currentTime })
+    assertNull(cache.get(slowBooru, HASH))
+    assertEquals("https://fast.booru/full.png", (cache.get(fastBooru, HASH) as BooruLookupResult.Found).image.fullUrl)
+  }
+
+  @Test
+  fun `concurrent lookups of the same hash ask every booru once`() = runBlocking {
+    val booruA = booru("a")
+    val booruB = booru("b")
+    boorus.images["b/$HASH"] = imageJson("https://b.booru/full.png")
+
+    val lookup = lookup()
+
+    val results = (0 until 8)
+      .map { async(Dispatchers.IO) { lookup.lookup(listOf(booruA, booruB), HASH) } }
+      .awaitAll()
+
+    assertTrue(results.all { booruImage -> booruImage?.fullUrl == "https://b.booru/full.png" })
+    assertEquals(1, boorus.requestsPerPath["b/$HASH"]?.get())
+    assertTrue((boorus.requestsPerPath["a/$HASH"]?.get() ?: 0) <= 1)
+  }
+
+  private fun lookup(
+    cache: ThirdEyeLookupCache = ThirdEyeLookupCache(cacheFile, currentTimeMillisFunc = { currentTime })
+  ): ThirdEyeImageLookup {
+    val booruClient = ThirdEyeBooruClient(
+      okHttpClientProvider = { okHttpClient },
+      requestModifier = { requestBuilder -> requestBuilder.header("User-Agent", "test") }
+    )
+
+    return ThirdEyeImageLookup(cache, booruClient)
+  }
+
+  private fun booru(name: String): BooruSetting {
+    return BooruSetting(
+      apiEndpoint = server.url("/$name/").toString() + BooruSetting.KEY_MARKER,
+      fullUrlJsonKey = "post > file > url",
+      previewUrlJsonKey = "post > preview > url",
+      fileSizeJsonKey = "post > file > size",
+      widthJsonKey = "post > file > width",
+      heightJsonKey = "post > file > height",
+      tagsJsonKey = "post > tags > *",
+      bannedTags = listOf("banned_tag")
+    )
+  }
+
+  private fun imageJson(fullUrl: String, tags: List<String> = listOf("tag1", "tag2")): String {
+    val previewUrl = fullUrl.substringBeforeLast('/') + "/preview.jpg"
+    val tagsJson = tags.joinToString(separator = ",") { tag -> "\"$tag\"" }
+
+    return """
+      {
+        "post": {
+          "file": { "width": 1000, "height": 632, "size": 112233, "url": "$fullUrl" },
+          "preview": { "width": 150, "height": 94, "url": "$previewUrl" },
+          "tags": { "general": [$tagsJson] }
+        }
+      }
+    """.trimIndent()
+  }
+
+  private class FakeBoorus : Dispatcher() {
+    val images = ConcurrentHashMap<String, String>()
+    val statusCodes = ConcurrentHashMap<String, Int>()
+    val slowBoorus = ConcurrentHashMap.newKeySet<String>()
+    val requestsCount = AtomicInteger(0)
+    val requestsPerPath = ConcurrentHashMap<String, AtomicInteger>()
+
+    private val releaseSlowResponses = CountDownLatch(1)
+
+    fun releaseSlowResponses() {
+      releaseSlowResponses.countDown()
+    }
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val path = request.requestUrl!!.encodedPath.removePrefix("/")
+      val booruName = path.substringBefore('/')
+
+      requestsCount.incrementAndGet()
+      requestsPerPath.getOrPut(path) { AtomicInteger(0) }.incrementAndGet()
+
+      if (booruName in slowBoorus) {
+        releaseSlowResponses.await(SLOW_RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+      }
+
+      val statusCode = statusCodes[path]
+      if (statusCode != null) {
+        return MockResponse().setResponseCode(statusCode)
+      }
+
+      val json = images[path]
+        ?: return MockResponse().setResponseCode(404)
+
+      return MockResponse()
+        .setHeader("Content-Type", "application/json; charset=utf-8")
+        .setBody(json)
+    }
+  }
+
+  companion object {
+    private const val HASH = "0123456789abcdef0123456789abcdef"
+    private const val OTHER_HASH = "fedcba9876543210fedcba9876543210"
+    private const val SLOW_RESPONSE_TIMEOUT_MS = 10_000L
+  }
+}
@@ -0,0 +1,345 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaArchiver.ThreadMedia
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaManifest.Status
+import com.github.k1rakishou.fsaf.BadPathSymbolResolutionStrategy
+import com.github.k1rakishou.fsaf.FileManager
+import com.github.k1rakishou.fsaf.manager.base_directory.DirectoryManager
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class ThreadMediaArchiverTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val okHttpClient = OkHttpClient()
+
+  private lateinit var server: MockWebServer
+  private lateinit var mediaServer: FakeMediaServer
+  private lateinit var fileManager: FileManager
+  private lateinit var outputDir: File
+  private lateinit var manifestFile: File
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    mediaServer = FakeMediaServer()
+    server.dispatcher = mediaServer
+    server.start()
+
+    val context = RuntimeEnvironment.application
+    fileManager = FileManager(context, BadPathSymbolResolutionStrategy.ReplaceBadSymbols, DirectoryManager(context))
+
+    outputDir = temporaryFolder.newFolder("4chan_g_1")
+    manifestFile = File(outputDir, ThreadMediaManifest.MANIFEST_FILE_NAME)
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `only new and changed media is downloaded during the following runs`() {
+    val archiver = createArchiver()
+    val firstRunImages = (0 until 5).map { index -> postImage(postNo = index + 1L, name = "$index") }
+
+    val firstResult = archive(archiver, firstRunImages)
+    assertEquals(10, server.requestCount)
+    assertEquals(10, firstResult.downloaded)
+    firstRunImages.forEach { postImage -> assertArchived(postImage) }
+
+    // Nothing changed
+    archive(archiver, firstRunImages)
+    assertEquals(10, server.requestCount)
+
+    // Two new posts and the image of one post got replaced by the site
+    val deltaRunImages = firstRunImages.toMutableList()
+    deltaRunImages[2] = postImage(postNo = 3L, name = "2", fileHash = "changed")
+    deltaRunImages += postImage(postNo = 6L, name = "5")
+    deltaRunImages += postImage(postNo = 7L, name = "6")
+
+    val deltaResult = archive(archiver, deltaRunImages)
+    assertEquals(16, server.requestCount)
+    assertEquals(6, deltaResult.downloaded)
+    assertEquals(2, mediaServer.requestsCount("/image/2.jpg"))
+    assertEquals(2, mediaServer.requestsCount("/thumb/2s.jpg"))
+    assertEquals(1, mediaServer.requestsCount("/image/5.jpg"))
+    assertEquals(1, mediaServer.requestsCount("/image/0.jpg"))
+    deltaRunImages.forEach { postImage -> assertArchived(postImage) }
+
+    // The manifest is read from the disk by a new archiver (e.g. after the app restart)
+    archive(createArchiver(), deltaRunImages)
+    assertEquals(16, server.requestCount)
+  }
+
+  @Test
+  fun `server errors are retried with backoff and failed media is retried during the next run`() {
+    val archiver = createArchiver(maxAttempts = 3)
+    val postImages = listOf(
+      postImage(postNo = 1L, name = "flaky"),
+      postImage(postNo = 2L, name = "broken"),
+      postImage(postNo = 3L, name = "deleted")
+    )
+
+    mediaServer.failures["/image/flaky.jpg"] = AtomicInteger(2)
+    mediaServer.failures["/image/broken.jpg"] = AtomicInteger(Int.MAX_VALUE)
+    mediaServer.deleted += "/image/deleted.jpg"
+
+    val result = archive(archiver, postImages)
+
+    assertEquals(3, mediaServer.requestsCount("/image/flaky.jpg"))
+    assertEquals(3, mediaServer.requestsCount("/image/broken.jpg"))
+    // Not retried, the site doesn't have it anymore
+    assertEquals(1, mediaServer.requestsCount("/image/deleted.jpg"))
+    assertEquals(2, result.failed)
+
+    val manifest = ThreadMediaManifest.load(manifestFile)
+    assertEquals(Status.Downloaded, manifest.get("flaky.jpg")!!.status)
+    assertEquals(Status.Failed, manifest.get("broken.jpg")!!.status)
+    assertEquals(Status.Gone, manifest.get("deleted.jpg")!!.status)
+    assertFalse(File(outputDir, "broken.jpg").exists())
+
+    mediaServer.failures.clear()
+    val requestsBefore = server.requestCount
+
+    archive(archiver, postImages)
+    assertEquals(requestsBefore + 1, server.requestCount)
+    assertEquals(4, mediaServer.requestsCount("/image/broken.jpg"))
+    assertEquals(Status.Downloaded, ThreadMediaManifest.load(manifestFile).get("broken.jpg")!!.status)
+  }
+
+  @Test
+  fun `files archived before the manifest existed are not downloaded again`() {
+    val postImages = (0 until 3).map { index -> postImage(postNo = index + 1L, name = "$index") }
+
+    File(outputDir, "0.jpg").writeBytes(contentOf("/image/0.jpg"))
+    File(outputDir, "0s.jpg").writeBytes(contentOf("/thumb/0s.jpg"))
+    // An empty file is what's left after a failed download
+    File(outputDir, "1.jpg").createNewFile()
+
+    archive(createArchiver(), postImages)
+
+    assertEquals(4, server.requestCount)
+    assertEquals(0, mediaServer.requestsCount("/image/0.jpg"))
+    assertEquals(1, mediaServer.requestsCount("/image/1.jpg"))
+    postImages.forEach { postImage -> assertArchived(postImage) }
+  }
+
+  @Test
+  fun `downloads are bounded and stop when the archiver can not continue`() {
+    val archiver = createArchiver(maxConcurrentDownloads = 2)
+    val postImages = (0 until 10).map { index -> postImage(postNo = index + 1L, name = "$index") }
+    mediaServer.responseDelayMs = 20
+
+    archive(archiver, postImages)
+    assertEquals(20, server.requestCount)
+    assertTrue("maxInFlight=${mediaServer.maxInFlight.get()}", mediaServer.maxInFlight.get() <= 2)
+
+    // The network became metered in the middle of the run
+    val newPostImages = postImages + (10 until 20).map { index -> postImage(postNo = index + 1L, name = "$index") }
+    val allowedDownloads = AtomicInteger(4)
+
+    runBlocking {
+      archiver.archive(
+        outputDirectory = fileManager.fromRawFile(outputDir),
+        manifestFile = manifestFile,
+        threadMedia = ThreadMediaArchiver.threadMediaOf(newPostImages),
+        canContinue = { allowedDownloads.getAndDecrement() > 0 },
+        onProgress = { }
+      )
+    }
+
+    assertEquals(24, server.requestCount)
+
+    // The rest is downloaded during the next run
+    archive(archiver, newPostImages)
+    assertEquals(40, server.requestCount)
+  }
+
+  @Test
+  fun `media is downloaded off the calling thread`() {
+    val requestThreads = ConcurrentHashMap.newKeySet<String>()
+    val archiver = createArchiver(requestModifier = { _, _ -> requestThreads += Thread.currentThread().name })
+    val postImages = (0 until 3).map { index -> postImage(postNo = index + 1L, name = "$index") }
+
+    archive(archiver, postImages)
+
+    assertEquals(6, server.requestCount)
+    assertFalse("requestThreads=${requestThreads}", Thread.currentThread().name in requestThreads)
+  }
+
+  @Test
+  fun `the rest of the media is not downloaded when the output file can not be created`() {
+    val archiver = createArchiver(maxConcurrentDownloads = 1)
+    val postImages = (0 until 3).map { index -> postImage(postNo = index + 1L, name = "$index") }
+
+    // Nothing can be created inside of a regular file
+    val notADirectory = temporaryFolder.newFile("not_a_directory")
+
+    val result = runBlocking {
+      archiver.archive(
+        outputDirectory = fileManager.fromRawFile(File(notADirectory, "4chan_g_2")),
+        manifestFile = manifestFile,
+        threadMedia = ThreadMediaArchiver.threadMediaOf(postImages),
+        canContinue = { true },
+        onProgress = { }
+      )
+    }
+
+    assertTrue(result.outputDirError)
+    assertEquals(0, result.downloaded)
+    assertEquals(0, result.failed)
+    assertEquals(1, server.requestCount)
+    // Downloaded during the next run once the directory is accessible
+    assertEquals(0, ThreadMediaManifest.load(manifestFile).size())
+  }
+
+  @Test
+  fun `manifest is replaced atomically and unknown lines are skipped`() {
+    val media = ThreadMedia(
+      fileName = "1.jpg",
+      url = server.url("/image/1.jpg"),
+      isThumbnail = false,
+      postHash = "hash",
+      checksum = "md5:abc"
+    )
+
+    val manifest = ThreadMediaManifest.load(manifestFile)
+    assertFalse(manifest.existed)
+    manifest.update(media, Status.Downloaded)
+    assertTrue(manifest.save())
+
+    manifestFile.appendText("garbage line\n2.jpg\thash\tmd5:def\tunknown_status\n")
+
+    val loadedManifest = ThreadMediaManifest.load(manifestFile)
+    assertTrue(loadedManifest.existed)
+    assertEquals(1, loadedManifest.size())
+    assertEquals(ThreadMediaManifest.Entry("1.jpg", "hash", "md5:abc", Status.Downloaded), loadedManifest.get("1.jpg"))
+    assertTrue(loadedManifest.diff(listOf(media)).isEmpty())
+    assertEquals(1, loadedManifest.diff(listOf(media.copy(checksum = "md5:def"))).size)
+
+    // No leftovers of the temporary file
+    assertEquals(listOf(ThreadMediaManifest.MANIFEST_FILE_NAME), outputDir.list()!!.toList())
+  }
+
+  private fun createArchiver(
+    maxConcurrentDownloads: Int = 4,
+    maxAttempts: Int = 3,
+    requestModifier: (ThreadMedia, Request.Builder) -> Unit = { _, _ -> }
+  ): ThreadMediaArchiver {
+    return ThreadMediaArchiver(
+      fileManager = fileManager,
+      okHttpClientProvider = { okHttpClient },
+      requestModifier = requestModifier,
+      maxConcurrentDownloads = maxConcurrentDownloads,
+      maxAttempts = maxAttempts,
+      retryBaseDelayMs = 1L
+    )
+  }
+
+  private fun archive(archiver: ThreadMediaArchiver, postImages: List<ChanPostImage>): ThreadMediaArchiver.ArchiveResult {
+    return runBlocking {
+      archiver.archive(
+        outputDirectory = fileManager.fromRawFile(outputDir),
+        manifestFile = manifestFile,
+        threadMedia = ThreadMediaArchiver.threadMediaOf(postImages),
+        canContinue = { true },
+        onProgress = { }
+      )
+    }
+  }
+
+  private fun postImage(postNo: Long, name: String, fileHash: String = "hash_$name"): ChanPostImage {
+    val postImage = ChanPostImage(
+      serverFilename = name,
+      actualThumbnailUrl = server.url("/thumb/${name}s.jpg"),
+      imageUrl = server.url("/image/$name.jpg"),
+      fileSize = 1000L,
+      fileHash = fileHash
+    )
+
+    postImage.setPostDescriptor(PostDescriptor.create("4chan", "g", 1L, postNo))
+    return postImage
+  }
+
+  private fun assertArchived(postImage: ChanPostImage) {
+    listOf(postImage.actualThumbnailUrl!!, postImage.imageUrl!!).forEach { url ->
+      val file = File(outputDir, url.pathSegments.last())
+      assertTrue("${file.name} does not exist", file.exists())
+      assertArrayEquals(contentOf(url.encodedPath), file.readBytes())
+    }
+  }
+
+  private class FakeMediaServer : Dispatcher() {
+    private val requests = ConcurrentHashMap<String, AtomicInteger>()
+    private val inFlight = AtomicInteger(0)
+
+    val maxInFlight = AtomicInteger(0)
+    val failures = ConcurrentHashMap<String, AtomicInteger>()
+    val deleted = ConcurrentHashMap.newKeySet<String>()
+
+    @Volatile
+    var responseDelayMs = 0L
+
+    fun requestsCount(path: String): Int = requests[path]?.get() ?: 0
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val currentInFlight = inFlight.incrementAndGet()
+      maxInFlight.updateAndGet { max -> maxOf(max, currentInFlight) }
+
+      try {
+        val path = request.path!!
+        requests.getOrPut(path) { AtomicInteger(0) }.incrementAndGet()
+
+        if (responseDelayMs > 0) {
+          Thread.sleep(responseDelayMs)
+        }
+
+        if (path in deleted) {
+          return MockResponse().setResponseCode(404)
+        }
+
+        val remainingFailures = failures[path]
+        if (remainingFailures != null && remainingFailures.getAndDecrement() > 0) {
+          return MockResponse().setResponseCode(503)
+        }
+
+        return MockResponse().setBody(Buffer().write(contentOf(path)))
+      } finally {
+        inFlight.decrementAndGet()
+      }
+    }
+  }
+
+  companion object {
+    private fun contentOf(path: String): ByteArray {
+      return ByteArray(4096) { index -> (path.hashCode() + index).toByte() }
+    }
+  }
+}
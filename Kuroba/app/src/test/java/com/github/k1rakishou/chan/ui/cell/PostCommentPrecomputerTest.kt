@@ -0,0 +1,94 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.text.SpannableString
+import android.widget.TextView
+import androidx.core.text.PrecomputedTextCompat
+import androidx.core.widget.TextViewCompat
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class PostCommentPrecomputerTest {
+  private var precomputedCount = 0
+  private var invalidateDuringPrecompute: (() -> Unit)? = null
+
+  private val postCommentPrecomputer = PostCommentPrecomputer(
+    resources = RuntimeEnvironment.application.resources,
+    precomputeFunc = { text, params ->
+      ++precomputedCount
+      invalidateDuringPrecompute?.invoke()
+      PrecomputedTextCompat.create(text, params)
+    }
+  )
+
+  @Test
+  fun `long comments are precomputed`() {
+    val commentText = longComment()
+
+    val precomputedComment = postCommentPrecomputer.precompute(commentText, TEXT_SIZE_SP)!!
+
+    assertEquals(1, precomputedCount)
+    assertEquals(commentText.toString(), precomputedComment.precomputedText.toString())
+    assertTrue(postCommentPrecomputer.isUpToDate(precomputedComment))
+  }
+
+  @Test
+  fun `font size or theme change makes precomputed comments stale`() {
+    val commentText = longComment()
+
+    val beforeFontChange = postCommentPrecomputer.precompute(commentText, TEXT_SIZE_SP)!!
+    postCommentPrecomputer.invalidate()
+    assertFalse(postCommentPrecomputer.isUpToDate(beforeFontChange))
+
+    val afterFontChange = postCommentPrecomputer.precompute(commentText, TEXT_SIZE_SP)!!
+    assertTrue(postCommentPrecomputer.isUpToDate(afterFontChange))
+
+    postCommentPrecomputer.onThemeChanged()
+    assertFalse(postCommentPrecomputer.isUpToDate(afterFontChange))
+  }
+
+  @Test
+  fun `comment precomputed during an invalidation is stale`() {
+    // The font size got changed while the comment was being precomputed
+    invalidateDuringPrecompute = { postCommentPrecomputer.invalidate() }
+
+    val precomputedComment = postCommentPrecomputer.precompute(longComment(), TEXT_SIZE_SP)!!
+    assertFalse(postCommentPrecomputer.isUpToDate(precomputedComment))
+  }
+
+  @Test
+  fun `short comments are not precomputed`() {
+    val commentText = SpannableString("short comment")
+
+    assertNull(postCommentPrecomputer.precompute(commentText, TEXT_SIZE_SP))
+    assertEquals(0, precomputedCount)
+  }
+
+  @Test
+  fun `comment view text metrics match the precomputed ones`() {
+    val textView = TextView(RuntimeEnvironment.application)
+    PostCommentPrecomputer.setUpCommentTextView(textView, TEXT_SIZE_SP)
+
+    assertEquals(
+      postCommentPrecomputer.textMetricsParams(TEXT_SIZE_SP),
+      TextViewCompat.getTextMetricsParams(textView)
+    )
+  }
+
+  private fun longComment(): SpannableString {
+    val text = (0 until 40).joinToString(separator = " ") { index -> "word${(index * 7) % 13}" }
+    check(text.length >= PostCommentPrecomputer.MIN_PRECOMPUTED_COMMENT_LENGTH)
+
+    return SpannableString(text)
+  }
+
+  companion object {
+    private const val TEXT_SIZE_SP = 16
+  }
+}
@@ -0,0 +1,125 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import com.github.k1rakishou.chan.ui.cell.PostListTimings.Phase
+import com.github.k1rakishou.chan.ui.cell.PostListTimings.PostShape
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class PostListTimingsTest {
+  private var nanoTime = 0L
+  private val timings = PostListTimings(nanoTimeFunc = { nanoTime })
+
+  @Test
+  fun `posts are bucketed by images count and comment length`() {
+    assertEquals(PostShape.of(imagesCount = 0, commentLength = 0), PostShape.of(imagesCount = 0, commentLength = 299))
+    assertNotEquals(PostShape.of(imagesCount = 0, commentLength = 299), PostShape.of(imagesCount = 0, commentLength = 300))
+    assertEquals(PostShape.of(imagesCount = 2, commentLength = 5000), PostShape.of(imagesCount = 10, commentLength = 100_000))
+    assertNotEquals(PostShape.of(imagesCount = 1, commentLength = 10), PostShape.of(imagesCount = 2, commentLength = 10))
+
+    val allShapes = (0..3).flatMap { imagesCount ->
+      listOf(0, 500, 2000, 10_000).map { commentLength -> PostShape.of(imagesCount, commentLength) }
+    }.toSet()
+
+    assertEquals(PostShape.SHAPES_COUNT - 1, allShapes.size)
+    assertTrue(allShapes.all { postShape -> postShape in 0 until PostShape.NONE })
+
+    assertEquals("2+img,cmt3000+", PostShape.format(PostShape.of(imagesCount = 4, commentLength = 4000)))
+    assertEquals("0img,cmt<300", PostShape.format(PostShape.of(imagesCount = 0, commentLength = 10)))
+    assertEquals("any", PostShape.format(PostShape.NONE))
+  }
+
+  @Test
+  fun `phases and post shapes are recorded separately and merged per phase`() {
+    val textOnly = PostShape.of(imagesCount = 0, commentLength = 100)
+    val longWithImages = PostShape.of(imagesCount = 3, commentLength = 5000)
+
+    repeat(90) { timings.record(Phase.Bind, textOnly, micros(200)) }
+    repeat(10) { timings.record(Phase.Bind, longWithImages, micros(8000)) }
+    timings.record(Phase.Measure, longWithImages, micros(3000))
+
+    assertEquals(90, timings.snapshot(Phase.Bind, textOnly)!!.totalCount)
+    assertEquals(10, timings.snapshot(Phase.Bind, longWithImages)!!.totalCount)
+    assertEquals(1, timings.snapshot(Phase.Measure)!!.totalCount)
+    assertNull(timings.snapshot(Phase.Measure, textOnly))
+    assertNull(timings.snapshot(Phase.Layout))
+
+    val bind = timings.snapshot(Phase.Bind)!!
+    assertEquals(100, bind.totalCount)
+    assertTrue(bind.valueAtPercentile(0.5) in 200L..(200L + 200L / 16))
+    assertTrue(bind.valueAtPercentile(0.95) in 8000L..(8000L + 8000L / 16))
+  }
+
+  @Test
+  fun `phases that don't depend on the post ignore the post shape`() {
+    timings.record(Phase.Frame, PostShape.of(imagesCount = 1, commentLength = 10), micros(16_600))
+    timings.record(Phase.ThumbnailLoad, PostShape.NONE, micros(4_000))
+
+    assertEquals(1, timings.snapshot(Phase.Frame, PostShape.NONE)!!.totalCount)
+    assertEquals(1, timings.snapshot(Phase.ThumbnailLoad, PostShape.NONE)!!.totalCount)
+  }
+
+  @Test
+  fun `report contains every recorded phase and the slowest shapes`() {
+    nanoTime = TimeUnit.SECONDS.toNanos(100)
+    timings.reset()
+
+    val slowShape = PostShape.of(imagesCount = 2, commentLength = 3500)
+    timings.record(Phase.Bind, PostShape.of(imagesCount = 0, commentLength = 10), micros(100))
+    timings.record(Phase.Bind, slowShape, micros(20_000))
+    timings.record(Phase.Frame, PostShape.NONE, micros(33_000))
+
+    nanoTime = TimeUnit.SECONDS.toNanos(130)
+    val reportLines = timings.report(maxShapesPerPhase = 1).lines()
+
+    assertEquals("PostListTimings (us), collecting for 30s", reportLines[0])
+
+    val bindLineIndex = reportLines.indexOfFirst { line -> line.startsWith("Bind ") }
+    assertTrue(reportLines[bindLineIndex].startsWith("Bind 2 "))
+    // The slowest shape only and the count of the posts that took longer than a frame
+    assertTrue(reportLines[bindLineIndex + 1], reportLines[bindLineIndex + 1].startsWith("  2+img,cmt3000+ 1 "))
+    assertTrue(reportLines[bindLineIndex + 1].endsWith(" 1"))
+    assertTrue(reportLines[bindLineIndex + 2].startsWith("Frame 1 "))
+    assertTrue(reportLines.none { line -> line.startsWith("Measure") })
+
+    timings.reset()
+    assertNull(timings.snapshot(Phase.Bind))
+  }
+
+  @Test
+  fun `posts bound concurrently with preloading are all counted`() {
+    val threadsCount = 4
+    val recordsPerThread = 50_000
+    val executor = Executors.newFixedThreadPool(threadsCount)
+    val doneLatch = CountDownLatch(threadsCount)
+
+    try {
+      repeat(threadsCount) { threadIndex ->
+        executor.execute {
+          val phase = if (threadIndex % 2 == 0) Phase.Bind else Phase.Preload
+
+          for (index in 0 until recordsPerThread) {
+            // The histograms are created lazily by whoever comes first
+            timings.record(phase, PostShape.of(index % 4, (index % 5) * 1000), micros(index % 100L))
+          }
+
+          doneLatch.countDown()
+        }
+      }
+
+      assertTrue(doneLatch.await(30, TimeUnit.SECONDS))
+    } finally {
+      executor.shutdownNow()
+    }
+
+    assertEquals(2L * recordsPerThread, timings.snapshot(Phase.Bind)!!.totalCount)
+    assertEquals(2L * recordsPerThread, timings.snapshot(Phase.Preload)!!.totalCount)
+  }
+
+  private fun micros(value: Long): Long = TimeUnit.MICROSECONDS.toNanos(value)
+}
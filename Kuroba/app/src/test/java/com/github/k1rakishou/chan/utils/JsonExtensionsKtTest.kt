@@ -1,6 +1,6 @@
 package com.github.k1rakishou.chan.utils
 
-import com.github.k1rakishou.chan.core.loader.impl.ThirdEyeLoader
+import com.github.k1rakishou.chan.features.thirdeye.ThirdEyeBooruClient
 import com.github.k1rakishou.common.mutableListWithCap
 import com.squareup.moshi.JsonReader
 import junit.framework.Assert.assertEquals
@@ -59,15 +59,15 @@ class JsonExtensionsKtTest {
       }
     """.trimIndent()
 
-    val fullUrlJsonKey = ThirdEyeLoader.JsonKey("post > file > url")
-    val previewUrlJsonKey = ThirdEyeLoader.JsonKey("post > preview > url")
-    val fileSizeJsonKey = ThirdEyeLoader.JsonKey("post > file > size")
-    val widthJsonKey = ThirdEyeLoader.JsonKey("post > file > width")
-    val heightJsonKey = ThirdEyeLoader.JsonKey("post > file > height")
-    val tagsJsonKey = ThirdEyeLoader.JsonKey("post > tags > *")
-    val tags2JsonKey = ThirdEyeLoader.JsonKey("post > tags2 > *")
+    val fullUrlJsonKey = ThirdEyeBooruClient.JsonKey("post > file > url")
+    val previewUrlJsonKey = ThirdEyeBooruClient.JsonKey("post > preview > url")
+    val fileSizeJsonKey = ThirdEyeBooruClient.JsonKey("post > file > size")
+    val widthJsonKey = ThirdEyeBooruClient.JsonKey("post > file > width")
+    val heightJsonKey = ThirdEyeBooruClient.JsonKey("post > file > height")
+    val tagsJsonKey = ThirdEyeBooruClient.JsonKey("post > tags > *")
+    val tags2JsonKey = ThirdEyeBooruClient.JsonKey("post > tags2 > *")
 
-    val namesToCheck = mutableMapOf<ThirdEyeLoader.JsonKey, ThirdEyeLoader.JsonValue?>()
+    val namesToCheck = mutableMapOf<ThirdEyeBooruClient.JsonKey, ThirdEyeBooruClient.JsonValue?>()
     namesToCheck[fullUrlJsonKey] = null
     namesToCheck[previewUrlJsonKey] = null
     namesToCheck[fileSizeJsonKey] = null
@@ -82,8 +82,8 @@ class JsonExtensionsKtTest {
           visitor = { path, name, value ->
             for (jsonKey in namesToCheck.keys) {
               if (jsonKey.compare(path, name)) {
-                if (namesToCheck[jsonKey] is ThirdEyeLoader.JsonValue.JsonString) {
-                  val prevValue = (namesToCheck[jsonKey] as ThirdEyeLoader.JsonValue.JsonString).value
+                if (namesToCheck[jsonKey] is ThirdEyeBooruClient.JsonValue.JsonString) {
+                  val prevValue = (namesToCheck[jsonKey] as ThirdEyeBooruClient.JsonValue.JsonString).value
 
                   val list = mutableListWithCap<String>(10).apply {
                     if (prevValue != null) {
@@ -95,13 +95,13 @@ class JsonExtensionsKtTest {
                     }
                   }
 
-                  namesToCheck[jsonKey] = ThirdEyeLoader.JsonValue.JsonArray(list)
-                } else if (namesToCheck[jsonKey] is ThirdEyeLoader.JsonValue.JsonArray) {
+                  namesToCheck[jsonKey] = ThirdEyeBooruClient.JsonValue.JsonArray(list)
+                } else if (namesToCheck[jsonKey] is ThirdEyeBooruClient.JsonValue.JsonArray) {
                   if (value != null) {
-                    (namesToCheck[jsonKey] as ThirdEyeLoader.JsonValue.JsonArray).values.add(value)
+                    (namesToCheck[jsonKey] as ThirdEyeBooruClient.JsonValue.JsonArray).values.add(value)
                   }
                 } else {
-                  namesToCheck[jsonKey] = ThirdEyeLoader.JsonValue.JsonString(value)
+                  namesToCheck[jsonKey] = ThirdEyeBooruClient.JsonValue.JsonString(value)
                 }
 
                 break
@@ -0,0 +1,67 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.k1rakishou.chan.core.site.parser.AnchorHrefTokenizer
+import com.github.k1rakishou.chan.core.site.parser.QuoteLinkFormat
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.regex.Pattern
+
+@RunWith(AndroidJUnit4::class)
+class AnchorHrefTokenizerBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val hrefs = BenchmarkFixtures.anchorHrefs(count = 500)
+  private val anchorHrefTokenizer = AnchorHrefTokenizer(QuoteLinkFormat.FOUR_CHAN)
+
+  @Test
+  fun tokenize() {
+    var linksCount = 0
+
+    benchmarkRule.measureRepeated {
+      for (href in hrefs) {
+        if (anchorHrefTokenizer.tokenize(href) === AnchorHrefTokenizer.AnchorToken.Link) {
+          ++linksCount
+        }
+      }
+    }
+
+    check(linksCount > 0) { "No links found" }
+  }
+
+  /**
+   * The patterns CommentParser used to run for every anchor, for comparison.
+   * */
+  @Test
+  fun matchPatterns() {
+    var linksCount = 0
+
+    benchmarkRule.measureRepeated {
+      for (href in hrefs) {
+        val matched = FULL_QUOTE_PATTERN.matcher(href).find()
+          || QUOTE_PATTERN.matcher(href).matches()
+          || BOARD_LINK_PATTERN.matcher(href).matches()
+          || BOARD_LINK_PATTERN_8CHAN.matcher(href).matches()
+          || BOARD_SEARCH_PATTERN.matcher(href).matches()
+
+        if (!matched) {
+          ++linksCount
+        }
+      }
+    }
+
+    check(linksCount > 0) { "No links found" }
+  }
+
+  companion object {
+    private val FULL_QUOTE_PATTERN = Pattern.compile("/(\\w+)/\\w+/(\\d+)#p(\\d+)")
+    private val QUOTE_PATTERN = Pattern.compile("#p(\\d+)")
+    private val BOARD_LINK_PATTERN = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/")
+    private val BOARD_LINK_PATTERN_8CHAN = Pattern.compile("/(.*?)/index.html")
+    private val BOARD_SEARCH_PATTERN = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/catalog#s=(.*)")
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.github.k1rakishou.chan.core.backup.BackupArchiveWriter
+import com.google.gson.Gson
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.OutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+
+/**
+ * Exporting a backup with [BackupArchiveWriter] compared to the old way (every file deflated
+ * sequentially through a single [ZipOutputStream]). The output is discarded so that only the
+ * compression and the reading of the files is measured.
+ * */
+@RunWith(AndroidJUnit4::class)
+class BackupArchiveWriterBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val cacheDir = InstrumentationRegistry.getInstrumentation().targetContext.cacheDir
+  private val workDir = File(cacheDir, "backup_archive_writer_benchmark")
+
+  private lateinit var entries: List<BackupArchiveWriter.Entry>
+
+  @Before
+  fun setUp() {
+    workDir.deleteRecursively()
+    check(workDir.mkdirs()) { "Failed to create '${workDir.absolutePath}'" }
+
+    entries = createEntries(File(workDir, "source").apply { mkdirs() })
+  }
+
+  @After
+  fun tearDown() {
+    workDir.deleteRecursively()
+  }
+
+  @Test
+  fun exportSequentially() {
+    benchmarkRule.measureRepeated {
+      ZipOutputStream(NullOutputStream.buffered()).use { zipOutputStream ->
+        entries.forEach { entry ->
+          zipOutputStream.putNextEntry(ZipEntry(entry.name))
+          entry.file.inputStream().use { inputStream -> inputStream.copyTo(zipOutputStream) }
+          zipOutputStream.closeEntry()
+        }
+      }
+    }
+  }
+
+  @Test
+  fun exportInParallel() {
+    val writer = BackupArchiveWriter(
+      gson = Gson(),
+      tempDir = File(workDir, "temp").apply { mkdirs() },
+      parallelism = Runtime.getRuntime().availableProcessors().coerceAtLeast(2)
+    )
+
+    benchmarkRule.measureRepeated {
+      runBlocking { writer.write(entries, NullOutputStream) }
+    }
+  }
+
+  private fun createEntries(sourceDir: File): List<BackupArchiveWriter.Entry> {
+    val random = Random(42)
+    val entries = mutableListOf<BackupArchiveWriter.Entry>()
+
+    // Databases and prefs compress well
+    repeat(4) { index ->
+      val file = File(sourceDir, "Kuroba_$index.db")
+      file.outputStream().buffered().use { outputStream ->
+        repeat(4 * 1024) { row ->
+          outputStream.write("row=$row thread=${random.nextInt(1000)} comment=${"text ".repeat(row % 200)}\n".toByteArray())
+        }
+      }
+
+      entries += BackupArchiveWriter.Entry(file.name, file)
+    }
+
+    // Media doesn't
+    repeat(32) { index ->
+      val file = File(sourceDir, "media_$index.jpg")
+      file.writeBytes(random.nextBytes(256 * 1024))
+
+      entries += BackupArchiveWriter.Entry("thread_downloads_cache_dir/${file.name}", file)
+    }
+
+    return entries
+  }
+
+  // OutputStream.nullOutputStream() is only available since API 33
+  private object NullOutputStream : OutputStream() {
+    override fun write(b: Int) {
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+    }
+  }
+}
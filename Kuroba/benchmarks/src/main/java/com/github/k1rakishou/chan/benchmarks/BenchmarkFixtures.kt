@@ -0,0 +1,273 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import android.graphics.Color
+import android.text.SpannableString
+import android.text.SpannableStringBuilder
+import android.text.Spanned
+import android.text.style.ForegroundColorSpan
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.FilterAction
+import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import com.google.gson.stream.JsonWriter
+import java.io.StringWriter
+import java.util.*
+
+/**
+ * Synthetic 4chan-like data for benchmarks. Everything is generated from a fixed seed so every run
+ * (and every device) measures exactly the same input.
+ * */
+object BenchmarkFixtures {
+  const val SITE_NAME = "4chan"
+  const val BOARD_CODE = "g"
+  const val THREAD_NO = 100_000L
+
+  private const val SEED = 0x4B75726FL
+
+  private val WORDS = arrayOf(
+    "anon", "thread", "kotlin", "android", "phone", "battery", "linux", "window", "desktop",
+    "keyboard", "image", "archive", "catalog", "bump", "board", "filter", "parser", "cache",
+    "memory", "update", "network", "server", "client", "screen", "display", "quote", "reply"
+  )
+
+  val boardDescriptor: BoardDescriptor
+    get() = BoardDescriptor.create(SITE_NAME, BOARD_CODE)
+
+  fun threadJson(postsCount: Int): String {
+    val random = Random(SEED)
+    val stringWriter = StringWriter()
+
+    JsonWriter(stringWriter).use { writer ->
+      writer.beginObject()
+      writer.name("posts")
+      writer.beginArray()
+
+      for (index in 0 until postsCount) {
+        writePost(writer, random, THREAD_NO, THREAD_NO + index, isOp = index == 0, repliesCount = postsCount - 1)
+      }
+
+      writer.endArray()
+      writer.endObject()
+    }
+
+    return stringWriter.toString()
+  }
+
+  fun catalogJson(pagesCount: Int, threadsPerPage: Int): String {
+    val random = Random(SEED)
+    val stringWriter = StringWriter()
+
+    JsonWriter(stringWriter).use { writer ->
+      writer.beginArray()
+
+      for (page in 0 until pagesCount) {
+        writer.beginObject()
+        writer.name("page").value(page + 1)
+        writer.name("threads")
+        writer.beginArray()
+
+        for (index in 0 until threadsPerPage) {
+          val threadNo = THREAD_NO + (page * threadsPerPage + index) * 1000L
+          writePost(writer, random, threadNo, threadNo, isOp = true, repliesCount = random.nextInt(300))
+        }
+
+        writer.endArray()
+        writer.endObject()
+      }
+
+      writer.endArray()
+    }
+
+    return stringWriter.toString()
+  }
+
+  fun commentsHtml(count: Int): List<String> {
+    val random = Random(SEED)
+    return (0 until count).map { index -> commentHtml(random, THREAD_NO + index) }
+  }
+
+  /**
+   * Posts of a single thread with already "parsed" comments (the html is used as the comment text).
+   * */
+  fun threadPostBuilders(postsCount: Int): List<ChanPostBuilder> {
+    val random = Random(SEED)
+    val boardDescriptor = boardDescriptor
+
+    return (0 until postsCount).map { index ->
+      val postNo = THREAD_NO + index
+      val comment = commentHtml(random, postNo)
+
+      val builder = ChanPostBuilder()
+        .boardDescriptor(boardDescriptor)
+        .id(postNo)
+        .opId(THREAD_NO)
+        .op(index == 0)
+        .setUnixTimestampSeconds(1_700_000_000L + index)
+        .name("Anonymous")
+        .posterId(java.lang.Long.toHexString(random.nextLong()).take(8))
+        .comment(comment)
+
+      if (index == 0) {
+        builder.subject(words(random, 4))
+      }
+
+      builder.postCommentBuilder.setParsedComment(SpannableString(comment))
+      builder
+    }
+  }
+
+  /**
+   * Long "parsed" comments (effort posts, copypastas) with greentext and quote spans.
+   * */
+  fun longComments(count: Int, linesCount: Int = 30): List<SpannableString> {
+    val random = Random(SEED)
+
+    return (0 until count).map { index ->
+      val postNo = THREAD_NO + index
+      val builder = SpannableStringBuilder()
+
+      for (line in 0 until linesCount) {
+        if (line > 0) {
+          builder.append('\n')
+        }
+
+        val lineStart = builder.length
+
+        when (random.nextInt(5)) {
+          0 -> {
+            builder.append(">>").append((postNo - 1 - random.nextInt(50)).coerceAtLeast(THREAD_NO).toString())
+            builder.setSpan(ForegroundColorSpan(Color.RED), lineStart, builder.length, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+          }
+          1 -> {
+            builder.append(">").append(words(random, 6 + random.nextInt(10)))
+            builder.setSpan(ForegroundColorSpan(Color.GREEN), lineStart, builder.length, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+          }
+          else -> builder.append(words(random, 10 + random.nextInt(30)))
+        }
+      }
+
+      SpannableString(builder)
+    }
+  }
+
+  /**
+   * Hrefs of comment anchors in about the proportions they show up on 4chan, mostly quotes.
+   * */
+  fun anchorHrefs(count: Int): List<String> {
+    val random = Random(SEED)
+
+    return (0 until count).map { index ->
+      val postNo = THREAD_NO + index
+
+      when (random.nextInt(10)) {
+        in 0..5 -> "#p${(postNo - 1 - random.nextInt(50)).coerceAtLeast(THREAD_NO)}"
+        6 -> "/${BOARD_CODE}/thread/${THREAD_NO - 1000}#p${THREAD_NO - 1000 + random.nextInt(300)}"
+        7 -> "//boards.4channel.org/${BOARD_CODE}/"
+        8 -> "//boards.4channel.org/${BOARD_CODE}/catalog#s=${words(random, 2).replace(" ", "%20")}"
+        else -> "https://example.com/${words(random, 1)}/${postNo}.html?${words(random, 1)}=1"
+      }
+    }
+  }
+
+  fun filters(count: Int): List<ChanFilter> {
+    val random = Random(SEED)
+    val types = arrayOf(
+      FilterType.COMMENT.flag,
+      FilterType.SUBJECT.flag or FilterType.COMMENT.flag,
+      FilterType.NAME.flag or FilterType.TRIPCODE.flag,
+      FilterType.ID.flag,
+      FilterType.FILENAME.flag or FilterType.IMAGE.flag
+    )
+
+    return (0 until count).map { index ->
+      val pattern = when (index % 3) {
+        0 -> words(random, 1)
+        1 -> "/(${words(random, 1)}|${words(random, 1)})\\s+${words(random, 1)}/i"
+        else -> "\"${words(random, 2)}\""
+      }
+
+      ChanFilter(
+        filterDatabaseId = index + 1L,
+        enabled = true,
+        type = types[index % types.size],
+        pattern = pattern,
+        action = FilterAction.HIDE.id,
+        onlyOnOP = index % 7 == 0
+      )
+    }
+  }
+
+  private fun writePost(
+    writer: JsonWriter,
+    random: Random,
+    threadNo: Long,
+    postNo: Long,
+    isOp: Boolean,
+    repliesCount: Int
+  ) {
+    writer.beginObject()
+    writer.name("no").value(postNo)
+    writer.name("resto").value(if (isOp) 0L else threadNo)
+    writer.name("now").value("01/01/24(Mon)00:00:00")
+    writer.name("time").value(1_700_000_000L + (postNo - threadNo))
+    writer.name("name").value("Anonymous")
+    writer.name("id").value(java.lang.Long.toHexString(random.nextLong()).take(8))
+
+    if (isOp) {
+      writer.name("sub").value(words(random, 4))
+      writer.name("replies").value(repliesCount)
+      writer.name("images").value(repliesCount / 4)
+      writer.name("unique_ips").value(repliesCount / 2)
+      writer.name("last_modified").value(1_700_000_000L + repliesCount)
+    }
+
+    if (random.nextInt(10) == 0) {
+      writer.name("trip").value("!" + java.lang.Long.toHexString(random.nextLong()).take(10))
+    }
+
+    writer.name("com").value(commentHtml(random, postNo))
+
+    if (isOp || random.nextInt(4) == 0) {
+      writer.name("tim").value(1_700_000_000_000L + postNo)
+      writer.name("filename").value(words(random, 2).replace(' ', '_'))
+      writer.name("ext").value(if (random.nextBoolean()) ".jpg" else ".png")
+      writer.name("w").value(1920)
+      writer.name("h").value(1080)
+      writer.name("tn_w").value(250)
+      writer.name("tn_h").value(140)
+      writer.name("fsize").value(100_000 + random.nextInt(1_000_000))
+      writer.name("md5").value(java.lang.Long.toHexString(random.nextLong()) + "==")
+    }
+
+    writer.endObject()
+  }
+
+  private fun commentHtml(random: Random, postNo: Long): String {
+    return buildString {
+      val linesCount = 1 + random.nextInt(6)
+
+      for (line in 0 until linesCount) {
+        if (line > 0) {
+          append("<br>")
+        }
+
+        when (random.nextInt(6)) {
+          0 -> {
+            val quotedPostNo = (postNo - 1 - random.nextInt(50)).coerceAtLeast(THREAD_NO)
+            append("<a href=\"#p${quotedPostNo}\" class=\"quotelink\">&gt;&gt;${quotedPostNo}</a>")
+          }
+          1 -> append("<span class=\"quote\">&gt;${words(random, 6)}</span>")
+          2 -> append("<s>${words(random, 3)}</s> ${words(random, 4)}")
+          3 -> append("https://example.com/${words(random, 1)}<wbr>/${postNo}.html")
+          else -> append(words(random, 5 + random.nextInt(20)).replace("a ", "a &amp; "))
+        }
+      }
+    }
+  }
+
+  private fun words(random: Random, count: Int): String {
+    return (0 until count).joinToString(separator = " ") { WORDS[random.nextInt(WORDS.size)] }
+  }
+
+}
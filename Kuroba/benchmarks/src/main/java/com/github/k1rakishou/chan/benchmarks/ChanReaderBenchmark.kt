@@ -0,0 +1,164 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.github.k1rakishou.chan.core.manager.ArchivesManager
+import com.github.k1rakishou.chan.core.manager.BoardManager
+import com.github.k1rakishou.chan.core.manager.CurrentOpenedDescriptorStateManager
+import com.github.k1rakishou.chan.core.manager.SiteManager
+import com.github.k1rakishou.chan.core.site.Site
+import com.github.k1rakishou.chan.core.site.SiteRegistry
+import com.github.k1rakishou.chan.core.site.common.FutabaChanReader
+import com.github.k1rakishou.chan.core.site.parser.processor.AbstractChanReaderProcessor
+import com.github.k1rakishou.chan.core.site.sites.chan4.Chan4
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import com.google.gson.Gson
+import com.google.gson.stream.JsonReader
+import dagger.Lazy
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.ByteArrayInputStream
+import java.io.InputStreamReader
+import java.nio.charset.StandardCharsets
+
+@RunWith(AndroidJUnit4::class)
+class ChanReaderBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val threadJson = BenchmarkFixtures.threadJson(postsCount = THREAD_POSTS_COUNT)
+    .toByteArray(StandardCharsets.UTF_8)
+  private val catalogJson = BenchmarkFixtures.catalogJson(pagesCount = 10, threadsPerPage = 15)
+    .toByteArray(StandardCharsets.UTF_8)
+
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+    BoardDescriptor.create(BenchmarkFixtures.SITE_NAME, BenchmarkFixtures.BOARD_CODE),
+    BenchmarkFixtures.THREAD_NO
+  )
+  private val catalogDescriptor = ChanDescriptor.CatalogDescriptor.create(
+    BoardDescriptor.create(BenchmarkFixtures.SITE_NAME, BenchmarkFixtures.BOARD_CODE)
+  )
+
+  private val chanReader = createChanReader()
+
+  @Test
+  fun readThread() {
+    benchmarkRule.measureRepeated {
+      val processor = runWithTimingDisabled { CollectingChanReaderProcessor(threadDescriptor) }
+
+      runBlocking {
+        // FutabaChanReader.loadThreadFresh() requires the real ChanReaderProcessor which needs the
+        // database, so the thread object is iterated here the same way loadThreadFresh() does it.
+        JsonReader(InputStreamReader(ByteArrayInputStream(threadJson), StandardCharsets.UTF_8)).use { reader ->
+          reader.beginObject()
+          reader.nextName()
+          reader.beginArray()
+
+          while (reader.hasNext()) {
+            chanReader.readPostObject(reader, processor)
+          }
+
+          reader.endArray()
+          reader.endObject()
+        }
+      }
+
+      runWithTimingDisabled { assertEquals(THREAD_POSTS_COUNT, processor.postBuilders.size) }
+    }
+  }
+
+  @Test
+  fun readCatalog() {
+    benchmarkRule.measureRepeated {
+      val processor = runWithTimingDisabled { CollectingChanReaderProcessor(catalogDescriptor) }
+
+      runBlocking {
+        chanReader.loadCatalog(CATALOG_URL, ByteArrayInputStream(catalogJson), processor)
+      }
+    }
+  }
+
+  private fun createChanReader(): FutabaChanReader {
+    val context = InstrumentationRegistry.getInstrumentation().targetContext.applicationContext
+    val appScope = CoroutineScope(SupervisorJob())
+    val site = Chan4()
+
+    val appConstants = AppConstants(
+      context = context,
+      flavorType = AndroidUtils.FlavorType.Dev,
+      isLowRamDevice = false,
+      kurobaExCustomUserAgent = "KurobaEx-benchmarks",
+      overrideUserAgent = { "" },
+      maxPostsInDatabaseSettingValue = 75000,
+      maxThreadsInDatabaseSettingValue = 12500
+    )
+
+    val siteManager = object : SiteManager(
+      appScope,
+      false,
+      false,
+      Lazy { error("Not used by benchmarks") },
+      SiteRegistry
+    ) {
+      override fun bySiteDescriptor(siteDescriptor: SiteDescriptor): Site = site
+    }
+
+    return FutabaChanReader(
+      archivesManager = ArchivesManager(Lazy { Gson() }, context, appScope, appConstants, false),
+      siteManager = siteManager,
+      boardManager = BoardManager(
+        appScope,
+        false,
+        Lazy { error("Not used by benchmarks") },
+        CurrentOpenedDescriptorStateManager()
+      )
+    )
+  }
+
+  private class CollectingChanReaderProcessor(
+    override val chanDescriptor: ChanDescriptor
+  ) : AbstractChanReaderProcessor() {
+    val postBuilders = mutableListOf<ChanPostBuilder>()
+
+    override val page: Int?
+      get() = null
+    // The board manager is empty because it's never initialized
+    override val canUseEmptyBoardIfBoardDoesNotExist: Boolean
+      get() = true
+
+    override suspend fun setOp(op: ChanPostBuilder?) {
+    }
+
+    override suspend fun addPost(postBuilder: ChanPostBuilder) {
+      postBuilders += postBuilder
+    }
+
+    override suspend fun addManyPosts(postBuilders: List<ChanPostBuilder>) {
+      this.postBuilders += postBuilders
+    }
+
+    override suspend fun applyChanReadOptions() {
+    }
+
+    override suspend fun getToParse(): List<ChanPostBuilder> = postBuilders
+    override suspend fun getThreadDescriptors(): List<ChanDescriptor.ThreadDescriptor> = emptyList()
+    override suspend fun getTotalPostsCount(): Int = postBuilders.size
+  }
+
+  companion object {
+    private const val THREAD_POSTS_COUNT = 500
+    private const val CATALOG_URL = "https://a.4cdn.org/g/catalog.json"
+  }
+}
@@ -0,0 +1,54 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.k1rakishou.model.data.PostsFromServerData
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.thread.ChanThread
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class ChanThreadBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+    BenchmarkFixtures.boardDescriptor,
+    BenchmarkFixtures.THREAD_NO
+  )
+
+  private val posts = BenchmarkFixtures.threadPostBuilders(postsCount = THREAD_POSTS_COUNT)
+    .map { postBuilder -> postBuilder.build() }
+
+  private val postsFromServerData = PostsFromServerData(
+    allPostDescriptors = posts.map { post -> post.postDescriptor }.toSet(),
+    isIncrementalUpdate = false,
+    isUpdatingDataFromTheServer = true
+  )
+
+  @Test
+  fun addPostsToEmptyThread() {
+    benchmarkRule.measureRepeated {
+      val chanThread = runWithTimingDisabled { ChanThread(false, threadDescriptor, 0L) }
+      chanThread.addOrUpdatePosts(posts, postsFromServerData)
+    }
+  }
+
+  @Test
+  fun updateAllPostsOfThread() {
+    // The most common case, a thread reload where nothing (or almost nothing) has changed
+    val chanThread = ChanThread(false, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(posts, postsFromServerData)
+
+    benchmarkRule.measureRepeated {
+      chanThread.addOrUpdatePosts(posts, postsFromServerData)
+    }
+  }
+
+  companion object {
+    private const val THREAD_POSTS_COUNT = 500
+  }
+}
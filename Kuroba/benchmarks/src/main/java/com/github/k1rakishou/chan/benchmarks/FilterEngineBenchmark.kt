@@ -0,0 +1,66 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.k1rakishou.chan.core.helper.FilterEngine
+import com.github.k1rakishou.chan.core.manager.ChanFilterManager
+import com.github.k1rakishou.model.data.filter.FilterType
+import dagger.Lazy
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class FilterEngineBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val filters = BenchmarkFixtures.filters(count = 50)
+  private val postBuilders = BenchmarkFixtures.threadPostBuilders(postsCount = 300)
+  private val filterTypes = FilterType.values()
+
+  private val filterEngine = FilterEngine(
+    ChanFilterManager(
+      isDevBuild = false,
+      appScope = CoroutineScope(SupervisorJob()),
+      _chanFilterRepository = Lazy { error("Not used by benchmarks") },
+      _chanPostRepository = Lazy { error("Not used by benchmarks") },
+      _chanFilterWatchRepository = Lazy { error("Not used by benchmarks") },
+      _postFilterHighlightManager = Lazy { error("Not used by benchmarks") },
+      _postFilterManager = Lazy { error("Not used by benchmarks") }
+    )
+  )
+
+  @Test
+  fun typeMatches() {
+    var matchedCount = 0
+
+    benchmarkRule.measureRepeated {
+      for (filter in filters) {
+        for (filterType in filterTypes) {
+          if (filterEngine.typeMatches(filter, filterType)) {
+            ++matchedCount
+          }
+        }
+      }
+    }
+
+    check(matchedCount > 0) { "No filter types matched" }
+  }
+
+  @Test
+  fun matchPosts() {
+    benchmarkRule.measureRepeated {
+      for (postBuilder in postBuilders) {
+        for (filter in filters) {
+          if (filterEngine.matches(filter, postBuilder)) {
+            break
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.k1rakishou.core_parser.comment.HtmlParser
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class HtmlParserBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val htmlParser = HtmlParser()
+  private val comments = BenchmarkFixtures.commentsHtml(count = 500)
+
+  @Test
+  fun parseComments() {
+    benchmarkRule.measureRepeated {
+      for (comment in comments) {
+        htmlParser.parse(comment)
+      }
+    }
+  }
+}
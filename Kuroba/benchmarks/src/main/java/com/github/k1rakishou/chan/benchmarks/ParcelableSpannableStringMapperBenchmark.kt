@@ -0,0 +1,80 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import android.graphics.Typeface
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.style.StrikethroughSpan
+import android.text.style.StyleSpan
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.github.k1rakishou.core_spannable.ForegroundColorIdSpan
+import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableSpannableStringMapper
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class ParcelableSpannableStringMapperBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val spannedComments = BenchmarkFixtures.commentsHtml(count = 300)
+    .mapIndexed { index, comment -> createSpannedComment(index, comment) }
+
+  private val parcelableComments = spannedComments
+    .map { comment -> ParcelableSpannableStringMapper.toParcelableSpannableString(comment)!! }
+
+  @Test
+  fun toParcelableSpannableString() {
+    benchmarkRule.measureRepeated {
+      for (comment in spannedComments) {
+        ParcelableSpannableStringMapper.toParcelableSpannableString(comment)
+      }
+    }
+  }
+
+  @Test
+  fun fromParcelableSpannableString() {
+    benchmarkRule.measureRepeated {
+      for (parcelableComment in parcelableComments) {
+        ParcelableSpannableStringMapper.fromParcelableSpannableString(parcelableComment)
+      }
+    }
+  }
+
+  /**
+   * Roughly what the comment parser produces: quote links, greentext, spoilers and bold text.
+   * */
+  private fun createSpannedComment(index: Int, comment: String): SpannableString {
+    val spannable = SpannableString(comment)
+    val length = spannable.length
+    val step = (length / 4).coerceAtLeast(1)
+
+    val quotedPostNo = BenchmarkFixtures.THREAD_NO + index
+    val postLinkable = PostLinkable(
+      ">>${quotedPostNo}",
+      PostLinkable.Value.ThreadOrPostLink(BenchmarkFixtures.BOARD_CODE, BenchmarkFixtures.THREAD_NO, quotedPostNo),
+      PostLinkable.Type.QUOTE
+    )
+
+    spannable.setSpan(postLinkable, 0, step.coerceAtMost(length), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+    spannable.setSpan(
+      ForegroundColorIdSpan(ChanThemeColorId.PostInlineQuoteColor),
+      step.coerceAtMost(length),
+      (step * 2).coerceAtMost(length),
+      Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+    )
+    spannable.setSpan(
+      StrikethroughSpan(),
+      (step * 2).coerceAtMost(length),
+      (step * 3).coerceAtMost(length),
+      Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+    )
+    spannable.setSpan(StyleSpan(Typeface.BOLD), (step * 3).coerceAtMost(length), length, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+
+    return spannable
+  }
+}
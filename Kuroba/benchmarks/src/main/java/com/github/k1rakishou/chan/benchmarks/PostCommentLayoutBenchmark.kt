@@ -0,0 +1,94 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import android.os.Build
+import android.text.Layout
+import android.text.StaticLayout
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.core.text.PrecomputedTextCompat
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.SdkSuppress
+import androidx.test.platform.app.InstrumentationRegistry
+import com.github.k1rakishou.chan.ui.cell.PostCommentPrecomputer
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * How much of laying out a long post comment is left for the main thread (PostCell.onMeasure) when
+ * the comment was precomputed on a background thread by [PostCommentPrecomputer], compared to
+ * measuring it from scratch. Keep in mind that the system text layout cache makes the "from
+ * scratch" numbers better than they are during real scrolling where every comment is new.
+ * */
+@RunWith(AndroidJUnit4::class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.P)
+class PostCommentLayoutBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private val resources = InstrumentationRegistry.getInstrumentation().targetContext.resources
+  private val postCommentPrecomputer = PostCommentPrecomputer(resources)
+  private val textMetricsParams = postCommentPrecomputer.textMetricsParams(TEXT_SIZE_SP)
+  private val comments = BenchmarkFixtures.longComments(count = 20)
+
+  // About the width of a comment in a phone portrait list
+  private val commentWidth = (resources.displayMetrics.widthPixels * 0.8f).toInt()
+
+  @Test
+  fun layoutComment() {
+    var linesCount = 0
+
+    benchmarkRule.measureRepeated {
+      for (comment in comments) {
+        linesCount += buildLayout(comment).lineCount
+      }
+    }
+
+    check(linesCount > 0) { "No lines" }
+  }
+
+  @Test
+  fun layoutPrecomputedComment() {
+    val precomputedComments = comments.map { comment -> PrecomputedTextCompat.create(comment, textMetricsParams) }
+    var linesCount = 0
+
+    benchmarkRule.measureRepeated {
+      for (precomputedComment in precomputedComments) {
+        linesCount += buildLayout(precomputedComment).lineCount
+      }
+    }
+
+    check(linesCount > 0) { "No lines" }
+  }
+
+  /**
+   * The part that is done on a background thread now.
+   * */
+  @Test
+  fun precomputeComment() {
+    var length = 0
+
+    benchmarkRule.measureRepeated {
+      for (comment in comments) {
+        length += PrecomputedTextCompat.create(comment, textMetricsParams).length
+      }
+    }
+
+    check(length > 0) { "Empty comments" }
+  }
+
+  private fun buildLayout(text: CharSequence): StaticLayout {
+    return StaticLayout.Builder
+      .obtain(text, 0, text.length, textMetricsParams.textPaint, commentWidth)
+      .setAlignment(Layout.Alignment.ALIGN_NORMAL)
+      .setTextDirection(textMetricsParams.textDirection)
+      .setBreakStrategy(textMetricsParams.breakStrategy)
+      .setHyphenationFrequency(textMetricsParams.hyphenationFrequency)
+      .setIncludePad(true)
+      .build()
+  }
+
+  companion object {
+    private const val TEXT_SIZE_SP = 16
+  }
+}
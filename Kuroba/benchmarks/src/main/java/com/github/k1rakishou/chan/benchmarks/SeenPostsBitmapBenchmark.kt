@@ -0,0 +1,170 @@
+package com.github.k1rakishou.chan.benchmarks
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.room.Room
+import androidx.room.withTransaction
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.source.local.SeenPostLocalSource
+import kotlinx.coroutines.runBlocking
+import org.joda.time.DateTime
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+
+/**
+ * Loading the seen posts of every thread from one bitmap row per thread compared to the way they
+ * were stored before the bitmaps (one row per post). The sizes of both are compared by
+ * SeenPostsBitmapSizeTest in core-model.
+ * */
+@RunWith(AndroidJUnit4::class)
+class SeenPostsBitmapBenchmark {
+  @get:Rule
+  val benchmarkRule = BenchmarkRule()
+
+  private lateinit var database: KurobaDatabase
+  private lateinit var localSource: SeenPostLocalSource
+  private lateinit var threads: Map<ChanDescriptor.ThreadDescriptor, List<SeenPost>>
+  private lateinit var threadIds: List<Long>
+
+  @Before
+  fun setUp() {
+    database = Room.inMemoryDatabaseBuilder(
+      InstrumentationRegistry.getInstrumentation().targetContext,
+      KurobaDatabase::class.java
+    )
+      .addCallback(KurobaDatabase.TriggersCallback)
+      .build()
+
+    localSource = SeenPostLocalSource(database)
+    threads = generateThreads()
+
+    val db = database.openHelper.writableDatabase
+    db.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('${BenchmarkFixtures.SITE_NAME}')")
+    db.execSQL(
+      "CREATE TABLE IF NOT EXISTS `seen_post` (`owner_thread_id` INTEGER NOT NULL, `post_no` INTEGER NOT NULL, " +
+        "`post_sub_no` INTEGER NOT NULL, `inserted_at` INTEGER NOT NULL, PRIMARY KEY(`owner_thread_id`, `post_no`, `post_sub_no`))"
+    )
+    db.execSQL("CREATE INDEX IF NOT EXISTS `seen_post_owner_thread_id_idx` ON `seen_post` (`owner_thread_id`)")
+
+    // Threads are created by the bitmaps so that both tables use the same thread ids
+    runBlocking {
+      database.withTransaction {
+        threads.forEach { (threadDescriptor, seenPosts) -> localSource.insertMany(threadDescriptor, seenPosts) }
+      }
+    }
+
+    threadIds = insertRowPerPost(db)
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun loadSeenPostsBitmaps() {
+    var loaded = 0
+
+    benchmarkRule.measureRepeated {
+      for (threadDescriptor in threads.keys) {
+        loaded += runBlocking { database.withTransaction { localSource.selectAllByThreadDescriptor(threadDescriptor) } }.size
+      }
+    }
+
+    check(loaded > 0) { "Nothing loaded" }
+  }
+
+  @Test
+  fun loadSeenPostRows() {
+    val db = database.openHelper.writableDatabase
+    var loaded = 0
+
+    benchmarkRule.measureRepeated {
+      for (threadId in threadIds) {
+        val query = "SELECT post_no, post_sub_no, inserted_at FROM seen_post WHERE owner_thread_id = ?"
+
+        db.query(query, arrayOf<Any?>(threadId)).use { cursor ->
+          while (cursor.moveToNext()) {
+            ++loaded
+          }
+        }
+      }
+    }
+
+    check(loaded > 0) { "Nothing loaded" }
+  }
+
+  private fun insertRowPerPost(db: SupportSQLiteDatabase): List<Long> {
+    val threadIdsByThreadNo = mutableMapOf<Long, Long>()
+
+    db.query("SELECT thread_no, thread_id FROM chan_thread").use { cursor ->
+      while (cursor.moveToNext()) {
+        threadIdsByThreadNo[cursor.getLong(0)] = cursor.getLong(1)
+      }
+    }
+
+    val statement = db.compileStatement("INSERT INTO seen_post (owner_thread_id, post_no, post_sub_no, inserted_at) VALUES (?, ?, ?, ?)")
+
+    db.beginTransaction()
+    try {
+      threads.forEach { (threadDescriptor, seenPosts) ->
+        seenPosts.forEach { seenPost ->
+          statement.bindLong(1, threadIdsByThreadNo[threadDescriptor.threadNo]!!)
+          statement.bindLong(2, seenPost.postDescriptor.postNo)
+          statement.bindLong(3, seenPost.postDescriptor.postSubNo)
+          statement.bindLong(4, seenPost.insertedAt.millis)
+          statement.executeInsert()
+        }
+      }
+
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+      statement.close()
+    }
+
+    return threads.keys.map { threadDescriptor -> threadIdsByThreadNo[threadDescriptor.threadNo]!! }
+  }
+
+  /**
+   * Threads with board-wide post numbers (the gaps between the posts of a thread are the posts of
+   * the other threads) where most but not all posts were seen.
+   * */
+  private fun generateThreads(): Map<ChanDescriptor.ThreadDescriptor, List<SeenPost>> {
+    val random = Random(42)
+    val insertedAt = DateTime.now()
+
+    return (0 until THREADS_COUNT).associate { threadIndex ->
+      val threadNo = BenchmarkFixtures.THREAD_NO + threadIndex * 100_000L
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(BenchmarkFixtures.SITE_NAME, BenchmarkFixtures.BOARD_CODE, threadNo)
+      val seenPosts = mutableListOf(SeenPost(PostDescriptor.create(threadDescriptor, threadNo), insertedAt))
+      var postNo = threadNo
+
+      repeat(POSTS_PER_THREAD - 1) {
+        postNo += 1 + random.nextInt(MAX_POST_NO_GAP)
+
+        if (random.nextInt(10) != 0) {
+          seenPosts += SeenPost(PostDescriptor.create(threadDescriptor, postNo), insertedAt)
+        }
+      }
+
+      return@associate threadDescriptor to seenPosts
+    }
+  }
+
+  companion object {
+    private const val THREADS_COUNT = 50
+    private const val POSTS_PER_THREAD = 300
+    private const val MAX_POST_NO_GAP = 8
+  }
+}
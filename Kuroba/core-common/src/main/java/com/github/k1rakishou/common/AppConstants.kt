@@ -25,6 +25,9 @@ open class AppConstants(
   val processorsCount: Int
   val proxiesFileName = PROXIES_FILE_NAME
   val thirdEyeSettingsFileName = THIRD_EYE_SETTINGS_FILE_NAME
+  val thirdEyeLookupCacheFileName = THIRD_EYE_LOOKUP_CACHE_FILE_NAME
+  val imageSaverContentIndexFileName = IMAGE_SAVER_CONTENT_INDEX_FILE_NAME
+  val startupTraceFileName = STARTUP_TRACE_FILE_NAME
   val bookmarkWatchWorkUniqueTag = "BookmarkWatcherController_${flavorType.name}"
   val filterWatchWorkUniqueTag = "FilterWatcherController_${flavorType.name}"
   val threadDownloadWorkUniqueTag = "ThreadDownloadController_${flavorType.name}"
@@ -52,8 +55,6 @@ open class AppConstants(
   val isDebuggerAttached: Boolean
     get() = Debug.isDebuggerConnected()
 
-  // 128MB
-  val exoPlayerDiskCacheMaxSize = 128L * 1024 * 1024
   val mpvDemuxerCacheMaxSize: Long
 
   val replyDraftsDir: File
@@ -96,15 +97,8 @@ open class AppConstants(
       return field
     }
 
-  val exoPlayerCacheDir: File
-    get() {
-      if (field.exists()) {
-        return field
-      }
-
-      check(field.mkdir()) { "Failed to create ExoPlayer cache directory! exoPlayerCacheDir=${field.absolutePath}" }
-      return field
-    }
+  // ExoPlayer's own SimpleCache used to live here, now it's only deleted by the CacheHandler
+  val legacyExoPlayerCacheDir: File
 
   val threadDownloaderCacheDir: File
     get() {
@@ -177,7 +171,7 @@ open class AppConstants(
 
     diskCacheDir = File(context.filesDir, DISK_CACHE_DIR_NAME)
     tempFilesDir = File(context.filesDir, TEMP_FILES_DIR_NAME)
-    exoPlayerCacheDir = File(context.cacheDir, EXO_PLAYER_CACHE_DIR_NAME)
+    legacyExoPlayerCacheDir = File(context.cacheDir, LEGACY_EXO_PLAYER_CACHE_DIR_NAME)
   }
 
   private fun calculateMpvDemuxerCacheSize(activityManager: ActivityManager?): Long {
@@ -220,6 +214,9 @@ open class AppConstants(
 
     private const val PROXIES_FILE_NAME = "kuroba_proxies.json"
     private const val THIRD_EYE_SETTINGS_FILE_NAME = "third_eye_settings.json"
+    private const val THIRD_EYE_LOOKUP_CACHE_FILE_NAME = "third_eye_lookup_cache"
+    private const val IMAGE_SAVER_CONTENT_INDEX_FILE_NAME = "image_saver_content_index"
+    private const val STARTUP_TRACE_FILE_NAME = "startup_trace.json"
 
     private const val REPLY_DRAFTS_DIR_NAME = "reply_drafts"
     private const val ATTACH_FILES_DIR_NAME = "attach_files"
@@ -228,7 +225,7 @@ open class AppConstants(
     private const val THREAD_DOWNLOADER_DIR_NAME = "thread_downloader_storage"
     private const val MPV_NATIVE_LIBS_DIR_NAME = "mpv_native_libs"
     private const val MPV_CERT_DIR_NAME = "certs/mpv"
-    private const val EXO_PLAYER_CACHE_DIR_NAME = "exo_player_cache"
+    private const val LEGACY_EXO_PLAYER_CACHE_DIR_NAME = "exo_player_cache"
 
     const val DISK_CACHE_DIR_NAME = "disk_cache"
     const val TEMP_FILES_DIR_NAME = "temp_files"
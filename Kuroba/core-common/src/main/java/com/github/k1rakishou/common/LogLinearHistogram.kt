@@ -0,0 +1,163 @@
+package com.github.k1rakishou.common
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A fixed size, lock-free histogram (in the spirit of HdrHistogram) for latencies recorded from hot
+ * paths (e.g. the main thread). Values below 2^[precisionBits] have their own buckets, every
+ * following power of two range is split into 2^([precisionBits] - 1) equally sized buckets, so the
+ * value reported for a percentile is never more than 2^(1 - [precisionBits]) (6.25% for the default
+ * precision) bigger than the real one. Values above [maxValue] are counted as [maxValue].
+ *
+ * Recording is a couple of atomic increments and never allocates. [snapshot] may be called at any
+ * time from any thread, it doesn't stop the recording so it may miss values that are recorded
+ * concurrently with it.
+ * */
+class LogLinearHistogram(
+  val maxValue: Long = DEFAULT_MAX_VALUE,
+  val precisionBits: Int = DEFAULT_PRECISION_BITS
+) {
+  private val linearBucketsCount = 1 shl precisionBits
+  private val subBucketsCount = linearBucketsCount / 2
+  private val counts: AtomicLongArray
+  private val totalValue = AtomicLong(0)
+  private val maxRecordedValue = AtomicLong(0)
+
+  init {
+    require(precisionBits in 1..10) { "Bad precisionBits: $precisionBits" }
+    require(maxValue >= linearBucketsCount) { "Bad maxValue: $maxValue" }
+
+    counts = AtomicLongArray(bucketIndex(maxValue) + 1)
+  }
+
+  val bucketsCount: Int
+    get() = counts.length()
+
+  fun record(value: Long) {
+    val clampedValue = value.coerceIn(0L, maxValue)
+
+    counts.incrementAndGet(bucketIndex(clampedValue))
+    totalValue.addAndGet(clampedValue)
+
+    while (true) {
+      val currentMax = maxRecordedValue.get()
+      if (clampedValue <= currentMax || maxRecordedValue.compareAndSet(currentMax, clampedValue)) {
+        break
+      }
+    }
+  }
+
+  fun reset() {
+    for (index in 0 until counts.length()) {
+      counts.set(index, 0L)
+    }
+
+    totalValue.set(0L)
+    maxRecordedValue.set(0L)
+  }
+
+  fun snapshot(): Snapshot {
+    return Snapshot(
+      histogram = this,
+      counts = LongArray(counts.length()) { index -> counts.get(index) },
+      totalValue = totalValue.get(),
+      maxValue = maxRecordedValue.get()
+    )
+  }
+
+  internal fun bucketIndex(value: Long): Int {
+    if (value < linearBucketsCount) {
+      return value.toInt()
+    }
+
+    val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(value)
+    val subBucket = (value ushr (magnitude - precisionBits + 1)).toInt() - subBucketsCount
+
+    return linearBucketsCount + (magnitude - precisionBits) * subBucketsCount + subBucket
+  }
+
+  /**
+   * The biggest value that is counted into the bucket with [index].
+   * */
+  internal fun highestValueOfBucket(index: Int): Long {
+    if (index < linearBucketsCount) {
+      return index.toLong()
+    }
+
+    val magnitude = (index - linearBucketsCount) / subBucketsCount + precisionBits
+    val subBucket = (index - linearBucketsCount) % subBucketsCount
+    val bucketWidth = 1L shl (magnitude - precisionBits + 1)
+    val lowestValue = (1L shl magnitude) + subBucket * bucketWidth
+
+    return lowestValue + bucketWidth - 1
+  }
+
+  class Snapshot internal constructor(
+    private val histogram: LogLinearHistogram,
+    private val counts: LongArray,
+    val totalValue: Long,
+    val maxValue: Long
+  ) {
+    val totalCount: Long = counts.sum()
+
+    val mean: Double
+      get() = if (totalCount == 0L) 0.0 else totalValue.toDouble() / totalCount.toDouble()
+
+    /**
+     * The value that [percentile] (0.0 - 1.0) of the recorded values are less than or equal to,
+     * rounded up to the end of its bucket (but never above the max recorded value).
+     * */
+    fun valueAtPercentile(percentile: Double): Long {
+      if (totalCount == 0L) {
+        return 0L
+      }
+
+      val threshold = Math.ceil(totalCount * percentile.coerceIn(0.0, 1.0)).toLong().coerceIn(1L, totalCount)
+      var accumulated = 0L
+
+      counts.forEachIndexed { index, count ->
+        accumulated += count
+        if (accumulated >= threshold) {
+          return minOf(histogram.highestValueOfBucket(index), maxValue)
+        }
+      }
+
+      return maxValue
+    }
+
+    /**
+     * Amount of recorded values that are bigger than [value] (with the precision of the buckets).
+     * */
+    fun countAbove(value: Long): Long {
+      val valueBucketIndex = histogram.bucketIndex(value.coerceIn(0L, histogram.maxValue))
+      var count = 0L
+
+      for (index in valueBucketIndex + 1 until counts.size) {
+        count += counts[index]
+      }
+
+      return count
+    }
+
+    /**
+     * Snapshots of histograms with the same [maxValue] and [precisionBits] can be merged.
+     * */
+    operator fun plus(other: Snapshot): Snapshot {
+      require(counts.size == other.counts.size) { "Histograms have different layouts" }
+
+      return Snapshot(
+        histogram = histogram,
+        counts = LongArray(counts.size) { index -> counts[index] + other.counts[index] },
+        totalValue = totalValue + other.totalValue,
+        maxValue = maxOf(maxValue, other.maxValue)
+      )
+    }
+  }
+
+  companion object {
+    // One minute in microseconds
+    const val DEFAULT_MAX_VALUE = 60_000_000L
+    const val DEFAULT_PRECISION_BITS = 5
+  }
+}
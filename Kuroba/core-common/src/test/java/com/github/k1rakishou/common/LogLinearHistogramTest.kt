@@ -0,0 +1,153 @@
+package com.github.k1rakishou.common
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.math.exp
+
+class LogLinearHistogramTest {
+
+  @Test
+  fun `every value is counted into a bucket that is not wider than the precision allows`() {
+    val histogram = LogLinearHistogram(maxValue = 10_000_000L)
+    var prevBucketIndex = -1
+
+    for (value in 0L..1_000_000L) {
+      val bucketIndex = histogram.bucketIndex(value)
+      val highestValue = histogram.highestValueOfBucket(bucketIndex)
+
+      // Buckets are contiguous
+      assertTrue("value=$value", bucketIndex == prevBucketIndex || bucketIndex == prevBucketIndex + 1)
+      assertTrue("value=$value, highestValue=$highestValue", highestValue >= value)
+      assertTrue("value=$value, highestValue=$highestValue", highestValue - value <= value / 16)
+
+      prevBucketIndex = bucketIndex
+    }
+
+    assertEquals(histogram.bucketIndex(10_000_000L) + 1, histogram.bucketsCount)
+  }
+
+  @Test
+  fun `small values are exact`() {
+    val histogram = LogLinearHistogram()
+    (1L..31L).forEach { value -> histogram.record(value) }
+
+    val snapshot = histogram.snapshot()
+    assertEquals(31, snapshot.totalCount)
+    assertEquals(16L, snapshot.valueAtPercentile(0.5))
+    assertEquals(31L, snapshot.valueAtPercentile(1.0))
+    assertEquals(1L, snapshot.valueAtPercentile(0.0))
+    assertEquals(16.0, snapshot.mean, 0.0001)
+  }
+
+  @Test
+  fun `percentiles are within the precision of the real ones`() {
+    val histogram = LogLinearHistogram()
+    val random = Random(42)
+
+    // Log-normally distributed latencies (median ~2ms with a long tail)
+    val values = (0 until 100_000)
+      .map { exp(7.6 + random.nextGaussian() * 1.2).toLong() }
+      .onEach { value -> histogram.record(value) }
+      .sorted()
+
+    val snapshot = histogram.snapshot()
+    assertEquals(values.size.toLong(), snapshot.totalCount)
+    assertEquals(values.last(), snapshot.maxValue)
+    assertEquals(values.average(), snapshot.mean, 0.0001 * values.average())
+
+    listOf(0.1, 0.5, 0.9, 0.99, 0.999).forEach { percentile ->
+      val exact = values[Math.ceil(values.size * percentile).toInt() - 1]
+      val estimated = snapshot.valueAtPercentile(percentile)
+
+      assertTrue("p=$percentile, exact=$exact, estimated=$estimated", estimated >= exact)
+      assertTrue("p=$percentile, exact=$exact, estimated=$estimated", estimated - exact <= exact / 16)
+    }
+
+    val exactCountAbove = values.count { value -> value > 16_000L }.toLong()
+    val estimatedCountAbove = snapshot.countAbove(16_000L)
+    // Only the values of the bucket with the threshold may be counted differently
+    assertTrue("exact=$exactCountAbove, estimated=$estimatedCountAbove", estimatedCountAbove <= exactCountAbove)
+    assertTrue(
+      "exact=$exactCountAbove, estimated=$estimatedCountAbove",
+      exactCountAbove - estimatedCountAbove <= values.count { value -> value in 16_001L..17_000L }
+    )
+  }
+
+  @Test
+  fun `values out of range are clamped`() {
+    val histogram = LogLinearHistogram(maxValue = 1000L)
+    histogram.record(-5L)
+    histogram.record(5000L)
+
+    val snapshot = histogram.snapshot()
+    assertEquals(2, snapshot.totalCount)
+    assertEquals(0L, snapshot.valueAtPercentile(0.5))
+    assertEquals(1000L, snapshot.valueAtPercentile(1.0))
+    assertEquals(1000L, snapshot.maxValue)
+  }
+
+  @Test
+  fun `snapshots are merged and reset clears everything`() {
+    val histogram1 = LogLinearHistogram()
+    val histogram2 = LogLinearHistogram()
+
+    (0 until 100).forEach { histogram1.record(100L) }
+    (0 until 100).forEach { histogram2.record(10_000L) }
+
+    val merged = histogram1.snapshot() + histogram2.snapshot()
+    assertEquals(200, merged.totalCount)
+    assertEquals(10_000L, merged.maxValue)
+    assertTrue(merged.valueAtPercentile(0.5) in 100L..(100L + 100L / 16))
+    assertTrue(merged.valueAtPercentile(0.51) in 10_000L..(10_000L + 10_000L / 16))
+
+    histogram1.reset()
+    val snapshot = histogram1.snapshot()
+    assertEquals(0, snapshot.totalCount)
+    assertEquals(0L, snapshot.maxValue)
+    assertEquals(0L, snapshot.valueAtPercentile(0.99))
+  }
+
+  @Test
+  fun `concurrent recording does not lose values`() {
+    val histogram = LogLinearHistogram()
+    val threadsCount = 8
+    val valuesPerThread = 200_000
+    val executor = Executors.newFixedThreadPool(threadsCount)
+    val startLatch = CountDownLatch(1)
+    val doneLatch = CountDownLatch(threadsCount)
+
+    try {
+      repeat(threadsCount) { threadIndex ->
+        executor.execute {
+          startLatch.await()
+
+          for (index in 0 until valuesPerThread) {
+            // Everyone hits the same buckets at the same time
+            histogram.record(((index % 1000) + 1).toLong() * (threadIndex + 1))
+          }
+
+          doneLatch.countDown()
+        }
+      }
+
+      startLatch.countDown()
+      assertTrue(doneLatch.await(30, TimeUnit.SECONDS))
+    } finally {
+      executor.shutdownNow()
+    }
+
+    val snapshot = histogram.snapshot()
+    val expectedTotalValue = (1..threadsCount).sumOf { multiplier ->
+      (valuesPerThread / 1000).toLong() * (1..1000).sumOf { value -> value.toLong() * multiplier }
+    }
+
+    assertEquals(threadsCount.toLong() * valuesPerThread, snapshot.totalCount)
+    assertEquals(expectedTotalValue, snapshot.totalValue)
+    assertEquals(1000L * threadsCount, snapshot.maxValue)
+  }
+}
@@ -5,7 +5,9 @@ import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.github.k1rakishou.common.DoNotStrip
+import com.github.k1rakishou.model.compactor.ForegroundDatabaseLoads
 import com.github.k1rakishou.model.converter.BitSetTypeConverter
 import com.github.k1rakishou.model.converter.ChanPostImageTypeTypeConverter
 import com.github.k1rakishou.model.converter.DateTimeTypeConverter
@@ -19,18 +21,21 @@ import com.github.k1rakishou.model.converter.VideoServiceTypeConverter
 import com.github.k1rakishou.model.dao.ChanBoardDao
 import com.github.k1rakishou.model.dao.ChanCatalogSnapshotDao
 import com.github.k1rakishou.model.dao.ChanFilterDao
+import com.github.k1rakishou.model.dao.ChanFilterWatchEvaluatedThreadDao
 import com.github.k1rakishou.model.dao.ChanFilterWatchGroupDao
 import com.github.k1rakishou.model.dao.ChanPostDao
 import com.github.k1rakishou.model.dao.ChanPostHideDao
 import com.github.k1rakishou.model.dao.ChanPostHttpIconDao
 import com.github.k1rakishou.model.dao.ChanPostImageDao
 import com.github.k1rakishou.model.dao.ChanPostReplyDao
+import com.github.k1rakishou.model.dao.ChanPostSearchDao
 import com.github.k1rakishou.model.dao.ChanSavedReplyDao
 import com.github.k1rakishou.model.dao.ChanSiteDao
 import com.github.k1rakishou.model.dao.ChanTextSpanDao
 import com.github.k1rakishou.model.dao.ChanThreadDao
 import com.github.k1rakishou.model.dao.ChanThreadViewableInfoDao
 import com.github.k1rakishou.model.dao.CompositeCatalogDao
+import com.github.k1rakishou.model.dao.DatabaseCompactorDao
 import com.github.k1rakishou.model.dao.DatabaseMetaDao
 import com.github.k1rakishou.model.dao.ImageDownloadRequestDao
 import com.github.k1rakishou.model.dao.MediaServiceLinkExtraContentDao
@@ -41,7 +46,7 @@ import com.github.k1rakishou.model.dao.ThreadBookmarkGroupDao
 import com.github.k1rakishou.model.dao.ThreadBookmarkReplyDao
 import com.github.k1rakishou.model.dao.ThreadDownloadDao
 import com.github.k1rakishou.model.entity.MediaServiceLinkExtraContentEntity
-import com.github.k1rakishou.model.entity.SeenPostEntity
+import com.github.k1rakishou.model.entity.SeenPostsBitmapEntity
 import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkEntity
 import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkGroupEntity
 import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkGroupEntryEntity
@@ -52,6 +57,7 @@ import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotEntity
 import com.github.k1rakishou.model.entity.chan.catalog.CompositeCatalogEntity
 import com.github.k1rakishou.model.entity.chan.filter.ChanFilterBoardConstraintEntity
 import com.github.k1rakishou.model.entity.chan.filter.ChanFilterEntity
+import com.github.k1rakishou.model.entity.chan.filter.ChanFilterWatchEvaluatedThreadEntity
 import com.github.k1rakishou.model.entity.chan.filter.ChanFilterWatchGroupEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostHideEntity
@@ -59,6 +65,7 @@ import com.github.k1rakishou.model.entity.chan.post.ChanPostHttpIconEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostImageEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostReplyEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanSavedReplyEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
 import com.github.k1rakishou.model.entity.chan.site.ChanSiteEntity
@@ -69,6 +76,7 @@ import com.github.k1rakishou.model.entity.download.ImageDownloadRequestEntity
 import com.github.k1rakishou.model.entity.download.ThreadDownloadEntity
 import com.github.k1rakishou.model.entity.navigation.NavHistoryElementIdEntity
 import com.github.k1rakishou.model.entity.navigation.NavHistoryElementInfoEntity
+import com.github.k1rakishou.model.entity.navigation.NavHistoryOpEntity
 import com.github.k1rakishou.model.entity.view.ChanThreadsWithPosts
 import com.github.k1rakishou.model.entity.view.OldChanPostThread
 import com.github.k1rakishou.model.migrations.Migration_v10_to_v11
@@ -107,14 +115,24 @@ import com.github.k1rakishou.model.migrations.Migration_v3_to_v4
 import com.github.k1rakishou.model.migrations.Migration_v40_to_v41
 import com.github.k1rakishou.model.migrations.Migration_v41_to_v42
 import com.github.k1rakishou.model.migrations.Migration_v42_to_v43
+import com.github.k1rakishou.model.migrations.Migration_v43_to_v44
+import com.github.k1rakishou.model.migrations.Migration_v44_to_v45
+import com.github.k1rakishou.model.migrations.Migration_v45_to_v46
+import com.github.k1rakishou.model.migrations.Migration_v46_to_v47
 import com.github.k1rakishou.model.migrations.Migration_v4_to_v5
 import com.github.k1rakishou.model.migrations.Migration_v5_to_v6
 import com.github.k1rakishou.model.migrations.Migration_v6_to_v7
 import com.github.k1rakishou.model.migrations.Migration_v7_to_v8
 import com.github.k1rakishou.model.migrations.Migration_v8_to_v9
 import com.github.k1rakishou.model.migrations.Migration_v9_to_v10
+import com.github.k1rakishou.model.sqlite.SQLitePragmas
+import com.github.k1rakishou.model.sqlite.SQLiteQueryTimings
+import com.github.k1rakishou.model.sqlite.TunedSQLiteOpenHelperFactory
 import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
 
 @DoNotStrip
@@ -131,6 +149,7 @@ import java.util.concurrent.atomic.AtomicInteger
     ChanPostHttpIconEntity::class,
     ChanTextSpanEntity::class,
     ChanPostReplyEntity::class,
+    ChanPostSearchEntity::class,
     ChanSavedReplyEntity::class,
     ChanPostHideEntity::class,
     ChanThreadViewableInfoEntity::class,
@@ -139,22 +158,24 @@ import java.util.concurrent.atomic.AtomicInteger
     ChanFilterWatchGroupEntity::class,
     ChanCatalogSnapshotEntity::class,
     MediaServiceLinkExtraContentEntity::class,
-    SeenPostEntity::class,
+    SeenPostsBitmapEntity::class,
     NavHistoryElementIdEntity::class,
     NavHistoryElementInfoEntity::class,
+    NavHistoryOpEntity::class,
     ThreadBookmarkEntity::class,
     ThreadBookmarkReplyEntity::class,
     ThreadBookmarkGroupEntity::class,
     ThreadBookmarkGroupEntryEntity::class,
     ImageDownloadRequestEntity::class,
     ThreadDownloadEntity::class,
-    CompositeCatalogEntity::class
+    CompositeCatalogEntity::class,
+    ChanFilterWatchEvaluatedThreadEntity::class
   ],
   views = [
     ChanThreadsWithPosts::class,
     OldChanPostThread::class
   ],
-  version = 43,
+  version = 47,
   exportSchema = true
 )
 @TypeConverters(
@@ -172,7 +193,10 @@ import java.util.concurrent.atomic.AtomicInteger
   ]
 )
 abstract class KurobaDatabase : RoomDatabase() {
+  val foregroundLoads = ForegroundDatabaseLoads()
+
   abstract fun databaseMetaDao(): DatabaseMetaDao
+  abstract fun databaseCompactorDao(): DatabaseCompactorDao
   abstract fun mediaServiceLinkExtraContentDao(): MediaServiceLinkExtraContentDao
   abstract fun seenPostDao(): SeenPostDao
   abstract fun chanBoardDao(): ChanBoardDao
@@ -182,6 +206,7 @@ abstract class KurobaDatabase : RoomDatabase() {
   abstract fun chanPostHttpIconDao(): ChanPostHttpIconDao
   abstract fun chanTextSpanDao(): ChanTextSpanDao
   abstract fun chanPostReplyDao(): ChanPostReplyDao
+  abstract fun chanPostSearchDao(): ChanPostSearchDao
   abstract fun navHistoryDao(): NavHistoryDao
   abstract fun threadBookmarkDao(): ThreadBookmarkDao
   abstract fun threadBookmarkReplyDao(): ThreadBookmarkReplyDao
@@ -196,6 +221,7 @@ abstract class KurobaDatabase : RoomDatabase() {
   abstract fun imageDownloadRequestDao(): ImageDownloadRequestDao
   abstract fun threadDownloadDao(): ThreadDownloadDao
   abstract fun compositeCatalogDao(): CompositeCatalogDao
+  abstract fun chanFilterWatchEvaluatedThreadDao(): ChanFilterWatchEvaluatedThreadDao
 
   suspend fun ensureInTransaction() {
     require(inTransaction()) { "Must be executed in a transaction!" }
@@ -216,6 +242,9 @@ abstract class KurobaDatabase : RoomDatabase() {
     const val SQLITE_TRUE = 1
     const val SQLITE_FALSE = 0
 
+    private const val TRANSACTION_EXECUTOR_THREADS = 2
+    private const val TRANSACTION_EXECUTOR_KEEP_ALIVE_SECONDS = 30L
+
     private val CUSTOM_QUERY_EXECUTOR = Executors.newFixedThreadPool(4, object : ThreadFactory {
       private val THREAD_NAME_STEM = "database_query_%d"
       private val mThreadId = AtomicInteger(0)
@@ -227,18 +256,41 @@ abstract class KurobaDatabase : RoomDatabase() {
       }
     })
 
-    private val CUSTOM_TRANSACTION_EXECUTOR = Executors.newCachedThreadPool(object : ThreadFactory {
-      private val THREAD_NAME_STEM = "database_transaction_%d"
-      private val mThreadId = AtomicInteger(0)
+    // Room runs transactions one at a time (and a suspend transaction occupies a thread until it's
+    // done) so there is no point in having more than a couple of transaction threads.
+    private val CUSTOM_TRANSACTION_EXECUTOR = ThreadPoolExecutor(
+      TRANSACTION_EXECUTOR_THREADS,
+      TRANSACTION_EXECUTOR_THREADS,
+      TRANSACTION_EXECUTOR_KEEP_ALIVE_SECONDS,
+      TimeUnit.SECONDS,
+      LinkedBlockingQueue(),
+      object : ThreadFactory {
+        private val THREAD_NAME_STEM = "database_transaction_%d"
+        private val mThreadId = AtomicInteger(0)
 
-      override fun newThread(r: Runnable): Thread {
-        val t = Thread(r)
-        t.name = String.format(THREAD_NAME_STEM, mThreadId.getAndIncrement())
-        return t
+        override fun newThread(r: Runnable): Thread {
+          val t = Thread(r)
+          t.name = String.format(THREAD_NAME_STEM, mThreadId.getAndIncrement())
+          return t
+        }
       }
-    })
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    /**
+     * Room can't declare triggers so they are (re)created every time the database is opened. This
+     * also covers databases that were created from scratch or destructively migrated.
+     * */
+    object TriggersCallback : RoomDatabase.Callback() {
+      override fun onOpen(db: SupportSQLiteDatabase) {
+        db.execSQL(ChanPostSearchEntity.DELETE_TRIGGER_SQL.trimIndent())
+      }
+    }
 
-    fun buildDatabase(application: Application): KurobaDatabase {
+    fun buildDatabase(
+      application: Application,
+      sqlitePragmas: SQLitePragmas,
+      sqliteQueryTimings: SQLiteQueryTimings
+    ): KurobaDatabase {
       return Room.databaseBuilder(
         application.applicationContext,
         KurobaDatabase::class.java,
@@ -246,6 +298,8 @@ abstract class KurobaDatabase : RoomDatabase() {
       )
         .setQueryExecutor(CUSTOM_QUERY_EXECUTOR)
         .setTransactionExecutor(CUSTOM_TRANSACTION_EXECUTOR)
+        .setJournalMode(sqlitePragmas.journalMode)
+        .openHelperFactory(TunedSQLiteOpenHelperFactory(sqlitePragmas, sqliteQueryTimings))
         .addMigrations(
           Migration_v1_to_v2(),
           Migration_v2_to_v3(),
@@ -289,7 +343,12 @@ abstract class KurobaDatabase : RoomDatabase() {
           Migration_v40_to_v41(),
           Migration_v41_to_v42(),
           Migration_v42_to_v43(),
+          Migration_v43_to_v44(),
+          Migration_v44_to_v45(),
+          Migration_v45_to_v46(),
+          Migration_v46_to_v47(),
         )
+        .addCallback(TriggersCallback)
         .fallbackToDestructiveMigrationOnDowngrade()
         .build()
     }
@@ -0,0 +1,460 @@
+package com.github.k1rakishou.model.compactor
+
+import android.content.SharedPreferences
+import androidx.room.withTransaction
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+import com.github.k1rakishou.model.source.local.ChanPostLocalSource
+import com.github.k1rakishou.model.source.local.SeenPostLocalSource
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.yield
+import org.joda.time.DateTime
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Deletes old posts, old threads, old seen posts and orphaned post rows in small batches instead of
+ * one huge transaction. Every batch deletes rows from a bounded primary key range in its own short
+ * transaction so the write lock is released between batches and other database calls can get
+ * through. The compactor also waits between batches while there are foreground database calls
+ * pending (see [ForegroundDatabaseLoads]).
+ *
+ * The same batching is used to index the posts that were stored before the full text search index
+ * existed ([Phase.PostSearchBackfill]). This is only done once.
+ *
+ * The progress of every phase is persisted so when the compaction is interrupted (time budget ran
+ * out, the app was killed) it continues from where it stopped the next time. Batches are idempotent
+ * so re-running a batch that was interrupted half way is harmless.
+ * */
+class DatabaseCompactor(
+  private val database: KurobaDatabase,
+  private val sharedPreferences: SharedPreferences,
+  private val maxPostsAmount: Int,
+  private val maxThreadsAmount: Int,
+  private val batchSize: Int = DEFAULT_BATCH_SIZE
+) {
+  private val compactorDao = database.databaseCompactorDao()
+  private val chanPostDao = database.chanPostDao()
+  private val chanThreadDao = database.chanThreadDao()
+
+  init {
+    require(batchSize > 0) { "Bad batchSize: $batchSize" }
+  }
+
+  suspend fun compact(
+    phases: Collection<Phase>,
+    timeBudgetMs: Long = Long.MAX_VALUE,
+    seenPostsOlderThan: DateTime = SeenPostLocalSource.ONE_MONTH_AGO
+  ): CompactionResult {
+    val result = CompactionResult()
+    val startTime = System.currentTimeMillis()
+    val deadline = if (timeBudgetMs == Long.MAX_VALUE) Long.MAX_VALUE else startTime + timeBudgetMs
+
+    for (phase in Phase.values()) {
+      if (phase !in phases) {
+        continue
+      }
+
+      val completed = when (phase) {
+        Phase.OldPosts -> compactOldPosts(result, deadline)
+        Phase.OldThreads -> compactOldThreads(result, deadline)
+        Phase.OldSeenPosts -> sweep(phase, result, deadline, { seenPostsOlderThan.millis }) { fromId, toId, olderThanMillis ->
+          compactorDao.deleteSeenPostsInRange(fromId, toId, DateTime(olderThanMillis))
+        }
+        Phase.OrphanTextSpans -> sweep(phase, result, deadline, { 0L }) { fromId, toId, _ ->
+          compactorDao.deleteOrphanTextSpansInRange(fromId, toId)
+        }
+        Phase.OrphanPostImages -> sweep(phase, result, deadline, { 0L }) { fromId, toId, _ ->
+          compactorDao.deleteOrphanPostImagesInRange(fromId, toId)
+        }
+        Phase.OrphanPostReplies -> sweep(phase, result, deadline, { 0L }) { fromId, toId, _ ->
+          compactorDao.deleteOrphanPostRepliesInRange(fromId, toId)
+        }
+        Phase.OrphanPostSearchRows -> sweep(phase, result, deadline, { 0L }) { fromId, toId, _ ->
+          compactorDao.deleteOrphanPostSearchRowsInRange(fromId, toId)
+        }
+        Phase.PostSearchBackfill -> backfillPostSearchIndex(result, deadline)
+        Phase.IncrementalVacuum -> {
+          incrementalVacuum(result)
+          true
+        }
+      }
+
+      if (!completed) {
+        Logger.d(TAG, "compact() ran out of time during ${phase}, will continue next time")
+        result.interrupted = true
+        break
+      }
+    }
+
+    result.tookMs = System.currentTimeMillis() - startTime
+    Logger.d(TAG, "compact() done, ${result}")
+
+    return result
+  }
+
+  private suspend fun compactOldPosts(result: CompactionResult, deadline: Long): Boolean {
+    return sweep(Phase.OldPosts, result, deadline, { calculateOldPostsCutoff() }) { fromId, toId, lastModifiedCutoff ->
+      compactorDao.deleteOldPostsInRange(fromId, toId, lastModifiedCutoff)
+    }
+  }
+
+  private suspend fun compactOldThreads(result: CompactionResult, deadline: Long): Boolean {
+    return sweep(Phase.OldThreads, result, deadline, { calculateOldThreadsCutoff() }) { fromId, toId, lastModifiedCutoff ->
+      compactorDao.deleteOldThreadsInRange(fromId, toId, lastModifiedCutoff)
+    }
+  }
+
+  /**
+   * Posts that are inserted after the index was created are indexed right away so only the posts
+   * up to the current max post id need to be indexed. The cutoff is that id.
+   * */
+  private suspend fun backfillPostSearchIndex(result: CompactionResult, deadline: Long): Boolean {
+    if (sharedPreferences.getBoolean(POST_SEARCH_BACKFILLED_KEY, false)) {
+      return true
+    }
+
+    val completed = sweep(Phase.PostSearchBackfill, result, deadline, { compactorDao.selectMaxPostId() }) { fromId, toId, maxPostId ->
+      if (fromId >= maxPostId) {
+        return@sweep 0
+      }
+
+      database.openHelper.writableDatabase
+        .compileStatement(ChanPostSearchEntity.BACKFILL_SQL.trimIndent())
+        .use { statement ->
+          statement.bindLong(1, fromId)
+          statement.bindLong(2, min(toId, maxPostId))
+          statement.executeUpdateDelete()
+        }
+    }
+
+    if (completed) {
+      sharedPreferences.edit().putBoolean(POST_SEARCH_BACKFILLED_KEY, true).apply()
+    }
+
+    return completed
+  }
+
+  /**
+   * Goes through the whole primary key range of the phase's table [batchSize] keys at a time.
+   * [calculateCutoff] is only called when the phase is started from scratch, the cutoff of an
+   * interrupted phase is restored together with its cursor. A null cutoff means there is nothing to
+   * delete.
+   *
+   * Returns false if the time budget ran out before the phase was completed.
+   * */
+  private suspend fun sweep(
+    phase: Phase,
+    result: CompactionResult,
+    deadline: Long,
+    calculateCutoff: suspend () -> Long?,
+    deleteBatch: suspend (fromId: Long, toId: Long, cutoff: Long) -> Int
+  ): Boolean {
+    val maxId = selectMaxId(phase)
+    if (maxId == null) {
+      clearProgress(phase)
+      return true
+    }
+
+    var cursor = sharedPreferences.getLong(cursorKey(phase), 0L)
+    var cutoff = sharedPreferences.getLong(cutoffKey(phase), 0L)
+
+    val hasProgress = sharedPreferences.contains(cursorKey(phase))
+      && sharedPreferences.contains(cutoffKey(phase))
+
+    if (!hasProgress) {
+      val calculatedCutoff = calculateCutoff()
+      if (calculatedCutoff == null) {
+        clearProgress(phase)
+        return true
+      }
+
+      cursor = 0L
+      cutoff = calculatedCutoff
+      saveProgress(phase, cursor, cutoff)
+    } else {
+      Logger.d(TAG, "sweep(${phase}) resuming from ${cursor}")
+    }
+
+    while (cursor < maxId) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false
+      }
+
+      yieldToForegroundLoads()
+
+      val fromId = cursor
+      val toId = fromId + batchSize
+
+      val batchStart = System.nanoTime()
+      val deleted = database.withTransaction { deleteBatch(fromId, toId, cutoff) }
+      result.onBatchCompleted(phase, deleted, (System.nanoTime() - batchStart) / NANOS_IN_MILLI)
+
+      cursor = toId
+      saveProgress(phase, cursor, cutoff)
+    }
+
+    Logger.d(TAG, "sweep(${phase}) completed, deleted ${result.deletedRows(phase)} rows")
+    clearProgress(phase)
+    return true
+  }
+
+  private suspend fun selectMaxId(phase: Phase): Long? {
+    return when (phase) {
+      Phase.OldPosts -> compactorDao.selectMaxPostId()
+      Phase.OldThreads -> compactorDao.selectMaxThreadId()
+      Phase.OldSeenPosts -> compactorDao.selectMaxSeenPostsThreadId()
+      Phase.OrphanTextSpans -> compactorDao.selectMaxTextSpanId()
+      Phase.OrphanPostImages -> compactorDao.selectMaxPostImageId()
+      Phase.OrphanPostReplies -> compactorDao.selectMaxPostReplyId()
+      Phase.OrphanPostSearchRows -> compactorDao.selectMaxPostSearchRowId()
+      Phase.PostSearchBackfill -> compactorDao.selectMaxPostId()
+      Phase.IncrementalVacuum -> null
+    }
+  }
+
+  /**
+   * Same selection as [ChanPostLocalSource.deleteOldPosts] does: the oldest threads (that are not
+   * bookmarked or downloaded) which together have a quarter of all posts in the database. Returns
+   * the lastModified of the newest of these threads.
+   * */
+  private suspend fun calculateOldPostsCutoff(): Long? {
+    val totalPostsCount = chanPostDao.totalPostsCount()
+    if (totalPostsCount < maxPostsAmount) {
+      Logger.d(TAG, "calculateOldPostsCutoff() not enough posts to start deleting " +
+        "(totalPostsCount=${totalPostsCount}, maxPostsAmount=${maxPostsAmount})")
+      return null
+    }
+
+    val toDeleteCount = max(totalPostsCount, maxPostsAmount) / 4
+    if (toDeleteCount <= 0) {
+      return null
+    }
+
+    var accumulated = 0
+    var cutoff: Long? = null
+    var offset = 0
+
+    while (accumulated < toDeleteCount) {
+      val threadBatch = chanThreadDao.selectThreadsWithPostsOtherThanOp(offset, KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      if (threadBatch.isEmpty()) {
+        break
+      }
+
+      for (thread in threadBatch) {
+        if (thread.threadBookmarkId != null || thread.threadDownloadId != null) {
+          continue
+        }
+
+        accumulated += thread.postsCount
+        cutoff = thread.lastModified
+
+        if (accumulated >= toDeleteCount) {
+          break
+        }
+      }
+
+      offset += threadBatch.size
+    }
+
+    Logger.d(TAG, "calculateOldPostsCutoff() toDeleteCount=${toDeleteCount}, " +
+      "accumulated=${accumulated}, cutoff=${cutoff}")
+    return cutoff
+  }
+
+  private suspend fun calculateOldThreadsCutoff(): Long? {
+    val totalThreadsCount = chanThreadDao.totalThreadsCount()
+    if (totalThreadsCount < maxThreadsAmount) {
+      Logger.d(TAG, "calculateOldThreadsCutoff() not enough threads to start deleting " +
+        "(totalThreadsCount=${totalThreadsCount}, maxThreadsAmount=${maxThreadsAmount})")
+      return null
+    }
+
+    val toDeleteCount = max(totalThreadsCount, maxThreadsAmount) / 4
+    if (toDeleteCount <= 0) {
+      return null
+    }
+
+    var accumulated = 0
+    var cutoff: Long? = null
+    var offset = 0
+
+    while (accumulated < toDeleteCount) {
+      val threadBatch = chanThreadDao.selectOldThreads(offset, KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      if (threadBatch.isEmpty()) {
+        break
+      }
+
+      for (thread in threadBatch) {
+        if (thread.threadBookmarkId != null || thread.downloadThreadId != null) {
+          continue
+        }
+
+        ++accumulated
+        cutoff = thread.lastModified
+
+        if (accumulated >= toDeleteCount) {
+          break
+        }
+      }
+
+      offset += threadBatch.size
+    }
+
+    Logger.d(TAG, "calculateOldThreadsCutoff() toDeleteCount=${toDeleteCount}, " +
+      "accumulated=${accumulated}, cutoff=${cutoff}")
+    return cutoff
+  }
+
+  /**
+   * Only does anything when the database uses the incremental auto_vacuum mode. Switching an
+   * existing database into this mode requires a full VACUUM which rewrites the whole file so we
+   * don't do that here.
+   * */
+  private suspend fun incrementalVacuum(result: CompactionResult) {
+    yieldToForegroundLoads()
+
+    val writableDatabase = database.openHelper.writableDatabase
+
+    val autoVacuum = writableDatabase.query("PRAGMA auto_vacuum").use { cursor ->
+      if (cursor.moveToFirst()) cursor.getInt(0) else AUTO_VACUUM_NONE
+    }
+
+    if (autoVacuum != AUTO_VACUUM_INCREMENTAL) {
+      Logger.d(TAG, "incrementalVacuum() skipped, auto_vacuum=${autoVacuum}")
+      return
+    }
+
+    val freePages = writableDatabase.query("PRAGMA freelist_count").use { cursor ->
+      if (cursor.moveToFirst()) cursor.getLong(0) else 0L
+    }
+
+    if (freePages <= 0) {
+      return
+    }
+
+    // Every call frees at most VACUUM_PAGES_PER_STEP pages so that the lock is never held for long
+    var remainingPages = freePages
+    while (remainingPages > 0) {
+      yieldToForegroundLoads()
+
+      writableDatabase.query("PRAGMA incremental_vacuum(${VACUUM_PAGES_PER_STEP})").use { cursor ->
+        // The pragma does its work while the statement is being stepped through
+        cursor.moveToFirst()
+      }
+
+      remainingPages -= VACUUM_PAGES_PER_STEP
+    }
+
+    result.vacuumedPages = freePages
+    Logger.d(TAG, "incrementalVacuum() freed ${freePages} pages")
+  }
+
+  private suspend fun yieldToForegroundLoads() {
+    val foregroundLoads = database.foregroundLoads
+    val waitStart = System.currentTimeMillis()
+
+    while (foregroundLoads.hasActiveLoads()) {
+      if (System.currentTimeMillis() - waitStart >= MAX_FOREGROUND_WAIT_MS) {
+        // Don't starve forever when something keeps the database busy all the time
+        break
+      }
+
+      delay(FOREGROUND_POLL_INTERVAL_MS)
+    }
+
+    yield()
+  }
+
+  private fun saveProgress(phase: Phase, cursor: Long, cutoff: Long) {
+    sharedPreferences.edit()
+      .putLong(cursorKey(phase), cursor)
+      .putLong(cutoffKey(phase), cutoff)
+      .apply()
+  }
+
+  private fun clearProgress(phase: Phase) {
+    sharedPreferences.edit()
+      .remove(cursorKey(phase))
+      .remove(cutoffKey(phase))
+      .apply()
+  }
+
+  private fun cursorKey(phase: Phase): String = "${phase.key}_cursor"
+  private fun cutoffKey(phase: Phase): String = "${phase.key}_cutoff"
+
+  enum class Phase(val key: String) {
+    // Posts first so that the threads are only left with the OP
+    OldPosts("old_posts"),
+    OldThreads("old_threads"),
+    OldSeenPosts("old_seen_posts"),
+    OrphanTextSpans("orphan_text_spans"),
+    OrphanPostImages("orphan_post_images"),
+    OrphanPostReplies("orphan_post_replies"),
+    OrphanPostSearchRows("orphan_post_search_rows"),
+    // The rows counted for this phase are inserted (indexed posts), not deleted
+    PostSearchBackfill("post_search_backfill"),
+    IncrementalVacuum("incremental_vacuum")
+  }
+
+  class CompactionResult {
+    private val deletedRowsByPhase = mutableMapOf<Phase, Int>()
+
+    var batchesCount: Int = 0
+      private set
+    var maxRowsPerBatch: Int = 0
+      private set
+    var maxBatchDurationMs: Long = 0L
+      private set
+    var vacuumedPages: Long = 0L
+      internal set
+    var interrupted: Boolean = false
+      internal set
+    var tookMs: Long = 0L
+      internal set
+
+    fun deletedRows(phase: Phase): Int = deletedRowsByPhase[phase] ?: 0
+
+    fun totalDeletedRows(): Int = deletedRowsByPhase.values.sum()
+
+    internal fun onBatchCompleted(phase: Phase, deleted: Int, durationMs: Long) {
+      ++batchesCount
+      deletedRowsByPhase[phase] = deletedRows(phase) + deleted
+      maxRowsPerBatch = max(maxRowsPerBatch, deleted)
+      maxBatchDurationMs = max(maxBatchDurationMs, durationMs)
+    }
+
+    override fun toString(): String {
+      return "CompactionResult(deletedRowsByPhase=${deletedRowsByPhase}, batchesCount=${batchesCount}, " +
+        "maxRowsPerBatch=${maxRowsPerBatch}, maxBatchDurationMs=${maxBatchDurationMs}, " +
+        "vacuumedPages=${vacuumedPages}, interrupted=${interrupted}, tookMs=${tookMs})"
+    }
+  }
+
+  companion object {
+    private const val TAG = "DatabaseCompactor"
+    private const val NANOS_IN_MILLI = 1_000_000L
+    private const val AUTO_VACUUM_NONE = 0
+    private const val AUTO_VACUUM_INCREMENTAL = 2
+    private const val VACUUM_PAGES_PER_STEP = 256L
+    private const val FOREGROUND_POLL_INTERVAL_MS = 16L
+    private const val MAX_FOREGROUND_WAIT_MS = 1000L
+    private const val POST_SEARCH_BACKFILLED_KEY = "post_search_backfilled"
+
+    const val DEFAULT_BATCH_SIZE = 1000
+    const val SHARED_PREFERENCES_NAME = "database_compactor"
+
+    // Threads and posts must be deleted before anything is loaded into the caches
+    val STARTUP_PHASES = listOf(Phase.OldPosts, Phase.OldThreads)
+    val BACKGROUND_PHASES = listOf(
+      Phase.OldSeenPosts,
+      Phase.OrphanTextSpans,
+      Phase.OrphanPostImages,
+      Phase.OrphanPostReplies,
+      Phase.OrphanPostSearchRows,
+      Phase.PostSearchBackfill,
+      Phase.IncrementalVacuum
+    )
+  }
+}
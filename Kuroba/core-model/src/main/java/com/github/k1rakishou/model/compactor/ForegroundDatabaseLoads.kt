@@ -0,0 +1,27 @@
+package com.github.k1rakishou.model.compactor
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Counts repository calls that are either waiting for their turn or currently running so that
+ * background maintenance (see [DatabaseCompactor]) can step aside while the user is loading
+ * something.
+ * */
+class ForegroundDatabaseLoads {
+  private val activeLoads = AtomicInteger(0)
+
+  fun activeLoadsCount(): Int = activeLoads.get()
+
+  fun hasActiveLoads(): Boolean = activeLoads.get() > 0
+
+  suspend fun <T> track(func: suspend () -> T): T {
+    activeLoads.incrementAndGet()
+
+    try {
+      return func()
+    } finally {
+      activeLoads.decrementAndGet()
+    }
+  }
+
+}
@@ -4,6 +4,7 @@ import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.Update
 import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotEntity
 
 @Dao
@@ -20,11 +21,15 @@ abstract class ChanCatalogSnapshotDao {
   @Insert(onConflict = OnConflictStrategy.ABORT)
   abstract suspend fun insertMany(chanCatalogSnapshotEntityList: List<ChanCatalogSnapshotEntity>)
 
+  @Update(onConflict = OnConflictStrategy.ABORT)
+  abstract suspend fun updateMany(chanCatalogSnapshotEntityList: List<ChanCatalogSnapshotEntity>)
+
   @Query("""
     DELETE
     FROM ${ChanCatalogSnapshotEntity.TABLE_NAME}
     WHERE ${ChanCatalogSnapshotEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+    AND ${ChanCatalogSnapshotEntity.THREAD_NO_COLUMN_NAME} IN (:threadNos)
   """)
-  abstract suspend fun deleteManyByBoardId(ownerBoardId: Long)
+  abstract suspend fun deleteManyByThreadNos(ownerBoardId: Long, threadNos: Collection<Long>)
 
 }
\ No newline at end of file
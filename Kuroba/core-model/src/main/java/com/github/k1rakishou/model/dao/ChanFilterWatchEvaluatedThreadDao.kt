@@ -0,0 +1,35 @@
+package com.github.k1rakishou.model.dao
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.github.k1rakishou.model.entity.chan.filter.ChanFilterWatchEvaluatedThreadEntity
+
+@Dao
+abstract class ChanFilterWatchEvaluatedThreadDao {
+
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract suspend fun insertMany(evaluatedThreads: List<ChanFilterWatchEvaluatedThreadEntity>)
+
+  @Query("""
+    SELECT *
+    FROM ${ChanFilterWatchEvaluatedThreadEntity.TABLE_NAME}
+    WHERE 
+        ${ChanFilterWatchEvaluatedThreadEntity.SITE_NAME_COLUMN_NAME} = :siteName
+    AND
+        ${ChanFilterWatchEvaluatedThreadEntity.BOARD_CODE_COLUMN_NAME} = :boardCode
+  """)
+  abstract suspend fun selectByBoard(siteName: String, boardCode: String): List<ChanFilterWatchEvaluatedThreadEntity>
+
+  @Query("""
+    DELETE
+    FROM ${ChanFilterWatchEvaluatedThreadEntity.TABLE_NAME}
+    WHERE ${ChanFilterWatchEvaluatedThreadEntity.EVALUATED_AT_COLUMN_NAME} < :time
+  """)
+  abstract suspend fun deleteOlderThan(time: Long): Int
+
+  @Query("DELETE FROM ${ChanFilterWatchEvaluatedThreadEntity.TABLE_NAME}")
+  abstract suspend fun deleteAll()
+
+}
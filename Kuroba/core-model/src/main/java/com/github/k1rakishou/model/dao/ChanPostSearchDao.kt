@@ -0,0 +1,107 @@
+package com.github.k1rakishou.model.dao
+
+import androidx.room.ColumnInfo
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.github.k1rakishou.model.entity.chan.board.ChanBoardIdEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
+
+@Dao
+abstract class ChanPostSearchDao {
+
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract suspend fun insertOrReplaceMany(chanPostSearchEntities: List<ChanPostSearchEntity>)
+
+  /**
+   * [ftsQuery] must already be a valid FTS query (see ChanPostSearchRanker.toFtsQuery). Rows of posts
+   * that do not exist anymore are skipped by the inner join. FTS4 can't rank in SQL (there is no
+   * bm25() and Android doesn't let us register custom functions) so the matches are returned newest
+   * first (the docid is the post's database id) and paged here, the rank of every match on the page is
+   * calculated from its matchinfo().
+   * */
+  @Query("""
+    SELECT
+        post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME},
+        post_ids.${ChanPostIdEntity.POST_NO_COLUMN_NAME},
+        post_ids.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME},
+        threads.${ChanThreadEntity.THREAD_NO_COLUMN_NAME},
+        boards.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME},
+        boards.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME},
+        matchinfo(${ChanPostSearchEntity.TABLE_NAME}, 'pcx') AS ${ChanPostSearchMatch.MATCH_INFO_COLUMN_NAME}
+    FROM ${ChanPostSearchEntity.TABLE_NAME}
+    INNER JOIN ${ChanPostIdEntity.TABLE_NAME} post_ids
+        ON post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROWID_COLUMN_NAME}
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} threads
+        ON threads.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = post_ids.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} boards
+        ON boards.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = threads.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    WHERE
+        ${ChanPostSearchEntity.TABLE_NAME} MATCH :ftsQuery
+    AND
+        (:siteName IS NULL OR boards.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName)
+    AND
+        (:boardCode IS NULL OR boards.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode)
+    ORDER BY ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROWID_COLUMN_NAME} DESC
+    LIMIT :count
+    OFFSET :offset
+  """)
+  abstract suspend fun selectMatches(
+    ftsQuery: String,
+    siteName: String?,
+    boardCode: String?,
+    offset: Int,
+    count: Int
+  ): List<ChanPostSearchMatch>
+
+  @Query("""
+    SELECT COUNT(*)
+    FROM ${ChanPostSearchEntity.TABLE_NAME}
+    INNER JOIN ${ChanPostIdEntity.TABLE_NAME} post_ids
+        ON post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROWID_COLUMN_NAME}
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} threads
+        ON threads.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = post_ids.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} boards
+        ON boards.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = threads.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    WHERE
+        ${ChanPostSearchEntity.TABLE_NAME} MATCH :ftsQuery
+    AND
+        (:siteName IS NULL OR boards.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName)
+    AND
+        (:boardCode IS NULL OR boards.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode)
+  """)
+  abstract suspend fun countMatches(
+    ftsQuery: String,
+    siteName: String?,
+    boardCode: String?
+  ): Int
+
+  @Query("SELECT COUNT(*) FROM ${ChanPostSearchEntity.TABLE_NAME}")
+  abstract suspend fun count(): Int
+
+  data class ChanPostSearchMatch(
+    @ColumnInfo(name = ChanPostIdEntity.POST_ID_COLUMN_NAME)
+    val postDatabaseId: Long,
+    @ColumnInfo(name = ChanPostIdEntity.POST_NO_COLUMN_NAME)
+    val postNo: Long,
+    @ColumnInfo(name = ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME)
+    val postSubNo: Long,
+    @ColumnInfo(name = ChanThreadEntity.THREAD_NO_COLUMN_NAME)
+    val threadNo: Long,
+    @ColumnInfo(name = ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME)
+    val boardCode: String,
+    @ColumnInfo(name = ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME)
+    val siteName: String,
+    @ColumnInfo(name = MATCH_INFO_COLUMN_NAME, typeAffinity = ColumnInfo.BLOB)
+    val matchInfo: ByteArray
+  ) {
+
+    companion object {
+      const val MATCH_INFO_COLUMN_NAME = "match_info"
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+package com.github.k1rakishou.model.dao
+
+import androidx.room.Dao
+import androidx.room.Query
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.entity.SeenPostsBitmapEntity
+import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostImageEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostReplyEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
+import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
+import com.github.k1rakishou.model.entity.download.ThreadDownloadEntity
+import org.joda.time.DateTime
+
+/**
+ * Deletes are done by primary key (rowid) ranges so that every statement only touches a bounded
+ * amount of rows no matter how big the tables are. Ranges are (fromId, toId].
+ * */
+@Dao
+abstract class DatabaseCompactorDao {
+
+  @Query("SELECT MAX(${ChanPostIdEntity.POST_ID_COLUMN_NAME}) FROM ${ChanPostIdEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxPostId(): Long?
+
+  @Query("SELECT MAX(${ChanThreadEntity.THREAD_ID_COLUMN_NAME}) FROM ${ChanThreadEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxThreadId(): Long?
+
+  @Query("SELECT MAX(${SeenPostsBitmapEntity.OWNER_THREAD_ID_COLUMN_NAME}) FROM ${SeenPostsBitmapEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxSeenPostsThreadId(): Long?
+
+  @Query("SELECT MAX(${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME}) FROM ${ChanTextSpanEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxTextSpanId(): Long?
+
+  @Query("SELECT MAX(${ChanPostImageEntity.POST_IMAGE_ID_COLUMN_NAME}) FROM ${ChanPostImageEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxPostImageId(): Long?
+
+  @Query("SELECT MAX(${ChanPostReplyEntity.POST_REPLY_ID_COLUMN_NAME}) FROM ${ChanPostReplyEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxPostReplyId(): Long?
+
+  @Query("SELECT MAX(${ChanPostSearchEntity.ROWID_COLUMN_NAME}) FROM ${ChanPostSearchEntity.TABLE_NAME}")
+  abstract suspend fun selectMaxPostSearchRowId(): Long?
+
+  /**
+   * Deletes non-OP posts of threads that were modified before [lastModifiedCutoff] unless the thread
+   * is bookmarked or downloaded. Everything that references the post is deleted by the cascade.
+   * */
+  @Query("""
+    DELETE FROM ${ChanPostIdEntity.TABLE_NAME}
+    WHERE
+        ${ChanPostIdEntity.POST_ID_COLUMN_NAME} > :fromId
+    AND
+        ${ChanPostIdEntity.POST_ID_COLUMN_NAME} <= :toId
+    AND EXISTS (
+        SELECT 1
+        FROM ${ChanPostEntity.TABLE_NAME}
+        WHERE ${ChanPostEntity.TABLE_NAME}.${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME} = ${ChanPostIdEntity.TABLE_NAME}.${ChanPostIdEntity.POST_ID_COLUMN_NAME}
+        AND ${ChanPostEntity.TABLE_NAME}.${ChanPostEntity.IS_OP_COLUMN_NAME} = ${KurobaDatabase.SQLITE_FALSE}
+    )
+    AND EXISTS (
+        SELECT 1
+        FROM ${ChanThreadEntity.TABLE_NAME}
+        WHERE ${ChanThreadEntity.TABLE_NAME}.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = ${ChanPostIdEntity.TABLE_NAME}.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+        AND ${ChanThreadEntity.TABLE_NAME}.${ChanThreadEntity.LAST_MODIFIED_COLUMN_NAME} <= :lastModifiedCutoff
+    )
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ThreadBookmarkEntity.TABLE_NAME}
+        WHERE ${ThreadBookmarkEntity.TABLE_NAME}.${ThreadBookmarkEntity.OWNER_THREAD_ID_COLUMN_NAME} = ${ChanPostIdEntity.TABLE_NAME}.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    )
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ThreadDownloadEntity.TABLE_NAME}
+        WHERE ${ThreadDownloadEntity.TABLE_NAME}.${ThreadDownloadEntity.OWNER_THREAD_DATABASE_ID_COLUMN_NAME} = ${ChanPostIdEntity.TABLE_NAME}.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    )
+  """)
+  abstract suspend fun deleteOldPostsInRange(fromId: Long, toId: Long, lastModifiedCutoff: Long): Int
+
+  /**
+   * Deletes threads that were modified before [lastModifiedCutoff] and have nothing but the OP left
+   * unless the thread is bookmarked or downloaded.
+   * */
+  @Query("""
+    DELETE FROM ${ChanThreadEntity.TABLE_NAME}
+    WHERE
+        ${ChanThreadEntity.THREAD_ID_COLUMN_NAME} > :fromId
+    AND
+        ${ChanThreadEntity.THREAD_ID_COLUMN_NAME} <= :toId
+    AND
+        ${ChanThreadEntity.LAST_MODIFIED_COLUMN_NAME} <= :lastModifiedCutoff
+    AND (
+        SELECT COUNT(*)
+        FROM ${ChanPostIdEntity.TABLE_NAME}
+        WHERE ${ChanPostIdEntity.TABLE_NAME}.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = ${ChanThreadEntity.TABLE_NAME}.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
+    ) <= 1
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ThreadBookmarkEntity.TABLE_NAME}
+        WHERE ${ThreadBookmarkEntity.TABLE_NAME}.${ThreadBookmarkEntity.OWNER_THREAD_ID_COLUMN_NAME} = ${ChanThreadEntity.TABLE_NAME}.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
+    )
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ThreadDownloadEntity.TABLE_NAME}
+        WHERE ${ThreadDownloadEntity.TABLE_NAME}.${ThreadDownloadEntity.OWNER_THREAD_DATABASE_ID_COLUMN_NAME} = ${ChanThreadEntity.TABLE_NAME}.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
+    )
+  """)
+  abstract suspend fun deleteOldThreadsInRange(fromId: Long, toId: Long, lastModifiedCutoff: Long): Int
+
+  @Query("""
+    DELETE FROM ${SeenPostsBitmapEntity.TABLE_NAME}
+    WHERE
+        ${SeenPostsBitmapEntity.OWNER_THREAD_ID_COLUMN_NAME} > :fromId
+    AND
+        ${SeenPostsBitmapEntity.OWNER_THREAD_ID_COLUMN_NAME} <= :toId
+    AND
+        ${SeenPostsBitmapEntity.LAST_UPDATED_AT_COLUMN_NAME} < :olderThan
+  """)
+  abstract suspend fun deleteSeenPostsInRange(fromId: Long, toId: Long, olderThan: DateTime): Int
+
+  @Query("""
+    DELETE FROM ${ChanTextSpanEntity.TABLE_NAME}
+    WHERE
+        ${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME} > :fromId
+    AND
+        ${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME} <= :toId
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ChanPostEntity.TABLE_NAME}
+        WHERE ${ChanPostEntity.TABLE_NAME}.${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME} = ${ChanTextSpanEntity.TABLE_NAME}.${ChanTextSpanEntity.OWNER_POST_ID_COLUMN_NAME}
+    )
+  """)
+  abstract suspend fun deleteOrphanTextSpansInRange(fromId: Long, toId: Long): Int
+
+  @Query("""
+    DELETE FROM ${ChanPostImageEntity.TABLE_NAME}
+    WHERE
+        ${ChanPostImageEntity.POST_IMAGE_ID_COLUMN_NAME} > :fromId
+    AND
+        ${ChanPostImageEntity.POST_IMAGE_ID_COLUMN_NAME} <= :toId
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ChanPostEntity.TABLE_NAME}
+        WHERE ${ChanPostEntity.TABLE_NAME}.${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME} = ${ChanPostImageEntity.TABLE_NAME}.${ChanPostImageEntity.OWNER_POST_ID_COLUMN_NAME}
+    )
+  """)
+  abstract suspend fun deleteOrphanPostImagesInRange(fromId: Long, toId: Long): Int
+
+  @Query("""
+    DELETE FROM ${ChanPostReplyEntity.TABLE_NAME}
+    WHERE
+        ${ChanPostReplyEntity.POST_REPLY_ID_COLUMN_NAME} > :fromId
+    AND
+        ${ChanPostReplyEntity.POST_REPLY_ID_COLUMN_NAME} <= :toId
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ChanPostEntity.TABLE_NAME}
+        WHERE ${ChanPostEntity.TABLE_NAME}.${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME} = ${ChanPostReplyEntity.TABLE_NAME}.${ChanPostReplyEntity.OWNER_POST_ID_COLUMN_NAME}
+    )
+  """)
+  abstract suspend fun deleteOrphanPostRepliesInRange(fromId: Long, toId: Long): Int
+
+  @Query("""
+    DELETE FROM ${ChanPostSearchEntity.TABLE_NAME}
+    WHERE
+        ${ChanPostSearchEntity.ROWID_COLUMN_NAME} > :fromId
+    AND
+        ${ChanPostSearchEntity.ROWID_COLUMN_NAME} <= :toId
+    AND NOT EXISTS (
+        SELECT 1
+        FROM ${ChanPostEntity.TABLE_NAME}
+        WHERE ${ChanPostEntity.TABLE_NAME}.${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME} = ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROWID_COLUMN_NAME}
+    )
+  """)
+  abstract suspend fun deleteOrphanPostSearchRowsInRange(fromId: Long, toId: Long): Int
+
+}
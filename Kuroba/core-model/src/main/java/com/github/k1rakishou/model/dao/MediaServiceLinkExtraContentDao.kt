@@ -11,9 +11,18 @@ import org.joda.time.DateTime
 @Dao
 abstract class MediaServiceLinkExtraContentDao {
 
-  @Insert(onConflict = OnConflictStrategy.IGNORE)
+  // Replace so that an expired negative result gets overwritten with the new one
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
   abstract suspend fun insert(mediaServiceLinkExtraContentEntity: MediaServiceLinkExtraContentEntity)
 
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract suspend fun insertMany(mediaServiceLinkExtraContentEntities: List<MediaServiceLinkExtraContentEntity>)
+
+  /**
+   * Negative results (the video is dead, private, etc, so there is neither the title nor the
+   * duration) inserted before [negativeResultsInsertedAfter] are considered expired and are not
+   * returned.
+   * */
   @Query("""
         SELECT * 
         FROM ${MediaServiceLinkExtraContentEntity.TABLE_NAME} 
@@ -21,12 +30,31 @@ abstract class MediaServiceLinkExtraContentDao {
             ${MediaServiceLinkExtraContentEntity.VIDEO_ID_COLUMN_NAME} = :videoId
         AND
             ${MediaServiceLinkExtraContentEntity.MEDIA_SERVICE_TYPE} = :mediaServiceType
+        AND
+            $NOT_EXPIRED_CONDITION
     """)
   abstract suspend fun select(
     videoId: String,
-    mediaServiceType: MediaServiceType
+    mediaServiceType: MediaServiceType,
+    negativeResultsInsertedAfter: DateTime
   ): MediaServiceLinkExtraContentEntity?
 
+  @Query("""
+        SELECT * 
+        FROM ${MediaServiceLinkExtraContentEntity.TABLE_NAME} 
+        WHERE 
+            ${MediaServiceLinkExtraContentEntity.VIDEO_ID_COLUMN_NAME} IN (:videoIds)
+        AND
+            ${MediaServiceLinkExtraContentEntity.MEDIA_SERVICE_TYPE} = :mediaServiceType
+        AND
+            $NOT_EXPIRED_CONDITION
+    """)
+  abstract suspend fun selectMany(
+    videoIds: Collection<String>,
+    mediaServiceType: MediaServiceType,
+    negativeResultsInsertedAfter: DateTime
+  ): List<MediaServiceLinkExtraContentEntity>
+
   @Query("""
         DELETE 
         FROM ${MediaServiceLinkExtraContentEntity.TABLE_NAME}
@@ -45,4 +73,15 @@ abstract class MediaServiceLinkExtraContentDao {
    * */
   @Query("SELECT *FROM ${MediaServiceLinkExtraContentEntity.TABLE_NAME}")
   abstract suspend fun testGetAll(): List<MediaServiceLinkExtraContentEntity>
+
+  companion object {
+    private const val NOT_EXPIRED_CONDITION = """
+      (
+        (${MediaServiceLinkExtraContentEntity.VIDEO_TITLE_COLUMN_NAME} IS NOT NULL 
+          AND ${MediaServiceLinkExtraContentEntity.VIDEO_TITLE_COLUMN_NAME} != '')
+        OR ${MediaServiceLinkExtraContentEntity.VIDEO_DURATION_COLUMN_NAME} IS NOT NULL
+        OR ${MediaServiceLinkExtraContentEntity.INSERTED_AT_COLUMN_NAME} >= :negativeResultsInsertedAfter
+      )
+    """
+  }
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import androidx.room.RewriteQueriesToDropUnusedColumns
 import com.github.k1rakishou.model.entity.navigation.NavHistoryElementIdEntity
 import com.github.k1rakishou.model.entity.navigation.NavHistoryElementInfoEntity
 import com.github.k1rakishou.model.entity.navigation.NavHistoryFullDto
+import com.github.k1rakishou.model.entity.navigation.NavHistoryOpEntity
 
 @Dao
 abstract class NavHistoryDao {
@@ -71,4 +72,20 @@ abstract class NavHistoryDao {
   @Query("DELETE FROM ${NavHistoryElementIdEntity.TABLE_NAME}")
   abstract suspend fun deleteAll()
 
-}
\ No newline at end of file
+  @Insert(onConflict = OnConflictStrategy.ABORT)
+  abstract suspend fun insertOps(navHistoryOpEntityList: List<NavHistoryOpEntity>)
+
+  @Query("""
+    SELECT * 
+    FROM ${NavHistoryOpEntity.TABLE_NAME}
+    ORDER BY ${NavHistoryOpEntity.ID_COLUMN_NAME} ASC
+  """)
+  abstract suspend fun selectAllOps(): List<NavHistoryOpEntity>
+
+  @Query("SELECT COUNT(*) FROM ${NavHistoryOpEntity.TABLE_NAME}")
+  abstract suspend fun countOps(): Int
+
+  @Query("DELETE FROM ${NavHistoryOpEntity.TABLE_NAME}")
+  abstract suspend fun deleteAllOps()
+
+}
@@ -1,11 +1,11 @@
 package com.github.k1rakishou.model.dao
 
+import androidx.room.ColumnInfo
 import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
-import androidx.room.RewriteQueriesToDropUnusedColumns
-import com.github.k1rakishou.model.entity.SeenPostEntity
+import com.github.k1rakishou.model.entity.SeenPostsBitmapEntity
 import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
 import org.joda.time.DateTime
 
@@ -13,39 +13,47 @@ import org.joda.time.DateTime
 abstract class SeenPostDao {
 
   @Insert(onConflict = OnConflictStrategy.REPLACE)
-  abstract suspend fun insertMany(seenPostEntities: Collection<SeenPostEntity>)
+  abstract suspend fun insertOrReplace(seenPostsBitmapEntity: SeenPostsBitmapEntity)
 
   @Query("""
         SELECT *
-        FROM ${SeenPostEntity.TABLE_NAME}
-        WHERE ${SeenPostEntity.OWNER_THREAD_ID_COLUMN_NAME} = :threadId
+        FROM ${SeenPostsBitmapEntity.TABLE_NAME}
+        WHERE ${SeenPostsBitmapEntity.OWNER_THREAD_ID_COLUMN_NAME} = :threadId
     """)
-  abstract suspend fun selectAllByThreadId(threadId: Long): List<SeenPostEntity>
+  abstract suspend fun selectByThreadId(threadId: Long): SeenPostsBitmapEntity?
 
-  @RewriteQueriesToDropUnusedColumns
   @Query("""
-    SELECT * 
-    FROM ${SeenPostEntity.TABLE_NAME} spe
-    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte 
-        ON spe.${SeenPostEntity.OWNER_THREAD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
+    SELECT
+        cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME},
+        spbe.${SeenPostsBitmapEntity.SEEN_POSTS_BITMAP_COLUMN_NAME},
+        spbe.${SeenPostsBitmapEntity.LAST_UPDATED_AT_COLUMN_NAME}
+    FROM ${SeenPostsBitmapEntity.TABLE_NAME} spbe
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte
+        ON spbe.${SeenPostsBitmapEntity.OWNER_THREAD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
     WHERE
-        spe.${SeenPostEntity.POST_NO_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME}
-    AND
         cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} IN (:threadIds)
-    GROUP BY spe.${SeenPostEntity.OWNER_THREAD_ID_COLUMN_NAME}
   """)
-  abstract suspend fun selectManyOriginalPostsByThreadId(threadIds: Collection<Long>): List<SeenPostEntity>
+  abstract suspend fun selectManyByThreadIds(threadIds: Collection<Long>): List<SeenPostsBitmapDatabaseObject>
 
-  @Query("SELECT COUNT(*) FROM ${SeenPostEntity.TABLE_NAME}")
-  abstract suspend fun count(): Int
+  @Query("SELECT SUM(${SeenPostsBitmapEntity.SEEN_POSTS_COUNT_COLUMN_NAME}) FROM ${SeenPostsBitmapEntity.TABLE_NAME}")
+  abstract suspend fun countSeenPosts(): Int?
 
   @Query("""
-        DELETE 
-        FROM ${SeenPostEntity.TABLE_NAME}
-        WHERE ${SeenPostEntity.INSERTED_AT_COLUMN_NAME} < :dateTime
+        DELETE
+        FROM ${SeenPostsBitmapEntity.TABLE_NAME}
+        WHERE ${SeenPostsBitmapEntity.LAST_UPDATED_AT_COLUMN_NAME} < :dateTime
     """)
   abstract suspend fun deleteOlderThan(dateTime: DateTime): Int
 
-  @Query("DELETE FROM ${SeenPostEntity.TABLE_NAME}")
+  @Query("DELETE FROM ${SeenPostsBitmapEntity.TABLE_NAME}")
   abstract suspend fun deleteAll(): Int
-}
\ No newline at end of file
+
+  class SeenPostsBitmapDatabaseObject(
+    @ColumnInfo(name = ChanThreadEntity.THREAD_NO_COLUMN_NAME)
+    val threadNo: Long,
+    @ColumnInfo(name = SeenPostsBitmapEntity.SEEN_POSTS_BITMAP_COLUMN_NAME)
+    val seenPostsBitmap: ByteArray,
+    @ColumnInfo(name = SeenPostsBitmapEntity.LAST_UPDATED_AT_COLUMN_NAME)
+    val lastUpdatedAt: DateTime
+  )
+}
@@ -0,0 +1,179 @@
+package com.github.k1rakishou.model.data.catalog
+
+/**
+ * Calculates the smallest set of row changes that turns the previously stored thread order of a
+ * board into the new one so that a catalog load doesn't rewrite every row of the snapshot.
+ *
+ * The stored order values are sparse (there are [ORDER_GAP] free values between the neighbours
+ * when the snapshot is (re)numbered). The threads that form the longest increasing subsequence of
+ * their previous order values keep their rows untouched, every other thread (new or moved) gets an
+ * order value between its untouched neighbours. Only when there are no free values left between
+ * them the whole snapshot is renumbered.
+ * */
+object ChanCatalogSnapshotDiff {
+  const val ORDER_GAP = 1024L
+
+  /**
+   * [prevThreadOrders] is threadNo -> order of the stored snapshot, [newThreadNos] must not contain
+   * duplicates.
+   * */
+  fun calculate(prevThreadOrders: Map<Long, Int>, newThreadNos: List<Long>): Diff {
+    val newOrders = assignOrders(prevThreadOrders, newThreadNos)
+      ?: renumber(newThreadNos.size)
+
+    val inserted = mutableListOf<ThreadOrder>()
+    val moved = mutableListOf<ThreadOrder>()
+    val newThreadNoSet = HashSet<Long>(newThreadNos.size)
+
+    newThreadNos.forEachIndexed { index, threadNo ->
+      check(newThreadNoSet.add(threadNo)) { "Duplicate threadNo: $threadNo" }
+
+      val prevOrder = prevThreadOrders[threadNo]
+      val newOrder = newOrders[index]
+
+      if (prevOrder == null) {
+        inserted += ThreadOrder(threadNo, newOrder)
+      } else if (prevOrder != newOrder) {
+        moved += ThreadOrder(threadNo, newOrder)
+      }
+    }
+
+    val deleted = prevThreadOrders.keys.filter { threadNo -> threadNo !in newThreadNoSet }
+
+    return Diff(
+      deletedThreadNos = deleted,
+      insertedThreads = inserted,
+      movedThreads = moved
+    )
+  }
+
+  /**
+   * Returns null when the new and moved threads don't fit between their untouched neighbours and
+   * the snapshot has to be renumbered.
+   * */
+  private fun assignOrders(prevThreadOrders: Map<Long, Int>, newThreadNos: List<Long>): IntArray? {
+    val count = newThreadNos.size
+    val newOrders = IntArray(count)
+    val untouched = untouchedPositions(prevThreadOrders, newThreadNos)
+
+    var position = 0
+    var prevAnchor: Long? = null
+
+    while (position < count) {
+      if (untouched[position]) {
+        val order = prevThreadOrders[newThreadNos[position]]!!
+        newOrders[position] = order
+        prevAnchor = order.toLong()
+        ++position
+        continue
+      }
+
+      var runEnd = position
+      while (runEnd < count && !untouched[runEnd]) {
+        ++runEnd
+      }
+
+      val runLength = (runEnd - position).toLong()
+      val nextAnchor = if (runEnd < count) {
+        prevThreadOrders[newThreadNos[runEnd]]!!.toLong()
+      } else {
+        null
+      }
+
+      // Both bounds are exclusive
+      val (lowerBound, upperBound) = when {
+        prevAnchor != null && nextAnchor != null -> prevAnchor to nextAnchor
+        prevAnchor != null -> prevAnchor to prevAnchor + (runLength + 1) * ORDER_GAP
+        nextAnchor != null -> nextAnchor - (runLength + 1) * ORDER_GAP to nextAnchor
+        else -> -ORDER_GAP to runLength * ORDER_GAP
+      }
+
+      if (lowerBound < Int.MIN_VALUE || upperBound > Int.MAX_VALUE || upperBound - lowerBound - 1 < runLength) {
+        return null
+      }
+
+      val step = (upperBound - lowerBound) / (runLength + 1)
+
+      for (runIndex in 0 until runLength.toInt()) {
+        newOrders[position + runIndex] = (lowerBound + step * (runIndex + 1)).toInt()
+      }
+
+      position = runEnd
+    }
+
+    return newOrders
+  }
+
+  /**
+   * Marks the positions of [newThreadNos] that belong to the longest strictly increasing
+   * subsequence of the previous order values (patience sorting, O(n log n)).
+   * */
+  private fun untouchedPositions(prevThreadOrders: Map<Long, Int>, newThreadNos: List<Long>): BooleanArray {
+    val count = newThreadNos.size
+    val untouched = BooleanArray(count)
+
+    // Index of the last element of the best subsequence of each length
+    val tailPositions = IntArray(count)
+    val prevPositions = IntArray(count) { -1 }
+    var length = 0
+
+    for (position in 0 until count) {
+      val order = prevThreadOrders[newThreadNos[position]]
+        ?: continue
+
+      var low = 0
+      var high = length
+
+      while (low < high) {
+        val middle = (low + high) ushr 1
+
+        if (prevThreadOrders[newThreadNos[tailPositions[middle]]]!! < order) {
+          low = middle + 1
+        } else {
+          high = middle
+        }
+      }
+
+      if (low > 0) {
+        prevPositions[position] = tailPositions[low - 1]
+      }
+
+      tailPositions[low] = position
+
+      if (low == length) {
+        ++length
+      }
+    }
+
+    var position = if (length > 0) tailPositions[length - 1] else -1
+
+    while (position >= 0) {
+      untouched[position] = true
+      position = prevPositions[position]
+    }
+
+    return untouched
+  }
+
+  private fun renumber(count: Int): IntArray {
+    val gap = minOf(ORDER_GAP, Int.MAX_VALUE.toLong() / count.coerceAtLeast(1)).coerceAtLeast(1L)
+    return IntArray(count) { position -> (position * gap).toInt() }
+  }
+
+  data class ThreadOrder(
+    val threadNo: Long,
+    val threadOrder: Int
+  )
+
+  class Diff(
+    val deletedThreadNos: List<Long>,
+    val insertedThreads: List<ThreadOrder>,
+    val movedThreads: List<ThreadOrder>
+  ) {
+    fun isEmpty(): Boolean = deletedThreadNos.isEmpty() && insertedThreads.isEmpty() && movedThreads.isEmpty()
+
+    override fun toString(): String {
+      return "Diff{deleted=${deletedThreadNos.size}, inserted=${insertedThreads.size}, moved=${movedThreads.size}}"
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package com.github.k1rakishou.model.data.filter
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+
+data class ChanFilterWatchEvaluatedThread(
+  val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+  val opHash: Long,
+  val filterSetVersion: Long,
+  val matchedFilterId: Long?,
+  val lastModified: Long,
+  val evaluatedAt: Long
+)
@@ -0,0 +1,127 @@
+package com.github.k1rakishou.model.data.navigation
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+
+/**
+ * A single change of the navigation history stack. Changes are recorded into an op log instead of
+ * rewriting the whole stack in the database every time a thread is opened. The op log is replayed
+ * on top of the last persisted stack when the app starts and is periodically compacted back into
+ * the stack tables.
+ *
+ * Every op stores the absolute position it was applied at (not the arguments that were used to
+ * calculate it) so that replaying an op always produces exactly the same stack as applying it the
+ * first time did. For the same reason the in-memory stack must only be changed with [applyTo].
+ * */
+sealed class NavHistoryOp {
+
+  abstract fun applyTo(navigationStack: MutableList<NavHistoryElement>)
+
+  data class Insert(
+    val navHistoryElement: NavHistoryElement,
+    val index: Int
+  ) : NavHistoryOp() {
+
+    override fun applyTo(navigationStack: MutableList<NavHistoryElement>) {
+      val descriptor = navHistoryElement.descriptor()
+      if (navigationStack.any { element -> element.descriptor() == descriptor }) {
+        return
+      }
+
+      navigationStack.addSafe(index, navHistoryElement)
+    }
+  }
+
+  data class Move(
+    val descriptor: ChanDescriptor,
+    val toIndex: Int
+  ) : NavHistoryOp() {
+
+    override fun applyTo(navigationStack: MutableList<NavHistoryElement>) {
+      val index = navigationStack.indexOfDescriptor(descriptor)
+      if (index < 0) {
+        return
+      }
+
+      navigationStack.addSafe(toIndex, navigationStack.removeAt(index))
+    }
+  }
+
+  data class Pin(
+    val descriptor: ChanDescriptor,
+    val pinned: Boolean,
+    val toIndex: Int
+  ) : NavHistoryOp() {
+
+    override fun applyTo(navigationStack: MutableList<NavHistoryElement>) {
+      val index = navigationStack.indexOfDescriptor(descriptor)
+      if (index < 0) {
+        return
+      }
+
+      val navHistoryElement = navigationStack.removeAt(index)
+      navHistoryElement.navHistoryElementInfo.pinned = pinned
+
+      navigationStack.addSafe(toIndex, navHistoryElement)
+    }
+  }
+
+  data class Replace(
+    val descriptor: ChanDescriptor,
+    val navHistoryElement: NavHistoryElement
+  ) : NavHistoryOp() {
+
+    override fun applyTo(navigationStack: MutableList<NavHistoryElement>) {
+      val index = navigationStack.indexOfDescriptor(descriptor)
+      if (index < 0) {
+        return
+      }
+
+      navigationStack[index] = navHistoryElement
+    }
+  }
+
+  data class Delete(
+    val descriptor: ChanDescriptor
+  ) : NavHistoryOp() {
+
+    override fun applyTo(navigationStack: MutableList<NavHistoryElement>) {
+      val index = navigationStack.indexOfDescriptor(descriptor)
+      if (index < 0) {
+        return
+      }
+
+      navigationStack.removeAt(index)
+    }
+  }
+
+  object Clear : NavHistoryOp() {
+    override fun applyTo(navigationStack: MutableList<NavHistoryElement>) {
+      navigationStack.clear()
+    }
+
+    override fun toString(): String = "Clear"
+  }
+
+  companion object {
+
+    fun replay(navigationStack: MutableList<NavHistoryElement>, ops: List<NavHistoryOp>) {
+      ops.forEach { op -> op.applyTo(navigationStack) }
+    }
+
+    private fun List<NavHistoryElement>.indexOfDescriptor(descriptor: ChanDescriptor): Int {
+      return indexOfFirst { navHistoryElement -> navHistoryElement.descriptor() == descriptor }
+    }
+
+    private fun <T> MutableList<T>.addSafe(index: Int, element: T) {
+      require(index >= 0) { "Bad index: ${index}" }
+
+      if (index <= lastIndex) {
+        add(index, element)
+        return
+      }
+
+      add(element)
+    }
+  }
+
+}
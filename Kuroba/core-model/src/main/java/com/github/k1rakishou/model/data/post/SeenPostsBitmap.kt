@@ -0,0 +1,254 @@
+package com.github.k1rakishou.model.data.post
+
+/**
+ * Set of the posts of one thread that were seen by the user. Post numbers are stored as offsets from
+ * the thread number (the OP is offset 0) and are run-length encoded when persisted, so a thread costs
+ * a couple of bytes per seen post on sites with board-wide post numbers and just a couple of bytes
+ * in total when every post of a thread with per-thread numbers was seen. Posts that can't be stored
+ * as an offset (sub-posts of archives or numbers below the OP) are stored as is.
+ *
+ * Encoded form (every number is an unsigned LEB128 varint):
+ * version, runsCount, (gap from the previous run, run length - 1) * runsCount,
+ * extraPostsCount, (postNo, postSubNo) * extraPostsCount
+ *
+ * Not thread-safe.
+ * */
+class SeenPostsBitmap(
+  val threadNo: Long
+) {
+  // Sorted, without duplicates
+  private var offsets = LongArray(INITIAL_CAPACITY)
+  private var offsetsCount = 0
+  private val extraPosts = mutableSetOf<ExtraPost>()
+
+  val size: Int
+    get() = offsetsCount + extraPosts.size
+
+  fun isEmpty(): Boolean = size == 0
+
+  /**
+   * Returns true if the post wasn't in the set.
+   * */
+  fun add(postNo: Long, postSubNo: Long): Boolean {
+    val offset = offsetOrNull(postNo, postSubNo)
+    if (offset == null) {
+      return extraPosts.add(ExtraPost(postNo, postSubNo))
+    }
+
+    val index = offsets.binarySearch(offset, 0, offsetsCount)
+    if (index >= 0) {
+      return false
+    }
+
+    insertAt(-(index + 1), offset)
+    return true
+  }
+
+  fun contains(postNo: Long, postSubNo: Long): Boolean {
+    val offset = offsetOrNull(postNo, postSubNo)
+      ?: return ExtraPost(postNo, postSubNo) in extraPosts
+
+    return offsets.binarySearch(offset, 0, offsetsCount) >= 0
+  }
+
+  fun forEach(func: (postNo: Long, postSubNo: Long) -> Unit) {
+    for (index in 0 until offsetsCount) {
+      func(threadNo + offsets[index], 0L)
+    }
+
+    for (extraPost in extraPosts) {
+      func(extraPost.postNo, extraPost.postSubNo)
+    }
+  }
+
+  fun encode(): ByteArray {
+    val writer = VarIntWriter(expectedSize = 8 + offsetsCount * 2 + extraPosts.size * 8)
+    writer.write(FORMAT_VERSION.toLong())
+
+    var runsCount = 0L
+    iterateRuns { _, _ -> ++runsCount }
+    writer.write(runsCount)
+
+    var prevRunEnd = 0L
+    iterateRuns { start, length ->
+      writer.write(start - prevRunEnd)
+      writer.write(length - 1)
+      prevRunEnd = start + length
+    }
+
+    writer.write(extraPosts.size.toLong())
+
+    extraPosts
+      .sortedWith(compareBy<ExtraPost> { extraPost -> extraPost.postNo }.thenBy { extraPost -> extraPost.postSubNo })
+      .forEach { extraPost ->
+        writer.write(extraPost.postNo)
+        writer.write(extraPost.postSubNo)
+      }
+
+    return writer.toByteArray()
+  }
+
+  private inline fun iterateRuns(func: (start: Long, length: Long) -> Unit) {
+    var index = 0
+
+    while (index < offsetsCount) {
+      val start = offsets[index]
+      var length = 1L
+
+      while (index + 1 < offsetsCount && offsets[index + 1] == offsets[index] + 1) {
+        ++index
+        ++length
+      }
+
+      func(start, length)
+      ++index
+    }
+  }
+
+  private fun offsetOrNull(postNo: Long, postSubNo: Long): Long? {
+    if (postSubNo != 0L || postNo < threadNo) {
+      return null
+    }
+
+    return postNo - threadNo
+  }
+
+  private fun insertAt(index: Int, offset: Long) {
+    if (offsetsCount == offsets.size) {
+      offsets = offsets.copyOf(offsets.size * 2)
+    }
+
+    System.arraycopy(offsets, index, offsets, index + 1, offsetsCount - index)
+    offsets[index] = offset
+    ++offsetsCount
+  }
+
+  private fun appendSorted(offset: Long) {
+    if (offsetsCount == offsets.size) {
+      offsets = offsets.copyOf(offsets.size * 2)
+    }
+
+    offsets[offsetsCount++] = offset
+  }
+
+  private data class ExtraPost(val postNo: Long, val postSubNo: Long)
+
+  private class VarIntWriter(expectedSize: Int) {
+    private var buffer = ByteArray(expectedSize.coerceAtLeast(16))
+    private var position = 0
+
+    fun write(value: Long) {
+      require(value >= 0L) { "Negative value: $value" }
+
+      var remaining = value
+
+      while (true) {
+        if (position == buffer.size) {
+          buffer = buffer.copyOf(buffer.size * 2)
+        }
+
+        if (remaining and 0x7FL.inv() == 0L) {
+          buffer[position++] = remaining.toByte()
+          return
+        }
+
+        buffer[position++] = ((remaining and 0x7FL) or 0x80L).toByte()
+        remaining = remaining ushr 7
+      }
+    }
+
+    fun toByteArray(): ByteArray = buffer.copyOf(position)
+  }
+
+  private class VarIntReader(private val bytes: ByteArray) {
+    private var position = 0
+
+    fun read(): Long {
+      var result = 0L
+      var shift = 0
+
+      while (true) {
+        if (position >= bytes.size || shift > 63) {
+          throw MalformedBitmapException("Unexpected end of the varint at ${position}")
+        }
+
+        val byte = bytes[position++].toLong()
+        result = result or ((byte and 0x7FL) shl shift)
+
+        if (byte and 0x80L == 0L) {
+          return result
+        }
+
+        shift += 7
+      }
+    }
+
+    fun isAtEnd(): Boolean = position == bytes.size
+  }
+
+  class MalformedBitmapException(message: String) : Exception(message)
+
+  companion object {
+    private const val FORMAT_VERSION = 1
+    private const val INITIAL_CAPACITY = 16
+    // Way more than any thread has, protects from decoding garbage into a huge array
+    private const val MAX_POSTS = 1_000_000L
+
+    @Throws(MalformedBitmapException::class)
+    fun decode(threadNo: Long, bytes: ByteArray): SeenPostsBitmap {
+      val reader = VarIntReader(bytes)
+
+      val version = reader.read()
+      if (version != FORMAT_VERSION.toLong()) {
+        throw MalformedBitmapException("Unsupported version: ${version}")
+      }
+
+      val seenPostsBitmap = SeenPostsBitmap(threadNo)
+      val runsCount = reader.read()
+      var prevRunEnd = 0L
+
+      for (run in 0 until runsCount) {
+        val start = prevRunEnd + reader.read()
+        val length = reader.read() + 1
+
+        if ((run > 0 && start == prevRunEnd) || length > MAX_POSTS - seenPostsBitmap.size) {
+          throw MalformedBitmapException("Bad run: start=${start}, length=${length}, prevRunEnd=${prevRunEnd}")
+        }
+
+        for (offset in start until start + length) {
+          seenPostsBitmap.appendSorted(offset)
+        }
+
+        prevRunEnd = start + length
+      }
+
+      val extraPostsCount = reader.read()
+      for (index in 0 until extraPostsCount) {
+        seenPostsBitmap.extraPosts += ExtraPost(postNo = reader.read(), postSubNo = reader.read())
+      }
+
+      if (!reader.isAtEnd()) {
+        throw MalformedBitmapException("Unexpected bytes after the end of the bitmap")
+      }
+
+      return seenPostsBitmap
+    }
+
+    /**
+     * Whether the OP was seen, without decoding the whole bitmap (the OP is always the start of the
+     * first run).
+     * */
+    fun containsOriginalPost(bytes: ByteArray): Boolean {
+      return try {
+        val reader = VarIntReader(bytes)
+        if (reader.read() != FORMAT_VERSION.toLong()) {
+          return false
+        }
+
+        reader.read() > 0 && reader.read() == 0L
+      } catch (error: MalformedBitmapException) {
+        false
+      }
+    }
+  }
+}
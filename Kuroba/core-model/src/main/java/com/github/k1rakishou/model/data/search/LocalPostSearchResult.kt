@@ -0,0 +1,28 @@
+package com.github.k1rakishou.model.data.search
+
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * One page of the posts found in the local database, sorted from the newest post to the oldest one.
+ * */
+data class LocalPostSearchResult(
+  val hits: List<LocalPostSearchHit>,
+  val offset: Int,
+  val totalMatches: Int
+) {
+
+  fun hasMore(): Boolean = offset + hits.size < totalMatches
+
+  companion object {
+    val EMPTY = LocalPostSearchResult(hits = emptyList(), offset = 0, totalMatches = 0)
+  }
+}
+
+/**
+ * [rank] is how well the post matches the query (hits in the subject weigh more than hits in the
+ * comment, rare words weigh more than common ones), it can be used to highlight the best hits.
+ * */
+data class LocalPostSearchHit(
+  val postDescriptor: PostDescriptor,
+  val rank: Double
+)
@@ -25,6 +25,7 @@ import com.github.k1rakishou.model.repository.ThreadBookmarkGroupRepository
 import com.github.k1rakishou.model.repository.ThreadDownloadRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
+import com.github.k1rakishou.model.sqlite.SQLiteQueryTimings
 import com.google.gson.Gson
 import dagger.BindsInstance
 import dagger.Component
@@ -61,6 +62,7 @@ interface ModelComponent {
   fun getThreadDownloadRepository(): ThreadDownloadRepository
   fun getChanCatalogSnapshotCache(): ChanCatalogSnapshotCache
   fun getCompositeCatalogRepository(): CompositeCatalogRepository
+  fun getSQLiteQueryTimings(): SQLiteQueryTimings
 
   @Component.Builder
   interface Builder {
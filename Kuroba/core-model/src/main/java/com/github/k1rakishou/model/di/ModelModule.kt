@@ -1,5 +1,6 @@
 package com.github.k1rakishou.model.di
 
+import android.content.Context
 import com.github.k1rakishou.json.BooleanJsonSetting
 import com.github.k1rakishou.json.IntegerJsonSetting
 import com.github.k1rakishou.json.JsonSetting
@@ -7,6 +8,7 @@ import com.github.k1rakishou.json.LongJsonSetting
 import com.github.k1rakishou.json.RuntimeTypeAdapterFactory
 import com.github.k1rakishou.json.StringJsonSetting
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.compactor.DatabaseCompactor
 import com.github.k1rakishou.model.repository.BoardRepository
 import com.github.k1rakishou.model.repository.BookmarksRepository
 import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
@@ -51,6 +53,8 @@ import com.github.k1rakishou.model.source.local.ThreadBookmarkGroupLocalSource
 import com.github.k1rakishou.model.source.local.ThreadBookmarkLocalSource
 import com.github.k1rakishou.model.source.local.ThreadDownloadLocalSource
 import com.github.k1rakishou.model.source.remote.MediaServiceLinkExtraContentRemoteSource
+import com.github.k1rakishou.model.sqlite.SQLitePragmas
+import com.github.k1rakishou.model.sqlite.SQLiteQueryTimings
 import com.google.gson.Gson
 import com.squareup.moshi.Moshi
 import dagger.Module
@@ -64,9 +68,39 @@ class ModelModule {
   @Singleton
   @Provides
   fun provideDatabase(
-    dependencies: ModelComponent.Dependencies
+    dependencies: ModelComponent.Dependencies,
+    sqliteQueryTimings: SQLiteQueryTimings
   ): KurobaDatabase {
-    return KurobaDatabase.buildDatabase(dependencies.application)
+    return KurobaDatabase.buildDatabase(
+      application = dependencies.application,
+      sqlitePragmas = SQLitePragmas.forDevice(dependencies.isLowRamDevice),
+      sqliteQueryTimings = sqliteQueryTimings
+    )
+  }
+
+  @Singleton
+  @Provides
+  fun provideSQLiteQueryTimings(): SQLiteQueryTimings {
+    return SQLiteQueryTimings()
+  }
+
+  @Singleton
+  @Provides
+  fun provideDatabaseCompactor(
+    dependencies: ModelComponent.Dependencies,
+    database: KurobaDatabase
+  ): DatabaseCompactor {
+    val sharedPreferences = dependencies.application.getSharedPreferences(
+      DatabaseCompactor.SHARED_PREFERENCES_NAME,
+      Context.MODE_PRIVATE
+    )
+
+    return DatabaseCompactor(
+      database = database,
+      sharedPreferences = sharedPreferences,
+      maxPostsAmount = dependencies.appConstants.maxAmountOfPostsInDatabase,
+      maxThreadsAmount = dependencies.appConstants.maxAmountOfThreadsInDatabase
+    )
   }
 
   @Singleton
@@ -404,7 +438,8 @@ class ModelModule {
     database: KurobaDatabase,
     chanPostLocalSource: ChanPostLocalSource,
     chanThreadsCache: ChanThreadsCache,
-    chanDescriptorCache: ChanDescriptorCache
+    chanDescriptorCache: ChanDescriptorCache,
+    databaseCompactor: DatabaseCompactor
   ): ChanPostRepository {
     return ChanPostRepository(
       database,
@@ -413,7 +448,8 @@ class ModelModule {
       dependencies.appConstants,
       chanPostLocalSource,
       chanThreadsCache,
-      chanDescriptorCache
+      chanDescriptorCache,
+      databaseCompactor
     )
   }
 
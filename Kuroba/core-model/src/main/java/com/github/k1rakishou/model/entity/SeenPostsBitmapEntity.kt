@@ -0,0 +1,55 @@
+package com.github.k1rakishou.model.entity
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import androidx.room.Index
+import androidx.room.PrimaryKey
+import com.github.k1rakishou.model.data.post.SeenPostsBitmap
+import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
+import org.joda.time.DateTime
+
+/**
+ * All seen posts of a thread encoded as a [SeenPostsBitmap].
+ * */
+@Entity(
+  tableName = SeenPostsBitmapEntity.TABLE_NAME,
+  foreignKeys = [
+    ForeignKey(
+      entity = ChanThreadEntity::class,
+      parentColumns = [ChanThreadEntity.THREAD_ID_COLUMN_NAME],
+      childColumns = [SeenPostsBitmapEntity.OWNER_THREAD_ID_COLUMN_NAME],
+      onDelete = ForeignKey.CASCADE,
+      onUpdate = ForeignKey.CASCADE
+    )
+  ],
+  indices = [
+    Index(
+      name = SeenPostsBitmapEntity.LAST_UPDATED_AT_INDEX_NAME,
+      value = [SeenPostsBitmapEntity.LAST_UPDATED_AT_COLUMN_NAME]
+    )
+  ]
+)
+class SeenPostsBitmapEntity(
+  @PrimaryKey(autoGenerate = false)
+  @ColumnInfo(name = OWNER_THREAD_ID_COLUMN_NAME)
+  val ownerThreadId: Long,
+  @ColumnInfo(name = SEEN_POSTS_BITMAP_COLUMN_NAME, typeAffinity = ColumnInfo.BLOB)
+  val seenPostsBitmap: ByteArray,
+  @ColumnInfo(name = SEEN_POSTS_COUNT_COLUMN_NAME)
+  val seenPostsCount: Int,
+  @ColumnInfo(name = LAST_UPDATED_AT_COLUMN_NAME)
+  val lastUpdatedAt: DateTime
+) {
+
+  companion object {
+    const val TABLE_NAME = "seen_posts_bitmap"
+
+    const val OWNER_THREAD_ID_COLUMN_NAME = "owner_thread_id"
+    const val SEEN_POSTS_BITMAP_COLUMN_NAME = "seen_posts_bitmap"
+    const val SEEN_POSTS_COUNT_COLUMN_NAME = "seen_posts_count"
+    const val LAST_UPDATED_AT_COLUMN_NAME = "last_updated_at"
+
+    const val LAST_UPDATED_AT_INDEX_NAME = "${TABLE_NAME}_last_updated_at_idx"
+  }
+}
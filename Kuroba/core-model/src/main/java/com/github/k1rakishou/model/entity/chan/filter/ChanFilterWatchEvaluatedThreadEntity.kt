@@ -0,0 +1,60 @@
+package com.github.k1rakishou.model.entity.chan.filter
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+
+/**
+ * Remembers the result of matching a catalog thread against the enabled watch filters so that the
+ * filter watcher doesn't have to parse and match threads that haven't changed since the previous
+ * check. There are no foreign keys here on purpose, most of the catalog threads never get into the
+ * chan_thread table.
+ * */
+@Entity(
+  tableName = ChanFilterWatchEvaluatedThreadEntity.TABLE_NAME,
+  primaryKeys = [
+    ChanFilterWatchEvaluatedThreadEntity.SITE_NAME_COLUMN_NAME,
+    ChanFilterWatchEvaluatedThreadEntity.BOARD_CODE_COLUMN_NAME,
+    ChanFilterWatchEvaluatedThreadEntity.THREAD_NO_COLUMN_NAME
+  ],
+  indices = [
+    Index(
+      name = ChanFilterWatchEvaluatedThreadEntity.EVALUATED_AT_INDEX_NAME,
+      value = [ChanFilterWatchEvaluatedThreadEntity.EVALUATED_AT_COLUMN_NAME]
+    )
+  ]
+)
+data class ChanFilterWatchEvaluatedThreadEntity(
+  @ColumnInfo(name = SITE_NAME_COLUMN_NAME)
+  val siteName: String,
+  @ColumnInfo(name = BOARD_CODE_COLUMN_NAME)
+  val boardCode: String,
+  @ColumnInfo(name = THREAD_NO_COLUMN_NAME)
+  val threadNo: Long,
+  @ColumnInfo(name = OP_HASH_COLUMN_NAME)
+  val opHash: Long,
+  @ColumnInfo(name = FILTER_SET_VERSION_COLUMN_NAME)
+  val filterSetVersion: Long,
+  @ColumnInfo(name = MATCHED_FILTER_ID_COLUMN_NAME)
+  val matchedFilterId: Long?,
+  @ColumnInfo(name = LAST_MODIFIED_COLUMN_NAME)
+  val lastModified: Long,
+  @ColumnInfo(name = EVALUATED_AT_COLUMN_NAME)
+  val evaluatedAt: Long
+) {
+
+  companion object {
+    const val TABLE_NAME = "chan_filter_watch_evaluated_thread"
+
+    const val SITE_NAME_COLUMN_NAME = "site_name"
+    const val BOARD_CODE_COLUMN_NAME = "board_code"
+    const val THREAD_NO_COLUMN_NAME = "thread_no"
+    const val OP_HASH_COLUMN_NAME = "op_hash"
+    const val FILTER_SET_VERSION_COLUMN_NAME = "filter_set_version"
+    const val MATCHED_FILTER_ID_COLUMN_NAME = "matched_filter_id"
+    const val LAST_MODIFIED_COLUMN_NAME = "last_modified"
+    const val EVALUATED_AT_COLUMN_NAME = "evaluated_at"
+
+    const val EVALUATED_AT_INDEX_NAME = "${TABLE_NAME}_evaluated_at_idx"
+  }
+}
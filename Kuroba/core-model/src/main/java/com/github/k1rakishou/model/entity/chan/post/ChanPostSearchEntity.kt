@@ -0,0 +1,102 @@
+package com.github.k1rakishou.model.entity.chan.post
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+import androidx.room.PrimaryKey
+
+/**
+ * Full text search index of the posts stored in the database. The rowid (docid) of every row is the
+ * id of the [ChanPostEntity] it was built from. Rows are inserted together with the posts (see
+ * ChanPostLocalSource.insertPostsInternal) and deleted by [DELETE_TRIGGER_SQL] whenever the post is
+ * deleted (including the cascading deletes of threads).
+ * */
+@Fts4(tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = ChanPostSearchEntity.TABLE_NAME)
+class ChanPostSearchEntity(
+  @PrimaryKey
+  @ColumnInfo(name = ROWID_COLUMN_NAME)
+  val rowid: Long,
+  @ColumnInfo(name = SUBJECT_COLUMN_NAME)
+  val subject: String?,
+  @ColumnInfo(name = COMMENT_COLUMN_NAME)
+  val comment: String?,
+  @ColumnInfo(name = NAME_COLUMN_NAME)
+  val name: String?,
+  @ColumnInfo(name = FILENAMES_COLUMN_NAME)
+  val filenames: String?
+) {
+
+  companion object {
+    const val TABLE_NAME = "chan_post_search"
+
+    const val ROWID_COLUMN_NAME = "rowid"
+    const val SUBJECT_COLUMN_NAME = "subject"
+    const val COMMENT_COLUMN_NAME = "comment"
+    const val NAME_COLUMN_NAME = "name"
+    const val FILENAMES_COLUMN_NAME = "filenames"
+
+    // Order of the columns in the table, used to read matchinfo()
+    const val SUBJECT_COLUMN_INDEX = 0
+    const val COMMENT_COLUMN_INDEX = 1
+    const val NAME_COLUMN_INDEX = 2
+    const val FILENAMES_COLUMN_INDEX = 3
+    const val COLUMNS_COUNT = 4
+
+    const val DELETE_TRIGGER_NAME = "${TABLE_NAME}_delete_trigger"
+
+    // Room has no way to declare triggers so this one is created by the database callback and the
+    // migration
+    const val DELETE_TRIGGER_SQL = """
+      CREATE TRIGGER IF NOT EXISTS `${DELETE_TRIGGER_NAME}`
+      AFTER DELETE ON `${ChanPostEntity.TABLE_NAME}`
+      BEGIN
+        DELETE FROM `${TABLE_NAME}` WHERE `docid` = OLD.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}`;
+      END
+    """
+
+    /**
+     * Indexes the posts with ids in the (?1, ?2] range that are not indexed yet (the posts that were
+     * stored before the index existed).
+     * */
+    const val BACKFILL_SQL = """
+      INSERT INTO `${TABLE_NAME}` (`docid`, `${SUBJECT_COLUMN_NAME}`, `${COMMENT_COLUMN_NAME}`, `${NAME_COLUMN_NAME}`, `${FILENAMES_COLUMN_NAME}`)
+      SELECT
+        posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}`,
+        (
+          SELECT spans.`${ChanTextSpanEntity.PARSED_TEXT_COLUMN_NAME}`
+          FROM `${ChanTextSpanEntity.TABLE_NAME}` spans
+          WHERE spans.`${ChanTextSpanEntity.OWNER_POST_ID_COLUMN_NAME}` = posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}`
+          AND spans.`${ChanTextSpanEntity.TEXT_TYPE_COLUMN_NAME}` = ${SUBJECT_TEXT_TYPE}
+          LIMIT 1
+        ),
+        (
+          SELECT spans.`${ChanTextSpanEntity.PARSED_TEXT_COLUMN_NAME}`
+          FROM `${ChanTextSpanEntity.TABLE_NAME}` spans
+          WHERE spans.`${ChanTextSpanEntity.OWNER_POST_ID_COLUMN_NAME}` = posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}`
+          AND spans.`${ChanTextSpanEntity.TEXT_TYPE_COLUMN_NAME}` = ${COMMENT_TEXT_TYPE}
+          LIMIT 1
+        ),
+        posts.`${ChanPostEntity.NAME_COLUMN_NAME}`,
+        (
+          SELECT group_concat(images.`${ChanPostImageEntity.FILENAME_COLUMN_NAME}` || IFNULL('.' || images.`${ChanPostImageEntity.EXTENSION_COLUMN_NAME}`, ''), ' ')
+          FROM `${ChanPostImageEntity.TABLE_NAME}` images
+          WHERE images.`${ChanPostImageEntity.OWNER_POST_ID_COLUMN_NAME}` = posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}`
+          AND images.`${ChanPostImageEntity.FILENAME_COLUMN_NAME}` IS NOT NULL
+        )
+      FROM `${ChanPostEntity.TABLE_NAME}` posts
+      WHERE posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}` > ?1
+      AND posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}` <= ?2
+      AND NOT EXISTS (
+        SELECT 1
+        FROM `${TABLE_NAME}`
+        WHERE `docid` = posts.`${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME}`
+      )
+    """
+
+    // Must be constants to be used in BACKFILL_SQL (same as ChanTextSpanEntity.TextType values)
+    private const val SUBJECT_TEXT_TYPE = 1
+    private const val COMMENT_TEXT_TYPE = 0
+  }
+}
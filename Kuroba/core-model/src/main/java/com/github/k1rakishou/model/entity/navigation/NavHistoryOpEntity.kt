@@ -0,0 +1,36 @@
+package com.github.k1rakishou.model.entity.navigation
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Op log of the navigation history (see [com.github.k1rakishou.model.data.navigation.NavHistoryOp]).
+ * Ops are replayed in the [id] order on top of the stack stored in [NavHistoryElementIdEntity] and
+ * [NavHistoryElementInfoEntity].
+ * */
+@Entity(tableName = NavHistoryOpEntity.TABLE_NAME)
+data class NavHistoryOpEntity(
+  @PrimaryKey(autoGenerate = true)
+  @ColumnInfo(name = ID_COLUMN_NAME)
+  val id: Long,
+  @ColumnInfo(name = OP_TYPE_COLUMN_NAME)
+  val opType: Int,
+  @ColumnInfo(name = OP_DATA_JSON_COLUMN_NAME)
+  val opDataJson: String
+) {
+
+  companion object {
+    const val OP_TYPE_INSERT = 0
+    const val OP_TYPE_MOVE = 1
+    const val OP_TYPE_PIN = 2
+    const val OP_TYPE_REPLACE = 3
+    const val OP_TYPE_DELETE = 4
+    const val OP_TYPE_CLEAR = 5
+
+    const val TABLE_NAME = "nav_history_op_log"
+    const val ID_COLUMN_NAME = "id"
+    const val OP_TYPE_COLUMN_NAME = "op_type"
+    const val OP_DATA_JSON_COLUMN_NAME = "op_data_json"
+  }
+}
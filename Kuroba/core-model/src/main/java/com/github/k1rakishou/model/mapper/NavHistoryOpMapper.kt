@@ -0,0 +1,233 @@
+package com.github.k1rakishou.model.mapper
+
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.navigation.NavHistoryElement
+import com.github.k1rakishou.model.data.navigation.NavHistoryElementData
+import com.github.k1rakishou.model.data.navigation.NavHistoryElementInfo
+import com.github.k1rakishou.model.data.navigation.NavHistoryOp
+import com.github.k1rakishou.model.entity.navigation.NavHistoryElementIdEntity
+import com.github.k1rakishou.model.entity.navigation.NavHistoryOpEntity
+import com.squareup.moshi.JsonClass
+import com.squareup.moshi.Moshi
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+
+object NavHistoryOpMapper {
+  private const val TAG = "NavHistoryOpMapper"
+
+  fun toNavHistoryOpEntity(navHistoryOp: NavHistoryOp, moshi: Moshi): NavHistoryOpEntity? {
+    val (opType, opDataJson) = when (navHistoryOp) {
+      is NavHistoryOp.Insert -> {
+        val opDataJson = NavHistoryOpDataJson(
+          descriptor = toDescriptorJson(navHistoryOp.navHistoryElement.descriptor()) ?: return null,
+          element = toElementJson(navHistoryOp.navHistoryElement) ?: return null,
+          pinned = null,
+          index = navHistoryOp.index
+        )
+
+        NavHistoryOpEntity.OP_TYPE_INSERT to opDataJson
+      }
+      is NavHistoryOp.Move -> {
+        val opDataJson = NavHistoryOpDataJson(
+          descriptor = toDescriptorJson(navHistoryOp.descriptor) ?: return null,
+          element = null,
+          pinned = null,
+          index = navHistoryOp.toIndex
+        )
+
+        NavHistoryOpEntity.OP_TYPE_MOVE to opDataJson
+      }
+      is NavHistoryOp.Pin -> {
+        val opDataJson = NavHistoryOpDataJson(
+          descriptor = toDescriptorJson(navHistoryOp.descriptor) ?: return null,
+          element = null,
+          pinned = navHistoryOp.pinned,
+          index = navHistoryOp.toIndex
+        )
+
+        NavHistoryOpEntity.OP_TYPE_PIN to opDataJson
+      }
+      is NavHistoryOp.Replace -> {
+        val opDataJson = NavHistoryOpDataJson(
+          descriptor = toDescriptorJson(navHistoryOp.descriptor) ?: return null,
+          element = toElementJson(navHistoryOp.navHistoryElement) ?: return null,
+          pinned = null,
+          index = null
+        )
+
+        NavHistoryOpEntity.OP_TYPE_REPLACE to opDataJson
+      }
+      is NavHistoryOp.Delete -> {
+        val opDataJson = NavHistoryOpDataJson(
+          descriptor = toDescriptorJson(navHistoryOp.descriptor) ?: return null,
+          element = null,
+          pinned = null,
+          index = null
+        )
+
+        NavHistoryOpEntity.OP_TYPE_DELETE to opDataJson
+      }
+      NavHistoryOp.Clear -> {
+        val opDataJson = NavHistoryOpDataJson(
+          descriptor = null,
+          element = null,
+          pinned = null,
+          index = null
+        )
+
+        NavHistoryOpEntity.OP_TYPE_CLEAR to opDataJson
+      }
+    }
+
+    return NavHistoryOpEntity(
+      id = 0L,
+      opType = opType,
+      opDataJson = moshi.adapter(NavHistoryOpDataJson::class.java).toJson(opDataJson)
+    )
+  }
+
+  fun fromNavHistoryOpEntity(navHistoryOpEntity: NavHistoryOpEntity, moshi: Moshi): NavHistoryOp? {
+    val opDataJson = try {
+      moshi.adapter(NavHistoryOpDataJson::class.java).fromJson(navHistoryOpEntity.opDataJson)
+    } catch (error: Throwable) {
+      Logger.e(TAG, "Failed to convert json '${navHistoryOpEntity.opDataJson}' into NavHistoryOpDataJson", error)
+      return null
+    }
+
+    if (opDataJson == null) {
+      return null
+    }
+
+    if (navHistoryOpEntity.opType == NavHistoryOpEntity.OP_TYPE_CLEAR) {
+      return NavHistoryOp.Clear
+    }
+
+    val descriptor = opDataJson.descriptor?.let { descriptorJson -> fromDescriptorJson(descriptorJson) }
+      ?: return null
+
+    return when (val opType = navHistoryOpEntity.opType) {
+      NavHistoryOpEntity.OP_TYPE_INSERT -> {
+        val navHistoryElement = opDataJson.element?.let { elementJson -> fromElementJson(descriptor, elementJson) }
+          ?: return null
+        val index = opDataJson.index
+          ?: return null
+
+        NavHistoryOp.Insert(navHistoryElement, index)
+      }
+      NavHistoryOpEntity.OP_TYPE_MOVE -> {
+        val index = opDataJson.index
+          ?: return null
+
+        NavHistoryOp.Move(descriptor, index)
+      }
+      NavHistoryOpEntity.OP_TYPE_PIN -> {
+        val pinned = opDataJson.pinned
+          ?: return null
+        val index = opDataJson.index
+          ?: return null
+
+        NavHistoryOp.Pin(descriptor, pinned, index)
+      }
+      NavHistoryOpEntity.OP_TYPE_REPLACE -> {
+        val elementJson = opDataJson.element
+          ?: return null
+        val newDescriptor = fromDescriptorJson(elementJson.descriptor)
+          ?: return null
+        val navHistoryElement = fromElementJson(newDescriptor, elementJson)
+          ?: return null
+
+        NavHistoryOp.Replace(descriptor, navHistoryElement)
+      }
+      NavHistoryOpEntity.OP_TYPE_DELETE -> {
+        NavHistoryOp.Delete(descriptor)
+      }
+      else -> {
+        Logger.e(TAG, "fromNavHistoryOpEntity() Unknown type: $opType")
+        null
+      }
+    }
+  }
+
+  private fun toElementJson(navHistoryElement: NavHistoryElement): NavHistoryOpElementJson? {
+    val navHistoryElementInfo = navHistoryElement.navHistoryElementInfo
+
+    return NavHistoryOpElementJson(
+      descriptor = toDescriptorJson(navHistoryElement.descriptor()) ?: return null,
+      thumbnailUrl = navHistoryElementInfo.thumbnailUrl.toString(),
+      title = navHistoryElementInfo.title,
+      pinned = navHistoryElementInfo.pinned
+    )
+  }
+
+  private fun fromElementJson(descriptor: ChanDescriptor, elementJson: NavHistoryOpElementJson): NavHistoryElement? {
+    val navHistoryElementInfo = NavHistoryElementInfo(
+      thumbnailUrl = elementJson.thumbnailUrl.toHttpUrlOrNull() ?: return null,
+      title = elementJson.title,
+      pinned = elementJson.pinned
+    )
+
+    return when (descriptor) {
+      is ChanDescriptor.ThreadDescriptor -> NavHistoryElement.Thread(descriptor, navHistoryElementInfo)
+      is ChanDescriptor.CatalogDescriptor -> NavHistoryElement.Catalog(descriptor, navHistoryElementInfo)
+      is ChanDescriptor.CompositeCatalogDescriptor -> NavHistoryElement.CompositeCatalog(descriptor, navHistoryElementInfo)
+    }
+  }
+
+  private fun toDescriptorJson(descriptor: ChanDescriptor): NavHistoryOpDescriptorJson? {
+    val type = when (descriptor) {
+      is ChanDescriptor.ThreadDescriptor -> NavHistoryElementIdEntity.TYPE_THREAD_DESCRIPTOR
+      is ChanDescriptor.CatalogDescriptor -> NavHistoryElementIdEntity.TYPE_CATALOG_DESCRIPTOR
+      is ChanDescriptor.CompositeCatalogDescriptor -> NavHistoryElementIdEntity.TYPE_COMPOSITE_CATALOG_DESCRIPTOR
+    }
+
+    val navHistoryElementData = NavHistoryElementData.fromChanDescriptor(descriptor)
+      ?: return null
+
+    return NavHistoryOpDescriptorJson(type, navHistoryElementData)
+  }
+
+  private fun fromDescriptorJson(descriptorJson: NavHistoryOpDescriptorJson): ChanDescriptor? {
+    val chanDescriptorsData = descriptorJson.data.chanDescriptorsData
+
+    return when (val type = descriptorJson.type) {
+      NavHistoryElementIdEntity.TYPE_THREAD_DESCRIPTOR -> {
+        chanDescriptorsData.firstOrNull()?.threadDescriptorOrNull()
+      }
+      NavHistoryElementIdEntity.TYPE_CATALOG_DESCRIPTOR -> {
+        chanDescriptorsData.firstOrNull()?.catalogDescriptor()
+      }
+      NavHistoryElementIdEntity.TYPE_COMPOSITE_CATALOG_DESCRIPTOR -> {
+        ChanDescriptor.CompositeCatalogDescriptor.createSafe(
+          chanDescriptorsData.map { chanDescriptorData -> chanDescriptorData.catalogDescriptor() }
+        )
+      }
+      else -> {
+        Logger.e(TAG, "fromDescriptorJson() Unknown type: $type")
+        null
+      }
+    }
+  }
+
+  @JsonClass(generateAdapter = true)
+  data class NavHistoryOpDataJson(
+    val descriptor: NavHistoryOpDescriptorJson?,
+    val element: NavHistoryOpElementJson?,
+    val pinned: Boolean?,
+    val index: Int?
+  )
+
+  @JsonClass(generateAdapter = true)
+  data class NavHistoryOpDescriptorJson(
+    val type: Int,
+    val data: NavHistoryElementData
+  )
+
+  @JsonClass(generateAdapter = true)
+  data class NavHistoryOpElementJson(
+    val descriptor: NavHistoryOpDescriptorJson,
+    val thumbnailUrl: String,
+    val title: String,
+    val pinned: Boolean
+  )
+
+}
@@ -1,30 +1,66 @@
 package com.github.k1rakishou.model.mapper
 
+import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.SeenPost
-import com.github.k1rakishou.model.entity.SeenPostEntity
+import com.github.k1rakishou.model.data.post.SeenPostsBitmap
+import com.github.k1rakishou.model.entity.SeenPostsBitmapEntity
+import org.joda.time.DateTime
 
 object SeenPostMapper {
 
-  fun toEntity(ownerThreadId: Long, seenPost: SeenPost): SeenPostEntity {
-    return SeenPostEntity(
+  fun toEntity(
+    ownerThreadId: Long,
+    seenPostsBitmap: SeenPostsBitmap,
+    lastUpdatedAt: DateTime
+  ): SeenPostsBitmapEntity {
+    return SeenPostsBitmapEntity(
       ownerThreadId = ownerThreadId,
-      postNo = seenPost.postDescriptor.postNo,
-      postSubNo = seenPost.postDescriptor.postSubNo,
-      insertedAt = seenPost.insertedAt
+      seenPostsBitmap = seenPostsBitmap.encode(),
+      seenPostsCount = seenPostsBitmap.size,
+      lastUpdatedAt = lastUpdatedAt
     )
   }
 
-  fun fromEntity(
+  /**
+   * Per-post seen times are not stored so every post gets the time the thread was last updated at.
+   * */
+  fun fromSeenPostsBitmap(
     threadDescriptor: ChanDescriptor.ThreadDescriptor,
-    seenPostEntity: SeenPostEntity?
-  ): SeenPost? {
-    if (seenPostEntity == null) {
-      return null
+    seenPostsBitmap: SeenPostsBitmap,
+    lastUpdatedAt: DateTime
+  ): List<SeenPost> {
+    if (threadDescriptor.threadNo <= 0) {
+      return emptyList()
+    }
+
+    val seenPosts = mutableListWithCap<SeenPost>(seenPostsBitmap.size)
+
+    seenPostsBitmap.forEach { postNo, postSubNo ->
+      if (postNo <= 0) {
+        return@forEach
+      }
+
+      seenPosts += SeenPost(
+        postDescriptor = PostDescriptor.create(
+          chanDescriptor = threadDescriptor,
+          threadNo = threadDescriptor.threadNo,
+          postNo = postNo,
+          postSubNo = postSubNo
+        ),
+        insertedAt = lastUpdatedAt
+      )
     }
 
-    if (seenPostEntity.postNo <= 0 || threadDescriptor.threadNo <= 0) {
+    return seenPosts
+  }
+
+  fun originalPost(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    lastUpdatedAt: DateTime
+  ): SeenPost? {
+    if (threadDescriptor.threadNo <= 0) {
       return null
     }
 
@@ -32,11 +68,11 @@ object SeenPostMapper {
       postDescriptor = PostDescriptor.create(
         chanDescriptor = threadDescriptor,
         threadNo = threadDescriptor.threadNo,
-        postNo = seenPostEntity.postNo,
-        postSubNo = seenPostEntity.postSubNo
+        postNo = threadDescriptor.threadNo,
+        postSubNo = 0L
       ),
-      insertedAt = seenPostEntity.insertedAt
+      insertedAt = lastUpdatedAt
     )
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,32 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v43_to_v44 : Migration(43, 44) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL("""
+        CREATE TABLE IF NOT EXISTS `chan_filter_watch_evaluated_thread` 
+        (
+          `site_name` TEXT NOT NULL, 
+          `board_code` TEXT NOT NULL, 
+          `thread_no` INTEGER NOT NULL, 
+          `op_hash` INTEGER NOT NULL, 
+          `filter_set_version` INTEGER NOT NULL, 
+          `matched_filter_id` INTEGER, 
+          `last_modified` INTEGER NOT NULL, 
+          `evaluated_at` INTEGER NOT NULL, 
+          PRIMARY KEY(`site_name`, `board_code`, `thread_no`)
+        )
+      """.trimIndent())
+
+      database.execSQL("""
+        CREATE INDEX IF NOT EXISTS `chan_filter_watch_evaluated_thread_evaluated_at_idx` 
+        ON `chan_filter_watch_evaluated_thread` (`evaluated_at`)
+      """.trimIndent())
+    }
+  }
+
+}
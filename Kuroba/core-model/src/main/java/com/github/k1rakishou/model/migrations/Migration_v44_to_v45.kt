@@ -0,0 +1,22 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+
+class Migration_v44_to_v45 : Migration(44, 45) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.execSQL("""
+      CREATE VIRTUAL TABLE IF NOT EXISTS `chan_post_search`
+      USING FTS4(`subject` TEXT, `comment` TEXT, `name` TEXT, `filenames` TEXT, tokenize=unicode61)
+    """.trimIndent())
+
+    database.execSQL(ChanPostSearchEntity.DELETE_TRIGGER_SQL.trimIndent())
+
+    // The posts that are already in the database are indexed in the background by the
+    // DatabaseCompactor (Phase.PostSearchBackfill), a database with lots of posts would take too
+    // long to index here
+  }
+
+}
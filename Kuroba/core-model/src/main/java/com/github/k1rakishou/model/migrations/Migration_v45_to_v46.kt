@@ -0,0 +1,19 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v45_to_v46 : Migration(45, 46) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.execSQL("""
+      CREATE TABLE IF NOT EXISTS `nav_history_op_log` 
+      (
+        `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, 
+        `op_type` INTEGER NOT NULL, 
+        `op_data_json` TEXT NOT NULL
+      )
+    """.trimIndent())
+  }
+
+}
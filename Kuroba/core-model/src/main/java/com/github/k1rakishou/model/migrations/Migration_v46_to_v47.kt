@@ -0,0 +1,118 @@
+package com.github.k1rakishou.model.migrations
+
+import android.util.Log
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteStatement
+import com.github.k1rakishou.model.data.post.SeenPostsBitmap
+
+/**
+ * Converts the seen posts from one row per post (`seen_post`) into one row per thread with all the
+ * seen posts of the thread encoded as a [SeenPostsBitmap] (`seen_posts_bitmap`). The last time a
+ * thread was updated is the newest inserted_at of its posts.
+ * */
+class Migration_v46_to_v47 : Migration(46, 47) {
+  private val TAG = "KurobaEx | v46->v47"
+
+  private val insertQuery = "INSERT OR REPLACE INTO `seen_posts_bitmap` (`owner_thread_id`, `seen_posts_bitmap`, `seen_posts_count`, `last_updated_at`) VALUES(?, ?, ?, ?)"
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.execSQL("""
+      CREATE TABLE IF NOT EXISTS `seen_posts_bitmap` 
+      (
+        `owner_thread_id` INTEGER NOT NULL, 
+        `seen_posts_bitmap` BLOB NOT NULL, 
+        `seen_posts_count` INTEGER NOT NULL, 
+        `last_updated_at` INTEGER NOT NULL, 
+        PRIMARY KEY(`owner_thread_id`), 
+        FOREIGN KEY(`owner_thread_id`) REFERENCES `chan_thread`(`thread_id`) ON UPDATE CASCADE ON DELETE CASCADE 
+      )
+    """.trimIndent())
+
+    database.execSQL("CREATE INDEX IF NOT EXISTS `seen_posts_bitmap_last_updated_at_idx` ON `seen_posts_bitmap` (`last_updated_at`)")
+
+    val dbCursor = database.query("""
+      SELECT sp.`owner_thread_id`, ct.`thread_no`, sp.`post_no`, sp.`post_sub_no`, sp.`inserted_at`
+      FROM `seen_post` sp
+      INNER JOIN `chan_thread` ct
+        ON sp.`owner_thread_id` = ct.`thread_id`
+      ORDER BY sp.`owner_thread_id`
+    """.trimIndent())
+
+    val rowsCount = dbCursor.count
+    Log.d(TAG, "Migration_v46_to_v47 conversion start (rowsCount=$rowsCount)")
+
+    val statement = database.compileStatement(insertQuery)
+    var threadsCount = 0
+
+    try {
+      dbCursor.use { cursor ->
+        val ownerThreadIdIndex = cursor.getColumnIndexOrThrow("owner_thread_id")
+        val threadNoIndex = cursor.getColumnIndexOrThrow("thread_no")
+        val postNoIndex = cursor.getColumnIndexOrThrow("post_no")
+        val postSubNoIndex = cursor.getColumnIndexOrThrow("post_sub_no")
+        val insertedAtIndex = cursor.getColumnIndexOrThrow("inserted_at")
+
+        var currentThreadId = -1L
+        var currentBitmap: SeenPostsBitmap? = null
+        var currentLastUpdatedAt = 0L
+
+        while (cursor.moveToNext()) {
+          val ownerThreadId = cursor.getLong(ownerThreadIdIndex)
+
+          if (ownerThreadId != currentThreadId || currentBitmap == null) {
+            if (currentBitmap != null) {
+              insertBitmap(statement, currentThreadId, currentBitmap, currentLastUpdatedAt)
+              ++threadsCount
+            }
+
+            currentThreadId = ownerThreadId
+            currentBitmap = SeenPostsBitmap(cursor.getLong(threadNoIndex))
+            currentLastUpdatedAt = 0L
+          }
+
+          val postNo = cursor.getLong(postNoIndex)
+          if (postNo <= 0) {
+            continue
+          }
+
+          currentBitmap.add(postNo, cursor.getLong(postSubNoIndex))
+          currentLastUpdatedAt = maxOf(currentLastUpdatedAt, cursor.getLong(insertedAtIndex))
+        }
+
+        if (currentBitmap != null) {
+          insertBitmap(statement, currentThreadId, currentBitmap, currentLastUpdatedAt)
+          ++threadsCount
+        }
+      }
+    } finally {
+      statement.close()
+    }
+
+    Log.d(TAG, "Migration_v46_to_v47 conversion end (rowsCount=$rowsCount, threadsCount=$threadsCount)")
+
+    database.dropIndex("seen_post_inserted_at_idx")
+    database.dropIndex("seen_post_owner_thread_id_idx")
+    database.dropTable("seen_post")
+  }
+
+  private fun insertBitmap(
+    statement: SupportSQLiteStatement,
+    ownerThreadId: Long,
+    seenPostsBitmap: SeenPostsBitmap,
+    lastUpdatedAt: Long
+  ) {
+    if (seenPostsBitmap.isEmpty()) {
+      return
+    }
+
+    statement.bindLong(1, ownerThreadId)
+    statement.bindBlob(2, seenPostsBitmap.encode())
+    statement.bindLong(3, seenPostsBitmap.size.toLong())
+    statement.bindLong(4, lastUpdatedAt)
+
+    statement.executeInsert()
+    statement.clearBindings()
+  }
+
+}
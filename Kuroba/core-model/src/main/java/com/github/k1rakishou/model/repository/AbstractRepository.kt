@@ -26,7 +26,11 @@ abstract class AbstractRepository(
   protected suspend fun <T> CoroutineScope.dbCall(
     func: suspend () -> T
   ): T {
-    return withContext(dbDispatcher + NonCancellable) { func() }
+    // Counted from the moment the call starts waiting for the dispatcher so that the background
+    // compaction yields to calls that are queued up behind it too.
+    return database.foregroundLoads.track {
+      withContext(dbDispatcher + NonCancellable) { func() }
+    }
   }
 
   @Suppress("RedundantAsync")
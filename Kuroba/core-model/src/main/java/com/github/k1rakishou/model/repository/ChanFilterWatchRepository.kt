@@ -2,6 +2,8 @@ package com.github.k1rakishou.model.repository
 
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilterWatchEvaluatedThread
 import com.github.k1rakishou.model.data.filter.ChanFilterWatchGroup
 import com.github.k1rakishou.model.source.local.ChanFilterWatchLocalSource
 import kotlinx.coroutines.CoroutineScope
@@ -45,4 +47,38 @@ class ChanFilterWatchRepository(
     }
   }
 
-}
\ No newline at end of file
+  suspend fun getEvaluatedThreads(
+    boardDescriptor: BoardDescriptor
+  ): ModularResult<List<ChanFilterWatchEvaluatedThread>> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction localSource.getEvaluatedThreads(boardDescriptor)
+      }
+    }
+  }
+
+  suspend fun storeEvaluatedThreads(evaluatedThreads: List<ChanFilterWatchEvaluatedThread>): ModularResult<Unit> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        localSource.storeEvaluatedThreads(evaluatedThreads)
+      }
+    }
+  }
+
+  suspend fun deleteEvaluatedThreadsOlderThan(time: Long): ModularResult<Int> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction localSource.deleteEvaluatedThreadsOlderThan(time)
+      }
+    }
+  }
+
+  suspend fun clearEvaluatedThreads(): ModularResult<Unit> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        localSource.clearEvaluatedThreads()
+      }
+    }
+  }
+
+}
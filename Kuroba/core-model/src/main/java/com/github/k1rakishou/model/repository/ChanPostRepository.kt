@@ -10,10 +10,13 @@ import com.github.k1rakishou.common.linkedMapWithCap
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.compactor.DatabaseCompactor
 import com.github.k1rakishou.model.data.PostsFromServerData
 import com.github.k1rakishou.model.data.catalog.ChanCatalogSnapshot
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
 import com.github.k1rakishou.model.data.id.ThreadDBId
 import com.github.k1rakishou.model.data.options.ChanCacheOptions
 import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
@@ -21,6 +24,7 @@ import com.github.k1rakishou.model.data.options.PostsToReloadOptions
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import com.github.k1rakishou.model.data.search.LocalPostSearchResult
 import com.github.k1rakishou.model.mapper.ChanPostMapper
 import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
 import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
@@ -41,7 +45,8 @@ class ChanPostRepository(
   private val appConstants: AppConstants,
   private val localSource: ChanPostLocalSource,
   private val chanThreadsCache: ChanThreadsCache,
-  private val chanDescriptorCache: ChanDescriptorCache
+  private val chanDescriptorCache: ChanDescriptorCache,
+  private val databaseCompactor: DatabaseCompactor
 ) : AbstractRepository(database) {
   private val TAG = "ChanPostRepository"
   private val suspendableInitializer = SuspendableInitializer<Unit>("ChanPostRepository")
@@ -50,23 +55,25 @@ class ChanPostRepository(
     Logger.d(TAG, "ChanPostRepository.initialize()")
 
     applicationScope.launch(Dispatchers.IO) {
-      // We need to first delete the posts, so that the threads are only left with the OP
-      val postDeleteResult = deleteOldPostsIfNeeded()
-      if (postDeleteResult is ModularResult.Error) {
-        Logger.e(TAG, "deleteOldPostsIfNeeded() error", postDeleteResult.error)
-        suspendableInitializer.initWithError(postDeleteResult.error)
-        return@launch
+      // Old posts and threads must be deleted before anything is loaded into the caches. The time
+      // budget is small because the compaction is resumed on the next app start anyway.
+      val startupCompactionResult = Try {
+        databaseCompactor.compact(DatabaseCompactor.STARTUP_PHASES, STARTUP_COMPACTION_TIME_BUDGET_MS)
       }
 
-      // Then we can delete the threads themselves
-      val threadDeleteResult = deleteOldThreadsIfNeeded()
-      if (threadDeleteResult is ModularResult.Error) {
-        Logger.e(TAG, "deleteOldThreadsIfNeeded() error", threadDeleteResult.error)
-        suspendableInitializer.initWithError(threadDeleteResult.error)
+      if (startupCompactionResult is ModularResult.Error) {
+        Logger.e(TAG, "Startup database compaction error", startupCompactionResult.error)
+        suspendableInitializer.initWithError(startupCompactionResult.error)
         return@launch
       }
 
       suspendableInitializer.initWithValue(Unit)
+
+      // Seen posts and orphaned rows are not cached anywhere so they can be cleaned up while the
+      // app is being used.
+      Try { databaseCompactor.compact(DatabaseCompactor.BACKGROUND_PHASES) }
+        .onError { error -> Logger.e(TAG, "Background database compaction error", error) }
+        .ignore()
     }
   }
 
@@ -686,6 +693,32 @@ class ChanPostRepository(
     }
   }
 
+  /**
+   * Full text search over the comments, subjects, names and file names of every post stored in the
+   * database. Use [offset] and [count] to load the results page by page.
+   * */
+  suspend fun searchLocalPosts(
+    query: String,
+    siteDescriptor: SiteDescriptor? = null,
+    boardDescriptor: BoardDescriptor? = null,
+    offset: Int = 0,
+    count: Int = DEFAULT_LOCAL_SEARCH_PAGE_SIZE
+  ): ModularResult<LocalPostSearchResult> {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction localSource.searchPosts(
+          query = query,
+          siteDescriptor = siteDescriptor,
+          boardDescriptor = boardDescriptor,
+          offset = offset,
+          count = count
+        )
+      }
+    }
+  }
+
   @OptIn(ExperimentalTime::class)
   suspend fun deleteOldPostsIfNeeded(forced: Boolean = false): ModularResult<ChanPostLocalSource.DeleteResult> {
     return applicationScope.dbCall {
@@ -813,4 +846,9 @@ class ChanPostRepository(
     return false
   }
 
-}
\ No newline at end of file
+  companion object {
+    private const val STARTUP_COMPACTION_TIME_BUDGET_MS = 2_000L
+    const val DEFAULT_LOCAL_SEARCH_PAGE_SIZE = 50
+  }
+
+}
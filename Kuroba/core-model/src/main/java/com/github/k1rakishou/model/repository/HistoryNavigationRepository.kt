@@ -4,6 +4,7 @@ import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.navigation.NavHistoryElement
+import com.github.k1rakishou.model.data.navigation.NavHistoryOp
 import com.github.k1rakishou.model.source.local.NavHistoryLocalSource
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
@@ -24,7 +25,7 @@ class HistoryNavigationRepository(
         ensureBackgroundThread()
 
         val (navHistoryStack, duration) = measureTimedValue {
-          return@measureTimedValue localSource.selectAll(maxCount)
+          return@measureTimedValue localSource.selectAllAndReplayOpLog(maxCount)
         }
 
         Logger.d(TAG, "initialize() -> ${navHistoryStack.size} took $duration")
@@ -33,15 +34,23 @@ class HistoryNavigationRepository(
     }
   }
 
+  suspend fun appendOps(navHistoryOps: List<NavHistoryOp>): ModularResult<Unit> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction localSource.appendOps(navHistoryOps)
+      }
+    }
+  }
+
   @OptIn(ExperimentalTime::class)
-  suspend fun persist(navHistoryStack: List<NavHistoryElement>): ModularResult<Unit> {
+  suspend fun compact(navHistoryStack: List<NavHistoryElement>): ModularResult<Unit> {
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
         val (result, duration) = measureTimedValue {
-          return@measureTimedValue localSource.persist(navHistoryStack)
+          return@measureTimedValue localSource.compact(navHistoryStack)
         }
 
-        Logger.d(TAG, "persist(${navHistoryStack.size}) took $duration")
+        Logger.d(TAG, "compact(${navHistoryStack.size}) took $duration")
         return@tryWithTransaction result
       }
     }
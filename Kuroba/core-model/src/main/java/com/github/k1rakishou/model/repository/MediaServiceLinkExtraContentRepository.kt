@@ -1,6 +1,7 @@
 package com.github.k1rakishou.model.repository
 
 import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.media.GenericVideoId
 import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
@@ -11,6 +12,11 @@ import com.github.k1rakishou.model.source.local.MediaServiceLinkExtraContentLoca
 import com.github.k1rakishou.model.source.remote.MediaServiceLinkExtraContentRemoteSource
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import java.util.concurrent.atomic.AtomicBoolean
 
 class MediaServiceLinkExtraContentRepository(
@@ -60,21 +66,116 @@ class MediaServiceLinkExtraContentRepository(
           }
         },
         storeIntoCacheFunc = { mediaServiceLinkExtraContent ->
-          cache.store(mediaServiceKey, mediaServiceLinkExtraContent)
+          // Negative results are only stored in the database where they expire
+          if (mediaServiceLinkExtraContent.isValid()) {
+            cache.store(mediaServiceKey, mediaServiceLinkExtraContent)
+          }
         },
         storeIntoLocalSourceFunc = { mediaServiceLinkExtraContent ->
-          if (mediaServiceLinkExtraContent.isValid()) {
-            tryWithTransaction {
-              mediaServiceLinkExtraContentLocalSource.insert(mediaServiceLinkExtraContent)
-            }
-          } else {
-            ModularResult.value(Unit)
+          tryWithTransaction {
+            mediaServiceLinkExtraContentLocalSource.insert(mediaServiceLinkExtraContent)
           }
         }
       )
     }
   }
 
+  /**
+   * The same as [getLinkExtraContent] but for many videos of the same service at once. Everything
+   * that is not in the memory cache is looked up in the database with a single query, the rest is
+   * fetched from the network with at most [maxConcurrentRequests] requests running at the same time
+   * (outside of the database dispatcher) and then stored with a single transaction.
+   *
+   * Negative results (the video is dead or private) are stored too and are not requested again
+   * until [MediaServiceLinkExtraContentLocalSource.NEGATIVE_RESULT_TTL] passes. Requests that failed
+   * (network errors, rate limiting) are not stored.
+   * */
+  suspend fun getLinkExtraContentBatch(
+    mediaServiceType: MediaServiceType,
+    requests: Collection<LinkExtraContentRequest>,
+    maxConcurrentRequests: Int = MAX_CONCURRENT_REQUESTS
+  ): Map<GenericVideoId, ModularResult<MediaServiceLinkExtraContent>> {
+    ensureBackgroundThread()
+    require(maxConcurrentRequests > 0) { "Bad maxConcurrentRequests: $maxConcurrentRequests" }
+
+    if (requests.isEmpty()) {
+      return emptyMap()
+    }
+
+    mediaServiceLinkExtraContentRepositoryCleanup().ignore()
+
+    val results = mutableMapOf<GenericVideoId, ModularResult<MediaServiceLinkExtraContent>>()
+    val notCachedRequests = mutableListOf<LinkExtraContentRequest>()
+
+    requests
+      .distinctBy { request -> request.videoId }
+      .forEach { request ->
+        val fromCache = cache.get(MediaServiceKey(request.videoId, mediaServiceType))
+        if (fromCache != null) {
+          results[request.videoId] = ModularResult.value(fromCache)
+        } else {
+          notCachedRequests += request
+        }
+      }
+
+    if (notCachedRequests.isEmpty()) {
+      return results
+    }
+
+    val localSourceResult = applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        mediaServiceLinkExtraContentLocalSource.selectByVideoIds(
+          notCachedRequests.map { request -> request.videoId },
+          mediaServiceType
+        )
+      }
+    }
+
+    when (localSourceResult) {
+      is ModularResult.Error -> {
+        Logger.e(TAG, "Error while trying to get ${notCachedRequests.size} contents from local source", localSourceResult.error)
+        notCachedRequests.forEach { request -> results[request.videoId] = ModularResult.error(localSourceResult.error) }
+        return results
+      }
+      is ModularResult.Value -> {
+        localSourceResult.value.forEach { mediaServiceLinkExtraContent ->
+          if (mediaServiceLinkExtraContent.isValid()) {
+            cache.store(MediaServiceKey(mediaServiceLinkExtraContent.videoId, mediaServiceType), mediaServiceLinkExtraContent)
+          }
+
+          results[mediaServiceLinkExtraContent.videoId] = ModularResult.value(mediaServiceLinkExtraContent)
+        }
+      }
+    }
+
+    val remoteRequests = notCachedRequests.filter { request -> !results.containsKey(request.videoId) }
+    if (remoteRequests.isEmpty()) {
+      return results
+    }
+
+    val remoteResults = fetchFromRemoteSource(mediaServiceType, remoteRequests, maxConcurrentRequests)
+    val fetchedContents = remoteResults.mapNotNull { (_, remoteResult) -> remoteResult.valueOrNull() }
+
+    if (fetchedContents.isNotEmpty()) {
+      applicationScope.dbCall {
+        return@dbCall tryWithTransaction {
+          mediaServiceLinkExtraContentLocalSource.insertMany(fetchedContents)
+        }
+      }.onError { error ->
+        Logger.e(TAG, "Error while trying to store ${fetchedContents.size} contents in the local source", error)
+      }
+
+      fetchedContents.forEach { mediaServiceLinkExtraContent ->
+        if (mediaServiceLinkExtraContent.isValid()) {
+          cache.store(MediaServiceKey(mediaServiceLinkExtraContent.videoId, mediaServiceType), mediaServiceLinkExtraContent)
+        }
+      }
+    }
+
+    remoteResults.forEach { (request, remoteResult) -> results[request.videoId] = remoteResult }
+    return results
+  }
+
   suspend fun isCached(videoId: GenericVideoId, mediaServiceType: MediaServiceType): ModularResult<Boolean> {
     ensureBackgroundThread()
     val mediaServiceKey = MediaServiceKey(videoId, mediaServiceType)
@@ -126,9 +227,52 @@ class MediaServiceLinkExtraContentRepository(
     }
   }
 
+  private suspend fun fetchFromRemoteSource(
+    mediaServiceType: MediaServiceType,
+    remoteRequests: List<LinkExtraContentRequest>,
+    maxConcurrentRequests: Int
+  ): List<Pair<LinkExtraContentRequest, ModularResult<MediaServiceLinkExtraContent>>> {
+    val semaphore = Semaphore(maxConcurrentRequests)
+
+    return coroutineScope {
+      return@coroutineScope remoteRequests
+        .map { request ->
+          return@map async {
+            val remoteResult = semaphore.withPermit {
+              mediaServiceLinkExtraContentRemoteSource.fetchFromNetwork(
+                request.requestUrl,
+                request.videoId,
+                mediaServiceType
+              )
+            }
+
+            return@async request to remoteResult.mapValue { mediaServiceLinkExtraInfo ->
+              MediaServiceLinkExtraContent(
+                request.videoId,
+                mediaServiceType,
+                mediaServiceLinkExtraInfo.videoTitle,
+                mediaServiceLinkExtraInfo.videoDuration
+              )
+            }
+          }
+        }
+        .awaitAll()
+    }
+  }
+
   data class MediaServiceKey(
     val videoId: GenericVideoId,
     val mediaServiceType: MediaServiceType
   )
 
+  data class LinkExtraContentRequest(
+    val requestUrl: String,
+    val videoId: GenericVideoId
+  )
+
+  companion object {
+    // Per batch, every service gets its own batch
+    const val MAX_CONCURRENT_REQUESTS = 4
+  }
+
 }
\ No newline at end of file
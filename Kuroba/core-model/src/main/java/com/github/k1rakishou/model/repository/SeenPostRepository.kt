@@ -1,14 +1,12 @@
 package com.github.k1rakishou.model.repository
 
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.SeenPost
 import com.github.k1rakishou.model.source.local.SeenPostLocalSource
 import kotlinx.coroutines.CoroutineScope
-import java.util.concurrent.atomic.AtomicBoolean
 
 class SeenPostRepository(
   database: KurobaDatabase,
@@ -16,7 +14,6 @@ class SeenPostRepository(
   private val seenPostLocalSource: SeenPostLocalSource
 ) : AbstractRepository(database) {
   private val TAG = "SeenPostRepository"
-  private val alreadyExecuted = AtomicBoolean(false)
 
   suspend fun insertMany(
     threadDescriptor: ChanDescriptor.ThreadDescriptor,
@@ -24,8 +21,6 @@ class SeenPostRepository(
   ): ModularResult<Unit> {
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
-        seenPostLocalRepositoryCleanup()
-
         return@tryWithTransaction seenPostLocalSource.insertMany(threadDescriptor, seenPosts)
       }
     }
@@ -68,13 +63,4 @@ class SeenPostRepository(
     }
   }
 
-  private suspend fun seenPostLocalRepositoryCleanup() {
-    if (!alreadyExecuted.compareAndSet(false, true)) {
-      return
-    }
-
-    val deletedCount = seenPostLocalSource.deleteOlderThan(SeenPostLocalSource.ONE_MONTH_AGO)
-    Logger.d(TAG, "seenPostLocalRepositoryCleanup deletedCount=$deletedCount")
-  }
-
 }
\ No newline at end of file
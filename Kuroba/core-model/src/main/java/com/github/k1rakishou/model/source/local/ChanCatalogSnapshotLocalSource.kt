@@ -1,7 +1,9 @@
 package com.github.k1rakishou.model.source.local
 
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.catalog.ChanCatalogSnapshot
+import com.github.k1rakishou.model.data.catalog.ChanCatalogSnapshotDiff
 import com.github.k1rakishou.model.data.catalog.ChanCompositeCatalogSnapshot
 import com.github.k1rakishou.model.data.catalog.IChanCatalogSnapshot
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -53,18 +55,42 @@ class ChanCatalogSnapshotLocalSource(
       val boardId = chanDescriptorCache.getBoardIdByBoardDescriptor(boardDescriptor)
         ?: return@forEach
 
-      val chanCatalogSnapshotEntityList = catalogSnapshot.catalogThreadDescriptorList
+      val newThreadNos = catalogSnapshot.catalogThreadDescriptorList
         .filter { threadDescriptor -> threadDescriptor.boardDescriptor == boardDescriptor }
-        .mapIndexed { order, threadDescriptor ->
-          return@mapIndexed ChanCatalogSnapshotEntity(
-            boardId.id,
-            threadDescriptor.threadNo,
-            order
-          )
-        }
+        .map { threadDescriptor -> threadDescriptor.threadNo }
 
-      chanCatalogSnapshotDao.deleteManyByBoardId(boardId.id)
-      chanCatalogSnapshotDao.insertMany(chanCatalogSnapshotEntityList)
+      storeBoardSnapshotDiff(boardId.id, newThreadNos)
+    }
+  }
+
+  /**
+   * Only writes the rows of the threads that were added, removed or moved since the previous store
+   * instead of rewriting the whole snapshot of the board (which may have thousands of threads for
+   * unlimited catalogs).
+   * */
+  private suspend fun storeBoardSnapshotDiff(ownerBoardId: Long, newThreadNos: List<Long>) {
+    val prevThreadOrders = chanCatalogSnapshotDao.selectManyByBoardIdOrdered(ownerBoardId)
+      .associate { chanCatalogSnapshotEntity ->
+        chanCatalogSnapshotEntity.threadNo to chanCatalogSnapshotEntity.threadOrder
+      }
+
+    val diff = ChanCatalogSnapshotDiff.calculate(prevThreadOrders, newThreadNos)
+    if (diff.isEmpty()) {
+      return
+    }
+
+    Logger.d(TAG, "storeBoardSnapshotDiff(${ownerBoardId}) total=${newThreadNos.size}, ${diff}")
+
+    diff.deletedThreadNos
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .forEach { chunk -> chanCatalogSnapshotDao.deleteManyByThreadNos(ownerBoardId, chunk) }
+
+    if (diff.movedThreads.isNotEmpty()) {
+      chanCatalogSnapshotDao.updateMany(diff.movedThreads.map { threadOrder -> threadOrder.toEntity(ownerBoardId) })
+    }
+
+    if (diff.insertedThreads.isNotEmpty()) {
+      chanCatalogSnapshotDao.insertMany(diff.insertedThreads.map { threadOrder -> threadOrder.toEntity(ownerBoardId) })
     }
   }
 
@@ -141,4 +167,8 @@ class ChanCatalogSnapshotLocalSource(
     return chanCatalogSnapshotCache.get(catalogDescriptor) as ChanCatalogSnapshot?
   }
 
+  private fun ChanCatalogSnapshotDiff.ThreadOrder.toEntity(ownerBoardId: Long): ChanCatalogSnapshotEntity {
+    return ChanCatalogSnapshotEntity(ownerBoardId, threadNo, threadOrder)
+  }
+
 }
\ No newline at end of file
@@ -1,8 +1,12 @@
 package com.github.k1rakishou.model.source.local
 
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilterWatchEvaluatedThread
 import com.github.k1rakishou.model.data.filter.ChanFilterWatchGroup
 import com.github.k1rakishou.model.data.id.ThreadBookmarkDBId
+import com.github.k1rakishou.model.entity.chan.filter.ChanFilterWatchEvaluatedThreadEntity
 import com.github.k1rakishou.model.entity.chan.filter.ChanFilterWatchGroupEntity
 import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
 
@@ -12,6 +16,7 @@ class ChanFilterWatchLocalSource(
 ) : AbstractLocalSource(database) {
   private val TAG = "ChanFilterWatchLocalSource"
   private val chanFilterWatchGroupDao = database.chanFilterWatchGroupDao()
+  private val chanFilterWatchEvaluatedThreadDao = database.chanFilterWatchEvaluatedThreadDao()
 
   suspend fun createFilterWatchGroups(watchGroups: List<ChanFilterWatchGroup>) {
     ensureInTransaction()
@@ -99,4 +104,61 @@ class ChanFilterWatchLocalSource(
     chanFilterWatchGroupDao.deleteAll()
   }
 
-}
\ No newline at end of file
+  suspend fun getEvaluatedThreads(boardDescriptor: BoardDescriptor): List<ChanFilterWatchEvaluatedThread> {
+    ensureInTransaction()
+
+    return chanFilterWatchEvaluatedThreadDao.selectByBoard(
+      siteName = boardDescriptor.siteName(),
+      boardCode = boardDescriptor.boardCode
+    ).map { entity ->
+      return@map ChanFilterWatchEvaluatedThread(
+        threadDescriptor = ChanDescriptor.ThreadDescriptor.create(boardDescriptor, entity.threadNo),
+        opHash = entity.opHash,
+        filterSetVersion = entity.filterSetVersion,
+        matchedFilterId = entity.matchedFilterId,
+        lastModified = entity.lastModified,
+        evaluatedAt = entity.evaluatedAt
+      )
+    }
+  }
+
+  suspend fun storeEvaluatedThreads(evaluatedThreads: List<ChanFilterWatchEvaluatedThread>) {
+    ensureInTransaction()
+
+    if (evaluatedThreads.isEmpty()) {
+      return
+    }
+
+    val entities = evaluatedThreads.map { evaluatedThread ->
+      val threadDescriptor = evaluatedThread.threadDescriptor
+
+      return@map ChanFilterWatchEvaluatedThreadEntity(
+        siteName = threadDescriptor.siteName(),
+        boardCode = threadDescriptor.boardCode(),
+        threadNo = threadDescriptor.threadNo,
+        opHash = evaluatedThread.opHash,
+        filterSetVersion = evaluatedThread.filterSetVersion,
+        matchedFilterId = evaluatedThread.matchedFilterId,
+        lastModified = evaluatedThread.lastModified,
+        evaluatedAt = evaluatedThread.evaluatedAt
+      )
+    }
+
+    entities
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .forEach { chunk -> chanFilterWatchEvaluatedThreadDao.insertMany(chunk) }
+  }
+
+  suspend fun deleteEvaluatedThreadsOlderThan(time: Long): Int {
+    ensureInTransaction()
+
+    return chanFilterWatchEvaluatedThreadDao.deleteOlderThan(time)
+  }
+
+  suspend fun clearEvaluatedThreads() {
+    ensureInTransaction()
+
+    chanFilterWatchEvaluatedThreadDao.deleteAll()
+  }
+
+}
@@ -6,16 +6,21 @@ import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableSpannableStringMapper
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.dao.ChanPostSearchDao
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.search.LocalPostSearchHit
+import com.github.k1rakishou.model.data.search.LocalPostSearchResult
 import com.github.k1rakishou.model.entity.chan.post.ChanPostFull
 import com.github.k1rakishou.model.entity.chan.post.ChanPostHttpIconEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostImageEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostReplyEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
 import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
 import com.github.k1rakishou.model.entity.view.ChanThreadsWithPosts
@@ -38,6 +43,7 @@ class ChanPostLocalSource(
   private val chanPostHttpIconDao = database.chanPostHttpIconDao()
   private val chanTextSpanDao = database.chanTextSpanDao()
   private val chanPostReplyDao = database.chanPostReplyDao()
+  private val chanPostSearchDao = database.chanPostSearchDao()
 
   suspend fun insertEmptyThread(threadDescriptor: ChanDescriptor.ThreadDescriptor): Long? {
     ensureInTransaction()
@@ -180,6 +186,7 @@ class ChanPostLocalSource(
     )
 
     insertPostSpannables(chanPostIdEntities, chanPostList)
+    insertPostSearchIndex(chanPostIdEntities, chanPostList)
 
     chanPostImageDao.insertMany(
       chanPostIdEntities.flatMapIndexed { index, chanPostIdEntity ->
@@ -223,6 +230,98 @@ class ChanPostLocalSource(
     )
   }
 
+  private suspend fun insertPostSearchIndex(
+    chanPostIdEntities: List<ChanPostIdEntity>,
+    chanPostList: List<ChanPost>
+  ) {
+    ensureInTransaction()
+
+    val chanPostSearchEntities = chanPostIdEntities.mapIndexed { index, chanPostIdEntity ->
+      val chanPost = chanPostList[index]
+
+      val filenames = chanPost.postImages
+        .filter { postImage -> !postImage.isInlined && !postImage.filename.isNullOrEmpty() }
+        .joinToString(separator = " ") { postImage ->
+          if (postImage.extension.isNullOrEmpty()) {
+            postImage.filename!!
+          } else {
+            "${postImage.filename}.${postImage.extension}"
+          }
+        }
+
+      return@mapIndexed ChanPostSearchEntity(
+        rowid = chanPostIdEntity.postId,
+        subject = chanPost.subject?.toString()?.takeIf { subject -> subject.isNotBlank() },
+        comment = chanPost.postComment.originalComment().toString(),
+        name = chanPost.name?.takeIf { name -> name.isNotBlank() },
+        filenames = filenames.takeIf { it.isNotEmpty() }
+      )
+    }
+
+    // Rows of the posts that were replaced are deleted by the trigger (or by the DatabaseCompactor
+    // if the trigger missed them), replace is only here to never fail the whole post insertion
+    chanPostSearchDao.insertOrReplaceMany(chanPostSearchEntities)
+  }
+
+  /**
+   * Searches all posts stored in the database (every thread that was ever opened plus the
+   * downloaded ones). The results are sorted from the newest post to the oldest one, see
+   * [ChanPostSearchDao.selectMatches].
+   * */
+  suspend fun searchPosts(
+    query: String,
+    siteDescriptor: SiteDescriptor?,
+    boardDescriptor: BoardDescriptor?,
+    offset: Int,
+    count: Int
+  ): LocalPostSearchResult {
+    ensureInTransaction()
+    require(offset >= 0) { "Bad offset: $offset" }
+    require(count > 0) { "Bad count: $count" }
+
+    val ftsQuery = ChanPostSearchRanker.toFtsQuery(query)
+      ?: return LocalPostSearchResult.EMPTY
+
+    val siteName = boardDescriptor?.siteName() ?: siteDescriptor?.siteName
+    val boardCode = boardDescriptor?.boardCode
+
+    val totalMatches = chanPostSearchDao.countMatches(
+      ftsQuery = ftsQuery,
+      siteName = siteName,
+      boardCode = boardCode
+    )
+
+    if (totalMatches <= offset) {
+      return LocalPostSearchResult(hits = emptyList(), offset = offset, totalMatches = totalMatches)
+    }
+
+    val matches = chanPostSearchDao.selectMatches(
+      ftsQuery = ftsQuery,
+      siteName = siteName,
+      boardCode = boardCode,
+      offset = offset,
+      count = count
+    )
+
+    val hits = matches.map { match ->
+      val postDescriptor = PostDescriptor.create(
+        siteName = match.siteName,
+        boardCode = match.boardCode,
+        threadNo = match.threadNo,
+        postNo = match.postNo,
+        postSubNo = match.postSubNo
+      )
+
+      return@map LocalPostSearchHit(postDescriptor, ChanPostSearchRanker.rank(match.matchInfo))
+    }
+
+    return LocalPostSearchResult(
+      hits = hits,
+      offset = offset,
+      totalMatches = totalMatches
+    )
+  }
+
   private suspend fun insertPostSpannables(
     chanPostEntityIdList: List<ChanPostIdEntity>,
     chanPostList: List<ChanPost>
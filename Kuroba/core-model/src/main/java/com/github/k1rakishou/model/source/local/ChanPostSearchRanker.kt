@@ -0,0 +1,79 @@
+package com.github.k1rakishou.model.source.local
+
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * FTS4 has no built-in ranking function (bm25 is only available in FTS5 which Android's SQLite does
+ * not ship) so posts are ranked here using the "pcx" matchinfo() of every match. This is the simple
+ * tf-idf like ranking from the SQLite FTS3 documentation: every hit of a phrase in a column adds
+ * `columnWeight * hitsInThisRow / hitsInAllRows`, so rare words weigh more than common ones and a
+ * hit in the subject weighs more than a hit in the comment.
+ * */
+internal object ChanPostSearchRanker {
+  private const val MAX_QUERY_TERMS = 16
+  private val NON_WORD_CHARACTERS_REGEX = Regex("[^\\p{L}\\p{N}]+")
+
+  private val COLUMN_WEIGHTS = DoubleArray(ChanPostSearchEntity.COLUMNS_COUNT).apply {
+    this[ChanPostSearchEntity.SUBJECT_COLUMN_INDEX] = 4.0
+    this[ChanPostSearchEntity.COMMENT_COLUMN_INDEX] = 1.0
+    this[ChanPostSearchEntity.NAME_COLUMN_INDEX] = 2.0
+    this[ChanPostSearchEntity.FILENAMES_COLUMN_INDEX] = 2.0
+  }
+
+  /**
+   * Converts user input into an FTS query where every word is a prefix term and all of them have
+   * to match. Everything except letters and digits is dropped so the user can't (accidentally)
+   * use FTS operators or produce a malformed query. Returns null when there is nothing to search
+   * for.
+   * */
+  fun toFtsQuery(query: String): String? {
+    val terms = query
+      .split(NON_WORD_CHARACTERS_REGEX)
+      .filter { term -> term.isNotEmpty() }
+      .take(MAX_QUERY_TERMS)
+
+    if (terms.isEmpty()) {
+      return null
+    }
+
+    // Lowercased so that words like OR/NOT/NEAR are never treated as operators
+    return terms.joinToString(separator = " ") { term -> "${term.lowercase()}*" }
+  }
+
+  fun rank(matchInfo: ByteArray): Double {
+    // matchinfo() returns 32-bit unsigned integers in the machine byte order
+    val ints = ByteBuffer.wrap(matchInfo)
+      .order(ByteOrder.nativeOrder())
+      .asIntBuffer()
+
+    if (ints.remaining() < 2) {
+      return 0.0
+    }
+
+    val phrasesCount = ints.get(0)
+    val columnsCount = ints.get(1)
+    var score = 0.0
+
+    for (phrase in 0 until phrasesCount) {
+      for (column in 0 until columnsCount) {
+        val base = 2 + 3 * (phrase * columnsCount + column)
+        if (base + 1 >= ints.limit()) {
+          return score
+        }
+
+        val hitsInThisRow = ints.get(base)
+        val hitsInAllRows = ints.get(base + 1)
+
+        if (hitsInThisRow > 0 && hitsInAllRows > 0) {
+          val weight = COLUMN_WEIGHTS.getOrElse(column) { 1.0 }
+          score += weight * hitsInThisRow.toDouble() / hitsInAllRows.toDouble()
+        }
+      }
+    }
+
+    return score
+  }
+
+}
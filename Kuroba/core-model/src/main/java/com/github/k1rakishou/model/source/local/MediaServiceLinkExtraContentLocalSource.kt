@@ -3,12 +3,15 @@ package com.github.k1rakishou.model.source.local
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.media.GenericVideoId
 import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
+import com.github.k1rakishou.model.data.video_service.MediaServiceType
 import com.github.k1rakishou.model.mapper.MediaServiceLinkExtraContentMapper
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import org.joda.time.DateTime
+import org.joda.time.Duration
 
 open class MediaServiceLinkExtraContentLocalSource(
-  database: KurobaDatabase
+  database: KurobaDatabase,
+  private val nowFunc: () -> DateTime = { DateTime.now() }
 ) : AbstractLocalSource(database) {
   private val TAG = "MediaServiceLinkExtraContentLocalSource"
   private val mediaServiceLinkExtraContentDao = database.mediaServiceLinkExtraContentDao()
@@ -19,11 +22,31 @@ open class MediaServiceLinkExtraContentLocalSource(
     return mediaServiceLinkExtraContentDao.insert(
       MediaServiceLinkExtraContentMapper.toEntity(
         mediaServiceLinkExtraContent,
-        DateTime.now()
+        nowFunc()
       )
     )
   }
 
+  /**
+   * Negative results (see [MediaServiceLinkExtraContent.isValid]) are inserted as well so that
+   * dead videos are not requested again until [NEGATIVE_RESULT_TTL] passes.
+   * */
+  open suspend fun insertMany(mediaServiceLinkExtraContents: Collection<MediaServiceLinkExtraContent>) {
+    ensureInTransaction()
+
+    if (mediaServiceLinkExtraContents.isEmpty()) {
+      return
+    }
+
+    val insertedAt = nowFunc()
+
+    mediaServiceLinkExtraContentDao.insertMany(
+      mediaServiceLinkExtraContents.map { mediaServiceLinkExtraContent ->
+        MediaServiceLinkExtraContentMapper.toEntity(mediaServiceLinkExtraContent, insertedAt)
+      }
+    )
+  }
+
   open suspend fun selectByMediaServiceKey(
     videoId: GenericVideoId,
     mediaServiceKey: MediaServiceLinkExtraContentRepository.MediaServiceKey
@@ -34,11 +57,39 @@ open class MediaServiceLinkExtraContentLocalSource(
       videoId,
       mediaServiceLinkExtraContentDao.select(
         mediaServiceKey.videoId.id,
-        mediaServiceKey.mediaServiceType
+        mediaServiceKey.mediaServiceType,
+        negativeResultsInsertedAfter()
       )
     )
   }
 
+  /**
+   * Returns the contents that are stored in the database for [videoIds] and are not expired. The
+   * video ids of the returned contents are the ones from [videoIds].
+   * */
+  open suspend fun selectByVideoIds(
+    videoIds: Collection<GenericVideoId>,
+    mediaServiceType: MediaServiceType
+  ): List<MediaServiceLinkExtraContent> {
+    ensureInTransaction()
+
+    val videoIdsMap = videoIds.associateBy { videoId -> videoId.id }
+    val negativeResultsInsertedAfter = negativeResultsInsertedAfter()
+
+    return videoIdsMap.keys
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .flatMap { videoIdsChunk ->
+        mediaServiceLinkExtraContentDao.selectMany(
+          videoIdsChunk,
+          mediaServiceType,
+          negativeResultsInsertedAfter
+        )
+      }
+      .mapNotNull { entity ->
+        MediaServiceLinkExtraContentMapper.fromEntity(videoIdsMap[entity.videoId]!!, entity)
+      }
+  }
+
   open suspend fun deleteOlderThan(dateTime: DateTime = ONE_WEEK_AGO): Int {
     ensureInTransaction()
 
@@ -57,7 +108,14 @@ open class MediaServiceLinkExtraContentLocalSource(
     return mediaServiceLinkExtraContentDao.count()
   }
 
+  private fun negativeResultsInsertedAfter(): DateTime {
+    return nowFunc().minus(NEGATIVE_RESULT_TTL)
+  }
+
   companion object {
     val ONE_WEEK_AGO = DateTime.now().minusWeeks(1)
+
+    // Dead or private videos are not re-requested for this long
+    val NEGATIVE_RESULT_TTL: Duration = Duration.standardHours(12)
   }
 }
\ No newline at end of file
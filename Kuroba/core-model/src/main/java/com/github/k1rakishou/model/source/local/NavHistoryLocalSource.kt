@@ -3,7 +3,9 @@ package com.github.k1rakishou.model.source.local
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.navigation.NavHistoryElement
+import com.github.k1rakishou.model.data.navigation.NavHistoryOp
 import com.github.k1rakishou.model.mapper.NavHistoryElementMapper
+import com.github.k1rakishou.model.mapper.NavHistoryOpMapper
 import com.squareup.moshi.Moshi
 
 class NavHistoryLocalSource(
@@ -20,6 +22,71 @@ class NavHistoryLocalSource(
       .mapNotNull { navHistoryFullDto -> NavHistoryElementMapper.fromNavHistoryEntity(navHistoryFullDto, moshi) }
   }
 
+  /**
+   * Loads the persisted stack and replays the op log on top of it. When the op log is not empty the
+   * result is compacted right away so that the op log doesn't outlive more than one app start.
+   * */
+  suspend fun selectAllAndReplayOpLog(maxCount: Int): List<NavHistoryElement> {
+    ensureInTransaction()
+
+    val navHistoryStack = selectAll(maxCount).toMutableList()
+
+    val ops = navHistoryDao.selectAllOps()
+    if (ops.isEmpty()) {
+      return navHistoryStack
+    }
+
+    val navHistoryOps = ops.mapNotNull { navHistoryOpEntity ->
+      NavHistoryOpMapper.fromNavHistoryOpEntity(navHistoryOpEntity, moshi)
+    }
+
+    if (navHistoryOps.size != ops.size) {
+      Logger.e(TAG, "selectAllAndReplayOpLog() failed to read ${ops.size - navHistoryOps.size} ops out of ${ops.size}")
+    }
+
+    NavHistoryOp.replay(navHistoryStack, navHistoryOps)
+    Logger.d(TAG, "selectAllAndReplayOpLog() replayed ${navHistoryOps.size} ops, stack size: ${navHistoryStack.size}")
+
+    compact(navHistoryStack)
+    return navHistoryStack
+  }
+
+  suspend fun appendOps(navHistoryOps: List<NavHistoryOp>) {
+    ensureInTransaction()
+
+    val navHistoryOpEntityList = navHistoryOps.mapNotNull { navHistoryOp ->
+      NavHistoryOpMapper.toNavHistoryOpEntity(navHistoryOp, moshi)
+    }
+
+    if (navHistoryOpEntityList.size != navHistoryOps.size) {
+      // Can only happen with bad descriptors that can't be persisted as a part of the stack either
+      Logger.e(TAG, "appendOps() failed to convert ${navHistoryOps.size - navHistoryOpEntityList.size} ops")
+    }
+
+    if (navHistoryOpEntityList.isEmpty()) {
+      return
+    }
+
+    navHistoryDao.insertOps(navHistoryOpEntityList)
+  }
+
+  /**
+   * Rewrites the stack and clears the op log in the same transaction so the op log is never
+   * replayed on top of a stack that already contains its changes.
+   * */
+  suspend fun compact(navHistoryStack: List<NavHistoryElement>) {
+    ensureInTransaction()
+
+    persist(navHistoryStack)
+    navHistoryDao.deleteAllOps()
+  }
+
+  suspend fun countOps(): Int {
+    ensureInTransaction()
+
+    return navHistoryDao.countOps()
+  }
+
   suspend fun persist(navHistoryStack: List<NavHistoryElement>) {
     ensureInTransaction()
 
@@ -57,6 +124,12 @@ class NavHistoryLocalSource(
   suspend fun getFirstNavElement(): NavHistoryElement? {
     ensureInTransaction()
 
+    if (navHistoryDao.countOps() > 0) {
+      // The stack in the database is outdated until the op log is replayed
+      return selectAllAndReplayOpLog(Int.MAX_VALUE)
+        .firstOrNull()
+    }
+
     return navHistoryDao.selectFirstNavElement()
       ?.let { navHistoryFullDto -> NavHistoryElementMapper.fromNavHistoryEntity(navHistoryFullDto, moshi) }
   }
@@ -64,6 +137,12 @@ class NavHistoryLocalSource(
   suspend fun getFirstCatalogNavElement(): NavHistoryElement? {
     ensureInTransaction()
 
+    if (navHistoryDao.countOps() > 0) {
+      // The stack in the database is outdated until the op log is replayed
+      return selectAllAndReplayOpLog(Int.MAX_VALUE)
+        .firstOrNull { navHistoryElement -> navHistoryElement !is NavHistoryElement.Thread }
+    }
+
     return navHistoryDao.selectFirstCatalogNavElement()
       ?.let { navHistoryFullDto -> NavHistoryElementMapper.fromNavHistoryEntity(navHistoryFullDto, moshi) }
   }
@@ -71,6 +150,12 @@ class NavHistoryLocalSource(
   suspend fun getFirstThreadNavElement(): NavHistoryElement? {
     ensureInTransaction()
 
+    if (navHistoryDao.countOps() > 0) {
+      // The stack in the database is outdated until the op log is replayed
+      return selectAllAndReplayOpLog(Int.MAX_VALUE)
+        .firstOrNull { navHistoryElement -> navHistoryElement is NavHistoryElement.Thread }
+    }
+
     return navHistoryDao.selectFirstThreadNavElement()
       ?.let { navHistoryFullDto -> NavHistoryElementMapper.fromNavHistoryEntity(navHistoryFullDto, moshi) }
   }
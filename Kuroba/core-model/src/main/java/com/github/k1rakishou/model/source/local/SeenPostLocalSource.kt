@@ -1,15 +1,23 @@
 package com.github.k1rakishou.model.source.local
 
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.data.post.SeenPostsBitmap
+import com.github.k1rakishou.model.entity.SeenPostsBitmapEntity
 import com.github.k1rakishou.model.mapper.SeenPostMapper
 import org.joda.time.DateTime
 
+/**
+ * Seen posts are stored as one [SeenPostsBitmap] per thread (see [SeenPostsBitmapEntity]) so
+ * marking a post as seen is a read-modify-write of the thread's row.
+ * */
 open class SeenPostLocalSource(
   database: KurobaDatabase
 ) : AbstractLocalSource(database) {
+  private val TAG = "SeenPostLocalSource"
   private val seenPostDao = database.seenPostDao()
   private val chanBoardDao = database.chanBoardDao()
   private val chanThreadDao = database.chanThreadDao()
@@ -20,6 +28,10 @@ open class SeenPostLocalSource(
   ) {
     ensureInTransaction()
 
+    if (seenPosts.isEmpty()) {
+      return
+    }
+
     val chanBoardEntity = chanBoardDao.insertBoardId(
       threadDescriptor.siteName(),
       threadDescriptor.boardCode()
@@ -30,10 +42,38 @@ open class SeenPostLocalSource(
       threadDescriptor.threadNo
     )
 
-    val seenPostEntities = seenPosts
-      .map { seenPost -> SeenPostMapper.toEntity(chanThreadEntityId, seenPost) }
+    val existingEntity = seenPostDao.selectByThreadId(chanThreadEntityId)
+    val seenPostsBitmap = decodeOrEmpty(threadDescriptor, existingEntity)
+
+    var lastUpdatedAt = existingEntity?.lastUpdatedAt
+    var changed = false
 
-    seenPostDao.insertMany(seenPostEntities)
+    seenPosts.forEach { seenPost ->
+      val postDescriptor = seenPost.postDescriptor
+      if (postDescriptor.postNo <= 0) {
+        return@forEach
+      }
+
+      if (seenPostsBitmap.add(postDescriptor.postNo, postDescriptor.postSubNo)) {
+        changed = true
+      }
+
+      if (lastUpdatedAt == null || seenPost.insertedAt.isAfter(lastUpdatedAt)) {
+        lastUpdatedAt = seenPost.insertedAt
+      }
+    }
+
+    if (!changed) {
+      return
+    }
+
+    seenPostDao.insertOrReplace(
+      SeenPostMapper.toEntity(
+        ownerThreadId = chanThreadEntityId,
+        seenPostsBitmap = seenPostsBitmap,
+        lastUpdatedAt = lastUpdatedAt ?: DateTime.now()
+      )
+    )
   }
 
   open suspend fun selectAllByThreadDescriptor(
@@ -51,12 +91,19 @@ open class SeenPostLocalSource(
       threadDescriptor.threadNo
     ) ?: return emptyList()
 
-    return seenPostDao.selectAllByThreadId(chanThreadEntity.threadId)
-      .mapNotNull { seenPostEntity ->
-        return@mapNotNull SeenPostMapper.fromEntity(threadDescriptor, seenPostEntity)
-      }
+    val seenPostsBitmapEntity = seenPostDao.selectByThreadId(chanThreadEntity.threadId)
+      ?: return emptyList()
+
+    return SeenPostMapper.fromSeenPostsBitmap(
+      threadDescriptor = threadDescriptor,
+      seenPostsBitmap = decodeOrEmpty(threadDescriptor, seenPostsBitmapEntity),
+      lastUpdatedAt = seenPostsBitmapEntity.lastUpdatedAt
+    )
   }
 
+  /**
+   * Only returns the OPs of the threads (if they were seen).
+   * */
   suspend fun selectAllByThreadDescriptors(
     boardDescriptor: BoardDescriptor,
     threadDescriptors: List<ChanDescriptor.ThreadDescriptor>
@@ -78,17 +125,33 @@ open class SeenPostLocalSource(
           threadNos
         )
 
-        return@flatMap seenPostDao.selectManyOriginalPostsByThreadId(threadIds)
-          .mapNotNull { seenPostEntity ->
-            val threadDescriptor = threadDescriptorBatch
-              .firstOrNull { threadDescriptor -> threadDescriptor.threadNo == seenPostEntity.postNo }
+        if (threadIds.isEmpty()) {
+          return@flatMap emptyList()
+        }
+
+        val threadDescriptorsMap = threadDescriptorBatch
+          .associateBy { threadDescriptor -> threadDescriptor.threadNo }
+
+        return@flatMap seenPostDao.selectManyByThreadIds(threadIds)
+          .mapNotNull { seenPostsBitmapDatabaseObject ->
+            val threadDescriptor = threadDescriptorsMap[seenPostsBitmapDatabaseObject.threadNo]
               ?: return@mapNotNull null
 
-            return@mapNotNull SeenPostMapper.fromEntity(threadDescriptor, seenPostEntity)
+            if (!SeenPostsBitmap.containsOriginalPost(seenPostsBitmapDatabaseObject.seenPostsBitmap)) {
+              return@mapNotNull null
+            }
+
+            return@mapNotNull SeenPostMapper.originalPost(
+              threadDescriptor = threadDescriptor,
+              lastUpdatedAt = seenPostsBitmapDatabaseObject.lastUpdatedAt
+            )
           }
       }
   }
 
+  /**
+   * Deletes the seen posts of the threads that weren't updated since [dateTime].
+   * */
   open suspend fun deleteOlderThan(dateTime: DateTime = ONE_MONTH_AGO): Int {
     ensureInTransaction()
 
@@ -104,10 +167,27 @@ open class SeenPostLocalSource(
   suspend fun count(): Int {
     ensureInTransaction()
 
-    return seenPostDao.count()
+    return seenPostDao.countSeenPosts() ?: 0
+  }
+
+  private fun decodeOrEmpty(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    seenPostsBitmapEntity: SeenPostsBitmapEntity?
+  ): SeenPostsBitmap {
+    if (seenPostsBitmapEntity == null) {
+      return SeenPostsBitmap(threadDescriptor.threadNo)
+    }
+
+    return try {
+      SeenPostsBitmap.decode(threadDescriptor.threadNo, seenPostsBitmapEntity.seenPostsBitmap)
+    } catch (error: SeenPostsBitmap.MalformedBitmapException) {
+      // Losing the seen posts of one thread is better than not being able to mark them as seen anymore
+      Logger.e(TAG, "Failed to decode seen posts of ${threadDescriptor}, discarding them", error)
+      SeenPostsBitmap(threadDescriptor.threadNo)
+    }
   }
 
   companion object {
     val ONE_MONTH_AGO = DateTime.now().minusMonths(1)
   }
-}
\ No newline at end of file
+}
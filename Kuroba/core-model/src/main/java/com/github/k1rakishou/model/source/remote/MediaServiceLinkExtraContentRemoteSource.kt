@@ -1,5 +1,6 @@
 package com.github.k1rakishou.model.source.remote
 
+import com.github.k1rakishou.common.BadStatusResponseException
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.ModularResult.Companion.Try
 import com.github.k1rakishou.common.suspendCall
@@ -38,6 +39,14 @@ open class MediaServiceLinkExtraContentRemoteSource(
 
       val response = okHttpClient.suspendCall(httpRequest)
       if (!response.isSuccessful) {
+        response.close()
+
+        if (response.code == 429 || response.code >= 500) {
+          // Rate limited or the service is down, this tells nothing about the video so don't let
+          // it be stored as a negative result
+          throw BadStatusResponseException(response.code)
+        }
+
         return@Try MediaServiceLinkExtraInfo.empty()
       }
 
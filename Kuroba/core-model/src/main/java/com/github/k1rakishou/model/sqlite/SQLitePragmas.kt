@@ -0,0 +1,73 @@
+package com.github.k1rakishou.model.sqlite
+
+import androidx.room.RoomDatabase
+
+/**
+ * Connection settings applied by [TunedSQLiteOpenHelperFactory] every time the database is opened.
+ *
+ * The journal mode is not a pragma here because the framework manages it itself (switching it with
+ * a pragma behind its back breaks the connection pool) so it's passed to Room instead.
+ * */
+data class SQLitePragmas(
+  val journalMode: RoomDatabase.JournalMode = RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING,
+  val synchronous: Synchronous = Synchronous.NORMAL,
+  val cacheSizeKb: Int = DEFAULT_CACHE_SIZE_KB,
+  val mmapSizeBytes: Long = DEFAULT_MMAP_SIZE_BYTES,
+  val tempStore: TempStore = TempStore.MEMORY,
+  val autoVacuum: AutoVacuum = AutoVacuum.INCREMENTAL
+) {
+
+  fun toStatements(): List<String> {
+    return listOf(
+      "PRAGMA synchronous = ${synchronous.value}",
+      // Negative value means the size is in kibibytes instead of pages
+      "PRAGMA cache_size = -${cacheSizeKb}",
+      "PRAGMA mmap_size = ${mmapSizeBytes}",
+      "PRAGMA temp_store = ${tempStore.value}",
+      // Only takes effect for databases that are created after this is set (the tables must not
+      // exist yet), existing databases keep their mode until a full VACUUM.
+      "PRAGMA auto_vacuum = ${autoVacuum.value}"
+    )
+  }
+
+  enum class Synchronous(val value: Int) {
+    OFF(0),
+    // Safe to use in WAL mode, the database can't get corrupted, only the last transactions may be
+    // rolled back after a power loss.
+    NORMAL(1),
+    FULL(2)
+  }
+
+  enum class TempStore(val value: Int) {
+    DEFAULT(0),
+    FILE(1),
+    MEMORY(2)
+  }
+
+  enum class AutoVacuum(val value: Int) {
+    NONE(0),
+    FULL(1),
+    // Free pages are only returned to the file system by "PRAGMA incremental_vacuum" (which is
+    // done by the DatabaseCompactor)
+    INCREMENTAL(2)
+  }
+
+  companion object {
+    private const val DEFAULT_CACHE_SIZE_KB = 8 * 1024
+    private const val DEFAULT_MMAP_SIZE_BYTES = 32L * 1024 * 1024
+
+    fun forDevice(isLowRamDevice: Boolean): SQLitePragmas {
+      if (!isLowRamDevice) {
+        return SQLitePragmas()
+      }
+
+      return SQLitePragmas(
+        journalMode = RoomDatabase.JournalMode.TRUNCATE,
+        synchronous = Synchronous.FULL,
+        cacheSizeKb = 2 * 1024,
+        mmapSizeBytes = 0L,
+        tempStore = TempStore.DEFAULT
+      )
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.k1rakishou.model.sqlite
+
+import com.github.k1rakishou.core_logger.Logger
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Latency histograms of every SQL statement executed through [TunedSQLiteOpenHelperFactory].
+ * Statements are grouped by their SQL text (with the placeholder lists of the IN operator collapsed
+ * so that batched queries end up in the same histogram). Statements that take longer than
+ * [slowQueryThresholdMs] are logged.
+ * */
+class SQLiteQueryTimings(
+  private val slowQueryThresholdMs: Long = DEFAULT_SLOW_QUERY_THRESHOLD_MS,
+  private val maxStatements: Int = DEFAULT_MAX_STATEMENTS
+) {
+  private val histograms = ConcurrentHashMap<String, LatencyHistogram>()
+
+  fun record(sql: String, durationNanos: Long) {
+    val normalizedSql = normalizeSql(sql)
+    histogramFor(normalizedSql).record(durationNanos)
+
+    val durationMs = TimeUnit.NANOSECONDS.toMillis(durationNanos)
+    if (durationMs >= slowQueryThresholdMs) {
+      Logger.w(TAG, "Slow query took ${durationMs}ms: ${normalizedSql}")
+    }
+  }
+
+  /**
+   * Returns timings of all recorded statements sorted by the total time spent executing them.
+   * */
+  fun snapshot(): List<QueryTiming> {
+    return histograms.entries
+      .map { (sql, histogram) -> histogram.toQueryTiming(sql) }
+      .sortedByDescending { queryTiming -> queryTiming.totalTimeNanos }
+  }
+
+  fun reset() {
+    histograms.clear()
+  }
+
+  fun dump(maxCount: Int = 20): String {
+    return buildString {
+      appendLine("SQLiteQueryTimings (top ${maxCount} by total time)")
+
+      snapshot().take(maxCount).forEach { queryTiming ->
+        append("count=${queryTiming.count}, ")
+        append("total=${TimeUnit.NANOSECONDS.toMillis(queryTiming.totalTimeNanos)}ms, ")
+        append("p50=${queryTiming.percentileMicros(0.5)}us, ")
+        append("p99=${queryTiming.percentileMicros(0.99)}us, ")
+        append("max=${TimeUnit.NANOSECONDS.toMicros(queryTiming.maxTimeNanos)}us, ")
+        appendLine("sql=${queryTiming.sql.replace('\n', ' ')}")
+      }
+    }
+  }
+
+  private fun histogramFor(sql: String): LatencyHistogram {
+    val histogram = histograms[sql]
+    if (histogram != null) {
+      return histogram
+    }
+
+    // Guard against queries built with string concatenation blowing up the map
+    val key = if (histograms.size >= maxStatements) OTHER_STATEMENTS else sql
+    return histograms.getOrPut(key) { LatencyHistogram() }
+  }
+
+  private fun normalizeSql(sql: String): String {
+    val trimmedSql = sql.trim()
+    if (!trimmedSql.contains(",?")) {
+      return trimmedSql
+    }
+
+    return IN_PLACEHOLDERS_REGEX.replace(trimmedSql, "?...")
+  }
+
+  class QueryTiming(
+    val sql: String,
+    val count: Long,
+    val totalTimeNanos: Long,
+    val maxTimeNanos: Long,
+    /**
+     * Amount of executions per bucket, bucket i contains executions that took less than
+     * [BUCKET_BOUNDS_MICROS][i] microseconds (the last one contains everything else).
+     * */
+    val bucketCounts: LongArray
+  ) {
+
+    /**
+     * Upper bound of the bucket containing the [percentile] (0.0 - 1.0) of executions.
+     * */
+    fun percentileMicros(percentile: Double): Long {
+      if (count <= 0) {
+        return 0
+      }
+
+      val threshold = (count * percentile).toLong().coerceIn(1, count)
+      var accumulated = 0L
+
+      bucketCounts.forEachIndexed { index, bucketCount ->
+        accumulated += bucketCount
+        if (accumulated >= threshold) {
+          return BUCKET_BOUNDS_MICROS.getOrNull(index)
+            ?: TimeUnit.NANOSECONDS.toMicros(maxTimeNanos)
+        }
+      }
+
+      return TimeUnit.NANOSECONDS.toMicros(maxTimeNanos)
+    }
+
+  }
+
+  private class LatencyHistogram {
+    private val count = AtomicLong(0)
+    private val totalTimeNanos = AtomicLong(0)
+    private val maxTimeNanos = AtomicLong(0)
+    private val buckets = AtomicLongArray(BUCKET_BOUNDS_MICROS.size + 1)
+
+    fun record(durationNanos: Long) {
+      count.incrementAndGet()
+      totalTimeNanos.addAndGet(durationNanos)
+      buckets.incrementAndGet(bucketIndex(TimeUnit.NANOSECONDS.toMicros(durationNanos)))
+
+      while (true) {
+        val currentMax = maxTimeNanos.get()
+        if (durationNanos <= currentMax || maxTimeNanos.compareAndSet(currentMax, durationNanos)) {
+          break
+        }
+      }
+    }
+
+    fun toQueryTiming(sql: String): QueryTiming {
+      return QueryTiming(
+        sql = sql,
+        count = count.get(),
+        totalTimeNanos = totalTimeNanos.get(),
+        maxTimeNanos = maxTimeNanos.get(),
+        bucketCounts = LongArray(buckets.length()) { index -> buckets.get(index) }
+      )
+    }
+
+    private fun bucketIndex(durationMicros: Long): Int {
+      for (index in BUCKET_BOUNDS_MICROS.indices) {
+        if (durationMicros < BUCKET_BOUNDS_MICROS[index]) {
+          return index
+        }
+      }
+
+      return BUCKET_BOUNDS_MICROS.size
+    }
+  }
+
+  companion object {
+    private const val TAG = "SQLiteQueryTimings"
+    private const val DEFAULT_SLOW_QUERY_THRESHOLD_MS = 100L
+    private const val DEFAULT_MAX_STATEMENTS = 512
+
+    const val OTHER_STATEMENTS = "<other statements>"
+
+    // Room expands collection parameters into "?,?,?"
+    private val IN_PLACEHOLDERS_REGEX = Regex("\\?(\\s*,\\s*\\?)+")
+
+    val BUCKET_BOUNDS_MICROS = longArrayOf(
+      100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000
+    )
+  }
+}
@@ -0,0 +1,226 @@
+package com.github.k1rakishou.model.sqlite
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import android.os.Build
+import android.os.CancellationSignal
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.SupportSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteStatement
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import com.github.k1rakishou.core_logger.Logger
+
+/**
+ * Wraps the default framework open helper to apply [SQLitePragmas] to the database connections and
+ * to record the latency of every statement executed through the database into [SQLiteQueryTimings].
+ *
+ * On API 30+ the pragmas are applied to every connection of the pool (WAL mode uses separate read
+ * connections), on older versions only to the primary connection which is the one used for all
+ * transactions.
+ * */
+class TunedSQLiteOpenHelperFactory(
+  private val pragmas: SQLitePragmas,
+  private val queryTimings: SQLiteQueryTimings,
+  private val delegate: SupportSQLiteOpenHelper.Factory = FrameworkSQLiteOpenHelperFactory()
+) : SupportSQLiteOpenHelper.Factory {
+
+  override fun create(configuration: SupportSQLiteOpenHelper.Configuration): SupportSQLiteOpenHelper {
+    val tunedConfiguration = SupportSQLiteOpenHelper.Configuration(
+      configuration.context,
+      configuration.name,
+      PragmasApplyingCallback(configuration.callback, pragmas),
+      configuration.useNoBackupDirectory,
+      configuration.allowDataLossOnRecovery
+    )
+
+    return TimedSQLiteOpenHelper(delegate.create(tunedConfiguration), queryTimings)
+  }
+
+  private class PragmasApplyingCallback(
+    private val delegate: SupportSQLiteOpenHelper.Callback,
+    private val pragmas: SQLitePragmas
+  ) : SupportSQLiteOpenHelper.Callback(delegate.version) {
+
+    override fun onConfigure(db: SupportSQLiteDatabase) {
+      applyPragmas(db)
+      delegate.onConfigure(db)
+    }
+
+    override fun onCreate(db: SupportSQLiteDatabase) {
+      delegate.onCreate(db)
+    }
+
+    override fun onUpgrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) {
+      delegate.onUpgrade(db, oldVersion, newVersion)
+    }
+
+    override fun onDowngrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) {
+      delegate.onDowngrade(db, oldVersion, newVersion)
+    }
+
+    override fun onOpen(db: SupportSQLiteDatabase) {
+      delegate.onOpen(db)
+    }
+
+    override fun onCorruption(db: SupportSQLiteDatabase) {
+      delegate.onCorruption(db)
+    }
+
+    private fun applyPragmas(db: SupportSQLiteDatabase) {
+      for (statement in pragmas.toStatements()) {
+        try {
+          if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && execPerConnection(db, statement)) {
+            continue
+          }
+
+          // Some pragmas return the new value so they can't be executed with execSQL()
+          db.query(statement).use { cursor -> cursor.moveToFirst() }
+        } catch (error: Throwable) {
+          // Not worth failing to open the database over
+          Logger.e(TAG, "Failed to apply '${statement}'", error)
+        }
+      }
+
+      Logger.d(TAG, "applyPragmas() applied ${pragmas}")
+    }
+
+    private fun execPerConnection(db: SupportSQLiteDatabase, statement: String): Boolean {
+      try {
+        db.execPerConnectionSQL(statement, null)
+        return true
+      } catch (error: UnsupportedOperationException) {
+        // Not a framework database
+        return false
+      }
+    }
+  }
+
+  private class TimedSQLiteOpenHelper(
+    private val delegate: SupportSQLiteOpenHelper,
+    private val queryTimings: SQLiteQueryTimings
+  ) : SupportSQLiteOpenHelper by delegate {
+    @Volatile
+    private var timedDatabase: TimedSupportSQLiteDatabase? = null
+
+    override val writableDatabase: SupportSQLiteDatabase
+      get() = wrap(delegate.writableDatabase)
+
+    override val readableDatabase: SupportSQLiteDatabase
+      get() = wrap(delegate.readableDatabase)
+
+    private fun wrap(database: SupportSQLiteDatabase): SupportSQLiteDatabase {
+      val current = timedDatabase
+      if (current != null && current.delegate === database) {
+        return current
+      }
+
+      return TimedSupportSQLiteDatabase(database, queryTimings)
+        .also { timedDatabase = it }
+    }
+  }
+
+  private class TimedSupportSQLiteDatabase(
+    val delegate: SupportSQLiteDatabase,
+    private val queryTimings: SQLiteQueryTimings
+  ) : SupportSQLiteDatabase by delegate {
+
+    override fun compileStatement(sql: String): SupportSQLiteStatement {
+      return TimedSupportSQLiteStatement(sql, delegate.compileStatement(sql), queryTimings)
+    }
+
+    override fun query(query: String): Cursor {
+      return timedCursor(query, System.nanoTime(), delegate.query(query))
+    }
+
+    override fun query(query: String, bindArgs: Array<out Any?>): Cursor {
+      return timedCursor(query, System.nanoTime(), delegate.query(query, bindArgs))
+    }
+
+    override fun query(query: SupportSQLiteQuery): Cursor {
+      return timedCursor(query.sql, System.nanoTime(), delegate.query(query))
+    }
+
+    override fun query(query: SupportSQLiteQuery, cancellationSignal: CancellationSignal?): Cursor {
+      return timedCursor(query.sql, System.nanoTime(), delegate.query(query, cancellationSignal))
+    }
+
+    override fun execSQL(sql: String) {
+      timed(sql) { delegate.execSQL(sql) }
+    }
+
+    override fun execSQL(sql: String, bindArgs: Array<out Any?>) {
+      timed(sql) { delegate.execSQL(sql, bindArgs) }
+    }
+
+    /**
+     * The cursor is filled lazily so the time is measured until the cursor is closed (Room reads
+     * the whole cursor right away and then closes it).
+     * */
+    private fun timedCursor(sql: String, startNanos: Long, cursor: Cursor): Cursor {
+      return object : CursorWrapper(cursor) {
+        private var recorded = false
+
+        override fun close() {
+          super.close()
+
+          if (!recorded) {
+            recorded = true
+            queryTimings.record(sql, System.nanoTime() - startNanos)
+          }
+        }
+      }
+    }
+
+    private inline fun <T> timed(sql: String, func: () -> T): T {
+      val startNanos = System.nanoTime()
+
+      try {
+        return func()
+      } finally {
+        queryTimings.record(sql, System.nanoTime() - startNanos)
+      }
+    }
+  }
+
+  private class TimedSupportSQLiteStatement(
+    private val sql: String,
+    private val delegate: SupportSQLiteStatement,
+    private val queryTimings: SQLiteQueryTimings
+  ) : SupportSQLiteStatement by delegate {
+
+    override fun execute() {
+      timed { delegate.execute() }
+    }
+
+    override fun executeUpdateDelete(): Int {
+      return timed { delegate.executeUpdateDelete() }
+    }
+
+    override fun executeInsert(): Long {
+      return timed { delegate.executeInsert() }
+    }
+
+    override fun simpleQueryForLong(): Long {
+      return timed { delegate.simpleQueryForLong() }
+    }
+
+    override fun simpleQueryForString(): String? {
+      return timed { delegate.simpleQueryForString() }
+    }
+
+    private inline fun <T> timed(func: () -> T): T {
+      val startNanos = System.nanoTime()
+
+      try {
+        return func()
+      } finally {
+        queryTimings.record(sql, System.nanoTime() - startNanos)
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "TunedSQLiteOpenHelperFactory"
+  }
+}
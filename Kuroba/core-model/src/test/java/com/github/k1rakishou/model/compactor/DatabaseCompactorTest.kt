@@ -0,0 +1,289 @@
+package com.github.k1rakishou.model.compactor
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.Build
+import androidx.room.Room
+import com.github.k1rakishou.model.KurobaDatabase
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.joda.time.DateTime
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class DatabaseCompactorTest {
+  private lateinit var database: KurobaDatabase
+  private lateinit var sharedPreferences: SharedPreferences
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+
+    val context = RuntimeEnvironment.application.applicationContext
+    database = Room.inMemoryDatabaseBuilder(context, KurobaDatabase::class.java).build()
+
+    sharedPreferences = context.getSharedPreferences(DatabaseCompactor.SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE)
+    sharedPreferences.edit().clear().commit()
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `compacts half a million rows in bounded batches`() {
+    seedDatabase()
+
+    val compactor = createCompactor()
+    val result = runBlocking(Dispatchers.Default) {
+      compactor.compact(DatabaseCompactor.STARTUP_PHASES + DatabaseCompactor.BACKGROUND_PHASES, seenPostsOlderThan = SEEN_POSTS_CUTOFF)
+    }
+
+    assertFalse(result.interrupted)
+    assertTrue("maxRowsPerBatch=${result.maxRowsPerBatch}", result.maxRowsPerBatch <= BATCH_SIZE)
+    assertTrue("maxBatchDurationMs=${result.maxBatchDurationMs}", result.maxBatchDurationMs < MAX_BATCH_DURATION_MS)
+
+    // A quarter of all posts (non-OP posts of the oldest threads), the bookmarked thread is skipped
+    assertEquals(POSTS_PER_THREAD, countPostsOfThread(1))
+    assertEquals(1, countPostsOfThread(2))
+    assertEquals(1, countPostsOfThread(253))
+    assertEquals(POSTS_PER_THREAD, countPostsOfThread(254))
+    assertEquals(252 * (POSTS_PER_THREAD - 1), result.deletedRows(DatabaseCompactor.Phase.OldPosts))
+
+    // A quarter of all threads, only the ones that are left with the OP
+    assertEquals(250, result.deletedRows(DatabaseCompactor.Phase.OldThreads))
+    assertEquals((THREADS_COUNT - 250).toLong(), count("SELECT COUNT(*) FROM chan_thread"))
+    assertEquals(0L, count("SELECT COUNT(*) FROM chan_thread WHERE thread_id BETWEEN 2 AND 251"))
+
+    assertEquals(0L, count("SELECT COUNT(*) FROM seen_posts_bitmap WHERE last_updated_at < ${SEEN_POSTS_CUTOFF.millis}"))
+    assertEquals((SEEN_POSTS_THREADS_COUNT / 2).toLong(), count("SELECT COUNT(*) FROM seen_posts_bitmap"))
+
+    assertEquals(ORPHAN_TEXT_SPANS_COUNT, result.deletedRows(DatabaseCompactor.Phase.OrphanTextSpans))
+    assertEquals(POSTS_PER_THREAD.toLong(), count("SELECT COUNT(*) FROM chan_text_span"))
+    assertEquals(0L, count("SELECT COUNT(*) FROM chan_text_span WHERE owner_post_id NOT IN (SELECT chan_post_id FROM chan_post)"))
+
+    // Posts that were stored before the search index existed are indexed
+    assertEquals(count("SELECT COUNT(*) FROM chan_post"), count("SELECT COUNT(*) FROM chan_post_search"))
+
+    // Nothing is left to continue next time
+    assertTrue(sharedPreferences.all.keys.none { key -> key.endsWith("_cursor") || key.endsWith("_cutoff") })
+  }
+
+  @Test
+  fun `post search index is backfilled only once`() {
+    val db = database.openHelper.writableDatabase
+    db.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('test')")
+    db.execSQL("INSERT INTO chan_board_id (board_id, owner_site_name, board_code) VALUES (1, 'test', 'g')")
+    db.execSQL("""
+      INSERT INTO chan_thread (thread_id, thread_no, owner_board_id, last_modified, catalog_replies_count,
+          catalog_images_count, unique_ips, sticky, closed, archived)
+      VALUES (1, 1, 1, 1, 0, 0, 0, 0, 0, 0)
+    """)
+    db.execSQL("""
+      WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < 2500)
+      INSERT INTO chan_post_id (post_id, owner_thread_id, post_no, post_sub_no)
+      SELECT x, 1, x, 0 FROM seq
+    """)
+    db.execSQL("""
+      WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < 2500)
+      INSERT INTO chan_post (chan_post_id, deleted, timestamp_seconds, poster_id_color, is_op, is_saved_reply, is_sage)
+      SELECT x, 0, 0, 0, CASE WHEN x = 1 THEN 1 ELSE 0 END, 0, 0 FROM seq
+    """)
+    db.execSQL("""
+      WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < 2500)
+      INSERT INTO chan_text_span (owner_post_id, parsed_text, span_info_bytes, text_type)
+      SELECT x, CASE WHEN x % 2 = 0 THEN 'even comment' ELSE 'odd comment' END, X'00', 0 FROM seq
+    """)
+
+    val firstResult = runBlocking(Dispatchers.Default) {
+      createCompactor().compact(listOf(DatabaseCompactor.Phase.PostSearchBackfill))
+    }
+
+    assertEquals(2500, firstResult.deletedRows(DatabaseCompactor.Phase.PostSearchBackfill))
+    assertTrue("maxRowsPerBatch=${firstResult.maxRowsPerBatch}", firstResult.maxRowsPerBatch <= BATCH_SIZE)
+    assertEquals(1250L, count("SELECT COUNT(*) FROM chan_post_search WHERE chan_post_search MATCH 'even'"))
+
+    val secondResult = runBlocking(Dispatchers.Default) {
+      createCompactor().compact(listOf(DatabaseCompactor.Phase.PostSearchBackfill))
+    }
+
+    assertEquals(0, secondResult.batchesCount)
+    assertEquals(2500L, count("SELECT COUNT(*) FROM chan_post_search"))
+  }
+
+  @Test
+  fun `interrupted compaction continues from the persisted cursor`() {
+    seedOrphanTextSpans(count = 5_000)
+
+    val firstResult = runBlocking(Dispatchers.Default) {
+      createCompactor().compact(listOf(DatabaseCompactor.Phase.OrphanTextSpans), timeBudgetMs = 0L)
+    }
+
+    assertTrue(firstResult.interrupted)
+    assertEquals(0, firstResult.batchesCount)
+    assertTrue(sharedPreferences.contains("${DatabaseCompactor.Phase.OrphanTextSpans.key}_cursor"))
+
+    // A fresh instance, like after an app restart
+    val secondResult = runBlocking(Dispatchers.Default) {
+      createCompactor().compact(listOf(DatabaseCompactor.Phase.OrphanTextSpans))
+    }
+
+    assertFalse(secondResult.interrupted)
+    assertEquals(5, secondResult.batchesCount)
+    assertEquals(5_000, secondResult.deletedRows(DatabaseCompactor.Phase.OrphanTextSpans))
+    assertEquals(0L, count("SELECT COUNT(*) FROM chan_text_span"))
+    assertTrue(sharedPreferences.all.isEmpty())
+  }
+
+  @Test
+  fun `compaction waits for foreground loads`() {
+    seedOrphanTextSpans(count = 1_000)
+
+    val result = runBlocking(Dispatchers.Default) {
+      launch {
+        database.foregroundLoads.track { delay(FOREGROUND_LOAD_DURATION_MS) }
+      }
+
+      // Make sure the foreground load has started
+      while (!database.foregroundLoads.hasActiveLoads()) {
+        delay(1)
+      }
+
+      createCompactor().compact(listOf(DatabaseCompactor.Phase.OrphanTextSpans))
+    }
+
+    assertTrue("tookMs=${result.tookMs}", result.tookMs >= FOREGROUND_LOAD_DURATION_MS / 2)
+    assertEquals(1_000, result.deletedRows(DatabaseCompactor.Phase.OrphanTextSpans))
+  }
+
+  private fun createCompactor(): DatabaseCompactor {
+    return DatabaseCompactor(
+      database = database,
+      sharedPreferences = sharedPreferences,
+      maxPostsAmount = MAX_POSTS_AMOUNT,
+      maxThreadsAmount = MAX_THREADS_AMOUNT,
+      batchSize = BATCH_SIZE
+    )
+  }
+
+  /**
+   * 1000 threads with 200 posts each (200k post ids + 200k posts), seen posts of 500 threads (half of them old)
+   * and 50k text spans that don't belong to any post. Thread N was modified at N, thread 1 is
+   * bookmarked.
+   * */
+  private fun seedDatabase() {
+    val db = database.openHelper.writableDatabase
+    val totalPosts = THREADS_COUNT * POSTS_PER_THREAD
+    val lastThreadFirstPostId = totalPosts - POSTS_PER_THREAD + 1
+
+    db.beginTransaction()
+    try {
+      db.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('test')")
+      db.execSQL("INSERT INTO chan_board_id (board_id, owner_site_name, board_code) VALUES (1, 'test', 'g')")
+
+      db.execSQL("""
+        WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < ${THREADS_COUNT})
+        INSERT INTO chan_thread (thread_id, thread_no, owner_board_id, last_modified, catalog_replies_count,
+            catalog_images_count, unique_ips, sticky, closed, archived)
+        SELECT x, x, 1, x, 0, 0, 0, 0, 0, 0 FROM seq
+      """)
+
+      db.execSQL("""
+        INSERT INTO thread_bookmark (owner_thread_id, seen_posts_count, total_posts_count, last_viewed_post_no,
+            thread_last_post_no, state, created_on)
+        VALUES (1, 0, 0, 0, 0, 0, 0)
+      """)
+
+      db.execSQL("""
+        WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < ${totalPosts})
+        INSERT INTO chan_post_id (post_id, owner_thread_id, post_no, post_sub_no)
+        SELECT x, ((x - 1) / ${POSTS_PER_THREAD}) + 1, ((x - 1) % ${POSTS_PER_THREAD}) + 1, 0 FROM seq
+      """)
+
+      db.execSQL("""
+        WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < ${totalPosts})
+        INSERT INTO chan_post (chan_post_id, deleted, timestamp_seconds, poster_id_color, is_op, is_saved_reply, is_sage)
+        SELECT x, 0, 0, 0, CASE WHEN (x - 1) % ${POSTS_PER_THREAD} = 0 THEN 1 ELSE 0 END, 0, 0 FROM seq
+      """)
+
+      // Seen posts of the newest threads so that they are not affected by the thread deletion
+      // (the bitmap only contains the OP)
+      db.execSQL("""
+        WITH RECURSIVE seq(x) AS (SELECT ${THREADS_COUNT - SEEN_POSTS_THREADS_COUNT + 1} UNION ALL SELECT x + 1 FROM seq WHERE x < ${THREADS_COUNT})
+        INSERT INTO seen_posts_bitmap (owner_thread_id, seen_posts_bitmap, seen_posts_count, last_updated_at)
+        SELECT x, X'0101000000', 1, CASE WHEN x % 2 = 0 THEN 0 ELSE ${DateTime.now().millis} END FROM seq
+      """)
+
+      // Text spans of the newest thread's posts, must not be touched
+      db.execSQL("""
+        WITH RECURSIVE seq(x) AS (SELECT ${lastThreadFirstPostId} UNION ALL SELECT x + 1 FROM seq WHERE x < ${totalPosts})
+        INSERT INTO chan_text_span (owner_post_id, parsed_text, span_info_bytes, text_type)
+        SELECT x, '', X'00', 0 FROM seq
+      """)
+
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+
+    seedOrphanTextSpans(ORPHAN_TEXT_SPANS_COUNT)
+  }
+
+  private fun seedOrphanTextSpans(count: Int) {
+    val db = database.openHelper.writableDatabase
+
+    db.execSQL("PRAGMA foreign_keys = OFF")
+    try {
+      db.execSQL("""
+        WITH RECURSIVE seq(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM seq WHERE x < ${count})
+        INSERT INTO chan_text_span (owner_post_id, parsed_text, span_info_bytes, text_type)
+        SELECT ${ORPHAN_OWNER_POST_ID_OFFSET} + x, '', X'00', 0 FROM seq
+      """)
+    } finally {
+      db.execSQL("PRAGMA foreign_keys = ON")
+    }
+  }
+
+  private fun countPostsOfThread(threadId: Long): Int {
+    return count("SELECT COUNT(*) FROM chan_post_id WHERE owner_thread_id = ${threadId}").toInt()
+  }
+
+  private fun count(sql: String): Long {
+    return database.openHelper.writableDatabase.query(sql).use { cursor ->
+      cursor.moveToFirst()
+      cursor.getLong(0)
+    }
+  }
+
+  companion object {
+    private const val THREADS_COUNT = 1000
+    private const val POSTS_PER_THREAD = 200
+    private const val SEEN_POSTS_THREADS_COUNT = 500
+    private const val ORPHAN_TEXT_SPANS_COUNT = 50_000
+    private const val ORPHAN_OWNER_POST_ID_OFFSET = 10_000_000L
+
+    private const val MAX_POSTS_AMOUNT = 100_000
+    private const val MAX_THREADS_AMOUNT = THREADS_COUNT
+    private const val BATCH_SIZE = 1000
+
+    // Generous because of the emulated sqlite, on a device a batch takes a couple of milliseconds
+    private const val MAX_BATCH_DURATION_MS = 1000L
+    private const val FOREGROUND_LOAD_DURATION_MS = 300L
+
+    private val SEEN_POSTS_CUTOFF = DateTime.now().minusMonths(1)
+  }
+}
@@ -0,0 +1,213 @@
+package com.github.k1rakishou.model.repository
+
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.TestDatabaseModuleComponent
+import com.github.k1rakishou.model.data.media.GenericVideoId
+import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
+import com.github.k1rakishou.model.data.video_service.MediaServiceType
+import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository.LinkExtraContentRequest
+import com.github.k1rakishou.model.source.cache.GenericSuspendableCacheSource
+import com.github.k1rakishou.model.source.local.MediaServiceLinkExtraContentLocalSource
+import com.github.k1rakishou.model.source.remote.MediaServiceLinkExtraContentRemoteSource
+import com.github.k1rakishou.model.source.remote.withServer
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.TestCoroutineScope
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.joda.time.DateTime
+import org.joda.time.Duration
+import org.joda.time.Period
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowLog
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+@ExperimentalCoroutinesApi
+@RunWith(RobolectricTestRunner::class)
+class MediaServiceLinkExtraContentRepositoryBatchTest {
+  private val coroutineScope = TestCoroutineScope()
+  // Not too far in the past, entries older than a week are deleted by the repository
+  private val startTime = DateTime.now()
+  private var now = startTime
+
+  lateinit var database: KurobaDatabase
+  lateinit var okHttpClient: OkHttpClient
+  lateinit var repository: MediaServiceLinkExtraContentRepository
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+    val testDatabaseModuleComponent = TestDatabaseModuleComponent()
+
+    database = testDatabaseModuleComponent.provideInMemoryKurobaDatabase()
+    okHttpClient = testDatabaseModuleComponent.provideOkHttpClient()
+
+    repository = MediaServiceLinkExtraContentRepository(
+      database,
+      coroutineScope,
+      GenericSuspendableCacheSource(),
+      MediaServiceLinkExtraContentLocalSource(database, nowFunc = { now }),
+      MediaServiceLinkExtraContentRemoteSource(okHttpClient)
+    )
+  }
+
+  @After
+  fun tearDown() {
+    okHttpClient.dispatcher.cancelAll()
+  }
+
+  @Test
+  fun `dead videos are not requested again until the negative result expires`() {
+    withServer { server ->
+      val fakeService = FakeMediaService(server)
+      server.start()
+
+      val requests = listOf(
+        fakeService.request("dead1", 404),
+        fakeService.request("dead2", 404),
+        fakeService.request("rate_limited", 429)
+      )
+
+      val firstResults = repository.getLinkExtraContentBatch(MediaServiceType.Youtube, requests)
+      assertEquals(3, server.requestCount)
+      assertFalse(firstResults[GenericVideoId("dead1")]!!.unwrap().isValid())
+      assertFalse(firstResults[GenericVideoId("dead2")]!!.unwrap().isValid())
+      assertTrue(firstResults[GenericVideoId("rate_limited")]!!.isError())
+
+      // Only the rate limited one is requested again
+      now = startTime.plus(Duration.standardHours(1))
+      repository.getLinkExtraContentBatch(MediaServiceType.Youtube, requests)
+      assertEquals(4, server.requestCount)
+      assertEquals(listOf("rate_limited", "rate_limited"), fakeService.requestedVideoIds("rate_limited"))
+
+      // Still not expired right before the TTL passes
+      now = startTime.plus(MediaServiceLinkExtraContentLocalSource.NEGATIVE_RESULT_TTL).minus(Duration.standardSeconds(1))
+      repository.getLinkExtraContentBatch(MediaServiceType.Youtube, requests.take(2))
+      assertEquals(4, server.requestCount)
+      assertTrue(repository.isCached(GenericVideoId("dead1"), MediaServiceType.Youtube).unwrap())
+
+      // Expired
+      now = startTime.plus(MediaServiceLinkExtraContentLocalSource.NEGATIVE_RESULT_TTL).plus(Duration.standardSeconds(1))
+      assertFalse(repository.isCached(GenericVideoId("dead1"), MediaServiceType.Youtube).unwrap())
+
+      repository.getLinkExtraContentBatch(MediaServiceType.Youtube, requests.take(2))
+      assertEquals(6, server.requestCount)
+      assertEquals(2, fakeService.requestedVideoIds("dead1").size)
+      assertEquals(2, fakeService.requestedVideoIds("dead2").size)
+
+      // Stored again with the new time
+      repository.getLinkExtraContentBatch(MediaServiceType.Youtube, requests.take(2))
+      assertEquals(6, server.requestCount)
+    }
+  }
+
+  @Test
+  fun `stored videos are not requested and duplicates are requested once`() {
+    withServer { server ->
+      val fakeService = FakeMediaService(server)
+      server.start()
+
+      val storedContent = MediaServiceLinkExtraContent(
+        GenericVideoId("stored"),
+        MediaServiceType.Youtube,
+        "title",
+        Period.seconds(90)
+      )
+
+      database.withTransaction {
+        MediaServiceLinkExtraContentLocalSource(database, nowFunc = { startTime.minusDays(3) })
+          .insert(storedContent)
+      }
+
+      val requests = listOf(
+        fakeService.request("stored", 404),
+        fakeService.request("dead", 404),
+        fakeService.request("dead", 404)
+      )
+
+      val results = repository.getLinkExtraContentBatch(MediaServiceType.Youtube, requests)
+
+      assertEquals(1, server.requestCount)
+      assertEquals(listOf("dead"), fakeService.requestedVideoIds("dead"))
+      assertEquals(storedContent, results[GenericVideoId("stored")]!!.unwrap())
+      assertEquals(2, results.size)
+    }
+  }
+
+  @Test
+  fun `concurrent requests are bounded`() {
+    withServer { server ->
+      val fakeService = FakeMediaService(server, responseDelayMs = 50)
+      server.start()
+
+      val requests = (0 until 12).map { index -> fakeService.request("dead$index", 404) }
+      val results = repository.getLinkExtraContentBatch(
+        mediaServiceType = MediaServiceType.Youtube,
+        requests = requests,
+        maxConcurrentRequests = 3
+      )
+
+      assertEquals(12, results.size)
+      assertEquals(12, server.requestCount)
+      assertTrue("maxInFlight=${fakeService.maxInFlight.get()}", fakeService.maxInFlight.get() <= 3)
+    }
+  }
+
+  /**
+   * Replies with the status code that is encoded into the request path.
+   * */
+  private class FakeMediaService(
+    private val server: MockWebServer,
+    private val responseDelayMs: Long = 0L
+  ) : Dispatcher() {
+    private val inFlight = AtomicInteger(0)
+    private val requested = ConcurrentHashMap<String, MutableList<String>>()
+    val maxInFlight = AtomicInteger(0)
+
+    init {
+      server.dispatcher = this
+    }
+
+    fun request(videoId: String, statusCode: Int): LinkExtraContentRequest {
+      return LinkExtraContentRequest(
+        requestUrl = server.url("/$statusCode/watch?v=$videoId").toString(),
+        videoId = GenericVideoId(videoId)
+      )
+    }
+
+    fun requestedVideoIds(videoId: String): List<String> {
+      return requested[videoId]?.toList() ?: emptyList()
+    }
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val currentInFlight = inFlight.incrementAndGet()
+      maxInFlight.updateAndGet { max -> maxOf(max, currentInFlight) }
+
+      try {
+        val url = request.requestUrl!!
+        val videoId = url.queryParameter("v")!!
+        requested.getOrPut(videoId) { Collections.synchronizedList(mutableListOf()) }.add(videoId)
+
+        if (responseDelayMs > 0) {
+          Thread.sleep(responseDelayMs)
+        }
+
+        return MockResponse().setResponseCode(url.pathSegments.first().toInt())
+      } finally {
+        inFlight.decrementAndGet()
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package com.github.k1rakishou.model.source.local
+
+import android.os.Build
+import androidx.room.Room
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.catalog.ChanCatalogSnapshotDiff
+import com.github.k1rakishou.model.data.catalog.IChanCatalogSnapshot
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotEntity
+import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class ChanCatalogSnapshotLocalSourceTest {
+  private lateinit var database: KurobaDatabase
+  private lateinit var chanDescriptorCache: ChanDescriptorCache
+
+  private val catalogDescriptor = ChanDescriptor.CatalogDescriptor.create(SITE_NAME, BOARD_CODE)
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+
+    database = Room.inMemoryDatabaseBuilder(
+      RuntimeEnvironment.application.applicationContext,
+      KurobaDatabase::class.java
+    )
+      .addCallback(KurobaDatabase.TriggersCallback)
+      .build()
+
+    chanDescriptorCache = ChanDescriptorCache(database)
+
+    val db = database.openHelper.writableDatabase
+    db.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('${SITE_NAME}')")
+    db.execSQL("INSERT INTO chan_board_id (board_id, owner_site_name, board_code) VALUES (${BOARD_ID}, '${SITE_NAME}', '${BOARD_CODE}')")
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `random reorderings are read back in the same order`() {
+    runBlocking {
+      val random = Random(42)
+      var threadNos = (1L..300L).toList()
+      var nextThreadNo = 301L
+
+      repeat(200) { iteration ->
+        threadNos = when (random.nextInt(5)) {
+          0 -> threadNos.shuffled(random)
+          1 -> threadNos.filter { random.nextInt(10) != 0 }
+          2 -> {
+            val newThreads = (0 until random.nextInt(1, 30)).map { nextThreadNo++ }
+            val position = random.nextInt(threadNos.size + 1)
+            threadNos.take(position) + newThreads + threadNos.drop(position)
+          }
+          3 -> bump(threadNos, random, count = random.nextInt(1, 20))
+          else -> {
+            val from = random.nextInt(threadNos.size)
+            val to = random.nextInt(threadNos.size)
+            threadNos.toMutableList().apply { add(to, removeAt(from)) }
+          }
+        }
+
+        if (threadNos.isEmpty()) {
+          threadNos = listOf(nextThreadNo++)
+        }
+
+        store(threadNos)
+        assertEquals("iteration=${iteration}", threadNos, readBack())
+      }
+    }
+  }
+
+  @Test
+  fun `inserting between the same neighbours renumbers the snapshot once there is no room left`() {
+    runBlocking {
+      val threadNos = mutableListOf(1L, 2L)
+      var nextThreadNo = 3L
+
+      // Every insert halves the gap between the thread 1 and the thread right after it
+      repeat(20) {
+        threadNos.add(1, nextThreadNo++)
+
+        store(threadNos)
+        assertEquals(threadNos, readBack())
+      }
+    }
+  }
+
+  @Test
+  fun `storing the same snapshot twice writes nothing`() {
+    runBlocking {
+      val threadNos = (1L..100L).toList()
+      store(threadNos)
+
+      val before = totalChanges()
+      store(threadNos)
+
+      assertEquals(0L, totalChanges() - before)
+    }
+  }
+
+  @Test
+  fun `moving a thread to the top writes a single row`() {
+    runBlocking {
+      val threadNos = (1L..100L).toList()
+      store(threadNos)
+
+      val before = totalChanges()
+      store(listOf(50L) + threadNos.filter { threadNo -> threadNo != 50L })
+
+      assertEquals(1L, totalChanges() - before)
+    }
+  }
+
+  @Test
+  fun `diff-based updates write far fewer rows than rewriting the whole snapshot`() {
+    runBlocking {
+      val loads = catalogLoads()
+
+      // Old way: every catalog load deletes and inserts all threads of the board
+      val fullRewriteRows = countChanges {
+        loads.forEach { threadNos -> fullRewrite(threadNos) }
+      }
+
+      assertEquals(loads.last(), readBack())
+
+      database.openHelper.writableDatabase.execSQL("DELETE FROM chan_catalog_snapshot")
+
+      val diffRows = countChanges {
+        loads.forEach { threadNos -> store(threadNos) }
+      }
+
+      assertEquals(loads.last(), readBack())
+      assertTrue("diffRows=${diffRows}, fullRewriteRows=${fullRewriteRows}", diffRows * 20 < fullRewriteRows)
+    }
+  }
+
+  @Test
+  fun `diff keeps the longest increasing subsequence untouched`() {
+    val prevThreadOrders = mapOf(1L to 0, 2L to 1024, 3L to 2048, 4L to 3072)
+    val diff = ChanCatalogSnapshotDiff.calculate(prevThreadOrders, listOf(3L, 1L, 5L, 2L, 4L))
+
+    assertEquals(listOf<Long>(), diff.deletedThreadNos)
+    assertEquals(listOf(3L), diff.movedThreads.map { threadOrder -> threadOrder.threadNo })
+    assertEquals(listOf(5L), diff.insertedThreads.map { threadOrder -> threadOrder.threadNo })
+    assertTrue(diff.movedThreads.first().threadOrder < 0)
+    assertTrue(diff.insertedThreads.first().threadOrder in 1 until 1024)
+  }
+
+  private suspend fun store(threadNos: List<Long>) {
+    val localSource = ChanCatalogSnapshotLocalSource(database, chanDescriptorCache, ChanCatalogSnapshotCache())
+
+    val chanCatalogSnapshot = IChanCatalogSnapshot.fromSortedThreadDescriptorList<ChanDescriptor.ICatalogDescriptor>(
+      catalogDescriptor = catalogDescriptor,
+      threadDescriptors = threadNos.map { threadNo -> ChanDescriptor.ThreadDescriptor.create(catalogDescriptor, threadNo) },
+      isUnlimitedCatalog = false
+    )
+
+    database.withTransaction { localSource.storeChanCatalogSnapshot(chanCatalogSnapshot) }
+  }
+
+  private suspend fun readBack(): List<Long> {
+    // Fresh cache so that the snapshot is loaded from the database
+    val localSource = ChanCatalogSnapshotLocalSource(database, chanDescriptorCache, ChanCatalogSnapshotCache())
+    database.withTransaction { localSource.preloadChanCatalogSnapshot(catalogDescriptor, isUnlimitedCatalog = false) }
+
+    return localSource.getCatalogSnapshot(catalogDescriptor)!!
+      .catalogThreadDescriptorList
+      .map { threadDescriptor -> threadDescriptor.threadNo }
+  }
+
+  /**
+   * A big catalog where every load bumps some threads, adds a few new ones and drops the oldest
+   * ones.
+   * */
+  private fun catalogLoads(): List<List<Long>> {
+    val random = Random(42)
+    var threadNos = (1L..3000L).toList()
+    var nextThreadNo = 3001L
+
+    return (0 until 100).map {
+      val newThreads = (0 until 5).map { nextThreadNo++ }
+
+      threadNos = (newThreads + bump(threadNos, random, count = 30)).take(3000)
+      return@map threadNos
+    }
+  }
+
+  private suspend fun fullRewrite(threadNos: List<Long>) {
+    database.withTransaction {
+      database.openHelper.writableDatabase.execSQL("DELETE FROM chan_catalog_snapshot WHERE owner_board_id = ${BOARD_ID}")
+
+      database.chanCatalogSnapshotDao().insertMany(
+        threadNos.mapIndexed { order, threadNo -> ChanCatalogSnapshotEntity(BOARD_ID, threadNo, order) }
+      )
+    }
+  }
+
+  private suspend fun countChanges(func: suspend () -> Unit): Long {
+    val before = totalChanges()
+    func()
+    return totalChanges() - before
+  }
+
+  private fun bump(threadNos: List<Long>, random: Random, count: Int): List<Long> {
+    val bumped = threadNos.shuffled(random).take(count).toSet()
+    return bumped.toList() + threadNos.filter { threadNo -> threadNo !in bumped }
+  }
+
+  private fun totalChanges(): Long {
+    return database.openHelper.writableDatabase.query("SELECT total_changes()").use { cursor ->
+      cursor.moveToFirst()
+      cursor.getLong(0)
+    }
+  }
+
+  companion object {
+    private const val SITE_NAME = "test"
+    private const val BOARD_CODE = "g"
+    private const val BOARD_ID = 1L
+  }
+}
@@ -0,0 +1,343 @@
+package com.github.k1rakishou.model.source.local
+
+import android.os.Build
+import androidx.room.Room
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.data.search.LocalPostSearchResult
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class ChanPostLocalSourceSearchTest {
+  private lateinit var database: KurobaDatabase
+  private lateinit var localSource: ChanPostLocalSource
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+
+    database = Room.inMemoryDatabaseBuilder(
+      RuntimeEnvironment.application.applicationContext,
+      KurobaDatabase::class.java
+    )
+      .addCallback(KurobaDatabase.TriggersCallback)
+      .build()
+
+    localSource = ChanPostLocalSource(database)
+
+    database.openHelper.writableDatabase.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('$SITE_A')")
+    database.openHelper.writableDatabase.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('$SITE_B')")
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `indexes comment, subject, name and filenames of inserted posts`() {
+    val thread = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+
+    insert(
+      originalPost(thread, comment = "Daily programming thread", subject = "Kotlin general"),
+      post(thread, 2L, comment = "anyone tried coroutines"),
+      post(thread, 3L, comment = "nothing here", name = "Moot"),
+      post(thread, 4L, comment = "look at this", images = listOf(image("screenshot_2021", "png"))),
+      post(thread, 5L, comment = "inlined image", images = listOf(image("inlinedfile", "jpg", isInlined = true)))
+    )
+
+    assertEquals(5, searchIndexRowsCount())
+
+    assertEquals(listOf(postDescriptor(thread, 2L)), search("coroutines").descriptors())
+    assertEquals(listOf(postDescriptor(thread, 1L)), search("KOTLIN").descriptors())
+    assertEquals(listOf(postDescriptor(thread, 3L)), search("moot").descriptors())
+    assertEquals(listOf(postDescriptor(thread, 4L)), search("screenshot").descriptors())
+    assertEquals(listOf(postDescriptor(thread, 4L)), search("png").descriptors())
+
+    // Prefix search and every term must match
+    assertEquals(listOf(postDescriptor(thread, 2L)), search("corout").descriptors())
+    assertEquals(listOf(postDescriptor(thread, 1L)), search("daily thread").descriptors())
+    assertTrue(search("daily coroutines").hits.isEmpty())
+
+    // Inlined images are not stored so they are not searchable either
+    assertTrue(search("inlinedfile").hits.isEmpty())
+  }
+
+  @Test
+  fun `re-inserting posts does not duplicate index rows`() {
+    val thread = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+    val posts = listOf(
+      originalPost(thread, comment = "first version"),
+      post(thread, 2L, comment = "reply")
+    )
+
+    insert(*posts.toTypedArray())
+    insert(*posts.toTypedArray())
+
+    assertEquals(2, searchIndexRowsCount())
+    assertEquals(listOf(postDescriptor(thread, 1L)), search("version").descriptors())
+  }
+
+  @Test
+  fun `deleted posts are removed from the index`() {
+    val thread1 = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+    val thread2 = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 100L)
+
+    insert(
+      originalPost(thread1, comment = "shared word op"),
+      post(thread1, 2L, comment = "shared word reply"),
+      post(thread1, 3L, comment = "shared word another reply")
+    )
+    insert(
+      originalPost(thread2, comment = "shared word other thread"),
+      post(thread2, 101L, comment = "shared word other reply")
+    )
+
+    assertEquals(5, searchIndexRowsCount())
+
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction { localSource.deletePost(postDescriptor(thread1, 3L)) }
+    }
+
+    assertEquals(4, searchIndexRowsCount())
+    assertFalse(postDescriptor(thread1, 3L) in search("shared").descriptors())
+
+    // Deletes everything but the original post
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction { localSource.deleteThread(thread1) }
+    }
+
+    assertEquals(3, searchIndexRowsCount())
+    assertEquals(
+      setOf(postDescriptor(thread1, 1L), postDescriptor(thread2, 100L), postDescriptor(thread2, 101L)),
+      search("shared").descriptors().toSet()
+    )
+
+    // Cascading deletes of whole threads go through the trigger as well
+    database.openHelper.writableDatabase.execSQL("DELETE FROM chan_thread")
+    assertEquals(0, searchIndexRowsCount())
+
+    insert(originalPost(thread1, comment = "shared word again"))
+
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction { localSource.deleteAll() }
+    }
+
+    assertEquals(0, searchIndexRowsCount())
+    assertTrue(search("shared").hits.isEmpty())
+  }
+
+  @Test
+  fun `sorts newest posts first and ranks subject hits and repeated words higher`() {
+    val thread = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+
+    insert(
+      originalPost(thread, comment = "some text", subject = "rust thread"),
+      post(thread, 2L, comment = "i like rust"),
+      post(thread, 3L, comment = "rust rust rust everywhere"),
+      post(thread, 4L, comment = "unrelated")
+    )
+
+    val result = search("rust")
+    assertEquals(
+      listOf(postDescriptor(thread, 3L), postDescriptor(thread, 2L), postDescriptor(thread, 1L)),
+      result.descriptors()
+    )
+
+    val ranks = result.hits.associate { hit -> hit.postDescriptor.postNo to hit.rank }
+    assertTrue(ranks[1L]!! > ranks[3L]!!)
+    assertTrue(ranks[3L]!! > ranks[2L]!!)
+    assertTrue(ranks[2L]!! > 0.0)
+  }
+
+  @Test
+  fun `pages through more matches than fit into memory at once`() {
+    val thread = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+    val repliesCount = 2_500L
+
+    insert(
+      originalPost(thread, comment = "needle"),
+      *(2L..repliesCount + 1).map { postNo -> post(thread, postNo, comment = "needle $postNo") }.toTypedArray()
+    )
+
+    val firstPage = search("needle", offset = 0, count = 10)
+    assertEquals(repliesCount.toInt() + 1, firstPage.totalMatches)
+    assertEquals(postDescriptor(thread, repliesCount + 1), firstPage.hits.first().postDescriptor)
+
+    val lastPage = search("needle", offset = repliesCount.toInt() - 4, count = 10)
+    assertEquals(5, lastPage.hits.size)
+    assertEquals(postDescriptor(thread, 1L), lastPage.hits.last().postDescriptor)
+    assertFalse(lastPage.hasMore())
+
+    val pastTheEnd = search("needle", offset = repliesCount.toInt() + 1, count = 10)
+    assertTrue(pastTheEnd.hits.isEmpty())
+    assertEquals(repliesCount.toInt() + 1, pastTheEnd.totalMatches)
+  }
+
+  @Test
+  fun `pages through results and filters by site and board`() {
+    val threadA = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+    val threadB = ChanDescriptor.ThreadDescriptor.create(SITE_A, "a", 1L)
+    val threadC = ChanDescriptor.ThreadDescriptor.create(SITE_B, "g", 1L)
+
+    insert(originalPost(threadA, comment = "needle"), *(2L..10L).map { postNo -> post(threadA, postNo, comment = "needle $postNo") }.toTypedArray())
+    insert(originalPost(threadB, comment = "needle"))
+    insert(originalPost(threadC, comment = "needle"))
+
+    val firstPage = search("needle", offset = 0, count = 5)
+    assertEquals(5, firstPage.hits.size)
+    assertEquals(12, firstPage.totalMatches)
+    assertTrue(firstPage.hasMore())
+
+    val lastPage = search("needle", offset = 10, count = 5)
+    assertEquals(2, lastPage.hits.size)
+    assertFalse(lastPage.hasMore())
+
+    val allPages = (0 until 12 step 5).flatMap { offset -> search("needle", offset = offset, count = 5).descriptors() }
+    assertEquals(12, allPages.toSet().size)
+
+    assertEquals(11, search("needle", siteDescriptor = SiteDescriptor.create(SITE_A)).totalMatches)
+    assertEquals(
+      listOf(postDescriptor(threadB, 1L)),
+      search("needle", boardDescriptor = BoardDescriptor.create(SITE_A, "a")).descriptors()
+    )
+    assertEquals(
+      listOf(postDescriptor(threadC, 1L)),
+      search("needle", boardDescriptor = BoardDescriptor.create(SITE_B, "g")).descriptors()
+    )
+  }
+
+  @Test
+  fun `user input is never interpreted as fts syntax`() {
+    assertNull(ChanPostSearchRanker.toFtsQuery(""))
+    assertNull(ChanPostSearchRanker.toFtsQuery("  \"*-() "))
+    assertEquals("cats* or* dogs*", ChanPostSearchRanker.toFtsQuery("cats OR dogs"))
+    assertEquals("foo* bar*", ChanPostSearchRanker.toFtsQuery("\"foo\" -bar*"))
+    assertEquals("привет*", ChanPostSearchRanker.toFtsQuery("Привет!"))
+
+    val thread = ChanDescriptor.ThreadDescriptor.create(SITE_A, "g", 1L)
+    insert(originalPost(thread, comment = "cats or dogs"))
+
+    assertEquals(listOf(postDescriptor(thread, 1L)), search("cats OR dogs\"").descriptors())
+    assertTrue(search("\"*").hits.isEmpty())
+  }
+
+  private fun search(
+    query: String,
+    siteDescriptor: SiteDescriptor? = null,
+    boardDescriptor: BoardDescriptor? = null,
+    offset: Int = 0,
+    count: Int = 50
+  ): LocalPostSearchResult {
+    return runBlocking(Dispatchers.Default) {
+      database.withTransaction {
+        localSource.searchPosts(query, siteDescriptor, boardDescriptor, offset, count)
+      }
+    }
+  }
+
+  private fun insert(vararg posts: ChanPost) {
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction { localSource.insertPosts(posts.toList()) }
+    }
+  }
+
+  private fun searchIndexRowsCount(): Int {
+    return runBlocking(Dispatchers.Default) { database.chanPostSearchDao().count() }
+  }
+
+  private fun LocalPostSearchResult.descriptors(): List<PostDescriptor> {
+    return hits.map { hit -> hit.postDescriptor }
+  }
+
+  private fun postDescriptor(thread: ChanDescriptor.ThreadDescriptor, postNo: Long): PostDescriptor {
+    return PostDescriptor.create(thread, postNo)
+  }
+
+  private fun image(filename: String, extension: String, isInlined: Boolean = false): ChanPostImage {
+    return ChanPostImage(
+      serverFilename = "${System.nanoTime()}",
+      filename = filename,
+      extension = extension,
+      isInlined = isInlined
+    )
+  }
+
+  private fun originalPost(
+    thread: ChanDescriptor.ThreadDescriptor,
+    comment: String,
+    subject: String? = null
+  ): ChanOriginalPost {
+    return ChanOriginalPost(
+      chanPostId = 0L,
+      postDescriptor = postDescriptor(thread, thread.threadNo),
+      postImages = emptyList(),
+      postIcons = emptyList(),
+      repliesTo = emptySet(),
+      timestamp = 1L,
+      postComment = PostComment(comment, comment, emptyList()),
+      subject = subject,
+      isSavedReply = false,
+      lastModified = 1L,
+      sticky = false,
+      closed = false,
+      archived = false,
+      endless = false,
+      isSage = false,
+      deleted = false,
+      posterIdColor = 0
+    )
+  }
+
+  private fun post(
+    thread: ChanDescriptor.ThreadDescriptor,
+    postNo: Long,
+    comment: String,
+    name: String? = null,
+    images: List<ChanPostImage> = emptyList()
+  ): ChanPost {
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = postDescriptor(thread, postNo),
+      _postImages = images.toMutableList(),
+      postIcons = emptyList(),
+      repliesTo = emptySet(),
+      timestamp = postNo,
+      postComment = PostComment(comment, comment, emptyList()),
+      subject = null,
+      tripcode = null,
+      name = name,
+      isSavedReply = false,
+      isSage = false,
+      deleted = false,
+      posterIdColor = 0
+    )
+  }
+
+  companion object {
+    private const val SITE_A = "site_a"
+    private const val SITE_B = "site_b"
+  }
+}
@@ -0,0 +1,284 @@
+package com.github.k1rakishou.model.source.local
+
+import android.os.Build
+import androidx.room.Room
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.navigation.NavHistoryElement
+import com.github.k1rakishou.model.data.navigation.NavHistoryElementInfo
+import com.github.k1rakishou.model.data.navigation.NavHistoryOp
+import com.github.k1rakishou.model.mapper.NavHistoryOpMapper
+import com.squareup.moshi.Moshi
+import kotlinx.coroutines.runBlocking
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class NavHistoryLocalSourceOpLogTest {
+  private lateinit var database: KurobaDatabase
+  private lateinit var moshi: Moshi
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+
+    database = Room.inMemoryDatabaseBuilder(
+      RuntimeEnvironment.application.applicationContext,
+      KurobaDatabase::class.java
+    )
+      .addCallback(KurobaDatabase.TriggersCallback)
+      .build()
+
+    moshi = Moshi.Builder().build()
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `every kind of op survives the round trip through the op log`() {
+    val localSource = NavHistoryLocalSource(database, moshi)
+
+    val thread = thread(1L)
+    val catalog = catalog("g")
+    val compositeCatalog = compositeCatalog("g", "a")
+
+    val ops = listOf(
+      NavHistoryOp.Insert(thread, 0),
+      NavHistoryOp.Insert(catalog, 1),
+      NavHistoryOp.Insert(compositeCatalog, 5),
+      NavHistoryOp.Move(catalog.descriptor, 0),
+      NavHistoryOp.Pin(compositeCatalog.descriptor, true, 0),
+      NavHistoryOp.Replace(thread.descriptor, thread(2L)),
+      NavHistoryOp.Delete(catalog.descriptor),
+      NavHistoryOp.Clear,
+      NavHistoryOp.Insert(thread(3L), 0)
+    )
+
+    runBlocking {
+      database.withTransaction { localSource.appendOps(ops) }
+
+      val readBackOps = database.navHistoryDao().selectAllOps().map { navHistoryOpEntity ->
+        NavHistoryOpMapper.fromNavHistoryOpEntity(navHistoryOpEntity, moshi)
+      }
+
+      assertEquals(ops, readBackOps)
+    }
+  }
+
+  @Test
+  fun `replaying the op log after the process death restores the exact same stack`() {
+    val random = Random(1337)
+
+    repeat(10) { iteration ->
+      database.clearAllTables()
+
+      val localSource = NavHistoryLocalSource(database, moshi)
+      val liveStack = mutableListOf<NavHistoryElement>()
+      val pendingOps = mutableListOf<NavHistoryOp>()
+      var nextThreadNo = 1L
+
+      runBlocking {
+        repeat(300) {
+          val op = randomOp(random, liveStack) { nextThreadNo++ }
+          op.applyTo(liveStack)
+          pendingOps += op
+
+          // Flushes and compactions happen at random points, the process may die at any of them
+          when (random.nextInt(10)) {
+            0, 1, 2 -> {
+              database.withTransaction { localSource.appendOps(pendingOps.toList()) }
+              pendingOps.clear()
+            }
+            3 -> {
+              database.withTransaction { localSource.compact(liveStack.toList()) }
+              pendingOps.clear()
+            }
+          }
+        }
+
+        database.withTransaction { localSource.appendOps(pendingOps.toList()) }
+        pendingOps.clear()
+
+        // The process died, start from scratch
+        val restoredStack = database.withTransaction {
+          NavHistoryLocalSource(database, moshi).selectAllAndReplayOpLog(Int.MAX_VALUE)
+        }
+
+        assertEquals("iteration $iteration", liveStack.snapshot(), restoredStack.snapshot())
+        assertEquals(0, database.withTransaction { localSource.countOps() })
+
+        // And the compacted stack is the same as well
+        val reloadedStack = database.withTransaction { localSource.selectAllAndReplayOpLog(Int.MAX_VALUE) }
+        assertEquals("iteration $iteration", liveStack.snapshot(), reloadedStack.snapshot())
+      }
+    }
+  }
+
+  @Test
+  fun `first nav element is read with the op log applied`() {
+    val localSource = NavHistoryLocalSource(database, moshi)
+    val firstThread = thread(1L)
+    val secondThread = thread(2L)
+
+    runBlocking {
+      database.withTransaction { localSource.compact(listOf(firstThread, secondThread, catalog("g"))) }
+      database.withTransaction { localSource.appendOps(listOf(NavHistoryOp.Move(secondThread.descriptor, 0))) }
+
+      assertEquals(secondThread.descriptor, database.withTransaction { localSource.getFirstNavElement() }?.descriptor())
+      assertEquals(secondThread.descriptor, database.withTransaction { localSource.getFirstThreadNavElement() }?.descriptor())
+
+      database.withTransaction { localSource.appendOps(listOf(NavHistoryOp.Delete(catalog("g").descriptor))) }
+      assertEquals(null, database.withTransaction { localSource.getFirstCatalogNavElement() })
+    }
+  }
+
+  @Test
+  fun `op log writes far fewer rows than rewriting the whole stack`() {
+    val localSource = NavHistoryLocalSource(database, moshi)
+    val initialStack = (1L..250L).map { threadNo -> thread(threadNo) }
+    val random = Random(42)
+    val ops = (0 until 400).map { NavHistoryOp.Move(initialStack[random.nextInt(initialStack.size)].descriptor, 0) }
+
+    runBlocking {
+      // Old way: every opened thread rewrites the whole stack
+      database.withTransaction { localSource.persist(initialStack) }
+      val fullStack = initialStack.toMutableList<NavHistoryElement>()
+
+      val fullRewriteRows = countChanges {
+        ops.forEach { op ->
+          op.applyTo(fullStack)
+          database.withTransaction { localSource.persist(fullStack.toList()) }
+        }
+      }
+
+      // Every opened thread is a single op log row (the worst case when every op is flushed
+      // separately) and the stack is only rewritten once the op log grows big enough
+      database.clearAllTables()
+      database.withTransaction { localSource.compact(initialStack) }
+      val opLogStack = initialStack.toMutableList<NavHistoryElement>()
+      var opLogSize = 0
+
+      val opLogRows = countChanges {
+        ops.forEach { op ->
+          op.applyTo(opLogStack)
+          database.withTransaction { localSource.appendOps(listOf(op)) }
+
+          if (++opLogSize >= COMPACT_AFTER_OPS) {
+            database.withTransaction { localSource.compact(opLogStack.toList()) }
+            opLogSize = 0
+          }
+        }
+      }
+
+      val restoredStack = database.withTransaction { localSource.selectAllAndReplayOpLog(Int.MAX_VALUE) }
+      assertEquals(fullStack.snapshot(), restoredStack.snapshot())
+      assertTrue("opLogRows=${opLogRows}, fullRewriteRows=${fullRewriteRows}", opLogRows * 10 < fullRewriteRows)
+    }
+  }
+
+  private suspend fun countChanges(func: suspend () -> Unit): Long {
+    val before = totalChanges()
+    func()
+    return totalChanges() - before
+  }
+
+  private fun totalChanges(): Long {
+    return database.openHelper.writableDatabase.query("SELECT total_changes()").use { cursor ->
+      cursor.moveToFirst()
+      cursor.getLong(0)
+    }
+  }
+
+  private fun randomOp(
+    random: Random,
+    stack: List<NavHistoryElement>,
+    nextThreadNo: () -> Long
+  ): NavHistoryOp {
+    if (stack.isEmpty()) {
+      return NavHistoryOp.Insert(thread(nextThreadNo()), 0)
+    }
+
+    val existing = stack[random.nextInt(stack.size)].descriptor()
+
+    return when (random.nextInt(20)) {
+      0, 1, 2, 3, 4 -> NavHistoryOp.Insert(thread(nextThreadNo()), random.nextInt(0, 2))
+      5 -> NavHistoryOp.Insert(catalog("b${random.nextInt(5)}"), random.nextInt(0, stack.size + 2))
+      6 -> NavHistoryOp.Insert(compositeCatalog("c${random.nextInt(3)}", "d"), random.nextInt(0, stack.size + 2))
+      7, 8, 9, 10, 11 -> NavHistoryOp.Move(existing, random.nextInt(0, 3))
+      12, 13 -> NavHistoryOp.Pin(existing, random.nextBoolean(), random.nextInt(0, stack.size))
+      14 -> {
+        val replacement = if (existing is ChanDescriptor.ThreadDescriptor) {
+          thread(existing.threadNo, title = "Renamed ${random.nextInt()}")
+        } else {
+          thread(nextThreadNo())
+        }
+
+        NavHistoryOp.Replace(existing, replacement)
+      }
+      15, 16, 17, 18 -> NavHistoryOp.Delete(existing)
+      else -> {
+        if (random.nextInt(10) == 0) {
+          NavHistoryOp.Clear
+        } else {
+          NavHistoryOp.Move(existing, 0)
+        }
+      }
+    }
+  }
+
+  private fun List<NavHistoryElement>.snapshot(): List<Pair<ChanDescriptor, NavHistoryElementInfo>> {
+    return map { navHistoryElement -> navHistoryElement.descriptor() to navHistoryElement.navHistoryElementInfo.copy() }
+  }
+
+  private fun thread(threadNo: Long, title: String = "Thread $threadNo"): NavHistoryElement.Thread {
+    return NavHistoryElement.Thread(
+      ChanDescriptor.ThreadDescriptor.create(SITE_NAME, "g", threadNo),
+      info(title)
+    )
+  }
+
+  private fun catalog(boardCode: String): NavHistoryElement.Catalog {
+    return NavHistoryElement.Catalog(
+      ChanDescriptor.CatalogDescriptor.create(SITE_NAME, boardCode),
+      info("/$boardCode/")
+    )
+  }
+
+  private fun compositeCatalog(vararg boardCodes: String): NavHistoryElement.CompositeCatalog {
+    val catalogDescriptors = boardCodes.map { boardCode -> ChanDescriptor.CatalogDescriptor.create(SITE_NAME, boardCode) }
+
+    return NavHistoryElement.CompositeCatalog(
+      ChanDescriptor.CompositeCatalogDescriptor.create(catalogDescriptors),
+      info(boardCodes.joinToString(separator = "+"))
+    )
+  }
+
+  private fun info(title: String): NavHistoryElementInfo {
+    return NavHistoryElementInfo(
+      thumbnailUrl = "https://example.com/${title.hashCode()}.jpg".toHttpUrl(),
+      title = title,
+      pinned = false
+    )
+  }
+
+  companion object {
+    private const val SITE_NAME = "test-site"
+    // Same as in HistoryNavigationManager
+    private const val COMPACT_AFTER_OPS = 200
+  }
+}
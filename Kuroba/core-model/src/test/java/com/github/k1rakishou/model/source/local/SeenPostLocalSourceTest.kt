@@ -0,0 +1,213 @@
+package com.github.k1rakishou.model.source.local
+
+import android.os.Build
+import androidx.room.Room
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.data.post.SeenPostsBitmap
+import com.github.k1rakishou.model.migrations.Migration_v46_to_v47
+import kotlinx.coroutines.runBlocking
+import org.joda.time.DateTime
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class SeenPostLocalSourceTest {
+  private lateinit var database: KurobaDatabase
+  private lateinit var localSource: SeenPostLocalSource
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+
+    database = Room.inMemoryDatabaseBuilder(
+      RuntimeEnvironment.application.applicationContext,
+      KurobaDatabase::class.java
+    )
+      .addCallback(KurobaDatabase.TriggersCallback)
+      .build()
+
+    localSource = SeenPostLocalSource(database)
+    database.openHelper.writableDatabase.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('$SITE_NAME')")
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `bitmap encodes runs and extra posts and decodes them back`() {
+    val seenPostsBitmap = SeenPostsBitmap(threadNo = 1000)
+    val posts = listOf(1000L to 0L, 1001L to 0L, 1002L to 0L, 1010L to 0L, 5000L to 0L, 1001L to 1L, 999L to 0L)
+
+    posts.forEach { (postNo, postSubNo) -> assertTrue(seenPostsBitmap.add(postNo, postSubNo)) }
+    posts.forEach { (postNo, postSubNo) -> assertFalse(seenPostsBitmap.add(postNo, postSubNo)) }
+
+    val decoded = SeenPostsBitmap.decode(1000, seenPostsBitmap.encode())
+    assertEquals(posts.size, decoded.size)
+    posts.forEach { (postNo, postSubNo) -> assertTrue(decoded.contains(postNo, postSubNo)) }
+    assertFalse(decoded.contains(1003, 0))
+    assertFalse(decoded.contains(1002, 1))
+
+    assertArrayEquals(seenPostsBitmap.encode(), decoded.encode())
+    assertTrue(SeenPostsBitmap.containsOriginalPost(seenPostsBitmap.encode()))
+
+    val withoutOriginalPost = SeenPostsBitmap(threadNo = 1000).apply { add(1001, 0) }
+    assertFalse(SeenPostsBitmap.containsOriginalPost(withoutOriginalPost.encode()))
+  }
+
+  @Test(expected = SeenPostsBitmap.MalformedBitmapException::class)
+  fun `truncated bitmap is rejected`() {
+    val seenPostsBitmap = SeenPostsBitmap(threadNo = 1).apply { add(1, 0); add(100, 0) }
+    val encoded = seenPostsBitmap.encode()
+
+    SeenPostsBitmap.decode(1, encoded.copyOf(encoded.size - 1))
+  }
+
+  @Test
+  fun `seen posts are merged into one row per thread`() {
+    runBlocking {
+      val thread = thread(100)
+      val otherThread = thread(200)
+      val older = DateTime(1_000_000L)
+      val newer = DateTime(2_000_000L)
+
+      database.withTransaction {
+        localSource.insertMany(thread, listOf(seenPost(thread, 100, older), seenPost(thread, 101, older)))
+        localSource.insertMany(thread, listOf(seenPost(thread, 101, newer), seenPost(thread, 150, newer)))
+        localSource.insertMany(otherThread, listOf(seenPost(otherThread, 201, older)))
+      }
+
+      assertEquals(2L, count("SELECT COUNT(*) FROM seen_posts_bitmap"))
+      assertEquals(4, database.withTransaction { localSource.count() })
+
+      val seenPosts = database.withTransaction { localSource.selectAllByThreadDescriptor(thread) }
+      assertEquals(listOf(100L, 101L, 150L), seenPosts.map { seenPost -> seenPost.postDescriptor.postNo }.sorted())
+      assertTrue(seenPosts.all { seenPost -> seenPost.insertedAt == newer })
+
+      // Only the threads whose OP was seen
+      val originalPosts = database.withTransaction {
+        localSource.selectAllByThreadDescriptors(BOARD_DESCRIPTOR, listOf(thread, otherThread, thread(300)))
+      }
+
+      assertEquals(listOf(PostDescriptor.create(thread, 100)), originalPosts.map { seenPost -> seenPost.postDescriptor })
+
+      // The whole thread is deleted once it wasn't updated for too long
+      assertEquals(1, database.withTransaction { localSource.deleteOlderThan(DateTime(1_500_000L)) })
+      assertTrue(database.withTransaction { localSource.selectAllByThreadDescriptor(otherThread) }.isEmpty())
+      assertEquals(3, database.withTransaction { localSource.count() })
+    }
+  }
+
+  @Test
+  fun `malformed bitmap is discarded instead of breaking the thread`() {
+    runBlocking {
+      val thread = thread(100)
+
+      database.withTransaction { localSource.insertMany(thread, listOf(seenPost(thread, 100, DateTime.now()))) }
+      database.openHelper.writableDatabase.execSQL("UPDATE seen_posts_bitmap SET seen_posts_bitmap = X'FF'")
+
+      assertTrue(database.withTransaction { localSource.selectAllByThreadDescriptor(thread) }.isEmpty())
+
+      database.withTransaction { localSource.insertMany(thread, listOf(seenPost(thread, 105, DateTime.now()))) }
+      val seenPosts = database.withTransaction { localSource.selectAllByThreadDescriptor(thread) }
+      assertEquals(listOf(105L), seenPosts.map { seenPost -> seenPost.postDescriptor.postNo })
+    }
+  }
+
+  @Test
+  fun `migration converts every seen post row into the thread bitmaps`() {
+    runBlocking {
+      val db = database.openHelper.writableDatabase
+      db.execSQL("INSERT INTO chan_board_id (board_id, owner_site_name, board_code) VALUES (1, '$SITE_NAME', '$BOARD_CODE')")
+      db.execSQL("""
+        INSERT INTO chan_thread (thread_id, thread_no, owner_board_id, last_modified, catalog_replies_count,
+            catalog_images_count, unique_ips, sticky, closed, archived)
+        VALUES (1, 100, 1, 0, 0, 0, 0, 0, 0, 0), (2, 5000, 1, 0, 0, 0, 0, 0, 0, 0), (3, 7000, 1, 0, 0, 0, 0, 0, 0, 0)
+      """)
+
+      // The table as it was before the migration
+      db.execSQL("""
+        CREATE TABLE IF NOT EXISTS `seen_post`
+        (
+          `owner_thread_id` INTEGER NOT NULL,
+          `post_no` INTEGER NOT NULL,
+          `post_sub_no` INTEGER NOT NULL,
+          `inserted_at` INTEGER NOT NULL,
+          PRIMARY KEY(`owner_thread_id`, `post_no`, `post_sub_no`),
+          FOREIGN KEY(`owner_thread_id`) REFERENCES `chan_thread`(`thread_id`) ON UPDATE CASCADE ON DELETE CASCADE
+        )
+      """.trimIndent())
+      db.execSQL("CREATE INDEX IF NOT EXISTS `seen_post_owner_thread_id_idx` ON `seen_post` (`owner_thread_id`)")
+      db.execSQL("CREATE INDEX IF NOT EXISTS `seen_post_inserted_at_idx` ON `seen_post` (`inserted_at`)")
+
+      val expected = mapOf(
+        thread(100) to listOf(100L to 0L, 101L to 0L, 102L to 0L, 150L to 0L, 101L to 2L),
+        thread(5000) to listOf(5001L to 0L, 5003L to 0L)
+      )
+
+      db.execSQL("""
+        INSERT INTO seen_post (owner_thread_id, post_no, post_sub_no, inserted_at)
+        VALUES (1, 100, 0, 10), (1, 101, 0, 30), (1, 102, 0, 20), (1, 150, 0, 10), (1, 101, 2, 10),
+            (2, 5001, 0, 40), (2, 5003, 0, 50)
+      """)
+
+      Migration_v46_to_v47().migrate(db)
+
+      assertEquals(0L, count("SELECT COUNT(*) FROM sqlite_master WHERE name IN ('seen_post', 'seen_post_owner_thread_id_idx', 'seen_post_inserted_at_idx')"))
+      assertEquals(2L, count("SELECT COUNT(*) FROM seen_posts_bitmap"))
+      assertEquals(30L, count("SELECT last_updated_at FROM seen_posts_bitmap WHERE owner_thread_id = 1"))
+      assertEquals(50L, count("SELECT last_updated_at FROM seen_posts_bitmap WHERE owner_thread_id = 2"))
+
+      expected.forEach { (threadDescriptor, posts) ->
+        val seenPosts = database.withTransaction { localSource.selectAllByThreadDescriptor(threadDescriptor) }
+        val actual = seenPosts
+          .map { seenPost -> seenPost.postDescriptor.postNo to seenPost.postDescriptor.postSubNo }
+          .toSet()
+
+        assertEquals(posts.toSet(), actual)
+      }
+
+      assertTrue(database.withTransaction { localSource.selectAllByThreadDescriptor(thread(7000)) }.isEmpty())
+      assertEquals(7, database.withTransaction { localSource.count() })
+    }
+  }
+
+  private fun count(sql: String): Long {
+    return database.openHelper.writableDatabase.query(sql).use { cursor ->
+      cursor.moveToFirst()
+      cursor.getLong(0)
+    }
+  }
+
+  private fun thread(threadNo: Long): ChanDescriptor.ThreadDescriptor {
+    return ChanDescriptor.ThreadDescriptor.create(SITE_NAME, BOARD_CODE, threadNo)
+  }
+
+  private fun seenPost(threadDescriptor: ChanDescriptor.ThreadDescriptor, postNo: Long, insertedAt: DateTime): SeenPost {
+    return SeenPost(PostDescriptor.create(threadDescriptor, postNo), insertedAt)
+  }
+
+  companion object {
+    private const val SITE_NAME = "test"
+    private const val BOARD_CODE = "g"
+
+    private val BOARD_DESCRIPTOR = BoardDescriptor.create(SITE_NAME, BOARD_CODE)
+  }
+}
@@ -0,0 +1,188 @@
+package com.github.k1rakishou.model.source.local
+
+import android.os.Build
+import androidx.room.Room
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.SeenPost
+import kotlinx.coroutines.runBlocking
+import org.joda.time.DateTime
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+import kotlin.random.Random
+
+/**
+ * Compares the size of the seen posts stored as one row per post (the way they were stored before
+ * the bitmaps) with one bitmap row per thread. The load times are measured by
+ * SeenPostsBitmapBenchmark in the benchmarks module.
+ * */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class SeenPostsBitmapSizeTest {
+  private lateinit var database: KurobaDatabase
+  private lateinit var localSource: SeenPostLocalSource
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+
+    database = Room.inMemoryDatabaseBuilder(
+      RuntimeEnvironment.application.applicationContext,
+      KurobaDatabase::class.java
+    )
+      .addCallback(KurobaDatabase.TriggersCallback)
+      .build()
+
+    localSource = SeenPostLocalSource(database)
+
+    val db = database.openHelper.writableDatabase
+    db.execSQL("INSERT INTO chan_site_id (site_name) VALUES ('test')")
+    db.execSQL("""
+      CREATE TABLE IF NOT EXISTS `seen_post`
+      (
+        `owner_thread_id` INTEGER NOT NULL,
+        `post_no` INTEGER NOT NULL,
+        `post_sub_no` INTEGER NOT NULL,
+        `inserted_at` INTEGER NOT NULL,
+        PRIMARY KEY(`owner_thread_id`, `post_no`, `post_sub_no`)
+      )
+    """.trimIndent())
+    db.execSQL("CREATE INDEX IF NOT EXISTS `seen_post_owner_thread_id_idx` ON `seen_post` (`owner_thread_id`)")
+    db.execSQL("CREATE INDEX IF NOT EXISTS `seen_post_inserted_at_idx` ON `seen_post` (`inserted_at`)")
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `bitmaps take far fewer pages than a row per post`() {
+    runBlocking {
+      val threads = generateThreads()
+      val totalSeenPosts = threads.values.sumOf { seenPosts -> seenPosts.size }
+
+      // Threads are created by the bitmaps so that both tables use the same thread ids
+      val bitmapPages = countNewPages {
+        database.withTransaction {
+          threads.forEach { (threadDescriptor, seenPosts) -> localSource.insertMany(threadDescriptor, seenPosts) }
+        }
+      }
+
+      val threadIds = selectThreadIds()
+
+      val rowPerPostPages = countNewPages {
+        val db = database.openHelper.writableDatabase
+        val statement = db.compileStatement("INSERT INTO seen_post (owner_thread_id, post_no, post_sub_no, inserted_at) VALUES (?, ?, ?, ?)")
+
+        db.beginTransaction()
+        try {
+          threads.forEach { (threadDescriptor, seenPosts) ->
+            seenPosts.forEach { seenPost ->
+              statement.bindLong(1, threadIds[threadDescriptor.threadNo]!!)
+              statement.bindLong(2, seenPost.postDescriptor.postNo)
+              statement.bindLong(3, seenPost.postDescriptor.postSubNo)
+              statement.bindLong(4, seenPost.insertedAt.millis)
+              statement.executeInsert()
+            }
+          }
+
+          db.setTransactionSuccessful()
+        } finally {
+          db.endTransaction()
+          statement.close()
+        }
+      }
+
+      var rowPerPostLoaded = 0
+
+      threads.keys.forEach { threadDescriptor ->
+        val query = "SELECT post_no, post_sub_no, inserted_at FROM seen_post WHERE owner_thread_id = ?"
+
+        database.openHelper.writableDatabase.query(query, arrayOf<Any?>(threadIds[threadDescriptor.threadNo]!!)).use { cursor ->
+          while (cursor.moveToNext()) {
+            ++rowPerPostLoaded
+          }
+        }
+      }
+
+      var bitmapLoaded = 0
+
+      threads.keys.forEach { threadDescriptor ->
+        bitmapLoaded += database.withTransaction { localSource.selectAllByThreadDescriptor(threadDescriptor) }.size
+      }
+
+      assertEquals(totalSeenPosts, rowPerPostLoaded)
+      assertEquals(totalSeenPosts, bitmapLoaded)
+      assertEquals(threads.size.toLong(), count("SELECT COUNT(*) FROM seen_posts_bitmap"))
+      assertTrue("bitmapPages=${bitmapPages}, rowPerPostPages=${rowPerPostPages}", bitmapPages * 5 < rowPerPostPages)
+    }
+  }
+
+  /**
+   * Threads with board-wide post numbers (the gaps between the posts of a thread are the posts of
+   * the other threads) where most but not all posts were seen.
+   * */
+  private fun generateThreads(): Map<ChanDescriptor.ThreadDescriptor, List<SeenPost>> {
+    val random = Random(42)
+    val insertedAt = DateTime.now()
+
+    return (0 until THREADS_COUNT).associate { threadIndex ->
+      val threadNo = 1_000_000L + threadIndex * 100_000L
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", threadNo)
+      val seenPosts = mutableListOf(SeenPost(PostDescriptor.create(threadDescriptor, threadNo), insertedAt))
+      var postNo = threadNo
+
+      repeat(POSTS_PER_THREAD - 1) {
+        postNo += 1 + random.nextInt(MAX_POST_NO_GAP)
+
+        if (random.nextInt(10) != 0) {
+          seenPosts += SeenPost(PostDescriptor.create(threadDescriptor, postNo), insertedAt)
+        }
+      }
+
+      return@associate threadDescriptor to seenPosts
+    }
+  }
+
+  private fun selectThreadIds(): Map<Long, Long> {
+    val threadIds = mutableMapOf<Long, Long>()
+
+    database.openHelper.writableDatabase.query("SELECT thread_no, thread_id FROM chan_thread").use { cursor ->
+      while (cursor.moveToNext()) {
+        threadIds[cursor.getLong(0)] = cursor.getLong(1)
+      }
+    }
+
+    return threadIds
+  }
+
+  private suspend fun countNewPages(func: suspend () -> Unit): Long {
+    val before = count("PRAGMA page_count")
+    func()
+    return count("PRAGMA page_count") - before
+  }
+
+  private fun count(sql: String): Long {
+    return database.openHelper.writableDatabase.query(sql).use { cursor ->
+      cursor.moveToFirst()
+      cursor.getLong(0)
+    }
+  }
+
+  companion object {
+    private const val THREADS_COUNT = 300
+    private const val POSTS_PER_THREAD = 300
+    private const val MAX_POST_NO_GAP = 8
+  }
+}
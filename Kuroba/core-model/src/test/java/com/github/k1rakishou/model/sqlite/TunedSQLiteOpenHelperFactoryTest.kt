@@ -0,0 +1,103 @@
+package com.github.k1rakishou.model.sqlite
+
+import android.os.Build
+import androidx.room.Room
+import com.github.k1rakishou.model.KurobaDatabase
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class TunedSQLiteOpenHelperFactoryTest {
+  private val pragmas = SQLitePragmas(
+    synchronous = SQLitePragmas.Synchronous.NORMAL,
+    cacheSizeKb = 4096,
+    tempStore = SQLitePragmas.TempStore.MEMORY
+  )
+
+  private lateinit var queryTimings: SQLiteQueryTimings
+  private lateinit var database: KurobaDatabase
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+    queryTimings = SQLiteQueryTimings()
+
+    database = Room.inMemoryDatabaseBuilder(
+      RuntimeEnvironment.application.applicationContext,
+      KurobaDatabase::class.java
+    )
+      .openHelperFactory(TunedSQLiteOpenHelperFactory(pragmas, queryTimings))
+      .build()
+  }
+
+  @After
+  fun tearDown() {
+    database.close()
+  }
+
+  @Test
+  fun `pragmas are applied when the database is opened`() {
+    assertEquals(SQLitePragmas.Synchronous.NORMAL.value.toLong(), queryPragma("synchronous"))
+    assertEquals(-4096L, queryPragma("cache_size"))
+    assertEquals(SQLitePragmas.TempStore.MEMORY.value.toLong(), queryPragma("temp_store"))
+  }
+
+  @Test
+  fun `histogram captures ChanPostDao queries`() {
+    queryTimings.reset()
+
+    runBlocking(Dispatchers.Default) {
+      repeat(3) { database.chanPostDao().totalPostsCount() }
+
+      database.chanPostDao().selectManyByThreadIdAndPostNos(1L, listOf(1L, 2L, 3L))
+      database.chanPostDao().selectManyByThreadIdAndPostNos(1L, listOf(1L, 2L, 3L, 4L, 5L))
+    }
+
+    val timings = queryTimings.snapshot()
+
+    val totalPostsCountTiming = timings.firstOrNull { timing -> timing.sql.startsWith("SELECT COUNT(*)") }
+    assertNotNull(totalPostsCountTiming)
+    assertEquals(3L, totalPostsCountTiming!!.count)
+    assertEquals(3L, totalPostsCountTiming.bucketCounts.sum())
+    assertTrue(totalPostsCountTiming.totalTimeNanos > 0)
+    assertTrue(totalPostsCountTiming.maxTimeNanos <= totalPostsCountTiming.totalTimeNanos)
+
+    // Both calls end up in the same histogram no matter how many post numbers were passed
+    val selectByPostNosTimings = timings.filter { timing -> timing.sql.contains("?...)") }
+    assertEquals(1, selectByPostNosTimings.size)
+    assertEquals(2L, selectByPostNosTimings.first().count)
+  }
+
+  @Test
+  fun `percentiles are taken from the histogram buckets`() {
+    val timings = SQLiteQueryTimings()
+
+    repeat(99) { timings.record("SELECT 1", 50_000L) }
+    timings.record("SELECT 1", 2_000_000_000L)
+
+    val timing = timings.snapshot().first()
+    assertEquals(100L, timing.percentileMicros(0.5))
+    assertEquals(100L, timing.percentileMicros(0.99))
+    assertEquals(2_000_000L, timing.percentileMicros(1.0))
+  }
+
+  private fun queryPragma(name: String): Long {
+    return database.openHelper.writableDatabase.query("PRAGMA ${name}").use { cursor ->
+      cursor.moveToFirst()
+      cursor.getLong(0)
+    }
+  }
+
+}